@@ -85,4 +85,86 @@ public interface Constants {
      * are inclusive
      */
     static final String PORT_RANGE = BASE_COMPONENT+".portRange";
+    /**
+     * Property to set the maximum number of fault detection probes that run
+     * concurrently in the {@link org.rioproject.fdh.FaultDetectionEngine}
+     */
+    static final String FDH_PROBE_THREADS = BASE_COMPONENT+".fdh.probeThreads";
+    /**
+     * Property to set the resolution (in milliseconds) of the timing wheel
+     * used by the {@link org.rioproject.fdh.FaultDetectionEngine}
+     */
+    static final String FDH_TICK_DURATION = BASE_COMPONENT+".fdh.tickDuration";
+    /**
+     * Property to set the fraction (between 0 and 1) by which the delay
+     * between fault detection probes is randomly varied
+     */
+    static final String FDH_JITTER = BASE_COMPONENT+".fdh.jitter";
+    /**
+     * Property to set the port heartbeats are received on when using the UDP
+     * heartbeat transport. If not set an anonymous port is used
+     */
+    static final String FDH_HEARTBEAT_PORT = BASE_COMPONENT+".fdh.heartbeatPort";
+    /**
+     * Property to set the maximum number of asynchronous invocations made
+     * concurrently through association proxies
+     */
+    static final String ASSOCIATION_ASYNC_THREADS = BASE_COMPONENT+".association.asyncThreads";
+    /**
+     * Property to set the maximum number of asynchronous invocations made
+     * through association proxies that may wait for a thread
+     */
+    static final String ASSOCIATION_ASYNC_QUEUE_SIZE = BASE_COMPONENT+".association.asyncQueueSize";
+    /**
+     * Property to indicate whether invocations made through association
+     * proxies are published as watches, defaults to <code>true</code>
+     */
+    static final String ASSOCIATION_METRICS = BASE_COMPONENT+".association.metrics";
+    /**
+     * Property to set how often (in milliseconds) invocations made through
+     * association proxies are published as watches
+     */
+    static final String ASSOCIATION_METRICS_PERIOD = BASE_COMPONENT+".association.metricsPeriod";
+    /**
+     * Property to set the maximum number of threads used to start handling
+     * a service's associations in parallel
+     */
+    static final String ASSOCIATION_RESOLVE_THREADS = BASE_COMPONENT+".association.resolveThreads";
+    /**
+     * Property to set the number of invocations of each associated service
+     * whose outcome is kept to decide whether to eject the service
+     */
+    static final String ASSOCIATION_BREAKER_WINDOW = BASE_COMPONENT+".association.breaker.window";
+    /**
+     * Property to set the percentage of failed invocations of an associated
+     * service that ejects the service
+     */
+    static final String ASSOCIATION_BREAKER_FAILURE_RATE = BASE_COMPONENT+".association.breaker.failureRate";
+    /**
+     * Property to set the time (in milliseconds) after which an invocation of
+     * an associated service is counted as failed
+     */
+    static final String ASSOCIATION_BREAKER_SLOW_CALL = BASE_COMPONENT+".association.breaker.slowCall";
+    /**
+     * Property to set the time (in milliseconds) an ejected associated
+     * service is not invoked for before it is probed for recovery
+     */
+    static final String ASSOCIATION_BREAKER_OPEN_TIME = BASE_COMPONENT+".association.breaker.openTime";
+    /**
+     * Property to set the number of threads the shared
+     * {@link org.rioproject.resources.util.TaskScheduler} runs tasks with
+     */
+    static final String SCHEDULER_THREADS = BASE_COMPONENT+".scheduler.threads";
+    /**
+     * Property to set the maximum number of threads the shared
+     * {@link org.rioproject.resources.util.TaskScheduler} grows to while
+     * tasks are running longer than expected
+     */
+    static final String SCHEDULER_MAX_THREADS = BASE_COMPONENT+".scheduler.maxThreads";
+    /**
+     * Property to set the time (in milliseconds) after which a task run by
+     * the shared {@link org.rioproject.resources.util.TaskScheduler} is
+     * considered to be running longer than expected
+     */
+    static final String SCHEDULER_LONG_TASK_TIME = BASE_COMPONENT+".scheduler.longTaskTime";
 }
@@ -79,7 +79,7 @@ abstract class AbstractOpStringParser implements OpStringParser {
     /**
      * Get the SLAPolicyHandler classname
      *
-     * @param type The type, either scaling or relocation
+     * @param type The type, either scaling, predictive or relocation
      * @param className The class name of the policy handler
      *
      * @return String name of the SLA policy handler to use
@@ -88,6 +88,8 @@ abstract class AbstractOpStringParser implements OpStringParser {
         String handler = "org.rioproject.sla."
         if (type == "scaling") {
             handler = handler + "ScalingPolicyHandler"
+        } else if (type == "predictive") {
+            handler = handler + "PredictiveScalingPolicyHandler"
         } else if (type == "relocation") {
             handler = handler + "RelocationPolicyHandler"
         } else if (type == "restart") {
@@ -80,9 +80,15 @@ public class Association<T> implements Iterable<T> {
      */
     private AssociationDescriptor descriptor;
     /**
-     * LinkedList of associated service instances
+     * Associated service instances. The array is never modified, it is
+     * replaced when services are added or removed so that readers do not
+     * lock
      */
-    private final List<ServiceItem> serviceList = new LinkedList<ServiceItem>();
+    private volatile ServiceItem[] serviceItems = new ServiceItem[0];
+    /**
+     * Lock held while replacing the associated service instances
+     */
+    private final Object serviceLock = new Object();
     /**
      * Index to associated service list
      */
@@ -176,11 +182,7 @@ public class Association<T> implements Iterable<T> {
      * @return The number of associated services
      */
     public int getServiceCount() {
-        int count;
-        synchronized(serviceList) {
-            count = serviceList.size();
-        }
-        return(count);
+        return(serviceItems.length);
     }
     
     /**
@@ -262,12 +264,8 @@ public class Association<T> implements Iterable<T> {
      * services, a null will be returned
      */
     public ServiceItem getServiceItem() {
-        ServiceItem item = null;
-        synchronized(serviceList) {
-            if(serviceList.size()>0)
-                item = serviceList.get(0);
-        }
-        return (item);
+        ServiceItem[] items = serviceItems;
+        return (items.length>0?items[0]:null);
     }
     
     /**
@@ -283,8 +281,7 @@ public class Association<T> implements Iterable<T> {
      */
     public ServiceItem getServiceItem(T service) {
         ServiceItem item = null;
-        ServiceItem[] items = getServiceItems();
-        for (ServiceItem item1 : items) {
+        for (ServiceItem item1 : serviceItems) {
             if (item1.service.equals(service)) {
                 item = item1;
                 break;
@@ -301,11 +298,7 @@ public class Association<T> implements Iterable<T> {
      * services, an empty array will be returned
      */
     public ServiceItem[] getServiceItems() {
-        ServiceItem[] items;
-        synchronized(serviceList) {
-            items = serviceList.toArray(new ServiceItem[serviceList.size()]);
-        }
-        return (items);
+        return (serviceItems.clone());
     }
 
     /**
@@ -317,18 +310,11 @@ public class Association<T> implements Iterable<T> {
      * collection will be returned
      */
     public ServiceItem getNextServiceItem() {
-        ServiceItem item;
-        synchronized(serviceList) {
-            if(serviceList.size() == 0) {
-                item = null;
-            } else {
-                if(index.get()>=serviceList.size()) {
-                    index.set(0);
-                }
-                item = serviceList.get(index.getAndIncrement());
-            }
-        }
-        return item;
+        ServiceItem[] items = serviceItems;
+        if(items.length == 0)
+            return null;
+        int next = index.getAndIncrement() & Integer.MAX_VALUE;
+        return items[next % items.length];
     }
 
     /**
@@ -341,14 +327,17 @@ public class Association<T> implements Iterable<T> {
     public boolean addServiceItem(ServiceItem item) {
         if(item == null)
             throw new IllegalArgumentException("item is null");
-        ServiceItem[] items = getServiceItems();
-        for (ServiceItem item1 : items) {
-            if (item1.service.equals(item.service)) {
-                return (false);
+        synchronized(serviceLock) {
+            ServiceItem[] items = serviceItems;
+            for (ServiceItem item1 : items) {
+                if (item1.service.equals(item.service)) {
+                    return (false);
+                }
             }
-        }
-        synchronized(serviceList) {
-            serviceList.add(item);
+            ServiceItem[] updated = new ServiceItem[items.length+1];
+            System.arraycopy(items, 0, updated, 0, items.length);
+            updated[items.length] = item;
+            serviceItems = updated;
         }
         notifyServiceAdd((T)item.service);
         return (true);
@@ -364,14 +353,17 @@ public class Association<T> implements Iterable<T> {
         if(service == null)
             throw new IllegalArgumentException("service is null");
         ServiceItem item = null;
-        ServiceItem[] items = getServiceItems();
-        for (ServiceItem item1 : items) {
-            if (item1.service.equals(service)) {
-                synchronized (serviceList) {
-                    if(serviceList.remove(item1))
-                        item = item1;
+        synchronized(serviceLock) {
+            ServiceItem[] items = serviceItems;
+            for (int i=0; i<items.length; i++) {
+                if (items[i].service.equals(service)) {
+                    item = items[i];
+                    ServiceItem[] updated = new ServiceItem[items.length-1];
+                    System.arraycopy(items, 0, updated, 0, i);
+                    System.arraycopy(items, i+1, updated, i, items.length-i-1);
+                    serviceItems = updated;
+                    break;
                 }
-                break;
             }
         }
         if(item!=null)
@@ -15,7 +15,10 @@
  */
 package org.rioproject.associations;
 
+import net.jini.config.Configuration;
 import org.rioproject.associations.strategy.FailOver;
+import org.rioproject.config.Constants;
+import org.rioproject.watch.WatchRegistry;
 
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
@@ -71,6 +74,16 @@ public class AssociationInjector<T> implements AssociationListener<T> {
     private final Map<Association, AssociationProxy<T>> proxyMap =
         new HashMap<Association, AssociationProxy<T>>();
     private String targetPropertyName;
+    /**
+     * The WatchRegistry invocation metrics are published to, and the
+     * Configuration used to create watches
+     */
+    private WatchRegistry watchRegistry;
+    private Configuration config;
+    /**
+     * Resolves colocated services to their implementations
+     */
+    private LocalServiceResolver localServiceResolver;
     static final String COMPONENT = "org.rioproject.associations";
     private static final Logger logger = Logger.getLogger(COMPONENT);
 
@@ -101,6 +114,33 @@ public class AssociationInjector<T> implements AssociationListener<T> {
         this.callerCL = callerCL;
     }
 
+    /**
+     * Set the WatchRegistry that invocations made through generated
+     * association proxies are published to as watches. Invocations are not
+     * published if the <tt>org.rioproject.association.metrics</tt> system
+     * property is set to <code>false</code>.
+     *
+     * @param watchRegistry The WatchRegistry, may be null
+     * @param config The Configuration used to create watches
+     *
+     * @see InvocationMetrics
+     */
+    public void setWatchRegistry(WatchRegistry watchRegistry, Configuration config) {
+        this.watchRegistry = watchRegistry;
+        this.config = config;
+    }
+
+    /**
+     * Set the LocalServiceResolver that association proxies for
+     * {@link AssociationType#COLOCATED} associations use to invoke the
+     * implementations of services running in the same container directly
+     *
+     * @param localServiceResolver The LocalServiceResolver, may be null
+     */
+    public void setLocalServiceResolver(LocalServiceResolver localServiceResolver) {
+        this.localServiceResolver = localServiceResolver;
+    }
+
     private synchronized ClassLoader getCallerClassLoader() {
         if(callerCL==null)
             callerCL = Thread.currentThread().getContextClassLoader();
@@ -217,6 +257,14 @@ public class AssociationInjector<T> implements AssociationListener<T> {
                                     "["+method.getName()+"] " +
                                     "on target class ["+targetClass+"]");
                     }
+                    if(watchRegistry!=null &&
+                       Boolean.parseBoolean(System.getProperty(Constants.ASSOCIATION_METRICS, "true"))) {
+                        associationProxy.setInvocationMetrics(
+                            new InvocationMetrics<T>(association, watchRegistry, config));
+                    }
+                    if(localServiceResolver!=null &&
+                       association.getAssociationType()==AssociationType.COLOCATED)
+                        associationProxy.setLocalServiceResolver(localServiceResolver);
                     proxyMap.put(association, associationProxy);
                     //injected.add(method.toString());
                     injectedMap.put(association, method.toString());
@@ -25,6 +25,7 @@ import net.jini.config.ConfigurationException;
 import net.jini.core.entry.Entry;
 import net.jini.core.lookup.*;
 import net.jini.discovery.DiscoveryEvent;
+import net.jini.discovery.DiscoveryGroupManagement;
 import net.jini.discovery.DiscoveryListener;
 import net.jini.discovery.DiscoveryManagement;
 import net.jini.id.Uuid;
@@ -39,6 +40,7 @@ import org.rioproject.core.jsb.ServiceBeanContext;
 import org.rioproject.core.provision.ServiceRecord;
 import org.rioproject.cybernode.ServiceBeanContainer;
 import org.rioproject.cybernode.ServiceBeanContainerListener;
+import org.rioproject.config.Constants;
 import org.rioproject.resources.client.*;
 import org.rioproject.resources.util.ThrowableUtil;
 import org.rioproject.fdh.FaultDetectionHandlerFactory;
@@ -54,6 +56,7 @@ import java.rmi.RemoteException;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -124,6 +127,20 @@ public class AssociationMgmt implements AssociationManagement {
      * The configuration to use for obtaining a proxy preparer
      */
     private Configuration config;
+    /**
+     * The OperationalStringManager used to find running instances of
+     * associated services when associations are prefetched
+     */
+    private OperationalStringManager opStringManager;
+    /**
+     * The name of the OperationalString the client belongs to
+     */
+    private String opStringName;
+    /**
+     * Executor used to start handling associations in parallel
+     */
+    private static ThreadPoolExecutor resolveExecutor;
+    private static final int DEFAULT_RESOLVE_THREADS = 8;
     /**
      * The Logger.
      */
@@ -192,6 +209,7 @@ public class AssociationMgmt implements AssociationManagement {
         if(container == null)
             throw new NullPointerException("control is null");
         this.container = container;
+        listener.setInjectorLocalServiceResolver();
     }
 
     /**
@@ -345,19 +363,9 @@ public class AssociationMgmt implements AssociationManagement {
         if(this.context!=null)
             update = true;
         this.context = context;
-        setClientName(context.getServiceElement().getName());
-        ClassLoader currentCL = Thread.currentThread().getContextClassLoader();
-        try {
-            Thread.currentThread().setContextClassLoader(callerCL);
-            setConfiguration(context.getConfiguration());
-        } catch (ConfigurationException e) {
-            logger.log(Level.WARNING,
-                       "Unable to get Configuration from ServiceBeanContext. " +
-                       "Will proceed without configuration",
-                       ThrowableUtil.getRootCause(e));
-        } finally {
-            Thread.currentThread().setContextClassLoader(currentCL);
-        }
+        configure(context);
+        listener.setInjectorWatchRegistry();
+        listener.setInjectorLocalServiceResolver();
         AssociationDescriptor[] newDesc =
             context.getServiceElement().getAssociationDescriptors();
         if(newDesc != null) {
@@ -420,6 +428,95 @@ public class AssociationMgmt implements AssociationManagement {
         }
     }
 
+    /**
+     * Start discovering the associated services declared by a ServiceBean
+     * before the ServiceBean is instantiated. Handling of each association is
+     * started in parallel, and instances of associated services that the
+     * ServiceBean's OperationalStringManager knows are running are added
+     * without waiting for them to be discovered. Associations resolved before
+     * the backend is set are injected in a single batch when it is.
+     *
+     * <p>Colocated associations are not prefetched, they are handled when
+     * the ServiceBeanContext is set. Prefetching is disabled by setting the
+     * <tt>service.association.prefetch</tt> configuration entry to
+     * <code>false</code>.
+     *
+     * @param context The ServiceBeanContext for the ServiceBean that is
+     * about to be instantiated
+     */
+    public void prefetch(ServiceBeanContext context) {
+        if(context==null)
+            throw new NullPointerException("context is null");
+        if(this.context!=null)
+            return;
+        configure(context);
+        boolean prefetch = true;
+        try {
+            prefetch = (Boolean)getConfiguration().getEntry(CONFIG_COMPONENT,
+                                                            "prefetch",
+                                                            boolean.class,
+                                                            true);
+        } catch(ConfigurationException e) {
+            logger.log(Level.WARNING,
+                       "Getting "+CONFIG_COMPONENT+".prefetch "+
+                       "property from association configuration",
+                       e);
+        }
+        AssociationDescriptor[] descriptors =
+            context.getServiceElement().getAssociationDescriptors();
+        if(!prefetch || descriptors==null)
+            return;
+        List<AssociationDescriptor> toPrefetch = new ArrayList<AssociationDescriptor>();
+        for(AssociationDescriptor aDesc : descriptors) {
+            if(aDesc.getAssociationType()!=AssociationType.COLOCATED)
+                toPrefetch.add(aDesc);
+        }
+        if(toPrefetch.isEmpty())
+            return;
+        if(context.getServiceBeanManager()!=null)
+            opStringManager = context.getServiceBeanManager().getOperationalStringManager();
+        opStringName = context.getServiceElement().getOperationalStringName();
+        if(logger.isLoggable(Level.FINE))
+            logger.fine("["+clientName+"] Prefetching "+toPrefetch.size()+" associations");
+        addAssociationDescriptors(toPrefetch.toArray(new AssociationDescriptor[toPrefetch.size()]));
+    }
+
+    /**
+     * Get how long it took to discover the first instance of each associated
+     * service, measured from when the association started to be handled
+     *
+     * @return A Map of AssociationDescriptors to the time (in milliseconds)
+     * taken to discover the first instance of the associated service.
+     * Associations that have not been discovered are not included.
+     */
+    public Map<AssociationDescriptor, Long> getDiscoveryTimes() {
+        Map<AssociationDescriptor, Long> times = new HashMap<AssociationDescriptor, Long>();
+        for(AssociationHandler handler : getAssociationHandlers()) {
+            if(handler.discoveryTime>=0)
+                times.put(handler.aDesc, handler.discoveryTime);
+        }
+        return times;
+    }
+
+    /*
+     * Set the client name and configuration from the ServiceBeanContext
+     */
+    private void configure(ServiceBeanContext context) {
+        setClientName(context.getServiceElement().getName());
+        ClassLoader currentCL = Thread.currentThread().getContextClassLoader();
+        try {
+            Thread.currentThread().setContextClassLoader(callerCL);
+            setConfiguration(context.getConfiguration());
+        } catch (ConfigurationException e) {
+            logger.log(Level.WARNING,
+                       "Unable to get Configuration from ServiceBeanContext. " +
+                       "Will proceed without configuration",
+                       ThrowableUtil.getRootCause(e));
+        } finally {
+            Thread.currentThread().setContextClassLoader(currentCL);
+        }
+    }
+
     protected Configuration getConfiguration() {
         return (config==null? EmptyConfiguration.INSTANCE:config);
     }
@@ -621,14 +718,70 @@ public class AssociationMgmt implements AssociationManagement {
                 newHandlers.add(handler);
             }
         }
+        exec(newHandlers);
         for (AssociationHandler handler : newHandlers) {
-            handler.exec();
             associations.add(handler.getAssociation());
         }
 
         return Collections.unmodifiableList(associations);
     }
 
+    /*
+     * Start AssociationHandlers. If there are several they are started in
+     * parallel, since starting each one may involve remote calls
+     */
+    private void exec(List<AssociationHandler> handlers) {
+        if(handlers.size()<2) {
+            for (AssociationHandler handler : handlers)
+                handler.exec();
+            return;
+        }
+        final ClassLoader cCL = Thread.currentThread().getContextClassLoader();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (final AssociationHandler handler : handlers) {
+            futures.add(getResolveExecutor().submit(new Runnable() {
+                public void run() {
+                    Thread currentThread = Thread.currentThread();
+                    ClassLoader currentCL = currentThread.getContextClassLoader();
+                    currentThread.setContextClassLoader(cCL);
+                    try {
+                        handler.exec();
+                    } finally {
+                        currentThread.setContextClassLoader(currentCL);
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                logger.log(Level.WARNING,
+                           "Creating an AssociationHandler",
+                           e.getCause());
+            }
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getResolveExecutor() {
+        if(resolveExecutor==null) {
+            int threads = Math.max(1, Integer.getInteger(Constants.ASSOCIATION_RESOLVE_THREADS,
+                                                         DEFAULT_RESOLVE_THREADS));
+            resolveExecutor = new ThreadPoolExecutor(threads,
+                                                     threads,
+                                                     60,
+                                                     TimeUnit.SECONDS,
+                                                     new LinkedBlockingQueue<Runnable>(),
+                                                     new AsyncAssociationProxySupport.DaemonThreadFactory(
+                                                         "AssociationMgmt:Resolve"));
+            resolveExecutor.allowCoreThreadTimeOut(true);
+        }
+        return resolveExecutor;
+    }
+
     /*
      * Determine if we already have an association
      */
@@ -653,18 +806,119 @@ public class AssociationMgmt implements AssociationManagement {
     class Listener implements AssociationListener {
         List<Association> requiredAssociations =
             Collections.synchronizedList(new ArrayList<Association>());
-       AssociationInjector associationInjector;
+        volatile AssociationInjector associationInjector;
+        /*
+         * Services discovered before there was an injector, and services
+         * injected by injectResolved() whose discovery notification has not
+         * yet been received. Both are guarded by injectLock
+         */
+        private final Set<Object> discoveredBeforeInjector =
+            Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        private final Set<Object> batchInjected =
+            Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        private final Object injectLock = new Object();
 
         /*
          * Create injector
          */
         private void createAssociationInjector(Object backend)
             throws IntrospectionException {
-            if(associationInjector==null)
-                associationInjector = new AssociationInjector(backend);
-            else
-                associationInjector.setBackend(backend);
-            associationInjector.setCallerClassLoader(callerCL);
+            synchronized(injectLock) {
+                if(associationInjector==null) {
+                    AssociationInjector injector = new AssociationInjector(backend);
+                    injector.setCallerClassLoader(callerCL);
+                    associationInjector = injector;
+                    setInjectorWatchRegistry();
+                    setInjectorLocalServiceResolver();
+                    injectResolved();
+                } else {
+                    associationInjector.setBackend(backend);
+                    associationInjector.setCallerClassLoader(callerCL);
+                    setInjectorWatchRegistry();
+                    setInjectorLocalServiceResolver();
+                }
+            }
+        }
+
+        /*
+         * Inject associations that were handled before there was a backend
+         * to inject them into, for example because they were prefetched.
+         * Associations that are not lazily injected are injected even if
+         * they have not been discovered, and others are injected if they
+         * have.
+         */
+        private void injectResolved() {
+            for(AssociationHandler handler : getAssociationHandlers()) {
+                Association association = handler.getAssociation();
+                if(association.getAssociationType()==AssociationType.COLOCATED)
+                    continue;
+                Collection services = association.getServices();
+                for(Object service : services) {
+                    if(!discoveredBeforeInjector.contains(service))
+                        batchInjected.add(service);
+                }
+                if(!handler.aDesc.isLazyInject())
+                    associationInjector.injectEmpty(association);
+                else if(!services.isEmpty())
+                    associationInjector.discovered(association, services.iterator().next());
+            }
+            discoveredBeforeInjector.clear();
+        }
+
+        /*
+         * Inject a discovered service, unless it has already been injected
+         * by injectResolved()
+         */
+        private void inject(Association assoc, Object service) {
+            synchronized(injectLock) {
+                if(associationInjector==null)
+                    discoveredBeforeInjector.add(service);
+                else if(!batchInjected.remove(service))
+                    associationInjector.discovered(assoc, service);
+            }
+        }
+
+        /*
+         * Have the injector publish invocation metrics to the service's
+         * WatchRegistry
+         */
+        void setInjectorWatchRegistry() {
+            if(associationInjector!=null && context!=null)
+                associationInjector.setWatchRegistry(context.getWatchRegistry(),
+                                                     config==null?EmptyConfiguration.INSTANCE:config);
+        }
+
+        /*
+         * Have the injector invoke colocated services in the container
+         * directly, unless the colocatedLocalInvocation configuration entry
+         * is false. Arguments and results are copied if the
+         * colocatedCopyOnCall configuration entry is true.
+         */
+        void setInjectorLocalServiceResolver() {
+            AssociationInjector injector = associationInjector;
+            if(injector==null || container==null)
+                return;
+            boolean localInvocation = true;
+            boolean copyOnCall = false;
+            try {
+                localInvocation =
+                    (Boolean)getConfiguration().getEntry(CONFIG_COMPONENT,
+                                                         "colocatedLocalInvocation",
+                                                         boolean.class,
+                                                         true);
+                copyOnCall =
+                    (Boolean)getConfiguration().getEntry(CONFIG_COMPONENT,
+                                                         "colocatedCopyOnCall",
+                                                         boolean.class,
+                                                         false);
+            } catch(ConfigurationException e) {
+                logger.log(Level.WARNING,
+                           "Getting colocated invocation properties from " +
+                           "association configuration",
+                           e);
+            }
+            injector.setLocalServiceResolver(localInvocation?
+                                             new LocalServiceResolver(container, copyOnCall):null);
         }
 
         /*
@@ -680,13 +934,11 @@ public class AssociationMgmt implements AssociationManagement {
 
                 } else {
                     requiredAssociations.add(assoc);
-                    if(associationInjector!=null)
-                        associationInjector.discovered(assoc, service);
+                    inject(assoc, service);
                     checkAdvertise();
                 }
             } else {
-                if(associationInjector!=null)
-                    associationInjector.discovered(assoc, service);
+                inject(assoc, service);
                 checkAdvertise();
             }
         }
@@ -754,6 +1006,10 @@ public class AssociationMgmt implements AssociationManagement {
                 if(logger.isLoggable(Level.FINE))
                     logger.fine("AssociationMgmt: Advertise ServiceBean : "
                                 + clientName);
+                if(numRequires>0 && logger.isLoggable(Level.INFO))
+                    logger.info("["+clientName+"] Required associations " +
+                                "satisfied, discovery times (ms): "+
+                                formatDiscoveryTimes(AssociationType.REQUIRES));
             } else {
                 advertisePending = true;
                 if(logger.isLoggable(Level.FINE))
@@ -769,6 +1025,21 @@ public class AssociationMgmt implements AssociationManagement {
         }
     }
 
+    /*
+     * Format the discovery times of associations of a type for logging
+     */
+    private String formatDiscoveryTimes(AssociationType type) {
+        StringBuilder sb = new StringBuilder();
+        for(Map.Entry<AssociationDescriptor, Long> entry : getDiscoveryTimes().entrySet()) {
+            if(entry.getKey().getAssociationType()!=type)
+                continue;
+            if(sb.length()>0)
+                sb.append(", ");
+            sb.append(entry.getKey().getName()).append("=").append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
     /**
      * Unadvertise the ServiceBean
      */
@@ -979,6 +1250,15 @@ public class AssociationMgmt implements AssociationManagement {
         /** A ProxyPreparer for discovered services */
         ProxyPreparer proxyPreparer;
         ServiceTemplate template;
+        /** Whether lCache is a view of the ServiceDirectory */
+        boolean useServiceDirectory;
+        /** When the AssociationHandler was started */
+        volatile long execTime;
+        /**
+         * Time (in milliseconds) taken to discover the first associated
+         * service, or -1 if not discovered
+         */
+        volatile long discoveryTime = -1;
 
         /**
          * Create an AssociationHandler
@@ -1003,8 +1283,10 @@ public class AssociationMgmt implements AssociationManagement {
          */
         @SuppressWarnings("unchecked")
         protected void exec() {
-            if(!aDesc.isLazyInject()) {
-                listener.associationInjector.injectEmpty(association);
+            execTime = System.currentTimeMillis();
+            AssociationInjector injector = listener.associationInjector;
+            if(!aDesc.isLazyInject() && injector!=null) {
+                injector.injectEmpty(association);
             }
             try {
                 boolean lookupService = false;
@@ -1036,18 +1318,34 @@ public class AssociationMgmt implements AssociationManagement {
                                       proxyPreparer.getClass().getName());
                     }
                     template = JiniClient.getServiceTemplate(aDesc, callerCL);
-                    LookupCachePool lcPool = LookupCachePool.getInstance();
                     String sharedName = aDesc.getOperationalStringName();
-                    lCache = lcPool.getLookupCache(sharedName,
-                                                   aDesc.getGroups(),
-                                                   aDesc.getLocators(),
-                                                   template);
+                    useServiceDirectory =
+                        (Boolean)getConfiguration().getEntry(CONFIG_COMPONENT,
+                                                             "useServiceDirectory",
+                                                             boolean.class,
+                                                             false);
+                    if(useServiceDirectory) {
+                        ServiceDirectory directory = ServiceDirectory.getInstance();
+                        lCache = directory.getLookupCache(aDesc.getGroups(),
+                                                          aDesc.getLocators(),
+                                                          aDesc.getInterfaceNames(),
+                                                          aDesc.matchOnName()?
+                                                          aDesc.getName():null,
+                                                          sharedName);
+                    } else {
+                        LookupCachePool lcPool = LookupCachePool.getInstance();
+                        lCache = lcPool.getLookupCache(sharedName,
+                                                       aDesc.getGroups(),
+                                                       aDesc.getLocators(),
+                                                       template);
+                    }
                     lCache.addListener(this);
                     if(logger.isLoggable(Level.FINER))
                         logger.finer("AssociationManagement for "+
                                      "["+clientName+"], "+
                                      "obtained LookupCache for "+
                                      "["+aDesc.getName()+"]");
+                    addRunningInstances();
                 } else {
                     lookupServiceHandler =
                         new LookupServiceHandler(aDesc, this, getConfiguration());
@@ -1065,6 +1363,61 @@ public class AssociationMgmt implements AssociationManagement {
             return template;
         }
 
+        /*
+         * Add instances of the associated service the OperationalStringManager
+         * knows are running, rather than waiting for them to be discovered.
+         * Only services in the client's OperationalString are known, and
+         * they are added only if they share a discovery group with the
+         * association
+         */
+        private void addRunningInstances() {
+            OperationalStringManager opMgr = opStringManager;
+            if(opMgr==null || association.getServiceCount()>0)
+                return;
+            String name = aDesc.getOperationalStringName();
+            if(name!=null && !name.equals(opStringName))
+                return;
+            ClassLoader currentCL = Thread.currentThread().getContextClassLoader();
+            try {
+                Thread.currentThread().setContextClassLoader(callerCL);
+                ServiceElement sElem =
+                    opMgr.getServiceElement(aDesc.getInterfaceNames(),
+                                            aDesc.matchOnName()?aDesc.getName():null);
+                if(sElem==null || !groupsMatch(sElem.getServiceBeanConfig().getGroups()))
+                    return;
+                ServiceBeanInstance[] instances = opMgr.getServiceBeanInstances(sElem);
+                for(ServiceBeanInstance instance : instances) {
+                    serviceAdded(new ServiceDiscoveryEvent(this, null, makeServiceItem(instance)));
+                }
+                if(logger.isLoggable(Level.FINE))
+                    logger.fine("["+clientName+"] Added ["+instances.length+"] " +
+                                "running instances of ["+aDesc.getName()+"] " +
+                                "known to the OperationalStringManager");
+            } catch(Exception e) {
+                if(logger.isLoggable(Level.FINE))
+                    logger.log(Level.FINE,
+                               "["+clientName+"] Getting running instances of "+
+                               "["+aDesc.getName()+"], will wait for discovery",
+                               e);
+            } finally {
+                Thread.currentThread().setContextClassLoader(currentCL);
+            }
+        }
+
+        private boolean groupsMatch(String[] serviceGroups) {
+            String[] groups = aDesc.getGroups();
+            if(groups==DiscoveryGroupManagement.ALL_GROUPS ||
+               serviceGroups==DiscoveryGroupManagement.ALL_GROUPS)
+                return true;
+            for(String group : groups) {
+                for(String serviceGroup : serviceGroups) {
+                    if(group.equals(serviceGroup))
+                        return true;
+                }
+            }
+            return false;
+        }
+
         /**
          * Stop the AssociationHandler, terminating the FaultDetectionListener
          * and ServiceDiscoveryManager
@@ -1073,7 +1426,10 @@ public class AssociationMgmt implements AssociationManagement {
             association.terminate();
             if(lCache!=null) {
                 try {
-                    lCache.removeListener(this);
+                    if(useServiceDirectory)
+                        lCache.terminate();
+                    else
+                        lCache.removeListener(this);
                 } catch (Throwable t) {
                     logger.log(Level.WARNING,
                                "Exception {0} removing Listener " +
@@ -1206,6 +1562,13 @@ public class AssociationMgmt implements AssociationManagement {
                 Association.State state = association.getState();
                 if(state == Association.State.PENDING || Association.State.BROKEN == state)
                     association.setState(Association.State.DISCOVERED);
+                if(discoveryTime<0 && execTime>0) {
+                    discoveryTime = System.currentTimeMillis()-execTime;
+                    if(logger.isLoggable(Level.FINE))
+                        logger.fine("["+clientName+"] Discovered "+
+                                    "["+association.getName()+"] in "+
+                                    discoveryTime+" ms");
+                }
                 increment();
                 setFaultDetectionHandler(item.service, item.serviceID);
                 notifyOnDiscovery(association, item.service);
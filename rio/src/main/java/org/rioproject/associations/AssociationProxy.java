@@ -116,6 +116,22 @@ public interface AssociationProxy<T> extends AssociationListener<T> {
      */
     long getInvocationCount();
 
+    /**
+     * Set the {@link InvocationMetrics} that invocations made through this
+     * proxy are recorded with
+     *
+     * @param metrics The InvocationMetrics, may be null
+     */
+    void setInvocationMetrics(InvocationMetrics<T> metrics);
+
+    /**
+     * Set the {@link LocalServiceResolver} used to invoke colocated services
+     * directly, rather than using their proxies
+     *
+     * @param localServiceResolver The LocalServiceResolver, may be null
+     */
+    void setLocalServiceResolver(LocalServiceResolver localServiceResolver);
+
     /**
      * Clean up any resources allocated
      */
@@ -90,6 +90,8 @@ public class AssociationProxyFactory {
                                          loader);
             aProxy.setProxyInterfaces(list.toArray(new Class[list.size()]));
             list.add(AssociationProxy.class);
+            if(aProxy instanceof AsyncAssociationProxy)
+                list.add(AsyncAssociationProxy.class);
 
             if(strategyClassName!=null) {
                 ServiceSelectionStrategy strategy =
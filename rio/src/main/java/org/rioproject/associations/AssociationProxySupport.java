@@ -17,14 +17,20 @@ package org.rioproject.associations;
 
 //import net.sf.cglib.proxy.*;
 import net.jini.core.discovery.LookupLocator;
+import net.jini.core.lookup.ServiceItem;
 import org.rioproject.resources.util.ThrowableUtil;
 
 import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.rmi.RemoteException;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -36,10 +42,22 @@ import java.util.logging.Logger;
  */
 public class AssociationProxySupport<T> implements AssociationProxy<T> {
     private ServiceSelectionStrategy<T> strategy;
-    private final List<String> proxyMethods = new ArrayList<String>();
+    /* The methods of the proxy interfaces. The set is replaced, not modified,
+     * when the proxy interfaces are set, so it can be read without locking */
+    private volatile Set<Method> proxyMethods = Collections.emptySet();
     Logger logger = Logger.getLogger(AssociationProxy.class.getName());
-    private AtomicLong invocationCount = new AtomicLong();
-    private boolean terminated;
+    private final AtomicLong invocationCount = new AtomicLong();
+    private volatile boolean terminated;
+    private volatile InvocationMetrics<T> invocationMetrics;
+    /* Notified when a service is discovered, guards discoveryCount */
+    private final Object discoveryLock = new Object();
+    private long discoveryCount;
+    private volatile CircuitBreaker<T> circuitBreaker = new CircuitBreaker<T>();
+    private volatile LocalServiceResolver localServiceResolver;
+    /* Services mapped to their local implementation, or to REMOTE if they
+     * must be invoked using the service proxy */
+    private final Map<T, Object> localTargets = new ConcurrentHashMap<T, Object>();
+    private static final Object REMOTE = new Object();
 
     /**
      * Create an InvocationHandler
@@ -101,7 +119,7 @@ public class AssociationProxySupport<T> implements AssociationProxy<T> {
         return null;
     }*/
 
-    public Association getAssociation() {
+    public Association<T> getAssociation() {
         return strategy.getAssociation();
     }
 
@@ -123,17 +141,63 @@ public class AssociationProxySupport<T> implements AssociationProxy<T> {
         this.strategy = strategy;
     }
 
+    /**
+     * Get the {@link CircuitBreaker} that decides which services are ejected
+     *
+     * @return The <tt>CircuitBreaker</tt>
+     */
+    public CircuitBreaker<T> getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Set the {@link CircuitBreaker} that decides which services are ejected
+     *
+     * @param circuitBreaker The <tt>CircuitBreaker</tt>. Must not be null.
+     */
+    public void setCircuitBreaker(CircuitBreaker<T> circuitBreaker) {
+        if(circuitBreaker==null)
+            throw new IllegalArgumentException("circuitBreaker is null");
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Get the {@link LocalServiceResolver} used to invoke colocated services
+     * directly
+     *
+     * @return The <tt>LocalServiceResolver</tt>, or null if services are
+     * always invoked using their proxies
+     */
+    public LocalServiceResolver getLocalServiceResolver() {
+        return localServiceResolver;
+    }
+
+    /**
+     * Set the {@link LocalServiceResolver} used to invoke colocated services
+     * directly
+     *
+     * @param localServiceResolver The <tt>LocalServiceResolver</tt>, may be
+     * null
+     */
+    public void setLocalServiceResolver(LocalServiceResolver localServiceResolver) {
+        this.localServiceResolver = localServiceResolver;
+        localTargets.clear();
+    }
+
     /**
      * Notification that an Association has been discovered
      */
     public void discovered(Association<T> association, T service) {
         strategy.discovered(association, service);
+        serviceAvailable();
     }
 
     /**
      * Notification that an Association has changed
      */
     public void changed(Association<T> association, T service) {
+        circuitBreaker.remove(service);
+        localTargets.remove(service);
         strategy.changed(association, service);
     }
 
@@ -141,22 +205,49 @@ public class AssociationProxySupport<T> implements AssociationProxy<T> {
      * Notification that an Association is broken
      */
     public void broken(Association<T> association, T service) {
+        circuitBreaker.remove(service);
+        localTargets.remove(service);
         strategy.broken(association, service);
     }
 
+    /*
+     * Wake up callers waiting for a service
+     */
+    private void serviceAvailable() {
+        synchronized(discoveryLock) {
+            discoveryCount++;
+            discoveryLock.notifyAll();
+        }
+    }
+
     /**
      * Clean up any resources allocated
      */
     public void terminate() {
         terminated = true;
         strategy.terminate();
+        InvocationMetrics<T> metrics = invocationMetrics;
+        if(metrics!=null)
+            metrics.terminate();
+        synchronized(discoveryLock) {
+            discoveryLock.notifyAll();
+        }
+    }
+
+    /**
+     * Check whether this proxy has been terminated
+     *
+     * @return <code>true</code> if this proxy has been terminated
+     */
+    protected boolean isTerminated() {
+        return terminated;
     }
 
     /*
     * Invokes the method on on the first available service in
     * the collection of associated services. If an invocation to the service
-    * fails as a result of remote communication failure, the next available
-    * service will be used.
+    * fails as a result of remote communication failure, the service is
+    * ejected and the next available service will be used.
     *
     * <p>Attempts to invoke an available service will continue until either the
     * invocation succeeds, or there are no more services available
@@ -183,81 +274,31 @@ public class AssociationProxySupport<T> implements AssociationProxy<T> {
                                             "all invoking threads are " +
                                             "terminated to resolve this issue");
         Object result = null;
-        long stopTime = 0;
+        Throwable failure = null;
+        Set<T> failed = null;
         while (!terminated) {
-            T service = getServiceSelectionStrategy().getService();
-            if(service==null) {
-                AssociationDescriptor aDesc = a.getAssociationDescriptor();
-                if(aDesc.getServiceDiscoveryTimeout()>0) {
-                    stopTime = (stopTime==0?
-                                System.currentTimeMillis()+
-                                aDesc.getServiceDiscoveryTimeUnits().toMillis(
-                                    aDesc.getServiceDiscoveryTimeout()): stopTime);
-                    if(System.currentTimeMillis()<stopTime) {
-                        if(logger.isLoggable(Level.FINEST)) {
-                            logger.finest("The association proxy for " +
-                                          formatAssociationService(a)+" is " +
-                                          "not available. A service discovery " +
-                                          "timeout of " +
-                                          "["+aDesc.getServiceDiscoveryTimeout()+"], " +
-                                          "has been configured, and the " +
-                                          "computed stop time is: "+
-                                          new Date(stopTime)+", " +
-                                          "sleep for one second and re-evaluate");
-                        }
-                        Thread.sleep(1000);
-                        continue;
-                    } else {
-                        String s = formatAssociationService(a);
-                        throw new RemoteException("No services available for " +
-                                                  "associated service " +
-                                                  s+", "+
-                                                  formatDiscoveryAttributes(a)+". "+
-                                                  "A timeout of "+
-                                                  aDesc.getServiceDiscoveryTimeout()+
-                                                  " "+
-                                                  aDesc.getServiceDiscoveryTimeUnits()+
-                                                  " expired. Check network " +
-                                                  "connections and ensure that " +
-                                                  "the "+s+" service is deployed");
-                    }
-                } else {
-                    String s = formatAssociationService(a);
-                    throw new RemoteException("No services available for " +
-                                              "service association " +
-                                              s+", "+
-                                              formatDiscoveryAttributes(a)+". " +
-                                              "Check network " +
-                                              "connections and ensure that "+
-                                              "the ["+s+"] service is deployed. " +
-                                              "You may also want to check the " +
-                                              "service discovery timeout property, " +
-                                              "it is set to " +
-                                              "["+aDesc.getServiceDiscoveryTimeout()+"]. " +
-                                              "Changing this value will allow " +
-                                              "Rio to wait the specified " +
-                                              "amount of time for a service to " +
-                                              "become available.");                
-                }
+            /* After a service has been ejected, only fail over to services
+             * that are available now, and have not already failed */
+            T service = failure==null?getAvailableService(a):selectService(a);
+            if(service==null || (failed!=null && failed.contains(service))) {
+                if(failure!=null)
+                    throw failure;
+                break;
             }
             try {
-                result = method.invoke(service, args);
-                invocationCount.incrementAndGet();
+                result = invokeService(service, method, args);
                 break;
             } catch (Throwable t) {
                 if(!ThrowableUtil.isRetryable(t)) {
-                    logger.log(Level.WARNING,
-                               "Interceptor.intercept " +
-                               "method [" + method.getName() + "] " +
-                               "remove service ["+service+"]",
-                               t);
-                    if (service != null) {
-                        if(a.removeService(service)!=null)
-                            logger.warning("Service ["+service+"] removed");
-                        else
-                            logger.warning("Unable to remove service ["+service+"]");
-                    }
-                    terminated = true;
+                    if(logger.isLoggable(Level.FINE))
+                        logger.log(Level.FINE,
+                                   "Invoking method [" + method.getName() + "] " +
+                                   "failed, try another service",
+                                   t);
+                    failure = t;
+                    if(failed==null)
+                        failed = new HashSet<T>();
+                    failed.add(service);
                 } else {
                     throw t;
                 }
@@ -266,6 +307,259 @@ public class AssociationProxySupport<T> implements AssociationProxy<T> {
         return result;
     }
 
+    /**
+     * Select a service from the {@link ServiceSelectionStrategy} that the
+     * {@link CircuitBreaker} allows to be invoked. Services whose circuits
+     * have been open long enough are first reinstated.
+     *
+     * @param a The Association referencing a collection of associated services
+     *
+     * @return A service to invoke, or <code>null</code> if no service is
+     * available
+     */
+    protected T selectService(Association<T> a) {
+        reinstateServices(a);
+        ServiceSelectionStrategy<T> s = getServiceSelectionStrategy();
+        /* Strategies that select from the association itself may return an
+         * ejected service, so try as many times as there are services */
+        int tries = Math.max(1, a.getServiceCount());
+        for(int i=0; i<tries; i++) {
+            T service = s.getService();
+            if(service==null)
+                return null;
+            if(circuitBreaker.allow(service))
+                return service;
+        }
+        return null;
+    }
+
+    /**
+     * Eject a service, so the {@link ServiceSelectionStrategy} no longer
+     * selects it. The service remains part of the association, and is
+     * reinstated once the {@link CircuitBreaker} allows it to be probed.
+     *
+     * @param a The Association referencing a collection of associated services
+     * @param service The service to eject
+     */
+    protected void ejectService(Association<T> a, T service) {
+        if(logger.isLoggable(Level.INFO))
+            logger.info("Ejecting service ["+service+"] from "+
+                        formatAssociationService(a)+", circuit is open");
+        getServiceSelectionStrategy().broken(a, service);
+        InvocationMetrics<T> metrics = invocationMetrics;
+        if(metrics!=null)
+            metrics.serviceEjected(service);
+    }
+
+    private void reinstateServices(Association<T> a) {
+        List<T> services = circuitBreaker.getServicesToReinstate();
+        if(services.isEmpty())
+            return;
+        for(T service : services) {
+            if(a.getServiceItem(service)==null) {
+                circuitBreaker.remove(service);
+                continue;
+            }
+            if(logger.isLoggable(Level.INFO))
+                logger.info("Reinstating service ["+service+"] to "+
+                            formatAssociationService(a)+", probe for recovery");
+            getServiceSelectionStrategy().discovered(a, service);
+        }
+        serviceAvailable();
+    }
+
+    /**
+     * Get a service from the {@link ServiceSelectionStrategy}. If no service
+     * is available and the association has a service discovery timeout, wait
+     * for a service to be discovered until the timeout expires.
+     *
+     * @param a The Association referencing a collection of associated services
+     *
+     * @return A service to invoke, or <code>null</code> if this proxy has
+     * been terminated
+     *
+     * @throws RemoteException if no service is available
+     * @throws InterruptedException if interrupted while waiting for a service
+     */
+    protected T getAvailableService(Association<T> a) throws RemoteException, InterruptedException {
+        long stopTime = 0;
+        while (!terminated) {
+            long seen;
+            synchronized(discoveryLock) {
+                seen = discoveryCount;
+            }
+            T service = selectService(a);
+            if(service!=null)
+                return service;
+            AssociationDescriptor aDesc = a.getAssociationDescriptor();
+            if(aDesc.getServiceDiscoveryTimeout()>0) {
+                stopTime = (stopTime==0?
+                            System.currentTimeMillis()+
+                            aDesc.getServiceDiscoveryTimeUnits().toMillis(
+                                aDesc.getServiceDiscoveryTimeout()): stopTime);
+                long now = System.currentTimeMillis();
+                if(now<stopTime) {
+                    if(logger.isLoggable(Level.FINEST)) {
+                        logger.finest("The association proxy for " +
+                                      formatAssociationService(a)+" is " +
+                                      "not available. A service discovery " +
+                                      "timeout of " +
+                                      "["+aDesc.getServiceDiscoveryTimeout()+"], " +
+                                      "has been configured, and the " +
+                                      "computed stop time is: "+
+                                      new Date(stopTime)+", " +
+                                      "wait for a service to be discovered");
+                    }
+                    /* Wake up when a service is discovered, and at least once
+                     * a second, since a strategy may decline to return a
+                     * service that is available */
+                    synchronized(discoveryLock) {
+                        if(!terminated && discoveryCount==seen)
+                            discoveryLock.wait(Math.min(stopTime-now, 1000));
+                    }
+                } else {
+                    String s = formatAssociationService(a);
+                    throw new RemoteException("No services available for " +
+                                              "associated service " +
+                                              s+", "+
+                                              formatDiscoveryAttributes(a)+". "+
+                                              "A timeout of "+
+                                              aDesc.getServiceDiscoveryTimeout()+
+                                              " "+
+                                              aDesc.getServiceDiscoveryTimeUnits()+
+                                              " expired. Check network " +
+                                              "connections and ensure that " +
+                                              "the "+s+" service is deployed");
+                }
+            } else if(circuitBreaker.getOpenCount()>0) {
+                throw new RemoteException("No services available for " +
+                                          "service association " +
+                                          formatAssociationService(a)+", "+
+                                          circuitBreaker.getOpenCount()+" "+
+                                          "services have been ejected after " +
+                                          "failed invocations, and will be " +
+                                          "probed for recovery");
+            } else {
+                String s = formatAssociationService(a);
+                throw new RemoteException("No services available for " +
+                                          "service association " +
+                                          s+", "+
+                                          formatDiscoveryAttributes(a)+". " +
+                                          "Check network " +
+                                          "connections and ensure that "+
+                                          "the ["+s+"] service is deployed. " +
+                                          "You may also want to check the " +
+                                          "service discovery timeout property, " +
+                                          "it is set to " +
+                                          "["+aDesc.getServiceDiscoveryTimeout()+"]. " +
+                                          "Changing this value will allow " +
+                                          "Rio to wait the specified " +
+                                          "amount of time for a service to " +
+                                          "become available.");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Invoke a method on a service, notifying the {@link InvocationObserver}
+     * if there is one. The outcome is recorded by the {@link CircuitBreaker},
+     * and the service is ejected if its circuit opens. If a
+     * {@link LocalServiceResolver} is set and the service is colocated, its
+     * implementation is invoked directly.
+     *
+     * @param service The service to invoke
+     * @param method The method to invoke
+     * @param args Method arguments
+     *
+     * @return The result of the method invocation
+     *
+     * @throws Throwable the exception thrown by {@link Method#invoke}
+     */
+    protected Object invokeService(T service, Method method, Object[] args) throws Throwable {
+        InvocationObserver<T> observer = getInvocationObserver();
+        InvocationMetrics<T> metrics = invocationMetrics;
+        if(observer!=null)
+            observer.invocationStarted(service, method);
+        long t0 = System.nanoTime();
+        try {
+            Object local = getLocalTarget(service);
+            Object result = local==null?method.invoke(service, args):invokeLocal(local, method, args);
+            invocationCount.incrementAndGet();
+            long elapsed = System.nanoTime()-t0;
+            if(observer!=null)
+                observer.invocationCompleted(service, method, elapsed, null);
+            if(metrics!=null)
+                metrics.invocationCompleted(service, method, elapsed, null);
+            if(circuitBreaker.record(service, elapsed, null))
+                ejectService(getAssociation(), service);
+            return result;
+        } catch (Throwable t) {
+            long elapsed = System.nanoTime()-t0;
+            Throwable thrown = t instanceof InvocationTargetException?
+                               ((InvocationTargetException)t).getTargetException():t;
+            if(observer!=null)
+                observer.invocationCompleted(service, method, elapsed, thrown);
+            if(metrics!=null)
+                metrics.invocationCompleted(service, method, elapsed, thrown);
+            boolean open = ThrowableUtil.isRetryable(t)?
+                           circuitBreaker.record(service, elapsed, thrown):
+                           circuitBreaker.trip(service);
+            if(open)
+                ejectService(getAssociation(), service);
+            throw t;
+        }
+    }
+
+    /*
+     * Get the local implementation of a service, resolving it on first use
+     */
+    private Object getLocalTarget(T service) {
+        LocalServiceResolver resolver = localServiceResolver;
+        if(resolver==null)
+            return null;
+        Object target = localTargets.get(service);
+        if(target==null) {
+            Association<T> a = getAssociation();
+            ServiceItem item = a==null?null:a.getServiceItem(service);
+            if(item==null)
+                return null;
+            Set<Class> interfaces = new HashSet<Class>();
+            for(Method m : proxyMethods)
+                interfaces.add(m.getDeclaringClass());
+            target = resolver.resolve(item.serviceID, interfaces);
+            if(target!=null && logger.isLoggable(Level.FINE))
+                logger.fine("Invoking colocated service ["+target.getClass().getName()+"] " +
+                            "for "+formatAssociationService(a)+" directly");
+            target = target==null?REMOTE:target;
+            localTargets.put(service, target);
+        }
+        return target==REMOTE?null:target;
+    }
+
+    /*
+     * Invoke a colocated service's implementation, copying arguments and
+     * the result if the LocalServiceResolver requires it
+     */
+    private Object invokeLocal(Object local, Method method, Object[] args)
+        throws IllegalAccessException, InvocationTargetException {
+        LocalServiceResolver resolver = localServiceResolver;
+        if(resolver==null || !resolver.isCopyOnCall())
+            return method.invoke(local, args);
+        Object result = method.invoke(local, resolver.copyArguments(args, local.getClass().getClassLoader()));
+        return resolver.copy(result, method.getDeclaringClass().getClassLoader());
+    }
+
+    /*
+     * Get the InvocationObserver to notify of invocations, the
+     * ServiceSelectionStrategy if it is an InvocationObserver
+     */
+    @SuppressWarnings("unchecked")
+    private InvocationObserver<T> getInvocationObserver() {
+        ServiceSelectionStrategy<T> s = getServiceSelectionStrategy();
+        return s instanceof InvocationObserver?(InvocationObserver<T>)s:null;
+    }
+
     private String formatAssociationService(Association<T> a) {
         AssociationDescriptor aDesc = a.getAssociationDescriptor();
         StringBuffer sb = new StringBuffer();
@@ -436,7 +730,7 @@ public class AssociationProxySupport<T> implements AssociationProxy<T> {
      * @return true if the method is local to the proxy
      */
     protected boolean isProxyMethod(Method method) {
-        return proxyMethods.contains(method.toString());
+        return proxyMethods.contains(method);
     }
 
     /**
@@ -451,15 +745,18 @@ public class AssociationProxySupport<T> implements AssociationProxy<T> {
     }
 
     public void setProxyInterfaces(Class[] classes) {
+        Set<Method> methods = new HashSet<Method>(proxyMethods);
         for (Class clazz : classes) {
-            Method[] methods = clazz.getMethods();
-            for (Method m : methods) {
-                proxyMethods.add(m.toString());
-            }
+            Collections.addAll(methods, clazz.getMethods());
         }
+        proxyMethods = methods;
     }
 
     public long getInvocationCount() {
         return invocationCount.get();
     }
+
+    public void setInvocationMetrics(InvocationMetrics<T> metrics) {
+        this.invocationMetrics = metrics;
+    }
 }
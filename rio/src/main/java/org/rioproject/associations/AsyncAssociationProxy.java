@@ -0,0 +1,95 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.associations;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Future;
+
+/**
+ * An {@link AssociationProxy} that invokes associated services
+ * asynchronously. Generated proxies created with an AsyncAssociationProxy
+ * implement this interface, and can be cast to it to make asynchronous
+ * invocations.
+ *
+ * <p>A hedged invocation is made to one service. If it has not completed
+ * within the hedge delay, the same invocation is made to a second service,
+ * and the result of whichever invocation completes first is used. Hedged
+ * invocations must only be used for methods that are safe to invoke more than
+ * once.
+ *
+ * @see AsyncAssociationProxySupport
+ */
+public interface AsyncAssociationProxy<T> extends AssociationProxy<T> {
+    /**
+     * Invoke a method on an associated service asynchronously
+     *
+     * @param method A method declared by the associated service interfaces
+     * @param args Method arguments
+     *
+     * @return A Future for the result of the invocation. If the invocation
+     * fails, {@link java.util.concurrent.Future#get()} throws an
+     * {@link java.util.concurrent.ExecutionException} whose cause is the
+     * exception thrown by the service.
+     *
+     * @throws IllegalArgumentException if the method is not declared by the
+     * associated service interfaces
+     * @throws java.util.concurrent.RejectedExecutionException if too many
+     * asynchronous invocations are outstanding
+     */
+    Future<Object> invokeAsync(Method method, Object[] args);
+
+    /**
+     * Invoke a method on an associated service asynchronously, hedging the
+     * invocation to a second service if it does not complete within the
+     * hedge delay.
+     *
+     * @param method A method declared by the associated service interfaces,
+     * that is safe to invoke more than once
+     * @param args Method arguments
+     *
+     * @return A Future for the result of the first invocation to complete
+     *
+     * @throws IllegalArgumentException if the method is not declared by the
+     * associated service interfaces
+     * @throws java.util.concurrent.RejectedExecutionException if too many
+     * asynchronous invocations are outstanding
+     */
+    Future<Object> invokeHedged(Method method, Object[] args);
+
+    /**
+     * Set the percentile of observed invocation latency used as the hedge
+     * delay
+     *
+     * @param percentile The percentile, greater than 0 and less than 100
+     */
+    void setHedgePercentile(double percentile);
+
+    /**
+     * Set the minimum hedge delay
+     *
+     * @param delay The minimum time (in milliseconds) to wait before hedging
+     * an invocation
+     */
+    void setMinimumHedgeDelay(long delay);
+
+    /**
+     * Get the number of hedged invocations that were made
+     *
+     * @return The number of times a hedged invocation was made to a second
+     * service
+     */
+    long getHedgeCount();
+}
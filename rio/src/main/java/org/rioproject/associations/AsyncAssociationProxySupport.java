@@ -0,0 +1,417 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.associations;
+
+import org.rioproject.config.Constants;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Provides support for an {@link AsyncAssociationProxy}. To use, set the
+ * proxy class of the {@link AssociationDescriptor} to this class.
+ *
+ * <p>Asynchronous invocations are run by a bounded pool of threads shared by
+ * all asynchronous association proxies in the JVM. The pool is configured
+ * using the following system properties:
+ * <ul>
+ * <li><tt>org.rioproject.association.asyncThreads</tt>: The maximum number
+ * of asynchronous invocations that run concurrently, defaults to 64
+ * <li><tt>org.rioproject.association.asyncQueueSize</tt>: The maximum number
+ * of asynchronous invocations that may wait for a thread, defaults to 1024.
+ * Invocations made when the queue is full are rejected.
+ * </ul>
+ *
+ * <p>The hedge delay is the configured percentile (by default the 95th) of
+ * the latency of recent successful invocations made through the proxy, and
+ * is never less than the minimum hedge delay. Until enough invocations have
+ * been observed, hedged invocations are not hedged.
+ */
+public class AsyncAssociationProxySupport<T> extends AssociationProxySupport<T>
+    implements AsyncAssociationProxy<T> {
+    public static final int DEFAULT_ASYNC_THREADS = 64;
+    public static final int DEFAULT_ASYNC_QUEUE_SIZE = 1024;
+    public static final double DEFAULT_HEDGE_PERCENTILE = 95;
+    public static final long DEFAULT_MINIMUM_HEDGE_DELAY = 5;
+    /* The number of recent latency samples the hedge delay is computed from */
+    static final int SAMPLE_SIZE = 128;
+    /* The number of samples needed before invocations are hedged */
+    static final int MINIMUM_SAMPLES = 16;
+    private static ThreadPoolExecutor asyncExecutor;
+    private static ScheduledExecutorService hedgeScheduler;
+    private volatile Association<T> association;
+    private volatile double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+    private volatile long minimumHedgeDelay = DEFAULT_MINIMUM_HEDGE_DELAY;
+    /* Latency of recent successful invocations, in nanoseconds, guarded by samples */
+    private final long[] samples = new long[SAMPLE_SIZE];
+    private int sampleCount;
+    /* The hedge delay in milliseconds, -1 if not yet known */
+    private volatile long hedgeDelay = -1;
+    private final AtomicLong hedgeCount = new AtomicLong();
+
+    @Override
+    public InvocationHandler getInvocationHandler(Association<T> association) {
+        this.association = association;
+        return super.getInvocationHandler(association);
+    }
+
+    public Future<Object> invokeAsync(Method method, Object[] args) {
+        return submit(method, args, false);
+    }
+
+    public Future<Object> invokeHedged(Method method, Object[] args) {
+        return submit(method, args, true);
+    }
+
+    public void setHedgePercentile(double percentile) {
+        if(percentile<=0 || percentile>=100)
+            throw new IllegalArgumentException("percentile must be greater than 0 and less than 100");
+        hedgePercentile = percentile;
+        synchronized(samples) {
+            computeHedgeDelay();
+        }
+    }
+
+    public void setMinimumHedgeDelay(long delay) {
+        if(delay<0)
+            throw new IllegalArgumentException("delay must not be negative");
+        minimumHedgeDelay = delay;
+        synchronized(samples) {
+            computeHedgeDelay();
+        }
+    }
+
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    /**
+     * Get the current hedge delay
+     *
+     * @return The time (in milliseconds) a hedged invocation waits before
+     * being made to a second service, or -1 if not enough invocations have
+     * been observed to compute the delay
+     */
+    public long getHedgeDelay() {
+        return hedgeDelay;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Association<T> getProxiedAssociation() {
+        Association<T> a = association;
+        return a==null?(Association<T>)getAssociation():a;
+    }
+
+    private Future<Object> submit(Method method, Object[] args, boolean hedged) {
+        if(method==null || !isProxyMethod(method))
+            throw new IllegalArgumentException("method ["+method+"] is not declared " +
+                                               "by the associated service interfaces");
+        if(isTerminated())
+            throw new IllegalStateException("The association proxy has been terminated");
+        Invocation invocation = new Invocation(method, args);
+        invocation.start(hedged?hedgeDelay:-1);
+        return invocation;
+    }
+
+    private void addSample(long latency) {
+        synchronized(samples) {
+            samples[sampleCount++ % SAMPLE_SIZE] = latency;
+            /* Recompute the delay periodically rather than on every sample */
+            if(sampleCount==MINIMUM_SAMPLES || sampleCount % MINIMUM_SAMPLES == 0)
+                computeHedgeDelay();
+            if(sampleCount==2*SAMPLE_SIZE)
+                sampleCount = SAMPLE_SIZE;
+        }
+    }
+
+    /* Must be called holding the samples lock */
+    private void computeHedgeDelay() {
+        int count = Math.min(sampleCount, SAMPLE_SIZE);
+        if(count<MINIMUM_SAMPLES)
+            return;
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = Math.min(count-1, (int)Math.ceil(count*hedgePercentile/100)-1);
+        long delay = TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(0, index)]);
+        hedgeDelay = Math.max(minimumHedgeDelay, delay);
+        if(logger.isLoggable(Level.FINEST))
+            logger.finest("Hedge delay is "+hedgeDelay+" ms");
+    }
+
+    /**
+     * Get the executor shared by all asynchronous association proxies in the
+     * JVM, creating it if needed
+     *
+     * @return The shared executor
+     */
+    static synchronized ThreadPoolExecutor getAsyncExecutor() {
+        if(asyncExecutor==null) {
+            int threads = Math.max(1, Integer.getInteger(Constants.ASSOCIATION_ASYNC_THREADS,
+                                                         DEFAULT_ASYNC_THREADS));
+            int queueSize = Math.max(1, Integer.getInteger(Constants.ASSOCIATION_ASYNC_QUEUE_SIZE,
+                                                           DEFAULT_ASYNC_QUEUE_SIZE));
+            asyncExecutor = new ThreadPoolExecutor(threads,
+                                                   threads,
+                                                   60,
+                                                   TimeUnit.SECONDS,
+                                                   new ArrayBlockingQueue<Runnable>(queueSize),
+                                                   new DaemonThreadFactory("AssociationProxy:Async"));
+            asyncExecutor.allowCoreThreadTimeOut(true);
+            hedgeScheduler =
+                Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("AssociationProxy:Hedge"));
+        }
+        return asyncExecutor;
+    }
+
+    static synchronized ScheduledExecutorService getHedgeScheduler() {
+        getAsyncExecutor();
+        return hedgeScheduler;
+    }
+
+    static class DaemonThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread t = new Thread(runnable, name+"-"+count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * An asynchronous, possibly hedged, invocation. The first attempt to
+     * complete, either by returning a result or by the service throwing an
+     * exception that is not a RemoteException, completes the invocation.
+     */
+    class Invocation implements Future<Object> {
+        private final Method method;
+        private final Object[] args;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private final AtomicBoolean hedgeStarted = new AtomicBoolean();
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final List<Future<?>> attempts = new CopyOnWriteArrayList<Future<?>>();
+        private volatile ScheduledFuture<?> hedgeTimer;
+        /* The service the first attempt invoked, a hedge uses another one */
+        private volatile T primary;
+        private volatile Object result;
+        private volatile Throwable failure;
+        private volatile Throwable firstFailure;
+        private volatile boolean cancelled;
+
+        Invocation(Method method, Object[] args) {
+            this.method = method;
+            this.args = args;
+        }
+
+        void start(long delay) {
+            if(delay<0) {
+                /* Not hedged, prevent a failed attempt from starting a hedge */
+                hedgeStarted.set(true);
+            } else {
+                /* Select the service the first attempt invokes before the
+                 * hedge is scheduled, so the hedge knows which one to avoid.
+                 * If no service is available now, the first attempt waits
+                 * for one */
+                primary = selectService(getProxiedAssociation());
+            }
+            outstanding.incrementAndGet();
+            attempts.add(getAsyncExecutor().submit(new Attempt(false)));
+            if(delay>=0) {
+                hedgeTimer = getHedgeScheduler().schedule(new Runnable() {
+                    public void run() {
+                        hedge();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        void hedge() {
+            if(isDone() || !hedgeStarted.compareAndSet(false, true))
+                return;
+            outstanding.incrementAndGet();
+            try {
+                attempts.add(getAsyncExecutor().submit(new Attempt(true)));
+                hedgeCount.incrementAndGet();
+            } catch(RejectedExecutionException e) {
+                if(logger.isLoggable(Level.FINE))
+                    logger.fine("Hedged invocation of ["+method.getName()+"] rejected");
+                attemptCompleted();
+            }
+        }
+
+        void succeeded(Object value, long latency) {
+            addSample(latency);
+            if(completed.compareAndSet(false, true)) {
+                result = value;
+                finish();
+            }
+        }
+
+        void failed(Throwable t) {
+            if(completed.compareAndSet(false, true)) {
+                failure = t;
+                finish();
+            }
+        }
+
+        /*
+         * An attempt failed because of a RemoteException, or found no service
+         * to invoke. If the invocation is hedged, make the hedged invocation
+         * now rather than waiting for the hedge delay.
+         */
+        void attemptFailed(Throwable t) {
+            if(firstFailure==null)
+                firstFailure = t;
+            hedge();
+            attemptCompleted();
+        }
+
+        void attemptCompleted() {
+            if(outstanding.decrementAndGet()==0)
+                failed(firstFailure==null?
+                       new RemoteException("No services available for hedged invocation"):
+                       firstFailure);
+        }
+
+        private void finish() {
+            done.countDown();
+            ScheduledFuture<?> timer = hedgeTimer;
+            if(timer!=null)
+                timer.cancel(false);
+            /* Attempts that have not yet started are not needed */
+            for(Future<?> attempt : attempts)
+                attempt.cancel(false);
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if(!completed.compareAndSet(false, true))
+                return false;
+            cancelled = true;
+            finish();
+            if(mayInterruptIfRunning) {
+                for(Future<?> attempt : attempts)
+                    attempt.cancel(true);
+            }
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isDone() {
+            return done.getCount()==0;
+        }
+
+        public Object get() throws InterruptedException, ExecutionException {
+            done.await();
+            return getResult();
+        }
+
+        public Object get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+            if(!done.await(timeout, unit))
+                throw new TimeoutException();
+            return getResult();
+        }
+
+        private Object getResult() throws ExecutionException {
+            if(cancelled)
+                throw new CancellationException();
+            if(failure!=null)
+                throw new ExecutionException(failure);
+            return result;
+        }
+
+        class Attempt implements Runnable {
+            private final boolean hedge;
+
+            Attempt(boolean hedge) {
+                this.hedge = hedge;
+            }
+
+            public void run() {
+                if(isDone()) {
+                    attemptCompleted();
+                    return;
+                }
+                Association<T> a = getProxiedAssociation();
+                T service = null;
+                try {
+                    if(hedge)
+                        service = selectAlternate(a);
+                    else
+                        service = primary==null?getAvailableService(a):primary;
+                    if(service==null) {
+                        attemptFailed(null);
+                        return;
+                    }
+                    if(!hedge)
+                        primary = service;
+                    long t0 = System.nanoTime();
+                    Object value = invokeService(service, method, args);
+                    succeeded(value, System.nanoTime()-t0);
+                    attemptCompleted();
+                } catch(Throwable t) {
+                    /* A service that could not be reached has been
+                     * recorded by the circuit breaker in invokeService */
+                    Throwable thrown = t instanceof InvocationTargetException?
+                                       ((InvocationTargetException)t).getTargetException():t;
+                    if(thrown instanceof RemoteException) {
+                        attemptFailed(thrown);
+                    } else {
+                        failed(thrown);
+                        attemptCompleted();
+                    }
+                }
+            }
+
+            /*
+             * Select a service other than the one the first attempt invoked.
+             * If the first attempt has not yet selected its service there is
+             * no alternate, so a hedge does not invoke the same service
+             */
+            private T selectAlternate(Association<T> a) {
+                if(primary==null)
+                    return null;
+                int tries = Math.max(1, a.getServiceCount());
+                for(int i=0; i<tries; i++) {
+                    T service = getServiceSelectionStrategy().getService();
+                    if(service==null)
+                        return null;
+                    if(!service.equals(primary) && getCircuitBreaker().allow(service))
+                        return service;
+                }
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.associations;
+
+import org.rioproject.config.Constants;
+import org.rioproject.resources.util.ThrowableUtil;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the health of each service an {@link AssociationProxy} invokes, and
+ * decides when a service should be ejected from, and reinstated to, the
+ * services the proxy selects from.
+ *
+ * <p>Each service has a circuit that is in one of three states:
+ * <ul>
+ * <li>{@link State#CLOSED}: Invocations are allowed. The outcomes of the most
+ * recent invocations are kept in a sliding window, and if the proportion of
+ * failed or slow invocations in the window reaches the failure rate, the
+ * circuit opens.
+ * <li>{@link State#OPEN}: The service is ejected, and is not invoked until
+ * the open time has passed.
+ * <li>{@link State#HALF_OPEN}: The service is reinstated, and a single
+ * invocation at a time probes whether it has recovered. If the probe
+ * succeeds the circuit closes, otherwise it opens again, for twice as long.
+ * </ul>
+ *
+ * <p>An invocation fails if it throws an <tt>IOException</tt> (including a
+ * <tt>RemoteException</tt>), or if a slow call threshold is set and the
+ * invocation takes longer. Exceptions thrown by the service itself are not
+ * failures. The defaults may be changed using the following system
+ * properties:
+ * <ul>
+ * <li><tt>org.rioproject.association.breaker.window</tt>: The number of
+ * invocations in the sliding window, defaults to 20. The failure rate is
+ * only checked once the window is half full.
+ * <li><tt>org.rioproject.association.breaker.failureRate</tt>: The
+ * percentage of invocations in the window that must fail for the circuit to
+ * open, defaults to 50
+ * <li><tt>org.rioproject.association.breaker.slowCall</tt>: The time (in
+ * milliseconds) after which an invocation is considered to have failed,
+ * defaults to 0, where no invocation is too slow
+ * <li><tt>org.rioproject.association.breaker.openTime</tt>: The time (in
+ * milliseconds) a circuit stays open, defaults to 5 seconds
+ * </ul>
+ */
+public class CircuitBreaker<T> {
+    /**
+     * The state of a service's circuit
+     */
+    public enum State {CLOSED, OPEN, HALF_OPEN}
+    public static final int DEFAULT_WINDOW = 20;
+    public static final int DEFAULT_FAILURE_RATE = 50;
+    public static final long DEFAULT_OPEN_TIME = 5*1000;
+    public static final long MAXIMUM_OPEN_TIME = 60*1000;
+    private final int window;
+    private final int failureRate;
+    private final long slowCallNanos;
+    private final long openTime;
+    private final Map<T, Circuit> circuits = new ConcurrentHashMap<T, Circuit>();
+    /* The number of circuits that are open, so checking for circuits to
+     * reinstate is cheap when there are none */
+    private final AtomicInteger openCount = new AtomicInteger();
+
+    /**
+     * Create a CircuitBreaker using the values set by system properties
+     */
+    public CircuitBreaker() {
+        this(Integer.getInteger(Constants.ASSOCIATION_BREAKER_WINDOW, DEFAULT_WINDOW),
+             Integer.getInteger(Constants.ASSOCIATION_BREAKER_FAILURE_RATE, DEFAULT_FAILURE_RATE),
+             Long.getLong(Constants.ASSOCIATION_BREAKER_SLOW_CALL, 0),
+             Long.getLong(Constants.ASSOCIATION_BREAKER_OPEN_TIME, DEFAULT_OPEN_TIME));
+    }
+
+    /**
+     * Create a CircuitBreaker
+     *
+     * @param window The number of invocations in the sliding window
+     * @param failureRate The percentage of failed invocations in the window
+     * that opens a circuit
+     * @param slowCall The time (in milliseconds) after which an invocation
+     * fails, or 0 if invocations do not fail for being slow
+     * @param openTime The time (in milliseconds) a circuit stays open
+     */
+    public CircuitBreaker(int window, int failureRate, long slowCall, long openTime) {
+        if(window<1)
+            throw new IllegalArgumentException("window must be greater than 0");
+        if(failureRate<1 || failureRate>100)
+            throw new IllegalArgumentException("failureRate must be between 1 and 100");
+        this.window = window;
+        this.failureRate = failureRate;
+        this.slowCallNanos = slowCall>0?slowCall*1000*1000:0;
+        this.openTime = Math.max(1, openTime);
+    }
+
+    /**
+     * Check whether a service may be invoked. A service whose circuit is
+     * half-open may be invoked by one caller at a time.
+     *
+     * @param service The service
+     *
+     * @return <code>true</code> if the service may be invoked
+     */
+    public boolean allow(T service) {
+        Circuit circuit = circuits.get(service);
+        return circuit==null || circuit.allow();
+    }
+
+    /**
+     * Record the outcome of an invocation
+     *
+     * @param service The service that was invoked
+     * @param nanos The time the invocation took
+     * @param thrown The exception thrown by the invocation, or null
+     *
+     * @return <code>true</code> if the service's circuit opened, and the
+     * service should be ejected
+     */
+    public boolean record(T service, long nanos, Throwable thrown) {
+        boolean failed = (thrown!=null && isFailure(thrown)) ||
+                         (slowCallNanos>0 && nanos>slowCallNanos);
+        Circuit circuit = circuits.get(service);
+        if(circuit==null) {
+            if(!failed)
+                return false;
+            circuit = getCircuit(service);
+        }
+        return circuit.record(failed);
+    }
+
+    /**
+     * Open a service's circuit, regardless of its recent invocations
+     *
+     * @param service The service
+     *
+     * @return <code>true</code> if the service's circuit opened, and the
+     * service should be ejected, <code>false</code> if it was already open
+     */
+    public boolean trip(T service) {
+        return getCircuit(service).trip();
+    }
+
+    /**
+     * Move circuits that have been open for their open time to half-open
+     *
+     * @return The services whose circuits are now half-open, and that
+     * should be reinstated
+     */
+    public List<T> getServicesToReinstate() {
+        List<T> services = new ArrayList<T>();
+        if(openCount.get()==0)
+            return services;
+        long now = currentTimeMillis();
+        for(Map.Entry<T, Circuit> entry : circuits.entrySet()) {
+            if(entry.getValue().halfOpen(now))
+                services.add(entry.getKey());
+        }
+        return services;
+    }
+
+    /**
+     * Stop tracking a service
+     *
+     * @param service The service
+     */
+    public void remove(T service) {
+        Circuit circuit = circuits.remove(service);
+        if(circuit!=null)
+            circuit.removed();
+    }
+
+    /**
+     * Get the state of a service's circuit
+     *
+     * @param service The service
+     *
+     * @return The state of the service's circuit
+     */
+    public State getState(T service) {
+        Circuit circuit = circuits.get(service);
+        return circuit==null?State.CLOSED:circuit.getState();
+    }
+
+    /**
+     * Get the number of services whose circuits are open
+     *
+     * @return The number of ejected services
+     */
+    public int getOpenCount() {
+        return openCount.get();
+    }
+
+    /**
+     * Get the current time, used to decide when open circuits are half-open
+     *
+     * @return The current time in milliseconds
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /*
+     * Whether an exception thrown by an invocation indicates the service
+     * could not be reached, rather than being thrown by the service
+     */
+    static boolean isFailure(Throwable thrown) {
+        Throwable t = thrown instanceof InvocationTargetException?
+                      ((InvocationTargetException)thrown).getTargetException():thrown;
+        return t instanceof IOException || ThrowableUtil.getRootCause(t) instanceof IOException;
+    }
+
+    private Circuit getCircuit(T service) {
+        Circuit circuit = circuits.get(service);
+        if(circuit==null) {
+            synchronized(circuits) {
+                circuit = circuits.get(service);
+                if(circuit==null) {
+                    circuit = new Circuit();
+                    circuits.put(service, circuit);
+                }
+            }
+        }
+        return circuit;
+    }
+
+    /**
+     * The circuit for a single service
+     */
+    class Circuit {
+        private final boolean[] outcomes = new boolean[window];
+        private int next;
+        private int count;
+        private int failures;
+        private volatile State state = State.CLOSED;
+        private long openUntil;
+        private long currentOpenTime = openTime;
+        private boolean probing;
+        private boolean removed;
+
+        boolean allow() {
+            if(state==State.CLOSED)
+                return true;
+            synchronized(this) {
+                if(state==State.HALF_OPEN && !probing) {
+                    probing = true;
+                    return true;
+                }
+                return state==State.CLOSED;
+            }
+        }
+
+        synchronized boolean record(boolean failed) {
+            switch(state) {
+                case HALF_OPEN:
+                    probing = false;
+                    if(failed) {
+                        currentOpenTime = Math.min(currentOpenTime*2, Math.max(openTime, MAXIMUM_OPEN_TIME));
+                        return open();
+                    }
+                    state = State.CLOSED;
+                    currentOpenTime = openTime;
+                    reset();
+                    return false;
+                case OPEN:
+                    return false;
+                default:
+                    if(count==window) {
+                        if(outcomes[next])
+                            failures--;
+                    } else {
+                        count++;
+                    }
+                    outcomes[next] = failed;
+                    if(failed)
+                        failures++;
+                    next = (next+1)%window;
+                    if(failed && count>=Math.max(1, window/2) && failures*100>=failureRate*count)
+                        return open();
+                    return false;
+            }
+        }
+
+        synchronized boolean trip() {
+            if(state==State.OPEN)
+                return false;
+            probing = false;
+            return open();
+        }
+
+        synchronized boolean halfOpen(long now) {
+            if(state!=State.OPEN || now<openUntil)
+                return false;
+            state = State.HALF_OPEN;
+            openCount.decrementAndGet();
+            return true;
+        }
+
+        synchronized void removed() {
+            if(state==State.OPEN)
+                openCount.decrementAndGet();
+            state = State.CLOSED;
+            removed = true;
+        }
+
+        State getState() {
+            return state;
+        }
+
+        private boolean open() {
+            if(removed)
+                return false;
+            state = State.OPEN;
+            openUntil = currentTimeMillis()+currentOpenTime;
+            openCount.incrementAndGet();
+            reset();
+            return true;
+        }
+
+        private void reset() {
+            next = 0;
+            count = 0;
+            failures = 0;
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.associations;
+
+import net.jini.config.Configuration;
+import net.jini.core.lookup.ServiceItem;
+import org.rioproject.config.Constants;
+import org.rioproject.watch.Calculable;
+import org.rioproject.watch.CounterWatch;
+import org.rioproject.watch.StopWatch;
+import org.rioproject.watch.Watch;
+import org.rioproject.watch.WatchRegistry;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records invocations made through an {@link AssociationProxy}, and
+ * periodically publishes them as watches in a {@link WatchRegistry}.
+ *
+ * <p>Invocations are recorded by each invoking thread into its own recorder,
+ * so recording an invocation does not contend with other invoking threads.
+ * The recorders are merged each publication period, and the following
+ * watches are created as methods and services are first invoked (where
+ * <tt>name</tt> is the name of the association):
+ * <ul>
+ * <li><tt>name.method</tt>: A {@link StopWatch} with the mean latency (in
+ * milliseconds) of invocations of the method during the period
+ * <li><tt>name.method.p99</tt>: A {@link StopWatch} with the 99th percentile
+ * latency of invocations of the method during the period
+ * <li><tt>name.method.invocations</tt> and <tt>name.method.failures</tt>:
+ * {@link CounterWatch}es counting invocations of the method, and those that
+ * failed
+ * <li><tt>name@serviceID</tt>, <tt>name@serviceID.invocations</tt> and
+ * <tt>name@serviceID.failures</tt>: The same, for invocations of each
+ * associated service. These are deregistered when the service is removed
+ * from the association, or ejected by the {@link CircuitBreaker}
+ * <li><tt>name.serviceEjections</tt>: A {@link CounterWatch} counting the
+ * services ejected by the association proxy's {@link CircuitBreaker}
+ * </ul>
+ *
+ * <p>The publication period (in milliseconds) is set using the
+ * <tt>org.rioproject.association.metricsPeriod</tt> system property, and
+ * defaults to 5 seconds.
+ */
+public class InvocationMetrics<T> implements InvocationObserver<T>, AssociationServiceListener<T> {
+    public static final long DEFAULT_PERIOD = 5*1000;
+    private static ScheduledExecutorService scheduler;
+    private final String name;
+    private final Association<T> association;
+    private final WatchRegistry watchRegistry;
+    private final Configuration config;
+    private final List<Recorder> recorders = new CopyOnWriteArrayList<Recorder>();
+    private final ThreadLocal<Recorder> localRecorder = new ThreadLocal<Recorder>() {
+        @Override
+        protected Recorder initialValue() {
+            Recorder recorder = new Recorder();
+            recorders.add(recorder);
+            return recorder;
+        }
+    };
+    /* Accessed only by the publishing thread */
+    private final Map<String, Watch> watches = new HashMap<String, Watch>();
+    private final Map<T, String> serviceNames = new WeakHashMap<T, String>();
+    /* Services that have left the association since the last publication */
+    private final Queue<T> departed = new ConcurrentLinkedQueue<T>();
+    private final AtomicLong serviceEjections = new AtomicLong();
+    private long publishedServiceEjections;
+    private ScheduledFuture<?> publisher;
+    private static final Logger logger = Logger.getLogger(InvocationMetrics.class.getName());
+
+    /**
+     * Create InvocationMetrics, and start publishing
+     *
+     * @param association The Association invocations are made to
+     * @param watchRegistry The WatchRegistry to register watches with
+     * @param config Configuration used to create watches
+     */
+    public InvocationMetrics(Association<T> association,
+                             WatchRegistry watchRegistry,
+                             Configuration config) {
+        if(association==null)
+            throw new IllegalArgumentException("association is null");
+        if(watchRegistry==null)
+            throw new IllegalArgumentException("watchRegistry is null");
+        if(config==null)
+            throw new IllegalArgumentException("config is null");
+        this.association = association;
+        this.name = association.getName();
+        this.watchRegistry = watchRegistry;
+        this.config = config;
+        association.registerAssociationServiceListener(this);
+        long period = Math.max(100, Long.getLong(Constants.ASSOCIATION_METRICS_PERIOD, DEFAULT_PERIOD));
+        publisher = getScheduler().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    publish();
+                } catch(Throwable t) {
+                    logger.log(Level.WARNING, "Publishing invocation metrics for ["+name+"]", t);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if(scheduler==null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread t = new Thread(runnable, "AssociationProxy:InvocationMetrics");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    public void invocationStarted(T service, Method method) {
+    }
+
+    public void invocationCompleted(T service, Method method, long durationNanos, Throwable thrown) {
+        localRecorder.get().record(method, service, durationNanos, thrown!=null);
+    }
+
+    /**
+     * Notification that a service was ejected by the {@link CircuitBreaker}
+     *
+     * @param service The ejected service
+     */
+    public void serviceEjected(T service) {
+        serviceEjections.incrementAndGet();
+        departed.add(service);
+    }
+
+    public void serviceAdded(T service) {
+    }
+
+    /**
+     * Notification that a service has been removed from the association, its
+     * watches are deregistered when invocations are next published
+     *
+     * @param service The removed service
+     */
+    public void serviceRemoved(T service) {
+        departed.add(service);
+    }
+
+    /**
+     * Stop publishing, and deregister the watches that were created
+     */
+    public synchronized void terminate() {
+        if(publisher!=null) {
+            publisher.cancel(false);
+            publisher = null;
+        }
+        association.removeAssociationServiceListener(this);
+        synchronized(watches) {
+            for(Watch watch : watches.values())
+                watchRegistry.deregister(watch);
+            watches.clear();
+        }
+    }
+
+    /**
+     * Merge the recorders, and add the invocations recorded since the
+     * previous publication to the watches
+     */
+    void publish() {
+        Map<String, Stats> byMethod = new HashMap<String, Stats>();
+        Map<String, Stats> byService = new HashMap<String, Stats>();
+        for(Recorder recorder : recorders) {
+            Map<Method, Map<T, Stats>> recorded = recorder.drain();
+            for(Map.Entry<Method, Map<T, Stats>> entry : recorded.entrySet()) {
+                String method = entry.getKey().getName();
+                for(Map.Entry<T, Stats> e : entry.getValue().entrySet()) {
+                    merge(byMethod, method, e.getValue());
+                    String serviceName = getServiceName(e.getKey());
+                    if(serviceName!=null)
+                        merge(byService, serviceName, e.getValue());
+                }
+            }
+            /* Recorders for threads that have terminated are no longer needed */
+            if(recorded.isEmpty() && recorder.thread.get()==null)
+                recorders.remove(recorder);
+        }
+        long now = System.currentTimeMillis();
+        synchronized(watches) {
+            for(Map.Entry<String, Stats> entry : byMethod.entrySet()) {
+                String prefix = name+"."+entry.getKey();
+                publish(prefix, entry.getValue(), now);
+                getStopWatch(prefix+".p99").addWatchRecord(
+                    new Calculable(prefix+".p99", entry.getValue().getPercentile(0.99)/1e6, now));
+            }
+            for(Map.Entry<String, Stats> entry : byService.entrySet())
+                publish(name+"@"+entry.getKey(), entry.getValue(), now);
+            for(T service; (service=departed.poll())!=null;) {
+                String serviceName = serviceNames.remove(service);
+                if(serviceName!=null)
+                    deregister(name+"@"+serviceName);
+            }
+            long ejections = serviceEjections.get();
+            if(ejections!=publishedServiceEjections) {
+                getCounterWatch(name+".serviceEjections").setCounter(ejections);
+                publishedServiceEjections = ejections;
+            }
+        }
+    }
+
+    private void publish(String prefix, Stats stats, long now) {
+        getStopWatch(prefix).addWatchRecord(new Calculable(prefix, stats.getMean()/1e6, now));
+        getCounterWatch(prefix+".invocations").increment(stats.count);
+        if(stats.failures>0)
+            getCounterWatch(prefix+".failures").increment(stats.failures);
+    }
+
+    private void merge(Map<String, Stats> map, String key, Stats stats) {
+        Stats merged = map.get(key);
+        if(merged==null) {
+            merged = new Stats();
+            map.put(key, merged);
+        }
+        merged.merge(stats);
+    }
+
+    /*
+     * Identify a service by its ServiceID, which is shorter and more stable
+     * than the service proxy's toString()
+     *
+     * @return The ServiceID, or null if the service is no longer part of the
+     * association
+     */
+    private String getServiceName(T service) {
+        ServiceItem item = association.getServiceItem(service);
+        if(item==null)
+            return null;
+        String serviceName = serviceNames.get(service);
+        if(serviceName==null) {
+            serviceName = item.serviceID.toString();
+            serviceNames.put(service, serviceName);
+        }
+        return serviceName;
+    }
+
+    /*
+     * Deregister the watches of a service
+     */
+    private void deregister(String prefix) {
+        for(String id : new String[]{prefix, prefix+".invocations", prefix+".failures"}) {
+            Watch watch = watches.remove(id);
+            if(watch!=null) {
+                watchRegistry.deregister(watch);
+                if(logger.isLoggable(Level.FINE))
+                    logger.fine("Removed invocation watch ["+id+"]");
+            }
+        }
+    }
+
+    private StopWatch getStopWatch(String id) {
+        Watch watch = watches.get(id);
+        if(watch==null) {
+            watch = new StopWatch(id, config);
+            register(id, watch);
+        }
+        return (StopWatch)watch;
+    }
+
+    private CounterWatch getCounterWatch(String id) {
+        Watch watch = watches.get(id);
+        if(watch==null) {
+            watch = new CounterWatch(id, config);
+            register(id, watch);
+        }
+        return (CounterWatch)watch;
+    }
+
+    private void register(String id, Watch watch) {
+        watches.put(id, watch);
+        watchRegistry.register(watch);
+        if(logger.isLoggable(Level.FINE))
+            logger.fine("Created invocation watch ["+id+"]");
+    }
+
+    /**
+     * Invocations recorded by a single thread
+     */
+    class Recorder {
+        final WeakReference<Thread> thread = new WeakReference<Thread>(Thread.currentThread());
+        private Map<Method, Map<T, Stats>> recorded = new HashMap<Method, Map<T, Stats>>();
+
+        synchronized void record(Method method, T service, long durationNanos, boolean failed) {
+            Map<T, Stats> byService = recorded.get(method);
+            if(byService==null) {
+                byService = new HashMap<T, Stats>();
+                recorded.put(method, byService);
+            }
+            Stats stats = byService.get(service);
+            if(stats==null) {
+                stats = new Stats();
+                byService.put(service, stats);
+            }
+            stats.record(durationNanos, failed);
+        }
+
+        synchronized Map<Method, Map<T, Stats>> drain() {
+            Map<Method, Map<T, Stats>> drained = recorded;
+            if(!drained.isEmpty())
+                recorded = new HashMap<Method, Map<T, Stats>>();
+            return drained;
+        }
+    }
+
+    /**
+     * Invocation count, failure count and a latency histogram. Latencies are
+     * recorded in buckets that are a quarter of a power of two wide, so a
+     * percentile is accurate to within 25%.
+     */
+    static class Stats {
+        static final int BUCKETS = 256;
+        long count;
+        long failures;
+        long totalNanos;
+        final long[] histogram = new long[BUCKETS];
+
+        void record(long nanos, boolean failed) {
+            long value = Math.max(0, nanos);
+            count++;
+            if(failed)
+                failures++;
+            totalNanos += value;
+            histogram[bucket(value)]++;
+        }
+
+        void merge(Stats stats) {
+            count += stats.count;
+            failures += stats.failures;
+            totalNanos += stats.totalNanos;
+            for(int i=0; i<BUCKETS; i++)
+                histogram[i] += stats.histogram[i];
+        }
+
+        double getMean() {
+            return count==0?0:(double)totalNanos/count;
+        }
+
+        /*
+         * Get the lower bound of the bucket holding the percentile
+         */
+        double getPercentile(double percentile) {
+            long target = (long)Math.ceil(count*percentile);
+            long seen = 0;
+            for(int i=0; i<BUCKETS; i++) {
+                seen += histogram[i];
+                if(seen>=target && seen>0)
+                    return bucketValue(i);
+            }
+            return 0;
+        }
+
+        static int bucket(long value) {
+            if(value<4)
+                return (int)value;
+            int msb = 63-Long.numberOfLeadingZeros(value);
+            int sub = (int)(value >>> (msb-2)) & 3;
+            return msb*4+sub;
+        }
+
+        static long bucketValue(int bucket) {
+            if(bucket<4)
+                return bucket;
+            int msb = bucket/4;
+            int sub = bucket%4;
+            return (4L+sub) << (msb-2);
+        }
+    }
+}
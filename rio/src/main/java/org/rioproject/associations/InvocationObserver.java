@@ -0,0 +1,45 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.associations;
+
+import java.lang.reflect.Method;
+
+/**
+ * Notified of invocations made through an {@link AssociationProxy}. If the
+ * {@link ServiceSelectionStrategy} used by an association proxy implements
+ * this interface, it is notified of each invocation made on the service it
+ * selected.
+ */
+public interface InvocationObserver<T> {
+    /**
+     * Notification that a method is about to be invoked on a service
+     *
+     * @param service The service the method will be invoked on
+     * @param method The method being invoked
+     */
+    void invocationStarted(T service, Method method);
+
+    /**
+     * Notification that an invocation has completed
+     *
+     * @param service The service the method was invoked on
+     * @param method The method that was invoked
+     * @param durationNanos How long the invocation took, in nanoseconds
+     * @param thrown The exception thrown by the invocation, or
+     * <code>null</code> if the invocation completed normally
+     */
+    void invocationCompleted(T service, Method method, long durationNanos, Throwable thrown);
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.associations;
+
+import net.jini.core.lookup.ServiceID;
+import net.jini.id.Uuid;
+import net.jini.id.UuidFactory;
+import org.rioproject.cybernode.ServiceBeanContainer;
+import org.rioproject.cybernode.ServiceBeanDelegate;
+
+import java.io.*;
+import java.util.Collection;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves colocated services to their implementations in the
+ * {@link ServiceBeanContainer}, so an {@link AssociationProxy} can invoke them
+ * directly rather than through their remote proxies.
+ *
+ * <p>An implementation is only used if it implements each of the association's
+ * interfaces as loaded by the caller. If the service was loaded by a class
+ * loader that does not share the interface classes with the caller, the
+ * remote proxy continues to be used.
+ *
+ * <p>Invoking an implementation directly passes arguments and results by
+ * reference. If <tt>copyOnCall</tt> is set, arguments and results are copied
+ * by serializing them, as they would be if the service was invoked remotely.
+ */
+public class LocalServiceResolver {
+    private final ServiceBeanContainer container;
+    private final boolean copyOnCall;
+    private static final Logger logger = Logger.getLogger(AssociationInjector.COMPONENT);
+
+    /**
+     * Create a LocalServiceResolver
+     *
+     * @param container The container colocated services run in
+     * @param copyOnCall Whether arguments and results are copied
+     */
+    public LocalServiceResolver(ServiceBeanContainer container, boolean copyOnCall) {
+        this.container = container;
+        this.copyOnCall = copyOnCall;
+    }
+
+    /**
+     * Whether arguments and results are copied
+     *
+     * @return <code>true</code> if arguments and results are copied
+     */
+    public boolean isCopyOnCall() {
+        return copyOnCall;
+    }
+
+    /**
+     * Get the implementation of a service running in the container
+     *
+     * @param serviceID The ServiceID of the service
+     * @param interfaces The interfaces the implementation must implement
+     *
+     * @return The implementation of the service, or null if the service does
+     * not run in the container, or does not implement the interfaces
+     */
+    public Object resolve(ServiceID serviceID, Collection<Class> interfaces) {
+        if(serviceID==null)
+            return null;
+        Uuid uuid = UuidFactory.create(serviceID.getMostSignificantBits(),
+                                       serviceID.getLeastSignificantBits());
+        Object impl = getImplementation(uuid);
+        if(impl==null)
+            return null;
+        for(Class c : interfaces) {
+            if(!c.isInstance(impl)) {
+                if(logger.isLoggable(Level.FINE))
+                    logger.fine("Colocated service ["+impl.getClass().getName()+"] " +
+                                "does not implement ["+c.getName()+"] as loaded " +
+                                "by the caller, invoke using the service proxy");
+                return null;
+            }
+        }
+        return impl;
+    }
+
+    /**
+     * Get the implementation of a service from the container
+     *
+     * @param uuid The identifier of the service
+     *
+     * @return The implementation of the service, or null if not found
+     */
+    protected Object getImplementation(Uuid uuid) {
+        if(container==null)
+            return null;
+        ServiceBeanDelegate delegate = container.getServiceBeanDelegate(uuid);
+        return delegate==null?null:delegate.getImpl();
+    }
+
+    /**
+     * Copy arguments by serializing them, resolving their classes using a
+     * class loader
+     *
+     * @param args The arguments, may be null
+     * @param loader The class loader of the object receiving the arguments
+     *
+     * @return A copy of the arguments
+     *
+     * @throws IllegalArgumentException if an argument cannot be copied
+     */
+    Object[] copyArguments(Object[] args, ClassLoader loader) {
+        if(args==null || args.length==0)
+            return args;
+        return (Object[])copy(args, loader);
+    }
+
+    /**
+     * Copy an object by serializing it, resolving its classes using a class
+     * loader
+     *
+     * @param o The object to copy, may be null
+     * @param loader The class loader of the object receiving the copy
+     *
+     * @return A copy of the object
+     *
+     * @throws IllegalArgumentException if the object cannot be copied
+     */
+    Object copy(Object o, ClassLoader loader) {
+        if(o==null)
+            return null;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(o);
+            out.close();
+            ObjectInputStream in =
+                new LoaderObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()), loader);
+            try {
+                return in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch(IOException e) {
+            throw new IllegalArgumentException("Unable to copy ["+o.getClass().getName()+"] " +
+                                               "for a colocated invocation", e);
+        } catch(ClassNotFoundException e) {
+            throw new IllegalArgumentException("Unable to copy ["+o.getClass().getName()+"] " +
+                                               "for a colocated invocation", e);
+        }
+    }
+
+    /**
+     * Resolves classes using a class loader, falling back to the classes
+     * visible to this class
+     */
+    static class LoaderObjectInputStream extends ObjectInputStream {
+        private final ClassLoader loader;
+
+        LoaderObjectInputStream(InputStream in, ClassLoader loader) throws IOException {
+            super(in);
+            this.loader = loader;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            if(loader!=null) {
+                try {
+                    return Class.forName(desc.getName(), false, loader);
+                } catch(ClassNotFoundException e) {
+                    /* Fall through */
+                }
+            }
+            return super.resolveClass(desc);
+        }
+    }
+}
@@ -101,6 +101,7 @@ public @interface ServiceAssociation {
      * <li>{@link org.rioproject.associations.strategy.FailOver}
      * <li>{@link org.rioproject.associations.strategy.RoundRobin}
      * <li>{@link org.rioproject.associations.strategy.Utilization}
+     * <li>{@link org.rioproject.associations.strategy.Adaptive}
      * </ul>
      *
      * <p>Note: all service selection strategies will also
@@ -127,6 +128,10 @@ public @interface ServiceAssociation {
      * in a memory constrained Cybernode will not be invoked until the JVM
      * performs garbage collection and memory is reclaimed.
      *
+     * <p>The Adaptive strategy selects between two randomly chosen services,
+     * preferring the service with the lower observed latency, fewer
+     * outstanding invocations and fewer recent failures.
+     *
      * @return The class to use for service selection. 
      */
     Class strategy() default FailOver.class;
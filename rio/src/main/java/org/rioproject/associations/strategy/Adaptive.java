@@ -0,0 +1,223 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.associations.strategy;
+
+import net.jini.core.lookup.ServiceItem;
+import org.rioproject.associations.Association;
+import org.rioproject.associations.InvocationObserver;
+
+import java.lang.reflect.Method;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selects services based on the latency, number of outstanding requests and
+ * error rate observed by the caller. Each selection picks two services at
+ * random, and chooses the one with the lower cost, where the cost of a
+ * service is its peak exponentially weighted moving average (EWMA) latency
+ * multiplied by the number of its in-flight invocations plus one, and
+ * increased by its recent rate of remote failures.
+ *
+ * <p>Services that become slow or start failing are selected less often,
+ * without any coordination between callers. The observations made for a
+ * service decay over time, so a service that has not been invoked for a while
+ * is tried again.
+ *
+ * <p>Latency and failures are reported by the association proxy, this
+ * strategy implements {@link InvocationObserver}.
+ */
+public class Adaptive<T> extends AbstractServiceSelectionStrategy<T> implements InvocationObserver<T> {
+    /** Default time (in milliseconds) over which observations decay */
+    public static final long DEFAULT_DECAY_TIME = 10*1000;
+    /** Default multiplier applied to the cost of a service for its error rate */
+    public static final double DEFAULT_ERROR_PENALTY = 10;
+    private final ConcurrentMap<T, Endpoint<T>> endpointMap = new ConcurrentHashMap<T, Endpoint<T>>();
+    private volatile Endpoint<T>[] endpoints = newArray(0);
+    private final Random random = new Random();
+    private volatile long decayTime = DEFAULT_DECAY_TIME*1000*1000;
+    private volatile double errorPenalty = DEFAULT_ERROR_PENALTY;
+    private static Logger logger = Logger.getLogger(Adaptive.class.getName());
+
+    @Override
+    public void setAssociation(Association<T> association) {
+        this.association = association;
+        for(ServiceItem item : association.getServiceItems())
+            add(item);
+    }
+
+    /**
+     * Set the time over which observations decay
+     *
+     * @param decayTime The decay time in milliseconds, must be greater than 0
+     */
+    public void setDecayTime(long decayTime) {
+        if(decayTime<=0)
+            throw new IllegalArgumentException("decayTime must be greater than 0");
+        this.decayTime = decayTime*1000*1000;
+    }
+
+    /**
+     * Set how heavily recent failures increase the cost of a service
+     *
+     * @param errorPenalty The multiplier applied to the error rate of a
+     * service when computing its cost
+     */
+    public void setErrorPenalty(double errorPenalty) {
+        if(errorPenalty<0)
+            throw new IllegalArgumentException("errorPenalty must not be negative");
+        this.errorPenalty = errorPenalty;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T getService() {
+        Endpoint<T>[] current = endpoints;
+        int size = current.length;
+        if(size==0)
+            return null;
+        if(size==1)
+            return current[0].service;
+        int i = random.nextInt(size);
+        int j = random.nextInt(size-1);
+        if(j>=i)
+            j++;
+        long now = System.nanoTime();
+        Endpoint<T> a = current[i];
+        Endpoint<T> b = current[j];
+        long decay = decayTime;
+        double penalty = errorPenalty;
+        Endpoint<T> selected = a.getCost(now, decay, penalty)<=b.getCost(now, decay, penalty)?a:b;
+        if(logger.isLoggable(Level.FINEST))
+            logger.finest("Selected "+selected+" over "+(selected==a?b:a));
+        return selected.service;
+    }
+
+    public void invocationStarted(T service, Method method) {
+        Endpoint<T> endpoint = endpointMap.get(service);
+        if(endpoint!=null)
+            endpoint.inFlight.incrementAndGet();
+    }
+
+    public void invocationCompleted(T service, Method method, long durationNanos, Throwable thrown) {
+        Endpoint<T> endpoint = endpointMap.get(service);
+        if(endpoint!=null) {
+            endpoint.inFlight.decrementAndGet();
+            endpoint.observe(durationNanos, thrown instanceof RemoteException, decayTime);
+        }
+    }
+
+    @Override
+    public void discovered(Association<T> association, T service) {
+        add(association.getServiceItem(service));
+    }
+
+    @Override
+    public void changed(Association<T> association, T service) {
+        remove(service);
+    }
+
+    @Override
+    public void broken(Association<T> association, T service) {
+        remove(service);
+    }
+
+    private synchronized void add(ServiceItem item) {
+        if(item==null)
+            return;
+        @SuppressWarnings("unchecked")
+        T service = (T)item.service;
+        if(endpointMap.containsKey(service))
+            return;
+        endpointMap.put(service, new Endpoint<T>(service));
+        rebuild();
+    }
+
+    private synchronized void remove(T service) {
+        if(endpointMap.remove(service)!=null)
+            rebuild();
+    }
+
+    private void rebuild() {
+        List<Endpoint<T>> list = new ArrayList<Endpoint<T>>(endpointMap.values());
+        endpoints = list.toArray(Adaptive.<T>newArray(list.size()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Endpoint<T>[] newArray(int size) {
+        return new Endpoint[size];
+    }
+
+    /**
+     * Observations made for a service
+     */
+    static class Endpoint<S> {
+        static final double MAX_WEIGHT = 0.95;
+        final S service;
+        final AtomicInteger inFlight = new AtomicInteger();
+        /* EWMA of latency in nanoseconds and EWMA of the error rate, guarded by this */
+        private double latency;
+        private double errorRate;
+        private long lastObserved;
+        private boolean observed;
+
+        Endpoint(S service) {
+            this.service = service;
+        }
+
+        synchronized void observe(long durationNanos, boolean failed, long decayTime) {
+            long now = System.nanoTime();
+            if(!observed) {
+                latency = durationNanos;
+                errorRate = failed?1:0;
+            } else {
+                /* Weight older observations by how long ago they were made, but
+                 * let each new observation carry at least some weight */
+                double w = Math.min(MAX_WEIGHT, Math.exp(-(double)(now-lastObserved)/decayTime));
+                /* React to increases in latency immediately, and decay slowly */
+                latency = durationNanos>latency?durationNanos:latency*w+durationNanos*(1-w);
+                errorRate = errorRate*w+(failed?1:0)*(1-w);
+            }
+            lastObserved = now;
+            observed = true;
+        }
+
+        /*
+         * The cost of selecting this service. Observations decay towards zero
+         * when the service is not invoked, so that it will be tried again
+         */
+        synchronized double getCost(long now, long decayTime, double errorPenalty) {
+            double l = latency;
+            double e = errorRate;
+            if(observed) {
+                double w = Math.exp(-(double)(now-lastObserved)/decayTime);
+                l *= w;
+                e *= w;
+            }
+            return (l+1)*(inFlight.get()+1)*(1+errorPenalty*e);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "["+service+"], latency="+(long)latency+"ns, errorRate="+errorRate+", inFlight="+inFlight;
+        }
+    }
+}
@@ -45,16 +45,14 @@ import java.net.UnknownHostException;
 public class FailOver<T> extends AbstractServiceSelectionStrategy<T> {
     private String hostAddress;
     private final List<ServiceItem> serviceList = new ArrayList<ServiceItem>();
+    /* Snapshot of the sorted service list, replaced each time the list is
+     * modified so that service selection does not lock */
+    private volatile ServiceItem[] serviceSnapshot = new ServiceItem[0];
 
     @SuppressWarnings("unchecked")
     public T getService() {
-        //return getAssociation().getService();
-        T service;
-        synchronized(serviceList) {
-            ServiceItem item = serviceList.get(0);
-            service = (T)item.service;
-        }
-        return service;
+        ServiceItem[] current = serviceSnapshot;
+        return current.length==0?null:(T)current[0].service;
     }
 
     @Override
@@ -91,7 +89,16 @@ public class FailOver<T> extends AbstractServiceSelectionStrategy<T> {
     /*
      * Add a service to the list, sorting by returned host address
      */
-    private synchronized void add(ServiceItem item) {
+    private void add(ServiceItem item) {
+        if(item==null)
+            return;
+        synchronized(serviceList) {
+            addToList(item);
+            serviceSnapshot = serviceList.toArray(new ServiceItem[serviceList.size()]);
+        }
+    }
+
+    private void addToList(ServiceItem item) {
         int ndx = -1;
         if (hostAddress != null) {
             Host host = getHostEntry(item);
@@ -124,20 +131,17 @@ public class FailOver<T> extends AbstractServiceSelectionStrategy<T> {
      * remove a service
      */
     private void remove(T service) {
-        ServiceItem[] items;
         synchronized (serviceList) {
-            items = serviceList.toArray(new ServiceItem[serviceList.size()]);
-        }
-        ServiceItem item = null;
-        for (ServiceItem si : items) {
-            if (si.service.equals(service)) {
-                item = si;
-                break;
+            ServiceItem item = null;
+            for (ServiceItem si : serviceList) {
+                if (si.service.equals(service)) {
+                    item = si;
+                    break;
+                }
             }
-        }
-        if (item != null) {
-            synchronized (serviceList) {
+            if (item != null) {
                 serviceList.remove(item);
+                serviceSnapshot = serviceList.toArray(new ServiceItem[serviceList.size()]);
             }
         }
     }
@@ -27,7 +27,7 @@ import net.jini.core.lookup.ServiceItem;
 public class RoundRobin<T> extends AbstractServiceSelectionStrategy<T> {
 
     @SuppressWarnings("unchecked")
-    public synchronized T getService() {
+    public T getService() {
         ServiceItem item = association.getNextServiceItem();
         T service = null;
         if(item!=null)
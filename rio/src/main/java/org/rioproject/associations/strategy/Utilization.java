@@ -41,6 +41,7 @@ import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -57,6 +58,10 @@ public class Utilization<T> extends AbstractServiceSelectionStrategy<T> {
     private SLA sla;
     private final List<ServiceCapability<T>> services =
         new ArrayList<ServiceCapability<T>>();
+    /* Snapshot of the services collection, replaced each time the collection
+     * is modified so that service selection does not lock */
+    private volatile ServiceCapability<T>[] serviceSnapshot = newArray(0);
+    private final AtomicInteger next = new AtomicInteger();
     private OperationalStringManager opMgr;
     /** Scheduler for Cybernode utilization gathering */
     private ScheduledExecutorService scheduler;
@@ -73,49 +78,37 @@ public class Utilization<T> extends AbstractServiceSelectionStrategy<T> {
     }
 
     public T getService() {
-        T service = null;
-        synchronized(services) {
-            ServiceCapability<T> selected = null;
-            /* Fail-Over
-            for(ServiceCapability<T> sc : getServices()) {
+        ServiceCapability<T>[] current = serviceSnapshot;
+        ServiceCapability<T> selected = null;
+        /*  Round-Robin, starting after the last selected service */
+        if(current.length>0) {
+            int start = next.getAndIncrement() & Integer.MAX_VALUE;
+            for(int i=0; i<current.length; i++) {
+                ServiceCapability<T> sc = current[(start+i) % current.length];
                 if(sc.isInvokable()) {
-                    service = sc.getService();
-                    break;
-                } else {
-                    services.remove(sc);
-                    services.add(sc);
-                }
-            }
-             */
-            /*  Round-Robin */
-            for(ServiceCapability<T> sc : getServices()) {
-                if(sc.isInvokable()) {
-                    services.remove(sc);
-                    services.add(sc);
                     selected = sc;
-                    service = sc.getService();
                     break;
                 }
             }
-            if(logger.isLoggable(Level.FINEST)) {
-                String name = association==null?"<unknown>":association.getName();
-                if(selected!=null) {
-                    String address = selected.cru==null?"<unknown>":selected.cru.getAddress();
-                    String util = selected.cru==null?"<unknown>":selected.cru.getUtilization().toString();
-                    logger.finest("Using associated service " +
-                                  "["+name+"] at "+
-                                  "Host address="+address+", "+
-                                  "Utilization="+
-                                  util+", " +
-                                  "values="+selected.getMeasuredResourcesAsList());
-                } else {
-                    logger.finest("All services are either breached, or " +
-                                  "none are available for associated " +
-                                  "service ["+name+"]");
-                }
+        }
+        if(logger.isLoggable(Level.FINEST)) {
+            String name = association==null?"<unknown>":association.getName();
+            if(selected!=null) {
+                String address = selected.cru==null?"<unknown>":selected.cru.getAddress();
+                String util = selected.cru==null?"<unknown>":selected.cru.getUtilization().toString();
+                logger.finest("Using associated service " +
+                              "["+name+"] at "+
+                              "Host address="+address+", "+
+                              "Utilization="+
+                              util+", " +
+                              "values="+selected.getMeasuredResourcesAsList());
+            } else {
+                logger.finest("All services are either breached, or " +
+                              "none are available for associated " +
+                              "service ["+name+"]");
             }
         }
-        return service;
+        return selected==null?null:selected.getService();
     }
 
     @Override
@@ -138,7 +131,7 @@ public class Utilization<T> extends AbstractServiceSelectionStrategy<T> {
         if(removeService(service)){
             if(logger.isLoggable(Level.FINE))
                 logger.fine("Service removed, " +
-                            "service collection size="+services.size());
+                            "service collection size="+serviceSnapshot.length);
         }
     }
 
@@ -199,6 +192,7 @@ public class Utilization<T> extends AbstractServiceSelectionStrategy<T> {
             for(ServiceItem item : items) {
                 addService(item);
             }
+            serviceSnapshot = getServices();
         }
     }
 
@@ -232,31 +226,38 @@ public class Utilization<T> extends AbstractServiceSelectionStrategy<T> {
             }
             if(!alreadyHaveIt) {
                 services.add(new ServiceCapability(item.service, uuid));
+                serviceSnapshot = getServices();
             }
         }
     }
 
     private boolean removeService(T service) {
         boolean removed = false;
-        for(ServiceCapability sc : getServices()) {
-            if(sc.getService().equals(service)) {
-                synchronized(services) {
+        synchronized(services) {
+            for(ServiceCapability sc : serviceSnapshot) {
+                if(sc.getService().equals(service)) {
                     removed = services.remove(sc);
                 }
             }
+            if(removed)
+                serviceSnapshot = getServices();
         }
         return removed;
     }
 
-    @SuppressWarnings("unchecked")
     private ServiceCapability<T>[] getServices() {
         ServiceCapability<T>[] scArray;
         synchronized(services) {
-            scArray =  services.toArray(new ServiceCapability[services.size()]);
+            scArray =  services.toArray(newArray(services.size()));
         }
         return scArray;
     }
 
+    @SuppressWarnings("unchecked")
+    private ServiceCapability<T>[] newArray(int size) {
+        return new ServiceCapability[size];
+    }
+
     class ComputeResourceUtilizationFetcher implements Runnable {
         OperationalStringManager opMgr;
         String opStringName;
@@ -294,19 +295,18 @@ public class Utilization<T> extends AbstractServiceSelectionStrategy<T> {
                            e);
                 terminate();
             }
-            synchronized(services) {
-                for(DeployedService deployed : list) {
-                    ServiceBeanInstance sbi = deployed.getServiceBeanInstance();
-                    ComputeResourceUtilization cru =
-                        deployed.getComputeResourceUtilization();
-                    for(ServiceCapability sc : services) {
-                        if(sc.uuid.equals(sbi.getServiceBeanID())) {
-                            if(logger.isLoggable(Level.FINEST))
-                                logger.finest("Obtained ComputeResourceUtilization for " +
-                                              "["+association.getName()+"]");
-                            sc.setComputeResourceUtilization(cru);
-                            break;
-                        }
+            ServiceCapability<T>[] current = serviceSnapshot;
+            for(DeployedService deployed : list) {
+                ServiceBeanInstance sbi = deployed.getServiceBeanInstance();
+                ComputeResourceUtilization cru =
+                    deployed.getComputeResourceUtilization();
+                for(ServiceCapability sc : current) {
+                    if(sc.uuid.equals(sbi.getServiceBeanID())) {
+                        if(logger.isLoggable(Level.FINEST))
+                            logger.finest("Obtained ComputeResourceUtilization for " +
+                                          "["+association.getName()+"]");
+                        sc.setComputeResourceUtilization(cru);
+                        break;
                     }
                 }
             }
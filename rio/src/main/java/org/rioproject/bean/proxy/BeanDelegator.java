@@ -21,12 +21,16 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * An {@link java.lang.reflect.InvocationHandler} that delegates method
- * calls between the {@link org.rioproject.bean.BeanAdapter} and the bean
+ * calls between the {@link org.rioproject.bean.BeanAdapter} and the bean.
+ *
+ * <p>The target of each method of the proxy's interfaces is resolved once,
+ * when the proxy is created, so an invocation requires a single lookup.
  *
  * @author Dennis Reedy
  */
@@ -35,6 +39,9 @@ public class BeanDelegator implements InvocationHandler, Serializable {
     private Set<PackagedMethod> methodSet = new HashSet<PackagedMethod>();
     private Object service;
     private Object bean;
+    /* Resolved targets of proxy methods. Methods are not serializable, so
+     * after deserialization the table is rebuilt as methods are invoked */
+    private transient volatile Map<Method, Dispatch> dispatchTable;
     private static Logger logger = Logger.getLogger("org.rioproject.bean");
 
     /*
@@ -95,7 +102,9 @@ public class BeanDelegator implements InvocationHandler, Serializable {
             throw new IllegalArgumentException("interfaces must contain values");
 
         v(interfaces, loader);
-        return (Proxy.newProxyInstance(loader, interfaces, new BeanDelegator(service, bean, loader)));
+        BeanDelegator delegator = new BeanDelegator(service, bean, loader);
+        delegator.createDispatchTable(interfaces);
+        return (Proxy.newProxyInstance(loader, interfaces, delegator));
     }
 
     static void v(Class[] interfaces, ClassLoader loader) {
@@ -116,6 +125,54 @@ public class BeanDelegator implements InvocationHandler, Serializable {
         }
     }
 
+    /*
+     * Resolve the target of each method of the interfaces
+     */
+    private void createDispatchTable(Class[] interfaces) {
+        Map<Method, Dispatch> table = new ConcurrentHashMap<Method, Dispatch>();
+        for(Class interfaceClass : interfaces) {
+            for(Method method : interfaceClass.getMethods()) {
+                try {
+                    table.put(method, resolve(method));
+                } catch(NoSuchMethodException e) {
+                    /* Resolved, and reported, if the method is invoked */
+                }
+            }
+        }
+        dispatchTable = table;
+    }
+
+    private Dispatch resolve(Method method) throws NoSuchMethodException {
+        PackagedMethod template = new PackagedMethod(method);
+        Dispatch dispatch;
+        if(methodSet.contains(template)) {
+            if(logger.isLoggable(Level.FINEST)) {
+                logger.finest("Method "+method.getName()+", " +
+                              "invocation found in ServiceBean using template "+template);
+            }
+            dispatch = new Dispatch(service, method);
+        } else {
+            if(logger.isLoggable(Level.FINEST)) {
+                logger.finest("Method "+method.getName()+", invocation being performed on " +
+                              bean.getClass().getName()+", no matching method found on service bean " +
+                              "using template "+template);
+            }
+            Class beanClass = bean.getClass();
+            Method beanMethod = beanClass.getMethod(method.getName(), method.getParameterTypes());
+            try {
+                /* Avoid the access check on each invocation, and allow public
+                 * methods of non-public bean classes to be invoked */
+                beanMethod.setAccessible(true);
+            } catch(SecurityException e) {
+                if(logger.isLoggable(Level.FINEST))
+                    logger.finest("Unable to suppress access checks for "+beanMethod+": "+e);
+            }
+            dispatch = new Dispatch(bean, beanMethod);
+        }
+        template.clear();
+        return dispatch;
+    }
+
     /**
      * Perform the invocation, directing the method request to the appropriate
      * implementation
@@ -123,30 +180,34 @@ public class BeanDelegator implements InvocationHandler, Serializable {
      * @see InvocationHandler#invoke(Object, java.lang.reflect.Method, Object[])
      */
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-        PackagedMethod template = null;
+        Map<Method, Dispatch> table = dispatchTable;
+        if(table==null) {
+            table = new ConcurrentHashMap<Method, Dispatch>();
+            dispatchTable = table;
+        }
+        Dispatch dispatch = table.get(method);
+        if(dispatch==null) {
+            /* Methods declared by Object, or the table was not created */
+            dispatch = resolve(method);
+            table.put(method, dispatch);
+        }
         try {
-            template = new PackagedMethod(method);
-            if(methodSet.contains(template)) {
-                if(logger.isLoggable(Level.FINEST)) {
-                    logger.finest("Method "+method.getName()+", " +
-                                  "invocation found in ServiceBean using template "+template);
-                }
-                return method.invoke(service, args);
-            } else {
-                if(logger.isLoggable(Level.FINEST)) {
-                    logger.finest("Method "+method.getName()+", invocation being performed on " +
-                                  bean.getClass().getName()+", no matching method found on service bean " +
-                                  "using template "+template);
-                }
-                Class beanClass = bean.getClass();
-                Method beanMethod =  beanClass.getMethod(method.getName(), method.getParameterTypes());
-                return(beanMethod.invoke(bean, args));
-            }
+            return dispatch.method.invoke(dispatch.target, args);
         } catch (InvocationTargetException e) {
             throw e.getTargetException();
-        } finally {
-            if(template!=null)
-                template.clear();
+        }
+    }
+
+    /**
+     * The object and method an invocation is delegated to
+     */
+    private static class Dispatch {
+        final Object target;
+        final Method method;
+
+        Dispatch(Object target, Method method) {
+            this.target = target;
+            this.method = method;
         }
     }
 }
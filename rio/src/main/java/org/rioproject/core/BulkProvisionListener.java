@@ -0,0 +1,47 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.core;
+
+import java.rmi.RemoteException;
+
+/**
+ * A BulkProvisionListener waits for notification that all the instances
+ * requested by {@link OperationalStringManager#scale} or
+ * {@link OperationalStringManager#setPlanned} have been provisioned, or
+ * could not be provisioned.
+ *
+ * <p>A BulkProvisionListener passed to <tt>scale</tt> or <tt>setPlanned</tt>
+ * is notified once, through {@link #completed}, and is not notified of each
+ * instance. A BulkProvisionListener passed to
+ * {@link OperationalStringManager#increment} is notified of each instance as
+ * a <tt>ServiceProvisionListener</tt> is.
+ */
+public interface BulkProvisionListener extends ServiceProvisionListener {
+    /**
+     * Notify listener that each of the requested instances has been
+     * provisioned, or has failed to be provisioned
+     *
+     * @param sElem The ServiceElement
+     * @param instances The instances that have been provisioned
+     * @param failed The number of instances that could not be provisioned.
+     * Instances that could not be provisioned are resubmitted for future
+     * provisioning
+     *
+     * @throws RemoteException If communication errors occur
+     */
+    void completed(ServiceElement sElem, ServiceBeanInstance[] instances, int failed)
+        throws RemoteException;
+}
@@ -282,6 +282,77 @@ public interface OperationalStringManager extends Remote {
                    ServiceProvisionListener listener)
         throws OperationalStringException, RemoteException;
 
+    /**
+     * Change the number of instances by more than one. This method will only
+     * take action if the ServiceElement provision type is
+     * {@link org.rioproject.core.ServiceElement.ProvisionType#DYNAMIC}.
+     *
+     * If <tt>delta</tt> is positive, the provision requests for all new
+     * instances are created in one pass and are provisioned concurrently. If
+     * <tt>delta</tt> is negative, pending provision requests are removed
+     * first, and then the most recently provisioned instances are removed and
+     * destroyed.
+     *
+     * If the <tt>listener</tt> is a {@link BulkProvisionListener}, it is
+     * notified once, when each new instance has been provisioned or has
+     * failed to be provisioned. Otherwise it is notified of each new
+     * instance. The listener is not notified when instances are removed.
+     *
+     * @param sElem The ServiceElement instance to scale. This parameter
+     * is used to match a ServiceElement being managed by the
+     * <tt>OperationalStringManager</tt>
+     * @param delta The number of instances to add (if positive) or remove
+     * (if negative)
+     * @param permanent If the change should be considered permanent. If
+     * set to false, the number of instances will not be increased above the
+     * maximum number of services declared by the service's SLAs, or
+     * decreased below the initial number of planned services
+     * @param listener If not null, the ServiceProvisionListener will be
+     * notified on the result of the attempt to add service instances.
+     *
+     * @return The number of instances added (a positive value) or removed (a
+     * negative value). If the ServiceElement provision type is not
+     * {@link org.rioproject.core.ServiceElement.ProvisionType#DYNAMIC},
+     * Integer.MIN_VALUE
+     *
+     * @throws OperationalStringException If the ServiceElement is not being
+     * managed by the <tt>OperationalStringManager</tt> (or the <tt>OperationalStringManager</tt>
+     * is not the managing <tt>OperationalStringManager</tt> for the OperationalString)
+     * @throws RemoteException If communication errors occur
+     */
+    int scale(ServiceElement sElem,
+              int delta,
+              boolean permanent,
+              ServiceProvisionListener listener)
+        throws OperationalStringException, RemoteException;
+
+    /**
+     * Set the number of planned instances. This is a permanent
+     * {@link #scale} by the difference between the number of planned
+     * instances and the current number of planned instances.
+     *
+     * @param sElem The ServiceElement instance to scale. This parameter
+     * is used to match a ServiceElement being managed by the
+     * <tt>OperationalStringManager</tt>
+     * @param planned The number of planned instances
+     * @param listener If not null, the ServiceProvisionListener will be
+     * notified on the result of the attempt to add service instances.
+     *
+     * @return The number of instances added (a positive value) or removed (a
+     * negative value). If the ServiceElement provision type is not
+     * {@link org.rioproject.core.ServiceElement.ProvisionType#DYNAMIC},
+     * Integer.MIN_VALUE
+     *
+     * @throws OperationalStringException If the ServiceElement is not being
+     * managed by the <tt>OperationalStringManager</tt> (or the <tt>OperationalStringManager</tt>
+     * is not the managing <tt>OperationalStringManager</tt> for the OperationalString)
+     * @throws RemoteException If communication errors occur
+     */
+    int setPlanned(ServiceElement sElem,
+                   int planned,
+                   ServiceProvisionListener listener)
+        throws OperationalStringException, RemoteException;
+
     /**
      * Decrement (decrease the number of) and remove a specific ServiceBean
      * instance from the OperationalString.
@@ -87,6 +87,14 @@ public interface ServiceBeanDelegate {
      */
     ServiceBeanInstance getServiceBeanInstance();
 
+    /**
+     * Get the implementation of the service
+     *
+     * @return The object created by loading the service, or null if the
+     * service has not been loaded, or runs in a separate process
+     */
+    Object getImpl();
+
     /**
      * Advertise the ServiceBean, making it available to all clients
      *
@@ -32,6 +32,8 @@ import net.jini.security.BasicProxyPreparer;
 import net.jini.security.ProxyPreparer;
 import net.jini.security.policy.DynamicPolicyProvider;
 import net.jini.security.policy.PolicyFileProvider;
+import org.rioproject.associations.AssociationManagement;
+import org.rioproject.associations.AssociationMgmt;
 import org.rioproject.boot.ClassAnnotator;
 import org.rioproject.boot.CommonClassLoader;
 import org.rioproject.boot.ServiceClassLoader;
@@ -243,7 +245,7 @@ public class ServiceBeanLoader {
         Object proxy;
         MarshalledInstance mi = null;
         Object impl = null;
-        ServiceBeanContext context;
+        ServiceBeanContext context = null;
         CommonClassLoader commonCL = CommonClassLoader.getInstance();
         ComputeResource computeResource = container.getComputeResource();
 
@@ -398,6 +400,12 @@ public class ServiceBeanLoader {
             Map<String, Object> configParms = context.getServiceBeanConfig().getConfigurationParameters();
             configParms.put(Constants.STARTING, true);
             context.getServiceBeanConfig().setConfigurationParameters(configParms);
+
+            /* Start discovering associated services before the ServiceBean
+             * is created, rather than after it has started */
+            AssociationManagement associationManagement = context.getAssociationManagement();
+            if(associationManagement instanceof AssociationMgmt)
+                ((AssociationMgmt)associationManagement).prefetch(context);
             
             /*
              * Initialize any configured Logger instances. If there are any
@@ -491,6 +499,9 @@ public class ServiceBeanLoader {
                 e = (JSBInstantiationException)t;
             else
                 e = new JSBInstantiationException(t.getClass().getName()+ ": "+ t.getLocalizedMessage(), t);
+            /* Stop handling any associations that were prefetched */
+            if(context!=null && context.getAssociationManagement()!=null)
+                context.getAssociationManagement().terminate();
             throw e;
         } finally {                
             currentThread.setContextClassLoader(currentClassLoader);
@@ -35,7 +35,8 @@ import java.util.logging.Logger;
  * method invocation returns successfully, the service is assumed to be available. If
  * the method invocation results in a failure,  and all retry attempts have failed, 
  * the AdminFaultDetectionHandler will notify FaultDetectionListener instances of
- * the failure.
+ * the failure. The method invocations for all monitored services are
+ * scheduled by the shared {@link FaultDetectionEngine}.
  * <p>
  * Additionally, the AdminFaultDetectionHandler will register with Lookup
  * Services for
@@ -215,37 +216,37 @@ public class AdminFaultDetectionHandler extends AbstractFaultDetectionHandler {
         
     /**
      * Invoke the service's {@link net.jini.admin.Administrable#getAdmin()} method 
-     * periodically
+     * periodically, using the shared {@link FaultDetectionEngine}
      */
-    class ServiceAdminManager extends Thread implements ServiceMonitor {
-        boolean keepAlive = true;
+    class ServiceAdminManager implements ServiceMonitor, FaultDetectionEngine.Probe {
+        volatile boolean keepAlive = true;
+        volatile FaultDetectionEngine.Registration registration;
 
         /**
-         * Create a ServiceLeaseManager
+         * Create a ServiceAdminManager and register it with the
+         * FaultDetectionEngine
          */
         ServiceAdminManager() {
-            super("ServiceAdminManager:"
-                  + proxy.getClass().getName()
-                  + ":"
-                  + System.currentTimeMillis());
-            setDaemon(true);
-            start();
+            if(logger.isLoggable(Level.FINEST))
+                logger.finest("ServiceAdminManager: invoke getAdmin() on "+
+                              proxy.getClass().getName()+" every "+
+                              "["+invocationDelay+"] millis");
+            registration = FaultDetectionEngine.getInstance().register(proxy.getClass().getName(),
+                                                                       this,
+                                                                       invocationDelay,
+                                                                       retryCount,
+                                                                       retryTimeout);
         }
 
         /**
          * Its all over
          */
         public void drop() {
-            interrupt();
-        }
-
-        public void interrupt() {
             if(logger.isLoggable(Level.FINEST))
-                logger.finest("Terminating ServiceMonitor Thread...");
+                logger.finest("Terminating ServiceMonitor");
             keepAlive = false;
-            super.interrupt();
-            if(logger.isLoggable(Level.FINEST))
-                logger.finest("ServiceMonitor Thread Terminated");
+            if(registration!=null)
+                registration.cancel();
         }
 
         /**
@@ -282,103 +283,50 @@ public class AdminFaultDetectionHandler extends AbstractFaultDetectionHandler {
             return (verified);
         }
 
-        public void run() {
-            while (!interrupted()) {
-                if(!keepAlive) {
-                    return;
-                }
+        /**
+         * Invoked by the FaultDetectionEngine to invoke getAdmin() on the
+         * service. A failure that is not fatal is retried by the
+         * FaultDetectionEngine.
+         */
+        public Result probe() {
+            if(!keepAlive)
+                return Result.FAILED;
+            try {
                 if(logger.isLoggable(Level.FINEST))
-                    logger.finest("ServiceAdminManager: Wait for "+
-                                  "["+invocationDelay+"] millis "+
-                                  "to invoke getAdmin() on "+
-                                  proxy.getClass().getName());
-                try {
-                    sleep(invocationDelay);
-                } catch(InterruptedException ie) {
-                    /* should not happen */
-                } catch(IllegalArgumentException iae) {
-                    logger.warning("ServiceAdminManager: sleep time is off : "
-                                   + invocationDelay);
-                }
-                try {
-                    if(logger.isLoggable(Level.FINEST))
-                        logger.finest("Invoke getAdmin() on : "
-                                      + proxy.getClass().getName());
-                    ((Administrable)proxy).getAdmin();
-                    if(logger.isLoggable(Level.FINEST))
-                        logger.finest("Invocation to getAdmin() on : "
-                                      + proxy.getClass().getName()+" returned");
-                } catch(Exception e) {
-                    if(!ThrowableUtil.isRetryable(e)) {
-                        keepAlive = false;
-                        if(logger.isLoggable(Level.FINE))
-                            logger.log(Level.FINE,
-                                       "Unrecoverable Exception invoking getAdmin()",
-                                       e);
-                    }
-                    /*
-                     * If we failed to invoke the method and the failure is
-                     * not fatal, retry
-                     */
-                    if(keepAlive) {
-                        if(logger.isLoggable(Level.FINEST))
-                            logger.finest("Failed to invoke getAdmin() on : "
-                                          + proxy.getClass().getName()
-                                          + ", retry ["+retryCount+"] "+
-                                          "times, waiting ["+retryTimeout+"] "+
-                                          "millis between attempts");
-                        boolean connected = false;
-                        for(int i = 0; i < retryCount; i++) {
-                            long t0 = 0;
-                            long t1;
-                            try {
-                                if(logger.isLoggable(Level.FINEST))
-                                    logger.finest("Attempt to invoke getAdmin() "+
-                                                  "on : "+proxy.getClass().getName()+
-                                                  ", attempt ["+i+"]");
-                                t0 = System.currentTimeMillis();
-                                ((Administrable)proxy).getAdmin();
-                                if(logger.isLoggable(Level.FINEST))
-                                    logger.finest("Re-established connection to : "+
-                                                  proxy.getClass().getName());
-                                connected = true;
-                                break;
-                            } catch(Exception e1) {
-                                t1 = System.currentTimeMillis();
-                                if(logger.isLoggable(Level.FINEST))
-                                    logger.finest("Invocation attempt ["+i+"] "+
-                                                  "took ["+(t1 - t0)+"] "+
-                                                  "millis to fail for : "+
-                                                  proxy.getClass().getName());
-                                if(retryTimeout > 0) {
-                                    try {
-                                        sleep(retryTimeout);
-                                    } catch(InterruptedException ie) {
-                                        /* should not happen */
-                                    }
-                                }
-                            }
-                        }
-                        if(!connected) {
-                            if(logger.isLoggable(Level.FINEST)) {
-                                if(proxy != null)
-                                    logger.finest("Unable to invoke getAdmin() on "+
-                                                  "["+proxy.getClass().getName()+
-                                                  "], notify listeners and exit");
-                                else
-                                    logger.finest("Unable to invoke getAdmin() "+
-                                                  "[null proxy], notify listeners "+
-                                                  "and exit");
-                            }
-                            notifyListeners();
-                            break;
-                        }
-                    } else {
-                        notifyListeners();
-                        break;
-                    }
+                    logger.finest("Invoke getAdmin() on : "
+                                  + proxy.getClass().getName());
+                ((Administrable)proxy).getAdmin();
+                if(logger.isLoggable(Level.FINEST))
+                    logger.finest("Invocation to getAdmin() on : "
+                                  + proxy.getClass().getName()+" returned");
+                return Result.REACHABLE;
+            } catch(Exception e) {
+                if(!ThrowableUtil.isRetryable(e)) {
+                    keepAlive = false;
+                    if(logger.isLoggable(Level.FINE))
+                        logger.log(Level.FINE,
+                                   "Unrecoverable Exception invoking getAdmin()",
+                                   e);
+                    return Result.FAILED;
                 }
+                if(logger.isLoggable(Level.FINEST))
+                    logger.finest("Failed to invoke getAdmin() on : "
+                                  + proxy.getClass().getName());
+                return Result.UNREACHABLE;
             }
+        }
+
+        /**
+         * Invoked by the FaultDetectionEngine when the service cannot be
+         * reached
+         */
+        public void failed() {
+            if(logger.isLoggable(Level.FINEST))
+                logger.finest("Unable to invoke getAdmin() on "+
+                              "["+proxy.getClass().getName()+"], "+
+                              "notify listeners and exit");
+            keepAlive = false;
+            notifyListeners();
             terminate();
         }
     }
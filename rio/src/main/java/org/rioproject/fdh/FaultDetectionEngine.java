@@ -0,0 +1,409 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.fdh;
+
+import org.rioproject.config.Constants;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The FaultDetectionEngine schedules the periodic probes performed by
+ * {@link FaultDetectionHandler} implementations. Rather than each
+ * FaultDetectionHandler creating its own thread (or {@link java.util.Timer})
+ * and sleeping between probes, probes for all monitored services are scheduled
+ * on a single {@link TimingWheel}, and run by a bounded pool of probe threads.
+ *
+ * <p>Probes are scheduled with a fixed delay: the next probe for a service is
+ * scheduled once the previous probe has completed, so a service never has
+ * more than one probe outstanding. The delay between probes is randomly
+ * varied by the configured jitter, preventing services registered at the same
+ * time from being probed in lock-step.
+ *
+ * <p>The engine is configured using the following system properties:
+ * <ul>
+ * <li><tt>org.rioproject.fdh.probeThreads</tt>: The maximum number of probes
+ * that run concurrently, defaults to 32
+ * <li><tt>org.rioproject.fdh.tickDuration</tt>: The resolution (in
+ * milliseconds) of the timing wheel, defaults to 100
+ * <li><tt>org.rioproject.fdh.jitter</tt>: The fraction (between 0 and 1) by
+ * which the delay between probes is randomly varied, defaults to 0.1
+ * </ul>
+ */
+public class FaultDetectionEngine {
+    public static final int DEFAULT_PROBE_THREADS = 32;
+    public static final long DEFAULT_TICK_DURATION = 100;
+    public static final double DEFAULT_JITTER = 0.1;
+    private static final int WHEEL_SIZE = 512;
+    private static FaultDetectionEngine instance;
+    private final ThreadPoolExecutor probeExecutor;
+    private final TimingWheel wheel;
+    private final double jitter;
+    private final Random random = new Random();
+    private final Set<Registration> registrations =
+        Collections.newSetFromMap(new ConcurrentHashMap<Registration, Boolean>());
+    private final AtomicLong failuresDetected = new AtomicLong();
+    static final Logger logger = Logger.getLogger(FaultDetectionEngine.class.getName());
+
+    /**
+     * Create a FaultDetectionEngine
+     *
+     * @param probeThreads The maximum number of probes that run concurrently
+     * @param tickDuration The resolution of the timing wheel, in milliseconds
+     * @param jitter The fraction by which the delay between probes is
+     * randomly varied
+     */
+    public FaultDetectionEngine(int probeThreads, long tickDuration, double jitter) {
+        if(probeThreads<1)
+            throw new IllegalArgumentException("probeThreads must be greater than 0");
+        if(jitter<0 || jitter>1)
+            throw new IllegalArgumentException("jitter must be between 0 and 1");
+        this.jitter = jitter;
+        probeExecutor = new ThreadPoolExecutor(probeThreads,
+                                               probeThreads,
+                                               60,
+                                               TimeUnit.SECONDS,
+                                               new LinkedBlockingQueue<Runnable>(),
+                                               new ProbeThreadFactory());
+        probeExecutor.allowCoreThreadTimeOut(true);
+        wheel = new TimingWheel("FaultDetectionEngine:TimingWheel", tickDuration, WHEEL_SIZE, probeExecutor);
+    }
+
+    /**
+     * Get the FaultDetectionEngine shared by all FaultDetectionHandler
+     * instances in this JVM, creating it if needed
+     *
+     * @return The shared FaultDetectionEngine
+     */
+    public static synchronized FaultDetectionEngine getInstance() {
+        if(instance==null) {
+            int probeThreads = Integer.getInteger(Constants.FDH_PROBE_THREADS, DEFAULT_PROBE_THREADS);
+            long tickDuration = Long.getLong(Constants.FDH_TICK_DURATION, DEFAULT_TICK_DURATION);
+            double jitter = DEFAULT_JITTER;
+            String s = System.getProperty(Constants.FDH_JITTER);
+            if(s!=null) {
+                try {
+                    jitter = Math.min(1, Math.max(0, Double.parseDouble(s)));
+                } catch(NumberFormatException e) {
+                    logger.warning("Invalid "+Constants.FDH_JITTER+" value ["+s+"], using "+jitter);
+                }
+            }
+            instance = new FaultDetectionEngine(Math.max(1, probeThreads), Math.max(1, tickDuration), jitter);
+            if(logger.isLoggable(Level.CONFIG))
+                logger.config("FaultDetectionEngine created, probeThreads="+probeThreads+", " +
+                              "tickDuration="+tickDuration+", jitter="+jitter);
+        }
+        return instance;
+    }
+
+    /**
+     * Register a {@link Probe} to be run periodically
+     *
+     * @param name A name for the monitored service, used for logging
+     * @param probe The Probe to run
+     * @param period The delay between probes, in milliseconds
+     * @param retryCount The number of times a failed probe is retried before
+     * the service is declared as having failed
+     * @param retryTimeout The delay between retries, in milliseconds
+     *
+     * @return A Registration for the Probe
+     */
+    public Registration register(String name, Probe probe, long period, int retryCount, long retryTimeout) {
+        if(probe==null)
+            throw new IllegalArgumentException("probe is null");
+        Registration registration = new Registration(name, probe, period, retryCount, retryTimeout);
+        registrations.add(registration);
+        registration.schedule(jitter(period));
+        return registration;
+    }
+
+    /**
+     * Get the current Registration instances
+     *
+     * @return A collection of the current Registration instances. A new
+     * collection is returned each time
+     */
+    public Collection<Registration> getRegistrations() {
+        return new ArrayList<Registration>(registrations);
+    }
+
+    /**
+     * Get the number of probes currently running
+     *
+     * @return The number of probes currently running
+     */
+    public int getActiveProbeCount() {
+        return probeExecutor.getActiveCount();
+    }
+
+    /**
+     * Get the number of probes waiting for a probe thread
+     *
+     * @return The number of probes whose deadline has passed that are waiting
+     * for a probe thread
+     */
+    public int getQueuedProbeCount() {
+        return probeExecutor.getQueue().size();
+    }
+
+    /**
+     * Get the number of failures this engine has detected
+     *
+     * @return The number of registered services declared as failed
+     */
+    public long getFailuresDetected() {
+        return failuresDetected.get();
+    }
+
+    TimingWheel getTimingWheel() {
+        return wheel;
+    }
+
+    /**
+     * Stop the engine, outstanding probes are discarded
+     */
+    public void shutdown() {
+        wheel.stop();
+        probeExecutor.shutdownNow();
+        registrations.clear();
+    }
+
+    private long jitter(long delay) {
+        if(jitter==0 || delay<=0)
+            return delay;
+        double d;
+        synchronized(random) {
+            d = random.nextDouble();
+        }
+        return Math.max(0, (long)(delay*(1+jitter*(2*d-1))));
+    }
+
+    /**
+     * Defines the check performed to determine if a service is reachable.
+     * A Probe is run on a probe thread, it may block (for example invoking
+     * a remote method), but should not sleep.
+     */
+    public interface Probe {
+        /**
+         * The result of a probe
+         */
+        enum Result {
+            /** The service is reachable */
+            REACHABLE,
+            /** The service could not be reached, the probe can be retried */
+            UNREACHABLE,
+            /** The service has failed, do not retry */
+            FAILED
+        }
+
+        /**
+         * Check whether the service can be reached
+         *
+         * @return The Result of the probe
+         */
+        Result probe();
+
+        /**
+         * Notification that the service has been declared as having failed.
+         * The Registration has been cancelled when this method is invoked.
+         */
+        void failed();
+    }
+
+    /**
+     * A Probe registered with the FaultDetectionEngine. A Registration
+     * also provides metrics for the service it monitors.
+     */
+    public class Registration implements Runnable {
+        private final String name;
+        private final Probe probe;
+        private final long period;
+        private final int retryCount;
+        private final long retryTimeout;
+        private volatile TimingWheel.Timeout timeout;
+        private volatile boolean cancelled;
+        private int failures;
+        private long firstFailure;
+        private final AtomicLong probeCount = new AtomicLong();
+        private final AtomicInteger retries = new AtomicInteger();
+        private volatile long lastProbeTime;
+        private volatile long lastProbeDuration;
+        private volatile long detectionLatency = -1;
+
+        Registration(String name, Probe probe, long period, int retryCount, long retryTimeout) {
+            this.name = name;
+            this.probe = probe;
+            this.period = period;
+            this.retryCount = retryCount;
+            this.retryTimeout = retryTimeout;
+        }
+
+        private void schedule(long delay) {
+            if(cancelled)
+                return;
+            try {
+                timeout = wheel.schedule(this, delay);
+            } catch(IllegalStateException e) {
+                if(logger.isLoggable(Level.FINE))
+                    logger.fine("FaultDetectionEngine stopped, unable to schedule probe for ["+name+"]");
+            }
+            /* Check whether we raced with cancel() */
+            if(cancelled && timeout!=null)
+                timeout.cancel();
+        }
+
+        /**
+         * Run the probe, and schedule the next probe or retry. This method
+         * is invoked on a probe thread.
+         */
+        public void run() {
+            if(cancelled)
+                return;
+            long t0 = System.currentTimeMillis();
+            Probe.Result result;
+            try {
+                result = probe.probe();
+            } catch(Throwable t) {
+                logger.log(Level.WARNING, "Probe for ["+name+"] threw an unexpected exception", t);
+                result = Probe.Result.UNREACHABLE;
+            }
+            long t1 = System.currentTimeMillis();
+            probeCount.incrementAndGet();
+            lastProbeTime = t1;
+            lastProbeDuration = t1-t0;
+            if(cancelled)
+                return;
+            if(result==Probe.Result.REACHABLE) {
+                if(failures>0 && logger.isLoggable(Level.FINE))
+                    logger.fine("Re-established connection to ["+name+"] after ["+failures+"] failed probes");
+                failures = 0;
+                schedule(jitter(period));
+                return;
+            }
+            if(failures++==0)
+                firstFailure = t0;
+            if(result==Probe.Result.UNREACHABLE && failures<=retryCount) {
+                retries.incrementAndGet();
+                if(logger.isLoggable(Level.FINEST))
+                    logger.finest("Probe attempt ["+failures+"] for ["+name+"] took ["+(t1-t0)+"] millis to fail, " +
+                                  "retry in ["+retryTimeout+"] millis");
+                schedule(retryTimeout);
+                return;
+            }
+            detectionLatency = t1-firstFailure;
+            failuresDetected.incrementAndGet();
+            if(logger.isLoggable(Level.FINE))
+                logger.fine("Unable to reach ["+name+"] after ["+failures+"] probes, " +
+                            "failure detected in ["+detectionLatency+"] millis");
+            cancel();
+            probe.failed();
+        }
+
+        /**
+         * Cancel the Registration, no further probes are run
+         */
+        public void cancel() {
+            cancelled = true;
+            registrations.remove(this);
+            TimingWheel.Timeout t = timeout;
+            if(t!=null)
+                t.cancel();
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getPeriod() {
+            return period;
+        }
+
+        /**
+         * Get the number of probes that have been run
+         *
+         * @return The number of probes that have been run, including retries
+         */
+        public long getProbeCount() {
+            return probeCount.get();
+        }
+
+        /**
+         * Get the number of retries that have been run
+         *
+         * @return The number of probes run as a retry of a failed probe
+         */
+        public int getRetryCount() {
+            return retries.get();
+        }
+
+        /**
+         * Get the time the last probe completed
+         *
+         * @return The time the last probe completed, or 0 if no probe has run
+         */
+        public long getLastProbeTime() {
+            return lastProbeTime;
+        }
+
+        /**
+         * Get the duration of the last probe
+         *
+         * @return The duration of the last probe, in milliseconds
+         */
+        public long getLastProbeDuration() {
+            return lastProbeDuration;
+        }
+
+        /**
+         * Get the failure detection latency, the time between the start of
+         * the first failed probe and the service being declared as failed
+         *
+         * @return The failure detection latency in milliseconds, or -1 if no
+         * failure has been detected
+         */
+        public long getDetectionLatency() {
+            return detectionLatency;
+        }
+
+        @Override
+        public String toString() {
+            return "Registration ["+name+"], period="+period+", probes="+probeCount+", " +
+                   "retries="+retries+", detectionLatency="+detectionLatency;
+        }
+    }
+
+    private static class ProbeThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "FaultDetectionEngine:Probe-"+count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
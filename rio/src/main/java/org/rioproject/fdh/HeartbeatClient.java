@@ -21,19 +21,28 @@ import net.jini.config.Configuration;
 import net.jini.config.ConfigurationException;
 import net.jini.config.ConfigurationProvider;
 import net.jini.id.Uuid;
+import net.jini.id.UuidFactory;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * The heartbeat client that produces heartbeat broadcasts
+ * The heartbeat client that produces heartbeat broadcasts. Heartbeats are
+ * sent using the transport named by the <tt>heartbeatTransport</tt>
+ * configuration entry: either a TCP connection per heartbeat
+ * (<tt>"tcp"</tt>, the default), or the {@link HeartbeatSender}, which
+ * batches the heartbeats of all services in the JVM into UDP datagrams
+ * (<tt>"udp"</tt>).
  *
  * @author Dennis Reedy
  */
@@ -41,10 +50,17 @@ public class HeartbeatClient {
     private static final long DEFAULT_HEARTBEAT_PERIOD = 1000 * 30;
     public static final String HEARTBEAT_SERVER_KEY = "heartbeatServer";
     public static final String HEARTBEAT_PERIOD_KEY = "heartbeatPeriod";
+    public static final String HEARTBEAT_TRANSPORT_KEY = "heartbeatTransport";
+    public static final String HEARTBEAT_ID_KEY = "heartbeatID";
+    public static final String TCP_TRANSPORT = "tcp";
+    public static final String UDP_TRANSPORT = "udp";
     /** Uuid to send with heartbeat */
     private Uuid uuid;
-    /** The Timer to use for scheduling heartbeat timeout tasks */
+    /** The Timer to use for scheduling TCP heartbeat tasks, created as needed */
     private Timer taskTimer;
+    /** Registrations with the HeartbeatSender for UDP heartbeats */
+    private final List<HeartbeatSender.Registration> registrations =
+        new ArrayList<HeartbeatSender.Registration>();
     /** Component name, used for config and logger */
     private static final String COMPONENT = 
         "org.rioproject.fdh.HeartbeatFaultDetectionHandler";
@@ -58,14 +74,17 @@ public class HeartbeatClient {
      */
     public HeartbeatClient(Uuid uuid) {
         this.uuid = uuid;
-        taskTimer = new Timer(true);
     }
 
     /**
      * Stop sending heartbeats to all heartbeat server instances
      */
-    public void terminate() {
-        taskTimer.cancel();
+    public synchronized void terminate() {
+        if(taskTimer!=null)
+            taskTimer.cancel();
+        for(HeartbeatSender.Registration registration : registrations)
+            registration.cancel();
+        registrations.clear();
     }
 
     /**
@@ -75,7 +94,7 @@ public class HeartbeatClient {
      *
      * @throws ConfigurationException if the configuration cannot be read
      */
-    public void addHeartbeatServer(String[] configArgs)
+    public synchronized void addHeartbeatServer(String[] configArgs)
         throws ConfigurationException {
         Configuration config = ConfigurationProvider.getInstance(configArgs);
         String heartbeatServer = (String)config.getEntry(COMPONENT,
@@ -96,25 +115,47 @@ public class HeartbeatClient {
                                                    DEFAULT_HEARTBEAT_PERIOD,
                                                    0,
                                                    Long.MAX_VALUE);
+        String transport = (String)config.getEntry(COMPONENT,
+                                                   HEARTBEAT_TRANSPORT_KEY,
+                                                   String.class,
+                                                   TCP_TRANSPORT);
+        String heartbeatID = (String)config.getEntry(COMPONENT,
+                                                     HEARTBEAT_ID_KEY,
+                                                     String.class,
+                                                     null);
         
         if(logger.isLoggable(Level.FINEST)) {
             StringBuffer buffer = new StringBuffer();
             buffer.append("HeartbeatClient Properties : ");
             buffer.append("heartbeatPeriod=").append(heartbeatPeriod).append(", ");
             buffer.append("heartbeatServer=").append(heartbeatServer).append(", ");
-            buffer.append("port=").append(port);
+            buffer.append("port=").append(port).append(", ");
+            buffer.append("transport=").append(transport);
             logger.finest(buffer.toString());
         }
         try {
             InetAddress address = InetAddress.getByName(heartbeatServer);
-            taskTimer.scheduleAtFixedRate(new HeartbeatTask(address, port),
-                                          1000,
-                                          heartbeatPeriod);
+            if(UDP_TRANSPORT.equals(transport)) {
+                Uuid id = heartbeatID==null?uuid:UuidFactory.create(heartbeatID);
+                registrations.add(HeartbeatSender.getInstance().register(new InetSocketAddress(address, port),
+                                                                         heartbeatPeriod,
+                                                                         id));
+            } else if(TCP_TRANSPORT.equals(transport)) {
+                if(taskTimer==null)
+                    taskTimer = new Timer(true);
+                taskTimer.scheduleAtFixedRate(new HeartbeatTask(address, port),
+                                              1000,
+                                              heartbeatPeriod);
+            } else {
+                throw new ConfigurationException("Unknown heartbeatTransport ["+transport+"]");
+            }
         } catch(UnknownHostException e) {
             throw new ConfigurationException("heartbeatServer "+ 
                                              "["+heartbeatServer+"] Unknown host", 
                                              e);
-        } 
+        } catch(IOException e) {
+            throw new ConfigurationException("Creating HeartbeatSender", e);
+        }
     }
     /**
      * Scheduled Task which gets submitted to see if the service responds with a
@@ -17,9 +17,10 @@ package org.rioproject.fdh;
 
 import com.sun.jini.config.Config;
 import com.sun.jini.config.ConfigUtil;
+import net.jini.config.ConfigurationException;
 import net.jini.config.ConfigurationProvider;
-import net.jini.core.lookup.ServiceID;
-import net.jini.lookup.LookupCache;
+import net.jini.id.Uuid;
+import net.jini.id.UuidFactory;
 import org.rioproject.jsb.MonitorableService;
 
 import java.io.BufferedInputStream;
@@ -28,9 +29,6 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -63,6 +61,15 @@ import java.util.logging.Logger;
  * TRANSITION_MATCH_NOMATCH transitions.
  *  
  * <p>
+ * By default a server socket is created for each monitored service, and
+ * each heartbeat is sent over a new connection. With the <tt>udp</tt>
+ * transport heartbeats are received by the {@link HeartbeatReceiver}, a
+ * single UDP channel shared by all HeartbeatFaultDetectionHandler instances
+ * in the JVM, and services batch their heartbeats into one datagram per
+ * period. Services must use a version of the {@link HeartbeatClient} that
+ * supports the <tt>udp</tt> transport, older clients send heartbeats over
+ * TCP whatever transport is configured.
+ * <p>
  * <b><font size="+1">Configuring HeartbeatFautDetectionHandler</font></b>
  * <p>
  * This implementation of HeartbeatFautDetectionHandler supports
@@ -72,6 +79,30 @@ import java.util.logging.Logger;
  * <br>
  * <ul>
  * <li><span style="font-weight: bold; font-family: courier
+ * new,courier,monospace;">heartbeatTransport </span> <table cellpadding="2"
+ * cellspacing="2" border="0" style="text-align: left; width: 100%;"> <tbody>
+ * <tr><td style="vertical-align: top; text-align: right; font-weight:
+ * bold;">Type: <br>
+ * </td>
+ * <td style="vertical-align: top;"><code>String</code></td>
+ * </tr>
+ * <tr><td style="vertical-align: top; text-align: right; font-weight:
+ * bold;">Default: <br>
+ * </td>
+ * <td style="vertical-align: top;"><code>"tcp"</code></td>
+ * </tr>
+ * <tr><td style="vertical-align: top; text-align: right; font-weight:
+ * bold;">Description: <br>
+ * </td>
+ * <td style="vertical-align: top;">The transport used to send heartbeats,
+ * either <code>"udp"</code> or <code>"tcp"</code>. The UDP port heartbeats
+ * are received on is set using the <code>org.rioproject.fdh.heartbeatPort</code>
+ * system property</td>
+ * </tr>
+ * </tbody> </table></li>
+ * </ul>
+ * <ul>
+ * <li><span style="font-weight: bold; font-family: courier
  * new,courier,monospace;">serverSocket </span> <table cellpadding="2"
  * cellspacing="2" border="0" style="text-align: left; width: 100%;"> <tbody>
  * <tr><td style="vertical-align: top; text-align: right; font-weight:
@@ -92,7 +123,8 @@ import java.util.logging.Logger;
  * </td>
  * <td style="vertical-align: top;">Creates the <span style="font-family:
  * monospace;">ServerSocket </span> instance with an anonymous port, which will
- * listen for service heartbeats</td>
+ * listen for service heartbeats. Only used by the <code>"tcp"</code>
+ * transport</td>
  * </tr>
  * </tbody> </table></li>
  * </ul>
@@ -154,6 +186,7 @@ public class HeartbeatFaultDetectionHandler extends AbstractFaultDetectionHandle
     public static final String SERVER_SOCKET_KEY = "serverSocket";    
     public static final String HEARTBEAT_PERIOD_KEY = "heartbeatPeriod";
     public static final String HEARTBEAT_GRACE_PERIOD_KEY = "heartbeatGracePeriod";    
+    public static final String HEARTBEAT_TRANSPORT_KEY = HeartbeatClient.HEARTBEAT_TRANSPORT_KEY;
     /** The heartbeat period */
     private long heartbeatPeriod = DEFAULT_HEARTBEAT_PERIOD;
     /**
@@ -161,14 +194,20 @@ public class HeartbeatFaultDetectionHandler extends AbstractFaultDetectionHandle
      * period the Heartbeat will be accepted before its determined as being late
      */
     private long heartbeatGracePeriod = DEFAULT_HEARTBEAT_GRACE_PERIOD;
-    /** The server socket */
+    /** The heartbeat transport */
+    private String transport = HeartbeatClient.TCP_TRANSPORT;
+    /** The server socket, used by the tcp transport */
     private ServerSocket serverSocket;
+    /** The HeartbeatReceiver, used by the udp transport */
+    private HeartbeatReceiver heartbeatReceiver;
+    /** Time the last heartbeat was received */
+    private volatile long lastHeartbeat;
     /** Inner classs which listens for heartbeats */
-    private HeartbeatManager heartbeatManager;    
+    private ServiceMonitor heartbeatManager;    
     /** Modified configuration array with server listening entry added */
     private String[] monitorableConfig;
-    /** The Timer to use for scheduling heartbeat timeout tasks */
-    private Timer taskTimer;
+    /** The registration of the heartbeat timeout check with the FaultDetectionEngine */
+    private volatile FaultDetectionEngine.Registration timeoutRegistration;
     /** Component name, used for config and logger */
     private static final String COMPONENT = 
         "org.rioproject.fdh.HeartbeatFaultDetectionHandler";
@@ -196,34 +235,53 @@ public class HeartbeatFaultDetectionHandler extends AbstractFaultDetectionHandle
                                                         DEFAULT_HEARTBEAT_GRACE_PERIOD,
                                                         0,
                                                         Long.MAX_VALUE));
-            ServerSocket defaultServerSocket = 
-                new ServerSocket(0, 
-                                 50, 
-                                 java.net.InetAddress.getLocalHost());            
-            serverSocket = 
-                (ServerSocket)Config.getNonNullEntry(config,
-                                                     COMPONENT,
-                                                     SERVER_SOCKET_KEY, 
-                                                     ServerSocket.class,
-                                                     defaultServerSocket);
+            transport = (String)Config.getNonNullEntry(config,
+                                                       COMPONENT,
+                                                       HEARTBEAT_TRANSPORT_KEY,
+                                                       String.class,
+                                                       HeartbeatClient.TCP_TRANSPORT);
+            String hostAddress;
+            int port;
+            if(HeartbeatClient.UDP_TRANSPORT.equals(transport)) {
+                heartbeatReceiver = HeartbeatReceiver.getInstance();
+                hostAddress = heartbeatReceiver.getAddress().getAddress().getHostAddress();
+                port = heartbeatReceiver.getAddress().getPort();
+            } else if(HeartbeatClient.TCP_TRANSPORT.equals(transport)) {
+                ServerSocket defaultServerSocket =
+                    new ServerSocket(0,
+                                     50,
+                                     java.net.InetAddress.getLocalHost());
+                serverSocket =
+                    (ServerSocket)Config.getNonNullEntry(config,
+                                                         COMPONENT,
+                                                         SERVER_SOCKET_KEY,
+                                                         ServerSocket.class,
+                                                         defaultServerSocket);
 
-            if(defaultServerSocket.getLocalPort()!=serverSocket.getLocalPort())
-                defaultServerSocket.close();
-            String hostAddress = serverSocket.getInetAddress().getHostAddress();                                    
-            int port = serverSocket.getLocalPort();
-            monitorableConfig = new String[configArgs.length + 1];
+                if(defaultServerSocket.getLocalPort()!=serverSocket.getLocalPort())
+                    defaultServerSocket.close();
+                hostAddress = serverSocket.getInetAddress().getHostAddress();
+                port = serverSocket.getLocalPort();
+            } else {
+                throw new ConfigurationException("Unknown "+HEARTBEAT_TRANSPORT_KEY+" ["+transport+"]");
+            }
+            monitorableConfig = new String[configArgs.length + 2];
             System.arraycopy(configArgs, 0, monitorableConfig, 0,
                              configArgs.length);
             String configEntry = COMPONENT+".heartbeatServer=" + "\""
                                           + hostAddress + ":" + port + "\"";
             monitorableConfig[configArgs.length] = ConfigUtil.concat(
                                                          new Object[]{configEntry});
+            String transportEntry = COMPONENT+"."+HEARTBEAT_TRANSPORT_KEY+"=\""+transport+"\"";
+            monitorableConfig[configArgs.length+1] = ConfigUtil.concat(
+                                                         new Object[]{transportEntry});
             if(logger.isLoggable(Level.FINEST)) {
                 StringBuffer buffer = new StringBuffer();
                 buffer.append("HeartbeatFaultDetectionHandler Properties : ");
                 buffer.append("heartbeatPeriod=").append(heartbeatPeriod).append(", ");
                 buffer.append("heartbeatGracePeriod=").append(heartbeatGracePeriod).append(", ");
-                buffer.append("heartbeatServer=").append(hostAddress).append(":").append(port);
+                buffer.append("heartbeatServer=").append(hostAddress).append(":").append(port).append(", ");
+                buffer.append("heartbeatTransport=").append(transport);
                 logger.finest(buffer.toString());
             }
         } catch(Exception e) {
@@ -232,24 +290,29 @@ public class HeartbeatFaultDetectionHandler extends AbstractFaultDetectionHandle
     }
     
 
-    /**
-     * @see FaultDetectionHandler#monitor
-     */
-    public void monitor(Object proxy, ServiceID id, LookupCache lCache)
-    throws Exception {
-        taskTimer = new Timer(true);
-        super.monitor(proxy, id, lCache);                        
-    }
-    
     /**
      * Override parent's getServiceMonitor() method to create 
      * the ServiceLeaseManager
      */
     protected ServiceMonitor getServiceMonitor() throws Exception {                
         if(proxy instanceof MonitorableService) {
-            if(serverSocket != null) {
+            MonitorableService service = (MonitorableService)proxy;
+            if(heartbeatReceiver != null) {
+                HeartbeatListener listener = new HeartbeatListener();
+                heartbeatManager = listener;
+                /* Send the Uuid we are listening for along with the config */
+                String[] args = new String[monitorableConfig.length+1];
+                System.arraycopy(monitorableConfig, 0, args, 0, monitorableConfig.length);
+                String idEntry = COMPONENT+"."+HeartbeatClient.HEARTBEAT_ID_KEY+"=\""+listener.uuid+"\"";
+                args[monitorableConfig.length] = ConfigUtil.concat(new Object[]{idEntry});
+                try {
+                    service.startHeartbeat(args);
+                } catch(Exception e) {
+                    listener.drop();
+                    throw e;
+                }
+            } else if(serverSocket != null) {
                 heartbeatManager = new HeartbeatManager();
-                MonitorableService service = (MonitorableService)proxy;
                 try {
                     service.startHeartbeat(monitorableConfig);
                 } catch(Exception e) {
@@ -257,7 +320,7 @@ public class HeartbeatFaultDetectionHandler extends AbstractFaultDetectionHandle
                     throw e;
                 }
             } else {
-                logger.warning("No ServerSocket, unable to create HeartbeatManager");
+                logger.warning("No ServerSocket or HeartbeatReceiver, unable to create HeartbeatManager");
             }
         } else {
             logger.info("Service ["+proxy.getClass().getName()+"] not an "+
@@ -273,9 +336,9 @@ public class HeartbeatFaultDetectionHandler extends AbstractFaultDetectionHandle
      */
     public void terminate() {
         super.terminate();
-        if(taskTimer != null) {
-            taskTimer.cancel();
-            taskTimer = null;
+        if(timeoutRegistration != null) {
+            timeoutRegistration.cancel();
+            timeoutRegistration = null;
         }
     }
 
@@ -287,12 +350,90 @@ public class HeartbeatFaultDetectionHandler extends AbstractFaultDetectionHandle
         this.heartbeatGracePeriod = heartbeatGracePeriod;
     }
 
+    /*
+     * Check for heartbeat timeouts every heartbeatPeriod. If the heartbeat is
+     * late, check once more after a further heartbeatPeriod before declaring
+     * the service as failed
+     */
+    private FaultDetectionEngine.Registration scheduleTimeoutCheck(HeartbeatTimeoutCheck hbCheck) {
+        lastHeartbeat = System.currentTimeMillis();
+        FaultDetectionEngine.Registration registration =
+            FaultDetectionEngine.getInstance().register(proxy.getClass().getName(),
+                                                        hbCheck,
+                                                        heartbeatPeriod,
+                                                        1,
+                                                        heartbeatPeriod);
+        timeoutRegistration = registration;
+        if(terminating)
+            registration.cancel();
+        return registration;
+    }
+
+    /**
+     * Receive heartbeats from the MonitorableService using the shared
+     * HeartbeatReceiver
+     */
+    class HeartbeatListener implements ServiceMonitor, HeartbeatReceiver.Listener {
+        final Uuid uuid = UuidFactory.generate();
+        final HeartbeatTimeoutCheck hbCheck = new HeartbeatTimeoutCheck();
+        final FaultDetectionEngine.Registration registration;
+        volatile boolean keepAlive = true;
+        volatile InetAddress remoteAddress;
+        volatile long lastSequence;
+
+        HeartbeatListener() {
+            heartbeatReceiver.register(uuid, this);
+            registration = scheduleTimeoutCheck(hbCheck);
+        }
+
+        public void heartbeat(long sequence, InetAddress from) {
+            lastHeartbeat = System.currentTimeMillis();
+            long last = lastSequence;
+            if(last>0 && sequence>last+1 && logger.isLoggable(Level.FINE))
+                logger.fine("Missed ["+(sequence-last-1)+"] heartbeats from "+from.getHostAddress());
+            if(sequence>last)
+                lastSequence = sequence;
+            if(remoteAddress==null) {
+                remoteAddress = from;
+                hbCheck.remoteAddress = from.getHostAddress();
+            }
+            if(logger.isLoggable(Level.FINEST))
+                logger.finest("Received heartbeat from host="+from.getHostAddress()+", " +
+                              "ID="+uuid+", sequence="+sequence);
+        }
+
+        /**
+         * Verify service can be reached. If the service cannot be reached
+         * return false
+         */
+        public boolean verify() {
+            if(!keepAlive || remoteAddress==null)
+                return (false);
+            boolean verified = false;
+            try {
+                verified = remoteAddress.isReachable(1000);
+            } catch(Exception e) {
+                logger.warning("Exception reaching service, "
+                               + "service cannot be reached");
+            }
+            return (verified);
+        }
+
+        /**
+         * Stop listening for heartbeats, its all over
+         */
+        public void drop() {
+            keepAlive = false;
+            heartbeatReceiver.unregister(uuid);
+            registration.cancel();
+        }
+    }
+
     /**
      * Listen for heartbeats from the MonitorableService
      */
     class HeartbeatManager extends Thread implements ServiceMonitor {
         boolean keepAlive = true;
-        long lastHeartbeat;
         InetAddress remoteAddress;
 
         /**
@@ -347,16 +488,9 @@ public class HeartbeatFaultDetectionHandler extends AbstractFaultDetectionHandle
         }
 
         public void run() {
-            long now = System.currentTimeMillis();
-            lastHeartbeat = now;
-            /* Schedule repeated fixed-delay execution of HeartbeatTimeoutTasks, 
-             * the first execution being the now + heartbeatPeriod. Subsequent 
-             * executions take place at  approximately regular intervals defined 
-             * by the heartbeatPeriod */
-            HeartbeatTimeoutTask hbTask = new HeartbeatTimeoutTask(false);
-            taskTimer.scheduleAtFixedRate(hbTask,
-                                          new Date(now+heartbeatPeriod), 
-                                          heartbeatPeriod);
+            long now;
+            HeartbeatTimeoutCheck hbCheck = new HeartbeatTimeoutCheck();
+            scheduleTimeoutCheck(hbCheck);
             while(!isInterrupted()) {
                 if(!keepAlive) {
                     return;
@@ -378,7 +512,7 @@ public class HeartbeatFaultDetectionHandler extends AbstractFaultDetectionHandle
                         String remoteAddr = (remoteAddress==null?"<unknown>":
                                              remoteAddress.getHostAddress());
                         if(remoteAddress!=null)
-                            hbTask.remoteAddress = remoteAddr;
+                            hbCheck.remoteAddress = remoteAddr;
 
                         logger.finest("Received heartbeat from " +
                                       "host="+remoteAddr+", " +
@@ -399,58 +533,44 @@ public class HeartbeatFaultDetectionHandler extends AbstractFaultDetectionHandle
         }
     }
     /**
-     * Scheduled Task which gets submitted to see if the service responds with a
-     * heartbeat in a certain amount of time
+     * Probe run by the FaultDetectionEngine to see if the service responds
+     * with a heartbeat in a certain amount of time
      */
-    class HeartbeatTimeoutTask extends TimerTask {
-        boolean retry;
-        String remoteAddress;
+    class HeartbeatTimeoutCheck implements FaultDetectionEngine.Probe {
+        volatile String remoteAddress;
 
         /**
-         * Create a HeartbeatTimeoutTask
-         *
-         * @param retry The retry flag, if true schedule a retry if needed
+         * Check whether the last heartbeat was received within the heartbeat
+         * period
          */
-        HeartbeatTimeoutTask(boolean retry) {
-            this.retry = retry;
+        public Result probe() {
+            long period = System.currentTimeMillis() - lastHeartbeat;
+            if(period > (heartbeatPeriod + heartbeatGracePeriod)) {
+                if(logger.isLoggable(Level.FINE))
+                    logger.fine("Heartbeat period exceeded, "
+                                + "check again in ["+heartbeatPeriod+"] millis");
+                return Result.UNREACHABLE;
+            }
+            if(logger.isLoggable(Level.FINEST)) {
+                String s = (remoteAddress==null?"":"from "+remoteAddress);
+                logger.finest("Heartbeat within period "+s);
+            }
+            return Result.REACHABLE;
         }
 
         /**
-         * The action to be performed by this timer task.
+         * The heartbeat has been late twice in a row
          */
-        public void run() {
-            long now = System.currentTimeMillis();
-            long period = now - heartbeatManager.lastHeartbeat;
-            if(period > (heartbeatPeriod + heartbeatGracePeriod)) {
-                if(!retry) {
-                    if(logger.isLoggable(Level.FINE))
-                        logger.fine("Heartbeat period exceeded, "
-                                    + "schedule follow-up task");
-                    HeartbeatTimeoutTask task = new HeartbeatTimeoutTask(true);
-                    if(logger.isLoggable(Level.FINE)) {
-                        logger.fine("HeartbeatTimeoutTask: schedule "
-                                    + "heartbeat timeout task in " + "["
-                                    + heartbeatPeriod + "] millis");
-                    }
-                    taskTimer.schedule(task, new Date(now + heartbeatPeriod));
-                } else {
-                    if(logger.isLoggable(Level.FINE)) {
-                        String s =
-                            (remoteAddress == null?"":" at "+remoteAddress);
-                        logger.fine("Service"+s+" is ambiguous, assume the worst");
-                    }
-                    if(!terminating) {
-                        heartbeatManager.drop();
-                        notifyListeners();
-                        cancel();
-                        terminate();
-                    }
-                }
-            } else {
-                if(logger.isLoggable(Level.FINEST)) {
-                    String s = (remoteAddress==null?"":"from "+remoteAddress);
-                    logger.finest("Heartbeat within period "+s);
-                }
+        public void failed() {
+            if(logger.isLoggable(Level.FINE)) {
+                String s = (remoteAddress == null?"":" at "+remoteAddress);
+                logger.fine("Service"+s+" is ambiguous, assume the worst");
+            }
+            if(!terminating) {
+                if(heartbeatManager != null)
+                    heartbeatManager.drop();
+                notifyListeners();
+                terminate();
             }
         }
     }
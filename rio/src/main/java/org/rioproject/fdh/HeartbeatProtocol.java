@@ -0,0 +1,106 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.fdh;
+
+import net.jini.id.Uuid;
+import net.jini.id.UuidFactory;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoding of the datagrams exchanged by the {@link HeartbeatSender} and the
+ * {@link HeartbeatReceiver}. A datagram is made up of a header followed by a
+ * number of entries:
+ *
+ * <pre>
+ * header : magic (2 bytes), version (1 byte), type (1 byte), count (2 bytes)
+ * entry  : uuid (16 bytes), sequence (8 bytes)
+ * </pre>
+ *
+ * A {@link #HEARTBEAT} datagram carries a heartbeat for each entry. An
+ * {@link #UNKNOWN} datagram is returned by a HeartbeatReceiver for entries it
+ * is not monitoring, telling the HeartbeatSender to stop sending them.
+ */
+final class HeartbeatProtocol {
+    static final short MAGIC = 0x5248;
+    static final byte VERSION = 1;
+    /** Datagram type carrying heartbeats */
+    static final byte HEARTBEAT = 1;
+    /** Datagram type carrying Uuids the receiver is not monitoring */
+    static final byte UNKNOWN = 2;
+    static final int HEADER_SIZE = 6;
+    static final int ENTRY_SIZE = 24;
+    /** Keep datagrams within a typical MTU to avoid fragmentation */
+    static final int MAX_DATAGRAM_SIZE = 1400;
+    static final int MAX_ENTRIES = (MAX_DATAGRAM_SIZE-HEADER_SIZE)/ENTRY_SIZE;
+
+    private HeartbeatProtocol() {
+    }
+
+    static void writeHeader(ByteBuffer buffer, byte type, int count) {
+        buffer.putShort(MAGIC);
+        buffer.put(VERSION);
+        buffer.put(type);
+        buffer.putShort((short)count);
+    }
+
+    static void writeEntry(ByteBuffer buffer, Uuid uuid, long sequence) {
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+        buffer.putLong(sequence);
+    }
+
+    /**
+     * Read the header of a datagram
+     *
+     * @param buffer The datagram, positioned at the header
+     *
+     * @return The type of the datagram, or -1 if the datagram is not
+     * recognized. If the datagram is recognized the buffer is positioned at
+     * the first entry
+     */
+    static int readType(ByteBuffer buffer) {
+        try {
+            if(buffer.getShort()!=MAGIC || buffer.get()!=VERSION)
+                return -1;
+            byte type = buffer.get();
+            int count = buffer.getShort() & 0xffff;
+            if(buffer.remaining()<count*ENTRY_SIZE)
+                return -1;
+            return type;
+        } catch(BufferUnderflowException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Get the number of entries in a datagram
+     *
+     * @param buffer The datagram
+     *
+     * @return The number of entries, read from the header
+     */
+    static int getCount(ByteBuffer buffer) {
+        return buffer.getShort(4) & 0xffff;
+    }
+
+    static Uuid readUuid(ByteBuffer buffer) {
+        long msb = buffer.getLong();
+        long lsb = buffer.getLong();
+        return UuidFactory.create(msb, lsb);
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.fdh;
+
+import net.jini.id.Uuid;
+import org.rioproject.boot.BootUtil;
+import org.rioproject.config.Constants;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receives heartbeats for all services monitored by
+ * {@link HeartbeatFaultDetectionHandler} instances in this JVM, using a single
+ * {@link DatagramChannel}. Heartbeats are dispatched by {@link Uuid} to the
+ * registered {@link Listener}.
+ *
+ * <p>The channel is bound to the address obtained from the
+ * <tt>java.rmi.server.hostname</tt> system property (or the local host
+ * address if not set), and the port set by the
+ * <tt>org.rioproject.fdh.heartbeatPort</tt> system property. If the port is
+ * not set an anonymous port is used.
+ */
+class HeartbeatReceiver implements Runnable {
+    static final Logger logger = Logger.getLogger(HeartbeatReceiver.class.getName());
+    private static HeartbeatReceiver instance;
+    private final DatagramChannel channel;
+    private final InetSocketAddress address;
+    private final ConcurrentMap<Uuid, Listener> listeners = new ConcurrentHashMap<Uuid, Listener>();
+    private final AtomicLong datagramsReceived = new AtomicLong();
+    private final AtomicLong heartbeatsReceived = new AtomicLong();
+    private final AtomicLong unknownHeartbeats = new AtomicLong();
+    private final AtomicLong malformedDatagrams = new AtomicLong();
+
+    /**
+     * Notified of heartbeats received for a Uuid
+     */
+    interface Listener {
+        /**
+         * A heartbeat has been received. This method is invoked on the
+         * receiving thread, and must return quickly.
+         *
+         * @param sequence The heartbeat sequence number
+         * @param from The address the heartbeat was received from
+         */
+        void heartbeat(long sequence, InetAddress from);
+    }
+
+    HeartbeatReceiver(InetSocketAddress bindAddress) throws IOException {
+        channel = DatagramChannel.open();
+        channel.socket().bind(bindAddress);
+        address = (InetSocketAddress)channel.socket().getLocalSocketAddress();
+        Thread t = new Thread(this, "HeartbeatReceiver:"+address.getPort());
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Get the HeartbeatReceiver for this JVM, creating it if needed
+     *
+     * @return The HeartbeatReceiver
+     *
+     * @throws IOException if the DatagramChannel cannot be created
+     */
+    static synchronized HeartbeatReceiver getInstance() throws IOException {
+        if(instance==null) {
+            String host = BootUtil.getHostAddressFromProperty(Constants.RMI_HOST_ADDRESS);
+            int port = Integer.getInteger(Constants.FDH_HEARTBEAT_PORT, 0);
+            instance = new HeartbeatReceiver(new InetSocketAddress(host, port));
+            if(logger.isLoggable(Level.CONFIG))
+                logger.config("HeartbeatReceiver listening on "+instance.address);
+        }
+        return instance;
+    }
+
+    /**
+     * Get the address heartbeats are received on
+     *
+     * @return The address the DatagramChannel is bound to
+     */
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    void register(Uuid uuid, Listener listener) {
+        listeners.put(uuid, listener);
+    }
+
+    void unregister(Uuid uuid) {
+        listeners.remove(uuid);
+    }
+
+    long getDatagramsReceived() {
+        return datagramsReceived.get();
+    }
+
+    long getHeartbeatsReceived() {
+        return heartbeatsReceived.get();
+    }
+
+    long getUnknownHeartbeats() {
+        return unknownHeartbeats.get();
+    }
+
+    long getMalformedDatagrams() {
+        return malformedDatagrams.get();
+    }
+
+    /**
+     * Close the DatagramChannel, no further heartbeats are received
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch(IOException e) {
+            logger.log(Level.FINE, "Closing HeartbeatReceiver", e);
+        }
+    }
+
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocate(HeartbeatProtocol.MAX_DATAGRAM_SIZE*2);
+        while(channel.isOpen()) {
+            SocketAddress from;
+            buffer.clear();
+            try {
+                from = channel.receive(buffer);
+            } catch(ClosedChannelException e) {
+                break;
+            } catch(IOException e) {
+                logger.log(Level.WARNING, "Receiving heartbeat", e);
+                continue;
+            }
+            buffer.flip();
+            datagramsReceived.incrementAndGet();
+            if(HeartbeatProtocol.readType(buffer)!=HeartbeatProtocol.HEARTBEAT) {
+                malformedDatagrams.incrementAndGet();
+                if(logger.isLoggable(Level.FINE))
+                    logger.fine("Discarding unrecognized datagram from "+from);
+                continue;
+            }
+            int count = HeartbeatProtocol.getCount(buffer);
+            InetAddress fromAddress = ((InetSocketAddress)from).getAddress();
+            List<Uuid> unknown = null;
+            for(int i=0; i<count; i++) {
+                Uuid uuid = HeartbeatProtocol.readUuid(buffer);
+                long sequence = buffer.getLong();
+                Listener listener = listeners.get(uuid);
+                if(listener==null) {
+                    unknownHeartbeats.incrementAndGet();
+                    if(unknown==null)
+                        unknown = new ArrayList<Uuid>();
+                    unknown.add(uuid);
+                    continue;
+                }
+                heartbeatsReceived.incrementAndGet();
+                try {
+                    listener.heartbeat(sequence, fromAddress);
+                } catch(Throwable t) {
+                    logger.log(Level.WARNING, "Dispatching heartbeat for "+uuid, t);
+                }
+            }
+            if(unknown!=null)
+                sendUnknown(unknown, from);
+        }
+        if(logger.isLoggable(Level.FINE))
+            logger.fine("HeartbeatReceiver on "+address+" closed");
+    }
+
+    /*
+     * Tell the sender to stop sending heartbeats we are not monitoring
+     */
+    private void sendUnknown(List<Uuid> unknown, SocketAddress to) {
+        ByteBuffer buffer = ByteBuffer.allocate(HeartbeatProtocol.MAX_DATAGRAM_SIZE);
+        int count = Math.min(unknown.size(), HeartbeatProtocol.MAX_ENTRIES);
+        HeartbeatProtocol.writeHeader(buffer, HeartbeatProtocol.UNKNOWN, count);
+        for(int i=0; i<count; i++)
+            HeartbeatProtocol.writeEntry(buffer, unknown.get(i), 0);
+        buffer.flip();
+        try {
+            channel.send(buffer, to);
+        } catch(IOException e) {
+            if(logger.isLoggable(Level.FINE))
+                logger.log(Level.FINE, "Notifying "+to+" of unknown heartbeats", e);
+        }
+    }
+}
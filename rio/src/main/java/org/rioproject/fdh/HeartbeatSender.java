@@ -0,0 +1,293 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.fdh;
+
+import net.jini.id.Uuid;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends heartbeats for all services in this JVM that are monitored using the
+ * UDP heartbeat transport. Heartbeats sent to the same
+ * {@link HeartbeatReceiver} with the same period are batched, each period a
+ * single datagram carries the heartbeats of all services (split only if
+ * the datagram would exceed {@link HeartbeatProtocol#MAX_DATAGRAM_SIZE}).
+ *
+ * <p>A single {@link DatagramChannel} and a single thread are used, regardless
+ * of the number of services and heartbeat servers.
+ *
+ * <p>A receiver replies to heartbeats for a Uuid it is not monitoring. This
+ * happens when a heartbeat arrives before the monitoring handler has
+ * registered, or after the receiver's JVM has restarted. Heartbeats for the
+ * Uuid are only stopped once the receiver has replied to them for
+ * {@link #UNKNOWN_GRACE_PERIODS} heartbeat periods without a break.
+ */
+class HeartbeatSender {
+    static final Logger logger = Logger.getLogger(HeartbeatSender.class.getName());
+    /** Number of heartbeat periods heartbeats for a Uuid are sent while the
+     * receiver replies it is not monitoring the Uuid */
+    static final int UNKNOWN_GRACE_PERIODS = 5;
+    private static HeartbeatSender instance;
+    private final DatagramChannel channel;
+    private final ScheduledExecutorService scheduler;
+    /** Heartbeats grouped by destination and period, guarded by this */
+    private final Map<GroupKey, Group> groups = new HashMap<GroupKey, Group>();
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(HeartbeatProtocol.MAX_DATAGRAM_SIZE);
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(HeartbeatProtocol.MAX_DATAGRAM_SIZE*2);
+    private final AtomicLong datagramsSent = new AtomicLong();
+
+    HeartbeatSender() throws IOException {
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().bind(null);
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "HeartbeatSender");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Get the HeartbeatSender for this JVM, creating it if needed
+     *
+     * @return The HeartbeatSender
+     *
+     * @throws IOException if the DatagramChannel cannot be created
+     */
+    static synchronized HeartbeatSender getInstance() throws IOException {
+        if(instance==null)
+            instance = new HeartbeatSender();
+        return instance;
+    }
+
+    /**
+     * Start sending heartbeats
+     *
+     * @param server The address of the HeartbeatReceiver
+     * @param period The heartbeat period, in milliseconds
+     * @param uuid The Uuid to send
+     *
+     * @return A Registration, used to stop sending heartbeats
+     */
+    synchronized Registration register(InetSocketAddress server, long period, Uuid uuid) {
+        GroupKey key = new GroupKey(server, period);
+        Group group = groups.get(key);
+        if(group==null) {
+            group = new Group(key);
+            groups.put(key, group);
+            long delay = Math.max(1, period);
+            group.future = scheduler.scheduleAtFixedRate(group, delay, delay, TimeUnit.MILLISECONDS);
+        }
+        final Registration registration = new Registration(group, uuid);
+        group.registrations.add(registration);
+        /* Send the first heartbeat now, rather than waiting for the group */
+        scheduler.execute(new Runnable() {
+            public void run() {
+                if(!registration.isCancelled())
+                    send(registration.group.key.server, Collections.singletonList(registration));
+            }
+        });
+        return registration;
+    }
+
+    long getDatagramsSent() {
+        return datagramsSent.get();
+    }
+
+    private synchronized void remove(Registration registration) {
+        Group group = registration.group;
+        group.registrations.remove(registration);
+        if(group.registrations.isEmpty() && groups.get(group.key)==group) {
+            groups.remove(group.key);
+            group.future.cancel(false);
+        }
+    }
+
+    /*
+     * Invoked on the scheduler thread
+     */
+    private void send(InetSocketAddress server, List<Registration> registrations) {
+        int i = 0;
+        while(i<registrations.size()) {
+            int count = Math.min(registrations.size()-i, HeartbeatProtocol.MAX_ENTRIES);
+            sendBuffer.clear();
+            HeartbeatProtocol.writeHeader(sendBuffer, HeartbeatProtocol.HEARTBEAT, count);
+            for(int j=0; j<count; j++) {
+                Registration r = registrations.get(i+j);
+                HeartbeatProtocol.writeEntry(sendBuffer, r.uuid, r.sequence.incrementAndGet());
+            }
+            i += count;
+            sendBuffer.flip();
+            try {
+                if(channel.send(sendBuffer, server)==0) {
+                    if(logger.isLoggable(Level.FINE))
+                        logger.fine("Heartbeat datagram to ["+server+"] not sent, send buffer is full");
+                } else {
+                    datagramsSent.incrementAndGet();
+                }
+            } catch(IOException e) {
+                if(logger.isLoggable(Level.FINE))
+                    logger.log(Level.FINE, "Sending heartbeat datagram to ["+server+"]", e);
+            }
+        }
+        processReplies();
+    }
+
+    /*
+     * Stop sending heartbeats the receiver has told us it is not monitoring
+     */
+    private void processReplies() {
+        while(true) {
+            receiveBuffer.clear();
+            SocketAddress from;
+            try {
+                from = channel.receive(receiveBuffer);
+            } catch(IOException e) {
+                if(logger.isLoggable(Level.FINE))
+                    logger.log(Level.FINE, "Receiving heartbeat reply", e);
+                return;
+            }
+            if(from==null)
+                return;
+            receiveBuffer.flip();
+            if(HeartbeatProtocol.readType(receiveBuffer)!=HeartbeatProtocol.UNKNOWN)
+                continue;
+            int count = HeartbeatProtocol.getCount(receiveBuffer);
+            Set<Uuid> unknown = new HashSet<Uuid>();
+            for(int i=0; i<count; i++) {
+                unknown.add(HeartbeatProtocol.readUuid(receiveBuffer));
+                receiveBuffer.getLong();
+            }
+            List<Registration> cancel = new ArrayList<Registration>();
+            long now = System.currentTimeMillis();
+            synchronized(this) {
+                for(Group group : groups.values()) {
+                    if(!group.key.server.equals(from))
+                        continue;
+                    for(Registration r : group.registrations) {
+                        if(unknown.contains(r.uuid) && r.unknown(now))
+                            cancel.add(r);
+                    }
+                }
+            }
+            for(Registration r : cancel) {
+                if(logger.isLoggable(Level.FINE))
+                    logger.fine("Heartbeat server ["+from+"] is not monitoring "+r.uuid+", " +
+                                "stop sending heartbeats");
+                r.cancel();
+            }
+        }
+    }
+
+    /**
+     * Heartbeats sent for a Uuid to a HeartbeatReceiver
+     */
+    class Registration {
+        final Group group;
+        final Uuid uuid;
+        final AtomicLong sequence = new AtomicLong();
+        private volatile boolean cancelled;
+        /** When the receiver started replying that it is not monitoring
+         * the Uuid, and when it last did, accessed by the scheduler thread */
+        private long unknownSince;
+        private long lastUnknown;
+
+        Registration(Group group, Uuid uuid) {
+            this.group = group;
+            this.uuid = uuid;
+        }
+
+        /**
+         * Stop sending heartbeats
+         */
+        void cancel() {
+            if(cancelled)
+                return;
+            cancelled = true;
+            remove(this);
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        /*
+         * The receiver has replied that it is not monitoring the Uuid. If
+         * there was no reply to a heartbeat in between, the receiver
+         * accepted it, and the grace period starts again.
+         *
+         * Returns true if the grace period has expired
+         */
+        boolean unknown(long now) {
+            long period = Math.max(1, group.key.period);
+            if(unknownSince==0 || now-lastUnknown>2*period)
+                unknownSince = now;
+            lastUnknown = now;
+            return now-unknownSince>=UNKNOWN_GRACE_PERIODS*period;
+        }
+    }
+
+    class Group implements Runnable {
+        final GroupKey key;
+        final List<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+        ScheduledFuture future;
+
+        Group(GroupKey key) {
+            this.key = key;
+        }
+
+        public void run() {
+            if(!registrations.isEmpty())
+                send(key.server, new ArrayList<Registration>(registrations));
+        }
+    }
+
+    static class GroupKey {
+        final InetSocketAddress server;
+        final long period;
+
+        GroupKey(InetSocketAddress server, long period) {
+            this.server = server;
+            this.period = period;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this==o)
+                return true;
+            if(!(o instanceof GroupKey))
+                return false;
+            GroupKey that = (GroupKey)o;
+            return period==that.period && server.equals(that.server);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31*server.hashCode()+(int)(period^(period>>>32));
+        }
+    }
+}
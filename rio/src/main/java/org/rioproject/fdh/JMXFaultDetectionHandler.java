@@ -222,28 +222,27 @@ public class JMXFaultDetectionHandler extends AbstractFaultDetectionHandler {
         this.invocationDelay = invocationDelay;
     }
 
-    class MBeanServerConnectionMonitor extends Thread implements ServiceMonitor {
-        boolean keepAlive = true;
+    class MBeanServerConnectionMonitor implements ServiceMonitor, FaultDetectionEngine.Probe {
+        volatile boolean keepAlive = true;
+        volatile FaultDetectionEngine.Registration registration;
 
         MBeanServerConnectionMonitor() {
-            super("MBeanServerConnectionMonitor:"+ System.currentTimeMillis());
-            setDaemon(true);
-            start();
-        }
-
-        @Override
-        public void interrupt() {
-            if (logger.isLoggable(Level.FINEST))
-                logger.finest("Terminating ServiceMonitor Thread");
-            keepAlive = false;
-            super.interrupt();
+            registration = FaultDetectionEngine.getInstance().register(jmxConnection,
+                                                                       this,
+                                                                       invocationDelay,
+                                                                       retryCount,
+                                                                       retryTimeout);
         }
 
         /**
          * Its all over
          */
         public void drop() {
-            interrupt();
+            if (logger.isLoggable(Level.FINEST))
+                logger.finest("Terminating ServiceMonitor");
+            keepAlive = false;
+            if (registration != null)
+                registration.cancel();
         }
 
         /**
@@ -298,70 +297,28 @@ public class JMXFaultDetectionHandler extends AbstractFaultDetectionHandler {
             return (verified);
         }
 
-        public void run() {
-            while (!interrupted()) {
-                if (!keepAlive) {
-                    return;
-                }
-                if (logger.isLoggable(Level.FINEST))
-                    logger.finest("Wait for " +
-                                  "[" + invocationDelay + "] millis " +
-                                  "to obtain MBeanServerConnection for " +
-                                  jmxConnection);
-                try {
-                    sleep(invocationDelay);
-                } catch (InterruptedException ie) {
-                    /* should not happen */
-                } catch (IllegalArgumentException iae) {
-                    logger.warning("Sleep time is off : "+ invocationDelay);
-                }
+        /**
+         * Invoked by the FaultDetectionEngine to obtain an
+         * MBeanServerConnection. A failure that is not fatal is retried by
+         * the FaultDetectionEngine.
+         */
+        public Result probe() {
+            if (verify())
+                return Result.REACHABLE;
+            return keepAlive ? Result.UNREACHABLE : Result.FAILED;
+        }
 
-                /*
-                * If we failed to invoke the method and the failure is
-                * not fatal, retry
-                */
-                if (!verify()) {
-                    if (logger.isLoggable(Level.FINEST))
-                        logger.finest("Unable create MBeanServerConnection to " +
-                                      "" + jmxConnection +
-                                      ", retry [" + retryCount + "] " +
-                                      "times, waiting [" + retryTimeout + "] " +
-                                      "millis between attempts");
-                    boolean connected = false;
-                    for (int i = 0; i < retryCount; i++) {
-                        long t0 = System.currentTimeMillis();
-                        connected = verify();
-                        if (!connected) {
-                            long t1 = System.currentTimeMillis();
-                            if (logger.isLoggable(Level.FINEST))
-                                logger.finest(
-                                    "Invocation attempt [" + i + "] " +
-                                    "took [" + (t1 - t0) + "] " +
-                                    "millis to fail");
-                            if (retryTimeout > 0) {
-                                try {
-                                    sleep(retryTimeout);
-                                } catch (InterruptedException ie) {
-                                    /* should not happen */
-                                }
-                            }
-                        }
-                    }
-                    if (!connected) {
-                        keepAlive = false;
-                        if (logger.isLoggable(Level.FINEST)) {
-                            logger.finest(
-                                "Unable create MBeanServerConnection to " +
-                                jmxConnection +", notify listeners and exit");
-                        }
-                        notifyListeners();
-                        break;
-                    }
-                } //else {
-                  //  notifyListeners();
-                  //  break;
-                //}
+        /**
+         * Invoked by the FaultDetectionEngine when the MBeanServerConnection
+         * cannot be obtained
+         */
+        public void failed() {
+            if (logger.isLoggable(Level.FINEST)) {
+                logger.finest("Unable create MBeanServerConnection to " +
+                              jmxConnection + ", notify listeners and exit");
             }
+            keepAlive = false;
+            notifyListeners();
             terminate();
         }
     }
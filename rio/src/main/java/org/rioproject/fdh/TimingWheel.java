@@ -0,0 +1,194 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.fdh;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timing wheel. A single thread advances the wheel once every tick,
+ * and hands tasks whose deadline has passed to an {@link Executor}. Scheduling
+ * and cancelling a task are constant time operations, allowing a large number
+ * of timeouts to be tracked without a thread or {@link java.util.Timer} for
+ * each.
+ *
+ * <p>Tasks are expired with a resolution of one tick, a task never runs
+ * before its deadline.
+ */
+class TimingWheel {
+    static final Logger logger = Logger.getLogger(TimingWheel.class.getName());
+    private final long tickDuration;
+    private final List<Timeout>[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+    private final Executor executor;
+    private final Thread worker;
+    private final long startTime;
+    private long tick;
+    private volatile boolean running = true;
+
+    /**
+     * Create and start a TimingWheel
+     *
+     * @param name The name to use for the worker thread
+     * @param tickDuration The duration of a tick in milliseconds
+     * @param wheelSize The number of buckets in the wheel, rounded up to a
+     * power of two
+     * @param executor The Executor expired tasks are handed to
+     */
+    @SuppressWarnings("unchecked")
+    TimingWheel(String name, long tickDuration, int wheelSize, Executor executor) {
+        if(tickDuration<=0)
+            throw new IllegalArgumentException("tickDuration must be greater than 0");
+        if(wheelSize<=0)
+            throw new IllegalArgumentException("wheelSize must be greater than 0");
+        if(executor==null)
+            throw new IllegalArgumentException("executor is null");
+        int size = 1;
+        while(size<wheelSize)
+            size <<= 1;
+        this.tickDuration = tickDuration;
+        this.executor = executor;
+        wheel = new List[size];
+        for(int i=0; i<size; i++)
+            wheel[i] = new LinkedList<Timeout>();
+        mask = size-1;
+        startTime = System.currentTimeMillis();
+        worker = new Thread(new Worker(), name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedule a task to run after a delay
+     *
+     * @param task The task to run
+     * @param delay The delay in milliseconds
+     *
+     * @return A Timeout that can be used to cancel the task
+     */
+    Timeout schedule(Runnable task, long delay) {
+        if(task==null)
+            throw new IllegalArgumentException("task is null");
+        if(!running)
+            throw new IllegalStateException("TimingWheel has been stopped");
+        Timeout timeout = new Timeout(task, System.currentTimeMillis()+Math.max(0, delay));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Get the duration of a tick
+     *
+     * @return The duration of a tick in milliseconds
+     */
+    long getTickDuration() {
+        return tickDuration;
+    }
+
+    /**
+     * Stop the worker thread. Scheduled tasks are discarded.
+     */
+    void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    /**
+     * A task scheduled on the TimingWheel
+     */
+    static class Timeout {
+        final Runnable task;
+        final long deadline;
+        long rounds;
+        private volatile boolean cancelled;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task. If the task has already been handed to the
+         * executor this has no effect.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while((timeout = pending.poll())!=null) {
+            if(timeout.isCancelled())
+                continue;
+            long ticks = (timeout.deadline-startTime+tickDuration-1)/tickDuration;
+            long target = Math.max(ticks, tick);
+            timeout.rounds = (target-tick)/wheel.length;
+            wheel[(int)(target & mask)].add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> bucket) {
+        for(Iterator<Timeout> it = bucket.iterator(); it.hasNext();) {
+            Timeout timeout = it.next();
+            if(timeout.isCancelled()) {
+                it.remove();
+            } else if(timeout.rounds>0) {
+                timeout.rounds--;
+            } else {
+                it.remove();
+                try {
+                    executor.execute(timeout.task);
+                } catch(RejectedExecutionException e) {
+                    logger.log(Level.WARNING, "Executing expired task, task discarded", e);
+                }
+            }
+        }
+    }
+
+    class Worker implements Runnable {
+        public void run() {
+            while(running) {
+                long deadline = startTime+(tick+1)*tickDuration;
+                long sleep = deadline-System.currentTimeMillis();
+                if(sleep>0) {
+                    try {
+                        Thread.sleep(sleep);
+                    } catch(InterruptedException e) {
+                        if(!running)
+                            break;
+                    }
+                    continue;
+                }
+                transferPending();
+                expire(wheel[(int)(tick & mask)]);
+                tick++;
+            }
+        }
+    }
+}
@@ -41,6 +41,7 @@ import org.rioproject.cybernode.ServiceBeanLoader;
 import org.rioproject.log.LoggerConfig;
 import org.rioproject.resources.client.DiscoveryManagementPool;
 import org.rioproject.resources.client.LookupCachePool;
+import org.rioproject.resources.client.ServiceDirectory;
 import org.rioproject.resources.servicecore.Destroyer;
 import org.rioproject.sla.ServiceLevelAgreements;
 import org.rioproject.system.ComputeResource;
@@ -239,6 +240,7 @@ public class ServiceBeanActivation {
             /* Set the Configuration for the DiscoveryManagementPool */
             DiscoveryManagementPool.getInstance().setConfiguration(config);
             LookupCachePool.getInstance().setConfiguration(config);
+            ServiceDirectory.getInstance().setConfiguration(config);
         } finally {
             Thread.currentThread().setContextClassLoader(cCL);
         }
@@ -125,8 +125,21 @@ public class ServiceBeanSLAManager {
             if (wds.length > 0) {
                 identifier = wds[0].getName();
             }
-            SLAPolicyHandler handler = null;
             ServiceElement elem = context.getServiceElement();
+            /* An SLA of the form statistic(watch) is evaluated by the
+             * ProvisionMonitor against the watch aggregated across all
+             * instances. Only create the watch, each instance must not act
+             * on it as well */
+            if (SLA.parseAggregate(sla.getIdentifier()) != null) {
+                if (logger.isLoggable(Level.FINEST))
+                    logger.finest("["+elem.getName()+"] " +
+                                  "SLA [" + sla.getIdentifier() + "] is " +
+                                  "evaluated by the ProvisionMonitor, no " +
+                                  "SLAPolicyHandler created");
+                injectWatches(sla);
+                continue;
+            }
+            SLAPolicyHandler handler = null;
             /* Check if the SLA matches a MeasurableCapability.  */
             MeasurableCapability mCap = getMeasurableCapability(identifier);
             if (mCap != null) {
@@ -221,18 +234,7 @@ public class ServiceBeanSLAManager {
                         createSLAPolicyHandler(sla,
                                                impl.getClass().getClassLoader());
                     /* Inject watch if necessary */
-                    for (WatchDescriptor wd : wds) {
-                        try {
-                            watchInjector.inject(wd);
-                        } catch (ConfigurationException e) {
-                            logger.log(Level.WARNING,
-                                       "Injecting Watch " +
-                                       "[" + wd.getName() + "] " +
-                                       "for SLA " +
-                                       "[" + sla.getIdentifier() + "]",
-                                       e);
-                        }
-                    }
+                    injectWatches(sla);
                 } catch (Exception e) {
                     logger.log(Level.WARNING,
                                "Creating SLAPolicyHandler for SLA " +
@@ -269,6 +271,13 @@ public class ServiceBeanSLAManager {
          * a current Watch */
         ArrayList<SLA> toAddList = new ArrayList<SLA>();
         for (SLA sla : slas) {
+            /* SLAs evaluated by the ProvisionMonitor have no
+             * SLAPolicyHandler, only make sure their watches exist */
+            if (SLA.parseAggregate(sla.getIdentifier()) != null) {
+                injectWatches(sla);
+                modifyWatches(sla);
+                continue;
+            }
             SLAPolicyHandler slap = getSLAPolicyHandler(sla);
             if (slap == null) {
                 toAddList.add(sla);
@@ -299,20 +308,7 @@ public class ServiceBeanSLAManager {
                         logger.finest(b.toString());
                     }
                     slap.setSLA(sla);
-                    WatchDescriptor[] wds = sla.getWatchDescriptors();
-                    for (WatchDescriptor wd : wds) {
-                        try {
-                            watchInjector.modify(wd);
-                        } catch (ConfigurationException e) {
-                            logger.log(Level.WARNING,
-                                       "Modifying " +
-                                       "WatchDescriptor " +
-                                       "[" + wd.getName() + "] " +
-                                       "for SLA " +
-                                       "[" + sla.getIdentifier() + "]",
-                                       e);
-                        }
-                    }
+                    modifyWatches(sla);
                 }
             }
         }
@@ -389,6 +385,44 @@ public class ServiceBeanSLAManager {
         return (slappy);
     }
 
+    /*
+     * Inject the watches declared by an SLA. A watch that has already been
+     * injected is left as it is
+     */
+    private void injectWatches(SLA sla) {
+        for (WatchDescriptor wd : sla.getWatchDescriptors()) {
+            try {
+                watchInjector.inject(wd);
+            } catch (Exception e) {
+                logger.log(Level.WARNING,
+                           "Injecting Watch " +
+                           "[" + wd.getName() + "] " +
+                           "for SLA " +
+                           "[" + sla.getIdentifier() + "]",
+                           e);
+            }
+        }
+    }
+
+    /*
+     * Modify the watches declared by an SLA
+     */
+    private void modifyWatches(SLA sla) {
+        for (WatchDescriptor wd : sla.getWatchDescriptors()) {
+            try {
+                watchInjector.modify(wd);
+            } catch (ConfigurationException e) {
+                logger.log(Level.WARNING,
+                           "Modifying " +
+                           "WatchDescriptor " +
+                           "[" + wd.getName() + "] " +
+                           "for SLA " +
+                           "[" + sla.getIdentifier() + "]",
+                           e);
+            }
+        }
+    }
+
     /*
      * Get all SLAPolicyHandler instances
      *
@@ -396,7 +430,7 @@ public class ServiceBeanSLAManager {
      *         each time. If there are no SLAPolicyHandler instances, a
      *         zero-length array is returned
      */
-    private SLAPolicyHandler[] getSLAPolicyHandlers() {
+    SLAPolicyHandler[] getSLAPolicyHandlers() {
         SLAPolicyHandler[] handlers =
             slaPolicyHandlers.toArray(new SLAPolicyHandler[slaPolicyHandlers.size()]);
         return (handlers);
@@ -39,6 +39,8 @@ import org.rioproject.cybernode.ServiceBeanContainer;
 import org.rioproject.cybernode.ServiceBeanContainerListener;
 import org.rioproject.cybernode.ServiceBeanDelegate;
 import org.rioproject.opstring.OpStringFilter;
+import org.rioproject.resources.util.ScheduledTask;
+import org.rioproject.resources.util.TaskScheduler;
 
 import java.io.IOException;
 import java.rmi.RemoteException;
@@ -55,7 +57,7 @@ import java.util.logging.Logger;
  */
 public class LookupCachePool {
     private final List<SDMWrapper> pool = new ArrayList<SDMWrapper>();
-    private Timer taskTimer = new Timer(true);
+    private final Set<CacheTimeout> cacheTimeouts = Collections.synchronizedSet(new HashSet<CacheTimeout>());
     private static final long DEFAULT_CACHE_TIMEOUT=1000*10;
     private long cacheTimeout;
     private ServiceBeanContainerListener containerListener;
@@ -210,9 +212,13 @@ public class LookupCachePool {
         for(SDMWrapper sdmWrapper : sdms) {
             sdmWrapper.sdm.terminate();
         }        
-        if(taskTimer!=null)
-            taskTimer.cancel();
-        taskTimer = null;
+        CacheTimeout[] timeouts;
+        synchronized(cacheTimeouts) {
+            timeouts = cacheTimeouts.toArray(new CacheTimeout[cacheTimeouts.size()]);
+            cacheTimeouts.clear();
+        }
+        for(CacheTimeout timeout : timeouts)
+            timeout.cancel();
         pool.clear();
         singleton = null;        
     }
@@ -229,9 +235,9 @@ public class LookupCachePool {
      * Get an SDMWrapper which matches the sharedName, discovery criteria, or 
      * create one if not found
      */
-    private SDMWrapper getSDMWrapper(String sharedName,
-                                     String[] groupsToMatch, 
-                                     LookupLocator[] locatorsToMatch) 
+    private synchronized SDMWrapper getSDMWrapper(String sharedName,
+                                                  String[] groupsToMatch,
+                                                  LookupLocator[] locatorsToMatch)
     throws IOException, ConfigurationException {
         SDMWrapper sdmWrapper = null;
         SDMWrapper[] sdms = getSDMWrappers();
@@ -270,8 +276,9 @@ public class LookupCachePool {
      * Schedule a CacheTimeout to chec for an unues SharedLookupCache
      */
     void scheduleCacheTimeout(SharedLookupCache cache) {
-        long now = System.currentTimeMillis();
-        taskTimer.schedule(new CacheTimeout(cache), new Date(now+cacheTimeout));
+        CacheTimeout timeout = new CacheTimeout(cache);
+        cacheTimeouts.add(timeout);
+        TaskScheduler.getInstance().schedule(timeout, cacheTimeout);
     }
     
     /**
@@ -416,8 +423,8 @@ public class LookupCachePool {
          *
          * @throws IOException If a LookupCache cannot be created
          */
-        SharedLookupCache getLookupCache(ServiceTemplate templateToMatch,
-                                         boolean create)
+        synchronized SharedLookupCache getLookupCache(ServiceTemplate templateToMatch,
+                                                      boolean create)
         throws IOException {
             SharedLookupCache lCache = null;
             for(Enumeration en=cacheTable.keys(); en.hasMoreElements();) {
@@ -649,7 +656,7 @@ public class LookupCachePool {
     /**
      * Scheduled task to check for a SharedLookupCache that is not being used.
      */
-    static class CacheTimeout extends TimerTask {
+    class CacheTimeout extends ScheduledTask {
         SharedLookupCache cache;
         
         CacheTimeout(SharedLookupCache cache) {
@@ -660,6 +667,7 @@ public class LookupCachePool {
          * @see java.util.TimerTask#run()
          */
         public void run() {
+            cacheTimeouts.remove(this);
             cache.terminate();
         }
         
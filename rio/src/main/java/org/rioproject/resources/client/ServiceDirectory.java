@@ -0,0 +1,446 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.resources.client;
+
+import net.jini.config.Configuration;
+import net.jini.config.EmptyConfiguration;
+import net.jini.core.discovery.LookupLocator;
+import net.jini.core.entry.Entry;
+import net.jini.core.lookup.ServiceID;
+import net.jini.core.lookup.ServiceItem;
+import net.jini.core.lookup.ServiceTemplate;
+import net.jini.discovery.LookupDiscovery;
+import net.jini.lease.LeaseRenewalManager;
+import net.jini.lookup.*;
+import net.jini.lookup.entry.Name;
+import org.rioproject.opstring.OpStringFilter;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A directory of the services registered with the lookup services discovered
+ * using a set of groups and locators. Each set of groups and locators is
+ * served by one {@link LookupCache} that matches all services, and discovered
+ * services are indexed locally by the names of the interfaces they implement.
+ *
+ * <p>Clients obtain a filtered view of the directory, matching services by
+ * interface names, and optionally by service name and OperationalString name.
+ * A view is itself a {@link LookupCache}, so it can be used wherever a
+ * LookupCache is. Since views share the underlying LookupCache, the number of
+ * remote event registrations made with each lookup service does not grow as
+ * views are added.
+ *
+ * <p>Because the underlying LookupCache matches all services, the proxy of
+ * every service registered with the lookup services is downloaded. The
+ * directory is most useful when a JVM has many associations to services
+ * registered with the same lookup services.
+ */
+public class ServiceDirectory {
+    private static ServiceDirectory instance;
+    private final List<Partition> partitions = new ArrayList<Partition>();
+    private Configuration config = EmptyConfiguration.INSTANCE;
+    private static final Logger logger = Logger.getLogger(ServiceDirectory.class.getName());
+
+    /**
+     * Get the ServiceDirectory shared by all clients in this JVM
+     *
+     * @return The shared ServiceDirectory
+     */
+    public static synchronized ServiceDirectory getInstance() {
+        if(instance==null)
+            instance = new ServiceDirectory();
+        return instance;
+    }
+
+    /**
+     * Set the Configuration used to create ServiceDiscoveryManager instances
+     *
+     * @param config The Configuration, must not be null
+     */
+    public synchronized void setConfiguration(Configuration config) {
+        if(config==null)
+            throw new IllegalArgumentException("config is null");
+        this.config = config;
+    }
+
+    /**
+     * Get a view of the directory
+     *
+     * @param groups The groups of the lookup services to discover
+     * @param locators The locators of the lookup services to discover, may
+     * be null
+     * @param interfaceNames The names of the interfaces a service must
+     * implement
+     * @param name The name a service must have, or null to match services
+     * with any name
+     * @param opStringName The name of the OperationalString a service must
+     * belong to. Services that do not belong to any OperationalString also
+     * match. If null, services belonging to any OperationalString match.
+     *
+     * @return A LookupCache for the matching services. When the view is no
+     * longer needed, it must be terminated.
+     *
+     * @throws IOException if discovery management cannot be created
+     */
+    public LookupCache getLookupCache(String[] groups,
+                                      LookupLocator[] locators,
+                                      String[] interfaceNames,
+                                      String name,
+                                      String opStringName) throws IOException {
+        if(interfaceNames==null || interfaceNames.length==0)
+            throw new IllegalArgumentException("interfaceNames must be provided");
+        Partition partition;
+        synchronized(this) {
+            partition = getPartition(groups, locators);
+            if(partition==null) {
+                partition = new Partition(groups, locators);
+                partition.start(config);
+                partitions.add(partition);
+                if(logger.isLoggable(Level.FINE))
+                    logger.fine("Created "+partition);
+            }
+            View view = new View(partition, interfaceNames, name, opStringName);
+            partition.views.add(view);
+            return view;
+        }
+    }
+
+    /**
+     * Get the number of LookupCache instances the directory has created
+     *
+     * @return The number of distinct sets of groups and locators the
+     * directory is serving
+     */
+    public synchronized int getPartitionCount() {
+        return partitions.size();
+    }
+
+    private Partition getPartition(String[] groups, LookupLocator[] locators) {
+        for(Partition partition : partitions) {
+            if(partition.matches(groups, locators))
+                return partition;
+        }
+        return null;
+    }
+
+    synchronized void viewTerminated(View view) {
+        Partition partition = view.partition;
+        partition.views.remove(view);
+        if(partition.views.isEmpty()) {
+            partitions.remove(partition);
+            partition.terminate();
+            if(logger.isLoggable(Level.FINE))
+                logger.fine("Terminated "+partition);
+        }
+    }
+
+    /**
+     * A discovered service, with the names it is indexed by
+     */
+    static class Indexed {
+        final ServiceItem item;
+        final Set<String> types = new HashSet<String>();
+        final Set<String> names = new HashSet<String>();
+
+        Indexed(ServiceItem item) {
+            this.item = item;
+            for(Class c = item.service.getClass(); c!=null; c = c.getSuperclass()) {
+                types.add(c.getName());
+                addInterfaces(c);
+            }
+            if(item.attributeSets!=null) {
+                for(Entry e : item.attributeSets) {
+                    if(e instanceof Name && ((Name)e).name!=null)
+                        names.add(((Name)e).name);
+                }
+            }
+        }
+
+        private void addInterfaces(Class c) {
+            for(Class i : c.getInterfaces()) {
+                if(types.add(i.getName()))
+                    addInterfaces(i);
+            }
+        }
+    }
+
+    /**
+     * The services discovered using a set of groups and locators
+     */
+    static class Partition implements ServiceDiscoveryListener {
+        final String[] groups;
+        final LookupLocator[] locators;
+        final List<View> views = new CopyOnWriteArrayList<View>();
+        /* The indexes are guarded by this */
+        private final Map<ServiceID, Indexed> services = new HashMap<ServiceID, Indexed>();
+        private final Map<String, Set<ServiceID>> byType = new HashMap<String, Set<ServiceID>>();
+        private ServiceDiscoveryManager sdm;
+        private LookupCache cache;
+
+        Partition(String[] groups, LookupLocator[] locators) {
+            this.groups = groups==null?null:groups.clone();
+            this.locators = locators==null?new LookupLocator[0]:locators.clone();
+        }
+
+        void start(Configuration config) throws IOException {
+            try {
+                sdm = new ServiceDiscoveryManager(
+                    DiscoveryManagementPool.getInstance().getDiscoveryManager(null, groups, locators),
+                    new LeaseRenewalManager(config),
+                    config);
+                cache = sdm.createLookupCache(new ServiceTemplate(null, null, null), null, this);
+            } catch(IOException e) {
+                throw e;
+            } catch(Exception e) {
+                IOException ioe = new IOException("Creating LookupCache");
+                ioe.initCause(e);
+                throw ioe;
+            }
+        }
+
+        void terminate() {
+            try {
+                if(cache!=null)
+                    cache.terminate();
+                if(sdm!=null)
+                    sdm.terminate();
+            } catch(IllegalStateException e) {
+                if(logger.isLoggable(Level.FINEST))
+                    logger.log(Level.FINEST, "Terminating ServiceDiscoveryManager", e);
+            }
+            synchronized(this) {
+                services.clear();
+                byType.clear();
+            }
+        }
+
+        boolean matches(String[] groupsToMatch, LookupLocator[] locatorsToMatch) {
+            if(groups==LookupDiscovery.ALL_GROUPS || groupsToMatch==LookupDiscovery.ALL_GROUPS) {
+                if(groups!=groupsToMatch)
+                    return false;
+            } else if(!new HashSet<String>(Arrays.asList(groups)).equals(
+                           new HashSet<String>(Arrays.asList(groupsToMatch)))) {
+                return false;
+            }
+            LookupLocator[] l = locatorsToMatch==null?new LookupLocator[0]:locatorsToMatch;
+            return new HashSet<LookupLocator>(Arrays.asList(locators)).equals(
+                       new HashSet<LookupLocator>(Arrays.asList(l)));
+        }
+
+        synchronized List<ServiceItem> getMatching(View view) {
+            List<ServiceItem> matching = new ArrayList<ServiceItem>();
+            Set<ServiceID> candidates = byType.get(view.interfaceNames[0]);
+            if(candidates!=null) {
+                for(ServiceID id : candidates) {
+                    Indexed indexed = services.get(id);
+                    if(view.matches(indexed))
+                        matching.add(indexed.item);
+                }
+            }
+            return matching;
+        }
+
+        void discard(Object service) {
+            cache.discard(service);
+        }
+
+        public void serviceAdded(ServiceDiscoveryEvent event) {
+            ServiceItem item = event.getPostEventServiceItem();
+            if(item==null || item.service==null)
+                return;
+            Indexed indexed = new Indexed(item);
+            synchronized(this) {
+                index(indexed);
+            }
+            for(View view : views) {
+                if(view.matches(indexed))
+                    view.notifyAdded(item);
+            }
+        }
+
+        public void serviceRemoved(ServiceDiscoveryEvent event) {
+            ServiceItem item = event.getPreEventServiceItem();
+            if(item==null)
+                return;
+            Indexed indexed;
+            synchronized(this) {
+                indexed = unindex(item.serviceID);
+            }
+            if(indexed==null)
+                return;
+            for(View view : views) {
+                if(view.matches(indexed))
+                    view.notifyRemoved(indexed.item);
+            }
+        }
+
+        public void serviceChanged(ServiceDiscoveryEvent event) {
+            ServiceItem post = event.getPostEventServiceItem();
+            if(post==null || post.service==null)
+                return;
+            Indexed indexed = new Indexed(post);
+            Indexed previous;
+            synchronized(this) {
+                previous = unindex(post.serviceID);
+                index(indexed);
+            }
+            for(View view : views) {
+                boolean matched = previous!=null && view.matches(previous);
+                boolean matches = view.matches(indexed);
+                if(matched && matches)
+                    view.notifyChanged(previous.item, post);
+                else if(matched)
+                    view.notifyRemoved(previous.item);
+                else if(matches)
+                    view.notifyAdded(post);
+            }
+        }
+
+        private void index(Indexed indexed) {
+            services.put(indexed.item.serviceID, indexed);
+            for(String type : indexed.types) {
+                Set<ServiceID> ids = byType.get(type);
+                if(ids==null) {
+                    ids = new HashSet<ServiceID>();
+                    byType.put(type, ids);
+                }
+                ids.add(indexed.item.serviceID);
+            }
+        }
+
+        private Indexed unindex(ServiceID serviceID) {
+            Indexed indexed = services.remove(serviceID);
+            if(indexed!=null) {
+                for(String type : indexed.types) {
+                    Set<ServiceID> ids = byType.get(type);
+                    if(ids!=null) {
+                        ids.remove(serviceID);
+                        if(ids.isEmpty())
+                            byType.remove(type);
+                    }
+                }
+            }
+            return indexed;
+        }
+
+        @Override
+        public String toString() {
+            return "ServiceDirectory partition, groups="+
+                   (groups==null?"ALL_GROUPS":Arrays.asList(groups))+", " +
+                   "locators="+Arrays.asList(locators);
+        }
+    }
+
+    /**
+     * A filtered view of a Partition
+     */
+    class View implements LookupCache {
+        final Partition partition;
+        final String[] interfaceNames;
+        final String name;
+        final OpStringFilter opStringFilter;
+        private final List<ServiceDiscoveryListener> listeners =
+            new CopyOnWriteArrayList<ServiceDiscoveryListener>();
+        private volatile boolean terminated;
+
+        View(Partition partition, String[] interfaceNames, String name, String opStringName) {
+            this.partition = partition;
+            this.interfaceNames = interfaceNames.clone();
+            this.name = name;
+            this.opStringFilter = opStringName==null?null:new OpStringFilter(opStringName);
+        }
+
+        boolean matches(Indexed indexed) {
+            for(String interfaceName : interfaceNames) {
+                if(!indexed.types.contains(interfaceName))
+                    return false;
+            }
+            if(name!=null && !indexed.names.contains(name))
+                return false;
+            return opStringFilter==null || opStringFilter.check(indexed.item);
+        }
+
+        public ServiceItem lookup(ServiceItemFilter filter) {
+            ServiceItem[] items = lookup(filter, 1);
+            return items.length==0?null:items[0];
+        }
+
+        public ServiceItem[] lookup(ServiceItemFilter filter, int maxMatches) {
+            if(maxMatches<1)
+                throw new IllegalArgumentException("maxMatches must be greater than 0");
+            List<ServiceItem> matching = new ArrayList<ServiceItem>();
+            for(ServiceItem item : partition.getMatching(this)) {
+                if(filter==null || filter.check(item))
+                    matching.add(item);
+                if(matching.size()==maxMatches)
+                    break;
+            }
+            return matching.toArray(new ServiceItem[matching.size()]);
+        }
+
+        /**
+         * Add a listener. As with a LookupCache, the listener is notified of
+         * the services currently in the view. A service discovered while
+         * the listener is being added may be reported twice.
+         */
+        public void addListener(ServiceDiscoveryListener listener) {
+            if(terminated)
+                throw new IllegalStateException("The LookupCache has been terminated");
+            listeners.add(listener);
+            for(ServiceItem item : partition.getMatching(this))
+                listener.serviceAdded(new ServiceDiscoveryEvent(this, null, item));
+        }
+
+        public void removeListener(ServiceDiscoveryListener listener) {
+            listeners.remove(listener);
+        }
+
+        /**
+         * Discard a service. The service is discarded from the LookupCache
+         * shared by all views, as it would be from a shared LookupCache.
+         */
+        public void discard(Object service) {
+            partition.discard(service);
+        }
+
+        public void terminate() {
+            if(terminated)
+                return;
+            terminated = true;
+            listeners.clear();
+            viewTerminated(this);
+        }
+
+        void notifyAdded(ServiceItem item) {
+            for(ServiceDiscoveryListener listener : listeners)
+                listener.serviceAdded(new ServiceDiscoveryEvent(this, null, item));
+        }
+
+        void notifyRemoved(ServiceItem item) {
+            for(ServiceDiscoveryListener listener : listeners)
+                listener.serviceRemoved(new ServiceDiscoveryEvent(this, item, null));
+        }
+
+        void notifyChanged(ServiceItem pre, ServiceItem post) {
+            for(ServiceDiscoveryListener listener : listeners)
+                listener.serviceChanged(new ServiceDiscoveryEvent(this, pre, post));
+        }
+    }
+}
@@ -22,6 +22,7 @@ import com.sun.jini.thread.ReadersWriter;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -218,6 +219,34 @@ public class PersistentStore {
         }
     }
 
+    /**
+     * Log a batch of updates as a group. Each update is appended to the log,
+     * but the log is only flushed to disk once, after the last update in the
+     * batch has been written.
+     *
+     * @param updates Update arguments, written in iteration order
+     *
+     * @throws IllegalStateException if the current thread does not hold
+     * a non-exclusive mutator lock
+     * @throws IOException If errors accessing the file system occur
+     */
+    public void updateAll(Collection<?> updates) throws IOException {
+        final Long lockStateVal = lockState.get();
+        if(lockStateVal == null || lockStateVal == 0)
+            throw new IllegalStateException("PersistentStrore.updateAll:" +
+                                            "Must acquire mutator lock before calling updateAll()");
+        if(updates.isEmpty())
+            return;
+        synchronized (this) {
+            int remaining = updates.size();
+            for(Object o : updates) {
+                log.update(o, --remaining==0);
+                updateCount++;
+            }
+            snapshotHandler.updatePerformed(updateCount);
+        }
+    }
+
     /**
      * Generate a snapshot, will perform the necessary locking to ensure no
      * threads are mutating the state of the server before creating the 
@@ -0,0 +1,93 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.resources.util;
+
+import java.util.TimerTask;
+import java.util.concurrent.Future;
+
+/**
+ * A task run by the {@link TaskScheduler}.
+ *
+ * <p>A ScheduledTask is a <tt>TimerTask</tt>, so code that cancels tasks or
+ * checks when they are scheduled to run does not change. Cancelling the
+ * task cancels it with the <tt>TaskScheduler</tt>, and
+ * {@link #scheduledExecutionTime()} returns the time the task is (or was
+ * most recently) scheduled to run.
+ */
+public abstract class ScheduledTask extends TimerTask {
+    private volatile Future<?> future;
+    private volatile boolean cancelled;
+    private volatile long scheduledTime;
+
+    /**
+     * Cancel the task. If the task is running it runs to completion, but is
+     * not run again
+     *
+     * @return true if the task was prevented from running at least once
+     */
+    @Override
+    public boolean cancel() {
+        boolean pending = !cancelled && (future==null || !future.isDone());
+        cancelled = true;
+        Future<?> f = future;
+        if(f!=null)
+            f.cancel(false);
+        super.cancel();
+        return pending;
+    }
+
+    /**
+     * Whether the task has been cancelled
+     *
+     * @return true if the task has been cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Get the time the task is scheduled to run at
+     *
+     * @return The time (in milliseconds) the task is scheduled to run at, or
+     * if it is running, the time its current run was scheduled for. If the
+     * task has not been scheduled, 0
+     */
+    @Override
+    public long scheduledExecutionTime() {
+        return scheduledTime;
+    }
+
+    /**
+     * Get the type of the task, used to group the statistics the
+     * <tt>TaskScheduler</tt> keeps
+     *
+     * @return The type of the task, by default the name of its class
+     */
+    public String getType() {
+        return TaskScheduler.getType(this);
+    }
+
+    void setScheduledTime(long scheduledTime) {
+        this.scheduledTime = scheduledTime;
+    }
+
+    void setFuture(Future<?> future) {
+        this.future = future;
+        /* Cancelled before it was scheduled */
+        if(cancelled)
+            future.cancel(false);
+    }
+}
@@ -0,0 +1,497 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.resources.util;
+
+import org.rioproject.config.Constants;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs delayed and periodic tasks on a bounded
+ * <tt>ScheduledThreadPoolExecutor</tt> shared by the JVM, rather than each
+ * component creating its own <tt>java.util.Timer</tt> thread.
+ *
+ * <p>Unlike a <tt>Timer</tt>, a task that throws an exception is logged and
+ * does not stop other tasks (or later runs of a periodic task) from running.
+ * A task that runs for longer than the long task time is logged, and while it
+ * is running an additional thread is added to the pool (up to the maximum
+ * number of threads), so that other tasks continue to run on schedule.
+ *
+ * <p>For each type of task (the class name of the task, or
+ * {@link ScheduledTask#getType()}), the number of runs, the delay between
+ * when a task was scheduled to run and when it ran, and how long it ran for,
+ * are kept and are available as {@link Statistics}.
+ *
+ * <p>The pool is sized using the following system properties:
+ * <ul>
+ * <li><tt>org.rioproject.scheduler.threads</tt>: The number of threads,
+ * defaults to the number of processors, and at least 2
+ * <li><tt>org.rioproject.scheduler.maxThreads</tt>: The maximum number of
+ * threads while tasks are running longer than expected, defaults to 4 times
+ * the number of threads
+ * <li><tt>org.rioproject.scheduler.longTaskTime</tt>: The time (in
+ * milliseconds) after which a task is considered to be running longer than
+ * expected, defaults to 10000
+ * </ul>
+ */
+public class TaskScheduler {
+    static final long DEFAULT_LONG_TASK_TIME = 10*1000;
+    private static TaskScheduler instance;
+    private final ScheduledThreadPoolExecutor executor;
+    private final ScheduledExecutorService watchdog;
+    private final int threads;
+    private final int maxThreads;
+    private final long longTaskTime;
+    private final Set<Runner> running = Collections.newSetFromMap(new ConcurrentHashMap<Runner, Boolean>());
+    private final ConcurrentMap<String, TypeStatistics> statistics = new ConcurrentHashMap<String, TypeStatistics>();
+    private static final Logger logger = Logger.getLogger(TaskScheduler.class.getName());
+
+    /**
+     * Get the TaskScheduler shared by the JVM
+     *
+     * @return The shared TaskScheduler
+     */
+    public static synchronized TaskScheduler getInstance() {
+        if(instance==null) {
+            int threads = Math.max(2, Integer.getInteger(Constants.SCHEDULER_THREADS,
+                                                         Runtime.getRuntime().availableProcessors()));
+            int maxThreads = Math.max(threads, Integer.getInteger(Constants.SCHEDULER_MAX_THREADS, threads*4));
+            long longTaskTime = Long.getLong(Constants.SCHEDULER_LONG_TASK_TIME, DEFAULT_LONG_TASK_TIME);
+            instance = new TaskScheduler("TaskScheduler", threads, maxThreads, longTaskTime);
+        }
+        return instance;
+    }
+
+    /**
+     * Create a TaskScheduler
+     *
+     * @param name The name of the scheduler's threads
+     * @param threads The number of threads to run tasks with
+     * @param maxThreads The maximum number of threads while tasks are running
+     * longer than expected
+     * @param longTaskTime The time (in milliseconds) after which a task is
+     * considered to be running longer than expected
+     */
+    TaskScheduler(final String name, int threads, int maxThreads, long longTaskTime) {
+        if(threads<1)
+            throw new IllegalArgumentException("threads must be at least 1");
+        this.threads = threads;
+        this.maxThreads = Math.max(threads, maxThreads);
+        this.longTaskTime = Math.max(1, longTaskTime);
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name+"-"+count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name+"-Watchdog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long checkPeriod = Math.max(10, this.longTaskTime/4);
+        watchdog.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                checkRunning();
+            }
+        }, checkPeriod, checkPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedule a task to run once
+     *
+     * @param task The task to run
+     * @param delay The delay (in milliseconds) before the task runs
+     *
+     * @return A <tt>ScheduledFuture</tt> that can be used to cancel the task
+     *
+     * @throws RejectedExecutionException if the scheduler has been shut down
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay) {
+        delay = Math.max(0, delay);
+        Runner runner = new Runner(task, System.currentTimeMillis()+delay, 0);
+        return runner.bind(executor.schedule(runner, delay, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Schedule a task to run once
+     *
+     * @param task The task to run
+     * @param time The time the task runs at
+     *
+     * @return A <tt>ScheduledFuture</tt> that can be used to cancel the task
+     *
+     * @throws RejectedExecutionException if the scheduler has been shut down
+     */
+    public ScheduledFuture<?> schedule(Runnable task, Date time) {
+        return schedule(task, time.getTime()-System.currentTimeMillis());
+    }
+
+    /**
+     * Schedule a task to run periodically
+     *
+     * @param task The task to run
+     * @param initialDelay The delay (in milliseconds) before the task first
+     * runs
+     * @param period The time (in milliseconds) between the times the task is
+     * scheduled to run
+     *
+     * @return A <tt>ScheduledFuture</tt> that can be used to cancel the task
+     *
+     * @throws RejectedExecutionException if the scheduler has been shut down
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long initialDelay, long period) {
+        if(period<=0)
+            throw new IllegalArgumentException("period must be greater than 0");
+        initialDelay = Math.max(0, initialDelay);
+        Runner runner = new Runner(task, System.currentTimeMillis()+initialDelay, period);
+        return runner.bind(executor.scheduleAtFixedRate(runner, initialDelay, period, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Schedule a task to run periodically
+     *
+     * @param task The task to run
+     * @param firstTime The time the task first runs at
+     * @param period The time (in milliseconds) between the times the task is
+     * scheduled to run
+     *
+     * @return A <tt>ScheduledFuture</tt> that can be used to cancel the task
+     *
+     * @throws RejectedExecutionException if the scheduler has been shut down
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, Date firstTime, long period) {
+        return scheduleAtFixedRate(task, firstTime.getTime()-System.currentTimeMillis(), period);
+    }
+
+    /**
+     * Get the statistics of each type of task that has been run
+     *
+     * @return The statistics of each type of task
+     */
+    public Collection<Statistics> getStatistics() {
+        List<Statistics> list = new ArrayList<Statistics>();
+        for(TypeStatistics s : statistics.values())
+            list.add(s.snapshot());
+        return list;
+    }
+
+    /**
+     * Get the statistics of a type of task
+     *
+     * @param type The type of task
+     *
+     * @return The statistics of the type of task, or null if no task of the
+     * type has run
+     */
+    public Statistics getStatistics(String type) {
+        TypeStatistics s = statistics.get(type);
+        return s==null?null:s.snapshot();
+    }
+
+    /**
+     * Get the number of threads tasks are currently run with
+     *
+     * @return The number of threads
+     */
+    public int getThreads() {
+        return executor.getCorePoolSize();
+    }
+
+    /**
+     * Shut the scheduler down, tasks that have not run are discarded
+     */
+    void shutdown() {
+        watchdog.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    static String getType(Object task) {
+        Class c = task.getClass();
+        while(c.getSimpleName().length()==0 && c.getEnclosingClass()!=null)
+            c = c.getEnclosingClass();
+        return c.getSimpleName();
+    }
+
+    /*
+     * Log tasks running longer than expected, and add a thread while they
+     * run so other tasks are not delayed. Called by the watchdog
+     */
+    void checkRunning() {
+        long now = System.nanoTime();
+        for(Runner runner : running) {
+            long started = runner.started;
+            if(started==0 || runner.overrun || now-started<TimeUnit.MILLISECONDS.toNanos(longTaskTime))
+                continue;
+            boolean compensate;
+            /* The run may end while it is checked. Whether it is still the
+             * same run is checked, and a thread added for it, holding the
+             * lock the run releases the thread with when it ends */
+            synchronized(this) {
+                if(runner.started!=started || runner.overrun)
+                    continue;
+                runner.overrun = true;
+                compensate = executor.getCorePoolSize()<maxThreads;
+                if(compensate) {
+                    executor.setCorePoolSize(executor.getCorePoolSize()+1);
+                    runner.compensated = true;
+                }
+            }
+            runner.stats.overrun();
+            logger.warning("Task ["+runner.type+"] has been running for "+
+                           TimeUnit.NANOSECONDS.toMillis(now-started)+" ms"+
+                           (compensate?", adding a thread":", at the maximum of "+maxThreads+" threads"));
+        }
+        executor.purge();
+    }
+
+    /*
+     * End a run, removing the thread added while it was long running
+     */
+    private synchronized void ended(Runner runner) {
+        runner.started = 0;
+        runner.overrun = false;
+        if(runner.compensated) {
+            runner.compensated = false;
+            executor.setCorePoolSize(Math.max(threads, executor.getCorePoolSize()-1));
+        }
+    }
+
+    /**
+     * Runs a task, keeping statistics for its type
+     */
+    class Runner implements Runnable {
+        final Runnable task;
+        final String type;
+        final long period;
+        final TypeStatistics stats;
+        long expected;
+        volatile long started;
+        /* Changed holding the TaskScheduler's lock once the run has started */
+        volatile boolean overrun;
+        volatile boolean compensated;
+        private Future<?> future;
+
+        Runner(Runnable task, long expected, long period) {
+            this.task = task;
+            this.period = period;
+            this.expected = expected;
+            type = task instanceof ScheduledTask?((ScheduledTask)task).getType():getType(task);
+            TypeStatistics s = statistics.get(type);
+            if(s==null) {
+                TypeStatistics added = statistics.putIfAbsent(type, s = new TypeStatistics(type));
+                if(added!=null)
+                    s = added;
+            }
+            stats = s;
+            if(task instanceof ScheduledTask)
+                ((ScheduledTask)task).setScheduledTime(expected);
+        }
+
+        ScheduledFuture<?> bind(ScheduledFuture<?> future) {
+            this.future = future;
+            if(task instanceof ScheduledTask)
+                ((ScheduledTask)task).setFuture(future);
+            return future;
+        }
+
+        public void run() {
+            if(task instanceof ScheduledTask && ((ScheduledTask)task).isCancelled()) {
+                if(future!=null)
+                    future.cancel(false);
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long latency = Math.max(0, now-expected);
+            if(task instanceof ScheduledTask)
+                ((ScheduledTask)task).setScheduledTime(expected);
+            started = System.nanoTime();
+            running.add(this);
+            boolean failed = false;
+            try {
+                task.run();
+            } catch(Throwable t) {
+                failed = true;
+                logger.log(Level.WARNING, "Task ["+type+"] failed", t);
+            } finally {
+                long runTime = System.nanoTime()-started;
+                running.remove(this);
+                ended(this);
+                stats.ran(latency, TimeUnit.NANOSECONDS.toMillis(runTime), failed);
+                if(period>0) {
+                    expected += period;
+                    if(task instanceof ScheduledTask)
+                        ((ScheduledTask)task).setScheduledTime(expected);
+                }
+            }
+        }
+    }
+
+    /**
+     * Accumulates the statistics of a type of task
+     */
+    static class TypeStatistics {
+        final String type;
+        long runs;
+        long failures;
+        long overruns;
+        long totalLatency;
+        long maxLatency;
+        long totalRunTime;
+        long maxRunTime;
+
+        TypeStatistics(String type) {
+            this.type = type;
+        }
+
+        synchronized void ran(long latency, long runTime, boolean failed) {
+            runs++;
+            if(failed)
+                failures++;
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+            totalRunTime += runTime;
+            maxRunTime = Math.max(maxRunTime, runTime);
+        }
+
+        synchronized void overrun() {
+            overruns++;
+        }
+
+        synchronized Statistics snapshot() {
+            return new Statistics(type,
+                                  runs,
+                                  failures,
+                                  overruns,
+                                  runs==0?0:(double)totalLatency/runs,
+                                  maxLatency,
+                                  runs==0?0:(double)totalRunTime/runs,
+                                  maxRunTime);
+        }
+    }
+
+    /**
+     * The statistics of a type of task
+     */
+    public static class Statistics {
+        private final String type;
+        private final long runs;
+        private final long failures;
+        private final long overruns;
+        private final double meanLatency;
+        private final long maxLatency;
+        private final double meanRunTime;
+        private final long maxRunTime;
+
+        Statistics(String type,
+                   long runs,
+                   long failures,
+                   long overruns,
+                   double meanLatency,
+                   long maxLatency,
+                   double meanRunTime,
+                   long maxRunTime) {
+            this.type = type;
+            this.runs = runs;
+            this.failures = failures;
+            this.overruns = overruns;
+            this.meanLatency = meanLatency;
+            this.maxLatency = maxLatency;
+            this.meanRunTime = meanRunTime;
+            this.maxRunTime = maxRunTime;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * Get the number of times tasks of the type have run
+         *
+         * @return The number of runs
+         */
+        public long getRuns() {
+            return runs;
+        }
+
+        /**
+         * Get the number of runs that threw an exception
+         *
+         * @return The number of failed runs
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * Get the number of runs that ran longer than the long task time
+         *
+         * @return The number of long runs
+         */
+        public long getOverruns() {
+            return overruns;
+        }
+
+        /**
+         * Get the mean time between when a task was scheduled to run and
+         * when it ran
+         *
+         * @return The mean latency in milliseconds
+         */
+        public double getMeanLatency() {
+            return meanLatency;
+        }
+
+        public long getMaxLatency() {
+            return maxLatency;
+        }
+
+        /**
+         * Get the mean time a task ran for
+         *
+         * @return The mean run time in milliseconds
+         */
+        public double getMeanRunTime() {
+            return meanRunTime;
+        }
+
+        public long getMaxRunTime() {
+            return maxRunTime;
+        }
+
+        @Override
+        public String toString() {
+            return "Statistics{" +
+                   "type='" + type + '\'' +
+                   ", runs=" + runs +
+                   ", failures=" + failures +
+                   ", overruns=" + overruns +
+                   ", meanLatency=" + meanLatency +
+                   ", maxLatency=" + maxLatency +
+                   ", meanRunTime=" + meanRunTime +
+                   ", maxRunTime=" + maxRunTime +
+                   '}';
+        }
+    }
+}
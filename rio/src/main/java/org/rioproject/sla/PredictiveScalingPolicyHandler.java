@@ -0,0 +1,295 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.sla;
+
+import net.jini.config.Configuration;
+import org.rioproject.core.jsb.ServiceBeanContext;
+import org.rioproject.event.EventHandler;
+import org.rioproject.watch.*;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * The PredictiveScalingPolicyHandler extends the {@link ScalingPolicyHandler}
+ * by fitting a short-horizon linear trend (Holt's double exponential
+ * smoothing) to the values recorded by the SLA's watch. If the trend projects
+ * that the upper threshold will be crossed within the prediction horizon, an
+ * increment is requested before the threshold is breached, rather than one
+ * dampening period after it has been.
+ *
+ * <p>An increment is only requested ahead of a breach if the projected value,
+ * less the forecast error at the requested confidence, is above the upper
+ * threshold. After an increment has been requested, whether predicted or
+ * for a breach, no further increments are requested until the cooldown has
+ * passed, so the instances requested have time to come up. Breach
+ * and clear notifications are otherwise handled as they are by the
+ * <tt>ScalingPolicyHandler</tt>.
+ *
+ * <p>The projected value is recorded by a {@link GaugeWatch} with the
+ * identifier of the SLA followed by <tt>.predicted</tt>.
+ *
+ * <p>The PredictiveScalingPolicyHandler supports the following configuration
+ * entries, in addition to the entries supported by the
+ * <tt>ScalingPolicyHandler</tt>; where each configuration entry name is
+ * associated with the component name <code>scalingPolicyHandler</code>
+ * <ul>
+ * <li><tt>predictionHorizon</tt>: How far ahead (in milliseconds) to
+ * project the trend, defaults to 30000
+ * <li><tt>predictionConfidence</tt>: The confidence (between 0.5 and 1)
+ * required that the threshold will be crossed, defaults to 0.9
+ * <li><tt>predictionCooldown</tt>: The time (in milliseconds) after an
+ * increment before another increment is requested, defaults to 60000
+ * <li><tt>predictionMinSamples</tt>: The number of values needed before
+ * predictions are made, defaults to 5
+ * <li><tt>levelSmoothing</tt> and <tt>trendSmoothing</tt>: The smoothing
+ * factors of the level and trend, default to 0.5 and 0.3
+ * </ul>
+ */
+public class PredictiveScalingPolicyHandler extends ScalingPolicyHandler {
+    /** The description of the SLA Handler */
+    private static final String description = "Predictive Scaling Policy Handler";
+    /** Action that indicates an increment has been requested ahead of the
+     * upper threshold being breached */
+    public static final String PREDICTED_INCREMENT = "PREDICTED_INCREMENT";
+    /** Suffix of the identifier of the watch that records predictions */
+    public static final String PREDICTION_SUFFIX = ".predicted";
+    private static final String CONFIG_COMPONENT = "scalingPolicyHandler";
+    private long horizon = 30*1000;
+    private double confidence = 0.9;
+    private double z = TrendPredictor.zScore(confidence);
+    private long cooldown = 60*1000;
+    private int minSamples = 5;
+    private TrendPredictor predictor;
+    private GaugeWatch predictionWatch;
+    private WatchDataSource watchDataSource;
+    private final TrendReplicator replicator = new TrendReplicator();
+    private final AtomicBoolean incrementScheduled = new AtomicBoolean(false);
+    private volatile long cooldownUntil;
+
+    /**
+     * Construct a PredictiveScalingPolicyHandler
+     *
+     * @param sla The SLA for the PredictiveScalingPolicyHandler
+     */
+    public PredictiveScalingPolicyHandler(SLA sla) {
+        super(sla);
+    }
+
+    @Override
+    public String getDescription() {
+        return (description);
+    }
+
+    @Override
+    public void initialize(Object eventSource,
+                           EventHandler eventHandler,
+                           ServiceBeanContext context) {
+        super.initialize(eventSource, eventHandler, context);
+        double alpha = 0.5;
+        double beta = 0.3;
+        try {
+            Configuration config = getConfiguration();
+            horizon = (Long)config.getEntry(CONFIG_COMPONENT, "predictionHorizon", long.class, horizon);
+            confidence = (Double)config.getEntry(CONFIG_COMPONENT, "predictionConfidence", double.class, confidence);
+            cooldown = (Long)config.getEntry(CONFIG_COMPONENT, "predictionCooldown", long.class, cooldown);
+            minSamples = (Integer)config.getEntry(CONFIG_COMPONENT, "predictionMinSamples", int.class, minSamples);
+            alpha = (Double)config.getEntry(CONFIG_COMPONENT, "levelSmoothing", double.class, alpha);
+            beta = (Double)config.getEntry(CONFIG_COMPONENT, "trendSmoothing", double.class, beta);
+        } catch(Exception e) {
+            logger.log(Level.WARNING, "Getting prediction configuration, use defaults", e);
+        }
+        z = TrendPredictor.zScore(confidence);
+        if(predictor==null)
+            predictor = new TrendPredictor(alpha, beta);
+        if(logger.isLoggable(Level.FINE))
+            logger.fine("["+getName()+"] "+
+                        "PredictiveScalingPolicyHandler ["+getID()+"] properties: "+
+                        "horizon="+horizon+", confidence="+confidence+", "+
+                        "cooldown="+cooldown+", minSamples="+minSamples+", "+
+                        "levelSmoothing="+alpha+", trendSmoothing="+beta);
+    }
+
+    /*
+     * Override parent's method to replicate the watch's values to the
+     * predictor
+     */
+    @Override
+    public void setThresholdManager(ThresholdManager thresholdManager) {
+        super.setThresholdManager(thresholdManager);
+        if(context==null)
+            return;
+        Watch watch = context.getWatchRegistry().findWatch(getID());
+        if(watch==null || watch.getWatchDataSource()==watchDataSource)
+            return;
+        removeReplicator();
+        watchDataSource = watch.getWatchDataSource();
+        try {
+            watchDataSource.addWatchDataReplicator(replicator);
+        } catch(RemoteException e) {
+            logger.log(Level.WARNING,
+                       "["+getName()+"] PredictiveScalingPolicyHandler ["+getID()+"]: "+
+                       "adding replicator to watch",
+                       e);
+        }
+        if(predictionWatch==null) {
+            try {
+                predictionWatch = new GaugeWatch(getID()+PREDICTION_SUFFIX, getConfiguration());
+                context.getWatchRegistry().register(predictionWatch);
+            } catch(Exception e) {
+                logger.log(Level.WARNING,
+                           "["+getName()+"] PredictiveScalingPolicyHandler ["+getID()+"]: "+
+                           "creating prediction watch",
+                           e);
+            }
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        removeReplicator();
+        if(predictionWatch!=null && context!=null) {
+            context.getWatchRegistry().deregister(predictionWatch);
+            predictionWatch = null;
+        }
+        super.disconnect();
+    }
+
+    /*
+     * Override parent's method to not increment during the cooldown that
+     * follows a predicted increment. The breach is re-evaluated once the
+     * cooldown has passed
+     */
+    @Override
+    protected void doIncrement() {
+        long remaining = cooldownUntil-System.currentTimeMillis();
+        if(remaining>0) {
+            if(logger.isLoggable(Level.FINE))
+                logger.fine("["+getName()+"] "+
+                            "PredictiveScalingPolicyHandler ["+getID()+"]: "+
+                            "cooling down, re-evaluate increment in "+
+                            "["+remaining+"] millis");
+            schedule(new ScalingTask(true), remaining);
+            return;
+        }
+        super.doIncrement();
+    }
+
+    /*
+     * Override parent's method to start the cooldown when an increment is
+     * requested for a breach, as well as when one is predicted
+     */
+    @Override
+    protected boolean requestIncrement() {
+        return incrementRequested(super.requestIncrement());
+    }
+
+    /*
+     * Start the cooldown if an increment was requested
+     */
+    boolean incrementRequested(boolean requested) {
+        if(requested)
+            cooldownUntil = Math.max(cooldownUntil, System.currentTimeMillis()+cooldown);
+        return requested;
+    }
+
+    /**
+     * Get the value the trend projects for the end of the prediction horizon
+     *
+     * @return The projected value
+     */
+    public double getPredictedValue() {
+        return predictor==null?Double.NaN:predictor.predict(horizon);
+    }
+
+    private void removeReplicator() {
+        if(watchDataSource==null)
+            return;
+        try {
+            watchDataSource.removeWatchDataReplicator(replicator);
+        } catch(RemoteException e) {
+            if(logger.isLoggable(Level.FINEST))
+                logger.log(Level.FINEST, "Removing replicator from watch", e);
+        }
+        watchDataSource = null;
+    }
+
+    /*
+     * Add a value to the trend, and request an increment if the upper
+     * threshold is projected to be crossed within the horizon
+     */
+    void predict(final Calculable calculable) {
+        if(predictor==null)
+            return;
+        predictor.add(calculable.getValue(), calculable.getWhen());
+        double predicted = predictor.predict(horizon);
+        GaugeWatch watch = predictionWatch;
+        if(watch!=null)
+            watch.addValue(predicted);
+        if(!isConnected() || predictor.getSamples()<minSamples)
+            return;
+        ThresholdValues thresholdValues = thresholdManager==null?getSLA():thresholdManager.getThresholdValues();
+        double high = thresholdValues.getCurrentHighThreshold();
+        /* Once the threshold has been breached, the breach is handled by the ScalingPolicyHandler */
+        if(calculable.getValue()>high)
+            return;
+        long now = System.currentTimeMillis();
+        if(now<cooldownUntil || predictor.lowerBound(horizon, z)<=high)
+            return;
+        if(!incrementScheduled.compareAndSet(false, true))
+            return;
+        cooldownUntil = now+cooldown;
+        if(logger.isLoggable(Level.INFO))
+            logger.info("["+getName()+"] "+
+                        "PredictiveScalingPolicyHandler ["+getID()+"]: "+
+                        "value ["+calculable.getValue()+"] "+
+                        "projected ["+predicted+"] in ["+horizon+"] millis, "+
+                        "high ["+high+"] crossed in ~["+predictor.timeToCross(high)+"] millis, "+
+                        "request increment");
+        /* Requesting the increment makes remote calls, do not block the watch */
+        boolean scheduled = schedule(new Runnable() {
+            public void run() {
+                try {
+                    if(isConnected() && requestIncrement())
+                        notifyListeners(new SLAPolicyEvent(PredictiveScalingPolicyHandler.this,
+                                                           getSLA(),
+                                                           PREDICTED_INCREMENT));
+                    else
+                        cooldownUntil = 0;
+                } finally {
+                    incrementScheduled.set(false);
+                }
+            }
+        }, 0);
+        if(!scheduled) {
+            cooldownUntil = 0;
+            incrementScheduled.set(false);
+        }
+    }
+
+    /**
+     * Receives the values added to the SLA's watch
+     */
+    class TrendReplicator implements WatchDataReplicator {
+        public void addCalculable(Calculable calculable) {
+            predict(calculable);
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -20,14 +20,14 @@ import com.sun.jini.admin.DestroyAdmin;
 import net.jini.admin.Administrable;
 import org.rioproject.core.OperationalStringException;
 import org.rioproject.core.jsb.ServiceBeanManager;
+import org.rioproject.resources.util.ScheduledTask;
+import org.rioproject.resources.util.TaskScheduler;
 import org.rioproject.watch.Calculable;
 import org.rioproject.watch.ThresholdEvent;
 import org.rioproject.watch.ThresholdValues;
 
 import java.rmi.RemoteException;
-import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,8 +44,8 @@ public class RedeployPolicyHandler extends SLAPolicyHandler {
     private long upperThresholdDampeningTime;
     /** Dampening value for lower thresholds being crossed */
     private long lowerThresholdDampeningTime;
-    /** The Timer to use for scheduling a redeploy task */
-    private Timer taskTimer;
+    /** Whether the policy handler has been disconnected */
+    private volatile boolean disconnected;
     /** The RedeployTask for process redeploy */
     private RedeployTask redeployTask;
     /** Actions that indicate status of a redeploy request */
@@ -60,7 +60,6 @@ public class RedeployPolicyHandler extends SLAPolicyHandler {
      */
     public RedeployPolicyHandler(SLA sla) {
         super(sla);
-        taskTimer = new Timer(true);
     }
 
     /**
@@ -74,12 +73,12 @@ public class RedeployPolicyHandler extends SLAPolicyHandler {
     }
 
     /**
-     * Override parent's method to shutdown timer
+     * Override parent's method to cancel a scheduled redeploy
      */
     @Override
     public void disconnect() {
-        if(taskTimer != null)
-            taskTimer.cancel();
+        disconnected = true;
+        cancelRedeployTask();
         super.disconnect();
     }
 
@@ -117,10 +116,7 @@ public class RedeployPolicyHandler extends SLAPolicyHandler {
 
             /* Threshold has been cleared */
         } else {
-            if(redeployTask!=null) {
-                redeployTask.cancel();
-                redeployTask = null;
-            }
+            cancelRedeployTask();
         }
         sendSLAThresholdEvent(calculable, thresholdValues, type);
     }
@@ -130,23 +126,27 @@ public class RedeployPolicyHandler extends SLAPolicyHandler {
      * delay value provided, or to relocate immediately
      */
     private void doRedeploy(long delay, String type) {
+        if(disconnected)
+            return;
         if(delay > 0) {
-            redeployTask = new RedeployTask();
-            long now = System.currentTimeMillis();
+            cancelRedeployTask();
+            RedeployTask task = new RedeployTask();
             if(logger.isLoggable(Level.FINE))
                 logger.fine("["+context.getServiceElement().getName()+"] "+
                             "RedeployPolicyHandler ["+getID()+"]: "+
                             "Schedule redeploy task in "+
                             "["+delay+"] millis");
+            synchronized(this) {
+                redeployTask = task;
+            }
             try {
-                taskTimer.schedule(redeployTask, new Date(now+delay));
-            } catch(IllegalStateException e) {
-                logger.log(Level.WARNING,
-                           "Force disconnect of "+
-                           "["+context.getServiceElement().getName()+"] "+
-                           "RedeployPolicyHandler",
-                           e);
-                disconnect();
+                TaskScheduler.getInstance().schedule(task, delay);
+            } catch(RejectedExecutionException e) {
+                cancelRedeployTask();
+                if(logger.isLoggable(Level.FINE))
+                    logger.fine("["+context.getServiceElement().getName()+"] "+
+                                "RedeployPolicyHandler ["+getID()+"]: "+
+                                "unable to schedule redeploy task, "+e.getMessage());
             }
         } else {
             logger.info("["+context.getServiceElement().getName()+"] "+
@@ -157,6 +157,16 @@ public class RedeployPolicyHandler extends SLAPolicyHandler {
     }
 
 
+    /*
+     * Cancel a scheduled RedeployTask
+     */
+    private synchronized void cancelRedeployTask() {
+        if(redeployTask!=null) {
+            redeployTask.cancel();
+            redeployTask = null;
+        }
+    }
+
     /**
      * Perform the redeploy
      */
@@ -212,8 +222,12 @@ public class RedeployPolicyHandler extends SLAPolicyHandler {
      * The RedeployTask is used to schedule a process redeploy be performed at
      * some time in the future.
      */
-    class RedeployTask extends TimerTask {
+    class RedeployTask extends ScheduledTask {
         public void run() {
+            synchronized(RedeployPolicyHandler.this) {
+                if(redeployTask==this)
+                    redeployTask = null;
+            }
             doRedeploy();
         }
     }
@@ -27,15 +27,15 @@ import org.rioproject.config.ExporterConfig;
 import org.rioproject.core.*;
 import org.rioproject.core.jsb.ServiceBeanContext;
 import org.rioproject.event.EventHandler;
+import org.rioproject.resources.util.ScheduledTask;
+import org.rioproject.resources.util.TaskScheduler;
 import org.rioproject.watch.Calculable;
 import org.rioproject.watch.ThresholdEvent;
 import org.rioproject.watch.ThresholdManager;
 import org.rioproject.watch.ThresholdValues;
 
 import java.rmi.RemoteException;
-import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -97,8 +97,8 @@ public class RelocationPolicyHandler extends SLAPolicyHandler
     private long upperThresholdDampeningTime;
     /** Dampening value for lower thresholds being crossed */
     private long lowerThresholdDampeningTime;
-    /** The Timer to use for scheduling a relocation task */
-    private Timer taskTimer;
+    /** Whether the policy handler has been disconnected */
+    private volatile boolean disconnected;
     /** The RelocationTask for incrementing */
     private RelocationTask relocationTask;
     /** Action that indicates an relocation request is pending */
@@ -126,7 +126,6 @@ public class RelocationPolicyHandler extends SLAPolicyHandler
      */
     public RelocationPolicyHandler(SLA sla) {
         super(sla);
-        taskTimer = new Timer(true);
     }
 
     /**
@@ -163,8 +162,8 @@ public class RelocationPolicyHandler extends SLAPolicyHandler
                            e);
         }
         ourRemoteRef = null;
-        if(taskTimer != null)
-            taskTimer.cancel();
+        disconnected = true;
+        cancelRelocationTask();
         super.disconnect();
     }
 
@@ -242,10 +241,7 @@ public class RelocationPolicyHandler extends SLAPolicyHandler
 
         /* Threshold has been cleared */
         } else {
-            if(relocationTask!=null) {
-                relocationTask.cancel();
-                relocationTask = null;
-            }
+            cancelRelocationTask();
         }
         sendSLAThresholdEvent(calculable, thresholdValues, type);
     }
@@ -255,24 +251,27 @@ public class RelocationPolicyHandler extends SLAPolicyHandler
      * dampening value provided, or to relocate immediately
      */
     void fireRelocation(long dampener, String type) {
+        if(disconnected)
+            return;
         if(dampener > 0) {
-            relocationTask = new RelocationTask();
-            long now = System.currentTimeMillis();
+            cancelRelocationTask();
+            RelocationTask task = new RelocationTask();
             if(logger.isLoggable(Level.FINE))
                 logger.fine("["+context.getServiceElement().getName()+"] "+
                             "RelocationPolicyHandler ["+getID()+"]: "+
                             "Schedule relocation task in "+
                             "["+dampener+"] millis");
+            synchronized(this) {
+                relocationTask = task;
+            }
             try {
-                taskTimer.schedule(relocationTask,
-                                   new Date(now+ dampener));
-            } catch(IllegalStateException e) {
-                logger.log(Level.WARNING,
-                           "Force disconnect of "+
-                           "["+context.getServiceElement().getName()+"] "+
-                           "RelocationPolicyHandler",
-                           e);
-                disconnect();
+                TaskScheduler.getInstance().schedule(task, dampener);
+            } catch(RejectedExecutionException e) {
+                cancelRelocationTask();
+                if(logger.isLoggable(Level.FINE))
+                    logger.fine("["+context.getServiceElement().getName()+"] "+
+                                "RelocationPolicyHandler ["+getID()+"]: "+
+                                "unable to schedule relocation task, "+e.getMessage());
             }
         } else {
             if(logger.isLoggable(Level.FINE))
@@ -283,6 +282,16 @@ public class RelocationPolicyHandler extends SLAPolicyHandler
         }
     }
 
+    /*
+     * Cancel a scheduled RelocationTask
+     */
+    private synchronized void cancelRelocationTask() {
+        if(relocationTask!=null) {
+            relocationTask.cancel();
+            relocationTask = null;
+        }
+    }
+
     /**
      * @see org.rioproject.core.ServiceProvisionListener#succeeded
      */
@@ -368,9 +377,13 @@ public class RelocationPolicyHandler extends SLAPolicyHandler
      * The RelocationTask is used to schedule a relocation be performed at
      * some time in the future.
      */
-    class RelocationTask extends TimerTask {
+    class RelocationTask extends ScheduledTask {
 
         public void run() {
+            synchronized(RelocationPolicyHandler.this) {
+                if(relocationTask==this)
+                    relocationTask = null;
+            }
             doRelocate();
         }
     }
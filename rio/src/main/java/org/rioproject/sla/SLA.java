@@ -16,6 +16,7 @@
  */
 package org.rioproject.sla;
 
+import org.rioproject.watch.MergedAggregate;
 import org.rioproject.watch.WatchDescriptor;
 import org.rioproject.watch.ThresholdValues;
 
@@ -217,6 +218,27 @@ public class SLA extends ThresholdValues implements Serializable {
         this.slaPolicyHandler = slaPolicyHandler;
     }    
 
+    /**
+     * Parse an SLA identifier of the form <tt>statistic(watch)</tt>, for
+     * example <tt>p95(latency)</tt>. An SLA with such an identifier is
+     * evaluated by the ProvisionMonitor against the watch aggregated across
+     * all instances of the service, rather than by each instance.
+     *
+     * @param identifier The SLA identifier, must not be null
+     *
+     * @return The statistic and the watch, or null if the identifier is not
+     * of that form
+     */
+    public static String[] parseAggregate(String identifier) {
+        int open = identifier.indexOf('(');
+        if(open<1 || !identifier.endsWith(")") || open==identifier.length()-2)
+            return null;
+        String statistic = identifier.substring(0, open);
+        if(!MergedAggregate.isStatistic(statistic))
+            return null;
+        return new String[]{statistic, identifier.substring(open+1, identifier.length()-1)};
+    }
+
     public String toString() {
         return "SLA {" +
                "ID=" + identifier +
@@ -28,6 +28,8 @@ import org.rioproject.core.*;
 import org.rioproject.core.jsb.ServiceBeanContext;
 import org.rioproject.core.jsb.ServiceElementChangeListener;
 import org.rioproject.event.EventHandler;
+import org.rioproject.resources.util.ScheduledTask;
+import org.rioproject.resources.util.TaskScheduler;
 import org.rioproject.watch.Calculable;
 import org.rioproject.watch.ThresholdEvent;
 import org.rioproject.watch.ThresholdManager;
@@ -35,9 +37,7 @@ import org.rioproject.watch.ThresholdValues;
 
 import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
-import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -80,13 +80,36 @@ import java.util.logging.Logger;
  * ScalablePolicyHandler needs to export itself.</td>
  * </tr>
  * </tbody> </table></li>
+ * <li><span style="font-weight: bold; font-family: courier
+ * new,courier,monospace;">maxScalingStep </span> <br
+ * style="font-family: courier new,courier,monospace;"> <table cellpadding="2"
+ * cellspacing="2" border="0" style="text-align: left; width: 100%;"> <tbody>
+ * <tr><td style="vertical-align: top; text-align: right; font-weight:
+ * bold;">Type: <br>
+ * </td>
+ * <td style="vertical-align: top;">int</td>
+ * </tr>
+ * <tr><td style="vertical-align: top; text-align: right; font-weight:
+ * bold;">Default: <br>
+ * </td>
+ * <td style="vertical-align: top;">1</td>
+ * </tr>
+ * <tr><td style="vertical-align: top; text-align: right; font-weight:
+ * bold;">Description: <br>
+ * </td>
+ * <td style="vertical-align: top;">The maximum number of instances to
+ * request in one increment. The number requested is proportional to how far
+ * the value is above the high threshold (see {@link #getScalingStep}), and
+ * is provisioned using {@link OperationalStringManager#scale}.</td>
+ * </tr>
+ * </tbody> </table></li>
  * </ul>
  *
  * @author Dennis Reedy
  */
 public class ScalingPolicyHandler extends SLAPolicyHandler
         implements
-            ServiceProvisionListener,
+            BulkProvisionListener,
             ServerProxyTrust {
     /** The description of the SLA Handler */
     private static final String description = "Scaling Policy Handler";
@@ -122,8 +145,6 @@ public class ScalingPolicyHandler extends SLAPolicyHandler
     private long upperThresholdDampeningTime;
     /** Dampening value for lower thresholds being crossed */
     private long lowerThresholdDampeningTime;
-    /** The Timer to use for scheduling an increment or decrement task */
-    private Timer taskTimer;
     /** The ScalingTask for incrementing */
     private ScalingTask incrementTask;
     /** The ScalingTask for decrementing */
@@ -136,6 +157,8 @@ public class ScalingPolicyHandler extends SLAPolicyHandler
     private ServiceElementChangeManager svcElementListener;
     /** The number of pending provision requests */
     private int pendingRequests;
+    /** The maximum number of instances to request in one increment */
+    private int maxScalingStep = 1;
     /** Flag to indicate whether this policy handler is 'connected' */
     private boolean connected;
     /** The last calculable */
@@ -155,7 +178,6 @@ public class ScalingPolicyHandler extends SLAPolicyHandler
      */
     public ScalingPolicyHandler(SLA sla) {
         super(sla);
-        taskTimer = new Timer(true);
     }
 
     /*
@@ -194,9 +216,9 @@ public class ScalingPolicyHandler extends SLAPolicyHandler
                            "ScalingPolicyHandler unexport failed",
                            e);
         }
-        if(taskTimer != null)
-            taskTimer.cancel();
         connected = false;
+        cancelIncrementTask();
+        cancelDecrementTask();
         super.disconnect();
     }
 
@@ -242,6 +264,15 @@ public class ScalingPolicyHandler extends SLAPolicyHandler
             }
         }
 
+        try {
+            maxScalingStep = (Integer)getConfiguration().getEntry(CONFIG_COMPONENT,
+                                                                  "maxScalingStep",
+                                                                  int.class,
+                                                                  maxScalingStep);
+        } catch(Exception e) {
+            logger.log(Level.WARNING, "Getting maxScalingStep, use default", e);
+        }
+
         boolean update = (this.context==null);
         this.context = context;
         sElem = context.getServiceElement();
@@ -333,7 +364,8 @@ public class ScalingPolicyHandler extends SLAPolicyHandler
                 buffer.append("maxServices=").append(maxServices).append(", ");
                 buffer.append("minServices=").append(minServices).append(", ");
                 buffer.append("upperThresholdDampeningTime=").append(upperThresholdDampeningTime).append(", ");
-                buffer.append("lowerThresholdDampeningTime=").append(lowerThresholdDampeningTime);
+                buffer.append("lowerThresholdDampeningTime=").append(lowerThresholdDampeningTime).append(", ");
+                buffer.append("maxScalingStep=").append(maxScalingStep);
                 logger.fine(buffer.toString());
             }
         } catch(Exception e) {
@@ -431,16 +463,15 @@ public class ScalingPolicyHandler extends SLAPolicyHandler
                     cancelDecrementTask();
                     if(upperThresholdDampeningTime > 0) {
                         incrementTask = new ScalingTask(true);
-                        long now = System.currentTimeMillis();
                         if(logger.isLoggable(Level.FINE))
                             logger.fine("["+getName()+"] "+
                                         "ScalingPolicyHandler ["+getID()+"]: "+
                                         "Schedule increment task in "+
                                         "["+upperThresholdDampeningTime+"] millis");                        
                         try {
-                            taskTimer.schedule(incrementTask, 
-                                               new Date(now+upperThresholdDampeningTime));
-                        } catch (IllegalStateException e) {
+                            TaskScheduler.getInstance().schedule(incrementTask,
+                                                                 upperThresholdDampeningTime);
+                        } catch (RejectedExecutionException e) {
                             logger.warning("Force disconnect of "+
                                            "["+getName()+"] "+
                                            "ScalingPolicyHandler "+
@@ -581,6 +612,61 @@ public class ScalingPolicyHandler extends SLAPolicyHandler
         notifyListeners(new SLAPolicyEvent(this, getSLA(), INCREMENT_FAILURE));
     }
 
+    /**
+     * @see org.rioproject.core.BulkProvisionListener#completed
+     */
+    public void completed(ServiceElement sElem, ServiceBeanInstance[] instances, int failed)
+    throws RemoteException {
+        /* Failed instances are resubmitted by the provision monitor, and are
+         * counted by its pending requests rather than ours. We are not
+         * notified of them again */
+        pendingRequests = Math.max(0, pendingRequests-(instances.length+failed));
+        if(logger.isLoggable(Level.FINE))
+            logger.fine("["+getName()+"] "+
+                        "ScalingPolicyHandler ["+getID()+"]: "+
+                        "scaling completed, provisioned ["+instances.length+"], "+
+                        "failed ["+failed+"]");
+        for(ServiceBeanInstance instance : instances) {
+            try {
+                notifyListeners(new SLAPolicyEvent(this,
+                                                   getSLA(),
+                                                   INCREMENT_SUCCEEDED,
+                                                   instance.getService()));
+            } catch(Exception e) {
+                logger.log(Level.WARNING,
+                           "Getting service to create SLAPolicyEvent",
+                           e);
+            }
+        }
+        if(failed>0)
+            notifyListeners(new SLAPolicyEvent(this, getSLA(), INCREMENT_FAILURE));
+    }
+
+    /**
+     * Get the number of instances to add or remove to bring a value back
+     * within a threshold, assuming the value is spread evenly across
+     * instances. This is the difference between the current number of
+     * instances and <tt>ceil(instances*value/threshold)</tt>.
+     *
+     * @param instances The current number of instances
+     * @param value The value that has crossed the threshold
+     * @param threshold The threshold that has been crossed
+     * @param maxStep The maximum number of instances to add or remove
+     *
+     * @return The number of instances to add or remove, between 1 and
+     * <tt>maxStep</tt>. If <tt>maxStep</tt> is less than 2, or the number
+     * cannot be computed, 1
+     */
+    public static int getScalingStep(int instances, double value, double threshold, int maxStep) {
+        if(maxStep<2 || instances<1 || threshold<=0 ||
+           Double.isNaN(value) || Double.isInfinite(value))
+            return 1;
+        double step = Math.abs(Math.ceil(instances*value/threshold)-instances);
+        if(step>=maxStep)
+            return maxStep;
+        return Math.max(1, (int)step);
+    }
+
     /**
      * Returns a <code>TrustVerifier</code> which can be used to verify that a
      * given proxy to this policy handler can be trusted
@@ -644,6 +730,17 @@ public class ScalingPolicyHandler extends SLAPolicyHandler
                             lastThresholdValues.getCurrentHighThreshold()+"]");
             return;
         }
+        requestIncrement();
+    }
+
+    /**
+     * Request an increment if the number of instances (including pending
+     * instances) has not reached the maximum number of services
+     *
+     * @return true if the increment was requested
+     */
+    protected boolean requestIncrement() {
+        boolean increment = false;
         try {
             OperationalStringManager opMgr =
                 context.getServiceBeanManager().getOperationalStringManager();
@@ -652,7 +749,7 @@ public class ScalingPolicyHandler extends SLAPolicyHandler
                     logger.fine("["+getName()+"] "+
                                 "No OperationalStringManager, increment " +
                                 "aborted");
-                return;
+                return false;
             }
             ServiceElement elem = getServiceElement();
             ServiceBeanInstance[] instances = opMgr.getServiceBeanInstances(elem);
@@ -661,7 +758,6 @@ public class ScalingPolicyHandler extends SLAPolicyHandler
             
             /* If we have an unbounded maxServices property, always increment. 
              * Otherwise check values to determine if incrementing is needed */
-            boolean increment = false;            
             if(maxServices==SLA.UNDEFINED) {
                 increment = true;
             } else if(maxServices > realTotal && 
@@ -687,13 +783,34 @@ public class ScalingPolicyHandler extends SLAPolicyHandler
                                                    INCREMENT_PENDING));
                 if(ourRemoteRef==null)
                     exportDo();
-                
-                context.getServiceBeanManager().increment(
-                                            (ServiceProvisionListener)ourRemoteRef);
-                if(logger.isLoggable(Level.FINEST))
-                    logger.finest("["+getName()+"] "+
-                                  "Requested increment through ServiceBeanManager");
-                pendingRequests++;
+
+                int step = getIncrementStep(instances.length, realTotal);
+                if(step>1) {
+                    /* Count the requests before they are made, the
+                     * completion may be notified before scale returns */
+                    pendingRequests += step;
+                    int added;
+                    try {
+                        added = opMgr.scale(elem, step, false, (ServiceProvisionListener)ourRemoteRef);
+                    } finally {
+                        pendingRequests -= step;
+                    }
+                    if(logger.isLoggable(Level.FINE))
+                        logger.fine("["+getName()+"] "+
+                                    "ScalingPolicyHandler ["+getID()+"]: "+
+                                    "requested ["+step+"] instances, added ["+added+"]");
+                    if(added>0)
+                        pendingRequests += added;
+                    else
+                        increment = false;
+                } else {
+                    context.getServiceBeanManager().increment(
+                                                (ServiceProvisionListener)ourRemoteRef);
+                    if(logger.isLoggable(Level.FINEST))
+                        logger.finest("["+getName()+"] "+
+                                      "Requested increment through ServiceBeanManager");
+                    pendingRequests++;
+                }
             } else {
                 if(logger.isLoggable(Level.FINE)) {
                     String sMax = (maxServices==SLA.UNDEFINED? "Undefined":
@@ -714,28 +831,84 @@ public class ScalingPolicyHandler extends SLAPolicyHandler
                        "ScalingPolicyHandler ["+getID()+"], "+
                        "force disconnect");            
             disconnect();
+            increment = false;
         } catch(Throwable t) {
             logger.log(Level.WARNING, "INCREMENT FAILED", t);
             notifyListeners(new SLAPolicyEvent(this,
                                                getSLA(),
                                                INCREMENT_FAILURE));
+            increment = false;
+        }
+        return increment;
+    }
+
+    /*
+     * Get the number of instances to request, proportional to how far the
+     * last value is above the high threshold and bounded by the maximum
+     * number of services
+     */
+    private int getIncrementStep(int instances, int realTotal) {
+        if(maxScalingStep<2 || lastCalculable==null)
+            return 1;
+        ThresholdValues thresholdValues = lastThresholdValues==null?getSLA():lastThresholdValues;
+        double high = thresholdValues.getCurrentHighThreshold();
+        if(lastCalculable.getValue()<=high)
+            return 1;
+        int step = getScalingStep(instances, lastCalculable.getValue(), high, maxScalingStep);
+        if(maxServices!=SLA.UNDEFINED)
+            step = Math.min(step, Math.max(1, maxServices-realTotal));
+        return step;
+    }
+
+    /**
+     * Schedule a task using the shared {@link TaskScheduler}
+     *
+     * @param task The task to run
+     * @param delay The delay (in milliseconds) before the task is run
+     *
+     * @return true if the task was scheduled, false if the policy handler
+     * has been disconnected
+     */
+    protected boolean schedule(Runnable task, long delay) {
+        if(!connected)
+            return false;
+        try {
+            TaskScheduler.getInstance().schedule(task, delay);
+            return true;
+        } catch (RejectedExecutionException e) {
+            if(logger.isLoggable(Level.FINE))
+                logger.fine("["+getName()+"] "+
+                            "ScalingPolicyHandler ["+getID()+"]: "+
+                            "unable to schedule task, "+e.getMessage());
+            return false;
         }
     }
 
+    /**
+     * Whether the policy handler is connected
+     *
+     * @return true if the policy handler has been initialized and has not
+     * been disconnected
+     */
+    protected boolean isConnected() {
+        return connected;
+    }
+
     /**
      * Create and schedule a decrement request
      */
     void scheduleDecrement() {
+        if(!connected)
+            return;
         decrementTask = new ScalingTask(false);
-        long now = System.currentTimeMillis();
         logger.fine("["+getName()+"] "+
                     "ScalingPolicyHandler ["+getID()+"]: "+
                     "schedule decrement task in "+
                     "["+lowerThresholdDampeningTime+"] millis");
         try {
-            taskTimer.schedule(decrementTask,
-                               new Date(now+lowerThresholdDampeningTime));
-        } catch (IllegalStateException e) {
+            TaskScheduler.getInstance().schedule(decrementTask,
+                                                 lowerThresholdDampeningTime);
+        } catch (RejectedExecutionException e) {
             logger.log(Level.WARNING,
                        "Force disconnect of ["+getName()+"] "+
                        "ScalingPolicyHandler", 
@@ -873,7 +1046,7 @@ public class ScalingPolicyHandler extends SLAPolicyHandler
      * better control over command to either increase or decrease the number of
      * services the ScalingPolicyHandler is attached to
      */
-    class ScalingTask extends TimerTask {
+    class ScalingTask extends ScheduledTask {
         boolean increment;
 
         /**
@@ -886,6 +1059,11 @@ public class ScalingPolicyHandler extends SLAPolicyHandler
             this.increment = increment;
         }
 
+        @Override
+        public String getType() {
+            return increment?"ScalingPolicyHandler.increment":"ScalingPolicyHandler.decrement";
+        }
+
         /**
          * The action to be performed by this timer task.
          */
@@ -0,0 +1,172 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.sla;
+
+/**
+ * Fits a short-horizon linear trend to a series of values using Holt's
+ * double exponential smoothing, and projects the series forward in time.
+ *
+ * <p>Values may arrive at irregular intervals, the trend is per value and is
+ * converted to time using the smoothed interval between values. The
+ * one-step forecast error is also smoothed, and is used to compute a lower
+ * bound on the projection.
+ */
+class TrendPredictor {
+    private final double alpha;
+    private final double beta;
+    private double level;
+    private double trend;
+    private double errorVariance;
+    private double meanInterval;
+    private long lastWhen;
+    private int samples;
+
+    /**
+     * Create a TrendPredictor
+     *
+     * @param alpha The smoothing factor for the level, between 0 and 1
+     * @param beta The smoothing factor for the trend, between 0 and 1
+     *
+     * @throws IllegalArgumentException if alpha or beta are not between 0
+     * and 1
+     */
+    TrendPredictor(double alpha, double beta) {
+        if(alpha<=0 || alpha>1)
+            throw new IllegalArgumentException("alpha must be greater than 0 and at most 1");
+        if(beta<=0 || beta>1)
+            throw new IllegalArgumentException("beta must be greater than 0 and at most 1");
+        this.alpha = alpha;
+        this.beta = beta;
+    }
+
+    /**
+     * Add a value to the series
+     *
+     * @param value The value
+     * @param when The time (in milliseconds) the value was recorded
+     */
+    synchronized void add(double value, long when) {
+        if(samples==0) {
+            level = value;
+            trend = 0;
+            lastWhen = when;
+            samples = 1;
+            return;
+        }
+        long interval = Math.max(1, when-lastWhen);
+        double error = value-(level+trend);
+        if(samples==1) {
+            meanInterval = interval;
+            trend = value-level;
+            level = value;
+            errorVariance = 0;
+        } else {
+            meanInterval = meanInterval+alpha*(interval-meanInterval);
+            errorVariance = (1-alpha)*errorVariance+alpha*error*error;
+            double previous = level;
+            level = alpha*value+(1-alpha)*(level+trend);
+            trend = beta*(level-previous)+(1-beta)*trend;
+        }
+        lastWhen = when;
+        samples++;
+    }
+
+    /**
+     * Get the number of values added
+     *
+     * @return The number of values added
+     */
+    synchronized int getSamples() {
+        return samples;
+    }
+
+    /**
+     * Get the trend
+     *
+     * @return The change in value per millisecond
+     */
+    synchronized double getSlope() {
+        return samples<2?0:trend/meanInterval;
+    }
+
+    /**
+     * Project the series forward
+     *
+     * @param horizon The time (in milliseconds) past the last value to
+     * project to
+     *
+     * @return The projected value
+     */
+    synchronized double predict(long horizon) {
+        return level+trend*steps(horizon);
+    }
+
+    /**
+     * Project the series forward, less a multiple of the forecast error. The
+     * forecast error is assumed to grow with the square root of the number
+     * of values projected
+     *
+     * @param horizon The time (in milliseconds) past the last value to
+     * project to
+     * @param z The number of standard deviations to subtract
+     *
+     * @return The lower bound of the projected value
+     */
+    synchronized double lowerBound(long horizon, double z) {
+        double steps = steps(horizon);
+        return level+trend*steps-z*Math.sqrt(errorVariance*Math.max(1, steps));
+    }
+
+    /**
+     * Estimate how long until the series crosses a threshold
+     *
+     * @param threshold The threshold
+     *
+     * @return The time (in milliseconds) until the series crosses the
+     * threshold, 0 if it already has, or -1 if the series is not trending
+     * towards the threshold
+     */
+    synchronized long timeToCross(double threshold) {
+        if(samples==0)
+            return -1;
+        if(level>=threshold)
+            return 0;
+        if(samples<2 || trend<=0)
+            return -1;
+        return (long)((threshold-level)/trend*meanInterval);
+    }
+
+    private double steps(long horizon) {
+        return samples<2?0:horizon/meanInterval;
+    }
+
+    /**
+     * Get the number of standard deviations a one-sided confidence level
+     * corresponds to, using the rational approximation of the inverse normal
+     * distribution from Abramowitz and Stegun (26.2.23)
+     *
+     * @param confidence The confidence level, between 0 and 1
+     *
+     * @return The number of standard deviations
+     */
+    static double zScore(double confidence) {
+        if(confidence<=0.5)
+            return 0;
+        double q = 1-Math.min(confidence, 0.999999);
+        double t = Math.sqrt(-2*Math.log(q));
+        return t-(2.515517+0.802853*t+0.010328*t*t)/(1+1.432788*t+0.189269*t*t+0.001308*t*t*t);
+    }
+}
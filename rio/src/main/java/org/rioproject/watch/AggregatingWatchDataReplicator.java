@@ -0,0 +1,192 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.watch;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link WatchDataReplicator} that aggregates the {@link Calculable}s added
+ * to a {@link WatchDataSource} over a {@link SlidingWindow}, and sends only
+ * the window's {@link WindowAggregate} to a
+ * {@link RemoteWindowAggregateListener}, at most once per interval.
+ *
+ * <p>The replicator is serialized to the <tt>WatchDataSource</tt> it is added
+ * to, so values are aggregated in the JVM the watch records them in, rather
+ * than each value being sent to the listener.
+ */
+public class AggregatingWatchDataReplicator implements WatchDataReplicator, Serializable {
+    static final long serialVersionUID = 1L;
+    private final RemoteWindowAggregateListener backend;
+    private final UUID uuid;
+    private final long windowMillis;
+    private final int buckets;
+    private final int sampleCapacity;
+    private final long intervalMillis;
+    private final double percentile;
+    private transient SlidingWindow window;
+    private transient long lastSent;
+    private transient ExecutorService execService;
+    private transient boolean closed;
+    private static final Logger logger = Logger.getLogger("org.rioproject.watch");
+
+    /**
+     * Create an AggregatingWatchDataReplicator
+     *
+     * @param backend The listener to send aggregates to
+     * @param windowMillis The length of the window in milliseconds
+     * @param intervalMillis The minimum time (in milliseconds) between
+     * aggregates being sent
+     * @param percentile The percentile (between 0 and 100) to compute
+     *
+     * @throws IllegalArgumentException if the backend is null
+     */
+    public AggregatingWatchDataReplicator(RemoteWindowAggregateListener backend,
+                                          long windowMillis,
+                                          long intervalMillis,
+                                          double percentile) {
+        this(backend, windowMillis, 12, 512, intervalMillis, percentile);
+    }
+
+    /**
+     * Create an AggregatingWatchDataReplicator
+     *
+     * @param backend The listener to send aggregates to
+     * @param windowMillis The length of the window in milliseconds
+     * @param buckets The number of buckets to divide the window into
+     * @param sampleCapacity The maximum number of values percentiles are
+     * computed from
+     * @param intervalMillis The minimum time (in milliseconds) between
+     * aggregates being sent
+     * @param percentile The percentile (between 0 and 100) to compute
+     *
+     * @throws IllegalArgumentException if the backend is null
+     */
+    public AggregatingWatchDataReplicator(RemoteWindowAggregateListener backend,
+                                          long windowMillis,
+                                          int buckets,
+                                          int sampleCapacity,
+                                          long intervalMillis,
+                                          double percentile) {
+        if(backend==null)
+            throw new IllegalArgumentException("backend is null");
+        this.backend = backend;
+        this.uuid = UUID.randomUUID();
+        this.windowMillis = windowMillis;
+        this.buckets = buckets;
+        this.sampleCapacity = sampleCapacity;
+        this.intervalMillis = intervalMillis;
+        this.percentile = percentile;
+        init();
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public void addCalculable(Calculable calculable) {
+        long now = System.currentTimeMillis();
+        window.add(calculable.getValue(), calculable.getWhen());
+        WindowAggregate aggregate;
+        synchronized(this) {
+            if(closed || now-lastSent<intervalMillis)
+                return;
+            lastSent = now;
+            aggregate = window.aggregate(calculable.getId(), percentile, now);
+        }
+        aggregate.setSource(uuid);
+        send(aggregate);
+    }
+
+    /**
+     * Get the aggregate of the values in the window
+     *
+     * @param id The identifier of the aggregate
+     *
+     * @return The aggregate of the values in the window
+     */
+    public WindowAggregate getAggregate(String id) {
+        WindowAggregate aggregate = window.aggregate(id, percentile, System.currentTimeMillis());
+        aggregate.setSource(uuid);
+        return aggregate;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        if(execService!=null) {
+            execService.shutdownNow();
+            execService = null;
+        }
+    }
+
+    private synchronized void send(final WindowAggregate aggregate) {
+        if(execService==null)
+            execService = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "AggregatingWatchDataReplicator");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        try {
+            execService.submit(new Runnable() {
+                public void run() {
+                    try {
+                        backend.aggregated(aggregate);
+                    } catch(RemoteException e) {
+                        if(logger.isLoggable(Level.FINE))
+                            logger.log(Level.FINE, "Unable to send "+aggregate, e);
+                    }
+                }
+            });
+        } catch(RejectedExecutionException e) {
+            /* Closed */
+        }
+    }
+
+    private void init() {
+        window = new SlidingWindow(windowMillis, buckets, sampleCapacity);
+    }
+
+    private void readObject(ObjectInputStream oStream) throws ClassNotFoundException, IOException {
+        oStream.defaultReadObject();
+        init();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+        AggregatingWatchDataReplicator that = (AggregatingWatchDataReplicator) o;
+        return uuid.equals(that.uuid);
+    }
+
+    @Override
+    public int hashCode() {
+        return uuid.hashCode();
+    }
+}
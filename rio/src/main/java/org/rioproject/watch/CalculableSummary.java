@@ -0,0 +1,100 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.watch;
+
+/**
+ * A Calculable summarizing the Calculables recorded by a watch over a
+ * period. The value is the mean of the values recorded, and the time is the
+ * end of the period.
+ *
+ * @see ReplicationResolution
+ */
+public class CalculableSummary extends Calculable {
+    static final long serialVersionUID = 1L;
+    private long count;
+    private double min;
+    private double max;
+    private long period;
+
+    /**
+     * Creates new CalculableSummary
+     *
+     * @param id The identifier for this Calculable record
+     * @param count The number of values recorded
+     * @param sum The sum of the values recorded
+     * @param min The minimum value recorded
+     * @param max The maximum value recorded
+     * @param when The end of the period
+     * @param period The length of the period in milliseconds
+     */
+    public CalculableSummary(String id,
+                             long count,
+                             double sum,
+                             double min,
+                             double max,
+                             long when,
+                             long period) {
+        super(id, count==0?0:sum/count, when);
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.period = period;
+    }
+
+    /**
+     * Get the number of values recorded in the period
+     *
+     * @return The number of values recorded in the period
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * Get the mean of the values recorded in the period
+     *
+     * @return The mean, the same as the Calculable's value
+     */
+    public double getMean() {
+        return getValue();
+    }
+
+    /**
+     * Get the length of the period
+     *
+     * @return The length of the period in milliseconds
+     */
+    public long getPeriod() {
+        return period;
+    }
+
+    /**
+     * Get the rate values were recorded at
+     *
+     * @return The number of values recorded per second
+     */
+    public double getRate() {
+        return period==0?0:count*1000.0/period;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.watch;
+
+import java.io.Serializable;
+
+/**
+ * A histogram of values with logarithmically sized bins, used to compute
+ * quantiles with a bounded relative error. Sketches with the same relative
+ * accuracy can be merged by adding their bin counts, so the quantiles of
+ * the values recorded by many watches can be computed from their sketches
+ * rather than from the values.
+ *
+ * <p>A value <tt>v</tt> is counted in bin <tt>ceil(log(|v|)/log(gamma))</tt>,
+ * where <tt>gamma=(1+a)/(1-a)</tt> for relative accuracy <tt>a</tt>, and
+ * quantiles are within <tt>a</tt> of the true value (relative to the value).
+ * The number of bins is bounded. If more bins are needed, the bins holding
+ * the values closest to zero are merged, so the accuracy of high quantiles
+ * is kept. Values closer to zero than {@link #MIN_VALUE} are counted as zero.
+ */
+public class HistogramSketch implements Serializable {
+    static final long serialVersionUID = 1L;
+    /** The default relative accuracy */
+    public static final double DEFAULT_ACCURACY = 0.01;
+    /** The default maximum number of bins for each sign */
+    public static final int DEFAULT_MAX_BINS = 256;
+    /** Values closer to zero than this are counted as zero */
+    public static final double MIN_VALUE = 1e-9;
+    private final double relativeAccuracy;
+    private final int maxBins;
+    private final double logGamma;
+    private final Bins positive = new Bins();
+    private final Bins negative = new Bins();
+    private long zeroCount;
+    private long count;
+
+    /**
+     * Create a HistogramSketch with the default relative accuracy and
+     * maximum number of bins
+     */
+    public HistogramSketch() {
+        this(DEFAULT_ACCURACY, DEFAULT_MAX_BINS);
+    }
+
+    /**
+     * Create a HistogramSketch
+     *
+     * @param relativeAccuracy The relative accuracy of quantiles, greater
+     * than 0 and less than 1
+     * @param maxBins The maximum number of bins for positive values, and for
+     * negative values
+     *
+     * @throws IllegalArgumentException if the relative accuracy is not
+     * greater than 0 and less than 1, or maxBins is less than 1
+     */
+    public HistogramSketch(double relativeAccuracy, int maxBins) {
+        if(relativeAccuracy<=0 || relativeAccuracy>=1)
+            throw new IllegalArgumentException("relativeAccuracy must be greater than 0 and less than 1");
+        if(maxBins<1)
+            throw new IllegalArgumentException("maxBins must be at least 1");
+        this.relativeAccuracy = relativeAccuracy;
+        this.maxBins = maxBins;
+        this.logGamma = Math.log((1+relativeAccuracy)/(1-relativeAccuracy));
+    }
+
+    public double getRelativeAccuracy() {
+        return relativeAccuracy;
+    }
+
+    /**
+     * Get the number of values added
+     *
+     * @return The number of values added, including values added by merged
+     * sketches
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Add a value
+     *
+     * @param value The value. NaN is ignored
+     */
+    public synchronized void add(double value) {
+        if(Double.isNaN(value))
+            return;
+        if(value>MIN_VALUE)
+            positive.add(index(value), 1, maxBins);
+        else if(value<-MIN_VALUE)
+            negative.add(index(-value), 1, maxBins);
+        else
+            zeroCount++;
+        count++;
+    }
+
+    /**
+     * Add the counts of another sketch to this sketch
+     *
+     * @param other The sketch to merge
+     *
+     * @throws IllegalArgumentException if the sketches have different
+     * relative accuracies
+     */
+    public void merge(HistogramSketch other) {
+        if(other==this)
+            throw new IllegalArgumentException("cannot merge a sketch with itself");
+        if(other.relativeAccuracy!=relativeAccuracy)
+            throw new IllegalArgumentException("cannot merge sketches with different relative accuracies");
+        HistogramSketch copy = other.copy();
+        synchronized(this) {
+            positive.merge(copy.positive, maxBins);
+            negative.merge(copy.negative, maxBins);
+            zeroCount += copy.zeroCount;
+            count += copy.count;
+        }
+    }
+
+    /**
+     * Get a copy of the sketch
+     *
+     * @return A sketch with the same counts
+     */
+    public synchronized HistogramSketch copy() {
+        HistogramSketch copy = new HistogramSketch(relativeAccuracy, maxBins);
+        copy.positive.merge(positive, maxBins);
+        copy.negative.merge(negative, maxBins);
+        copy.zeroCount = zeroCount;
+        copy.count = count;
+        return copy;
+    }
+
+    /**
+     * Remove all values
+     */
+    public synchronized void clear() {
+        positive.clear();
+        negative.clear();
+        zeroCount = 0;
+        count = 0;
+    }
+
+    /**
+     * Get the value at a quantile
+     *
+     * @param quantile The quantile, between 0 and 1
+     *
+     * @return The value at the quantile, or NaN if no values have been added
+     */
+    public synchronized double getQuantile(double quantile) {
+        if(count==0)
+            return Double.NaN;
+        long rank = (long)(Math.max(0, Math.min(1, quantile))*(count-1));
+        long seen = 0;
+        /* Most negative values first */
+        for(int i=negative.counts.length-1; i>=0; i--) {
+            seen += negative.counts[i];
+            if(seen>rank)
+                return -value(negative.offset+i);
+        }
+        seen += zeroCount;
+        if(seen>rank)
+            return 0;
+        for(int i=0; i<positive.counts.length; i++) {
+            seen += positive.counts[i];
+            if(seen>rank)
+                return value(positive.offset+i);
+        }
+        return value(positive.offset+positive.counts.length-1);
+    }
+
+    /**
+     * Get the value at a percentile
+     *
+     * @param percentile The percentile, between 0 and 100
+     *
+     * @return The value at the percentile, or NaN if no values have been
+     * added
+     */
+    public double getPercentile(double percentile) {
+        return getQuantile(percentile/100);
+    }
+
+    private int index(double value) {
+        return (int)Math.ceil(Math.log(value)/logGamma);
+    }
+
+    private double value(int index) {
+        /* The value within the bin with the lowest relative error */
+        return 2*Math.exp(index*logGamma)/(Math.exp(logGamma)+1);
+    }
+
+    /**
+     * Contiguous bin counts, starting at an offset
+     */
+    private static class Bins implements Serializable {
+        static final long serialVersionUID = 1L;
+        int offset;
+        long[] counts = new long[0];
+
+        void add(int index, long n, int maxBins) {
+            if(counts.length==0) {
+                offset = index;
+                counts = new long[1];
+            } else if(index<offset) {
+                /* Lower bins are merged first, no need to grow below the
+                 * lowest bin if the maximum has been reached */
+                if(counts.length>=maxBins) {
+                    counts[0] += n;
+                    return;
+                }
+                long[] grown = new long[counts.length+(offset-index)];
+                System.arraycopy(counts, 0, grown, offset-index, counts.length);
+                counts = grown;
+                offset = index;
+            } else if(index>=offset+counts.length) {
+                long[] grown = new long[index-offset+1];
+                System.arraycopy(counts, 0, grown, 0, counts.length);
+                counts = grown;
+            }
+            counts[index-offset] += n;
+            if(counts.length>maxBins)
+                collapse(maxBins);
+        }
+
+        void merge(Bins other, int maxBins) {
+            for(int i=0; i<other.counts.length; i++) {
+                if(other.counts[i]!=0)
+                    add(other.offset+i, other.counts[i], maxBins);
+            }
+        }
+
+        void clear() {
+            offset = 0;
+            counts = new long[0];
+        }
+
+        /* Merge the lowest bins so there are at most maxBins */
+        private void collapse(int maxBins) {
+            int excess = counts.length-maxBins;
+            long[] collapsed = new long[maxBins];
+            for(int i=0; i<=excess; i++)
+                collapsed[0] += counts[i];
+            System.arraycopy(counts, excess+1, collapsed, 1, maxBins-1);
+            counts = collapsed;
+            offset += excess;
+        }
+    }
+}
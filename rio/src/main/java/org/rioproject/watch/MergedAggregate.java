@@ -0,0 +1,224 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.watch;
+
+import java.util.Collection;
+
+/**
+ * The merge of the {@link WindowAggregate}s of a watch recorded by each
+ * instance of a service.
+ *
+ * <p>The following statistics are supported, by name:
+ * <ul>
+ * <li><tt>sum</tt>: The sum of the mean of each instance, for example the
+ * total request rate across instances whose watches record their request
+ * rate
+ * <li><tt>mean</tt>: The mean of all values recorded by all instances
+ * <li><tt>min</tt> and <tt>max</tt>: The minimum and maximum value recorded
+ * by any instance
+ * <li><tt>count</tt>: The number of values recorded by all instances
+ * <li><tt>instances</tt>: The number of instances that recorded values
+ * <li><tt>p</tt><i>n</i>, for example <tt>p95</tt> or <tt>p99.9</tt>: The
+ * value at the <i>n</i>th percentile of all values recorded by all
+ * instances, computed from the merge of the instances'
+ * {@link HistogramSketch}es
+ * </ul>
+ */
+public class MergedAggregate {
+    private final int instances;
+    private final long count;
+    private final double total;
+    private final double mean;
+    private final double min;
+    private final double max;
+    private final double maxPercentileValue;
+    private final HistogramSketch sketch;
+
+    private MergedAggregate(int instances,
+                            long count,
+                            double total,
+                            double mean,
+                            double min,
+                            double max,
+                            double maxPercentileValue,
+                            HistogramSketch sketch) {
+        this.instances = instances;
+        this.count = count;
+        this.total = total;
+        this.mean = mean;
+        this.min = min;
+        this.max = max;
+        this.maxPercentileValue = maxPercentileValue;
+        this.sketch = sketch;
+    }
+
+    /**
+     * Merge aggregates. Aggregates without values are ignored
+     *
+     * @param aggregates The aggregates to merge, typically the latest
+     * aggregate from each instance of a service
+     *
+     * @return The merged aggregate
+     */
+    public static MergedAggregate merge(Collection<WindowAggregate> aggregates) {
+        int instances = 0;
+        long count = 0;
+        double total = 0;
+        double sum = 0;
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        double maxPercentileValue = -Double.MAX_VALUE;
+        HistogramSketch sketch = null;
+        boolean sketched = true;
+        for(WindowAggregate a : aggregates) {
+            if(a.getCount()==0)
+                continue;
+            instances++;
+            count += a.getCount();
+            total += a.getMean();
+            sum += a.getSum();
+            min = Math.min(min, a.getMin());
+            max = Math.max(max, a.getMax());
+            maxPercentileValue = Math.max(maxPercentileValue, a.getPercentileValue());
+            HistogramSketch s = a.getSketch();
+            if(s==null || !sketched) {
+                sketched = false;
+            } else if(sketch==null) {
+                sketch = s.copy();
+            } else if(sketch.getRelativeAccuracy()==s.getRelativeAccuracy()) {
+                sketch.merge(s);
+            } else {
+                sketched = false;
+            }
+        }
+        if(instances==0)
+            return new MergedAggregate(0, 0, 0, 0, 0, 0, 0, null);
+        return new MergedAggregate(instances,
+                                   count,
+                                   total,
+                                   sum/count,
+                                   min,
+                                   max,
+                                   maxPercentileValue,
+                                   sketched?sketch:null);
+    }
+
+    public int getInstances() {
+        return instances;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the sum of the mean of each instance
+     *
+     * @return The sum of the mean of each instance
+     */
+    public double getTotal() {
+        return total;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * Get the value at a percentile of all values
+     *
+     * @param percentile The percentile, between 0 and 100
+     *
+     * @return The value at the percentile. If an instance's aggregate does
+     * not have a sketch, the highest percentile value computed by an
+     * instance. If there are no values, 0
+     */
+    public double getPercentileValue(double percentile) {
+        if(instances==0)
+            return 0;
+        if(sketch==null)
+            return maxPercentileValue;
+        return sketch.getPercentile(percentile);
+    }
+
+    /**
+     * Get a statistic by name
+     *
+     * @param statistic The name of the statistic
+     *
+     * @return The value of the statistic
+     *
+     * @throws IllegalArgumentException if the statistic is not supported
+     */
+    public double getValue(String statistic) {
+        if("sum".equals(statistic))
+            return total;
+        if("mean".equals(statistic))
+            return mean;
+        if("min".equals(statistic))
+            return min;
+        if("max".equals(statistic))
+            return max;
+        if("count".equals(statistic))
+            return count;
+        if("instances".equals(statistic))
+            return instances;
+        return getPercentileValue(getPercentile(statistic));
+    }
+
+    /**
+     * Whether a statistic is supported
+     *
+     * @param statistic The name of the statistic
+     *
+     * @return true if the statistic is supported
+     */
+    public static boolean isStatistic(String statistic) {
+        if(statistic==null)
+            return false;
+        if("sum".equals(statistic) || "mean".equals(statistic) ||
+           "min".equals(statistic) || "max".equals(statistic) ||
+           "count".equals(statistic) || "instances".equals(statistic))
+            return true;
+        try {
+            getPercentile(statistic);
+            return true;
+        } catch(IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static double getPercentile(String statistic) {
+        if(statistic.length()>1 && statistic.charAt(0)=='p') {
+            try {
+                double percentile = Double.parseDouble(statistic.substring(1));
+                if(percentile>=0 && percentile<=100)
+                    return percentile;
+            } catch(NumberFormatException e) {
+                /* Not a percentile */
+            }
+        }
+        throw new IllegalArgumentException("Unknown statistic ["+statistic+"]");
+    }
+}
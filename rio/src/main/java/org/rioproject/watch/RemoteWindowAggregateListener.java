@@ -0,0 +1,34 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.watch;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Receives the {@link WindowAggregate}s computed by an
+ * {@link AggregatingWatchDataReplicator}.
+ */
+public interface RemoteWindowAggregateListener extends Remote {
+    /**
+     * Notification of the aggregate of a watch's values over a window
+     *
+     * @param aggregate The aggregate
+     *
+     * @throws RemoteException If communication errors occur
+     */
+    void aggregated(WindowAggregate aggregate) throws RemoteException;
+}
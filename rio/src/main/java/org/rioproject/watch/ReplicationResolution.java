@@ -0,0 +1,160 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.watch;
+
+import java.io.Serializable;
+
+/**
+ * The resolution at which a {@link WatchDataSource} replicates the
+ * {@link Calculable}s added to it to a {@link WatchDataReplicator}:
+ * <ul>
+ * <li><tt>raw</tt>: Each Calculable is replicated
+ * <li><tt>sample</tt>: At most one Calculable is replicated each period,
+ * the first recorded in the period
+ * <li><tt>summary</tt>: A {@link CalculableSummary} of the Calculables
+ * recorded in each period is replicated once the period has ended. Its
+ * value is the mean of the period's values
+ * </ul>
+ *
+ * <p>Calculables are sampled or summarized by the <tt>WatchDataSource</tt>,
+ * in the JVM the watch records them in, so for watches that record many
+ * values only the reduced stream is sent to the replicator.
+ */
+public class ReplicationResolution implements Serializable {
+    static final long serialVersionUID = 1L;
+    public enum Mode {RAW, SAMPLE, SUMMARY}
+    /** Replicate each Calculable */
+    public static final ReplicationResolution RAW = new ReplicationResolution(Mode.RAW, 0);
+    private final Mode mode;
+    private final long period;
+
+    private ReplicationResolution(Mode mode, long period) {
+        this.mode = mode;
+        this.period = period;
+    }
+
+    /**
+     * Replicate at most one Calculable each period
+     *
+     * @param period The period in milliseconds
+     *
+     * @return A sampling resolution
+     *
+     * @throws IllegalArgumentException if the period is not greater than 0
+     */
+    public static ReplicationResolution sample(long period) {
+        if(period<=0)
+            throw new IllegalArgumentException("period must be greater than 0");
+        return new ReplicationResolution(Mode.SAMPLE, period);
+    }
+
+    /**
+     * Replicate a summary of the Calculables recorded each period
+     *
+     * @param period The period in milliseconds
+     *
+     * @return A summarizing resolution
+     *
+     * @throws IllegalArgumentException if the period is not greater than 0
+     */
+    public static ReplicationResolution summary(long period) {
+        if(period<=0)
+            throw new IllegalArgumentException("period must be greater than 0");
+        return new ReplicationResolution(Mode.SUMMARY, period);
+    }
+
+    /**
+     * Parse a resolution. A resolution is either <tt>raw</tt>, a period
+     * (sampling), or <tt>summary:</tt> followed by a period. A period is a
+     * number of milliseconds, or a number followed by <tt>ms</tt>, <tt>s</tt>
+     * or <tt>m</tt>, for example <tt>1s</tt>, <tt>10s</tt> or
+     * <tt>summary:1m</tt>
+     *
+     * @param resolution The resolution to parse
+     *
+     * @return The ReplicationResolution
+     *
+     * @throws IllegalArgumentException if the resolution cannot be parsed
+     */
+    public static ReplicationResolution parse(String resolution) {
+        if(resolution==null)
+            throw new IllegalArgumentException("resolution is null");
+        String s = resolution.trim().toLowerCase();
+        if(s.equals("raw"))
+            return RAW;
+        if(s.startsWith("summary:"))
+            return summary(parsePeriod(s.substring("summary:".length()), resolution));
+        return sample(parsePeriod(s, resolution));
+    }
+
+    private static long parsePeriod(String s, String resolution) {
+        long multiplier = 1;
+        if(s.endsWith("ms")) {
+            s = s.substring(0, s.length()-2);
+        } else if(s.endsWith("s")) {
+            multiplier = 1000;
+            s = s.substring(0, s.length()-1);
+        } else if(s.endsWith("m")) {
+            multiplier = 60*1000;
+            s = s.substring(0, s.length()-1);
+        }
+        try {
+            return Long.parseLong(s.trim())*multiplier;
+        } catch(NumberFormatException e) {
+            throw new IllegalArgumentException("Cannot parse resolution ["+resolution+"]");
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Get the period
+     *
+     * @return The period in milliseconds, 0 for <tt>raw</tt>
+     */
+    public long getPeriod() {
+        return period;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(o == null || getClass() != o.getClass())
+            return false;
+        ReplicationResolution that = (ReplicationResolution)o;
+        return period==that.period && mode==that.mode;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31*mode.hashCode()+(int)(period^(period>>>32));
+    }
+
+    @Override
+    public String toString() {
+        switch(mode) {
+            case RAW:
+                return "raw";
+            case SAMPLE:
+                return period+"ms";
+            default:
+                return "summary:"+period+"ms";
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.watch;
+
+import org.rioproject.resources.util.TaskScheduler;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Replicates the Calculables added to a WatchDataSource to a
+ * {@link WatchDataReplicator} at a {@link ReplicationResolution}. Summaries
+ * are sent when a Calculable is added after the period has ended, or by a
+ * scheduled task if no Calculables are added.
+ */
+class ResolutionReplicator implements WatchDataReplicator {
+    private final WatchDataReplicator replicator;
+    private final ReplicationResolution resolution;
+    private final long period;
+    private ScheduledFuture<?> flusher;
+    private long periodStart = Long.MIN_VALUE;
+    private String id;
+    private long count;
+    private double sum;
+    private double min;
+    private double max;
+    private boolean closed;
+
+    ResolutionReplicator(WatchDataReplicator replicator, ReplicationResolution resolution) {
+        this.replicator = replicator;
+        this.resolution = resolution;
+        this.period = resolution.getPeriod();
+        if(resolution.getMode()==ReplicationResolution.Mode.SUMMARY) {
+            flusher = TaskScheduler.getInstance().scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    flush(System.currentTimeMillis());
+                }
+            }, period, period);
+        }
+    }
+
+    WatchDataReplicator getReplicator() {
+        return replicator;
+    }
+
+    ReplicationResolution getResolution() {
+        return resolution;
+    }
+
+    public synchronized void addCalculable(Calculable calculable) {
+        if(closed)
+            return;
+        long when = calculable.getWhen();
+        long start = when-(when%period+period)%period;
+        if(resolution.getMode()==ReplicationResolution.Mode.SAMPLE) {
+            if(start>periodStart) {
+                periodStart = start;
+                replicator.addCalculable(calculable);
+            }
+            return;
+        }
+        if(count>0 && start>periodStart)
+            sendSummary();
+        if(count==0) {
+            /* A late Calculable is counted in the current period */
+            periodStart = Math.max(start, periodStart);
+            id = calculable.getId();
+            min = Double.MAX_VALUE;
+            max = -Double.MAX_VALUE;
+        }
+        double value = calculable.getValue();
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /*
+     * Send the summary of the current period if the period has ended
+     */
+    synchronized void flush(long now) {
+        if(!closed && count>0 && now>=periodStart+period)
+            sendSummary();
+    }
+
+    /**
+     * Stop sending summaries, without closing the replicator
+     */
+    synchronized void cancel() {
+        closed = true;
+        if(flusher!=null) {
+            flusher.cancel(false);
+            flusher = null;
+        }
+    }
+
+    public void close() {
+        synchronized(this) {
+            if(!closed && count>0)
+                sendSummary();
+        }
+        cancel();
+        replicator.close();
+    }
+
+    private void sendSummary() {
+        replicator.addCalculable(new CalculableSummary(id, count, sum, min, max, periodStart+period, period));
+        count = 0;
+        sum = 0;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.watch;
+
+import java.util.Arrays;
+
+/**
+ * Aggregates values over a sliding time window using a fixed amount of
+ * memory, regardless of how many values are added.
+ *
+ * <p>The window is divided into buckets, each holding the count, sum, minimum
+ * and maximum of the values added during its slice of time. As time passes
+ * the oldest bucket is reused, so the count, mean, minimum and maximum are
+ * exact to within one bucket's duration.
+ *
+ * <p>Percentiles are computed from the most recent values added to the
+ * window, up to the sample capacity. If more values than that are added
+ * within the window, percentiles are computed from the most recent ones.
+ *
+ * <p>Each bucket also holds a {@link HistogramSketch} of its values. The
+ * sketches of the buckets in the window are merged into the aggregate, so
+ * the aggregates of different windows can be merged, and percentiles
+ * computed across them.
+ */
+public class SlidingWindow {
+    private final long windowMillis;
+    private final long bucketMillis;
+    private final long[] bucketStart;
+    private final long[] counts;
+    private final double[] sums;
+    private final double[] mins;
+    private final double[] maxs;
+    private final HistogramSketch[] sketches;
+    private final double[] samples;
+    private final long[] sampleTimes;
+    private int samplePosition;
+    private int sampleCount;
+
+    /**
+     * Create a SlidingWindow
+     *
+     * @param windowMillis The length of the window in milliseconds
+     * @param buckets The number of buckets to divide the window into
+     * @param sampleCapacity The maximum number of values percentiles are
+     * computed from
+     *
+     * @throws IllegalArgumentException if any of the parameters are less
+     * than 1
+     */
+    public SlidingWindow(long windowMillis, int buckets, int sampleCapacity) {
+        if(windowMillis<1)
+            throw new IllegalArgumentException("windowMillis must be at least 1");
+        if(buckets<1)
+            throw new IllegalArgumentException("buckets must be at least 1");
+        if(sampleCapacity<1)
+            throw new IllegalArgumentException("sampleCapacity must be at least 1");
+        this.windowMillis = windowMillis;
+        this.bucketMillis = Math.max(1, windowMillis/buckets);
+        int size = (int)((windowMillis+bucketMillis-1)/bucketMillis);
+        bucketStart = new long[size];
+        Arrays.fill(bucketStart, Long.MIN_VALUE);
+        counts = new long[size];
+        sums = new double[size];
+        mins = new double[size];
+        maxs = new double[size];
+        sketches = new HistogramSketch[size];
+        samples = new double[sampleCapacity];
+        sampleTimes = new long[sampleCapacity];
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * Add a value to the window
+     *
+     * @param value The value
+     * @param when The time (in milliseconds) the value was recorded
+     */
+    public synchronized void add(double value, long when) {
+        long start = when-(when%bucketMillis);
+        int index = (int)((start/bucketMillis)%bucketStart.length);
+        if(bucketStart[index]!=start) {
+            if(bucketStart[index]>start)
+                /* The value is older than the window the bucket holds */
+                return;
+            bucketStart[index] = start;
+            counts[index] = 0;
+            sums[index] = 0;
+            mins[index] = Double.MAX_VALUE;
+            maxs[index] = -Double.MAX_VALUE;
+            if(sketches[index]==null)
+                sketches[index] = new HistogramSketch();
+            else
+                sketches[index].clear();
+        }
+        counts[index]++;
+        sums[index] += value;
+        mins[index] = Math.min(mins[index], value);
+        maxs[index] = Math.max(maxs[index], value);
+        sketches[index].add(value);
+
+        samples[samplePosition] = value;
+        sampleTimes[samplePosition] = when;
+        samplePosition = (samplePosition+1)%samples.length;
+        sampleCount = Math.min(sampleCount+1, samples.length);
+    }
+
+    /**
+     * Aggregate the values in the window
+     *
+     * @param id The identifier of the aggregate, typically the watch ID
+     * @param percentile The percentile (between 0 and 100) to compute
+     * @param now The time (in milliseconds) the window ends at
+     *
+     * @return The aggregate of the values in the window
+     */
+    public synchronized WindowAggregate aggregate(String id, double percentile, long now) {
+        long from = now-windowMillis;
+        long count = 0;
+        double sum = 0;
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        HistogramSketch sketch = new HistogramSketch();
+        for(int i=0; i<bucketStart.length; i++) {
+            if(bucketStart[i]==Long.MIN_VALUE || bucketStart[i]+bucketMillis<=from || bucketStart[i]>now)
+                continue;
+            count += counts[i];
+            sum += sums[i];
+            min = Math.min(min, mins[i]);
+            max = Math.max(max, maxs[i]);
+            sketch.merge(sketches[i]);
+        }
+        WindowAggregate aggregate;
+        if(count==0) {
+            aggregate = new WindowAggregate(id, windowMillis, now, 0, 0, 0, 0, percentile, 0);
+        } else {
+            aggregate = new WindowAggregate(id,
+                                            windowMillis,
+                                            now,
+                                            count,
+                                            sum/count,
+                                            min,
+                                            max,
+                                            percentile,
+                                            percentile(percentile, from, now));
+        }
+        aggregate.setSketch(sketch);
+        return aggregate;
+    }
+
+    private double percentile(double percentile, long from, long now) {
+        double[] values = new double[sampleCount];
+        int n = 0;
+        for(int i=0; i<sampleCount; i++) {
+            if(sampleTimes[i]>from && sampleTimes[i]<=now)
+                values[n++] = samples[i];
+        }
+        if(n==0)
+            return 0;
+        Arrays.sort(values, 0, n);
+        /* Nearest rank */
+        int rank = (int)Math.ceil(Math.max(0, Math.min(100, percentile))/100*n);
+        return values[Math.max(0, rank-1)];
+    }
+}
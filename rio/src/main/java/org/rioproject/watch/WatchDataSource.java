@@ -195,6 +195,24 @@ public interface WatchDataSource extends Remote {
      */
     boolean addWatchDataReplicator(WatchDataReplicator replicator) throws RemoteException;
 
+    /**
+     * Add a {@link WatchDataReplicator} that is sent the Calculables added to
+     * the WatchDataSource at a resolution. Sampling or summarizing
+     * Calculables is done by the WatchDataSource, before they are replicated.
+     *
+     * @param replicator The WatchDataReplicator to add.
+     * @param resolution The resolution to replicate Calculables at. If null,
+     * each Calculable is replicated
+     *
+     * @return true if the WatchDataReplicator was added. If the
+     * WatchDataReplicator has already been added, it will not be added
+     * again, and its resolution is not changed.
+     *
+     * @throws RemoteException If communication errors occur
+     */
+    boolean addWatchDataReplicator(WatchDataReplicator replicator,
+                                   ReplicationResolution resolution) throws RemoteException;
+
     /**
      * Remove a {@link WatchDataReplicator}
      *
@@ -30,7 +30,9 @@ import org.rioproject.config.ExporterConfig;
 
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -152,7 +154,9 @@ public class WatchDataSourceImpl implements WatchDataSource, ServerProxyTrust {
     protected static final String COMPONENT = "org.rioproject.watch";
     /** A suitable Logger */
     protected static Logger logger = Logger.getLogger(COMPONENT);
-    private final List<WatchDataReplicator> replicators = new ArrayList<WatchDataReplicator>();
+    /** The replicators added, and the replicators Calculables are added to */
+    private final Map<WatchDataReplicator, WatchDataReplicator> replicators =
+        new LinkedHashMap<WatchDataReplicator, WatchDataReplicator>();
 
     /**
      * Create a WatchDataSourceImpl 
@@ -356,7 +360,7 @@ public class WatchDataSourceImpl implements WatchDataSource, ServerProxyTrust {
             throw new IllegalArgumentException("calculable is null");
         if(!closed) {
             addToHistory(calculable);
-            for(WatchDataReplicator replicator : getWatchDataReplicators())
+            for(WatchDataReplicator replicator : getReplicationTargets())
                 replicator.addCalculable(calculable);
         }
     }
@@ -436,7 +440,7 @@ public class WatchDataSourceImpl implements WatchDataSource, ServerProxyTrust {
      * Make sure the archival file is closed before garbage collection
      */
     protected void finalize() throws Throwable {        
-        for(WatchDataReplicator replicator : getWatchDataReplicators())
+        for(WatchDataReplicator replicator : getReplicationTargets())
             replicator.close();
         super.finalize();
     }
@@ -460,7 +464,7 @@ public class WatchDataSourceImpl implements WatchDataSource, ServerProxyTrust {
      * @see org.rioproject.watch.WatchDataSource#close
      */
     public void close() {
-        for(WatchDataReplicator replicator : getWatchDataReplicators())
+        for(WatchDataReplicator replicator : getReplicationTargets())
             replicator.close();
         synchronized(replicators) {
             replicators.clear();
@@ -494,30 +498,58 @@ public class WatchDataSourceImpl implements WatchDataSource, ServerProxyTrust {
     }
 
     public boolean addWatchDataReplicator(WatchDataReplicator replicator) {
+        return addWatchDataReplicator(replicator, ReplicationResolution.RAW);
+    }
+
+    public boolean addWatchDataReplicator(WatchDataReplicator replicator,
+                                          ReplicationResolution resolution) {
         boolean added = false;
         if(replicator==null)
             return added;
+        if(resolution==null)
+            resolution = ReplicationResolution.RAW;
         synchronized(replicators) {
-            if(!replicators.contains(replicator))
-                added = replicators.add(replicator);
+            if(!replicators.containsKey(replicator)) {
+                WatchDataReplicator target = replicator;
+                if(resolution.getMode()!=ReplicationResolution.Mode.RAW)
+                    target = new ResolutionReplicator(replicator, resolution);
+                replicators.put(replicator, target);
+                added = true;
+            }
         }
+        if(added && logger.isLoggable(Level.FINE))
+            logger.fine("Watch ["+id+"] replicating at resolution ["+resolution+"]");
         return added;
     }
 
     public boolean removeWatchDataReplicator(WatchDataReplicator replicator) {
-        boolean removed = false;
         if(replicator==null)
-            return removed;
+            return false;
+        WatchDataReplicator target;
         synchronized(replicators) {
-            removed = replicators.remove(replicator);
+            target = replicators.remove(replicator);
         }
-        return removed;
+        if(target instanceof ResolutionReplicator)
+            ((ResolutionReplicator)target).cancel();
+        return target!=null;
     }
 
     public WatchDataReplicator[] getWatchDataReplicators() {
         WatchDataReplicator[] wdrs;
         synchronized(replicators) {
-            wdrs = replicators.toArray(new WatchDataReplicator[replicators.size()]);
+            wdrs = replicators.keySet().toArray(new WatchDataReplicator[replicators.size()]);
+        }
+        return wdrs;
+    }
+
+    /*
+     * Get the replicators Calculables are added to, sampling or summarizing
+     * Calculables for replicators added with a ReplicationResolution
+     */
+    private WatchDataReplicator[] getReplicationTargets() {
+        WatchDataReplicator[] wdrs;
+        synchronized(replicators) {
+            wdrs = replicators.values().toArray(new WatchDataReplicator[replicators.size()]);
         }
         return wdrs;
     }
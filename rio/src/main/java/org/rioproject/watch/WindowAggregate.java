@@ -0,0 +1,169 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.watch;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * The aggregate of the values recorded by a watch over a sliding window,
+ * computed by a {@link SlidingWindow}.
+ */
+public class WindowAggregate implements Serializable {
+    static final long serialVersionUID = 1L;
+    private final String id;
+    private final long windowMillis;
+    private final long when;
+    private final long count;
+    private final double mean;
+    private final double min;
+    private final double max;
+    private final double percentile;
+    private final double percentileValue;
+    private UUID source;
+    private HistogramSketch sketch;
+
+    public WindowAggregate(String id,
+                           long windowMillis,
+                           long when,
+                           long count,
+                           double mean,
+                           double min,
+                           double max,
+                           double percentile,
+                           double percentileValue) {
+        this.id = id;
+        this.windowMillis = windowMillis;
+        this.when = when;
+        this.count = count;
+        this.mean = mean;
+        this.min = min;
+        this.max = max;
+        this.percentile = percentile;
+        this.percentileValue = percentileValue;
+    }
+
+    /**
+     * Get the identifier of the watch the values were recorded by
+     *
+     * @return The watch identifier
+     */
+    public String getId() {
+        return id;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * Get the time the window ends at
+     *
+     * @return The time (in milliseconds) the window ends at
+     */
+    public long getWhen() {
+        return when;
+    }
+
+    /**
+     * Get the number of values in the window
+     *
+     * @return The number of values in the window
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * Get the sum of the values in the window
+     *
+     * @return The sum of the values in the window
+     */
+    public double getSum() {
+        return mean*count;
+    }
+
+    /**
+     * Get the percentile (between 0 and 100) computed
+     *
+     * @return The percentile computed
+     */
+    public double getPercentile() {
+        return percentile;
+    }
+
+    /**
+     * Get the value at the percentile
+     *
+     * @return The value at the percentile
+     */
+    public double getPercentileValue() {
+        return percentileValue;
+    }
+
+    /**
+     * Get the identifier of the window the aggregate was computed by, so
+     * aggregates of the same watch from different services can be told apart
+     *
+     * @return The identifier of the window, may be null
+     */
+    public UUID getSource() {
+        return source;
+    }
+
+    public void setSource(UUID source) {
+        this.source = source;
+    }
+
+    /**
+     * Get the histogram of the values in the window, used to merge the
+     * percentiles of windows
+     *
+     * @return The histogram of the values in the window, may be null
+     */
+    public HistogramSketch getSketch() {
+        return sketch;
+    }
+
+    public void setSketch(HistogramSketch sketch) {
+        this.sketch = sketch;
+    }
+
+    @Override
+    public String toString() {
+        return "WindowAggregate{" +
+               "id='" + id + '\'' +
+               ", windowMillis=" + windowMillis +
+               ", count=" + count +
+               ", mean=" + mean +
+               ", min=" + min +
+               ", max=" + max +
+               ", p" + percentile + "=" + percentileValue +
+               '}';
+    }
+}
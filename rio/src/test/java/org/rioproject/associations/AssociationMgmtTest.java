@@ -0,0 +1,109 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.associations;
+
+import junit.framework.Assert;
+import net.jini.core.entry.Entry;
+import net.jini.core.lookup.ServiceID;
+import net.jini.core.lookup.ServiceItem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Tests that associations handled before <code>AssociationMgmt</code> has a
+ * backend are injected when the backend is set
+ */
+public class AssociationMgmtTest {
+    private AssociationMgmt mgmt;
+
+    @Before
+    public void create() {
+        mgmt = new AssociationMgmt();
+    }
+
+    @After
+    public void terminate() {
+        mgmt.terminate();
+    }
+
+    @Test
+    public void testResolvedAssociationsAreInjectedInBatch() throws Exception {
+        String group = "AssociationMgmtTest-"+System.currentTimeMillis();
+        AssociationDescriptor eager = createDescriptor("Eager", "eager", group);
+        AssociationDescriptor lazy = createDescriptor("Lazy", "lazy", group);
+        lazy.setLazyInject(true);
+        AssociationDescriptor undiscovered = createDescriptor("Undiscovered", "undiscovered", group);
+        undiscovered.setLazyInject(true);
+        List<Association<?>> associations = mgmt.addAssociationDescriptors(eager, lazy, undiscovered);
+        Assert.assertEquals(3, associations.size());
+
+        Echo service = new EchoImpl("first");
+        for(Association<?> association : associations.subList(0, 2))
+            discover(association, service);
+
+        Target target = new Target();
+        mgmt.setBackend(target);
+        Assert.assertNotNull(target.eager);
+        Assert.assertNotNull(target.lazy);
+        Assert.assertNull(target.undiscovered);
+        Assert.assertEquals("first:hello", target.eager.echo("hello"));
+        Assert.assertEquals("first:hello", target.lazy.echo("hello"));
+
+        /* Services discovered once the backend is set are added to the
+         * injected proxy */
+        Echo second = new EchoImpl("second");
+        discover(associations.get(0), second);
+        Assert.assertEquals(2, associations.get(0).getServiceCount());
+        discover(associations.get(2), second);
+        Assert.assertNotNull(target.undiscovered);
+        Assert.assertEquals("second:hello", target.undiscovered.echo("hello"));
+    }
+
+    private AssociationDescriptor createDescriptor(String name, String property, String group) {
+        AssociationDescriptor descriptor = new AssociationDescriptor(AssociationType.USES, name);
+        descriptor.setInterfaceNames(Echo.class.getName());
+        descriptor.setPropertyName(property);
+        descriptor.setGroups(group);
+        return descriptor;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void discover(Association association, Echo service) {
+        association.addServiceItem(new ServiceItem(new ServiceID(service.hashCode(), 0), service, new Entry[0]));
+        mgmt.notifyOnDiscovery(association, service);
+    }
+
+    public static class Target {
+        Echo eager;
+        Echo lazy;
+        Echo undiscovered;
+
+        public void setEager(Echo eager) {
+            this.eager = eager;
+        }
+
+        public void setLazy(Echo lazy) {
+            this.lazy = lazy;
+        }
+
+        public void setUndiscovered(Echo undiscovered) {
+            this.undiscovered = undiscovered;
+        }
+    }
+}
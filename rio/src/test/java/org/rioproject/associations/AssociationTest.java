@@ -0,0 +1,73 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.associations;
+
+import junit.framework.Assert;
+import net.jini.core.entry.Entry;
+import net.jini.core.lookup.ServiceID;
+import net.jini.core.lookup.ServiceItem;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests the management of associated services by the <code>Association</code>
+ */
+public class AssociationTest {
+
+    @Test
+    public void testAddAndRemoveServices() {
+        Association<String> association = new Association<String>(new AssociationDescriptor(AssociationType.USES));
+        Assert.assertNull(association.getServiceItem());
+        Assert.assertNull(association.getNextServiceItem());
+        Assert.assertTrue(association.addServiceItem(createItem("service-0")));
+        Assert.assertFalse(association.addServiceItem(createItem("service-0")));
+        Assert.assertTrue(association.addServiceItem(createItem("service-1")));
+        Assert.assertTrue(association.addServiceItem(createItem("service-2")));
+        Assert.assertEquals(3, association.getServiceCount());
+        Assert.assertEquals("service-0", association.getServiceItem().service);
+
+        ServiceItem[] items = association.getServiceItems();
+        items[0] = null;
+        Assert.assertNotNull(association.getServiceItems()[0]);
+
+        Assert.assertNotNull(association.removeService("service-1"));
+        Assert.assertNull(association.removeService("service-1"));
+        Assert.assertEquals(2, association.getServiceCount());
+        Assert.assertEquals("service-0", association.getServiceItems()[0].service);
+        Assert.assertEquals("service-2", association.getServiceItems()[1].service);
+    }
+
+    @Test
+    public void testNextServiceItemAlternates() {
+        Association<String> association = new Association<String>(new AssociationDescriptor(AssociationType.USES));
+        for(int i=0; i<3; i++)
+            association.addServiceItem(createItem("service-"+i));
+        Set<Object> selected = new HashSet<Object>();
+        for(int i=0; i<3; i++)
+            selected.add(association.getNextServiceItem().service);
+        Assert.assertEquals(3, selected.size());
+        association.removeService("service-0");
+        association.removeService("service-1");
+        for(int i=0; i<5; i++)
+            Assert.assertEquals("service-2", association.getNextServiceItem().service);
+    }
+
+    private ServiceItem createItem(String service) {
+        return new ServiceItem(new ServiceID(service.hashCode(), 0), service, new Entry[0]);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.associations;
+
+import junit.framework.Assert;
+import net.jini.core.entry.Entry;
+import net.jini.core.lookup.ServiceID;
+import net.jini.core.lookup.ServiceItem;
+import org.junit.Before;
+import org.junit.Test;
+import org.rioproject.associations.strategy.RoundRobin;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests asynchronous and hedged invocations made using the
+ * <code>AsyncAssociationProxySupport</code>
+ */
+public class AsyncAssociationProxyTest {
+    private Association<Echo> association;
+    private AsyncAssociationProxySupport<Echo> proxy;
+    private Method echo;
+
+    @Before
+    public void create() throws Exception {
+        AssociationDescriptor descriptor = new AssociationDescriptor(AssociationType.USES);
+        descriptor.setServiceDiscoveryTimeout(30);
+        descriptor.setServiceDiscoveryTimeUnits(TimeUnit.SECONDS);
+        association = new Association<Echo>(descriptor);
+        proxy = new AsyncAssociationProxySupport<Echo>();
+        proxy.setProxyInterfaces(new Class[]{Echo.class});
+        RoundRobin<Echo> strategy = new RoundRobin<Echo>();
+        strategy.setAssociation(association);
+        proxy.setServiceSelectionStrategy(strategy);
+        proxy.getInvocationHandler(association);
+        echo = Echo.class.getMethod("echo", String.class);
+    }
+
+    @Test
+    public void testInvokeAsync() throws Exception {
+        addService(new EchoImpl("echo", 0));
+        Future<Object> future = proxy.invokeAsync(echo, new Object[]{"hello"});
+        Assert.assertEquals("echo:hello", future.get(5, TimeUnit.SECONDS));
+        future = proxy.invokeAsync(echo, new Object[]{null});
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail("Expected ExecutionException");
+        } catch(ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        Assert.assertEquals(1, proxy.getInvocationCount());
+    }
+
+    @Test
+    public void testWaitForDiscoveredService() throws Exception {
+        Future<Object> future = proxy.invokeAsync(echo, new Object[]{"hello"});
+        Thread.sleep(200);
+        Assert.assertFalse(future.isDone());
+        addService(new EchoImpl("echo", 0));
+        Assert.assertEquals("echo:hello", future.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testHedgedInvocationAvoidsSlowService() throws Exception {
+        addService(new EchoImpl("fast", 1));
+        for(int i=0; i<AsyncAssociationProxySupport.MINIMUM_SAMPLES; i++)
+            proxy.invokeAsync(echo, new Object[]{"warm-up"}).get(5, TimeUnit.SECONDS);
+        Assert.assertTrue(proxy.getHedgeDelay()>=0);
+        addService(new EchoImpl("slow", 5000));
+        /* Without a hedge, an invocation of the slow service returns its name */
+        for(int i=0; i<4; i++) {
+            Object result = proxy.invokeHedged(echo, new Object[]{"hello"}).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals("fast:hello", result);
+        }
+        Assert.assertTrue(proxy.getHedgeCount()>=2);
+    }
+
+    @Test
+    public void testHedgeDoesNotInvokeTheSameService() throws Exception {
+        EchoImpl only = new EchoImpl("only", 0);
+        addService(only);
+        for(int i=0; i<AsyncAssociationProxySupport.MINIMUM_SAMPLES; i++)
+            proxy.invokeAsync(echo, new Object[]{"warm-up"}).get(5, TimeUnit.SECONDS);
+        only.setDelay(300);
+        int invocations = only.getInvocations();
+        Object result = proxy.invokeHedged(echo, new Object[]{"hello"}).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals("only:hello", result);
+        Assert.assertEquals(invocations+1, only.getInvocations());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUndeclaredMethodIsRejected() throws Exception {
+        proxy.invokeAsync(Object.class.getMethod("toString"), null);
+    }
+
+    private void addService(Echo service) {
+        association.addServiceItem(new ServiceItem(new ServiceID(service.hashCode(), 0), service, new Entry[0]));
+        proxy.discovered(association, service);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.associations;
+
+import junit.framework.Assert;
+import net.jini.core.entry.Entry;
+import net.jini.core.lookup.ServiceID;
+import net.jini.core.lookup.ServiceItem;
+import org.junit.Test;
+import org.rioproject.associations.strategy.RoundRobin;
+
+import java.lang.reflect.Method;
+import java.rmi.RemoteException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests the <code>CircuitBreaker</code>, and that an
+ * <code>AssociationProxySupport</code> ejects and reinstates services using it
+ */
+public class CircuitBreakerTest {
+
+    @Test
+    public void testCircuitOpensOnFailureRate() {
+        CircuitBreaker<String> breaker = new CircuitBreaker<String>(10, 50, 0, 1000);
+        RemoteException failure = new RemoteException("failed");
+        for(int i=0; i<4; i++)
+            Assert.assertFalse(breaker.record("a", 0, failure));
+        /* The window must be half full before the circuit opens */
+        Assert.assertTrue(breaker.record("a", 0, failure));
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState("a"));
+        Assert.assertFalse(breaker.allow("a"));
+        Assert.assertEquals(1, breaker.getOpenCount());
+
+        for(int i=0; i<10; i++)
+            Assert.assertFalse(breaker.record("b", 0, i%3==0?failure:null));
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState("b"));
+
+        /* Exceptions thrown by the service are not failures */
+        for(int i=0; i<10; i++)
+            Assert.assertFalse(breaker.record("c", 0, new IllegalArgumentException()));
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState("c"));
+    }
+
+    @Test
+    public void testSlowCallsAreFailures() {
+        CircuitBreaker<String> breaker = new CircuitBreaker<String>(4, 100, 10, 1000);
+        long slow = TimeUnit.MILLISECONDS.toNanos(20);
+        Assert.assertFalse(breaker.record("a", slow, null));
+        Assert.assertTrue(breaker.record("a", slow, null));
+    }
+
+    @Test
+    public void testHalfOpenProbe() {
+        ManualCircuitBreaker<String> breaker = new ManualCircuitBreaker<String>(10, 50, 0, 50);
+        Assert.assertTrue(breaker.trip("a"));
+        Assert.assertFalse(breaker.trip("a"));
+        breaker.advance(49);
+        Assert.assertTrue(breaker.getServicesToReinstate().isEmpty());
+        breaker.advance(1);
+        Assert.assertEquals(1, breaker.getServicesToReinstate().size());
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState("a"));
+        Assert.assertEquals(0, breaker.getOpenCount());
+
+        /* Only one probe at a time, and a failed probe opens the circuit */
+        Assert.assertTrue(breaker.allow("a"));
+        Assert.assertFalse(breaker.allow("a"));
+        Assert.assertTrue(breaker.record("a", 0, new RemoteException("failed")));
+        breaker.advance(99);
+        Assert.assertTrue("Open time doubles after a failed probe",
+                          breaker.getServicesToReinstate().isEmpty());
+        breaker.advance(1);
+        Assert.assertEquals(1, breaker.getServicesToReinstate().size());
+
+        /* A successful probe closes the circuit */
+        Assert.assertTrue(breaker.allow("a"));
+        Assert.assertFalse(breaker.record("a", 0, null));
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState("a"));
+        Assert.assertTrue(breaker.allow("a"));
+    }
+
+    @Test
+    public void testRemovedCircuitDoesNotOpen() {
+        CircuitBreaker<String> breaker = new CircuitBreaker<String>(10, 50, 0, 1000);
+        breaker.trip("a");
+        breaker.remove("a");
+        Assert.assertEquals(0, breaker.getOpenCount());
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState("a"));
+    }
+
+    @Test
+    public void testProxyEjectsAndReinstatesService() throws Throwable {
+        AssociationDescriptor descriptor = new AssociationDescriptor(AssociationType.USES);
+        descriptor.setServiceDiscoveryTimeout(1);
+        descriptor.setServiceDiscoveryTimeUnits(TimeUnit.SECONDS);
+        Association<Echo> association = new Association<Echo>(descriptor);
+        AssociationProxySupport<Echo> proxy = new AssociationProxySupport<Echo>();
+        proxy.setProxyInterfaces(new Class[]{Echo.class});
+        ManualCircuitBreaker<Echo> breaker = new ManualCircuitBreaker<Echo>(10, 50, 0, 100);
+        proxy.setCircuitBreaker(breaker);
+        RoundRobin<Echo> strategy = new RoundRobin<Echo>();
+        strategy.setAssociation(association);
+        proxy.setServiceSelectionStrategy(strategy);
+        Method echo = Echo.class.getMethod("echo", String.class);
+
+        EchoImpl unreachable = new EchoImpl("unreachable");
+        unreachable.setReachable(false);
+        EchoImpl healthy = new EchoImpl("healthy");
+        addService(association, proxy, unreachable);
+        addService(association, proxy, healthy);
+
+        for(int i=0; i<4; i++)
+            Assert.assertEquals("healthy:hello", proxy.doInvokeService(association, echo, new Object[]{"hello"}));
+        Assert.assertFalse(proxy.isTerminated());
+        Assert.assertEquals(2, association.getServiceCount());
+        Assert.assertEquals(CircuitBreaker.State.OPEN, proxy.getCircuitBreaker().getState(unreachable));
+        Assert.assertEquals(1, unreachable.getInvocations());
+
+        /* Once the open time has passed the service is probed, and
+         * reinstated when it has recovered */
+        unreachable.setReachable(true);
+        breaker.advance(100);
+        for(int i=0; i<4; i++)
+            proxy.doInvokeService(association, echo, new Object[]{"hello"});
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, proxy.getCircuitBreaker().getState(unreachable));
+        Assert.assertTrue(unreachable.getInvocations()>1);
+    }
+
+    @Test
+    public void testProxyFailsWhenAllServicesAreEjected() throws Throwable {
+        AssociationDescriptor descriptor = new AssociationDescriptor(AssociationType.USES);
+        Association<Echo> association = new Association<Echo>(descriptor);
+        AssociationProxySupport<Echo> proxy = new AssociationProxySupport<Echo>();
+        proxy.setProxyInterfaces(new Class[]{Echo.class});
+        RoundRobin<Echo> strategy = new RoundRobin<Echo>();
+        strategy.setAssociation(association);
+        proxy.setServiceSelectionStrategy(strategy);
+        Method echo = Echo.class.getMethod("echo", String.class);
+
+        EchoImpl unreachable = new EchoImpl("unreachable");
+        unreachable.setReachable(false);
+        addService(association, proxy, unreachable);
+        try {
+            proxy.doInvokeService(association, echo, new Object[]{"hello"});
+            Assert.fail("Expected the invocation to fail");
+        } catch(Throwable t) {
+            Assert.assertTrue(CircuitBreaker.isFailure(t));
+        }
+        Assert.assertFalse(proxy.isTerminated());
+        Assert.assertEquals(1, proxy.getCircuitBreaker().getOpenCount());
+    }
+
+    private void addService(Association<Echo> association, AssociationProxySupport<Echo> proxy, Echo service) {
+        association.addServiceItem(new ServiceItem(new ServiceID(service.hashCode(), 0), service, new Entry[0]));
+        proxy.discovered(association, service);
+    }
+
+    /**
+     * A CircuitBreaker whose time is advanced by the test
+     */
+    static class ManualCircuitBreaker<T> extends CircuitBreaker<T> {
+        private final AtomicLong now = new AtomicLong();
+
+        ManualCircuitBreaker(int window, int failureRate, long slowCall, long openTime) {
+            super(window, failureRate, slowCall, openTime);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now.get();
+        }
+
+        void advance(long millis) {
+            now.addAndGet(millis);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.associations;
+
+import java.io.Serializable;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An {@link Echo} service used by association tests. The service returns its
+ * name and the echoed value, and can be made slow or unreachable.
+ */
+public class EchoImpl implements Echo, Serializable {
+    private final String name;
+    private final AtomicInteger invocations = new AtomicInteger();
+    private volatile long delay;
+    private volatile boolean reachable = true;
+
+    public EchoImpl(String name) {
+        this(name, 0);
+    }
+
+    public EchoImpl(String name, long delay) {
+        this.name = name;
+        this.delay = delay;
+    }
+
+    public String echo(String s) throws RemoteException {
+        invocations.incrementAndGet();
+        if(!reachable)
+            throw new ConnectException("Connection refused",
+                                       new java.net.ConnectException("Connection refused"));
+        if(s==null)
+            throw new IllegalArgumentException("s is null");
+        if(delay>0) {
+            try {
+                Thread.sleep(delay);
+            } catch(InterruptedException e) {
+                throw new RemoteException("interrupted", e);
+            }
+        }
+        return name+":"+s;
+    }
+
+    public int getInvocations() {
+        return invocations.get();
+    }
+
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    public void setReachable(boolean reachable) {
+        this.reachable = reachable;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.associations;
+
+import junit.framework.Assert;
+import net.jini.config.EmptyConfiguration;
+import net.jini.core.entry.Entry;
+import net.jini.core.lookup.ServiceID;
+import net.jini.core.lookup.ServiceItem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rioproject.watch.CounterWatch;
+import org.rioproject.watch.StopWatch;
+import org.rioproject.watch.WatchDataSourceRegistry;
+
+import java.lang.reflect.Method;
+import java.rmi.RemoteException;
+
+/**
+ * Tests that <code>InvocationMetrics</code> publishes invocations as watches
+ */
+public class InvocationMetricsTest {
+    private WatchDataSourceRegistry registry;
+    private InvocationMetrics<String> metrics;
+    private Association<String> association;
+    private ServiceID serviceID;
+
+    @Before
+    public void create() {
+        AssociationDescriptor descriptor = new AssociationDescriptor(AssociationType.USES);
+        descriptor.setName("Echo");
+        association = new Association<String>(descriptor);
+        serviceID = new ServiceID(1, 2);
+        association.addServiceItem(new ServiceItem(serviceID, "service", new Entry[0]));
+        registry = new WatchDataSourceRegistry();
+        metrics = new InvocationMetrics<String>(association, registry, EmptyConfiguration.INSTANCE);
+    }
+
+    @After
+    public void terminate() {
+        metrics.terminate();
+        registry.closeAll();
+    }
+
+    @Test
+    public void testInvocationsArePublished() throws Exception {
+        final Method length = String.class.getMethod("length");
+        Thread[] threads = new Thread[4];
+        for(int i=0; i<threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for(int j=0; j<100; j++)
+                        metrics.invocationCompleted("service", length, 2*1000*1000,
+                                                    j%10==0?new RemoteException():null);
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread t : threads)
+            t.join();
+        metrics.publish();
+
+        StopWatch latency = (StopWatch)registry.findWatch("Echo.length");
+        Assert.assertNotNull(latency);
+        Assert.assertEquals(2.0, latency.getLastCalculableValue(), 0.001);
+        StopWatch p99 = (StopWatch)registry.findWatch("Echo.length.p99");
+        Assert.assertNotNull(p99);
+        Assert.assertTrue(p99.getLastCalculableValue()>1.5 && p99.getLastCalculableValue()<=2.0);
+        Assert.assertEquals(400, ((CounterWatch)registry.findWatch("Echo.length.invocations")).getCounter());
+        Assert.assertEquals(40, ((CounterWatch)registry.findWatch("Echo.length.failures")).getCounter());
+        Assert.assertEquals(400, ((CounterWatch)registry.findWatch("Echo@"+serviceID+".invocations")).getCounter());
+
+        metrics.invocationCompleted("service", length, 1000, null);
+        metrics.publish();
+        Assert.assertEquals(401, ((CounterWatch)registry.findWatch("Echo.length.invocations")).getCounter());
+    }
+
+    @Test
+    public void testWatchesOfDepartedServicesAreDeregistered() throws Exception {
+        Method length = String.class.getMethod("length");
+        metrics.invocationCompleted("service", length, 1000, new RemoteException());
+        metrics.publish();
+        int registered = registry.fetch().length;
+
+        ServiceID removedID = new ServiceID(3, 4);
+        ServiceID ejectedID = new ServiceID(5, 6);
+        association.addServiceItem(new ServiceItem(removedID, "removed", new Entry[0]));
+        association.addServiceItem(new ServiceItem(ejectedID, "ejected", new Entry[0]));
+        for(String service : new String[]{"removed", "ejected"}) {
+            metrics.invocationCompleted(service, length, 1000, null);
+            metrics.invocationCompleted(service, length, 1000, new RemoteException());
+        }
+        metrics.publish();
+        Assert.assertEquals(registered+6, registry.fetch().length);
+        Assert.assertNotNull(registry.findWatch("Echo@"+removedID+".failures"));
+
+        association.removeService("removed");
+        metrics.serviceEjected("ejected");
+        /* An invocation completing after the service was removed */
+        metrics.invocationCompleted("removed", length, 1000, null);
+        metrics.publish();
+        /* The service watches are gone, the ejection is counted */
+        Assert.assertEquals(registered+1, registry.fetch().length);
+        Assert.assertEquals(1, ((CounterWatch)registry.findWatch("Echo.serviceEjections")).getCounter());
+        Assert.assertNull(registry.findWatch("Echo@"+removedID));
+        Assert.assertNull(registry.findWatch("Echo@"+ejectedID+".invocations"));
+        Assert.assertNotNull(registry.findWatch("Echo@"+serviceID));
+        Assert.assertEquals(6, ((CounterWatch)registry.findWatch("Echo.length.invocations")).getCounter());
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        for(long value : new long[]{0, 3, 4, 7, 8, 1000, 123456789, Long.MAX_VALUE}) {
+            int bucket = InvocationMetrics.Stats.bucket(value);
+            long lower = InvocationMetrics.Stats.bucketValue(bucket);
+            Assert.assertTrue(bucket<InvocationMetrics.Stats.BUCKETS);
+            Assert.assertTrue(value+" in bucket starting at "+lower, lower<=value && value-lower<=value/4);
+        }
+    }
+}
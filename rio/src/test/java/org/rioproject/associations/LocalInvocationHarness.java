@@ -0,0 +1,96 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.associations;
+
+import org.rioproject.associations.LocalServiceResolverTest.Counter;
+import org.rioproject.associations.LocalServiceResolverTest.CounterImpl;
+import org.rioproject.associations.LocalServiceResolverTest.CounterStub;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A benchmark harness comparing the latency of invocations made through an
+ * {@link AssociationProxySupport} to a colocated service: invoking the
+ * service's implementation directly, directly with copy-on-call, and through
+ * a stub that marshals arguments and results as a remote invocation would.
+ *
+ * <pre>
+ * java org.rioproject.associations.LocalInvocationHarness [-iterations 500]
+ *     [-values 10]
+ * </pre>
+ *
+ * The iterations are the number of invocations measured for each way, after
+ * as many warm up invocations, and the values are the size of the list
+ * passed as an argument.
+ */
+public class LocalInvocationHarness {
+
+    public static void main(String[] args) throws Throwable {
+        int iterations = 500;
+        int size = 10;
+        for(int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if(option.equals("-iterations")) {
+                iterations = Integer.parseInt(args[++i]);
+            } else if(option.equals("-values")) {
+                size = Integer.parseInt(args[++i]);
+            } else {
+                throw new IllegalArgumentException(option);
+            }
+        }
+        Method add = Counter.class.getMethod("add", List.class, String.class);
+        List<String> values = new ArrayList<String>();
+        for(int i=0; i<size; i++)
+            values.add("value-"+i);
+        Object[] invocationArgs = new Object[]{values, "a"};
+
+        Counter impl = new CounterImpl();
+        AssociationProxySupport<Counter> remote =
+            LocalServiceResolverTest.createProxy(new CounterStub(impl), impl, false);
+        remote.setLocalServiceResolver(null);
+        AssociationProxySupport<Counter> local =
+            LocalServiceResolverTest.createProxy(new CounterStub(impl), impl, false);
+        AssociationProxySupport<Counter> copying =
+            LocalServiceResolverTest.createProxy(new CounterStub(impl), impl, true);
+
+        /* Warm up, then measure */
+        measure(remote, add, invocationArgs, iterations);
+        measure(local, add, invocationArgs, iterations);
+        measure(copying, add, invocationArgs, iterations);
+        long remoteNanos = measure(remote, add, invocationArgs, iterations);
+        long localNanos = measure(local, add, invocationArgs, iterations);
+        long copyingNanos = measure(copying, add, invocationArgs, iterations);
+        System.out.println(String.format("Mean invocation latency over %d invocations: " +
+                                         "marshalled=%.2f us, local=%.2f us, local with copy-on-call=%.2f us",
+                                         iterations,
+                                         remoteNanos/1e3/iterations,
+                                         localNanos/1e3/iterations,
+                                         copyingNanos/1e3/iterations));
+    }
+
+    private static long measure(AssociationProxySupport<Counter> proxy,
+                                Method method,
+                                Object[] args,
+                                int iterations) throws Throwable {
+        Association<Counter> association = proxy.getAssociation();
+        long t0 = System.nanoTime();
+        for(int i=0; i<iterations; i++)
+            proxy.doInvokeService(association, method, args);
+        return System.nanoTime()-t0;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.associations;
+
+import junit.framework.Assert;
+import net.jini.core.entry.Entry;
+import net.jini.core.lookup.ServiceID;
+import net.jini.core.lookup.ServiceItem;
+import net.jini.id.Uuid;
+import net.jini.id.UuidFactory;
+import net.jini.io.MarshalledInstance;
+import org.junit.Test;
+import org.rioproject.associations.strategy.RoundRobin;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests that an <code>AssociationProxySupport</code> invokes colocated
+ * services directly using a <code>LocalServiceResolver</code>. The latency of
+ * local invocations is measured by {@link LocalInvocationHarness}
+ */
+public class LocalServiceResolverTest {
+
+    @Test
+    public void testColocatedServiceIsInvokedDirectly() throws Throwable {
+        Counter impl = new CounterImpl();
+        CounterStub stub = new CounterStub(impl);
+        AssociationProxySupport<Counter> proxy = createProxy(stub, impl, false);
+        Method add = Counter.class.getMethod("add", List.class, String.class);
+
+        List<String> values = new ArrayList<String>();
+        proxy.doInvokeService(proxy.getAssociation(), add, new Object[]{values, "a"});
+        Assert.assertEquals(0, stub.invocations);
+        Assert.assertEquals("Arguments are passed by reference", 1, values.size());
+        Assert.assertEquals(1, proxy.getInvocationCount());
+    }
+
+    @Test
+    public void testCopyOnCall() throws Throwable {
+        Counter impl = new CounterImpl();
+        CounterStub stub = new CounterStub(impl);
+        AssociationProxySupport<Counter> proxy = createProxy(stub, impl, true);
+        Method add = Counter.class.getMethod("add", List.class, String.class);
+
+        List<String> values = new ArrayList<String>();
+        Object result = proxy.doInvokeService(proxy.getAssociation(), add, new Object[]{values, "a"});
+        Assert.assertEquals(0, stub.invocations);
+        Assert.assertEquals("Arguments are copied", 0, values.size());
+        Assert.assertEquals(Collections.singletonList("a"), result);
+    }
+
+    @Test
+    public void testServiceNotInContainerIsInvokedRemotely() throws Throwable {
+        Counter impl = new CounterImpl();
+        CounterStub stub = new CounterStub(impl);
+        AssociationProxySupport<Counter> proxy = createProxy(stub, impl, false);
+        proxy.setLocalServiceResolver(new LocalServiceResolver(null, false));
+        Method add = Counter.class.getMethod("add", List.class, String.class);
+
+        proxy.doInvokeService(proxy.getAssociation(), add, new Object[]{new ArrayList<String>(), "a"});
+        Assert.assertEquals(1, stub.invocations);
+    }
+
+    @Test
+    public void testImplementationMustImplementInterfaces() {
+        final Object impl = "not a counter";
+        LocalServiceResolver resolver = new LocalServiceResolver(null, false) {
+            @Override
+            protected Object getImplementation(Uuid uuid) {
+                return impl;
+            }
+        };
+        List<Class> interfaces = new ArrayList<Class>();
+        interfaces.add(CharSequence.class);
+        Assert.assertSame(impl, resolver.resolve(new ServiceID(1, 1), interfaces));
+        interfaces.add(Counter.class);
+        Assert.assertNull(resolver.resolve(new ServiceID(1, 1), interfaces));
+    }
+
+    /*
+     * Create a proxy associated to the stub, whose implementation is
+     * resolved by a LocalServiceResolver
+     */
+    static AssociationProxySupport<Counter> createProxy(CounterStub stub, final Counter impl, boolean copyOnCall) {
+        Association<Counter> association =
+            new Association<Counter>(new AssociationDescriptor(AssociationType.COLOCATED));
+        ServiceID serviceID = new ServiceID(stub.hashCode(), 0);
+        association.addServiceItem(new ServiceItem(serviceID, stub, new Entry[0]));
+        final Map<Uuid, Object> container = new HashMap<Uuid, Object>();
+        container.put(UuidFactory.create(serviceID.getMostSignificantBits(),
+                                          serviceID.getLeastSignificantBits()),
+                      impl);
+        AssociationProxySupport<Counter> proxy = new AssociationProxySupport<Counter>();
+        proxy.setProxyInterfaces(new Class[]{Counter.class});
+        RoundRobin<Counter> strategy = new RoundRobin<Counter>();
+        strategy.setAssociation(association);
+        proxy.setServiceSelectionStrategy(strategy);
+        proxy.setLocalServiceResolver(new LocalServiceResolver(null, copyOnCall) {
+            @Override
+            protected Object getImplementation(Uuid uuid) {
+                return container.get(uuid);
+            }
+        });
+        return proxy;
+    }
+
+    public interface Counter {
+        List<String> add(List<String> values, String value) throws RemoteException;
+    }
+
+    static class CounterImpl implements Counter {
+        public List<String> add(List<String> values, String value) {
+            values.add(value);
+            return Collections.singletonList(value);
+        }
+    }
+
+    /**
+     * Stands in for a remote proxy, marshalling arguments and results
+     */
+    static class CounterStub implements Counter {
+        final Counter impl;
+        volatile int invocations;
+
+        CounterStub(Counter impl) {
+            this.impl = impl;
+        }
+
+        @SuppressWarnings("unchecked")
+        public List<String> add(List<String> values, String value) throws RemoteException {
+            invocations++;
+            try {
+                List<String> copy = (List<String>)new MarshalledInstance(values).get(false);
+                List<String> result = impl.add(copy, value);
+                return (List<String>)new MarshalledInstance(result).get(false);
+            } catch(IOException e) {
+                throw new RemoteException("marshalling", e);
+            } catch(ClassNotFoundException e) {
+                throw new RemoteException("unmarshalling", e);
+            }
+        }
+    }
+}
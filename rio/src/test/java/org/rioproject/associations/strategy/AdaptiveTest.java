@@ -0,0 +1,111 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.associations.strategy;
+
+import junit.framework.Assert;
+import net.jini.core.entry.Entry;
+import net.jini.core.lookup.ServiceID;
+import net.jini.core.lookup.ServiceItem;
+import org.junit.Test;
+import org.rioproject.associations.Association;
+import org.rioproject.associations.AssociationDescriptor;
+import org.rioproject.associations.AssociationType;
+
+import java.rmi.RemoteException;
+
+/**
+ * Tests the <code>Adaptive</code> service selection strategy
+ */
+public class AdaptiveTest {
+
+    @Test
+    public void testEmptyAndSingleService() {
+        Association<String> association = createAssociation(0);
+        Adaptive<String> strategy = new Adaptive<String>();
+        strategy.setAssociation(association);
+        Assert.assertNull(strategy.getService());
+        addService(association, strategy, "service-0");
+        for(int i=0; i<10; i++)
+            Assert.assertEquals("service-0", strategy.getService());
+    }
+
+    @Test
+    public void testSlowServiceIsAvoided() {
+        Association<String> association = createAssociation(2);
+        Adaptive<String> strategy = new Adaptive<String>();
+        strategy.setAssociation(association);
+        strategy.invocationStarted("service-0", null);
+        strategy.invocationCompleted("service-0", null, 1000*1000, null);
+        strategy.invocationStarted("service-1", null);
+        strategy.invocationCompleted("service-1", null, 100*1000*1000, null);
+        for(int i=0; i<100; i++)
+            Assert.assertEquals("service-0", strategy.getService());
+    }
+
+    @Test
+    public void testFailingServiceIsAvoided() {
+        Association<String> association = createAssociation(2);
+        Adaptive<String> strategy = new Adaptive<String>();
+        strategy.setAssociation(association);
+        for(int i=0; i<10; i++) {
+            strategy.invocationStarted("service-0", null);
+            strategy.invocationCompleted("service-0", null, 1000*1000, new RemoteException());
+            strategy.invocationStarted("service-1", null);
+            strategy.invocationCompleted("service-1", null, 2*1000*1000, null);
+        }
+        for(int i=0; i<100; i++)
+            Assert.assertEquals("service-1", strategy.getService());
+    }
+
+    @Test
+    public void testInFlightInvocationsShedLoad() {
+        Association<String> association = createAssociation(2);
+        Adaptive<String> strategy = new Adaptive<String>();
+        strategy.setAssociation(association);
+        for(int i=0; i<10; i++)
+            strategy.invocationStarted("service-0", null);
+        for(int i=0; i<100; i++)
+            Assert.assertEquals("service-1", strategy.getService());
+    }
+
+    @Test
+    public void testBrokenServiceIsRemoved() {
+        Association<String> association = createAssociation(2);
+        Adaptive<String> strategy = new Adaptive<String>();
+        strategy.setAssociation(association);
+        association.removeService("service-0");
+        strategy.broken(association, "service-0");
+        for(int i=0; i<10; i++)
+            Assert.assertEquals("service-1", strategy.getService());
+    }
+
+    private Association<String> createAssociation(int count) {
+        Association<String> association =
+            new Association<String>(new AssociationDescriptor(AssociationType.USES));
+        for(int i=0; i<count; i++)
+            association.addServiceItem(createItem("service-"+i));
+        return association;
+    }
+
+    private void addService(Association<String> association, Adaptive<String> strategy, String service) {
+        association.addServiceItem(createItem(service));
+        strategy.discovered(association, service);
+    }
+
+    private ServiceItem createItem(String service) {
+        return new ServiceItem(new ServiceID(service.hashCode(), 0), service, new Entry[0]);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.bean.proxy;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that the <code>BeanDelegator</code> delegates invocations to the bean
+ */
+public class BeanDelegatorTest {
+
+    @Test
+    public void testInvocationsAreDelegatedToBean() throws Exception {
+        Hello proxy = (Hello)BeanDelegator.getInstance(new Object(), new HelloBean(), new Class[]{Hello.class});
+        for(int i=0; i<3; i++)
+            Assert.assertEquals("hello world", proxy.hello("world"));
+        Assert.assertEquals("HelloBean", proxy.toString());
+        try {
+            proxy.hello(null);
+            Assert.fail("Expected IllegalArgumentException");
+        } catch(IllegalArgumentException e) {
+            Assert.assertEquals("name is null", e.getMessage());
+        }
+    }
+
+    public interface Hello {
+        String hello(String name);
+    }
+
+    /* Not public, the delegator must still be able to invoke it */
+    static class HelloBean implements Hello {
+        public String hello(String name) {
+            if(name==null)
+                throw new IllegalArgumentException("name is null");
+            return "hello "+name;
+        }
+
+        @Override
+        public String toString() {
+            return "HelloBean";
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.fdh;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the <code>FaultDetectionEngine</code>
+ */
+public class FaultDetectionEngineTest {
+    private FaultDetectionEngine engine;
+
+    @Before
+    public void createEngine() {
+        engine = new FaultDetectionEngine(4, 10, 0.1);
+    }
+
+    @After
+    public void shutdownEngine() {
+        engine.shutdown();
+    }
+
+    @Test
+    public void testReachableServiceIsProbedPeriodically() throws InterruptedException {
+        CountingProbe probe = new CountingProbe(FaultDetectionEngine.Probe.Result.REACHABLE, 5);
+        FaultDetectionEngine.Registration registration = engine.register("reachable", probe, 20, 3, 10);
+        Assert.assertTrue(probe.probed.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(registration.getProbeCount()>=4);
+        Assert.assertEquals(0, probe.failed.get());
+        Assert.assertEquals(-1, registration.getDetectionLatency());
+        registration.cancel();
+        Assert.assertFalse(engine.getRegistrations().contains(registration));
+    }
+
+    @Test
+    public void testUnreachableServiceIsRetried() throws InterruptedException {
+        CountingProbe probe = new CountingProbe(FaultDetectionEngine.Probe.Result.UNREACHABLE, 0);
+        FaultDetectionEngine.Registration registration = engine.register("unreachable", probe, 20, 3, 30);
+        Assert.assertTrue(probe.failure.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, probe.failed.get());
+        Assert.assertEquals(4, probe.count.get());
+        Assert.assertEquals(3, registration.getRetryCount());
+        Assert.assertTrue(registration.isCancelled());
+        Assert.assertTrue("Detection latency should include 3 retry timeouts, was "+
+                          registration.getDetectionLatency(),
+                          registration.getDetectionLatency()>=90);
+        Assert.assertEquals(1, engine.getFailuresDetected());
+    }
+
+    @Test
+    public void testFailedServiceIsNotRetried() throws InterruptedException {
+        CountingProbe probe = new CountingProbe(FaultDetectionEngine.Probe.Result.FAILED, 0);
+        engine.register("failed", probe, 20, 3, 30);
+        Assert.assertTrue(probe.failure.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, probe.count.get());
+        Assert.assertEquals(1, probe.failed.get());
+    }
+
+    @Test
+    public void testCancelledRegistrationIsNotProbed() throws InterruptedException {
+        CountingProbe probe = new CountingProbe(FaultDetectionEngine.Probe.Result.REACHABLE, 1);
+        FaultDetectionEngine.Registration registration = engine.register("cancelled", probe, 100, 3, 10);
+        registration.cancel();
+        Assert.assertFalse(probe.probed.await(300, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(0, probe.count.get());
+    }
+
+    class CountingProbe implements FaultDetectionEngine.Probe {
+        final Result result;
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final CountDownLatch probed;
+        final CountDownLatch failure = new CountDownLatch(1);
+
+        CountingProbe(Result result, int expected) {
+            this.result = result;
+            probed = new CountDownLatch(expected);
+        }
+
+        public Result probe() {
+            count.incrementAndGet();
+            probed.countDown();
+            return result;
+        }
+
+        public void failed() {
+            failed.incrementAndGet();
+            failure.countDown();
+        }
+    }
+}
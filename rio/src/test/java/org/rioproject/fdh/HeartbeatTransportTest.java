@@ -0,0 +1,116 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.fdh;
+
+import junit.framework.Assert;
+import net.jini.id.Uuid;
+import net.jini.id.UuidFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the UDP heartbeat transport, the <code>HeartbeatSender</code> and
+ * <code>HeartbeatReceiver</code>
+ */
+public class HeartbeatTransportTest {
+    private HeartbeatReceiver receiver;
+    private HeartbeatSender sender;
+
+    @Before
+    public void create() throws Exception {
+        receiver = new HeartbeatReceiver(new InetSocketAddress("127.0.0.1", 0));
+        sender = new HeartbeatSender();
+    }
+
+    @After
+    public void close() {
+        receiver.close();
+    }
+
+    @Test
+    public void testHeartbeatsAreBatched() throws Exception {
+        int services = 100;
+        List<CountingListener> listeners = new ArrayList<CountingListener>();
+        for(int i=0; i<services; i++) {
+            Uuid uuid = UuidFactory.generate();
+            CountingListener listener = new CountingListener(3);
+            receiver.register(uuid, listener);
+            listeners.add(listener);
+            sender.register(receiver.getAddress(), 200, uuid);
+        }
+        for(CountingListener listener : listeners) {
+            Assert.assertTrue(listener.latch.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(listener.lastSequence>=3);
+        }
+        /* 100 initial heartbeats, then 2 datagrams (58 entries each) per period */
+        long periodic = sender.getDatagramsSent()-services;
+        Assert.assertTrue("Expected batched datagrams, sent "+periodic, periodic<=10);
+        Assert.assertEquals(0, receiver.getUnknownHeartbeats());
+    }
+
+    @Test
+    public void testUnknownHeartbeatsAreCancelled() throws Exception {
+        Uuid uuid = UuidFactory.generate();
+        CountingListener listener = new CountingListener(1);
+        receiver.register(uuid, listener);
+        HeartbeatSender.Registration registration = sender.register(receiver.getAddress(), 100, uuid);
+        Assert.assertTrue(listener.latch.await(5, TimeUnit.SECONDS));
+        receiver.unregister(uuid);
+        long t0 = System.currentTimeMillis();
+        while(!registration.isCancelled() && System.currentTimeMillis()-t0<5000)
+            Thread.sleep(50);
+        Assert.assertTrue(registration.isCancelled());
+        Assert.assertTrue(receiver.getUnknownHeartbeats()>0);
+    }
+
+    @Test
+    public void testHeartbeatsSentBeforeRegistrationAreNotCancelled() throws Exception {
+        Uuid uuid = UuidFactory.generate();
+        HeartbeatSender.Registration registration = sender.register(receiver.getAddress(), 100, uuid);
+        /* The service starts sending heartbeats before the handler has
+         * registered with the receiver */
+        long t0 = System.currentTimeMillis();
+        while(receiver.getUnknownHeartbeats()<2 && System.currentTimeMillis()-t0<5000)
+            Thread.sleep(10);
+        Assert.assertTrue(receiver.getUnknownHeartbeats()>=2);
+        CountingListener listener = new CountingListener(HeartbeatSender.UNKNOWN_GRACE_PERIODS*2);
+        receiver.register(uuid, listener);
+        Assert.assertTrue(listener.latch.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse(registration.isCancelled());
+    }
+
+    class CountingListener implements HeartbeatReceiver.Listener {
+        final CountDownLatch latch;
+        volatile long lastSequence;
+
+        CountingListener(int expected) {
+            latch = new CountDownLatch(expected);
+        }
+
+        public void heartbeat(long sequence, InetAddress from) {
+            lastSequence = sequence;
+            latch.countDown();
+        }
+    }
+}
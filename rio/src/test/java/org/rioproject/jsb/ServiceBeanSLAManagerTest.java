@@ -0,0 +1,121 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.jsb;
+
+import junit.framework.Assert;
+import net.jini.config.EmptyConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rioproject.core.ServiceBeanConfig;
+import org.rioproject.core.ServiceElement;
+import org.rioproject.core.jsb.ComputeResourceManager;
+import org.rioproject.core.jsb.ServiceBeanContext;
+import org.rioproject.sla.SLA;
+import org.rioproject.sla.SLAPolicyHandler;
+import org.rioproject.sla.ScalingPolicyHandler;
+import org.rioproject.system.measurable.MeasurableCapability;
+import org.rioproject.watch.WatchDataSourceRegistry;
+import org.rioproject.watch.WatchDescriptor;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test the SLAPolicyHandlers created by the {@link ServiceBeanSLAManager}
+ */
+public class ServiceBeanSLAManagerTest {
+    private final WatchDataSourceRegistry watchRegistry = new WatchDataSourceRegistry();
+    private ServiceBeanSLAManager slaManager;
+
+    @Before
+    public void createManager() throws Exception {
+        Map<String, Object> parms = new HashMap<String, Object>();
+        parms.put(ServiceBeanConfig.INSTANCE_ID, 1L);
+        ServiceBeanConfig sbConfig = new ServiceBeanConfig(parms, new String[0]);
+        sbConfig.setName("x");
+        sbConfig.setOperationalStringName("sla");
+        ServiceElement sElem = new ServiceElement();
+        sElem.setServiceBeanConfig(sbConfig);
+
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("getServiceElement", sElem);
+        values.put("getServiceBeanConfig", sbConfig);
+        values.put("getWatchRegistry", watchRegistry);
+        values.put("getConfiguration", EmptyConfiguration.INSTANCE);
+        values.put("getMatchedMeasurableCapabilities", new MeasurableCapability[0]);
+        values.put("getComputeResourceManager", create(ComputeResourceManager.class, values));
+        slaManager = new ServiceBeanSLAManager(new Service(),
+                                               new Object(),
+                                               create(ServiceBeanContext.class, values),
+                                               null);
+    }
+
+    @After
+    public void terminate() {
+        slaManager.terminate();
+    }
+
+    @Test
+    public void testServiceSLACreatesPolicyHandler() {
+        slaManager.addSLAs(new SLA[]{createSLA("latency", SLAPolicyHandler.class)});
+        Assert.assertEquals(1, slaManager.getSLAPolicyHandlers().length);
+        Assert.assertNotNull(watchRegistry.findWatch("latency"));
+    }
+
+    @Test
+    public void testAggregateSLACreatesNoPolicyHandler() {
+        SLA sla = createSLA("p95(latency)", ScalingPolicyHandler.class);
+        slaManager.addSLAs(new SLA[]{sla});
+        Assert.assertEquals(0, slaManager.getSLAPolicyHandlers().length);
+        /* The watch is still created, the monitor aggregates it */
+        Assert.assertNotNull(watchRegistry.findWatch("latency"));
+
+        slaManager.updateSLAs(new SLA[]{sla});
+        Assert.assertEquals(0, slaManager.getSLAPolicyHandlers().length);
+        Assert.assertNotNull(watchRegistry.findWatch("latency"));
+    }
+
+    private SLA createSLA(String identifier, Class<? extends SLAPolicyHandler> handler) {
+        SLA sla = new SLA(identifier, 0, 100);
+        sla.setSlaPolicyHandler(handler.getName());
+        sla.setWatchDescriptors(new WatchDescriptor("latency", "latency", 1000));
+        return sla;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T create(Class<T> type, final Map<String, Object> values) {
+        return (T)Proxy.newProxyInstance(type.getClassLoader(),
+                                         new Class[]{type},
+                                         new InvocationHandler() {
+                                             public Object invoke(Object proxy, Method method, Object[] args)
+                                                 throws Exception {
+                                                 if(method.getDeclaringClass()==Object.class)
+                                                     return method.invoke(this, args);
+                                                 return values.get(method.getName());
+                                             }
+                                         });
+    }
+
+    public static class Service {
+        public double getLatency() {
+            return 10;
+        }
+    }
+}
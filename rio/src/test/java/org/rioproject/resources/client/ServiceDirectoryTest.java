@@ -0,0 +1,158 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.resources.client;
+
+import junit.framework.Assert;
+import net.jini.core.discovery.LookupLocator;
+import net.jini.core.entry.Entry;
+import net.jini.core.lookup.ServiceID;
+import net.jini.core.lookup.ServiceItem;
+import net.jini.lookup.ServiceDiscoveryEvent;
+import net.jini.lookup.ServiceDiscoveryListener;
+import net.jini.lookup.entry.Name;
+import org.junit.Before;
+import org.junit.Test;
+import org.rioproject.associations.Echo;
+import org.rioproject.associations.EchoImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that the <code>ServiceDirectory</code> indexes discovered services,
+ * and notifies the views that match them
+ */
+public class ServiceDirectoryTest {
+    private ServiceDirectory directory;
+    private ServiceDirectory.Partition partition;
+
+    @Before
+    public void create() {
+        directory = new ServiceDirectory();
+        partition = new ServiceDirectory.Partition(new String[]{"rio"}, null);
+    }
+
+    @Test
+    public void testViewsMatchByInterfaceAndName() {
+        Recorder echoes = new Recorder();
+        Recorder named = new Recorder();
+        Recorder greeters = new Recorder();
+        addView(new String[]{Echo.class.getName()}, null).addListener(echoes);
+        addView(new String[]{Echo.class.getName()}, "Fred").addListener(named);
+        addView(new String[]{Greeter.class.getName()}, null).addListener(greeters);
+
+        ServiceItem fred = item(1, new EchoImpl("Fred"), "Fred");
+        ServiceItem barney = item(2, new GreetingEchoImpl("Barney"), "Barney");
+        partition.serviceAdded(new ServiceDiscoveryEvent(partition, null, fred));
+        partition.serviceAdded(new ServiceDiscoveryEvent(partition, null, barney));
+
+        Assert.assertEquals(2, echoes.added.size());
+        Assert.assertEquals(1, named.added.size());
+        Assert.assertEquals(fred.serviceID, named.added.get(0).serviceID);
+        Assert.assertEquals(1, greeters.added.size());
+        Assert.assertEquals(barney.serviceID, greeters.added.get(0).serviceID);
+
+        partition.serviceRemoved(new ServiceDiscoveryEvent(partition, barney, null));
+        Assert.assertEquals(1, echoes.removed.size());
+        Assert.assertEquals(0, named.removed.size());
+        Assert.assertEquals(1, greeters.removed.size());
+    }
+
+    @Test
+    public void testLookupAndListenerReplay() {
+        ServiceDirectory.View view = addView(new String[]{Echo.class.getName()}, null);
+        partition.serviceAdded(new ServiceDiscoveryEvent(partition, null, item(1, new EchoImpl("Fred"), "Fred")));
+        partition.serviceAdded(new ServiceDiscoveryEvent(partition, null, item(2, new EchoImpl("Wilma"), "Wilma")));
+        partition.serviceAdded(new ServiceDiscoveryEvent(partition, null, item(3, "not an echo", "Betty")));
+
+        Assert.assertEquals(2, view.lookup(null, 10).length);
+        Assert.assertEquals(1, view.lookup(null, 1).length);
+        Assert.assertNotNull(view.lookup(null));
+
+        Recorder late = new Recorder();
+        view.addListener(late);
+        Assert.assertEquals(2, late.added.size());
+    }
+
+    @Test
+    public void testChangedServiceMovesBetweenViews() {
+        Recorder fredView = new Recorder();
+        Recorder barneyView = new Recorder();
+        addView(new String[]{Echo.class.getName()}, "Fred").addListener(fredView);
+        addView(new String[]{Echo.class.getName()}, "Barney").addListener(barneyView);
+
+        ServiceItem fred = item(1, new EchoImpl("Fred"), "Fred");
+        ServiceItem renamed = item(1, fred.service, "Barney");
+        partition.serviceAdded(new ServiceDiscoveryEvent(partition, null, fred));
+        partition.serviceChanged(new ServiceDiscoveryEvent(partition, fred, renamed));
+
+        Assert.assertEquals(1, fredView.added.size());
+        Assert.assertEquals(1, fredView.removed.size());
+        Assert.assertEquals(1, barneyView.added.size());
+        Assert.assertEquals(renamed.serviceID, barneyView.added.get(0).serviceID);
+    }
+
+    @Test
+    public void testPartitionMatching() throws Exception {
+        LookupLocator locator = new LookupLocator("jini://localhost");
+        ServiceDirectory.Partition p =
+            new ServiceDirectory.Partition(new String[]{"a", "b"}, new LookupLocator[]{locator});
+        Assert.assertTrue(p.matches(new String[]{"b", "a"}, new LookupLocator[]{locator}));
+        Assert.assertFalse(p.matches(new String[]{"a"}, new LookupLocator[]{locator}));
+        Assert.assertFalse(p.matches(new String[]{"a", "b"}, null));
+        Assert.assertFalse(p.matches(null, new LookupLocator[]{locator}));
+    }
+
+    private ServiceDirectory.View addView(String[] interfaceNames, String name) {
+        ServiceDirectory.View view = directory.new View(partition, interfaceNames, name, null);
+        partition.views.add(view);
+        return view;
+    }
+
+    private ServiceItem item(long id, Object service, String name) {
+        return new ServiceItem(new ServiceID(id, id), service, new Entry[]{new Name(name)});
+    }
+
+    static class Recorder implements ServiceDiscoveryListener {
+        final List<ServiceItem> added = new ArrayList<ServiceItem>();
+        final List<ServiceItem> removed = new ArrayList<ServiceItem>();
+
+        public void serviceAdded(ServiceDiscoveryEvent event) {
+            added.add(event.getPostEventServiceItem());
+        }
+
+        public void serviceRemoved(ServiceDiscoveryEvent event) {
+            removed.add(event.getPreEventServiceItem());
+        }
+
+        public void serviceChanged(ServiceDiscoveryEvent event) {
+        }
+    }
+
+    public interface Greeter {
+        String greet(String s);
+    }
+
+    static class GreetingEchoImpl extends EchoImpl implements Greeter {
+        GreetingEchoImpl(String name) {
+            super(name);
+        }
+
+        public String greet(String s) {
+            return "Hello "+s;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.resources.util;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Test the <code>TaskScheduler</code>
+ */
+public class TaskSchedulerTest {
+    private TaskScheduler scheduler;
+
+    @Before
+    public void create() {
+        scheduler = new TaskScheduler("TaskSchedulerTest", 1, 2, 200);
+    }
+
+    @After
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testScheduleRecordsStatistics() throws InterruptedException {
+        CountingTask task = new CountingTask(1);
+        long before = System.currentTimeMillis();
+        scheduler.schedule(task, 50);
+        Assert.assertTrue(task.scheduledExecutionTime()>=before+50);
+        Assert.assertTrue(task.latch.await(5, TimeUnit.SECONDS));
+        waitForRuns("CountingTask", 1);
+        TaskScheduler.Statistics stats = scheduler.getStatistics("CountingTask");
+        Assert.assertEquals(1, stats.getRuns());
+        Assert.assertEquals(0, stats.getFailures());
+    }
+
+    @Test
+    public void testCancelledTaskDoesNotRun() throws InterruptedException {
+        CountingTask task = new CountingTask(1);
+        scheduler.schedule(task, 100);
+        Assert.assertTrue(task.cancel());
+        Assert.assertTrue(task.isCancelled());
+        Assert.assertFalse(task.latch.await(300, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(0, task.count.get());
+    }
+
+    @Test
+    public void testFailingPeriodicTaskKeepsRunning() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(3);
+        ScheduledFuture<?> future = scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                latch.countDown();
+                throw new IllegalStateException("expected");
+            }
+        }, 0, 20);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        future.cancel(false);
+        waitForRuns("TaskSchedulerTest", 3);
+        Assert.assertTrue(scheduler.getStatistics("TaskSchedulerTest").getFailures()>=3);
+    }
+
+    @Test
+    public void testLongTaskDoesNotBlockSchedule() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        scheduler.schedule(new Runnable() {
+            public void run() {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 0);
+        /* The only thread is blocked, a thread is added once the task is long running */
+        CountingTask task = new CountingTask(1);
+        scheduler.schedule(task, 10);
+        Assert.assertTrue(task.latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, scheduler.getThreads());
+        release.countDown();
+        long waitUntil = System.currentTimeMillis()+5000;
+        while(scheduler.getThreads()>1 && System.currentTimeMillis()<waitUntil)
+            Thread.sleep(10);
+        Assert.assertEquals(1, scheduler.getThreads());
+        Assert.assertEquals(1, scheduler.getStatistics("TaskSchedulerTest").getOverruns());
+    }
+
+    @Test
+    public void testCompensationIsReleasedWhenTaskEndsDuringCheck() throws InterruptedException {
+        final TaskScheduler racing = new TaskScheduler("TaskSchedulerRaceTest", 2, 64, 1);
+        Logger logger = Logger.getLogger(TaskScheduler.class.getName());
+        Level level = logger.getLevel();
+        /* Every run is long running, do not log each one */
+        logger.setLevel(Level.SEVERE);
+        List<ScheduledFuture<?>> futures = new ArrayList<ScheduledFuture<?>>();
+        try {
+            for(int i=0; i<8; i++) {
+                futures.add(racing.scheduleAtFixedRate(new Runnable() {
+                    public void run() {
+                        long end = System.nanoTime()+TimeUnit.MICROSECONDS.toNanos(500+(long)(Math.random()*1500));
+                        while(System.nanoTime()<end)
+                            Thread.yield();
+                    }
+                }, 0, 1));
+            }
+            /* Check as the watchdog does, as often as possible, so runs end
+             * while they are being compensated for */
+            long until = System.currentTimeMillis()+2000;
+            while(System.currentTimeMillis()<until)
+                racing.checkRunning();
+            for(ScheduledFuture<?> future : futures)
+                future.cancel(false);
+            long waitUntil = System.currentTimeMillis()+5000;
+            while(racing.getThreads()>2 && System.currentTimeMillis()<waitUntil)
+                Thread.sleep(10);
+            Assert.assertTrue(racing.getStatistics("TaskSchedulerTest").getOverruns()>0);
+            Assert.assertEquals(2, racing.getThreads());
+        } finally {
+            logger.setLevel(level);
+            racing.shutdown();
+        }
+    }
+
+    private void waitForRuns(String type, long runs) throws InterruptedException {
+        long waitUntil = System.currentTimeMillis()+5000;
+        while(System.currentTimeMillis()<waitUntil) {
+            TaskScheduler.Statistics stats = scheduler.getStatistics(type);
+            if(stats!=null && stats.getRuns()>=runs)
+                return;
+            Thread.sleep(10);
+        }
+    }
+
+    static class CountingTask extends ScheduledTask {
+        final AtomicInteger count = new AtomicInteger();
+        final CountDownLatch latch;
+
+        CountingTask(int runs) {
+            latch = new CountDownLatch(runs);
+        }
+
+        public void run() {
+            count.incrementAndGet();
+            latch.countDown();
+        }
+    }
+}
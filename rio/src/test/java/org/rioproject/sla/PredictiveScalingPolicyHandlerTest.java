@@ -0,0 +1,142 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.sla;
+
+import junit.framework.Assert;
+import net.jini.config.EmptyConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rioproject.core.ServiceBeanConfig;
+import org.rioproject.core.ServiceElement;
+import org.rioproject.core.jsb.ServiceBeanContext;
+import org.rioproject.core.jsb.ServiceBeanManager;
+import org.rioproject.watch.Calculable;
+import org.rioproject.watch.WatchDataSourceRegistry;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test the increments requested by the {@link PredictiveScalingPolicyHandler}
+ */
+public class PredictiveScalingPolicyHandlerTest {
+    private final AtomicInteger increments = new AtomicInteger();
+    private final AtomicInteger predicted = new AtomicInteger();
+    private PredictiveScalingPolicyHandler handler;
+
+    @Before
+    public void createHandler() {
+        Map<String, Object> parms = new HashMap<String, Object>();
+        parms.put(ServiceBeanConfig.INSTANCE_ID, 1L);
+        ServiceBeanConfig sbConfig = new ServiceBeanConfig(parms, new String[0]);
+        sbConfig.setName("x");
+        sbConfig.setOperationalStringName("sla");
+        ServiceElement sElem = new ServiceElement();
+        sElem.setServiceBeanConfig(sbConfig);
+
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("getServiceElement", sElem);
+        values.put("getServiceBeanConfig", sbConfig);
+        values.put("getWatchRegistry", new WatchDataSourceRegistry());
+        values.put("getConfiguration", EmptyConfiguration.INSTANCE);
+        values.put("getServiceBeanManager", create(ServiceBeanManager.class, values));
+
+        handler = new PredictiveScalingPolicyHandler(new SLA("load", 0, 100)) {
+            @Override
+            protected boolean requestIncrement() {
+                increments.incrementAndGet();
+                return incrementRequested(true);
+            }
+        };
+        handler.initialize(new Object(), null, create(ServiceBeanContext.class, values));
+        handler.registerListener(new SLAPolicyEventListener() {
+            public void policyAction(SLAPolicyEvent event) {
+                if(PredictiveScalingPolicyHandler.PREDICTED_INCREMENT.equals(event.getMessage()))
+                    predicted.incrementAndGet();
+            }
+        });
+    }
+
+    @After
+    public void disconnect() {
+        handler.disconnect();
+    }
+
+    @Test
+    public void testRisingSeriesRequestsOneIncrementWithinCooldown() throws InterruptedException {
+        /* Rises 1 a second towards the high threshold of 100, every value is below it */
+        for(int i=0; i<80; i++)
+            handler.predict(new Calculable("load", 10+i, i*1000));
+        waitForIncrements(1);
+        Assert.assertEquals(1, increments.get());
+
+        /* The trend keeps rising, but the cooldown has not passed */
+        for(int i=80; i<90; i++)
+            handler.predict(new Calculable("load", 10+i, i*1000));
+        Thread.sleep(500);
+        Assert.assertEquals(1, increments.get());
+        Assert.assertEquals(1, predicted.get());
+    }
+
+    @Test
+    public void testBreachIncrementStartsCooldown() throws InterruptedException {
+        /* An increment requested by the ScalingPolicyHandler for a breach */
+        handler.requestIncrement();
+        Assert.assertEquals(1, increments.get());
+
+        /* The value falls back under the threshold while still rising */
+        for(int i=0; i<90; i++)
+            handler.predict(new Calculable("load", 10+i, i*1000));
+        Thread.sleep(500);
+        Assert.assertEquals(1, increments.get());
+        Assert.assertEquals(0, predicted.get());
+    }
+
+    @Test
+    public void testFlatSeriesRequestsNoIncrement() throws InterruptedException {
+        for(int i=0; i<90; i++)
+            handler.predict(new Calculable("load", i%2==0?40:60, i*1000));
+        Thread.sleep(500);
+        Assert.assertEquals(0, increments.get());
+        Assert.assertEquals(0, predicted.get());
+        Assert.assertTrue(handler.getPredictedValue()<100);
+    }
+
+    private void waitForIncrements(int expected) throws InterruptedException {
+        long t0 = System.currentTimeMillis();
+        while(increments.get()<expected && System.currentTimeMillis()-t0<5000)
+            Thread.sleep(10);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T create(Class<T> type, final Map<String, Object> values) {
+        return (T)Proxy.newProxyInstance(type.getClassLoader(),
+                                         new Class[]{type},
+                                         new InvocationHandler() {
+                                             public Object invoke(Object proxy, Method method, Object[] args)
+                                                 throws Exception {
+                                                 if(method.getDeclaringClass()==Object.class)
+                                                     return method.invoke(this, args);
+                                                 return values.get(method.getName());
+                                             }
+                                         });
+    }
+}
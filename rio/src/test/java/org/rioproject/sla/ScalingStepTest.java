@@ -0,0 +1,46 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.sla;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * Test the step sizes computed by <code>ScalingPolicyHandler.getScalingStep</code>
+ */
+public class ScalingStepTest {
+
+    @Test
+    public void testStepIsProportionalToBreach() {
+        /* 5 instances at 160 against a threshold of 80 need 10 instances */
+        Assert.assertEquals(5, ScalingPolicyHandler.getScalingStep(5, 160, 80, 50));
+        /* Just above the threshold needs one more */
+        Assert.assertEquals(1, ScalingPolicyHandler.getScalingStep(5, 81, 80, 50));
+        /* 10 instances at 10 against a low threshold of 20 need 5 instances */
+        Assert.assertEquals(5, ScalingPolicyHandler.getScalingStep(10, 10, 20, 50));
+    }
+
+    @Test
+    public void testStepIsBounded() {
+        Assert.assertEquals(8, ScalingPolicyHandler.getScalingStep(5, 800, 80, 8));
+        Assert.assertEquals(8, ScalingPolicyHandler.getScalingStep(5, Double.MAX_VALUE, 80, 8));
+        /* A maximum step of 1 keeps the single increment behavior */
+        Assert.assertEquals(1, ScalingPolicyHandler.getScalingStep(5, 800, 80, 1));
+        Assert.assertEquals(1, ScalingPolicyHandler.getScalingStep(0, 800, 80, 8));
+        Assert.assertEquals(1, ScalingPolicyHandler.getScalingStep(5, Double.NaN, 80, 8));
+        Assert.assertEquals(1, ScalingPolicyHandler.getScalingStep(5, 800, 0, 8));
+    }
+}
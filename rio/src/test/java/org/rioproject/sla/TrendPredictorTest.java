@@ -0,0 +1,62 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.sla;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * Test the <code>TrendPredictor</code>
+ */
+public class TrendPredictorTest {
+
+    @Test
+    public void testLinearRamp() {
+        TrendPredictor predictor = new TrendPredictor(0.5, 0.3);
+        /* Increases by 1 every second */
+        for(int i=0; i<30; i++)
+            predictor.add(10+i, i*1000);
+        Assert.assertEquals(0.001, predictor.getSlope(), 0.0001);
+        Assert.assertEquals(49.0, predictor.predict(10*1000), 0.5);
+        Assert.assertEquals(10*1000, predictor.timeToCross(49), 500);
+        /* A perfect fit has no forecast error */
+        Assert.assertEquals(predictor.predict(10*1000), predictor.lowerBound(10*1000, 2), 0.01);
+    }
+
+    @Test
+    public void testFlatSeriesDoesNotCross() {
+        TrendPredictor predictor = new TrendPredictor(0.5, 0.3);
+        for(int i=0; i<30; i++)
+            predictor.add(i%2==0?40:60, i*1000);
+        Assert.assertEquals(-1, new TrendPredictor(0.5, 0.3).timeToCross(90));
+        Assert.assertTrue(predictor.lowerBound(30*1000, TrendPredictor.zScore(0.9))<90);
+    }
+
+    @Test
+    public void testNoiseLowersBound() {
+        TrendPredictor predictor = new TrendPredictor(0.5, 0.3);
+        for(int i=0; i<30; i++)
+            predictor.add(10+i+(i%2==0?5:-5), i*1000);
+        Assert.assertTrue(predictor.lowerBound(10*1000, 2)<predictor.predict(10*1000));
+    }
+
+    @Test
+    public void testZScore() {
+        Assert.assertEquals(0.0, TrendPredictor.zScore(0.5), 0.0001);
+        Assert.assertEquals(1.2816, TrendPredictor.zScore(0.9), 0.001);
+        Assert.assertEquals(1.6449, TrendPredictor.zScore(0.95), 0.001);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.watch;
+
+import junit.framework.Assert;
+import net.jini.io.MarshalledInstance;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test the <code>AggregatingWatchDataReplicator</code>
+ */
+public class AggregatingWatchDataReplicatorTest {
+
+    @Test
+    public void testAggregateSent() throws InterruptedException {
+        Listener listener = new Listener(1);
+        AggregatingWatchDataReplicator replicator =
+            new AggregatingWatchDataReplicator(listener, 60*1000, 0, 90);
+        long now = System.currentTimeMillis();
+        for(int i=1; i<=10; i++)
+            replicator.addCalculable(new Calculable("watch", i, now));
+        Assert.assertTrue(listener.latch.await(5, TimeUnit.SECONDS));
+        WindowAggregate aggregate = listener.aggregates.get(0);
+        Assert.assertEquals(replicator.getUuid(), aggregate.getSource());
+        Assert.assertEquals("watch", aggregate.getId());
+
+        aggregate = replicator.getAggregate("watch");
+        Assert.assertEquals(10, aggregate.getCount());
+        Assert.assertEquals(5.5, aggregate.getMean(), 0.0001);
+        Assert.assertEquals(9.0, aggregate.getPercentileValue(), 0.0001);
+        replicator.close();
+    }
+
+    @Test
+    public void testSerializedReplicatorAggregates() throws IOException, ClassNotFoundException {
+        AggregatingWatchDataReplicator replicator =
+            new AggregatingWatchDataReplicator(new Listener(1), 60*1000, 60*1000, 90);
+        AggregatingWatchDataReplicator copy =
+            (AggregatingWatchDataReplicator)new MarshalledInstance(replicator).get(false);
+        Assert.assertEquals(replicator, copy);
+        copy.addCalculable(new Calculable("watch", 1, System.currentTimeMillis()));
+        Assert.assertEquals(1, copy.getAggregate("watch").getCount());
+        copy.close();
+    }
+
+    /* Serializable in place of an exported proxy */
+    static class Listener implements RemoteWindowAggregateListener, Serializable {
+        final List<WindowAggregate> aggregates = new ArrayList<WindowAggregate>();
+        final transient CountDownLatch latch;
+
+        Listener(int count) {
+            latch = new CountDownLatch(count);
+        }
+
+        public synchronized void aggregated(WindowAggregate aggregate) {
+            aggregates.add(aggregate);
+            latch.countDown();
+        }
+    }
+}
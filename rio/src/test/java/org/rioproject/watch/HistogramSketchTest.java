@@ -0,0 +1,121 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.watch;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Test the <code>HistogramSketch</code> and <code>MergedAggregate</code>
+ */
+public class HistogramSketchTest {
+
+    @Test
+    public void testQuantilesAreWithinRelativeAccuracy() {
+        HistogramSketch sketch = new HistogramSketch();
+        Assert.assertTrue(Double.isNaN(sketch.getQuantile(0.5)));
+        List<Double> values = new ArrayList<Double>();
+        Random random = new Random(42);
+        for(int i=0; i<10000; i++) {
+            double value = Math.exp(random.nextGaussian()/2);
+            values.add(value);
+            sketch.add(value);
+        }
+        Collections.sort(values);
+        Assert.assertEquals(10000, sketch.getCount());
+        for(double q : new double[]{0, 0.25, 0.5, 0.9, 0.95, 0.99, 1}) {
+            double expected = values.get((int)(q*(values.size()-1)));
+            Assert.assertEquals("quantile "+q, expected, sketch.getQuantile(q), expected*0.01);
+        }
+    }
+
+    @Test
+    public void testMergeEqualsSketchOfAllValues() {
+        HistogramSketch all = new HistogramSketch();
+        HistogramSketch first = new HistogramSketch();
+        HistogramSketch second = new HistogramSketch();
+        for(int i=-500; i<=1000; i++) {
+            all.add(i);
+            if(i%2==0)
+                first.add(i);
+            else
+                second.add(i);
+        }
+        first.merge(second);
+        Assert.assertEquals(all.getCount(), first.getCount());
+        for(double p=0; p<=100; p+=5)
+            Assert.assertEquals(all.getPercentile(p), first.getPercentile(p));
+        Assert.assertEquals(-500, first.getQuantile(0), 5);
+        try {
+            first.merge(new HistogramSketch(0.05, 256));
+            Assert.fail("Merging a sketch with a different accuracy should fail");
+        } catch(IllegalArgumentException e) {
+            /* expected */
+        }
+    }
+
+    @Test
+    public void testLowestBinsAreCollapsed() {
+        HistogramSketch sketch = new HistogramSketch(0.01, 16);
+        for(int i=1; i<=1000; i++)
+            sketch.add(i);
+        Assert.assertEquals(1000, sketch.getCount());
+        /* The highest values keep their accuracy */
+        Assert.assertEquals(1000, sketch.getQuantile(1), 10);
+        Assert.assertEquals(990, sketch.getPercentile(99), 10);
+        sketch.clear();
+        Assert.assertEquals(0, sketch.getCount());
+        Assert.assertTrue(Double.isNaN(sketch.getQuantile(1)));
+    }
+
+    @Test
+    public void testMergedAggregateStatistics() {
+        List<WindowAggregate> aggregates = new ArrayList<WindowAggregate>();
+        aggregates.add(aggregate(1, 2, 3));
+        aggregates.add(aggregate(10, 20, 30));
+        aggregates.add(aggregate());
+        MergedAggregate merged = MergedAggregate.merge(aggregates);
+        Assert.assertEquals(2, merged.getInstances());
+        Assert.assertEquals(6, merged.getCount());
+        /* The sum of the instance means */
+        Assert.assertEquals(22, merged.getValue("sum"), 0.0001);
+        Assert.assertEquals(11, merged.getValue("mean"), 0.0001);
+        Assert.assertEquals(1, merged.getValue("min"), 0.0001);
+        Assert.assertEquals(30, merged.getValue("max"), 0.0001);
+        Assert.assertEquals(30, merged.getValue("p100"), 0.3);
+        Assert.assertEquals(3, merged.getValue("p50"), 0.03);
+        Assert.assertEquals(0, MergedAggregate.merge(new ArrayList<WindowAggregate>()).getInstances());
+
+        Assert.assertTrue(MergedAggregate.isStatistic("p99.9"));
+        Assert.assertTrue(MergedAggregate.isStatistic("instances"));
+        Assert.assertFalse(MergedAggregate.isStatistic("p101"));
+        Assert.assertFalse(MergedAggregate.isStatistic("median"));
+        Assert.assertFalse(MergedAggregate.isStatistic(null));
+    }
+
+    private WindowAggregate aggregate(double... values) {
+        SlidingWindow window = new SlidingWindow(60*1000, 10, 100);
+        long now = System.currentTimeMillis();
+        for(double value : values)
+            window.add(value, now);
+        return window.aggregate("watch", 95, now);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.watch;
+
+import junit.framework.Assert;
+import net.jini.config.EmptyConfiguration;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Test that a <code>WatchDataSourceImpl</code> samples and summarizes
+ * Calculables for replicators added with a <code>ReplicationResolution</code>
+ */
+public class ReplicationResolutionTest {
+
+    @Test
+    public void testParse() {
+        Assert.assertSame(ReplicationResolution.RAW, ReplicationResolution.parse("raw"));
+        Assert.assertEquals(ReplicationResolution.sample(1000), ReplicationResolution.parse("1s"));
+        Assert.assertEquals(ReplicationResolution.sample(250), ReplicationResolution.parse("250ms"));
+        Assert.assertEquals(ReplicationResolution.sample(250), ReplicationResolution.parse("250"));
+        Assert.assertEquals(ReplicationResolution.summary(60*1000), ReplicationResolution.parse("summary:1m"));
+        Assert.assertEquals(ReplicationResolution.Mode.SUMMARY, ReplicationResolution.parse("summary:10s").getMode());
+        try {
+            ReplicationResolution.parse("often");
+            Assert.fail("Expected an IllegalArgumentException");
+        } catch(IllegalArgumentException e) {
+            /* expected */
+        }
+        try {
+            ReplicationResolution.parse("0s");
+            Assert.fail("Expected an IllegalArgumentException");
+        } catch(IllegalArgumentException e) {
+            /* expected */
+        }
+    }
+
+    @Test
+    public void testSample() {
+        WatchDataSourceImpl impl = new WatchDataSourceImpl("sample", EmptyConfiguration.INSTANCE);
+        Replicator raw = new Replicator();
+        Replicator sampled = new Replicator();
+        Assert.assertTrue(impl.addWatchDataReplicator(raw));
+        Assert.assertTrue(impl.addWatchDataReplicator(sampled, ReplicationResolution.sample(1000)));
+        Assert.assertFalse(impl.addWatchDataReplicator(sampled, ReplicationResolution.RAW));
+        /* 10 values a second for 3 seconds */
+        for(int i=0; i<30; i++)
+            impl.addCalculable(new Calculable("sample", i, 10000+i*100));
+        Assert.assertEquals(30, raw.calculables.size());
+        Assert.assertEquals(3, sampled.calculables.size());
+        Assert.assertEquals(0d, sampled.calculables.get(0).getValue());
+        Assert.assertEquals(10d, sampled.calculables.get(1).getValue());
+        Assert.assertEquals(2, impl.getWatchDataReplicators().length);
+        Assert.assertSame(sampled, impl.getWatchDataReplicators()[1]);
+        Assert.assertTrue(impl.removeWatchDataReplicator(sampled));
+        impl.addCalculable(new Calculable("sample", 1, 20000));
+        Assert.assertEquals(3, sampled.calculables.size());
+        impl.close();
+    }
+
+    @Test
+    public void testSummary() {
+        WatchDataSourceImpl impl = new WatchDataSourceImpl("summary", EmptyConfiguration.INSTANCE);
+        Replicator summarized = new Replicator();
+        impl.addWatchDataReplicator(summarized, ReplicationResolution.summary(60*1000));
+        for(int i=0; i<10; i++)
+            impl.addCalculable(new Calculable("summary", i, 60*1000+i));
+        Assert.assertEquals(0, summarized.calculables.size());
+        /* A value in the next period sends the summary of the previous period */
+        impl.addCalculable(new Calculable("summary", 100, 2*60*1000));
+        Assert.assertEquals(1, summarized.calculables.size());
+        CalculableSummary summary = (CalculableSummary)summarized.calculables.get(0);
+        Assert.assertEquals("summary", summary.getId());
+        Assert.assertEquals(10, summary.getCount());
+        Assert.assertEquals(4.5, summary.getMean());
+        Assert.assertEquals(0d, summary.getMin());
+        Assert.assertEquals(9d, summary.getMax());
+        Assert.assertEquals(2*60*1000L, summary.getWhen());
+        /* The pending summary is sent when the WatchDataSource is closed */
+        impl.close();
+        Assert.assertEquals(2, summarized.calculables.size());
+        Assert.assertEquals(100d, summarized.calculables.get(1).getValue());
+        Assert.assertTrue(summarized.closed);
+    }
+
+    static class Replicator implements WatchDataReplicator {
+        final List<Calculable> calculables = new CopyOnWriteArrayList<Calculable>();
+        boolean closed;
+
+        public void addCalculable(Calculable calculable) {
+            calculables.add(calculable);
+        }
+
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.watch;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * Test the <code>SlidingWindow</code>
+ */
+public class SlidingWindowTest {
+
+    @Test
+    public void testAggregate() {
+        SlidingWindow window = new SlidingWindow(1000, 10, 100);
+        long now = 10000;
+        for(int i=1; i<=100; i++)
+            window.add(i, now-i);
+        WindowAggregate aggregate = window.aggregate("watch", 95, now);
+        Assert.assertEquals("watch", aggregate.getId());
+        Assert.assertEquals(100, aggregate.getCount());
+        Assert.assertEquals(50.5, aggregate.getMean(), 0.0001);
+        Assert.assertEquals(1.0, aggregate.getMin(), 0.0001);
+        Assert.assertEquals(100.0, aggregate.getMax(), 0.0001);
+        Assert.assertEquals(95.0, aggregate.getPercentileValue(), 0.0001);
+    }
+
+    @Test
+    public void testValuesExpire() {
+        SlidingWindow window = new SlidingWindow(1000, 10, 100);
+        window.add(500, 1000);
+        window.add(10, 2500);
+        window.add(20, 2600);
+        WindowAggregate aggregate = window.aggregate("watch", 50, 3000);
+        Assert.assertEquals(2, aggregate.getCount());
+        Assert.assertEquals(15.0, aggregate.getMean(), 0.0001);
+        Assert.assertEquals(20.0, aggregate.getMax(), 0.0001);
+        Assert.assertEquals(10.0, aggregate.getPercentileValue(), 0.0001);
+
+        aggregate = window.aggregate("watch", 50, 10000);
+        Assert.assertEquals(0, aggregate.getCount());
+    }
+
+    @Test
+    public void testFixedMemory() {
+        SlidingWindow window = new SlidingWindow(1000, 10, 10);
+        for(int i=0; i<100000; i++)
+            window.add(i%2==0?1:3, 5000+(i%1000));
+        WindowAggregate aggregate = window.aggregate("watch", 100, 5999);
+        Assert.assertEquals(100000, aggregate.getCount());
+        Assert.assertEquals(2.0, aggregate.getMean(), 0.0001);
+        Assert.assertEquals(3.0, aggregate.getPercentileValue(), 0.0001);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalWindow() {
+        new SlidingWindow(0, 10, 10);
+    }
+}
@@ -707,11 +707,12 @@ public class JSBDelegate implements ServiceBeanDelegate {
         }
     }
 
-    /*
-     * Get the created implementation
+    /**
+     * @see org.rioproject.cybernode.ServiceBeanDelegate#getImpl
      */
-    Object getImpl() {
-        return loadResult.getImpl();
+    public Object getImpl() {
+        ServiceBeanLoader.Result result = loadResult;
+        return result==null?null:result.getImpl();
     }
 
 
@@ -72,6 +72,35 @@ public interface Gnostic {
      */
     boolean remove(RuleMap ruleMap) throws RemoteException;
 
+    /**
+     * Update an existing managed rule mapping. If the updated rule mapping
+     * has the same services and rule classpath, the updated rules are
+     * compiled in the background and replace the rules of the running
+     * sessions. Facts, including events held in sliding windows, and the
+     * watches of the services are kept. Otherwise the existing rule mapping
+     * is removed and the updated rule mapping is added.
+     *
+     * <p>Passing the same rule mapping as both arguments recompiles its rules,
+     * picking up changes to rule resources that are not scanned for changes.
+     *
+     * @param ruleMap The rule map to update
+     * @param updated The updated rule map
+     *
+     * @return True if the update was accepted for processing, false
+     * otherwise. If the rule mapping does not exist, or the updated rule
+     * mapping already exists or is being processed, this method will return
+     * false. Note that updating a rule mapping is asynchronous. If the updated
+     * rules cannot be compiled the existing rules are kept, verifying that the
+     * rule mapping has been updated can be achieved by getting the managed
+     * rule mappings.
+     *
+     * @throws IllegalArgumentException if either argument is null or
+     * contains null values.
+     *
+     * @throws RemoteException If communication errors occur
+     */
+    boolean update(RuleMap ruleMap, RuleMap updated) throws RemoteException;
+
     /**
      * Get the amount of time (in seconds) the Gnostic polls for changes to
      * managed rules.
@@ -40,14 +40,11 @@ import java.io.IOException;
 import java.rmi.NotBoundException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.rmi.UnmarshalException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.ExportException;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -55,26 +52,56 @@ import java.util.logging.Logger;
  * Watch data replicator used by Gnostic in order to feed the CEPSession engine
  * with {@link Calculable}s. Also sets up Drools session.
  *
+ * <p>Each CEPSession the replicator feeds is a shard, with its own exported
+ * replicator. Calculables are inserted directly into the shard's CEPSession,
+ * which queues them for its own engine thread. If there is more than one
+ * shard, the watches of each service instance are replicated to the shard
+ * selected by the instance's ID.
+ *
  * @author Dennis Reedy
  */
-class AssociationsWatchDataReplicator implements RemoteWatchDataReplicator {
-    private WatchDataReplicator wdr;
-    private Exporter exporter;
-    private final CEPSession cepSession;
+class AssociationsWatchDataReplicator {
+    private final List<CEPSession> cepSessions;
+    private final List<Shard> shards = new ArrayList<Shard>();
     private final ProvisionMonitor monitor;
-    private final Map<WatchDataSource, ServiceElement> watchDataSources = new HashMap<WatchDataSource, ServiceElement>();
-    private static final BlockingQueue<Calculable> calculablesQ =
-        new LinkedBlockingQueue<Calculable>();
-    private ExecutorService execService;
+    private int nextShard;
     private final DeployedServiceContext context;
+    private final ReplicationResolution resolution;
+    private volatile boolean resolutionFallbackLogged;
     private Logger logger = Logger.getLogger(AssociationsWatchDataReplicator.class.getName());
 
     public AssociationsWatchDataReplicator(CEPSession cepSession,
                                            DeployedServiceContext context,
                                            ProvisionMonitor monitor) {
-        this.cepSession = cepSession;
+        this(Collections.singletonList(cepSession), context, monitor);
+    }
+
+    public AssociationsWatchDataReplicator(List<CEPSession> cepSessions,
+                                           DeployedServiceContext context,
+                                           ProvisionMonitor monitor) {
+        this(cepSessions, context, monitor, ReplicationResolution.RAW);
+    }
+
+    /**
+     * Create an AssociationsWatchDataReplicator
+     *
+     * @param cepSessions The sessions calculables are inserted into
+     * @param context The DeployedServiceContext
+     * @param monitor The ProvisionMonitor
+     * @param resolution The resolution services replicate calculables at.
+     * Watches aggregated for a {@link NativeScalingEvaluator} are not
+     * affected
+     */
+    public AssociationsWatchDataReplicator(List<CEPSession> cepSessions,
+                                           DeployedServiceContext context,
+                                           ProvisionMonitor monitor,
+                                           ReplicationResolution resolution) {
+        if(cepSessions==null || cepSessions.isEmpty())
+            throw new IllegalArgumentException("At least one CEPSession is required");
+        this.cepSessions = cepSessions;
         this.context = context;
         this.monitor = monitor;
+        this.resolution = resolution==null?ReplicationResolution.RAW:resolution;
     }
 
     public List<ServiceHandle> init(RuleMap ruleMap,
@@ -84,11 +111,9 @@ class AssociationsWatchDataReplicator implements RemoteWatchDataReplicator {
             logger.warning("No ProvisionMonitor reference, unable to initialize");
             return serviceHandles;
         }
-        execService = Executors.newSingleThreadExecutor();
-        execService.submit(new CEPWorker());
-
-        createWatchDataReplicator();
-        logger.info("Created WatchDataReplicator proxy for "+ruleMap);
+        for(CEPSession cepSession : cepSessions)
+            shards.add(new Shard(cepSession));
+        logger.info("Created "+shards.size()+" WatchDataReplicator proxy(s) for "+ruleMap);
 
         /* Get ServiceHandles */
         for (Association<Object> association : associations) {
@@ -114,13 +139,21 @@ class AssociationsWatchDataReplicator implements RemoteWatchDataReplicator {
 
     void registerWatches(ServiceHandle handle) {
         try {
+            Shard shard = getShard(handle);
             for(Map.Entry<String, WatchDataSource> entry : handle.getWatchMap().entrySet()) {
                 WatchDataSource wds = entry.getValue();
-                wds.addWatchDataReplicator(wdr);
-                watchDataSources.put(wds, handle.getElem());
+                WatchDataReplicator replicator = shard.getReplicator(entry.getKey(), handle);
+                if(replicator==null)
+                    continue;
+                if(replicator instanceof AggregatingWatchDataReplicator ||
+                   resolution.getMode()==ReplicationResolution.Mode.RAW)
+                    wds.addWatchDataReplicator(replicator);
+                else
+                    addWatchDataReplicator(wds, replicator);
+                shard.add(wds, handle.getElem(), replicator);
                 if(logger.isLoggable(Level.FINER))
-                    logger.log(Level.FINER, "Subscribed to Watch [{0}], service [{1}]",
-                               new Object[] { entry.getKey(), handle.getElem().getName()});
+                    logger.log(Level.FINER, "Subscribed to Watch [{0}], service [{1}], shard [{2}], resolution [{3}]",
+                               new Object[] { entry.getKey(), handle.getElem().getName(), shards.indexOf(shard), resolution});
             }
             context.addDeployedService(handle.getElem(), handle.getOpMgr());
         } catch (RemoteException e) {
@@ -129,6 +162,47 @@ class AssociationsWatchDataReplicator implements RemoteWatchDataReplicator {
         }
     }
 
+    /*
+     * Add a replicator that requests the configured resolution. A service
+     * running a Rio version without resolution requests does not have the
+     * method, in which case the replicator is added at raw resolution
+     */
+    void addWatchDataReplicator(WatchDataSource wds, WatchDataReplicator replicator)
+        throws RemoteException {
+        try {
+            wds.addWatchDataReplicator(replicator, resolution);
+            return;
+        } catch(RemoteException e) {
+            if(!isUnsupported(e))
+                throw e;
+        } catch(LinkageError e) {
+            if(!isUnsupported(e))
+                throw e;
+        }
+        if(!resolutionFallbackLogged) {
+            resolutionFallbackLogged = true;
+            logger.warning("A WatchDataSource does not support resolution requests, " +
+                           "using raw resolution for services running an older Rio version");
+        } else if(logger.isLoggable(Level.FINE)) {
+            logger.fine("Using raw resolution for WatchDataSource ["+wds+"]");
+        }
+        wds.addWatchDataReplicator(replicator);
+    }
+
+    /*
+     * Whether a failure is caused by the remote WatchDataSource not having a
+     * method
+     */
+    private static boolean isUnsupported(Throwable t) {
+        for(Throwable cause = t; cause!=null; cause = cause.getCause()) {
+            if(cause instanceof UnmarshalException ||
+               cause instanceof NoSuchMethodError ||
+               cause instanceof AbstractMethodError)
+                return true;
+        }
+        return false;
+    }
+
     private List<String> getWatches(Association<Object> association, RuleMap ruleMap) {
         List<String> watches = new ArrayList<String>();
         for(RuleMap.ServiceDefinition def : ruleMap.getServiceDefinitions()) {
@@ -149,13 +223,22 @@ class AssociationsWatchDataReplicator implements RemoteWatchDataReplicator {
         return watches;
     }
     
-    private void createWatchDataReplicator() throws ExportException {
-        exporter = new BasicJeriExporter(TcpServerEndpoint.getInstance(0),
-                                         new BasicILFactory(),
-                                         false,
-                                         true);
-        RemoteWatchDataReplicator backend = (RemoteWatchDataReplicator) exporter.export(this);
-        wdr = WatchDataReplicatorProxy.getInstance(backend, UUID.randomUUID());
+    /*
+     * Select the shard for a service instance using its instance ID, so an
+     * instance always feeds the same CEPSession
+     */
+    private synchronized Shard getShard(ServiceHandle handle) {
+        if(shards.size()==1)
+            return shards.get(0);
+        Long instanceID = null;
+        if(handle.getElem()!=null && handle.getElem().getServiceBeanConfig()!=null)
+            instanceID = handle.getElem().getServiceBeanConfig().getInstanceID();
+        int index;
+        if(instanceID==null)
+            index = nextShard++ % shards.size();
+        else
+            index = (int)Math.abs(instanceID % shards.size());
+        return shards.get(index);
     }
 
     private ServiceHandle getServiceHandle(Object o, List<String> watches, Entry[] entries) {
@@ -318,15 +401,70 @@ class AssociationsWatchDataReplicator implements RemoteWatchDataReplicator {
     }
 
     public void close() {
-        if(execService!=null)
-            execService.shutdownNow();
-        try {
-            if (wdr != null) {
+        for(Shard shard : shards)
+            shard.close();
+        shards.clear();
+    }
+
+    /**
+     * Replicates calculables into a CEPSession. If the CEPSession is a
+     * {@link NativeScalingEvaluator}, each watch is instead given its own
+     * replicator that aggregates the watch's values in the service's JVM
+     */
+    class Shard implements RemoteWatchDataReplicator {
+        private final CEPSession cepSession;
+        private final Exporter exporter;
+        private WatchDataReplicator wdr;
+        private final Map<WatchDataSource, ServiceElement> watchDataSources =
+            new HashMap<WatchDataSource, ServiceElement>();
+        private final Map<WatchDataSource, WatchDataReplicator> replicators =
+            new HashMap<WatchDataSource, WatchDataReplicator>();
+
+        Shard(CEPSession cepSession) throws ExportException {
+            this.cepSession = cepSession;
+            if(cepSession instanceof NativeScalingEvaluator) {
+                exporter = null;
+                return;
+            }
+            exporter = new BasicJeriExporter(TcpServerEndpoint.getInstance(0),
+                                             new BasicILFactory(),
+                                             false,
+                                             true);
+            RemoteWatchDataReplicator backend = (RemoteWatchDataReplicator) exporter.export(this);
+            wdr = WatchDataReplicatorProxy.getInstance(backend, UUID.randomUUID());
+        }
+
+        WatchDataReplicator getReplicator(String watchID, ServiceHandle handle) {
+            if(cepSession instanceof NativeScalingEvaluator)
+                return ((NativeScalingEvaluator)cepSession).getReplicator(watchID, handle);
+            return wdr;
+        }
+
+        synchronized void add(WatchDataSource wds, ServiceElement elem, WatchDataReplicator replicator) {
+            watchDataSources.put(wds, elem);
+            replicators.put(wds, replicator);
+        }
+
+        public void replicate(Calculable calculable) {
+            if(calculable!=null)
+                cepSession.insert(calculable);
+        }
+
+        public void bulkReplicate(Collection<Calculable> calculables) {
+            for (Calculable calculable : calculables)
+                replicate(calculable);
+        }
+
+        synchronized void close() {
+            try {
                 for (Map.Entry<WatchDataSource, ServiceElement> entry : watchDataSources.entrySet()) {
                     WatchDataSource wds = entry.getKey();
                     ServiceElement elem = entry.getValue();
+                    WatchDataReplicator replicator = replicators.get(wds);
+                    if(cepSession instanceof NativeScalingEvaluator)
+                        ((NativeScalingEvaluator)cepSession).removeReplicator((AggregatingWatchDataReplicator)replicator);
                     try {
-                        wds.removeWatchDataReplicator(wdr);
+                        wds.removeWatchDataReplicator(replicator);
                         logger.info("Unregistered from Watch [" + wds.getID() + "], service [" + elem.getName() + "]");
                     } catch (RemoteException e) {
                         if(logger.isLoggable(Level.FINER))
@@ -336,38 +474,12 @@ class AssociationsWatchDataReplicator implements RemoteWatchDataReplicator {
                                          e.getClass().getName() + ": " + e.getMessage());
                     }
                 }
-            }
-
-        } finally {
-            if (exporter != null)
-                exporter.unexport(true);
-            wdr = null;
-        }
-    }
-
-    public void replicate(Calculable calculable) {
-        calculablesQ.add(calculable);
-    }
-
-    public void bulkReplicate(Collection<Calculable> calculables) {
-        for (Calculable calculable : calculables)
-            replicate(calculable);
-    }
-
-    class CEPWorker implements Runnable {
-        public void run() {
-            while (true) {
-                Calculable calculable;
-                try {
-                    calculable = calculablesQ.take();
-                } catch (InterruptedException e) {
-                    if(logger.isLoggable(Level.FINER))
-                        logger.finer("CEPWorker breaking out of main loop: have been Interrupted");
-                    break;
-                }
-                if(calculable!=null) {
-                    cepSession.insert(calculable);
-                }
+            } finally {
+                watchDataSources.clear();
+                replicators.clear();
+                if(exporter!=null)
+                    exporter.unexport(true);
+                wdr = null;
             }
         }
     }
@@ -0,0 +1,685 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.gnostic;
+
+import net.jini.config.Configuration;
+import net.jini.config.ConfigurationException;
+import net.jini.config.EmptyConfiguration;
+import org.drools.runtime.StatefulKnowledgeSession;
+import org.drools.runtime.rule.FactHandle;
+import org.drools.runtime.rule.WorkingMemoryEntryPoint;
+import org.rioproject.watch.CounterWatch;
+import org.rioproject.watch.GaugeWatch;
+import org.rioproject.watch.StopWatch;
+import org.rioproject.watch.Watch;
+import org.rioproject.watch.WatchRegistry;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Feeds facts into a Drools <tt>StatefulKnowledgeSession</tt> from a
+ * bounded queue, using a dedicated engine thread.
+ *
+ * <p>Rather than firing rules each time a fact is inserted, the engine
+ * works in one of two modes:
+ * <ul>
+ * <li><tt>batch</tt>: Facts that arrive within the batch window, up to the
+ * batch size, are inserted, and rules are then fired once
+ * <li><tt>fireUntilHalt</tt>: Rules are fired continuously by
+ * <tt>fireUntilHalt</tt> on its own thread, and the engine thread inserts
+ * facts as they arrive
+ * </ul>
+ *
+ * <p>The following configuration entries are read from the
+ * <tt>org.rioproject.gnostic</tt> component:
+ * <ul>
+ * <li><tt>firingMode</tt>: <tt>batch</tt> (the default) or
+ * <tt>fireUntilHalt</tt>
+ * <li><tt>batchWindow</tt>: The time (in milliseconds) to wait for facts to
+ * add to a batch, defaults to 100
+ * <li><tt>batchSize</tt>: The maximum number of facts in a batch, defaults
+ * to 256
+ * <li><tt>queueCapacity</tt>: The number of facts that may be waiting to be
+ * inserted, defaults to 10000
+ * <li><tt>overflowPolicy</tt>: What to do when a fact is inserted into a full
+ * queue: <tt>block</tt> (the default) waits for room,
+ * <tt>discardNewest</tt> discards the fact being inserted, and
+ * <tt>discardOldest</tt> discards the fact that has waited longest. Facts
+ * replaced using {@link #update} are never discarded.
+ * <li><tt>sessionShards</tt>: A <tt>Map</tt> of the rule resource of a
+ * RuleMap to the number of sessions its calculables are partitioned across,
+ * by service instance. Each session runs every rule over the calculables of
+ * only its own instances, so only RuleMaps whose rules do not scale services
+ * may be sharded. RuleMaps using the built-in scaling rule are not sharded,
+ * and sharded sessions cannot scale services.
+ * </ul>
+ *
+ * <p>If a <tt>WatchRegistry</tt> is provided, the rate facts are inserted
+ * at, the number of facts waiting, the number of facts discarded, the time
+ * the oldest fact in each batch waited to be inserted and (in <tt>batch</tt>
+ * mode) the time taken to fire rules are published as watches named
+ * <tt>name.insertRate</tt>, <tt>name.queueDepth</tt>, <tt>name.discarded</tt>,
+ * <tt>name.queueLatency</tt> and <tt>name.fireLatency</tt>.
+ *
+ * <p>Changes to the session's knowledge base, such as adding and removing
+ * rules, can be run by the engine thread between batches using
+ * {@link #execute}, so rules are never fired against a partially updated
+ * rule set in <tt>batch</tt> mode. A knowledge base shared by the sessions of
+ * several engines is updated while all of them are paused, see
+ * {@link #executePaused}.
+ */
+class CEPEngine {
+    enum Mode {BATCH, HALT}
+    enum Overflow {BLOCK, DISCARD_NEWEST, DISCARD_OLDEST}
+    static final String COMPONENT = "org.rioproject.gnostic";
+    static final long DEFAULT_BATCH_WINDOW = 100;
+    static final int DEFAULT_BATCH_SIZE = 256;
+    static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    /* How often (in milliseconds) the insert rate and queue depth are published */
+    private static final long PUBLISH_INTERVAL = 1000;
+    /* How often (in milliseconds) engines being paused are checked for having closed */
+    private static final long PAUSE_CHECK_INTERVAL = 100;
+    private final StatefulKnowledgeSession session;
+    private final String name;
+    private final Mode mode;
+    private final Overflow overflow;
+    private final long batchWindowNanos;
+    private final int batchSize;
+    private final BlockingQueue<Fact> queue;
+    /* Accessed only by the engine thread */
+    private final Map<String, WorkingMemoryEntryPoint> entryPoints =
+        new HashMap<String, WorkingMemoryEntryPoint>();
+    private Thread engineThread;
+    private Thread haltThread;
+    private volatile boolean closed;
+    private final AtomicLong insertCount = new AtomicLong();
+    private final AtomicLong fireCount = new AtomicLong();
+    private final AtomicLong fireNanos = new AtomicLong();
+    private final AtomicLong discardCount = new AtomicLong();
+    private final AtomicLong queueNanos = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private volatile double insertRate;
+    private long lastPublished;
+    private long lastInsertCount;
+    private final WatchRegistry watchRegistry;
+    private final List<Watch> watches = new ArrayList<Watch>();
+    private GaugeWatch insertRateWatch;
+    private GaugeWatch queueDepthWatch;
+    private StopWatch fireLatencyWatch;
+    private StopWatch queueLatencyWatch;
+    private CounterWatch discardedWatch;
+    private static final Logger logger = Logger.getLogger(CEPEngine.class.getName());
+
+    /**
+     * Create a CEPEngine
+     *
+     * @param session The session to insert facts into and fire rules on
+     * @param name The name of the engine, used to name its thread and watches
+     * @param config Configuration to read settings from, may be null
+     * @param watchRegistry The WatchRegistry to publish metrics to, may be null
+     */
+    CEPEngine(StatefulKnowledgeSession session,
+              String name,
+              Configuration config,
+              WatchRegistry watchRegistry) {
+        if(session==null)
+            throw new IllegalArgumentException("session is null");
+        this.session = session;
+        this.name = name;
+        this.watchRegistry = watchRegistry;
+        if(config==null)
+            config = EmptyConfiguration.INSTANCE;
+        String firingMode = "batch";
+        long batchWindow = DEFAULT_BATCH_WINDOW;
+        int size = DEFAULT_BATCH_SIZE;
+        int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+        String overflowPolicy = "block";
+        try {
+            firingMode = (String)config.getEntry(COMPONENT, "firingMode", String.class, firingMode);
+            batchWindow = (Long)config.getEntry(COMPONENT, "batchWindow", long.class, batchWindow);
+            size = (Integer)config.getEntry(COMPONENT, "batchSize", int.class, size);
+            queueCapacity = (Integer)config.getEntry(COMPONENT, "queueCapacity", int.class, queueCapacity);
+            overflowPolicy = (String)config.getEntry(COMPONENT, "overflowPolicy", String.class, overflowPolicy);
+        } catch(ConfigurationException e) {
+            logger.log(Level.WARNING,
+                       "Non-fatal error, unable to obtain rule firing settings " +
+                       "from configuration, using defaults",
+                       e);
+        }
+        if("fireUntilHalt".equals(firingMode)) {
+            mode = Mode.HALT;
+        } else {
+            if(!"batch".equals(firingMode))
+                logger.warning("Unknown firingMode ["+firingMode+"], using [batch]");
+            mode = Mode.BATCH;
+        }
+        if("discardNewest".equals(overflowPolicy)) {
+            overflow = Overflow.DISCARD_NEWEST;
+        } else if("discardOldest".equals(overflowPolicy)) {
+            overflow = Overflow.DISCARD_OLDEST;
+        } else {
+            if(!"block".equals(overflowPolicy))
+                logger.warning("Unknown overflowPolicy ["+overflowPolicy+"], using [block]");
+            overflow = Overflow.BLOCK;
+        }
+        this.batchWindowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, batchWindow));
+        this.batchSize = Math.max(1, size);
+        this.queue = new ArrayBlockingQueue<Fact>(Math.max(1, queueCapacity));
+    }
+
+    /**
+     * Start the engine thread, and in <tt>fireUntilHalt</tt> mode the thread
+     * that fires rules
+     */
+    synchronized void start() {
+        if(engineThread!=null)
+            throw new IllegalStateException("The CEPEngine has already been started");
+        createWatches();
+        if(mode==Mode.HALT) {
+            haltThread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        session.fireUntilHalt();
+                    } catch(Throwable t) {
+                        if(!closed)
+                            logger.log(Level.WARNING, "Firing rules until halted", t);
+                    }
+                }
+            }, "CEP Rules ["+name+"]");
+            haltThread.setDaemon(true);
+            haltThread.start();
+        }
+        engineThread = new Thread(new Runnable() {
+            public void run() {
+                process();
+            }
+        }, "CEP Engine ["+name+"]");
+        engineThread.setDaemon(true);
+        engineThread.start();
+    }
+
+    /**
+     * Queue a fact to be inserted into an entry point. If the queue is full,
+     * the overflow policy determines whether this method blocks until there
+     * is room, or a fact is discarded.
+     *
+     * @param entryPoint The name of the entry point
+     * @param fact The fact to insert
+     *
+     * @return <code>true</code> if the fact was queued, <code>false</code> if
+     * the fact was discarded, the engine has been closed, or the calling
+     * thread was interrupted
+     */
+    boolean insert(String entryPoint, Object fact) {
+        if(fact==null)
+            throw new IllegalArgumentException("fact is null");
+        if(closed)
+            return false;
+        Fact f = new Fact(entryPoint, fact, null);
+        try {
+            switch(overflow) {
+                case DISCARD_NEWEST:
+                    if(queue.offer(f))
+                        return true;
+                    discarded(f);
+                    return false;
+                case DISCARD_OLDEST:
+                    while(!queue.offer(f)) {
+                        Fact oldest = getOldestInsert();
+                        if(oldest==null) {
+                            /* Only replacements are waiting, they cannot be discarded */
+                            queue.put(f);
+                            break;
+                        }
+                        if(queue.remove(oldest))
+                            discarded(oldest);
+                    }
+                    return true;
+                default:
+                    queue.put(f);
+                    return true;
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Queue a fact to replace a fact in the session's working memory. If the
+     * fact being replaced is not in working memory, the new fact is inserted.
+     * Facts are replaced by the engine thread, so rules never see a fact
+     * change while they are being evaluated.
+     *
+     * @param oldFact The fact to replace, may be null
+     * @param newFact The fact to replace it with
+     *
+     * @return <code>true</code> if the fact was queued, <code>false</code> if
+     * the engine has been closed, or the calling thread was interrupted
+     */
+    boolean update(Object oldFact, Object newFact) {
+        if(newFact==null)
+            throw new IllegalArgumentException("newFact is null");
+        if(closed)
+            return false;
+        try {
+            queue.put(new Fact(null, newFact, oldFact));
+            return true;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Queue a task to be run by the engine thread. Facts queued before the
+     * task are inserted (and in <tt>batch</tt> mode, rules are fired) before
+     * the task is run, facts queued after the task are inserted after it has
+     * run. Tasks are never discarded.
+     *
+     * @param task The task to run
+     *
+     * @return A Future that completes when the task has run, or
+     * <code>null</code> if the engine has been closed, or the calling thread
+     * was interrupted
+     */
+    Future<?> execute(Runnable task) {
+        if(task==null)
+            throw new IllegalArgumentException("task is null");
+        if(closed)
+            return null;
+        FutureTask<Object> future = new FutureTask<Object>(task, null);
+        try {
+            queue.put(new Task(future));
+            return future;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Run a task once the engine threads of several engines have paused. Each
+     * engine is paused between batches by a task queued using
+     * {@link #execute}, and the task is run by the calling thread once every
+     * engine has paused. The engines resume when the task has run, whether or
+     * not it succeeds.
+     *
+     * @param engines The engines to pause
+     * @param task The task to run
+     *
+     * @return <code>true</code> if the task was run, <code>false</code> if an
+     * engine was closed, or the calling thread was interrupted, before every
+     * engine paused, in which case the task is not run
+     */
+    static boolean executePaused(Collection<CEPEngine> engines, Runnable task) {
+        final CountDownLatch paused = new CountDownLatch(engines.size());
+        final CountDownLatch resume = new CountDownLatch(1);
+        List<Future<?>> barriers = new ArrayList<Future<?>>();
+        try {
+            for(CEPEngine engine : engines) {
+                Future<?> barrier = engine.execute(new Runnable() {
+                    public void run() {
+                        paused.countDown();
+                        try {
+                            resume.await();
+                        } catch(InterruptedException e) {
+                            /* The engine is being closed */
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+                if(barrier==null)
+                    return false;
+                barriers.add(barrier);
+            }
+            while(!paused.await(PAUSE_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+                /* A barrier that is done before the engines resume was cancelled */
+                for(Future<?> barrier : barriers) {
+                    if(barrier.isDone())
+                        return false;
+                }
+            }
+            task.run();
+            return true;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            resume.countDown();
+        }
+    }
+
+    /**
+     * Stop the engine. Facts that have not been inserted are discarded.
+     */
+    void close() {
+        Thread engine;
+        Thread halt;
+        synchronized(this) {
+            if(closed)
+                return;
+            closed = true;
+            engine = engineThread;
+            halt = haltThread;
+        }
+        if(engine!=null) {
+            engine.interrupt();
+            join(engine);
+        }
+        if(halt!=null) {
+            session.halt();
+            join(halt);
+        }
+        for(Fact fact : queue) {
+            if(fact instanceof Task)
+                ((FutureTask<?>)fact.fact).cancel(false);
+        }
+        queue.clear();
+        if(watchRegistry!=null) {
+            for(Watch watch : watches)
+                watchRegistry.deregister(watch);
+        }
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    Overflow getOverflow() {
+        return overflow;
+    }
+
+    StatefulKnowledgeSession getSession() {
+        return session;
+    }
+
+    /**
+     * Get the number of facts inserted into the session
+     *
+     * @return The number of facts inserted
+     */
+    long getInsertCount() {
+        return insertCount.get();
+    }
+
+    /**
+     * Get the number of times rules were fired in <tt>batch</tt> mode
+     *
+     * @return The number of times rules were fired
+     */
+    long getFireCount() {
+        return fireCount.get();
+    }
+
+    /**
+     * Get the mean time taken to fire rules in <tt>batch</tt> mode
+     *
+     * @return The mean time (in milliseconds) taken to fire rules
+     */
+    double getMeanFireLatency() {
+        long count = fireCount.get();
+        return count==0?0:fireNanos.get()/1e6/count;
+    }
+
+    /**
+     * Get the number of facts discarded because the queue was full
+     *
+     * @return The number of facts discarded
+     */
+    long getDiscardCount() {
+        return discardCount.get();
+    }
+
+    /**
+     * Get the mean time the oldest fact in each batch waited to be inserted
+     *
+     * @return The mean time (in milliseconds) facts waited to be inserted
+     */
+    double getMeanQueueLatency() {
+        long count = batchCount.get();
+        return count==0?0:queueNanos.get()/1e6/count;
+    }
+
+    /**
+     * Get the rate facts were inserted at, over the last publication interval
+     *
+     * @return The number of facts inserted per second
+     */
+    double getInsertRate() {
+        return insertRate;
+    }
+
+    /**
+     * Get the number of facts waiting to be inserted
+     *
+     * @return The number of facts waiting to be inserted
+     */
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    private void process() {
+        List<Fact> batch = new ArrayList<Fact>(batchSize);
+        lastPublished = System.currentTimeMillis();
+        while(!closed) {
+            try {
+                /* Wake up periodically, so metrics are published when idle */
+                Fact first = queue.poll(PUBLISH_INTERVAL, TimeUnit.MILLISECONDS);
+                if(first==null) {
+                    publish();
+                    continue;
+                }
+                batch.add(first);
+                /* A waiting task ends the batch, rather than waiting for the window */
+                if(mode==Mode.BATCH && batchWindowNanos>0 && !(first instanceof Task)) {
+                    long deadline = System.nanoTime()+batchWindowNanos;
+                    while(batch.size()<batchSize) {
+                        long remaining = deadline-System.nanoTime();
+                        if(remaining<=0)
+                            break;
+                        Fact fact = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if(fact==null)
+                            break;
+                        batch.add(fact);
+                        if(fact instanceof Task)
+                            break;
+                    }
+                }
+                queue.drainTo(batch, batchSize-batch.size());
+            } catch(InterruptedException e) {
+                if(logger.isLoggable(Level.FINER))
+                    logger.finer("CEP engine ["+name+"] breaking out of main loop: have been Interrupted");
+                break;
+            }
+            long waited = System.nanoTime()-batch.get(0).queued;
+            batchCount.incrementAndGet();
+            queueNanos.addAndGet(waited);
+            if(queueLatencyWatch!=null)
+                queueLatencyWatch.setElapsedTime(TimeUnit.NANOSECONDS.toMillis(waited));
+            insert(batch);
+            batch.clear();
+            if(mode==Mode.BATCH)
+                fire();
+            publish();
+        }
+    }
+
+    private void insert(List<Fact> batch) {
+        for(Fact fact : batch) {
+            if(fact instanceof Task) {
+                /* Rules see the facts inserted so far before the task runs */
+                if(mode==Mode.BATCH)
+                    fire();
+                ((Task)fact).run();
+                continue;
+            }
+            if(fact.entryPoint==null) {
+                update(fact);
+                continue;
+            }
+            WorkingMemoryEntryPoint entryPoint = getEntryPoint(fact.entryPoint);
+            if(entryPoint==null) {
+                logger.warning("The working memory entry point ["+fact.entryPoint+"] " +
+                               "does not exist, unable to insert ["+fact.fact+"]");
+                continue;
+            }
+            if(logger.isLoggable(Level.FINER))
+                logger.log(Level.FINER,
+                           "Inserting ["+fact.fact.getClass().getName()+"], ["+fact.fact+"] into CEP engine");
+            try {
+                entryPoint.insert(fact.fact);
+                insertCount.incrementAndGet();
+            } catch(Exception e) {
+                logger.log(Level.WARNING, "Could not insert ["+fact.fact+"] into CEP engine", e);
+            }
+        }
+    }
+
+    private void update(Fact fact) {
+        try {
+            FactHandle handle = fact.replaces==null?null:session.getFactHandle(fact.replaces);
+            if(handle==null)
+                session.insert(fact.fact);
+            else
+                session.update(handle, fact.fact);
+            insertCount.incrementAndGet();
+        } catch(Exception e) {
+            logger.log(Level.WARNING, "Could not update ["+fact.fact+"] in CEP engine", e);
+        }
+    }
+
+    private void fire() {
+        long t0 = System.nanoTime();
+        try {
+            session.fireAllRules();
+        } catch(Throwable t) {
+            logger.log(Level.WARNING, "Could not fire rules", t);
+        }
+        long elapsed = System.nanoTime()-t0;
+        fireCount.incrementAndGet();
+        fireNanos.addAndGet(elapsed);
+        if(fireLatencyWatch!=null)
+            fireLatencyWatch.setElapsedTime(TimeUnit.NANOSECONDS.toMillis(elapsed));
+    }
+
+    private void publish() {
+        long now = System.currentTimeMillis();
+        long elapsed = now-lastPublished;
+        if(elapsed<PUBLISH_INTERVAL)
+            return;
+        long inserted = insertCount.get();
+        insertRate = (inserted-lastInsertCount)*1000.0/elapsed;
+        lastInsertCount = inserted;
+        lastPublished = now;
+        if(insertRateWatch!=null)
+            insertRateWatch.addValue(insertRate);
+        if(queueDepthWatch!=null)
+            queueDepthWatch.addValue((long)queue.size());
+    }
+
+    private Fact getOldestInsert() {
+        for(Fact fact : queue) {
+            if(fact.entryPoint!=null)
+                return fact;
+        }
+        return null;
+    }
+
+    private void discarded(Fact fact) {
+        discardCount.incrementAndGet();
+        if(discardedWatch!=null)
+            discardedWatch.increment();
+        if(logger.isLoggable(Level.FINE))
+            logger.fine("CEP engine ["+name+"] queue is full, discarded ["+fact.fact+"]");
+    }
+
+    private WorkingMemoryEntryPoint getEntryPoint(String entryPointName) {
+        WorkingMemoryEntryPoint entryPoint = entryPoints.get(entryPointName);
+        if(entryPoint==null) {
+            entryPoint = session.getWorkingMemoryEntryPoint(entryPointName);
+            if(entryPoint!=null)
+                entryPoints.put(entryPointName, entryPoint);
+        }
+        return entryPoint;
+    }
+
+    private void createWatches() {
+        if(watchRegistry==null)
+            return;
+        insertRateWatch = new GaugeWatch(name+".insertRate");
+        queueDepthWatch = new GaugeWatch(name+".queueDepth");
+        queueLatencyWatch = new StopWatch(name+".queueLatency");
+        discardedWatch = new CounterWatch(name+".discarded");
+        watches.add(insertRateWatch);
+        watches.add(queueDepthWatch);
+        watches.add(queueLatencyWatch);
+        watches.add(discardedWatch);
+        if(mode==Mode.BATCH) {
+            fireLatencyWatch = new StopWatch(name+".fireLatency");
+            watches.add(fireLatencyWatch);
+        }
+        for(Watch watch : watches)
+            watchRegistry.register(watch);
+    }
+
+    private void join(Thread thread) {
+        try {
+            thread.join(1000);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A fact to insert, and the entry point to insert it into. A fact without
+     * an entry point replaces a fact in the session's working memory.
+     */
+    static class Fact {
+        final String entryPoint;
+        final Object fact;
+        final Object replaces;
+        final long queued = System.nanoTime();
+
+        Fact(String entryPoint, Object fact, Object replaces) {
+            this.entryPoint = entryPoint;
+            this.fact = fact;
+            this.replaces = replaces;
+        }
+    }
+
+    /**
+     * A task run by the engine thread
+     */
+    static class Task extends Fact {
+        Task(FutureTask<?> future) {
+            super(null, future, null);
+        }
+
+        void run() {
+            ((FutureTask<?>)fact).run();
+        }
+    }
+}
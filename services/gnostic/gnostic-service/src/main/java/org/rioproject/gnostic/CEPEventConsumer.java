@@ -15,8 +15,6 @@
  */
 package org.rioproject.gnostic;
 
-import org.drools.runtime.StatefulKnowledgeSession;
-import org.drools.runtime.rule.WorkingMemoryEntryPoint;
 import org.rioproject.event.RemoteServiceEvent;
 import org.rioproject.event.RemoteServiceEventListener;
 import org.rioproject.monitor.ProvisionFailureEvent;
@@ -26,33 +24,47 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Handler for ProvisionMonitorEvent notifications
+ * Handler for ProvisionMonitorEvent notifications. Events are inserted and
+ * rules fired by a {@link CEPEngine}, and are used to keep the
+ * {@link ServiceCount} facts maintained by a {@link ServiceCountTracker} up
+ * to date.
+ *
+ * <p>Events are only inserted into the
+ * {@link Constants#PROVISION_EVENTS_STREAM} if the rules use that entry point.
  */
 class CEPEventConsumer implements RemoteServiceEventListener {
-    private StatefulKnowledgeSession session;
-    private WorkingMemoryEntryPoint provisionEventsStream;
+    private final CEPEngine engine;
+    private final ServiceCountTracker serviceCounts;
+    private final boolean insertEvents;
 
     private static final Logger logger =
         Logger.getLogger(Gnostic.class.getName());
 
-    public CEPEventConsumer(StatefulKnowledgeSession session) {
-        this.session = session;
-        this.provisionEventsStream = session.getWorkingMemoryEntryPoint(Constants.PROVISION_EVENTS_STREAM);
-        if(provisionEventsStream==null)
+    public CEPEventConsumer(CEPEngine engine) {
+        this(engine, null);
+        if(!insertEvents)
             throw new IllegalStateException("The ["+Constants.PROVISION_EVENTS_STREAM+"], " +
                                             "could not be created. The Drools setup must be invalid");
     }
 
+    public CEPEventConsumer(CEPEngine engine, ServiceCountTracker serviceCounts) {
+        this.engine = engine;
+        this.serviceCounts = serviceCounts;
+        insertEvents = engine.getSession().getWorkingMemoryEntryPoint(Constants.PROVISION_EVENTS_STREAM)!=null;
+    }
+
     public void notify(RemoteServiceEvent event) {
         if (!(event instanceof ProvisionMonitorEvent || event instanceof ProvisionFailureEvent)) {
             logger.warning("Unrecognized event type "+event.getClass().getName());
             return;
         }
-        
-        provisionEventsStream.insert(event);
-        logger.log(Level.INFO,
-                   "Inserted into CEP engine event {0}",
-                   new Object[]{event});
-        session.fireAllRules();     // TODO: make sure this makes sense to fire each time we insert!!
+
+        if(serviceCounts!=null && event instanceof ProvisionMonitorEvent)
+            serviceCounts.update((ProvisionMonitorEvent)event);
+
+        if(insertEvents && engine.insert(Constants.PROVISION_EVENTS_STREAM, event))
+            logger.log(Level.INFO,
+                       "Inserted into CEP engine event {0}",
+                       new Object[]{event});
     }
-}
\ No newline at end of file
+}
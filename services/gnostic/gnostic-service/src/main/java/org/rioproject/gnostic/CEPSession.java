@@ -38,6 +38,23 @@ public interface CEPSession {
     void initialize(List<ServiceHandle> serviceHandles, RuleMap ruleMap, ClassLoader loader) throws
                                                                          IOException;
 
+    /**
+     * Replace the rules of an initialized CEPSession, keeping the session's
+     * state.
+     *
+     * @param serviceHandles The services used along with the CEPSession,
+     * unchanged since the CEPSession was initialized.
+     * @param ruleMap The information on the updated rules to use.
+     * @param loader The ClassLoader used to load additional classes
+     *
+     * @return true if the CEPSession now uses the updated rules, false if the
+     * current rules are kept
+     *
+     * @throws IllegalStateException if the updated rules could not be
+     * applied, and the current rules could not be restored
+     */
+    boolean reload(List<ServiceHandle> serviceHandles, RuleMap ruleMap, ClassLoader loader);
+
     /**
      * Insert a <code>Calculable</code> into the CEPSession
      *
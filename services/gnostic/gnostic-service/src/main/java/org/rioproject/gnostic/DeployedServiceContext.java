@@ -31,6 +31,7 @@ import java.util.logging.Logger;
  */
 public class DeployedServiceContext {
     private ProvisionMonitor monitor;
+    private volatile String scalingDisabled;
     private final static Map<ServiceElement, OperationalStringManager> deployed =
         new HashMap<ServiceElement, OperationalStringManager>();
     private static final Logger logger = Logger.getLogger(DeployedServiceContext.class.getName());
@@ -44,6 +45,33 @@ public class DeployedServiceContext {
         this.monitor = monitor;
     }
 
+    ProvisionMonitor getProvisionMonitor() {
+        return monitor;
+    }
+
+    /**
+     * Refuse requests to increment, decrement or scale services made using
+     * this context
+     *
+     * @param reason Why services cannot be scaled, used when logging a
+     * refused request
+     */
+    void disableScaling(String reason) {
+        scalingDisabled = reason;
+    }
+
+    /*
+     * Whether a request to change the number of instances of a service may
+     * proceed
+     */
+    private boolean canScale(String serviceName, String opstring) {
+        String reason = scalingDisabled;
+        if(reason==null)
+            return true;
+        logger.warning("Not scaling service name: "+serviceName+", opstring: "+opstring+", "+reason);
+        return false;
+    }
+
     public Map<ServiceElement, OperationalStringManager> getDeployedServiceMap() {
         Map<ServiceElement, OperationalStringManager> map =
             new HashMap<ServiceElement, OperationalStringManager>();
@@ -52,6 +80,54 @@ public class DeployedServiceContext {
     }
 
     public void increment(String serviceName, String opstring) {
+        if(!canScale(serviceName, opstring))
+            return;
+        Map.Entry<ServiceElement, OperationalStringManager> entry = getDeployedEntry(serviceName, opstring);
+        if(entry==null)
+            return;
+        ServiceElement serviceElement = entry.getKey();
+        OperationalStringManager opMgr = entry.getValue();
+        try {
+            opMgr.increment(serviceElement, true, null);
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+    }
+
+    /**
+     * Change the number of instances of a service by more than one. New
+     * instances are provisioned concurrently, and instances are removed
+     * most recently provisioned first.
+     *
+     * @param serviceName The name of the service
+     * @param opstring The name of the OperationalString
+     * @param delta The number of instances to add (if positive) or remove
+     * (if negative)
+     *
+     * @return The number of instances added (a positive value) or removed
+     * (a negative value)
+     */
+    public int scale(String serviceName, String opstring, int delta) {
+        if(delta==0 || !canScale(serviceName, opstring))
+            return 0;
+        Map.Entry<ServiceElement, OperationalStringManager> entry = getDeployedEntry(serviceName, opstring);
+        if(entry==null)
+            return 0;
+        ServiceElement serviceElement = entry.getKey();
+        OperationalStringManager opMgr = entry.getValue();
+        int changed = 0;
+        try {
+            changed = opMgr.scale(serviceElement, delta, true, null);
+            if(changed==Integer.MIN_VALUE)
+                changed = 0;
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+        return changed;
+    }
+
+    private Map.Entry<ServiceElement, OperationalStringManager> getDeployedEntry(String serviceName,
+                                                                                String opstring) {
         Map.Entry<ServiceElement, OperationalStringManager> entry =
             getMapEntry(serviceName, opstring);
         if(entry==null) {
@@ -59,20 +135,24 @@ public class DeployedServiceContext {
             if(entry==null) {
                 logger.warning("Unable to obtain ServiceElement for " +
                                "service name: "+serviceName+", opstring: "+opstring+". "+deployed);
-                return;
             } else {
                 deployed.put(entry.getKey(), entry.getValue());
             }
         }
-        ServiceElement serviceElement = entry.getKey();
-        OperationalStringManager opMgr = entry.getValue();
-        try {
-            opMgr.increment(serviceElement, true, null);
-        } catch (Throwable t) {
-            t.printStackTrace();
-        }
+        return entry;
     }
 
+    /**
+     * Get the number of instances of a service from its
+     * <tt>OperationalStringManager</tt>. This makes a remote call each time it
+     * is invoked, rules should instead match against the {@link ServiceCount}
+     * facts in working memory.
+     *
+     * @param serviceName The name of the service
+     * @param opstring The name of the OperationalString
+     *
+     * @return The number of instances of the service
+     */
     public static Integer getServiceCount(String serviceName, String opstring) {
         Map.Entry<ServiceElement, OperationalStringManager> entry =
             getMapEntry(serviceName, opstring);
@@ -91,6 +171,8 @@ public class DeployedServiceContext {
 
     public void decrement(String serviceName, String opstring) {
         /* decrement the number of services by 1 */
+        if(!canScale(serviceName, opstring))
+            return;
         Map.Entry<ServiceElement, OperationalStringManager> entry =
             getMapEntry(serviceName, opstring);
         if(entry==null)
@@ -15,8 +15,11 @@
  */
 package org.rioproject.gnostic;
 
+import net.jini.config.Configuration;
+import org.drools.KnowledgeBase;
 import org.drools.agent.KnowledgeAgent;
 import org.drools.builder.ResourceType;
+import org.drools.definition.KnowledgePackage;
 import org.drools.io.Resource;
 import org.drools.io.ResourceFactory;
 import org.drools.logger.KnowledgeRuntimeLoggerFactory;
@@ -27,15 +30,29 @@ import org.rioproject.boot.BootUtil;
 import org.rioproject.sla.RuleMap;
 import org.rioproject.sla.SLA;
 import org.rioproject.watch.Calculable;
+import org.rioproject.watch.WatchRegistry;
 
 import java.io.*;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Creates and manages the Drools knowledge session.
+ * Creates and manages the Drools knowledge session. Calculables are inserted
+ * and rules fired by a {@link CEPEngine}, rather than by the thread that
+ * inserts each calculable.
+ *
+ * <p>The number of instances of each service the rules are concerned with is
+ * maintained as {@link ServiceCount} facts, updated from
+ * <tt>ProvisionMonitorEvent</tt>s.
+ *
+ * <p>The rules can be replaced while the session is running, see
+ * {@link #reload}. The sessions (shards) of a RuleMap whose calculables are
+ * partitioned share the KnowledgeAgent's knowledge base, its rules are
+ * compiled and added once, see {@link #shareRules} and
+ * {@link #reload(List, List, RuleMap, ClassLoader)}.
  */
 public class DroolsCEPManager implements CEPSession {
     private StatefulKnowledgeSession session;
@@ -43,6 +60,13 @@ public class DroolsCEPManager implements CEPSession {
     private final KnowledgeAgent kAgent;
     //private final KnowledgeBase kBase;
     private final DeployedServiceContext context;
+    private final Configuration config;
+    private final WatchRegistry watchRegistry;
+    private CEPEngine engine;
+    /* The packages compiled from the RuleMap's rules */
+    private volatile Collection<KnowledgePackage> packages;
+    private ServiceCountTracker serviceCounts;
+    private int shard = -1;
     private Logger logger =
         Logger.getLogger(DroolsCEPManager.class.getName());
     private Logger droolsLogger =
@@ -50,8 +74,27 @@ public class DroolsCEPManager implements CEPSession {
     private boolean initialized = false;
 
     public DroolsCEPManager(DeployedServiceContext context, KnowledgeAgent kAgent) {
+        this(context, kAgent, null, null);
+    }
+
+    /**
+     * Create a DroolsCEPManager
+     *
+     * @param context The DeployedServiceContext rules use
+     * @param kAgent The KnowledgeAgent providing the knowledge base
+     * @param config Configuration the {@link CEPEngine} reads its settings
+     * from, may be null
+     * @param watchRegistry The WatchRegistry the {@link CEPEngine} publishes
+     * metrics to, may be null
+     */
+    public DroolsCEPManager(DeployedServiceContext context,
+                            KnowledgeAgent kAgent,
+                            Configuration config,
+                            WatchRegistry watchRegistry) {
         this.context = context;
         this.kAgent = kAgent;
+        this.config = config;
+        this.watchRegistry = watchRegistry;
     }
 
     /*public DroolsCEPManager(DeployedServiceContext context,
@@ -64,68 +107,42 @@ public class DroolsCEPManager implements CEPSession {
                            RuleMap ruleMap,
                            ClassLoader loader) {
         try {
-            Map<Resource, ResourceType> resources = new HashMap<Resource, ResourceType>();
-            RuleMap.RuleDefinition ruleDef = ruleMap.getRuleDefinition();
+            if(packages!=null) {
+                /* The rules were compiled and added to the knowledge base by
+                 * another shard of the RuleMap */
+                session = kAgent.getKnowledgeBase().newStatefulKnowledgeSession();
+            } else {
+                Map<Resource, ResourceType> resources = new HashMap<Resource, ResourceType>();
+                List<String> rules = new ArrayList<String>();
+                boolean classPathResource = getResources(serviceHandles, ruleMap, resources, rules);
 
-            List<String> rules = new ArrayList<String>();
-            boolean classPathResource = false;
-            for (String rule : BootUtil.toArray(ruleDef.getResource(), " ,")) {
-                logger.info("PROCESSING: " + rule);
-                if (rule.startsWith("http")) {
-                    resources.put(ResourceFactory.newUrlResource(rule),
-                                  ResourceType.DRL);
-                } else if (rule.startsWith("file:")) {
-                    rule = rule.substring(5, rule.length());
-                    if (!rule.endsWith(".drl"))
-                        rule = rule + ".drl";
-                    rules.add("file:"+rule);
-                    if (isBuiltInRule(rule)) {
-                        for (Resource r : generateRule(rule, true, serviceHandles))
-                            resources.put(r, ResourceType.DRL);
-                    } else {
-                        resources.put(ResourceFactory.newFileResource(rule),
-                                      ResourceType.DRL);
-                    }
-                } else {
-                    if (!rule.endsWith(".drl"))
-                        rule = rule + ".drl";
-                    if (isBuiltInRule(rule)) {
-                        for (Resource r : generateRule(rule, false, serviceHandles))
-                            resources.put(r, ResourceType.DRL);
-                    } else {
-                        classPathResource = true;
-                        rules.add(rule);
-                        resources.put(ResourceFactory.newClassPathResource(rule),
-                                      ResourceType.DRL);
+                if(!classPathResource) {
+                    try {
+                        generateAndApplyChangeSet(rules);
+                    } catch (IOException e) {
+                        StringBuilder sb = new StringBuilder();
+                        for(String rule : rules) {
+                            if(sb.length()>0)
+                                sb.append(", ");
+                            sb.append(rule);
+                        }
+                        logger.log(Level.WARNING, "Unable to provide change-set support for the rules "+sb.toString(), e);
                     }
                 }
-            }
 
-            if(!classPathResource) {
+                /* Create the Drools StatefulKnowledgeSession */
                 try {
-                    generateAndApplyChangeSet(rules);
-                } catch (IOException e) {
-                    StringBuilder sb = new StringBuilder();
-                    for(String rule : rules) {
-                        if(sb.length()>0)
-                            sb.append(", ");
-                        sb.append(rule);
-                    }
-                    logger.log(Level.WARNING, "Unable to provide change-set support for the rules "+sb.toString(), e);
+                    packages = DroolsFactory.compile(resources, loader);
+                    if(packages!=null)
+                        session = DroolsFactory.createStatefulSession(kAgent.getKnowledgeBase(),
+                                                                      //kBase,
+                                                                      packages);
+                } catch (Throwable t) {
+                    logger.log(Level.WARNING,
+                               "While creating StatefulKnowledgeSession for "+ruleMap,
+                               t);
                 }
             }
-
-            /* Create the Drools StatefulKnowledgeSession */
-            try {
-                session = DroolsFactory.createStatefulSession(kAgent.getKnowledgeBase(),
-                                                              //kBase,
-                                                              resources,
-                                                              loader);
-            } catch (Throwable t) {
-                logger.log(Level.WARNING,
-                           "While creating StatefulKnowledgeSession for "+ruleMap,
-                           t);
-            }
             if (session == null) {
                 throw new IllegalStateException(
                         "Could not create StatefulKnowledgeSession for "+ruleMap);
@@ -138,11 +155,119 @@ public class DroolsCEPManager implements CEPSession {
                 KnowledgeRuntimeLoggerFactory.newConsoleLogger(session);
 
             stream = session.getWorkingMemoryEntryPoint(Constants.CALCULABLES_STREAM);
+            engine = new CEPEngine(session, getEngineName(ruleMap), config, watchRegistry);
+            engine.start();
+            trackServiceCounts(serviceHandles);
         } finally {
             initialized = true;
         }
     }
 
+    /**
+     * Replace the session's rules with the rules of an updated RuleMap, see
+     * {@link #reload(List, List, RuleMap, ClassLoader)}
+     */
+    public boolean reload(List<ServiceHandle> serviceHandles,
+                          RuleMap ruleMap,
+                          ClassLoader loader) {
+        return reload(Collections.singletonList(this), serviceHandles, ruleMap, loader);
+    }
+
+    /**
+     * Replace the rules of the shards of a RuleMap with the rules of an
+     * updated RuleMap. The rules are compiled once by the calling thread.
+     * The engine of each shard is then paused between batches, and the
+     * knowledge base the shards share is updated incrementally once every
+     * engine has paused. The sessions, their facts (including the events held
+     * by sliding windows), and the <tt>ServiceCount</tt> facts are kept.
+     *
+     * <p>If the knowledge base cannot be updated, the rules added are removed
+     * and the rules removed are added again before the engines resume.
+     *
+     * @param shards The initialized shards of a RuleMap
+     * @param serviceHandles The services the rules are concerned with
+     * @param ruleMap The updated RuleMap
+     * @param loader The ClassLoader used to compile the rules
+     *
+     * @return true if the shards now use the updated rules, false if the
+     * rules could not be compiled or applied, in which case the current
+     * rules are kept
+     *
+     * @throws IllegalStateException if the rules could not be applied, and
+     * the current rules could not be restored
+     */
+    static boolean reload(List<DroolsCEPManager> shards,
+                          List<ServiceHandle> serviceHandles,
+                          RuleMap ruleMap,
+                          ClassLoader loader) {
+        DroolsCEPManager first = shards.get(0);
+        List<CEPEngine> engines = new ArrayList<CEPEngine>();
+        for(DroolsCEPManager shard : shards) {
+            if(shard.engine==null)
+                return false;
+            engines.add(shard.engine);
+        }
+        Map<Resource, ResourceType> resources = new HashMap<Resource, ResourceType>();
+        /* Rules loaded from files are also tracked by the KnowledgeAgent, its
+         * change set is not applied again */
+        first.getResources(serviceHandles, ruleMap, resources, new ArrayList<String>());
+        long t0 = System.currentTimeMillis();
+        final Collection<KnowledgePackage> compiled = DroolsFactory.compile(resources, loader);
+        if(compiled==null) {
+            first.logger.warning("Could not compile the rules of "+ruleMap+", keeping the current rules");
+            return false;
+        }
+        if(first.logger.isLoggable(Level.FINE))
+            first.logger.fine("Compiled the rules of "+ruleMap+" in "+(System.currentTimeMillis()-t0)+" ms");
+        final KnowledgeBase kBase = first.kAgent.getKnowledgeBase();
+        final Collection<KnowledgePackage> current = first.packages;
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+        boolean applied;
+        try {
+            applied = CEPEngine.executePaused(engines, new Runnable() {
+                public void run() {
+                    try {
+                        DroolsFactory.updateKnowledgeBase(kBase, current, compiled);
+                    } catch(RuntimeException e) {
+                        failure.set(e);
+                        /* Remove the rules added, and add the rules removed */
+                        DroolsFactory.updateKnowledgeBase(kBase, compiled, current);
+                    }
+                }
+            });
+        } catch(RuntimeException e) {
+            first.logger.log(Level.SEVERE,
+                             "Could not update the rules of "+ruleMap+", and could not restore the current rules",
+                             failure.get());
+            throw new IllegalStateException("The rules of "+ruleMap+" could not be restored", e);
+        }
+        if(!applied) {
+            first.logger.warning("Could not pause the engines of "+ruleMap+", keeping the current rules");
+            return false;
+        }
+        if(failure.get()!=null) {
+            first.logger.log(Level.WARNING,
+                             "Could not update the rules of "+ruleMap+", the current rules were restored",
+                             failure.get());
+            return false;
+        }
+        for(DroolsCEPManager shard : shards)
+            shard.packages = compiled;
+        first.logger.info("Updated the rules of "+shards.size()+" session(s) of "+ruleMap);
+        return true;
+    }
+
+    /**
+     * Use the rules another shard of the same RuleMap compiled and added to
+     * the knowledge base, rather than compiling and adding them again. Must
+     * be called before this shard is initialized
+     *
+     * @param shard An initialized shard of the same RuleMap
+     */
+    void shareRules(DroolsCEPManager shard) {
+        packages = shard.packages;
+    }
+
     public void insert(Calculable calculable) {
         if(calculable==null)
             return;
@@ -157,31 +282,120 @@ public class DroolsCEPManager implements CEPSession {
                 }
             }
         }
-        if(stream==null)
+        if(stream==null || engine==null)
             throw new IllegalStateException("Could not insert calculable into CEP engine, " +
                                             "the working memory entryPoint (stream) is null");
-        if(logger.isLoggable(Level.FINER))
-            logger.log(Level.FINER,
-                       "Inserting ["+calculable.getClass().getName()+"], ["+calculable+"] into CEP engine");
-        try {
-            stream.insert(calculable);
-        } catch(Exception e) {
-            logger.log(Level.WARNING, "Could not insert calculable into CEP engine", e);
-            return;
-        }
-        // fire CEPSession engine for rules
-        try {
-            session.fireAllRules();
-        } catch (Throwable t) {
-            logger.log(Level.WARNING, "Could not fire rules", t);
-        }
+        engine.insert(Constants.CALCULABLES_STREAM, calculable);
     }
 
     public void close() {
+        if(serviceCounts!=null)
+            serviceCounts.close();
+        if(engine!=null)
+            engine.close();
         if(session!=null)
             session.dispose();
     }
 
+    /*
+     * Get the CEPEngine that inserts facts and fires rules
+     */
+    CEPEngine getEngine() {
+        return engine;
+    }
+
+    /*
+     * Set the shard this session is for, when the calculables of a RuleMap's
+     * services are partitioned across several sessions
+     */
+    void setShard(int shard) {
+        this.shard = shard;
+    }
+
+    /*
+     * Get the ServiceCountTracker maintaining ServiceCount facts
+     */
+    ServiceCountTracker getServiceCountTracker() {
+        return serviceCounts;
+    }
+
+    /*
+     * Maintain ServiceCount facts for the services the rules are concerned
+     * with
+     */
+    private void trackServiceCounts(List<ServiceHandle> serviceHandles) {
+        serviceCounts = new ServiceCountTracker(engine);
+        serviceCounts.start(serviceHandles,
+                            context.getProvisionMonitor(),
+                            new CEPEventConsumer(engine, serviceCounts),
+                            config);
+    }
+
+    /*
+     * Get the resources of a RuleMap's rules, expanding the built-in rule
+     * templates for each SLA. Rules loaded from files and the classpath are
+     * added to the list of rules
+     *
+     * @return true if a rule is loaded from the classpath
+     */
+    private boolean getResources(List<ServiceHandle> serviceHandles,
+                                 RuleMap ruleMap,
+                                 Map<Resource, ResourceType> resources,
+                                 List<String> rules) {
+        RuleMap.RuleDefinition ruleDef = ruleMap.getRuleDefinition();
+        boolean classPathResource = false;
+        for (String rule : BootUtil.toArray(ruleDef.getResource(), " ,")) {
+            logger.info("PROCESSING: " + rule);
+            if (rule.startsWith("http")) {
+                resources.put(ResourceFactory.newUrlResource(rule),
+                              ResourceType.DRL);
+            } else if (rule.startsWith("file:")) {
+                rule = rule.substring(5, rule.length());
+                if (!rule.endsWith(".drl"))
+                    rule = rule + ".drl";
+                rules.add("file:"+rule);
+                if (isBuiltInRule(rule)) {
+                    for (Resource r : generateRule(rule, true, serviceHandles))
+                        resources.put(r, ResourceType.DRL);
+                } else {
+                    resources.put(ResourceFactory.newFileResource(rule),
+                                  ResourceType.DRL);
+                }
+            } else {
+                if (!rule.endsWith(".drl"))
+                    rule = rule + ".drl";
+                if (isBuiltInRule(rule)) {
+                    for (Resource r : generateRule(rule, false, serviceHandles))
+                        resources.put(r, ResourceType.DRL);
+                } else {
+                    classPathResource = true;
+                    rules.add(rule);
+                    resources.put(ResourceFactory.newClassPathResource(rule),
+                                  ResourceType.DRL);
+                }
+            }
+        }
+        return classPathResource;
+    }
+
+    /*
+     * Name the engine after the rules it fires
+     */
+    private String getEngineName(RuleMap ruleMap) {
+        StringBuilder sb = new StringBuilder();
+        for (String rule : BootUtil.toArray(ruleMap.getRuleDefinition().getResource(), " ,")) {
+            rule = rule.substring(rule.lastIndexOf('/')+1);
+            if (rule.endsWith(".drl"))
+                rule = rule.substring(0, rule.length()-4);
+            if(sb.length()>0)
+                sb.append("-");
+            sb.append(rule);
+        }
+        if(shard>=0)
+            sb.append(".shard-").append(shard);
+        return "CEP."+sb.toString();
+    }
+
     private void generateAndApplyChangeSet(List<String> rules) throws IOException {
         StringBuilder sb = new StringBuilder();
 		sb.append("<change-set xmlns='http://drools.org/drools-5.0/change-set'").append("\n");
@@ -109,6 +109,24 @@ public class DroolsFactory {
     public static StatefulKnowledgeSession createStatefulSession(KnowledgeBase kBase,
                                                                  Map<Resource, ResourceType> resources,
                                                                  ClassLoader loader) {
+        Collection<KnowledgePackage> packages = compile(resources, loader);
+        if(packages==null)
+            return null;
+        return createStatefulSession(kBase, packages);
+    }
+
+    /**
+     * Compile rule resources into {@link org.drools.definition.KnowledgePackage}s,
+     * without adding them to a {@link org.drools.KnowledgeBase}
+     *
+     * @param resources The resources to compile
+     * @param loader The ClassLoader rules are compiled with, may be null
+     *
+     * @return The compiled packages, or null if a resource could not be
+     * compiled
+     */
+    public static Collection<KnowledgePackage> compile(Map<Resource, ResourceType> resources,
+                                                       ClassLoader loader) {
         /*Properties props = new Properties();
         props.setProperty("drools.dialect.java.compiler", "JANINO");
         KnowledgeBuilderConfiguration config =
@@ -141,11 +159,23 @@ public class DroolsFactory {
                 return null;
             }
         }
+        return builder.getKnowledgePackages();
+    }
 
-
+    /**
+     * Add compiled packages to a {@link org.drools.KnowledgeBase}, and create
+     * a session from it
+     *
+     * @param kBase The KnowledgeBase
+     * @param packages The packages to add
+     *
+     * @return A new StatefulKnowledgeSession
+     */
+    public static StatefulKnowledgeSession createStatefulSession(KnowledgeBase kBase,
+                                                                 Collection<KnowledgePackage> packages) {
         Collection<KnowledgePackage> toAdd = new ArrayList<KnowledgePackage>();
 
-        toAdd.addAll(builder.getKnowledgePackages());
+        toAdd.addAll(packages);
 
         //TODO: Add all for now because when using KnowledgeAgent things seem a little different
         /*if(kBase.getKnowledgePackages().size()==0) {
@@ -177,6 +207,45 @@ public class DroolsFactory {
         return kBase.newStatefulKnowledgeSession();
     }
 
+    /**
+     * Replace rules in a {@link org.drools.KnowledgeBase} incrementally.
+     * Rules in the current packages that are not in the updated packages are
+     * removed, and the updated packages are added, replacing rules with the
+     * same name. Sessions created from the KnowledgeBase keep their facts.
+     *
+     * @param kBase The KnowledgeBase
+     * @param current The packages previously added, may be null
+     * @param updated The packages to add
+     */
+    public static void updateKnowledgeBase(KnowledgeBase kBase,
+                                           Collection<KnowledgePackage> current,
+                                           Collection<KnowledgePackage> updated) {
+        if(current!=null) {
+            for(KnowledgePackage known : current) {
+                KnowledgePackage candidate = getKnowledgePackage(known.getName(), updated);
+                for(Rule rule : known.getRules()) {
+                    if(candidate!=null && hasRule(candidate, rule.getName()))
+                        continue;
+                    if(kBase.getRule(known.getName(), rule.getName())!=null) {
+                        logger.info("Removing rule "+known.getName()+"."+rule.getName());
+                        kBase.removeRule(known.getName(), rule.getName());
+                    }
+                }
+            }
+        }
+        logger.info("\n========\n UPDATING: "+getToAddNames(updated)+"\n========");
+        if(updated.size()>0)
+            kBase.addKnowledgePackages(updated);
+    }
+
+    private static boolean hasRule(KnowledgePackage kp, String name) {
+        for(Rule rule : kp.getRules()) {
+            if(rule.getName().equals(name))
+                return true;
+        }
+        return false;
+    }
+
     private static KnowledgePackage getKnowledgePackage(String name,
                                                         Collection<KnowledgePackage> packages) {
         KnowledgePackage kp = null;
@@ -60,6 +60,8 @@ public class GnosticImpl implements Gnostic {
     //private ProvisionMonitor monitor;
     Future<ProvisionMonitor> monitorFuture;
     private ExecutorService execService;
+    /* Compiles updated rules, so updates do not wait behind RuleMaps being added */
+    private ExecutorService reloadService;
     private final List<RuleMap> managedRuleMaps = new ArrayList<RuleMap>();
     private final List<RuleMap> ruleMapsInProcess = new ArrayList<RuleMap>();
     private static BlockingQueue<RuleMap> addRuleMapQ =
@@ -93,6 +95,7 @@ public class GnosticImpl implements Gnostic {
         try {
             execService = Executors.newSingleThreadExecutor();
             execService.submit(new RuleMapWorker());
+            reloadService = Executors.newSingleThreadExecutor();
             int scannerInterval = 30;
             try {
                 scannerInterval =(Integer) context.getConfiguration().getEntry("org.rioproject.gnostic",
@@ -135,6 +138,18 @@ public class GnosticImpl implements Gnostic {
 
     }
 
+    private Configuration getConfiguration() {
+        try {
+            return context.getConfiguration();
+        } catch (ConfigurationException e) {
+            logger.log(Level.WARNING,
+                       "Non-fatal error, unable to obtain configuration, " +
+                       "using default rule firing settings",
+                       e);
+            return null;
+        }
+    }
+
     private void checkDroolsHasInitialized() {
         long t0 = System.currentTimeMillis();
         while(droolsInitialized.get()==false) {
@@ -186,15 +201,7 @@ public class GnosticImpl implements Gnostic {
                 return false;
             }
         }        
-        RuleMapAssociationController controller = null;
-        synchronized(controllers) {
-            for(RuleMapAssociationController c : controllers) {
-                if(c.getRuleMap().equals(ruleMap)) {
-                    controller = c;
-                    break;
-                }
-            }
-        }
+        RuleMapAssociationController controller = getController(ruleMap);
         boolean removed = false;
         if(controller!=null) {
             controller.close();
@@ -212,6 +219,73 @@ public class GnosticImpl implements Gnostic {
         return removed;
     }
 
+    public boolean update(final RuleMap ruleMap, final RuleMap updated) {
+        checkDroolsHasInitialized();
+        verify(ruleMap);
+        verify(updated);
+        synchronized(managedRuleMaps) {
+            if(!managedRuleMaps.contains(ruleMap)) {
+                if(logger.isLoggable(Level.FINE))
+                    logger.fine("RuleMap not found in " +
+                                "collection of managed RuleMaps. "+ruleMap);
+                return false;
+            }
+            if(!ruleMap.equals(updated) && managedRuleMaps.contains(updated))
+                return false;
+        }
+        final RuleMapAssociationController controller = getController(ruleMap);
+        if(controller==null) {
+            if(logger.isLoggable(Level.FINE))
+                logger.fine("RuleMap not managed by any controllers. "+ruleMap);
+            return false;
+        }
+        synchronized(ruleMapsInProcess) {
+            if(ruleMapsInProcess.contains(updated))
+                return false;
+            ruleMapsInProcess.add(updated);
+        }
+        logger.info("Updating "+ruleMap);
+        reloadService.submit(new Runnable() {
+            public void run() {
+                boolean replace = false;
+                try {
+                    if(controller.canUpdate(updated)) {
+                        try {
+                            if(controller.update(updated)) {
+                                synchronized(managedRuleMaps) {
+                                    int ndx = managedRuleMaps.indexOf(ruleMap);
+                                    if(ndx!=-1)
+                                        managedRuleMaps.set(ndx, updated);
+                                }
+                                logger.info("Updated "+updated);
+                            } else {
+                                logger.warning("Could not update "+ruleMap+", the current rules are kept");
+                            }
+                        } catch(IllegalStateException e) {
+                            /* Neither the current nor the updated rules are in use */
+                            logger.log(Level.SEVERE, "Could not update "+ruleMap+", removing it", e);
+                            remove(ruleMap);
+                        }
+                    } else {
+                        /* The services or rule classpath have changed, the sessions are recreated */
+                        logger.info("Replacing "+ruleMap);
+                        remove(ruleMap);
+                        replace = true;
+                    }
+                } catch(RuntimeException e) {
+                    logger.log(Level.SEVERE, "Unexpected failure updating "+ruleMap, e);
+                } finally {
+                    synchronized(ruleMapsInProcess) {
+                        ruleMapsInProcess.remove(updated);
+                    }
+                }
+                if(replace)
+                    add(updated);
+            }
+        });
+        return true;
+    }
+
     public List<RuleMap> get() {
         List<RuleMap> ruleMaps;
         synchronized(managedRuleMaps) {
@@ -220,6 +294,16 @@ public class GnosticImpl implements Gnostic {
         return ruleMaps;
     }
 
+    private RuleMapAssociationController getController(RuleMap ruleMap) {
+        synchronized(controllers) {
+            for(RuleMapAssociationController c : controllers) {
+                if(c.getRuleMap().equals(ruleMap))
+                    return c;
+            }
+        }
+        return null;
+    }
+
     private void verify(RuleMap ruleMap) {
         if(ruleMap==null)
             throw new IllegalArgumentException("ruleMap is null");
@@ -240,6 +324,8 @@ public class GnosticImpl implements Gnostic {
             ResourceFactory.getResourceChangeScannerService().stop();*/
             if(execService!=null)
                 execService.shutdownNow();
+            if(reloadService!=null)
+                reloadService.shutdownNow();
             for (RuleMapAssociationController controller : controllers) {
                 controller.close();
             }
@@ -303,7 +389,9 @@ public class GnosticImpl implements Gnostic {
                                                                       //kBase,
                                                                       monitor,
                                                                       context.getServiceBeanConfig().getGroups(),
-                                                                      ruleLoader);
+                                                                      ruleLoader,
+                                                                      getConfiguration(),
+                                                                      context.getWatchRegistry());
                         controller.addRuleMapListener(new RuleMapNotificationListener());
                         controllers.add(controller);
                         controller.process();
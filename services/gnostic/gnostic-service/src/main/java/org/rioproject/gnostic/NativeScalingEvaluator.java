@@ -0,0 +1,342 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.gnostic;
+
+import net.jini.config.Configuration;
+import net.jini.config.ConfigurationException;
+import net.jini.config.EmptyConfiguration;
+import net.jini.export.Exporter;
+import net.jini.jeri.BasicILFactory;
+import net.jini.jeri.BasicJeriExporter;
+import net.jini.jeri.tcp.TcpServerEndpoint;
+import org.rioproject.boot.BootUtil;
+import org.rioproject.core.ServiceElement;
+import org.rioproject.event.RemoteServiceEvent;
+import org.rioproject.event.RemoteServiceEventListener;
+import org.rioproject.monitor.ProvisionMonitorEvent;
+import org.rioproject.sla.RuleMap;
+import org.rioproject.sla.SLA;
+import org.rioproject.sla.ScalingPolicyHandler;
+import org.rioproject.watch.AggregatingWatchDataReplicator;
+import org.rioproject.watch.Calculable;
+import org.rioproject.watch.MergedAggregate;
+import org.rioproject.watch.RemoteWindowAggregateListener;
+import org.rioproject.watch.WindowAggregate;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Evaluates the declarative scaling SLAs of the built-in
+ * <tt>ScalingRuleHandler</tt> rule without a rules engine.
+ *
+ * <p>Rather than each <tt>Calculable</tt> being replicated to Gnostic, an
+ * {@link AggregatingWatchDataReplicator} is added to each watch. It
+ * aggregates the watch's values over a sliding window in the service's JVM,
+ * and sends the window's aggregate to this evaluator at most once per
+ * interval. The aggregates of each service's instances are combined, and
+ * if the combined value is above the SLA's high threshold (and there are
+ * fewer than the SLA's maximum number of services) the service is
+ * incremented. If the combined value is below the low threshold (and there
+ * are more instances than planned) the service is decremented. After
+ * scaling a service, no further scaling decision is made for the service
+ * until a window has passed.
+ *
+ * <p>The following configuration entries are read from the
+ * <tt>org.rioproject.gnostic</tt> component:
+ * <ul>
+ * <li><tt>scalingWindow</tt>: The length (in milliseconds) of the window,
+ * defaults to 60000, the window used by the <tt>ScalingRuleHandler</tt>
+ * rule
+ * <li><tt>aggregateInterval</tt>: How often (in milliseconds) aggregates
+ * are sent, defaults to 5000
+ * <li><tt>scalingStatistic</tt>: The statistic compared to the thresholds,
+ * <tt>mean</tt> (the default), <tt>max</tt> or <tt>percentile</tt>
+ * <li><tt>scalingPercentile</tt>: The percentile used by the
+ * <tt>percentile</tt> statistic, defaults to 95
+ * <li><tt>maxScalingStep</tt>: The maximum number of instances added or
+ * removed by one scaling decision, defaults to 1. The number is proportional
+ * to how far the combined value is past the threshold, see
+ * {@link org.rioproject.sla.ScalingPolicyHandler#getScalingStep}
+ * </ul>
+ */
+class NativeScalingEvaluator implements CEPSession, RemoteWindowAggregateListener {
+    enum Statistic {MEAN, MAX, PERCENTILE}
+    static final long DEFAULT_WINDOW = 60*1000;
+    static final long DEFAULT_INTERVAL = 5*1000;
+    private final DeployedServiceContext context;
+    private final Configuration config;
+    private final long windowMillis;
+    private final long intervalMillis;
+    private final Statistic statistic;
+    private final double percentile;
+    private final int maxStep;
+    private final Map<String, Target> targets = new HashMap<String, Target>();
+    private final Map<UUID, Target> sources = new ConcurrentHashMap<UUID, Target>();
+    private ServiceCountTracker serviceCounts;
+    private Exporter exporter;
+    private RemoteWindowAggregateListener backend;
+    private static final Logger logger = Logger.getLogger(NativeScalingEvaluator.class.getName());
+
+    NativeScalingEvaluator(DeployedServiceContext context, Configuration config) {
+        this.context = context;
+        this.config = config==null?EmptyConfiguration.INSTANCE:config;
+        long window = DEFAULT_WINDOW;
+        long interval = DEFAULT_INTERVAL;
+        String stat = "mean";
+        double p = 95;
+        int step = 1;
+        try {
+            window = (Long)this.config.getEntry(CEPEngine.COMPONENT, "scalingWindow", long.class, window);
+            interval = (Long)this.config.getEntry(CEPEngine.COMPONENT, "aggregateInterval", long.class, interval);
+            stat = (String)this.config.getEntry(CEPEngine.COMPONENT, "scalingStatistic", String.class, stat);
+            p = (Double)this.config.getEntry(CEPEngine.COMPONENT, "scalingPercentile", double.class, p);
+            step = (Integer)this.config.getEntry(CEPEngine.COMPONENT, "maxScalingStep", int.class, step);
+        } catch(ConfigurationException e) {
+            logger.log(Level.WARNING,
+                       "Non-fatal error, unable to obtain scaling settings " +
+                       "from configuration, using defaults",
+                       e);
+        }
+        this.windowMillis = Math.max(1, window);
+        this.intervalMillis = Math.max(0, interval);
+        this.percentile = p;
+        this.maxStep = Math.max(1, step);
+        if("max".equals(stat)) {
+            statistic = Statistic.MAX;
+        } else if("percentile".equals(stat)) {
+            statistic = Statistic.PERCENTILE;
+        } else {
+            if(!"mean".equals(stat))
+                logger.warning("Unknown scalingStatistic ["+stat+"], using [mean]");
+            statistic = Statistic.MEAN;
+        }
+    }
+
+    /**
+     * Whether a RuleMap only uses the built-in scaling rule, and can be
+     * evaluated without a rules engine
+     *
+     * @param ruleMap The RuleMap
+     *
+     * @return <code>true</code> if the RuleMap only uses the built-in
+     * <tt>ScalingRuleHandler</tt> rule, loaded from the classpath
+     */
+    static boolean canEvaluate(RuleMap ruleMap) {
+        String[] rules = BootUtil.toArray(ruleMap.getRuleDefinition().getResource(), " ,");
+        if(rules.length==0)
+            return false;
+        for(String rule : rules) {
+            if(rule.startsWith("http") || rule.startsWith("file:"))
+                return false;
+            if(!isScalingRule(rule))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether a rule resource is the built-in scaling rule
+     *
+     * @param rule The name of the rule resource
+     *
+     * @return <code>true</code> if the rule is the built-in
+     * <tt>ScalingRuleHandler</tt> rule
+     */
+    static boolean isScalingRule(String rule) {
+        if(!rule.endsWith(".drl"))
+            rule = rule + ".drl";
+        return rule.equals(Constants.SCALING_RULE) || rule.endsWith("/"+Constants.SCALING_RULE);
+    }
+
+    public void initialize(List<ServiceHandle> serviceHandles, RuleMap ruleMap, ClassLoader loader)
+        throws IOException {
+        exporter = new BasicJeriExporter(TcpServerEndpoint.getInstance(0),
+                                         new BasicILFactory(),
+                                         false,
+                                         true);
+        backend = (RemoteWindowAggregateListener)exporter.export(this);
+        serviceCounts = new ServiceCountTracker(null);
+        serviceCounts.start(serviceHandles,
+                            context.getProvisionMonitor(),
+                            new RemoteServiceEventListener() {
+                                public void notify(RemoteServiceEvent event) {
+                                    if(event instanceof ProvisionMonitorEvent)
+                                        serviceCounts.update((ProvisionMonitorEvent)event);
+                                }
+                            },
+                            config);
+        logger.info("Evaluating scaling SLAs for "+ruleMap+" over a "+windowMillis+" ms window, " +
+                    "statistic: "+statistic.name().toLowerCase());
+    }
+
+    /**
+     * The SLAs are those of the services, there are no rules to compile
+     */
+    public boolean reload(List<ServiceHandle> serviceHandles, RuleMap ruleMap, ClassLoader loader) {
+        return canEvaluate(ruleMap);
+    }
+
+    /**
+     * Calculables are aggregated in the JVM of the service that records them,
+     * and are not inserted into the evaluator
+     */
+    public void insert(Calculable calculable) {
+        if(logger.isLoggable(Level.FINEST))
+            logger.finest("Ignoring calculable "+calculable+", watches are aggregated by their services");
+    }
+
+    public void close() {
+        if(serviceCounts!=null)
+            serviceCounts.close();
+        if(exporter!=null) {
+            exporter.unexport(true);
+            exporter = null;
+        }
+        sources.clear();
+    }
+
+    /**
+     * Get the replicator to add to a watch of a service
+     *
+     * @param watchID The identifier of the watch
+     * @param handle The service
+     *
+     * @return A replicator that aggregates the watch's values, or null if the
+     * watch does not have a scaling SLA
+     */
+    AggregatingWatchDataReplicator getReplicator(String watchID, ServiceHandle handle) {
+        SLA sla = handle.getSLAMap().get(watchID);
+        if(sla==null || backend==null)
+            return null;
+        ServiceElement elem = handle.getElem();
+        String key = elem.getOperationalStringName()+"/"+elem.getName()+"/"+watchID;
+        Target target;
+        synchronized(targets) {
+            target = targets.get(key);
+            if(target==null) {
+                target = new Target(elem.getName(), elem.getOperationalStringName(), sla, elem.getPlanned());
+                targets.put(key, target);
+            }
+        }
+        AggregatingWatchDataReplicator replicator =
+            new AggregatingWatchDataReplicator(backend, windowMillis, intervalMillis, percentile);
+        sources.put(replicator.getUuid(), target);
+        return replicator;
+    }
+
+    /**
+     * Stop evaluating the aggregates of a replicator
+     *
+     * @param replicator The replicator
+     */
+    void removeReplicator(AggregatingWatchDataReplicator replicator) {
+        sources.remove(replicator.getUuid());
+    }
+
+    public void aggregated(WindowAggregate aggregate) {
+        Target target = aggregate.getSource()==null?null:sources.get(aggregate.getSource());
+        if(target==null)
+            return;
+        int delta = target.evaluate(aggregate);
+        if(delta==1) {
+            logger.info("Scaling SLA for ["+target.opStringName+"/"+target.serviceName+"] breached, increment");
+            context.increment(target.serviceName, target.opStringName);
+        } else if(delta==-1) {
+            logger.info("Scaling SLA for ["+target.opStringName+"/"+target.serviceName+"] breached, decrement");
+            context.decrement(target.serviceName, target.opStringName);
+        } else if(delta!=0) {
+            logger.info("Scaling SLA for ["+target.opStringName+"/"+target.serviceName+"] breached, " +
+                        "scale by ["+delta+"]");
+            context.scale(target.serviceName, target.opStringName, delta);
+        }
+    }
+
+    /**
+     * The scaling SLA of a watch of a service, and the latest aggregate from
+     * each of the service's instances
+     */
+    class Target {
+        final String serviceName;
+        final String opStringName;
+        final SLA sla;
+        final int minServices;
+        final Map<UUID, WindowAggregate> latest = new HashMap<UUID, WindowAggregate>();
+        long quietUntil;
+
+        Target(String serviceName, String opStringName, SLA sla, int minServices) {
+            this.serviceName = serviceName;
+            this.opStringName = opStringName;
+            this.sla = sla;
+            this.minServices = minServices;
+        }
+
+        /*
+         * Returns the number of instances to add (if positive) or remove (if
+         * negative)
+         */
+        synchronized int evaluate(WindowAggregate aggregate) {
+            long now = System.currentTimeMillis();
+            latest.put(aggregate.getSource(), aggregate);
+            for(Iterator<WindowAggregate> it = latest.values().iterator(); it.hasNext();) {
+                if(it.next().getWhen()<now-windowMillis)
+                    it.remove();
+            }
+            if(now<quietUntil)
+                return 0;
+            MergedAggregate merged = MergedAggregate.merge(latest.values());
+            if(merged.getCount()==0)
+                return 0;
+            double value;
+            switch(statistic) {
+                case MAX:
+                    value = merged.getMax();
+                    break;
+                case PERCENTILE:
+                    value = merged.getPercentileValue(percentile);
+                    break;
+                default:
+                    value = merged.getMean();
+            }
+            ServiceCount serviceCount = serviceCounts==null?null:serviceCounts.getServiceCount(serviceName, opStringName);
+            int instances = serviceCount==null?0:serviceCount.getCount();
+            int delta = 0;
+            if(value>sla.getCurrentHighThreshold() &&
+               (sla.getMaxServices()==-1 || instances<sla.getMaxServices())) {
+                delta = ScalingPolicyHandler.getScalingStep(instances, value, sla.getCurrentHighThreshold(), maxStep);
+                if(sla.getMaxServices()!=-1)
+                    delta = Math.min(delta, sla.getMaxServices()-instances);
+            } else if(value<sla.getCurrentLowThreshold() && instances>minServices) {
+                delta = -Math.min(ScalingPolicyHandler.getScalingStep(instances,
+                                                                     value,
+                                                                     sla.getCurrentLowThreshold(),
+                                                                     maxStep),
+                                  instances-minServices);
+            }
+            if(delta!=0) {
+                quietUntil = now+windowMillis;
+                latest.clear();
+            }
+            if(logger.isLoggable(Level.FINE))
+                logger.fine("["+opStringName+"/"+serviceName+"] "+statistic.name().toLowerCase()+"="+value+", " +
+                            "instances="+instances+", delta="+delta);
+            return delta;
+        }
+    }
+}
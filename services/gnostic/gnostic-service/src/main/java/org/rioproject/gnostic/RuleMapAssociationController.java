@@ -15,23 +15,30 @@
  */
 package org.rioproject.gnostic;
 
+import net.jini.config.Configuration;
+import net.jini.config.ConfigurationException;
 import org.drools.agent.KnowledgeAgent;
 import org.drools.impl.KnowledgeBaseImpl;
 import org.drools.reteoo.ReteooRuleBase;
 import org.rioproject.associations.*;
+import org.rioproject.boot.BootUtil;
 import org.rioproject.monitor.ProvisionMonitor;
 import org.rioproject.sla.RuleMap;
+import org.rioproject.watch.ReplicationResolution;
+import org.rioproject.watch.WatchRegistry;
 
 import java.io.IOException;
 import java.rmi.server.ExportException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class RuleMapAssociationController {
     private static final Logger logger = Logger.getLogger(RuleMapAssociationController.class.getName());
-    private final RuleMap ruleMap;
+    private volatile RuleMap ruleMap;
     private final AssociationMgmt associationMgmt;
     private final List<Association<Object>> associations = new ArrayList<Association<Object>>();
     private final KnowledgeAgent kAgent;
@@ -39,18 +46,33 @@ public class RuleMapAssociationController {
     private ProvisionMonitor monitor;
     private final String[] groups;
     private AssociationsWatchDataReplicator wdr;
-    private CEPSession cepSession;
+    private List<ServiceHandle> serviceHandles;
+    private final List<CEPSession> cepSessions = new ArrayList<CEPSession>();
     private final List<AssociatedServiceListener> aListeners = new ArrayList<AssociatedServiceListener>();
     private ClassLoader ruleLoader = null;
     private RuleMapListener listener;
+    private final Configuration config;
+    private final WatchRegistry watchRegistry;
 
     RuleMapAssociationController(RuleMap ruleMap,
                                  KnowledgeAgent kAgent,
                                  ProvisionMonitor monitor,
                                  String[] groups,
                                  ClassLoader ruleLoader) {
+        this(ruleMap, kAgent, monitor, groups, ruleLoader, null, null);
+    }
+
+    RuleMapAssociationController(RuleMap ruleMap,
+                                 KnowledgeAgent kAgent,
+                                 ProvisionMonitor monitor,
+                                 String[] groups,
+                                 ClassLoader ruleLoader,
+                                 Configuration config,
+                                 WatchRegistry watchRegistry) {
         if(kAgent==null)
             throw new IllegalArgumentException("kAgent is null");
+        this.config = config;
+        this.watchRegistry = watchRegistry;
         this.ruleMap = ruleMap;
         associationMgmt = new AssociationMgmt();
         associationMgmt.setBackend(this);
@@ -78,6 +100,64 @@ public class RuleMapAssociationController {
         return ruleMap;
     }
 
+    /*
+     * Whether the rules of an updated RuleMap can replace the rules of the
+     * running sessions. The services and rule classpath must be unchanged,
+     * and the updated rules must be evaluated the same way
+     */
+    boolean canUpdate(RuleMap updated) {
+        if(wdr==null || serviceHandles==null || cepSessions.isEmpty())
+            return false;
+        RuleMap.RuleDefinition current = ruleMap.getRuleDefinition();
+        String classPath = updated.getRuleDefinition().getRuleClassPath();
+        if(classPath==null?current.getRuleClassPath()!=null:!classPath.equals(current.getRuleClassPath()))
+            return false;
+        if(!ruleMap.getServiceDefinitions().equals(updated.getServiceDefinitions()))
+            return false;
+        return useNativeScaling(updated)==(cepSessions.get(0) instanceof NativeScalingEvaluator);
+    }
+
+    /*
+     * Replace the rules of the running sessions with the rules of an updated
+     * RuleMap. Watch replicators, facts and ServiceCount tracking are kept.
+     * If the rules cannot be compiled or applied, the current rules are kept.
+     * The shards of a RuleMap share the knowledge base, which is updated once
+     * while all of them are paused
+     *
+     * @return true if the sessions use the updated rules
+     *
+     * @throws IllegalStateException if the rules could not be applied, and
+     * the current rules could not be restored
+     */
+    synchronized boolean update(RuleMap updated) {
+        if(!canUpdate(updated))
+            return false;
+        ClassLoader currentCL = null;
+        if(ruleLoader!=null) {
+            currentCL = Thread.currentThread().getContextClassLoader();
+            Thread.currentThread().setContextClassLoader(ruleLoader);
+        }
+        try {
+            if(cepSessions.get(0) instanceof DroolsCEPManager) {
+                List<DroolsCEPManager> shards = new ArrayList<DroolsCEPManager>();
+                for(CEPSession cepSession : cepSessions)
+                    shards.add((DroolsCEPManager)cepSession);
+                if(!DroolsCEPManager.reload(shards, serviceHandles, updated, ruleLoader))
+                    return false;
+            } else {
+                for(CEPSession cepSession : cepSessions) {
+                    if(!cepSession.reload(serviceHandles, updated, ruleLoader))
+                        return false;
+                }
+            }
+        } finally {
+            if(currentCL!=null)
+                Thread.currentThread().setContextClassLoader(currentCL);
+        }
+        ruleMap = updated;
+        return true;
+    }
+
     private List<Association<Object>> getAssociations() {
         return associations;
     }
@@ -98,12 +178,14 @@ public class RuleMapAssociationController {
         }
         if(associationMgmt!=null)
             associationMgmt.terminate();
-        if(cepSession !=null)
+        for(CEPSession cepSession : cepSessions)
             cepSession.close();
+        cepSessions.clear();
         if(wdr!=null) {
             wdr.close();
             wdr = null;
         }
+        serviceHandles = null;
     }
 
     void process() {
@@ -152,19 +234,39 @@ public class RuleMapAssociationController {
         boolean shutdownReplicator = false;
         DeployedServiceContext context = new DeployedServiceContext();
         context.setProvisionMonitor(monitor);
-        cepSession = new DroolsCEPManager(context, kAgent);
-        //cepSession = new DroolsCEPManager(context, kBase);
+        if(useNativeScaling(ruleMap)) {
+            cepSessions.add(new NativeScalingEvaluator(context, config));
+        } else {
+            int shards = getSessionShards();
+            /* Each shard only sees the calculables of its own instances, so
+             * none of them may decide to scale */
+            if(shards>1)
+                context.disableScaling("the sessions of "+ruleMap+" are sharded");
+            for(int i=0; i<shards; i++) {
+                DroolsCEPManager cepSession = new DroolsCEPManager(context, kAgent, config, watchRegistry);
+                //cepSession = new DroolsCEPManager(context, kBase);
+                if(shards>1)
+                    cepSession.setShard(i);
+                cepSessions.add(cepSession);
+            }
+        }
         try {
-            wdr = new AssociationsWatchDataReplicator(cepSession, context, monitor);
-            List<ServiceHandle> serviceHandles = wdr.init(ruleMap, getAssociations());
+            wdr = new AssociationsWatchDataReplicator(cepSessions, context, monitor, getReplicationResolution());
+            serviceHandles = wdr.init(ruleMap, getAssociations());
             if(serviceHandles.size()==0) {
                 logger.warning("No service handles, cannot continue");
                 shutdownReplicator = true;
             } else {
                 if(logger.isLoggable(Level.FINE))
                     logger.fine("Added WatchDataReplicators for ["+ruleMap.toString()+"], creating KnowledgeSession...");
-                cepSession.initialize(serviceHandles, ruleMap, ruleLoader);
-                logger.info("Created StatefulKnowledgeSession for "+ruleMap);
+                for(CEPSession cepSession : cepSessions) {
+                    /* The shards share the knowledge base, the rules are
+                     * compiled and added by the first shard */
+                    if(cepSession!=cepSessions.get(0))
+                        ((DroolsCEPManager)cepSession).shareRules((DroolsCEPManager)cepSessions.get(0));
+                    cepSession.initialize(serviceHandles, ruleMap, ruleLoader);
+                }
+                logger.info("Created "+cepSessions.size()+" CEPSession(s) for "+ruleMap);
                 /* Add the watches */
                 for(ServiceHandle sh : serviceHandles) {
                     wdr.registerWatches(sh);
@@ -188,13 +290,118 @@ public class RuleMapAssociationController {
                        e);
         } finally {
             if(shutdownReplicator) {
+                serviceHandles = null;
                 wdr.close();
-                cepSession.close();
+                for(CEPSession cepSession : cepSessions)
+                    cepSession.close();
+                cepSessions.clear();
             }
         }
         return shutdownReplicator;
     }
 
+    /*
+     * Whether the RuleMap's scaling SLAs are evaluated over pre-aggregated
+     * windows rather than by a rules engine. The nativeScaling configuration
+     * entry (default true) enables this for RuleMaps that only use the
+     * built-in ScalingRuleHandler rule
+     */
+    private boolean useNativeScaling(RuleMap ruleMap) {
+        if(!NativeScalingEvaluator.canEvaluate(ruleMap))
+            return false;
+        boolean nativeScaling = true;
+        if(config!=null) {
+            try {
+                nativeScaling = (Boolean)config.getEntry(CEPEngine.COMPONENT,
+                                                         "nativeScaling",
+                                                         boolean.class,
+                                                         nativeScaling);
+            } catch(ConfigurationException e) {
+                logger.log(Level.WARNING,
+                           "Non-fatal error, unable to obtain nativeScaling " +
+                           "from configuration, using ["+nativeScaling+"]",
+                           e);
+            }
+        }
+        return nativeScaling;
+    }
+
+    /*
+     * Get the number of sessions the RuleMap's calculables are partitioned
+     * across. The sessionShards configuration entry maps the rule resource of
+     * a RuleMap to its number of sessions, RuleMaps not in the map use one.
+     *
+     * Each shard runs the full rule set over the calculables of only its own
+     * service instances, so sharding is restricted to rules that do not
+     * scale services. RuleMaps that use the built-in scaling rule are never
+     * sharded, and sharded sessions cannot increment, decrement or scale
+     * services using the DeployedServiceContext
+     */
+    private int getSessionShards() {
+        int shards = 1;
+        if(config==null)
+            return shards;
+        try {
+            Map sessionShards = (Map)config.getEntry(CEPEngine.COMPONENT,
+                                                     "sessionShards",
+                                                     Map.class,
+                                                     Collections.emptyMap());
+            Object value = sessionShards.get(ruleMap.getRuleDefinition().getResource());
+            if(value instanceof Number)
+                shards = Math.max(1, ((Number)value).intValue());
+            if(shards>1 && usesScalingRule(ruleMap)) {
+                logger.warning("The sessions of ["+ruleMap+"] scale services and cannot be sharded, " +
+                               "using one session");
+                shards = 1;
+            }
+        } catch(ConfigurationException e) {
+            logger.log(Level.WARNING,
+                       "Non-fatal error, unable to obtain sessionShards " +
+                       "from configuration, using one session for ["+ruleMap+"]",
+                       e);
+        }
+        return shards;
+    }
+
+    private boolean usesScalingRule(RuleMap ruleMap) {
+        for(String rule : BootUtil.toArray(ruleMap.getRuleDefinition().getResource(), " ,")) {
+            if(NativeScalingEvaluator.isScalingRule(rule))
+                return true;
+        }
+        return false;
+    }
+
+    /*
+     * Get the resolution the RuleMap's services replicate calculables at. The
+     * replicationResolutions configuration entry maps the rule resource of a
+     * RuleMap to a resolution such as "1s", "10s" or "summary:1m", RuleMaps
+     * not in the map replicate each calculable
+     */
+    private ReplicationResolution getReplicationResolution() {
+        ReplicationResolution resolution = ReplicationResolution.RAW;
+        if(config==null)
+            return resolution;
+        try {
+            Map resolutions = (Map)config.getEntry(CEPEngine.COMPONENT,
+                                                   "replicationResolutions",
+                                                   Map.class,
+                                                   Collections.emptyMap());
+            Object value = resolutions.get(ruleMap.getRuleDefinition().getResource());
+            if(value instanceof ReplicationResolution)
+                resolution = (ReplicationResolution)value;
+            else if(value!=null)
+                resolution = ReplicationResolution.parse(value.toString());
+        } catch(ConfigurationException e) {
+            logger.log(Level.WARNING,
+                       "Non-fatal error, unable to obtain replicationResolutions " +
+                       "from configuration, replicating each calculable for ["+ruleMap+"]",
+                       e);
+        } catch(IllegalArgumentException e) {
+            logger.warning(e.getMessage()+", replicating each calculable for ["+ruleMap+"]");
+        }
+        return resolution;
+    }
+
     class AssociatedServiceListener implements AssociationServiceListener<Object> {
         Association<Object> association;
 
@@ -0,0 +1,62 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.gnostic;
+
+/**
+ * A fact in working memory providing the number of instances of a deployed
+ * service. Rules match against <code>ServiceCount</code> facts rather than
+ * asking the <tt>OperationalStringManager</tt> for the service's instances,
+ * for example:
+ *
+ * <pre>
+ * ServiceCount(serviceName == "Echo", opStringName == "Hello", count &lt; 5)
+ * </pre>
+ *
+ * <p>A <code>ServiceCount</code> is immutable, when the number of instances
+ * changes it is replaced in working memory.
+ */
+public class ServiceCount {
+    private final String serviceName;
+    private final String opStringName;
+    private final int count;
+
+    public ServiceCount(String serviceName, String opStringName, int count) {
+        this.serviceName = serviceName;
+        this.opStringName = opStringName;
+        this.count = count;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public String getOpStringName() {
+        return opStringName;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceCount{" +
+               "serviceName='" + serviceName + '\'' +
+               ", opStringName='" + opStringName + '\'' +
+               ", count=" + count +
+               '}';
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.gnostic;
+
+import net.jini.config.Configuration;
+import net.jini.config.ConfigurationException;
+import net.jini.core.lookup.ServiceID;
+import net.jini.id.Uuid;
+import org.rioproject.core.OperationalString;
+import org.rioproject.core.OperationalStringManager;
+import org.rioproject.core.ServiceBeanInstance;
+import org.rioproject.core.ServiceElement;
+import org.rioproject.event.BasicEventConsumer;
+import org.rioproject.event.RemoteServiceEventListener;
+import org.rioproject.monitor.ProvisionMonitor;
+import org.rioproject.monitor.ProvisionMonitorEvent;
+import org.rioproject.resources.util.TaskScheduler;
+
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Maintains {@link ServiceCount} facts for the services a rule set is
+ * concerned with. The instances of each service are obtained from the
+ * <tt>OperationalStringManager</tt> when the service is first tracked, and
+ * are then kept up to date from <tt>ProvisionMonitorEvent</tt>s, so rules
+ * never make a remote call to find out how many instances there are.
+ *
+ * <p>So that a missed event does not make a count drift for good, the
+ * instances are obtained again every <tt>serviceCountResyncInterval</tt>
+ * milliseconds (read from the <tt>org.rioproject.gnostic</tt> component,
+ * defaults to 60000, a value of 0 disables it), and as soon as an event
+ * removes an instance that is not being tracked.
+ */
+class ServiceCountTracker {
+    static final long DEFAULT_RESYNC_INTERVAL = 60*1000;
+    private static final int MAX_DEPARTED = 64;
+    private final CEPEngine engine;
+    private final Map<String, Tracked> tracked = new HashMap<String, Tracked>();
+    /* Only one load at a time, so changes made during a load are known */
+    private final Object loadLock = new Object();
+    private BasicEventConsumer eventConsumer;
+    private ServiceID monitorID;
+    private ScheduledFuture<?> resync;
+    private static final Logger logger = Logger.getLogger(ServiceCountTracker.class.getName());
+
+    /**
+     * Create a ServiceCountTracker
+     *
+     * @param engine The CEPEngine to replace ServiceCount facts with. If null,
+     * counts are maintained without being added to working memory.
+     */
+    ServiceCountTracker(CEPEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Track the services of the ServiceHandles, and keep their counts up to
+     * date from the ProvisionMonitor's events. The listener is registered for
+     * events before the current instances are loaded, so no changes are
+     * missed while loading them.
+     *
+     * @param serviceHandles The services to track
+     * @param monitor The ProvisionMonitor to register for events with, may be
+     * null
+     * @param listener The listener to notify of events, it must update this
+     * tracker
+     * @param config Configuration for the event consumer, may be null
+     */
+    void start(List<ServiceHandle> serviceHandles,
+               ProvisionMonitor monitor,
+               RemoteServiceEventListener listener,
+               Configuration config) {
+        List<ServiceHandle> toLoad = new ArrayList<ServiceHandle>();
+        for(ServiceHandle sh : serviceHandles) {
+            if(sh.getElem()!=null && track(sh.getElem()))
+                toLoad.add(sh);
+        }
+        if(monitor==null) {
+            logger.warning("No ProvisionMonitor reference, service counts will not be updated");
+        } else {
+            try {
+                eventConsumer = new BasicEventConsumer(ProvisionMonitorEvent.getEventDescriptor(),
+                                                       listener,
+                                                       config);
+                /* The ServiceID is only used to identify the registration */
+                UUID uuid = UUID.randomUUID();
+                monitorID = new ServiceID(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+                if(eventConsumer.register(monitor, ProvisionMonitorEvent.getEventDescriptor(), monitorID)==null)
+                    logger.warning("Unable to register for ProvisionMonitorEvents, " +
+                                   "service counts will not be updated");
+            } catch(Exception e) {
+                logger.log(Level.WARNING,
+                           "Unable to register for ProvisionMonitorEvents, " +
+                           "service counts will not be updated",
+                           e);
+            }
+        }
+        for(ServiceHandle sh : toLoad)
+            load(sh.getElem(), sh.getOpMgr());
+        long resyncInterval = DEFAULT_RESYNC_INTERVAL;
+        if(config!=null) {
+            try {
+                resyncInterval = (Long)config.getEntry(CEPEngine.COMPONENT,
+                                                       "serviceCountResyncInterval",
+                                                       long.class,
+                                                       resyncInterval);
+            } catch(ConfigurationException e) {
+                logger.log(Level.WARNING,
+                           "Non-fatal error, unable to obtain serviceCountResyncInterval " +
+                           "from configuration, using default",
+                           e);
+            }
+        }
+        if(resyncInterval>0) {
+            resync = TaskScheduler.getInstance().scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    resync();
+                }
+            }, resyncInterval, resyncInterval);
+        }
+    }
+
+    /**
+     * Stop receiving ProvisionMonitorEvents
+     */
+    void close() {
+        if(resync!=null) {
+            resync.cancel(false);
+            resync = null;
+        }
+        if(eventConsumer!=null) {
+            if(monitorID!=null)
+                eventConsumer.deregister(monitorID);
+            eventConsumer.terminate();
+            eventConsumer = null;
+        }
+    }
+
+    /**
+     * Track the instances of a service, unless they are already being tracked
+     *
+     * @param elem The ServiceElement of the service
+     *
+     * @return <code>true</code> if the service was not already being tracked
+     */
+    synchronized boolean track(ServiceElement elem) {
+        String key = getKey(elem.getName(), elem.getOperationalStringName());
+        if(tracked.containsKey(key))
+            return false;
+        Tracked t = new Tracked(elem.getName(), elem.getOperationalStringName());
+        tracked.put(key, t);
+        publish(t);
+        return true;
+    }
+
+    /**
+     * Set the instances of a tracked service to those known by its
+     * <tt>OperationalStringManager</tt>. Changes made by events received
+     * while the instances are being obtained take precedence over them.
+     *
+     * @param elem The ServiceElement of the service
+     * @param opMgr The OperationalStringManager managing the service
+     */
+    void load(ServiceElement elem, OperationalStringManager opMgr) {
+        String key = getKey(elem.getName(), elem.getOperationalStringName());
+        synchronized(loadLock) {
+            Tracked t;
+            synchronized(this) {
+                t = tracked.get(key);
+                if(t==null)
+                    return;
+                t.elem = elem;
+                t.opMgr = opMgr;
+                t.reloading = false;
+                t.loading = true;
+                t.added.clear();
+                t.removed.clear();
+            }
+            ServiceBeanInstance[] instances = null;
+            try {
+                instances = opMgr.getServiceBeanInstances(elem);
+            } catch(Exception e) {
+                logger.log(Level.WARNING,
+                           "Unable to get the instances of ["+elem.getName()+"], " +
+                           "the service count will be maintained from provision events",
+                           e);
+            }
+            synchronized(this) {
+                t.loading = false;
+                if(instances==null)
+                    return;
+                Set<Uuid> current = new HashSet<Uuid>();
+                for(ServiceBeanInstance instance : instances)
+                    current.add(instance.getServiceBeanID());
+                current.removeAll(t.removed);
+                current.addAll(t.added);
+                if(!current.equals(t.instances) && t.fact!=null && logger.isLoggable(Level.FINE))
+                    logger.fine("Resynchronized the instances of ["+key+"], " +
+                                "tracked ["+t.instances.size()+"], actual ["+current.size()+"]");
+                t.instances.clear();
+                t.instances.addAll(current);
+                publish(t);
+            }
+        }
+    }
+
+    /**
+     * Obtain the instances of each tracked service again
+     */
+    void resync() {
+        List<Tracked> toLoad;
+        synchronized(this) {
+            toLoad = new ArrayList<Tracked>(tracked.values());
+        }
+        for(Tracked t : toLoad) {
+            if(t.opMgr!=null)
+                load(t.elem, t.opMgr);
+        }
+    }
+
+    /**
+     * Update the instances of tracked services from a
+     * <tt>ProvisionMonitorEvent</tt>
+     *
+     * @param event The event
+     */
+    synchronized void update(ProvisionMonitorEvent event) {
+        ProvisionMonitorEvent.Action action = event.getAction();
+        if(action==ProvisionMonitorEvent.Action.OPSTRING_UNDEPLOYED) {
+            OperationalString opString = event.getOperationalString();
+            String opStringName = opString==null?event.getOperationalStringName():opString.getName();
+            for(Tracked t : tracked.values()) {
+                if(opStringName!=null && opStringName.equals(t.opStringName)) {
+                    t.instances.clear();
+                    publish(t);
+                }
+            }
+            return;
+        }
+        ServiceElement elem = event.getServiceElement();
+        if(elem==null)
+            return;
+        Tracked t = tracked.get(getKey(elem.getName(), elem.getOperationalStringName()));
+        if(t==null)
+            return;
+        ServiceBeanInstance instance = event.getServiceBeanInstance();
+        switch(action) {
+            case SERVICE_PROVISIONED:
+                if(instance!=null) {
+                    Uuid id = instance.getServiceBeanID();
+                    t.instances.add(id);
+                    if(t.loading) {
+                        t.added.add(id);
+                        t.removed.remove(id);
+                    }
+                }
+                break;
+            case SERVICE_BEAN_DECREMENTED:
+            case SERVICE_FAILED:
+            case SERVICE_TERMINATED:
+                if(instance!=null) {
+                    Uuid id = instance.getServiceBeanID();
+                    if(t.loading) {
+                        t.removed.add(id);
+                        t.added.remove(id);
+                    }
+                    /* An instance that was never counted means an event has
+                     * been missed. A decremented instance is also reported
+                     * as terminated, so removing it again is expected */
+                    if(t.instances.remove(id))
+                        t.departed.add(id);
+                    else if(!t.loading && !t.departed.contains(id))
+                        reload(t);
+                }
+                break;
+            case SERVICE_ELEMENT_REMOVED:
+                t.instances.clear();
+                break;
+            default:
+                return;
+        }
+        publish(t);
+    }
+
+    /*
+     * Obtain the instances of a tracked service again, without holding up
+     * the caller
+     */
+    private void reload(final Tracked t) {
+        if(t.opMgr==null || t.reloading)
+            return;
+        t.reloading = true;
+        TaskScheduler.getInstance().schedule(new Runnable() {
+            public void run() {
+                load(t.elem, t.opMgr);
+            }
+        }, 0);
+    }
+
+    /**
+     * Get the number of instances of a tracked service
+     *
+     * @param serviceName The name of the service
+     * @param opStringName The name of the OperationalString
+     *
+     * @return The current <code>ServiceCount</code>, or null if the service is
+     * not being tracked
+     */
+    synchronized ServiceCount getServiceCount(String serviceName, String opStringName) {
+        Tracked t = tracked.get(getKey(serviceName, opStringName));
+        return t==null?null:t.fact;
+    }
+
+    /*
+     * Replace the fact in working memory if the number of instances changed
+     */
+    private void publish(Tracked t) {
+        int count = t.instances.size();
+        if(t.fact!=null && t.fact.getCount()==count)
+            return;
+        ServiceCount fact = new ServiceCount(t.serviceName, t.opStringName, count);
+        if(engine==null || engine.update(t.fact, fact)) {
+            if(logger.isLoggable(Level.FINE))
+                logger.fine("Updated "+fact);
+            t.fact = fact;
+        }
+    }
+
+    private String getKey(String serviceName, String opStringName) {
+        return opStringName+"/"+serviceName;
+    }
+
+    /**
+     * The instances of a tracked service, and the fact in working memory
+     */
+    private static class Tracked {
+        final String serviceName;
+        final String opStringName;
+        final Set<Uuid> instances = new HashSet<Uuid>();
+        /* Instances added and removed by events while loading */
+        final Set<Uuid> added = new HashSet<Uuid>();
+        final Set<Uuid> removed = new HashSet<Uuid>();
+        /* The instances most recently removed */
+        final Set<Uuid> departed = Collections.newSetFromMap(new LinkedHashMap<Uuid, Boolean>() {
+            protected boolean removeEldestEntry(Map.Entry<Uuid, Boolean> eldest) {
+                return size()>MAX_DEPARTED;
+            }
+        });
+        boolean loading;
+        boolean reloading;
+        ServiceElement elem;
+        OperationalStringManager opMgr;
+        ServiceCount fact;
+
+        Tracked(String serviceName, String opStringName) {
+            this.serviceName = serviceName;
+            this.opStringName = opStringName;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.gnostic;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.rioproject.watch.ReplicationResolution;
+import org.rioproject.watch.WatchDataReplicator;
+import org.rioproject.watch.WatchDataSource;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.rmi.UnmarshalException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests that the <code>AssociationsWatchDataReplicator</code> requests a
+ * resolution, and falls back to raw resolution for a
+ * <code>WatchDataSource</code> without resolution requests
+ */
+public class AssociationsWatchDataReplicatorTest {
+
+    @Test
+    public void testResolutionIsRequested() throws Exception {
+        List<String> calls = new ArrayList<String>();
+        createReplicator().addWatchDataReplicator(createWatchDataSource(calls, null), null);
+        Assert.assertEquals(Collections.singletonList("addWatchDataReplicator/2"), calls);
+    }
+
+    @Test
+    public void testOlderWatchDataSourceFallsBackToRaw() throws Exception {
+        AssociationsWatchDataReplicator replicator = createReplicator();
+        List<String> calls = new ArrayList<String>();
+        replicator.addWatchDataReplicator(createWatchDataSource(calls,
+                                                                new UnmarshalException("unrecognized method hash")),
+                                          null);
+        Assert.assertEquals(2, calls.size());
+        Assert.assertEquals("addWatchDataReplicator/1", calls.get(1));
+
+        calls.clear();
+        replicator.addWatchDataReplicator(createWatchDataSource(calls, new AbstractMethodError()), null);
+        Assert.assertEquals("addWatchDataReplicator/1", calls.get(1));
+    }
+
+    @Test(expected = RemoteException.class)
+    public void testOtherFailuresArePropagated() throws Exception {
+        List<String> calls = new ArrayList<String>();
+        createReplicator().addWatchDataReplicator(createWatchDataSource(calls, new RemoteException()), null);
+    }
+
+    private AssociationsWatchDataReplicator createReplicator() {
+        CEPSession session = (CEPSession)Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                                new Class[]{CEPSession.class},
+                                                                new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return null;
+            }
+        });
+        return new AssociationsWatchDataReplicator(Collections.singletonList(session),
+                                                   null,
+                                                   null,
+                                                   ReplicationResolution.summary(1000));
+    }
+
+    /*
+     * Create a WatchDataSource recording the calls made to it, where the
+     * method requesting a resolution fails with the provided Throwable
+     */
+    private WatchDataSource createWatchDataSource(final List<String> calls, final Throwable failure) {
+        return (WatchDataSource)Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                       new Class[]{WatchDataSource.class},
+                                                       new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if(method.getName().equals("addWatchDataReplicator")) {
+                    calls.add(method.getName()+"/"+args.length);
+                    if(args.length==2 && failure!=null)
+                        throw failure;
+                    return true;
+                }
+                if(method.getDeclaringClass()==Object.class)
+                    return method.invoke(this, args);
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.gnostic;
+
+import junit.framework.Assert;
+import net.jini.config.Configuration;
+import net.jini.config.ConfigurationFile;
+import org.drools.runtime.StatefulKnowledgeSession;
+import org.drools.runtime.rule.WorkingMemoryEntryPoint;
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests that the <code>CEPEngine</code> inserts facts in batches, firing
+ * rules once per batch, or fires rules until halted, and that a task can run
+ * while several engines are paused
+ */
+public class CEPEngineTest {
+    private CEPEngine engine;
+    private final SessionHandler handler = new SessionHandler();
+    private final StatefulKnowledgeSession session = createSession(handler);
+    private final List<CEPEngine> shards = new ArrayList<CEPEngine>();
+
+    @After
+    public void close() {
+        if(engine!=null)
+            engine.close();
+        for(CEPEngine shard : shards)
+            shard.close();
+    }
+
+    @Test
+    public void testFactsWithinWindowFireOnce() throws Exception {
+        engine = createEngine("batchWindow=500L");
+        engine.start();
+        for(int i=0; i<50; i++)
+            Assert.assertTrue(engine.insert(Constants.CALCULABLES_STREAM, i));
+        waitForInserts(50);
+        waitForFires(1);
+        Assert.assertEquals(1, engine.getFireCount());
+        Assert.assertEquals(50, handler.inserted.size());
+        Assert.assertEquals("Rules fire after the batch is inserted", 50, handler.insertedBeforeFire.get());
+    }
+
+    @Test
+    public void testBatchSizeLimitsBatch() throws Exception {
+        engine = createEngine("batchWindow=60000L", "batchSize=10");
+        for(int i=0; i<25; i++)
+            engine.insert(Constants.CALCULABLES_STREAM, i);
+        Assert.assertEquals(25, engine.getQueueDepth());
+        engine.start();
+        waitForFires(2);
+        Assert.assertEquals(20, handler.insertedBeforeFire.get());
+    }
+
+    @Test
+    public void testFactsAreInsertedIntoTheirEntryPoints() throws Exception {
+        engine = createEngine("batchWindow=0L");
+        engine.start();
+        engine.insert(Constants.CALCULABLES_STREAM, "calculable");
+        engine.insert(Constants.PROVISION_EVENTS_STREAM, "event");
+        engine.insert("unknown-stream", "lost");
+        waitForInserts(2);
+        Assert.assertEquals(Constants.CALCULABLES_STREAM+":calculable", handler.inserted.get(0));
+        Assert.assertEquals(Constants.PROVISION_EVENTS_STREAM+":event", handler.inserted.get(1));
+        Assert.assertTrue(engine.getMeanFireLatency()>=0);
+    }
+
+    @Test
+    public void testFireUntilHalt() throws Exception {
+        engine = createEngine("firingMode=\"fireUntilHalt\"");
+        Assert.assertEquals(CEPEngine.Mode.HALT, engine.getMode());
+        engine.start();
+        Assert.assertTrue(handler.firing.await(5, TimeUnit.SECONDS));
+        for(int i=0; i<10; i++)
+            engine.insert(Constants.CALCULABLES_STREAM, i);
+        waitForInserts(10);
+        Assert.assertEquals(0, engine.getFireCount());
+        engine.close();
+        Assert.assertTrue(handler.halted.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse(engine.insert(Constants.CALCULABLES_STREAM, "closed"));
+    }
+
+    @Test
+    public void testDiscardNewestWhenFull() throws Exception {
+        engine = createEngine("queueCapacity=5", "overflowPolicy=\"discardNewest\"");
+        Assert.assertEquals(CEPEngine.Overflow.DISCARD_NEWEST, engine.getOverflow());
+        for(int i=0; i<5; i++)
+            Assert.assertTrue(engine.insert(Constants.CALCULABLES_STREAM, i));
+        Assert.assertFalse(engine.insert(Constants.CALCULABLES_STREAM, 5));
+        Assert.assertEquals(1, engine.getDiscardCount());
+        engine.start();
+        waitForInserts(5);
+        Assert.assertEquals(Constants.CALCULABLES_STREAM+":0", handler.inserted.get(0));
+        Assert.assertEquals(Constants.CALCULABLES_STREAM+":4", handler.inserted.get(4));
+    }
+
+    @Test
+    public void testDiscardOldestWhenFull() throws Exception {
+        engine = createEngine("queueCapacity=5", "overflowPolicy=\"discardOldest\"");
+        /* Replacements are never discarded */
+        Assert.assertTrue(engine.update(null, "replacement"));
+        for(int i=0; i<10; i++)
+            Assert.assertTrue(engine.insert(Constants.CALCULABLES_STREAM, i));
+        Assert.assertEquals(6, engine.getDiscardCount());
+        Assert.assertEquals(5, engine.getQueueDepth());
+        engine.start();
+        waitForInserts(5);
+        Assert.assertEquals("main:replacement", handler.inserted.get(0));
+        Assert.assertEquals(Constants.CALCULABLES_STREAM+":6", handler.inserted.get(1));
+        Assert.assertEquals(Constants.CALCULABLES_STREAM+":9", handler.inserted.get(4));
+        Assert.assertTrue(engine.getMeanQueueLatency()>0);
+    }
+
+    @Test
+    public void testTaskRunsBetweenBatches() throws Exception {
+        engine = createEngine("batchWindow=60000L", "batchSize=10");
+        for(int i=0; i<3; i++)
+            engine.insert(Constants.CALCULABLES_STREAM, i);
+        final AtomicInteger insertedWhenRun = new AtomicInteger(-1);
+        final AtomicInteger firedWhenRun = new AtomicInteger(-1);
+        Future<?> task = engine.execute(new Runnable() {
+            public void run() {
+                insertedWhenRun.set(handler.inserted.size());
+                firedWhenRun.set(handler.insertedBeforeFire.get());
+            }
+        });
+        for(int i=3; i<6; i++)
+            engine.insert(Constants.CALCULABLES_STREAM, i);
+        engine.start();
+        task.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(3, insertedWhenRun.get());
+        Assert.assertEquals("Rules fire before the task runs", 3, firedWhenRun.get());
+        waitForInserts(6);
+    }
+
+    @Test
+    public void testTasksAreCancelledWhenClosed() throws Exception {
+        engine = createEngine();
+        Future<?> task = engine.execute(new Runnable() {
+            public void run() {
+            }
+        });
+        engine.close();
+        Assert.assertTrue(task.isCancelled());
+        Assert.assertNull(engine.execute(new Runnable() {
+            public void run() {
+            }
+        }));
+    }
+
+    @Test
+    public void testTaskRunsOnceWhileAllEnginesArePaused() throws Exception {
+        final SessionHandler[] handlers = new SessionHandler[3];
+        for(int i=0; i<handlers.length; i++) {
+            handlers[i] = new SessionHandler();
+            shards.add(createEngine(createSession(handlers[i]), "batchWindow=0L"));
+            shards.get(i).start();
+            for(int j=0; j<5; j++)
+                shards.get(i).insert(Constants.CALCULABLES_STREAM, j);
+        }
+        final AtomicInteger runs = new AtomicInteger();
+        final List<String> changed = new CopyOnWriteArrayList<String>();
+        boolean ran = CEPEngine.executePaused(shards, new Runnable() {
+            public void run() {
+                runs.incrementAndGet();
+                int[] inserted = new int[handlers.length];
+                int[] fired = new int[handlers.length];
+                for(int i=0; i<handlers.length; i++) {
+                    inserted[i] = handlers[i].inserted.size();
+                    fired[i] = handlers[i].fireCount.get();
+                    for(int j=5; j<10; j++)
+                        shards.get(i).insert(Constants.CALCULABLES_STREAM, j);
+                }
+                try {
+                    Thread.sleep(200);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                for(int i=0; i<handlers.length; i++) {
+                    if(handlers[i].inserted.size()!=inserted[i] || handlers[i].fireCount.get()!=fired[i])
+                        changed.add("shard-"+i);
+                }
+            }
+        });
+        Assert.assertTrue(ran);
+        Assert.assertEquals(1, runs.get());
+        Assert.assertEquals("Engines ran while paused", 0, changed.size());
+        /* The facts inserted while paused are inserted once the engines resume */
+        for(CEPEngine shard : shards)
+            waitForInserts(shard, 10);
+    }
+
+    @Test
+    public void testTaskDoesNotRunWhenAnEngineCloses() throws Exception {
+        final SessionHandler running = new SessionHandler();
+        shards.add(createEngine(createSession(running), "batchWindow=0L"));
+        shards.get(0).start();
+        /* Never started, so it never pauses */
+        final CEPEngine idle = createEngine(createSession(new SessionHandler()));
+        shards.add(idle);
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch(InterruptedException e) {
+                    return;
+                }
+                idle.close();
+            }
+        }.start();
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable task = new Runnable() {
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        Assert.assertFalse(CEPEngine.executePaused(shards, task));
+        Assert.assertFalse(CEPEngine.executePaused(Arrays.asList(shards.get(0), idle), task));
+        Assert.assertEquals(0, runs.get());
+        /* The engine that paused resumes */
+        shards.get(0).insert(Constants.CALCULABLES_STREAM, "resumed");
+        waitForInserts(shards.get(0), 1);
+    }
+
+    private StatefulKnowledgeSession createSession(SessionHandler handler) {
+        return (StatefulKnowledgeSession)Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                                new Class[]{StatefulKnowledgeSession.class},
+                                                                handler);
+    }
+
+    private CEPEngine createEngine(String... entries) throws Exception {
+        return createEngine(session, entries);
+    }
+
+    private CEPEngine createEngine(StatefulKnowledgeSession session, String... entries) throws Exception {
+        String[] args = new String[entries.length+1];
+        args[0] = "-";
+        for(int i=0; i<entries.length; i++)
+            args[i+1] = CEPEngine.COMPONENT+"."+entries[i];
+        Configuration config = new ConfigurationFile(args);
+        return new CEPEngine(session, "test", config, null);
+    }
+
+    private void waitForInserts(int count) throws InterruptedException {
+        waitForInserts(engine, count);
+    }
+
+    private void waitForInserts(CEPEngine engine, int count) throws InterruptedException {
+        long t0 = System.currentTimeMillis();
+        while(engine.getInsertCount()<count && System.currentTimeMillis()-t0<5000)
+            Thread.sleep(10);
+        Assert.assertEquals(count, engine.getInsertCount());
+    }
+
+    private void waitForFires(int count) throws InterruptedException {
+        long t0 = System.currentTimeMillis();
+        while(engine.getFireCount()<count && System.currentTimeMillis()-t0<5000)
+            Thread.sleep(10);
+        Assert.assertTrue(engine.getFireCount()>=count);
+    }
+
+    /**
+     * Records the facts inserted into each entry point, and the number of
+     * facts inserted when rules are last fired
+     */
+    class SessionHandler implements InvocationHandler {
+        final List<String> inserted = new CopyOnWriteArrayList<String>();
+        final AtomicInteger insertedBeforeFire = new AtomicInteger();
+        final AtomicInteger fireCount = new AtomicInteger();
+        final CountDownLatch firing = new CountDownLatch(1);
+        final CountDownLatch halted = new CountDownLatch(1);
+        private final Object haltLock = new Object();
+        private boolean halt;
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if(name.equals("getWorkingMemoryEntryPoint")) {
+                String entryPoint = (String)args[0];
+                if(entryPoint.equals("unknown-stream"))
+                    return null;
+                return Proxy.newProxyInstance(getClass().getClassLoader(),
+                                              new Class[]{WorkingMemoryEntryPoint.class},
+                                              new EntryPointHandler(entryPoint));
+            }
+            if(name.equals("insert")) {
+                inserted.add("main:"+args[0]);
+                return null;
+            }
+            if(name.equals("fireAllRules")) {
+                insertedBeforeFire.set(inserted.size());
+                fireCount.incrementAndGet();
+                return 0;
+            }
+            if(name.equals("fireUntilHalt")) {
+                firing.countDown();
+                synchronized(haltLock) {
+                    while(!halt)
+                        haltLock.wait();
+                }
+                halted.countDown();
+                return null;
+            }
+            if(name.equals("halt")) {
+                synchronized(haltLock) {
+                    halt = true;
+                    haltLock.notifyAll();
+                }
+                return null;
+            }
+            if(name.equals("hashCode"))
+                return System.identityHashCode(proxy);
+            if(name.equals("equals"))
+                return proxy==args[0];
+            return null;
+        }
+
+        class EntryPointHandler implements InvocationHandler {
+            final String entryPoint;
+
+            EntryPointHandler(String entryPoint) {
+                this.entryPoint = entryPoint;
+            }
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if(method.getName().equals("insert"))
+                    inserted.add(entryPoint+":"+args[0]);
+                return null;
+            }
+        }
+    }
+}
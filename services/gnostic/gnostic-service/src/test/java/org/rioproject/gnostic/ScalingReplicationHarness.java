@@ -0,0 +1,373 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.gnostic;
+
+import net.jini.config.Configuration;
+import net.jini.config.EmptyConfiguration;
+import net.jini.io.MarshalledInstance;
+import org.drools.agent.KnowledgeAgent;
+import org.drools.io.ResourceFactory;
+import org.rioproject.associations.Association;
+import org.rioproject.config.DynamicConfiguration;
+import org.rioproject.core.OperationalStringManager;
+import org.rioproject.core.ServiceBeanConfig;
+import org.rioproject.core.ServiceElement;
+import org.rioproject.monitor.ProvisionMonitor;
+import org.rioproject.sla.RuleMap;
+import org.rioproject.sla.SLA;
+import org.rioproject.watch.Calculable;
+import org.rioproject.watch.SlidingWindow;
+import org.rioproject.watch.WatchDataSourceImpl;
+import org.rioproject.watch.WindowAggregate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A benchmark harness comparing the two ways Gnostic evaluates the built-in
+ * scaling rule. Simulated service instances record a watch at a fixed rate,
+ * and the watch is replicated through an
+ * {@link AssociationsWatchDataReplicator}, either streaming each calculable
+ * over the exported <tt>RemoteWatchDataReplicator</tt> into a
+ * {@link DroolsCEPManager}, or sending window aggregates to a
+ * {@link NativeScalingEvaluator}. Reports the calls the decision point
+ * receives, the approximate bytes they carry, and the process CPU time.
+ *
+ * <pre>
+ * java org.rioproject.gnostic.ScalingReplicationHarness [-mode streaming|aggregating|both]
+ *     [-instances 10] [-rate 100] [-duration 30] [-interval 5000]
+ * </pre>
+ *
+ * The rate is the number of calculables each instance records per second,
+ * the duration is in seconds, and the interval is the aggregateInterval in
+ * milliseconds. Running the streaming mode requires the Drools compiler
+ * dependencies on the classpath.
+ */
+public class ScalingReplicationHarness {
+    static final String SERVICE = "Harness";
+    static final String OPSTRING = "Harness";
+    static final String WATCH = "load";
+
+    public static void main(String[] args) throws Exception {
+        String mode = "both";
+        int instances = 10;
+        int rate = 100;
+        int duration = 30;
+        long interval = NativeScalingEvaluator.DEFAULT_INTERVAL;
+        for(int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if(option.equals("-mode")) {
+                mode = args[++i];
+            } else if(option.equals("-instances")) {
+                instances = Integer.parseInt(args[++i]);
+            } else if(option.equals("-rate")) {
+                rate = Integer.parseInt(args[++i]);
+            } else if(option.equals("-duration")) {
+                duration = Integer.parseInt(args[++i]);
+            } else if(option.equals("-interval")) {
+                interval = Long.parseLong(args[++i]);
+            } else {
+                throw new IllegalArgumentException(option);
+            }
+        }
+        DynamicConfiguration config = new DynamicConfiguration();
+        config.setEntry(CEPEngine.COMPONENT, "aggregateInterval", long.class, interval);
+        System.out.println("instances="+instances+", rate="+rate+", duration="+duration+" s, " +
+                           "aggregateInterval="+interval+" ms");
+        try {
+            if(mode.equals("streaming") || mode.equals("both"))
+                System.out.println(run(false, instances, rate, duration*1000L, config));
+            if(mode.equals("aggregating") || mode.equals("both"))
+                System.out.println(run(true, instances, rate, duration*1000L, config));
+        } finally {
+            /* Started by the KnowledgeAgent */
+            ResourceFactory.getResourceChangeScannerService().stop();
+            ResourceFactory.getResourceChangeNotifierService().stop();
+        }
+    }
+
+    /**
+     * Replicate the watch of each instance to a decision point
+     *
+     * @param aggregate Whether to send window aggregates to a
+     * NativeScalingEvaluator, or stream calculables into a DroolsCEPManager
+     * @param instances The number of service instances
+     * @param rate The number of calculables each instance records per second
+     * @param duration How long the instances record calculables, in
+     * milliseconds
+     * @param config Configuration for the CEPSession
+     *
+     * @return The result of the run
+     *
+     * @throws Exception if the CEPSession cannot be created
+     */
+    static Result run(boolean aggregate,
+                      int instances,
+                      final int rate,
+                      final long duration,
+                      Configuration config) throws Exception {
+        DeployedServiceContext context = new DeployedServiceContext();
+        KnowledgeAgent kAgent = null;
+        CountingSession session;
+        if(aggregate) {
+            session = new CountingEvaluator(context, config);
+        } else {
+            kAgent = DroolsFactory.createKnowledgeAgent(60);
+            session = new CountingCEPManager(new DroolsCEPManager(context, kAgent, config, null));
+        }
+        RuleMap ruleMap = new RuleMap();
+        RuleMap.ServiceDefinition service = new RuleMap.ServiceDefinition(SERVICE, OPSTRING);
+        service.addWatches(WATCH);
+        ruleMap.addRuleMapping(new RuleMap.RuleDefinition(Constants.SCALING_RULE),
+                               Collections.singletonList(service));
+        AssociationsWatchDataReplicator replicator =
+            new AssociationsWatchDataReplicator(Collections.<CEPSession>singletonList(session),
+                                                context,
+                                                stub(ProvisionMonitor.class));
+        final List<WatchDataSourceImpl> watches = new ArrayList<WatchDataSourceImpl>();
+        try {
+            List<ServiceHandle> handles = replicator.init(ruleMap, new ArrayList<Association<Object>>());
+            for(int i=1; i<=instances; i++) {
+                WatchDataSourceImpl wds = new WatchDataSourceImpl(WATCH, EmptyConfiguration.INSTANCE);
+                SLA sla = new SLA(WATCH, 0, 100);
+                wds.setThresholdValues(sla);
+                watches.add(wds);
+                handles.add(createServiceHandle(i, wds, sla));
+            }
+            session.initialize(handles, ruleMap, ScalingReplicationHarness.class.getClassLoader());
+            for(ServiceHandle handle : handles)
+                replicator.registerWatches(handle);
+
+            final AtomicLong recorded = new AtomicLong();
+            final CountDownLatch done = new CountDownLatch(watches.size());
+            long cpu = getProcessCpuTime();
+            long begin = System.currentTimeMillis();
+            for(final WatchDataSourceImpl wds : watches) {
+                new Thread("ScalingReplicationHarness-"+watches.indexOf(wds)) {
+                    public void run() {
+                        Random random = new Random();
+                        long start = System.currentTimeMillis();
+                        long count = 0;
+                        try {
+                            for(long now=start; now-start<duration; now=System.currentTimeMillis()) {
+                                long due = (now-start)*rate/1000;
+                                for(; count<due; count++)
+                                    wds.addCalculable(new Calculable(WATCH, random.nextDouble()*100, now));
+                                Thread.sleep(10);
+                            }
+                        } catch(InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            recorded.addAndGet(count);
+                            done.countDown();
+                        }
+                    }
+                }.start();
+            }
+            done.await();
+            long sent = System.currentTimeMillis();
+            /* Wait for the streamed calculables to be inserted, or for the last
+             * aggregates to be sent */
+            if(aggregate) {
+                Thread.sleep((Long)config.getEntry(CEPEngine.COMPONENT, "aggregateInterval", long.class, 0L)+1000);
+            } else {
+                long deadline = sent+60*1000;
+                while(session.getReceived()<recorded.get() && System.currentTimeMillis()<deadline)
+                    Thread.sleep(10);
+            }
+            return new Result(aggregate?"aggregating":"streaming",
+                              recorded.get(),
+                              session.getReceived(),
+                              session.getReceived()*getMarshalledSize(aggregate),
+                              System.currentTimeMillis()-begin,
+                              System.currentTimeMillis()-sent,
+                              cpu==-1?-1:getProcessCpuTime()-cpu);
+        } finally {
+            replicator.close();
+            session.close();
+            for(WatchDataSourceImpl wds : watches)
+                wds.close();
+            if(kAgent!=null)
+                kAgent.dispose();
+        }
+    }
+
+    static ServiceHandle createServiceHandle(long instanceID, WatchDataSourceImpl wds, SLA sla) {
+        Map<String, Object> parms = new HashMap<String, Object>();
+        parms.put(ServiceBeanConfig.NAME, SERVICE);
+        parms.put(ServiceBeanConfig.OPSTRING, OPSTRING);
+        parms.put(ServiceBeanConfig.INSTANCE_ID, instanceID);
+        ServiceBeanConfig sbConfig = new ServiceBeanConfig(parms, new String[0]);
+        ServiceElement elem = new ServiceElement();
+        elem.setServiceBeanConfig(sbConfig);
+        elem.setPlanned(1);
+        ServiceHandle handle = new ServiceHandle();
+        handle.setElem(elem);
+        handle.setOpMgr(stub(OperationalStringManager.class));
+        handle.addToWatchMap(WATCH, wds);
+        handle.addToSLAMap(WATCH, sla);
+        return handle;
+    }
+
+    /*
+     * The size of the marshalled argument of each call the decision point
+     * receives
+     */
+    static int getMarshalledSize(boolean aggregate) throws IOException {
+        long now = System.currentTimeMillis();
+        Object o;
+        if(aggregate) {
+            SlidingWindow window = new SlidingWindow(60*1000, 12, 512);
+            window.add(50, now);
+            o = window.aggregate(WATCH, 95, now);
+        } else {
+            o = new Calculable(WATCH, 50, now);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(new MarshalledInstance(o));
+        out.close();
+        return bytes.size();
+    }
+
+    static long getProcessCpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if(os instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+        return -1;
+    }
+
+    /*
+     * Stub a remote interface the replicators and sessions hold, but the
+     * harness does not exercise. Scaling requests are ignored, and there are
+     * no provisioned instances
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T stub(Class<T> type) {
+        return (T)Proxy.newProxyInstance(ScalingReplicationHarness.class.getClassLoader(),
+                                         new Class[]{type},
+                                         new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if(method.getName().equals("equals"))
+                    return proxy==args[0];
+                if(method.getName().equals("hashCode"))
+                    return System.identityHashCode(proxy);
+                if(method.getReturnType()==int.class)
+                    return 0;
+                if(method.getReturnType()==boolean.class)
+                    return false;
+                if(method.getReturnType().isArray())
+                    return Array.newInstance(method.getReturnType().getComponentType(), 0);
+                return null;
+            }
+        });
+    }
+
+    interface CountingSession extends CEPSession {
+        long getReceived();
+    }
+
+    /**
+     * Counts the calculables replicated into a DroolsCEPManager
+     */
+    static class CountingCEPManager implements CountingSession {
+        private final DroolsCEPManager cepManager;
+        private final AtomicLong received = new AtomicLong();
+
+        CountingCEPManager(DroolsCEPManager cepManager) {
+            this.cepManager = cepManager;
+        }
+
+        public void initialize(List<ServiceHandle> serviceHandles, RuleMap ruleMap, ClassLoader loader) {
+            cepManager.initialize(serviceHandles, ruleMap, loader);
+        }
+
+        public boolean reload(List<ServiceHandle> serviceHandles, RuleMap ruleMap, ClassLoader loader) {
+            return cepManager.reload(serviceHandles, ruleMap, loader);
+        }
+
+        public void insert(Calculable calculable) {
+            cepManager.insert(calculable);
+            received.incrementAndGet();
+        }
+
+        public void close() {
+            cepManager.close();
+        }
+
+        public long getReceived() {
+            return received.get();
+        }
+    }
+
+    /**
+     * Counts the aggregates sent to a NativeScalingEvaluator
+     */
+    static class CountingEvaluator extends NativeScalingEvaluator implements CountingSession {
+        private final AtomicLong received = new AtomicLong();
+
+        CountingEvaluator(DeployedServiceContext context, Configuration config) {
+            super(context, config);
+        }
+
+        @Override
+        public void aggregated(WindowAggregate aggregate) {
+            received.incrementAndGet();
+            super.aggregated(aggregate);
+        }
+
+        public long getReceived() {
+            return received.get();
+        }
+    }
+
+    static class Result {
+        final String mode;
+        final long recorded;
+        final long received;
+        final long bytes;
+        final long elapsed;
+        final long drain;
+        final long cpu;
+
+        Result(String mode, long recorded, long received, long bytes, long elapsed, long drain, long cpu) {
+            this.mode = mode;
+            this.recorded = recorded;
+            this.received = received;
+            this.bytes = bytes;
+            this.elapsed = elapsed;
+            this.drain = drain;
+            this.cpu = cpu;
+        }
+
+        @Override
+        public String toString() {
+            return mode+": recorded="+recorded+", received="+received+", bytes~"+bytes+", " +
+                   "elapsed="+elapsed+" ms, drain="+drain+" ms, " +
+                   "cpu="+(cpu==-1?"n/a":(cpu/1000000)+" ms");
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.gnostic;
+
+import junit.framework.Assert;
+import net.jini.config.ConfigurationFile;
+import net.jini.id.UuidFactory;
+import net.jini.io.MarshalledInstance;
+import org.drools.runtime.StatefulKnowledgeSession;
+import org.drools.runtime.rule.FactHandle;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rioproject.core.OperationalStringManager;
+import org.rioproject.core.ServiceBeanConfig;
+import org.rioproject.core.ServiceBeanInstance;
+import org.rioproject.core.ServiceElement;
+import org.rioproject.monitor.ProvisionMonitorEvent;
+import org.rioproject.opstring.OpString;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+/**
+ * Tests that the <code>ServiceCountTracker</code> maintains
+ * <code>ServiceCount</code> facts in working memory from
+ * <code>ProvisionMonitorEvent</code>s, without calling the
+ * <code>OperationalStringManager</code>
+ */
+public class ServiceCountTrackerTest {
+    private final WorkingMemory workingMemory = new WorkingMemory();
+    private CEPEngine engine;
+    private ServiceCountTracker tracker;
+    private ServiceElement elem;
+    private volatile int remoteCalls;
+
+    @Before
+    public void setup() throws Exception {
+        StatefulKnowledgeSession session =
+            (StatefulKnowledgeSession)Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                             new Class[]{StatefulKnowledgeSession.class},
+                                                             workingMemory);
+        engine = new CEPEngine(session,
+                               "test",
+                               new ConfigurationFile(new String[]{"-", CEPEngine.COMPONENT+".batchWindow=0L"}),
+                               null);
+        engine.start();
+        tracker = new ServiceCountTracker(engine);
+        elem = createServiceElement("Echo", "Hello");
+    }
+
+    @After
+    public void close() {
+        engine.close();
+    }
+
+    @Test
+    public void testCountIsLoadedOnce() throws Exception {
+        Assert.assertTrue(tracker.track(elem));
+        Assert.assertFalse(tracker.track(createServiceElement("Echo", "Hello")));
+        tracker.load(elem, createOpMgr(createInstance(), createInstance()));
+        Assert.assertEquals(1, remoteCalls);
+        assertServiceCount(2);
+        Assert.assertEquals("The fact is replaced, not added", 1, workingMemory.getFacts().size());
+    }
+
+    @Test
+    public void testCountIsUpdatedFromEvents() throws Exception {
+        tracker.track(elem);
+        tracker.load(elem, createOpMgr());
+        assertServiceCount(0);
+
+        ServiceBeanInstance first = createInstance();
+        ServiceBeanInstance second = createInstance();
+        tracker.update(event(ProvisionMonitorEvent.Action.SERVICE_PROVISIONED, first));
+        tracker.update(event(ProvisionMonitorEvent.Action.SERVICE_PROVISIONED, second));
+        /* A repeated event does not change the count */
+        tracker.update(event(ProvisionMonitorEvent.Action.SERVICE_PROVISIONED, second));
+        assertServiceCount(2);
+
+        tracker.update(event(ProvisionMonitorEvent.Action.SERVICE_FAILED, first));
+        assertServiceCount(1);
+        tracker.update(event(ProvisionMonitorEvent.Action.SERVICE_BEAN_DECREMENTED, second));
+        assertServiceCount(0);
+
+        tracker.update(event(ProvisionMonitorEvent.Action.SERVICE_PROVISIONED, first));
+        tracker.update(new ProvisionMonitorEvent(this,
+                                                 ProvisionMonitorEvent.Action.OPSTRING_UNDEPLOYED,
+                                                 new OpString("Hello", null)));
+        assertServiceCount(0);
+        Assert.assertEquals(1, remoteCalls);
+        Assert.assertEquals(1, workingMemory.getFacts().size());
+    }
+
+    @Test
+    public void testTerminatedInstanceIsNotCounted() throws Exception {
+        tracker.track(elem);
+        ServiceBeanInstance first = createInstance();
+        ServiceBeanInstance second = createInstance();
+        tracker.load(elem, createOpMgr(first, second));
+        assertServiceCount(2);
+
+        tracker.update(event(ProvisionMonitorEvent.Action.SERVICE_TERMINATED, first));
+        assertServiceCount(1);
+        /* A decremented instance is reported as terminated as well */
+        tracker.update(event(ProvisionMonitorEvent.Action.SERVICE_BEAN_DECREMENTED, second));
+        tracker.update(event(ProvisionMonitorEvent.Action.SERVICE_TERMINATED, second));
+        assertServiceCount(0);
+        Thread.sleep(100);
+        Assert.assertEquals("Expected no reload", 1, remoteCalls);
+    }
+
+    @Test
+    public void testMissedEventReloadsInstances() throws Exception {
+        tracker.track(elem);
+        ServiceBeanInstance first = createInstance();
+        ServiceBeanInstance second = createInstance();
+        ServiceBeanInstance third = createInstance();
+        List<ServiceBeanInstance> actual = new ArrayList<ServiceBeanInstance>();
+        actual.add(first);
+        OperationalStringManager opMgr = createOpMgr(actual, null);
+        tracker.load(elem, opMgr);
+        assertServiceCount(1);
+
+        /* The provisioning of the second and third instance is missed */
+        synchronized(actual) {
+            actual.add(second);
+        }
+        tracker.update(event(ProvisionMonitorEvent.Action.SERVICE_FAILED, third));
+        long t0 = System.currentTimeMillis();
+        while(tracker.getServiceCount("Echo", "Hello").getCount()!=2 && System.currentTimeMillis()-t0<5000)
+            Thread.sleep(10);
+        Assert.assertEquals(2, remoteCalls);
+        assertServiceCount(2);
+
+        /* A resync finds the instances changed without events */
+        synchronized(actual) {
+            actual.clear();
+        }
+        tracker.resync();
+        assertServiceCount(0);
+    }
+
+    @Test
+    public void testEventsDuringLoadAreKept() throws Exception {
+        tracker.track(elem);
+        final ServiceBeanInstance failed = createInstance();
+        final ServiceBeanInstance provisioned = createInstance();
+        List<ServiceBeanInstance> actual = new ArrayList<ServiceBeanInstance>();
+        actual.add(failed);
+        /* The instances are obtained before the events are processed */
+        tracker.load(elem, createOpMgr(actual, new Runnable() {
+            public void run() {
+                tracker.update(event(ProvisionMonitorEvent.Action.SERVICE_FAILED, failed));
+                tracker.update(event(ProvisionMonitorEvent.Action.SERVICE_PROVISIONED, provisioned));
+            }
+        }));
+        assertServiceCount(1);
+        Assert.assertEquals(1, remoteCalls);
+    }
+
+    @Test
+    public void testUntrackedServicesAreIgnored() throws Exception {
+        tracker.track(elem);
+        ServiceElement other = createServiceElement("Other", "Hello");
+        tracker.update(new ProvisionMonitorEvent(this,
+                                                 ProvisionMonitorEvent.Action.SERVICE_PROVISIONED,
+                                                 "Hello",
+                                                 other,
+                                                 createInstance()));
+        Assert.assertNull(tracker.getServiceCount("Other", "Hello"));
+        assertServiceCount(0);
+    }
+
+    private void assertServiceCount(int count) throws InterruptedException {
+        ServiceCount serviceCount = tracker.getServiceCount("Echo", "Hello");
+        Assert.assertNotNull(serviceCount);
+        Assert.assertEquals(count, serviceCount.getCount());
+        long t0 = System.currentTimeMillis();
+        while(!workingMemory.getFacts().contains(serviceCount) && System.currentTimeMillis()-t0<5000)
+            Thread.sleep(10);
+        Assert.assertTrue("Working memory has "+workingMemory.getFacts(),
+                          workingMemory.getFacts().contains(serviceCount));
+    }
+
+    private ProvisionMonitorEvent event(ProvisionMonitorEvent.Action action, ServiceBeanInstance instance) {
+        return new ProvisionMonitorEvent(this, action, elem.getOperationalStringName(), elem, instance);
+    }
+
+    private ServiceElement createServiceElement(String name, String opStringName) {
+        ServiceBeanConfig sbConfig = new ServiceBeanConfig();
+        sbConfig.setName(name);
+        sbConfig.setOperationalStringName(opStringName);
+        ServiceElement serviceElement = new ServiceElement();
+        serviceElement.setServiceBeanConfig(sbConfig);
+        return serviceElement;
+    }
+
+    private ServiceBeanInstance createInstance() throws Exception {
+        return new ServiceBeanInstance(UuidFactory.generate(), new MarshalledInstance("service"),
+                                       elem.getServiceBeanConfig(), null, null);
+    }
+
+    private OperationalStringManager createOpMgr(ServiceBeanInstance... instances) {
+        return createOpMgr(Arrays.asList(instances), null);
+    }
+
+    /*
+     * Create an OperationalStringManager returning the instances in the list,
+     * running the task after the instances are obtained
+     */
+    private OperationalStringManager createOpMgr(final List<ServiceBeanInstance> instances,
+                                                 final Runnable task) {
+        return (OperationalStringManager)Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                                new Class[]{OperationalStringManager.class},
+                                                                new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if(method.getName().equals("getServiceBeanInstances")) {
+                    ServiceBeanInstance[] current;
+                    synchronized(instances) {
+                        current = instances.toArray(new ServiceBeanInstance[instances.size()]);
+                    }
+                    if(task!=null)
+                        task.run();
+                    remoteCalls++;
+                    return current;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * Keeps the facts inserted into a session, by their FactHandle
+     */
+    static class WorkingMemory implements InvocationHandler {
+        final Map<FactHandle, Object> facts = new IdentityHashMap<FactHandle, Object>();
+
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if(name.equals("insert")) {
+                FactHandle handle = (FactHandle)Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                                       new Class[]{FactHandle.class},
+                                                                       new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if(method.getName().equals("hashCode"))
+                            return System.identityHashCode(proxy);
+                        if(method.getName().equals("equals"))
+                            return proxy==args[0];
+                        return null;
+                    }
+                });
+                facts.put(handle, args[0]);
+                return handle;
+            }
+            if(name.equals("getFactHandle")) {
+                for(Map.Entry<FactHandle, Object> entry : facts.entrySet()) {
+                    if(entry.getValue()==args[0])
+                        return entry.getKey();
+                }
+                return null;
+            }
+            if(name.equals("update")) {
+                facts.put((FactHandle)args[0], args[1]);
+                return null;
+            }
+            if(name.equals("fireAllRules"))
+                return 0;
+            if(name.equals("hashCode"))
+                return System.identityHashCode(proxy);
+            if(name.equals("equals"))
+                return proxy==args[0];
+            return null;
+        }
+
+        List<Object> getFacts() {
+            synchronized(this) {
+                return new ArrayList<Object>(facts.values());
+            }
+        }
+    }
+}
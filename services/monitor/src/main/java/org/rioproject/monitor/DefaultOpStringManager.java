@@ -436,8 +436,16 @@ public class DefaultOpStringManager implements OperationalStringManager, OpStrin
                                      boolean start,
                                      ServiceProvisionListener listener)
         throws Exception {
-        ServiceElementManager svcElemMgr =
-            new ServiceElementManager(sElem, proxy, provisioner, uuid, isActive(), config);
+        /* Interface classes of recovered services are loaded when the
+         * ServiceElementManager is started */
+        boolean deferInterfaceLoading = stateManager!=null && stateManager.isRecovering(getName());
+        ServiceElementManager svcElemMgr = new ServiceElementManager(sElem,
+                                                                     proxy,
+                                                                     provisioner,
+                                                                     uuid,
+                                                                     isActive(),
+                                                                     config,
+                                                                     deferInterfaceLoading);
         /* Set event attributes */
         svcElemMgr.setEventProcessor(eventProcessor);
         svcElemMgr.setEventSource(serviceProxy);
@@ -571,6 +579,21 @@ public class DefaultOpStringManager implements OperationalStringManager, OpStrin
             stateManager.stateChanged(this, remove);
     }
 
+    private void serviceElementChanged(ServiceElement sElem) {
+        if(stateManager!=null)
+            stateManager.serviceElementChanged(this, sElem);
+    }
+
+    private void serviceElementRemoved(ServiceElement sElem) {
+        if(stateManager!=null)
+            stateManager.serviceElementRemoved(this, sElem);
+    }
+
+    private void plannedChanged(ServiceElement sElem) {
+        if(stateManager!=null)
+            stateManager.plannedChanged(this, sElem);
+    }
+
     /**
      * Verify all services are being monitored by iterating through the
      * Collection of ServiceElementManager instances and invoking each
@@ -739,7 +762,6 @@ public class DefaultOpStringManager implements OperationalStringManager, OpStrin
             throw new OperationalStringException("not the primary OperationalStringManager");
         try {
             doAddServiceElement(sElem, listener);
-            stateChanged(false);
             ProvisionMonitorEvent event =
                 new ProvisionMonitorEvent(serviceProxy,
                                           ProvisionMonitorEvent.Action.SERVICE_ELEMENT_ADDED,
@@ -771,7 +793,7 @@ public class DefaultOpStringManager implements OperationalStringManager, OpStrin
         } else {
             throw new OperationalStringException("Interfaces are null");
         }
-        stateChanged(false);
+        serviceElementChanged(sElem);
     }
 
     /*
@@ -814,7 +836,7 @@ public class DefaultOpStringManager implements OperationalStringManager, OpStrin
             logger.warning("UNABLE to remove ServiceElementManager for " +
                            "[" + sElem.getOperationalStringName() +
                            "/" + sElem.getName() + "]");
-        stateChanged(false);
+        serviceElementRemoved(sElem);
     }
 
     /*
@@ -848,7 +870,7 @@ public class DefaultOpStringManager implements OperationalStringManager, OpStrin
         } else {
             svcElemMgr.setServiceElement(sElem);
             svcElemMgr.verify(null);
-            stateChanged(false);
+            serviceElementChanged(svcElemMgr.getServiceElement());
             updateServiceElements(new ServiceElement[]{sElem});
         }
     }
@@ -937,7 +959,7 @@ public class DefaultOpStringManager implements OperationalStringManager, OpStrin
             ServiceElement changed = svcElemMgr.increment(permanent, listener);
             if (changed == null)
                 return;
-            stateChanged(false);
+            plannedChanged(changed);
             updateServiceElements(new ServiceElement[]{changed});
             ProvisionMonitorEvent event = new ProvisionMonitorEvent(serviceProxy,
                                                                     ProvisionMonitorEvent.Action.SERVICE_BEAN_INCREMENTED,
@@ -954,6 +976,105 @@ public class DefaultOpStringManager implements OperationalStringManager, OpStrin
         }
     }
 
+    /*
+    * @see org.rioproject.core.OperationalStringManager#scale
+    */
+    public synchronized int scale(ServiceElement sElem, int delta, boolean permanent, ServiceProvisionListener listener)
+        throws OperationalStringException, RemoteException {
+        if (sElem == null)
+            throw new IllegalArgumentException("ServiceElement is null");
+        if (!isActive())
+            throw new OperationalStringException("not the primary OperationalStringManager");
+        if (sElem.getProvisionType() != ServiceElement.ProvisionType.DYNAMIC)
+            return (Integer.MIN_VALUE);
+        if (listener != null)
+            listener = (ServiceProvisionListener) serviceProvisionListenerPreparer.prepareProxy(listener);
+        try {
+            ServiceElementManager svcElemMgr = getServiceElementManager(sElem);
+            if (svcElemMgr == null)
+                throw new OperationalStringException("Unmanaged ServiceElement [" + sElem.getName() + "]", false);
+            if (delta < 0)
+                return (-scaleDown(svcElemMgr, -delta, permanent));
+            ScaleProvisionTracker tracker = null;
+            if (listener != null)
+                tracker = new ScaleProvisionTracker(svcElemMgr.getServiceElement(), listener);
+            /* The tracker is set to expect the requests dispatched for the added instances */
+            int added = 0;
+            if (delta > 0)
+                added = svcElemMgr.increment(delta, permanent, tracker);
+            else if (tracker != null)
+                tracker.setExpected(0);
+            if (added > 0) {
+                ServiceElement changed = svcElemMgr.getServiceElement();
+                plannedChanged(changed);
+                updateServiceElements(new ServiceElement[]{changed});
+                ProvisionMonitorEvent event = new ProvisionMonitorEvent(serviceProxy,
+                                                                        ProvisionMonitorEvent.Action.SERVICE_BEAN_INCREMENTED,
+                                                                        changed);
+                eventProcessor.processEvent(event);
+            }
+            if (logger.isLoggable(Level.FINE))
+                logger.fine("Scaled [" + sElem.getName() + "] by [" + delta + "], added [" + added + "]");
+            return (added);
+        } catch (Throwable t) {
+            logger.warning("Scaling ServiceElement " +
+                           "[" + sElem.getName() + "] [" +
+                           t.getClass().getName() + ":" + t.getMessage() + "]");
+            throw new OperationalStringException("Scaling " +
+                                                 "ServiceElement " +
+                                                 "[" + sElem.getName() + "]",
+                                                 t);
+        }
+    }
+
+    /*
+    * @see org.rioproject.core.OperationalStringManager#setPlanned
+    */
+    public synchronized int setPlanned(ServiceElement sElem, int planned, ServiceProvisionListener listener)
+        throws OperationalStringException, RemoteException {
+        if (sElem == null)
+            throw new IllegalArgumentException("ServiceElement is null");
+        if (planned < 0)
+            throw new IllegalArgumentException("planned cannot be less then 0");
+        ServiceElementManager svcElemMgr = getServiceElementManager(sElem);
+        if (svcElemMgr == null)
+            throw new OperationalStringException("Unmanaged ServiceElement [" + sElem.getName() + "]", false);
+        return (scale(sElem, planned - svcElemMgr.getServiceElement().getPlanned(), true, listener));
+    }
+
+    /*
+     * Remove pending requests and instances, and send an event for each
+     * instance removed
+     */
+    private int scaleDown(ServiceElementManager svcElemMgr, int count, boolean mandate) {
+        int planned = svcElemMgr.getServiceElement().getPlanned();
+        List<ServiceBeanInstance> removed = svcElemMgr.decrement(count, mandate, true);
+        ServiceElement changed = svcElemMgr.getServiceElement();
+        int numRemoved = planned - changed.getPlanned();
+        if (numRemoved > 0) {
+            plannedChanged(changed);
+            updateServiceElements(new ServiceElement[]{changed});
+        }
+        /* Pending requests were trimmed */
+        if (numRemoved > removed.size()) {
+            ProvisionMonitorEvent event = new ProvisionMonitorEvent(serviceProxy,
+                                                                    ProvisionMonitorEvent.Action.SERVICE_BEAN_DECREMENTED,
+                                                                    changed);
+            eventProcessor.processEvent(event);
+        }
+        for (ServiceBeanInstance instance : removed) {
+            ProvisionMonitorEvent event = new ProvisionMonitorEvent(serviceProxy,
+                                                                    ProvisionMonitorEvent.Action.SERVICE_BEAN_DECREMENTED,
+                                                                    changed.getOperationalStringName(),
+                                                                    changed,
+                                                                    instance);
+            eventProcessor.processEvent(event);
+        }
+        if (logger.isLoggable(Level.FINE))
+            logger.fine("Scaled [" + changed.getName() + "] down by [" + count + "], removed [" + numRemoved + "]");
+        return (numRemoved);
+    }
+
     /*
     * @see org.rioproject.core.OperationalStringManager#getPendingCount
     */
@@ -985,8 +1106,8 @@ public class DefaultOpStringManager implements OperationalStringManager, OpStrin
                 throw new OperationalStringException("Unmanaged ServiceElement [" + sElem.getName() + "]", false);
             numTrimmed = svcElemMgr.trim(trimUp);
             if (numTrimmed > 0) {
-                stateChanged(false);
                 ServiceElement updatedElement = svcElemMgr.getServiceElement();
+                plannedChanged(updatedElement);
                 updateServiceElements(new ServiceElement[]{updatedElement});
                 ProvisionMonitorEvent event =
                     new ProvisionMonitorEvent(serviceProxy,
@@ -1023,7 +1144,7 @@ public class DefaultOpStringManager implements OperationalStringManager, OpStrin
         ServiceElement sElem = svcElemMgr.decrement(instance,
                                                     recommended,
                                                     destroy);
-        stateChanged(false);
+        plannedChanged(sElem);
         updateServiceElements(new ServiceElement[]{sElem});
         ProvisionMonitorEvent event =
             new ProvisionMonitorEvent(serviceProxy,
@@ -1421,20 +1542,12 @@ public class DefaultOpStringManager implements OperationalStringManager, OpStrin
      * @return The ServiceElementManager that is
      *         managing the ServiceElement. If no ServiceElementManager is found,
      *         null is returned
-     * @throws IOException If the service proxy from a ServiceBeanInstance
-     *                     returned from a ServiceElementManager cannot be unmarshalled
+     * @throws IOException If the service proxy cannot be marshalled
      */
     ServiceElementManager getServiceElementManager(Object proxy) throws IOException {
         for (ServiceElementManager mgr : svcElemMgrs) {
-            ServiceBeanInstance[] instances = mgr.getServiceBeanInstances();
-            for (ServiceBeanInstance instance : instances) {
-                try {
-                    if (instance.getService().equals(proxy))
-                        return (mgr);
-                } catch (ClassNotFoundException e) {
-                    logger.log(Level.WARNING, "Unable to obtain proxy", e);
-                }
-            }
+            if (mgr.hasServiceProxy(proxy))
+                return (mgr);
         }
         return (null);
     }
@@ -0,0 +1,686 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.monitor;
+
+import net.jini.config.Configuration;
+import net.jini.config.ConfigurationException;
+import net.jini.export.Exporter;
+import net.jini.id.Uuid;
+import net.jini.jeri.BasicILFactory;
+import net.jini.jeri.BasicJeriExporter;
+import net.jini.jeri.tcp.TcpServerEndpoint;
+import org.rioproject.config.ExporterConfig;
+import org.rioproject.core.OperationalStringManager;
+import org.rioproject.core.ServiceBeanInstance;
+import org.rioproject.core.ServiceElement;
+import org.rioproject.event.EventHandler;
+import org.rioproject.resources.util.TaskScheduler;
+import org.rioproject.sla.PredictiveScalingPolicyHandler;
+import org.rioproject.sla.SLA;
+import org.rioproject.sla.SLAThresholdEvent;
+import org.rioproject.sla.ScalingPolicyHandler;
+import org.rioproject.watch.*;
+
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Aggregates the watches of each instance of a {@link ServiceElement} into
+ * element-level watches, registered with the ProvisionMonitor's
+ * <tt>WatchRegistry</tt>.
+ *
+ * <p>The watches aggregated are those named by the element's SLAs of the
+ * form <tt>statistic(watch)</tt>, or by any of the element's SLAs if
+ * <tt>aggregateAllWatches</tt> is set. Elements without such SLAs are left
+ * alone. An {@link AggregatingWatchDataReplicator} is added to the watch of
+ * each instance, and sends a summary of the watch's values over a sliding
+ * window (including a mergeable {@link HistogramSketch}) at most once per
+ * interval, rather than each value. The latest summary of each instance is
+ * merged (see {@link MergedAggregate}), and the merged statistics are added
+ * to <tt>GaugeWatch</tt>es with identifiers of the form
+ * <tt>opstring/element/statistic(watch)</tt>, for example
+ * <tt>Hello/Hello/sum(requests)</tt>.
+ *
+ * <p>An SLA whose identifier is of the form <tt>statistic(watch)</tt>, for
+ * example <tt>p95(latency)</tt>, is evaluated against the element-level
+ * watch rather than by each instance. When its thresholds are crossed an
+ * {@link SLAThresholdEvent} is sent, and if the SLA's policy handler is a
+ * {@link ScalingPolicyHandler} the element is scaled once the SLA's
+ * dampening time has passed, using {@link OperationalStringManager#scale}.
+ *
+ * <p>The following configuration entries are read from the
+ * <tt>org.rioproject.monitor</tt> component:
+ * <ul>
+ * <li><tt>elementAggregation</tt>: Whether to aggregate watches, defaults to
+ * true
+ * <li><tt>aggregateAllWatches</tt>: Whether to aggregate the watches of all
+ * SLAs, not only of SLAs of the form <tt>statistic(watch)</tt>, defaults to
+ * false
+ * <li><tt>aggregateWindow</tt>: The length (in milliseconds) of the window
+ * of each summary, defaults to 60000
+ * <li><tt>aggregateInterval</tt>: How often (in milliseconds) each instance
+ * sends a summary, defaults to 5000
+ * <li><tt>aggregateReconcileInterval</tt>: How often (in milliseconds) new
+ * elements and instances are looked for, defaults to 10000
+ * <li><tt>aggregateStatistics</tt>: The statistics recorded for each
+ * watch, defaults to <tt>sum</tt>, <tt>mean</tt>, <tt>max</tt> and
+ * <tt>p95</tt>
+ * <li><tt>maxScalingStep</tt>: The maximum number of instances added or
+ * removed when an aggregate scaling SLA is breached, defaults to 1
+ * <li><tt>aggregateListenerExporter</tt>: The <tt>Exporter</tt> used to
+ * export the listener instances send their summaries to, defaults to a
+ * <tt>BasicJeriExporter</tt> on an anonymous TCP port
+ * </ul>
+ */
+class ElementWatchAggregator implements RemoteWindowAggregateListener {
+    static final String DESCRIPTION = "Element Watch Aggregator";
+    private final OpStringMangerController controller;
+    private final WatchRegistry watchRegistry;
+    private final EventHandler slaEventHandler;
+    private final Object eventSource;
+    private final String hostAddress;
+    private final Configuration config;
+    private final long windowMillis;
+    private final long intervalMillis;
+    private final long reconcileMillis;
+    private final String[] statistics;
+    private final int maxScalingStep;
+    private final boolean aggregateAllWatches;
+    private final Map<String, ElementWatches> elements = new HashMap<String, ElementWatches>();
+    private final Map<UUID, AggregatedWatch> sources = new ConcurrentHashMap<UUID, AggregatedWatch>();
+    private Exporter exporter;
+    private RemoteWindowAggregateListener backend;
+    private Future<?> reconciler;
+    private static final Logger logger = Logger.getLogger("org.rioproject.monitor");
+
+    /**
+     * Create an ElementWatchAggregator
+     *
+     * @param controller The OpStringMangerController used to find elements
+     * @param watchRegistry The WatchRegistry element-level watches are
+     * registered with
+     * @param slaEventHandler The EventHandler that sends SLAThresholdEvents
+     * for aggregate SLAs, may be null
+     * @param eventSource The source of the SLAThresholdEvents sent
+     * @param hostAddress The address of the ProvisionMonitor's host, reported
+     * in the SLAThresholdEvents sent. It is not used to export the listener
+     * summaries are sent to, see <tt>aggregateListenerExporter</tt>
+     * @param config The configuration to read
+     */
+    ElementWatchAggregator(OpStringMangerController controller,
+                           WatchRegistry watchRegistry,
+                           EventHandler slaEventHandler,
+                           Object eventSource,
+                           String hostAddress,
+                           Configuration config) {
+        this.controller = controller;
+        this.watchRegistry = watchRegistry;
+        this.slaEventHandler = slaEventHandler;
+        this.eventSource = eventSource;
+        this.hostAddress = hostAddress;
+        this.config = config;
+        long window = 60*1000;
+        long interval = 5*1000;
+        long reconcile = 10*1000;
+        String[] stats = new String[]{"sum", "mean", "max", "p95"};
+        int step = 1;
+        boolean all = false;
+        try {
+            window = (Long)config.getEntry(ProvisionMonitorImpl.CONFIG_COMPONENT, "aggregateWindow", long.class, window);
+            interval = (Long)config.getEntry(ProvisionMonitorImpl.CONFIG_COMPONENT, "aggregateInterval", long.class, interval);
+            reconcile = (Long)config.getEntry(ProvisionMonitorImpl.CONFIG_COMPONENT,
+                                              "aggregateReconcileInterval",
+                                              long.class,
+                                              reconcile);
+            stats = (String[])config.getEntry(ProvisionMonitorImpl.CONFIG_COMPONENT,
+                                              "aggregateStatistics",
+                                              String[].class,
+                                              stats);
+            step = (Integer)config.getEntry(ProvisionMonitorImpl.CONFIG_COMPONENT, "maxScalingStep", int.class, step);
+            all = (Boolean)config.getEntry(ProvisionMonitorImpl.CONFIG_COMPONENT,
+                                           "aggregateAllWatches",
+                                           boolean.class,
+                                           all);
+        } catch(ConfigurationException e) {
+            logger.log(Level.WARNING,
+                       "Non-fatal error, unable to obtain aggregation settings " +
+                       "from configuration, using defaults",
+                       e);
+        }
+        this.windowMillis = Math.max(1, window);
+        this.intervalMillis = Math.max(0, interval);
+        this.reconcileMillis = Math.max(1000, reconcile);
+        List<String> valid = new ArrayList<String>();
+        for(String stat : stats) {
+            if(MergedAggregate.isStatistic(stat))
+                valid.add(stat);
+            else
+                logger.warning("Unknown aggregate statistic ["+stat+"], ignored");
+        }
+        this.statistics = valid.toArray(new String[valid.size()]);
+        this.maxScalingStep = Math.max(1, step);
+        this.aggregateAllWatches = all;
+    }
+
+    /**
+     * Whether element aggregation is enabled
+     *
+     * @param config The configuration to read
+     *
+     * @return The value of the <tt>elementAggregation</tt> entry, defaults to
+     * true
+     */
+    static boolean isEnabled(Configuration config) {
+        try {
+            return (Boolean)config.getEntry(ProvisionMonitorImpl.CONFIG_COMPONENT,
+                                            "elementAggregation",
+                                            boolean.class,
+                                            true);
+        } catch(ConfigurationException e) {
+            logger.log(Level.WARNING, "Getting elementAggregation, use default", e);
+            return true;
+        }
+    }
+
+    /**
+     * Export the listener aggregates are sent to, and start looking for
+     * elements and instances
+     *
+     * @throws RemoteException if the listener cannot be exported
+     */
+    synchronized void start() throws RemoteException {
+        Exporter defaultExporter = new BasicJeriExporter(TcpServerEndpoint.getInstance(0),
+                                                         new BasicILFactory(),
+                                                         false,
+                                                         true);
+        try {
+            exporter = ExporterConfig.getExporter(config,
+                                                  ProvisionMonitorImpl.CONFIG_COMPONENT,
+                                                  "aggregateListenerExporter",
+                                                  defaultExporter);
+        } catch(ConfigurationException e) {
+            logger.log(Level.WARNING, "Getting aggregateListenerExporter, use default", e);
+            exporter = defaultExporter;
+        }
+        backend = (RemoteWindowAggregateListener)exporter.export(this);
+        reconciler = TaskScheduler.getInstance().scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                reconcile();
+            }
+        }, reconcileMillis, reconcileMillis);
+        if(logger.isLoggable(Level.FINE))
+            logger.fine("Aggregating element watches over a "+windowMillis+" ms window, " +
+                        "statistics: "+Arrays.asList(statistics));
+    }
+
+    /**
+     * Stop aggregating, and remove the element-level watches
+     */
+    void stop() {
+        synchronized(this) {
+            if(reconciler!=null) {
+                reconciler.cancel(false);
+                reconciler = null;
+            }
+            if(exporter!=null) {
+                exporter.unexport(true);
+                exporter = null;
+            }
+        }
+        ElementWatches[] all;
+        synchronized(elements) {
+            all = elements.values().toArray(new ElementWatches[elements.size()]);
+            elements.clear();
+        }
+        for(ElementWatches ew : all)
+            ew.close();
+        sources.clear();
+    }
+
+    public void aggregated(WindowAggregate aggregate) {
+        AggregatedWatch watch = aggregate.getSource()==null?null:sources.get(aggregate.getSource());
+        if(watch!=null)
+            watch.update(aggregate);
+    }
+
+    /*
+     * Look for new and removed elements, and new and removed instances
+     */
+    void reconcile() {
+        if(backend==null)
+            return;
+        Set<String> seen = new HashSet<String>();
+        for(OpStringManager opMgr : controller.getOpStringManagers()) {
+            if(!opMgr.isActive())
+                continue;
+            for(ServiceElementManager mgr : opMgr.getServiceElementManagers()) {
+                ServiceElement elem = mgr.getServiceElement();
+                String key = elem.getOperationalStringName()+"/"+elem.getName();
+                seen.add(key);
+                ElementWatches ew;
+                synchronized(elements) {
+                    ew = elements.get(key);
+                    if(ew==null) {
+                        ew = new ElementWatches(key, opMgr, mgr);
+                        elements.put(key, ew);
+                    }
+                }
+                try {
+                    ew.reconcile();
+                } catch(Throwable t) {
+                    logger.log(Level.WARNING, "Aggregating watches of ["+key+"]", t);
+                }
+            }
+        }
+        List<ElementWatches> removed = new ArrayList<ElementWatches>();
+        synchronized(elements) {
+            for(Iterator<Map.Entry<String, ElementWatches>> it = elements.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, ElementWatches> entry = it.next();
+                if(!seen.contains(entry.getKey())) {
+                    removed.add(entry.getValue());
+                    it.remove();
+                }
+            }
+        }
+        for(ElementWatches ew : removed)
+            ew.close();
+    }
+
+    /*
+     * Parse an SLA identifier of the form statistic(watch)
+     *
+     * @return The statistic and the watch, or null if the identifier is not
+     * of that form
+     */
+    static String[] parseAggregate(String identifier) {
+        return SLA.parseAggregate(identifier);
+    }
+
+    /**
+     * The aggregated watches of an element, and the instances replicating to
+     * them
+     */
+    class ElementWatches {
+        final String key;
+        final OpStringManager opMgr;
+        final ServiceElementManager mgr;
+        final Map<String, AggregatedWatch> watches = new HashMap<String, AggregatedWatch>();
+        final Map<Uuid, Map<String, Attachment>> instances = new HashMap<Uuid, Map<String, Attachment>>();
+
+        ElementWatches(String key, OpStringManager opMgr, ServiceElementManager mgr) {
+            this.key = key;
+            this.opMgr = opMgr;
+            this.mgr = mgr;
+        }
+
+        synchronized void reconcile() {
+            ServiceElement elem = mgr.getServiceElement();
+            Map<String, Set<String>> wanted = new HashMap<String, Set<String>>();
+            for(SLA sla : elem.getServiceLevelAgreements().getServiceSLAs()) {
+                String[] aggregate = parseAggregate(sla.getIdentifier());
+                if(aggregate==null && !aggregateAllWatches)
+                    continue;
+                String watchID = aggregate==null?sla.getIdentifier():aggregate[1];
+                AggregatedWatch watch = watches.get(watchID);
+                if(watch==null) {
+                    watch = new AggregatedWatch(this, watchID);
+                    watches.put(watchID, watch);
+                }
+                Set<String> slaStatistics = wanted.get(watchID);
+                if(slaStatistics==null) {
+                    slaStatistics = new HashSet<String>();
+                    wanted.put(watchID, slaStatistics);
+                }
+                if(aggregate!=null) {
+                    watch.addSLA(aggregate[0], sla);
+                    slaStatistics.add(aggregate[0]);
+                }
+            }
+            /* Drop the watches and SLAs the element no longer names */
+            for(Iterator<Map.Entry<String, AggregatedWatch>> it = watches.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, AggregatedWatch> entry = it.next();
+                Set<String> slaStatistics = wanted.get(entry.getKey());
+                if(slaStatistics!=null) {
+                    entry.getValue().retainSLAs(slaStatistics);
+                    continue;
+                }
+                for(Map<String, Attachment> attached : instances.values()) {
+                    Attachment a = attached.remove(entry.getKey());
+                    if(a!=null)
+                        a.detach();
+                }
+                entry.getValue().close();
+                it.remove();
+            }
+            /* Instances are only looked at if there is something to aggregate */
+            Set<Uuid> current = new HashSet<Uuid>();
+            if(!watches.isEmpty()) {
+                for(ServiceBeanInstance instance : mgr.getServiceBeanInstances()) {
+                    current.add(instance.getServiceBeanID());
+                    attach(instance);
+                }
+            }
+            for(Iterator<Map.Entry<Uuid, Map<String, Attachment>>> it = instances.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<Uuid, Map<String, Attachment>> entry = it.next();
+                if(!current.contains(entry.getKey())) {
+                    for(Attachment a : entry.getValue().values())
+                        a.detach();
+                    it.remove();
+                }
+            }
+        }
+
+        /* Add a replicator to each of the instance's watches that does not have one */
+        private void attach(ServiceBeanInstance instance) {
+            Map<String, Attachment> attached = instances.get(instance.getServiceBeanID());
+            if(attached==null) {
+                attached = new HashMap<String, Attachment>();
+                instances.put(instance.getServiceBeanID(), attached);
+            }
+            if(attached.size()==watches.size())
+                return;
+            Object proxy;
+            try {
+                proxy = instance.getService();
+            } catch(Exception e) {
+                if(logger.isLoggable(Level.FINE))
+                    logger.log(Level.FINE, "Getting proxy of ["+key+"] instance", e);
+                return;
+            }
+            if(!(proxy instanceof Watchable))
+                return;
+            for(AggregatedWatch watch : watches.values()) {
+                if(attached.containsKey(watch.watchID))
+                    continue;
+                try {
+                    WatchDataSource wds = ((Watchable)proxy).fetch(watch.watchID);
+                    if(wds==null)
+                        continue;
+                    AggregatingWatchDataReplicator replicator =
+                        new AggregatingWatchDataReplicator(backend, windowMillis, intervalMillis, 95);
+                    sources.put(replicator.getUuid(), watch);
+                    wds.addWatchDataReplicator(replicator);
+                    attached.put(watch.watchID, new Attachment(wds, replicator, watch));
+                    if(logger.isLoggable(Level.FINE))
+                        logger.fine("Aggregating watch ["+watch.watchID+"] of ["+key+"] " +
+                                    "instance ["+instance.getServiceBeanConfig().getInstanceID()+"]");
+                } catch(RemoteException e) {
+                    if(logger.isLoggable(Level.FINE))
+                        logger.log(Level.FINE, "Fetching watch ["+watch.watchID+"] of ["+key+"] instance", e);
+                }
+            }
+        }
+
+        synchronized void close() {
+            for(Map<String, Attachment> attached : instances.values()) {
+                for(Attachment a : attached.values())
+                    a.detach();
+            }
+            instances.clear();
+            for(AggregatedWatch watch : watches.values())
+                watch.close();
+            watches.clear();
+        }
+    }
+
+    /**
+     * A replicator added to an instance's watch
+     */
+    class Attachment {
+        final WatchDataSource wds;
+        final AggregatingWatchDataReplicator replicator;
+        final AggregatedWatch watch;
+
+        Attachment(WatchDataSource wds, AggregatingWatchDataReplicator replicator, AggregatedWatch watch) {
+            this.wds = wds;
+            this.replicator = replicator;
+            this.watch = watch;
+        }
+
+        void detach() {
+            sources.remove(replicator.getUuid());
+            watch.remove(replicator.getUuid());
+            try {
+                wds.removeWatchDataReplicator(replicator);
+            } catch(RemoteException e) {
+                /* The instance has most likely gone away */
+                if(logger.isLoggable(Level.FINEST))
+                    logger.log(Level.FINEST, "Removing replicator from watch", e);
+            }
+        }
+    }
+
+    /**
+     * The latest summary of a watch from each instance of an element, and
+     * the element-level watches of the merged summaries
+     */
+    class AggregatedWatch {
+        final ElementWatches element;
+        final String watchID;
+        final Map<UUID, WindowAggregate> latest = new HashMap<UUID, WindowAggregate>();
+        final Map<String, GaugeWatch> gauges = new LinkedHashMap<String, GaugeWatch>();
+        final Map<String, AggregateSLA> slas = new HashMap<String, AggregateSLA>();
+
+        AggregatedWatch(ElementWatches element, String watchID) {
+            this.element = element;
+            this.watchID = watchID;
+            for(String statistic : statistics)
+                getGauge(statistic);
+        }
+
+        synchronized void addSLA(String statistic, SLA sla) {
+            AggregateSLA aggregateSLA = slas.get(statistic);
+            if(aggregateSLA!=null) {
+                aggregateSLA.sla = sla;
+                return;
+            }
+            GaugeWatch gauge = getGauge(statistic);
+            if(gauge==null)
+                return;
+            gauge.setThresholdValues(sla);
+            aggregateSLA = new AggregateSLA(this, statistic, sla, gauge);
+            gauge.addThresholdListener(aggregateSLA);
+            slas.put(statistic, aggregateSLA);
+        }
+
+        synchronized void retainSLAs(Set<String> slaStatistics) {
+            for(Iterator<Map.Entry<String, AggregateSLA>> it = slas.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, AggregateSLA> entry = it.next();
+                if(!slaStatistics.contains(entry.getKey())) {
+                    AggregateSLA aggregateSLA = entry.getValue();
+                    aggregateSLA.cancel();
+                    aggregateSLA.gauge.removeThresholdListener(aggregateSLA);
+                    it.remove();
+                }
+            }
+        }
+
+        private GaugeWatch getGauge(String statistic) {
+            GaugeWatch gauge = gauges.get(statistic);
+            if(gauge==null) {
+                try {
+                    gauge = new GaugeWatch(element.key+"/"+statistic+"("+watchID+")", config);
+                    watchRegistry.register(gauge);
+                    gauges.put(statistic, gauge);
+                } catch(Exception e) {
+                    logger.log(Level.WARNING, "Creating aggregate watch for ["+element.key+"]", e);
+                }
+            }
+            return gauge;
+        }
+
+        void update(WindowAggregate aggregate) {
+            MergedAggregate merged;
+            GaugeWatch[] toUpdate;
+            String[] stats;
+            synchronized(this) {
+                long now = System.currentTimeMillis();
+                latest.put(aggregate.getSource(), aggregate);
+                for(Iterator<WindowAggregate> it = latest.values().iterator(); it.hasNext();) {
+                    if(it.next().getWhen()<now-windowMillis)
+                        it.remove();
+                }
+                merged = MergedAggregate.merge(latest.values());
+                stats = gauges.keySet().toArray(new String[gauges.size()]);
+                toUpdate = gauges.values().toArray(new GaugeWatch[gauges.size()]);
+            }
+            if(merged.getInstances()==0)
+                return;
+            for(int i=0; i<toUpdate.length; i++)
+                toUpdate[i].addValue(merged.getValue(stats[i]));
+        }
+
+        synchronized void remove(UUID source) {
+            latest.remove(source);
+        }
+
+        synchronized void close() {
+            for(AggregateSLA aggregateSLA : slas.values())
+                aggregateSLA.cancel();
+            slas.clear();
+            for(GaugeWatch gauge : gauges.values())
+                watchRegistry.deregister(gauge);
+            gauges.clear();
+            latest.clear();
+        }
+    }
+
+    /**
+     * An SLA evaluated against an element-level watch
+     */
+    class AggregateSLA implements ThresholdListener {
+        final AggregatedWatch watch;
+        final String statistic;
+        final GaugeWatch gauge;
+        volatile SLA sla;
+        private Future<?> scalingTask;
+
+        AggregateSLA(AggregatedWatch watch, String statistic, SLA sla, GaugeWatch gauge) {
+            this.watch = watch;
+            this.statistic = statistic;
+            this.sla = sla;
+            this.gauge = gauge;
+        }
+
+        public String getID() {
+            return gauge.getId();
+        }
+
+        public void setThresholdManager(ThresholdManager thresholdManager) {
+        }
+
+        public void notify(Calculable calculable, ThresholdValues thresholdValues, int type) {
+            SLA current = sla;
+            if(logger.isLoggable(Level.INFO))
+                logger.info("Aggregate SLA ["+getID()+"] "+
+                            (type==ThresholdEvent.BREACHED?"breached":"cleared")+" "+
+                            "value ["+calculable.getValue()+"] "+
+                            "low ["+thresholdValues.getCurrentLowThreshold()+"] "+
+                            "high ["+thresholdValues.getCurrentHighThreshold()+"]");
+            if(slaEventHandler!=null) {
+                try {
+                    slaEventHandler.fire(new SLAThresholdEvent(eventSource,
+                                                               watch.element.mgr.getServiceElement(),
+                                                               calculable,
+                                                               current,
+                                                               DESCRIPTION,
+                                                               hostAddress,
+                                                               type));
+                } catch(Exception e) {
+                    if(logger.isLoggable(Level.FINEST))
+                        logger.log(Level.FINEST, "Sending SLAThresholdEvent", e);
+                }
+            }
+            if(!isScaling(current))
+                return;
+            if(type==ThresholdEvent.BREACHED) {
+                boolean upper = calculable.getValue()>thresholdValues.getCurrentHighThreshold();
+                long dampening = upper?current.getUpperThresholdDampeningTime():current.getLowerThresholdDampeningTime();
+                schedule(dampening);
+            } else {
+                cancel();
+            }
+        }
+
+        private synchronized void schedule(long delay) {
+            if(scalingTask!=null)
+                scalingTask.cancel(false);
+            scalingTask = TaskScheduler.getInstance().schedule(new Runnable() {
+                public void run() {
+                    scale();
+                }
+            }, Math.max(0, delay));
+        }
+
+        synchronized void cancel() {
+            if(scalingTask!=null) {
+                scalingTask.cancel(false);
+                scalingTask = null;
+            }
+        }
+
+        /*
+         * Scale the element if the aggregate is still outside of the
+         * thresholds, and check again once a window has passed
+         */
+        void scale() {
+            synchronized(this) {
+                scalingTask = null;
+            }
+            double value = gauge.getLastCalculableValue();
+            ThresholdValues thresholdValues = gauge.getThresholdValues();
+            int instances = watch.element.mgr.getServiceBeanInstances().length;
+            int delta = 0;
+            if(value>thresholdValues.getCurrentHighThreshold()) {
+                delta = getStep(instances, value, thresholdValues.getCurrentHighThreshold());
+            } else if(value<thresholdValues.getCurrentLowThreshold()) {
+                delta = -getStep(instances, value, thresholdValues.getCurrentLowThreshold());
+            }
+            if(delta==0 || !(watch.element.opMgr instanceof OperationalStringManager))
+                return;
+            try {
+                int changed = ((OperationalStringManager)watch.element.opMgr).scale(watch.element.mgr.getServiceElement(),
+                                                                                    delta,
+                                                                                    false,
+                                                                                    null);
+                if(logger.isLoggable(Level.INFO))
+                    logger.info("Aggregate SLA ["+getID()+"] value ["+value+"], " +
+                                "scale by ["+delta+"], changed by ["+changed+"]");
+            } catch(Exception e) {
+                logger.log(Level.WARNING, "Scaling ["+watch.element.key+"] for aggregate SLA ["+getID()+"]", e);
+            }
+            /* The threshold is not crossed again while it remains breached */
+            schedule(windowMillis);
+        }
+
+        private int getStep(int instances, double value, double threshold) {
+            /* Adding instances does not change a sum or count */
+            if("sum".equals(statistic) || "count".equals(statistic) || "instances".equals(statistic))
+                return 1;
+            return ScalingPolicyHandler.getScalingStep(instances, value, threshold, maxScalingStep);
+        }
+
+        private boolean isScaling(SLA sla) {
+            String handler = sla.getSlaPolicyHandler();
+            return ScalingPolicyHandler.class.getName().equals(handler) ||
+                   PredictiveScalingPolicyHandler.class.getName().equals(handler);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.monitor;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the instance IDs allocated for a ServiceElement. The next instance
+ * ID handed out is the lowest positive ID that has not been allocated,
+ * matching {@link org.rioproject.jsb.ServiceElementUtil#getNextID(long[])},
+ * without scanning the allocated IDs. Unallocated IDs below the highest
+ * allocated ID are kept as ranges, so recording a large ID does not record
+ * each ID below it. Lookups do not lock.
+ */
+class InstanceIDAllocator {
+    /** Allocated instance IDs */
+    private final Set<Long> allocated = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    /** Ranges of unallocated IDs lower than highest, the first ID of each
+     * range mapped to its last ID. Ranges do not overlap or adjoin. Guarded
+     * by this */
+    private final TreeMap<Long, Long> free = new TreeMap<Long, Long>();
+    /** The highest allocated ID, guarded by this */
+    private long highest = 0;
+
+    /**
+     * Allocate the lowest unallocated instance ID
+     *
+     * @return The allocated instance ID
+     */
+    synchronized long next() {
+        long id;
+        if(free.isEmpty()) {
+            id = ++highest;
+        } else {
+            Map.Entry<Long, Long> range = free.pollFirstEntry();
+            id = range.getKey();
+            if(id<range.getValue())
+                free.put(id+1, range.getValue());
+        }
+        allocated.add(id);
+        return id;
+    }
+
+    /**
+     * Record an instance ID as allocated
+     *
+     * @param id The instance ID, ignored if <code>null</code>
+     *
+     * @return <code>true</code> if the instance ID was not already allocated
+     */
+    synchronized boolean add(Long id) {
+        if(id==null || !allocated.add(id))
+            return false;
+        if(id>highest) {
+            if(id>highest+1)
+                free.put(highest+1, id-1);
+            highest = id;
+        } else {
+            Map.Entry<Long, Long> range = free.floorEntry(id);
+            if(range!=null && id<=range.getValue()) {
+                free.remove(range.getKey());
+                if(range.getKey()<id)
+                    free.put(range.getKey(), id-1);
+                if(id<range.getValue())
+                    free.put(id+1, range.getValue());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Release an allocated instance ID
+     *
+     * @param id The instance ID, ignored if <code>null</code>
+     *
+     * @return <code>true</code> if the instance ID had been allocated
+     */
+    synchronized boolean remove(Long id) {
+        if(id==null || !allocated.remove(id))
+            return false;
+        if(id<=0)
+            return true;
+        long first = id;
+        long last = id;
+        Map.Entry<Long, Long> lower = free.lowerEntry(id);
+        if(lower!=null && lower.getValue()==id-1) {
+            first = lower.getKey();
+            free.remove(first);
+        }
+        Long upper = free.get(id+1);
+        if(upper!=null) {
+            free.remove(id+1);
+            last = upper;
+        }
+        if(id==highest)
+            highest = first-1;
+        else
+            free.put(first, last);
+        return true;
+    }
+
+    boolean contains(Long id) {
+        return id!=null && allocated.contains(id);
+    }
+
+    boolean isEmpty() {
+        return allocated.isEmpty();
+    }
+
+    /**
+     * Get the allocated instance IDs
+     *
+     * @return Sorted array of allocated instance IDs. A new array is returned
+     * each time
+     */
+    long[] toArray() {
+        SortedSet<Long> sorted = new TreeSet<Long>(allocated);
+        long[] ids = new long[sorted.size()];
+        int i = 0;
+        for(Long id : sorted)
+            ids[i++] = id;
+        return ids;
+    }
+}
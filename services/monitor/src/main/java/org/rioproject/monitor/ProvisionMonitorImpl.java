@@ -52,10 +52,12 @@ import org.rioproject.monitor.tasks.TaskTimer;
 import org.rioproject.opstring.*;
 import org.rioproject.resolver.*;
 import org.rioproject.resources.servicecore.ServiceResource;
+import org.rioproject.sla.SLAThresholdEvent;
 import org.rioproject.system.ResourceCapability;
 import org.rioproject.util.BannerProvider;
 import org.rioproject.util.BannerProviderImpl;
 import org.rioproject.util.RioManifest;
+import org.rioproject.watch.Calculable;
 import org.rioproject.watch.GaugeWatch;
 import org.rioproject.watch.PeriodicWatch;
 import org.rioproject.watch.ThreadDeadlockMonitor;
@@ -98,6 +100,8 @@ public class ProvisionMonitorImpl extends ServiceBeanAdapter implements Provisio
     OpStringLoader opStringLoader;
     /** A watch to track how long it takes to provision services */
     GaugeWatch provisionWatch;
+    /** Reports the progress of a warm start recovery, as a percentage */
+    PeriodicWatch recoveryWatch;
     /** Handles discovery and synchronization with other ProvisionMonitors */
     ProvisionMonitorPeer provisionMonitorPeer;
     ProvisionMonitorEventProcessor eventProcessor;
@@ -108,6 +112,8 @@ public class ProvisionMonitorImpl extends ServiceBeanAdapter implements Provisio
     TaskTimer taskTimer;
     private LifeCycle lifeCycle;
     DeployHandlerMonitor deployMonitor;
+    /** Aggregates the watches of service instances into element-level watches */
+    ElementWatchAggregator elementWatchAggregator;
 
     /**
      * Create a ProvisionMonitor
@@ -191,17 +197,25 @@ public class ProvisionMonitorImpl extends ServiceBeanAdapter implements Provisio
             provisioner.terminate();
         /* Cleanup opStringManagers */
         opStringMangerController.shutdownAllManagers();
+        if(elementWatchAggregator!=null)
+            elementWatchAggregator.stop();
         if(deployMonitor!=null)
             deployMonitor.terminate();
         /* Remove watches */
         if(provisionWatch != null)
             getWatchRegistry().deregister(provisionWatch);
+        if(recoveryWatch != null) {
+            recoveryWatch.stop();
+            getWatchRegistry().deregister(recoveryWatch);
+        }
         if(taskTimer!=null)
             taskTimer.cancel();
         /* stop the provisionMonitorPeer */
         if(provisionMonitorPeer!=null)
             provisionMonitorPeer.terminate();
         /* destroy the PersistentStore */
+        if(stateManager != null)
+            stateManager.terminate();
         if(snapshotter != null)
             snapshotter.interrupt();
         if(store != null) {
@@ -522,6 +536,7 @@ public class ProvisionMonitorImpl extends ServiceBeanAdapter implements Provisio
                 deploymentVerifier.verifyDeploymentRequest(request);
 
                 for (OperationalString opString : opStrings) {
+                    verifyNotRecovering(opString);
                     if (!opStringMangerController.opStringExists(opString.getName())) {
                         if (logger.isLoggable(Level.INFO))
                             logger.log(Level.INFO, "Deploying Operational String ["+opString.getName()+"]");
@@ -547,6 +562,7 @@ public class ProvisionMonitorImpl extends ServiceBeanAdapter implements Provisio
             throw new IllegalArgumentException("OperationalString cannot be null");
         Map<String, Throwable> map = new HashMap<String, Throwable>();
         try {
+            verifyNotRecovering(opString);
             if(!opStringMangerController.opStringExists(opString.getName())) {
                 if(logger.isLoggable(Level.INFO))
                     logger.info("Deploying Operational String ["+opString.getName()+"]");
@@ -569,6 +585,18 @@ public class ProvisionMonitorImpl extends ServiceBeanAdapter implements Provisio
     }
 
 
+    /*
+     * A recovered OperationalString that has not yet been deployed by the
+     * recovery cannot be deployed, the recovery would replace it
+     */
+    private void verifyNotRecovering(OperationalString opString) throws OperationalStringException {
+        if(stateManager!=null &&
+           stateManager.isRecovering(opString.getName()) &&
+           !opStringMangerController.opStringExists(opString.getName()))
+            throw new OperationalStringException("OperationalString ["+opString.getName()+"] " +
+                                                 "is being recovered, try again later");
+    }
+
     /*
      * @see org.rioproject.monitor.ProvisionMonitorImplMBean#undeploy(String)
      */
@@ -600,7 +628,12 @@ public class ProvisionMonitorImpl extends ServiceBeanAdapter implements Provisio
         }
         boolean undeployed = false;
         OpStringManager opMgr = opStringMangerController.getOpStringManager(name);
-        if(opMgr == null || (!opMgr.isActive())) {
+        if(opMgr == null && stateManager!=null && stateManager.cancelRecovery(name)) {
+            /* Recovered, but not yet deployed by the recovery */
+            if(logger.isLoggable(Level.INFO))
+                logger.log(Level.INFO, "Undeployed recovering Operational String ["+name+"]");
+            undeployed = true;
+        } else if(opMgr == null || (!opMgr.isActive())) {
             try {
                 DeployAdmin dAdmin = opStringMangerController.getPrimaryDeployAdmin(name);
                 if(dAdmin!=null) {
@@ -812,7 +845,7 @@ public class ProvisionMonitorImpl extends ServiceBeanAdapter implements Provisio
                                                                             String.class,
                                                                             null);
             if(logDirName != null) {
-                stateManager = new StateManager(logDirName, opStringMangerController);
+                stateManager = new StateManager(logDirName, opStringMangerController, context.getConfiguration());
                 logger.log(Level.INFO,
                            "ProvisionMonitor: using absolute logdir path ["
                            + store.getStoreLocation() + "]");
@@ -845,6 +878,23 @@ public class ProvisionMonitorImpl extends ServiceBeanAdapter implements Provisio
             opStringMangerController.setStateManager(stateManager);
             opStringMangerController.setServiceProxy(getEventProxy());
 
+            /* Aggregate instance watches into element-level watches */
+            EventDescriptor slaEventDesc = null;
+            if(ElementWatchAggregator.isEnabled(config)) {
+                slaEventDesc = SLAThresholdEvent.getEventDescriptor();
+                EventHandler slaEventHandler = new DispatchEventHandler(slaEventDesc, config);
+                getEventTable().put(slaEventDesc.eventID, slaEventHandler);
+                String hostAddress =
+                    context.getComputeResourceManager().getComputeResource().getAddress().getHostAddress();
+                elementWatchAggregator = new ElementWatchAggregator(opStringMangerController,
+                                                                    getWatchRegistry(),
+                                                                    slaEventHandler,
+                                                                    getEventProxy(),
+                                                                    hostAddress,
+                                                                    config);
+                elementWatchAggregator.start();
+            }
+
             if(System.getProperty(Constants.CODESERVER)==null) {
                 System.setProperty(Constants.CODESERVER, context.getExportCodebase());
                 logger.warning("The system property ["+Constants.CODESERVER+"] " +
@@ -862,17 +912,43 @@ public class ProvisionMonitorImpl extends ServiceBeanAdapter implements Provisio
             
             addAttribute(ProvisionMonitorEvent.getEventDescriptor());
             addAttribute(failureEventDesc);
+            if(slaEventDesc!=null)
+                addAttribute(slaEventDesc);
 
             /* Utility for loading OperationalStrings */
             opStringLoader = getOpStringLoader();
 
             /*
             * If we have a persistent store, process recovered or updated
-            * OperationalString elements
+            * OperationalString elements. If warmStart is set, recovered
+            * OperationalStrings are processed in the background, and the
+            * ProvisionMonitor becomes available before recovery completes
             */
             if(stateManager!=null) {
-                stateManager.processRecoveredOpStrings();
-                stateManager.processUpdatedOpStrings();
+                boolean warmStart = (Boolean)config.getEntry(CONFIG_COMPONENT,
+                                                             "warmStart",
+                                                             Boolean.class,
+                                                             false);
+                if(logger.isLoggable(Level.CONFIG))
+                    logger.config("warmStart="+warmStart);
+                if(warmStart) {
+                    stateManager.startRecovery();
+                    recoveryWatch = new PeriodicWatch("Recovery Progress", config) {
+                        public void checkValue() {
+                            int total = stateManager.getRecoveryTotal();
+                            double progress = total==0?100:stateManager.getRecoveredCount()*100.0/total;
+                            addWatchRecord(new Calculable(getId(), progress, System.currentTimeMillis()));
+                            if(stateManager.isRecoveryComplete())
+                                stop();
+                        }
+                    };
+                    recoveryWatch.setPeriod(1000);
+                    getWatchRegistry().register(recoveryWatch);
+                    recoveryWatch.start();
+                } else {
+                    stateManager.processRecoveredOpStrings();
+                    stateManager.processUpdatedOpStrings();
+                }
             }
 
             /*
@@ -0,0 +1,143 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.monitor;
+
+import org.rioproject.core.BulkProvisionListener;
+import org.rioproject.core.ServiceBeanInstance;
+import org.rioproject.core.ServiceElement;
+import org.rioproject.core.ServiceProvisionListener;
+
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks the provision requests dispatched for a
+ * {@link DefaultOpStringManager#scale} request, and notifies the requestor's
+ * {@link BulkProvisionListener} once each instance has been provisioned, or
+ * has failed to be provisioned. If the requestor's listener is not a
+ * <tt>BulkProvisionListener</tt>, it is notified of each instance.
+ *
+ * <p>Instances are identified by their instance ID. An instance that fails
+ * to be provisioned is resubmitted, and is counted once whether or not it
+ * fails again. Notifications that arrive after the requestor has been
+ * notified of completion are not forwarded to a
+ * <tt>BulkProvisionListener</tt>.
+ */
+class ScaleProvisionTracker implements ServiceProvisionListener {
+    private final ServiceElement sElem;
+    private volatile ServiceProvisionListener listener;
+    private final Map<Object, ServiceBeanInstance> provisioned = new LinkedHashMap<Object, ServiceBeanInstance>();
+    private final Set<Object> failed = new HashSet<Object>();
+    private int expected = -1;
+    private boolean completed;
+    private static final Logger logger = Logger.getLogger("org.rioproject.monitor");
+
+    ScaleProvisionTracker(ServiceElement sElem, ServiceProvisionListener listener) {
+        if(listener==null)
+            throw new IllegalArgumentException("listener is null");
+        this.sElem = sElem;
+        this.listener = listener;
+    }
+
+    /**
+     * Set the number of instances requested. The requestor is notified if
+     * each has already been provisioned (or has failed to be)
+     *
+     * @param expected The number of instances requested
+     */
+    void setExpected(int expected) {
+        synchronized(this) {
+            this.expected = expected;
+        }
+        checkCompleted();
+    }
+
+    public void succeeded(ServiceBeanInstance instance) {
+        synchronized(this) {
+            Object key = instance.getServiceBeanConfig().getInstanceID();
+            if(key==null)
+                key = instance.getServiceBeanID();
+            failed.remove(key);
+            provisioned.put(key, instance);
+        }
+        if(!(listener instanceof BulkProvisionListener)) {
+            try {
+                ServiceProvisionListener l = listener;
+                if(l!=null)
+                    l.succeeded(instance);
+            } catch(Exception e) {
+                notificationFailed(e);
+            }
+        }
+        checkCompleted();
+    }
+
+    public void failed(ServiceElement elem, boolean resubmitted) {
+        synchronized(this) {
+            Object key = elem.getServiceBeanConfig().getInstanceID();
+            if(key==null)
+                key = new Object();
+            if(!provisioned.containsKey(key))
+                failed.add(key);
+        }
+        if(!(listener instanceof BulkProvisionListener)) {
+            try {
+                ServiceProvisionListener l = listener;
+                if(l!=null)
+                    l.failed(elem, resubmitted);
+            } catch(Exception e) {
+                notificationFailed(e);
+            }
+        }
+        checkCompleted();
+    }
+
+    private void checkCompleted() {
+        ServiceBeanInstance[] instances;
+        int numFailed;
+        synchronized(this) {
+            if(completed || expected<0 || provisioned.size()+failed.size()<expected)
+                return;
+            completed = true;
+            instances = provisioned.values().toArray(new ServiceBeanInstance[provisioned.size()]);
+            numFailed = failed.size();
+        }
+        if(logger.isLoggable(Level.FINE))
+            logger.fine("Scaling ["+sElem.getOperationalStringName()+"/"+sElem.getName()+"] completed, " +
+                        "provisioned ["+instances.length+"], failed ["+numFailed+"]");
+        ServiceProvisionListener l = listener;
+        if(l instanceof BulkProvisionListener) {
+            try {
+                ((BulkProvisionListener)l).completed(sElem, instances, numFailed);
+            } catch(Exception e) {
+                notificationFailed(e);
+            }
+        }
+    }
+
+    private void notificationFailed(Exception e) {
+        if(e instanceof java.rmi.NoSuchObjectException) {
+            logger.log(Level.WARNING,
+                       "ServiceProvisionListener notification did not succeed, "+
+                       "[java.rmi.NoSuchObjectException: "+e.getLocalizedMessage()+"], remove "+
+                       "ServiceProvisionListener ["+listener+"]");
+            listener = null;
+        } else {
+            logger.log(Level.WARNING, "ServiceProvisionListener notification", e);
+        }
+    }
+}
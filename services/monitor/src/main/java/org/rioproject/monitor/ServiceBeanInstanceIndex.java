@@ -0,0 +1,201 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.monitor;
+
+import net.jini.id.Uuid;
+import net.jini.io.MarshalledInstance;
+import org.rioproject.core.ServiceBeanInstance;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The ServiceBeanInstances of a ServiceElement, keyed by the service's Uuid.
+ * Instances are also indexed by their marshalled proxy, so a service proxy
+ * can be matched to an instance without unmarshalling the proxies of the
+ * known instances. The instances sorted by instance ID are cached until the
+ * next change. Lookups are lock free, changes are serialized.
+ */
+class ServiceBeanInstanceIndex {
+    /** ServiceBeanInstances keyed by the service's Uuid */
+    private final ConcurrentMap<Uuid, ServiceBeanInstance> instances = new ConcurrentHashMap<Uuid, ServiceBeanInstance>();
+    /** Service Uuids keyed by the marshalled service proxy */
+    private final ConcurrentMap<MarshalledInstance, Uuid> marshalledProxies =
+        new ConcurrentHashMap<MarshalledInstance, Uuid>();
+    /** Instances sorted by instance ID, null if it needs to be created */
+    private volatile ServiceBeanInstance[] sorted;
+    private static final ServiceBeanInstance[] EMPTY = new ServiceBeanInstance[0];
+
+    /** Orders ServiceBeanInstances by instance ID */
+    private static final Comparator<ServiceBeanInstance> INSTANCE_ID_ORDER = new Comparator<ServiceBeanInstance>() {
+        public int compare(ServiceBeanInstance sbi1, ServiceBeanInstance sbi2) {
+            Long id1 = sbi1.getServiceBeanConfig().getInstanceID();
+            Long id2 = sbi2.getServiceBeanConfig().getInstanceID();
+            if(id1==null)
+                return id2==null?0:1;
+            if(id2==null)
+                return -1;
+            return id1.compareTo(id2);
+        }
+    };
+
+    ServiceBeanInstance get(Uuid uuid) {
+        return uuid==null?null:instances.get(uuid);
+    }
+
+    boolean contains(Uuid uuid) {
+        return uuid!=null && instances.containsKey(uuid);
+    }
+
+    int size() {
+        return instances.size();
+    }
+
+    /**
+     * Determine if a service proxy is the proxy of a known instance, by
+     * comparing its marshalled form with the marshalled proxies of the known
+     * instances
+     *
+     * @param proxy The service proxy
+     *
+     * @return The Uuid of the instance, or <code>null</code> if the proxy
+     * is not the proxy of a known instance
+     *
+     * @throws IOException if the proxy cannot be marshalled
+     */
+    Uuid getUuid(Object proxy) throws IOException {
+        if(marshalledProxies.isEmpty())
+            return null;
+        return marshalledProxies.get(new MarshalledInstance(proxy));
+    }
+
+    /**
+     * Add or update an instance
+     *
+     * @param instance The ServiceBeanInstance
+     *
+     * @return The ServiceBeanInstance that was replaced, or <code>null</code>
+     */
+    synchronized ServiceBeanInstance put(ServiceBeanInstance instance) {
+        ServiceBeanInstance previous = instances.put(instance.getServiceBeanID(), instance);
+        changed(previous, instance);
+        return previous;
+    }
+
+    /**
+     * Add an instance if there is no instance with its Uuid
+     *
+     * @param instance The ServiceBeanInstance
+     *
+     * @return The current ServiceBeanInstance with the Uuid, or
+     * <code>null</code> if the instance was added
+     */
+    synchronized ServiceBeanInstance putIfAbsent(ServiceBeanInstance instance) {
+        ServiceBeanInstance current = instances.putIfAbsent(instance.getServiceBeanID(), instance);
+        if(current==null)
+            changed(null, instance);
+        return current;
+    }
+
+    /**
+     * Replace the instance with the same Uuid
+     *
+     * @param instance The ServiceBeanInstance
+     *
+     * @return <code>true</code> if an instance was replaced
+     */
+    synchronized boolean replace(ServiceBeanInstance instance) {
+        ServiceBeanInstance previous = instances.replace(instance.getServiceBeanID(), instance);
+        if(previous==null)
+            return false;
+        changed(previous, instance);
+        return true;
+    }
+
+    /**
+     * Replace an instance
+     *
+     * @param current The ServiceBeanInstance expected to be known
+     * @param instance The ServiceBeanInstance to replace it with
+     *
+     * @return <code>true</code> if the instance was replaced
+     */
+    synchronized boolean replace(ServiceBeanInstance current, ServiceBeanInstance instance) {
+        if(!instances.replace(instance.getServiceBeanID(), current, instance))
+            return false;
+        changed(current, instance);
+        return true;
+    }
+
+    /**
+     * Remove an instance
+     *
+     * @param uuid The Uuid of the service
+     *
+     * @return The removed ServiceBeanInstance, or <code>null</code>
+     */
+    synchronized ServiceBeanInstance remove(Uuid uuid) {
+        ServiceBeanInstance removed = instances.remove(uuid);
+        if(removed!=null)
+            changed(removed, null);
+        return removed;
+    }
+
+    /**
+     * Get the instances, in no particular order
+     *
+     * @return A weakly consistent view of the instances
+     */
+    Collection<ServiceBeanInstance> values() {
+        return Collections.unmodifiableCollection(instances.values());
+    }
+
+    /**
+     * Get the instances sorted by instance ID
+     *
+     * @return Array of ServiceBeanInstance objects. A new array is returned
+     * each time
+     */
+    ServiceBeanInstance[] toArray() {
+        ServiceBeanInstance[] s = sorted;
+        if(s==null) {
+            synchronized(this) {
+                if(sorted==null) {
+                    s = instances.values().toArray(EMPTY);
+                    Arrays.sort(s, INSTANCE_ID_ORDER);
+                    sorted = s;
+                }
+                s = sorted;
+            }
+        }
+        return s.clone();
+    }
+
+    /*
+     * Called while holding the lock
+     */
+    private void changed(ServiceBeanInstance previous, ServiceBeanInstance instance) {
+        sorted = null;
+        MarshalledInstance previousProxy = previous==null?null:previous.getMarshalledInstance();
+        MarshalledInstance proxy = instance==null?null:instance.getMarshalledInstance();
+        if(previousProxy!=null && !previousProxy.equals(proxy))
+            marshalledProxies.remove(previousProxy, previous.getServiceBeanID());
+        if(proxy!=null)
+            marshalledProxies.put(proxy, instance.getServiceBeanID());
+    }
+}
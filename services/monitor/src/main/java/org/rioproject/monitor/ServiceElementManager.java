@@ -76,6 +76,8 @@ import java.rmi.MarshalledObject;
 import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -100,12 +102,16 @@ public class ServiceElementManager implements InstanceIDManager {
     LookupCache lCache;
     /** The interfaces used to discover the service */
     private Class[] interfaces;
+    /** Whether loading of interface classes is deferred until first use */
+    private final boolean deferInterfaceLoading;
     /** Utility used to send provision requests */
     private ServiceProvisioner provisioner;
     /** Shutdown mode */
     private boolean shutdown=false;
-    /** A collection of known services */
-    private Vector services = new Vector();
+    /** Known service proxies, keyed by the service's Uuid */
+    private final ConcurrentMap<Uuid, Object> services = new ConcurrentHashMap<Uuid, Object>();
+    /** The Uuids of known service proxies, keyed by proxy */
+    private final ConcurrentMap<Object, Uuid> serviceUuids = new ConcurrentHashMap<Object, Uuid>();
     /** A table of services that have been provisioned, but whose proxies
      * (or stubs) do not support the MonitorableService interface */
     private final Map<Object, String> ambiguousServices = new Hashtable<Object, String>();
@@ -120,18 +126,21 @@ public class ServiceElementManager implements InstanceIDManager {
                                                    new ServiceFaultListener();
     /** Table of service IDs to FaultDetectionHandler instances, one for each
      * service */
-    private final Map<ServiceID, FaultDetectionHandler> fdhTable = new Hashtable<ServiceID, FaultDetectionHandler>();
-    /** A List of ServiceBeanInstances */
-    private final List<ServiceBeanInstance> serviceBeanList = new ArrayList<ServiceBeanInstance>();
-    /** A List of ServiceBeanInstances which have been decremented and are not
-     * part of the list of ServiceBeanInstances. If a service is decremented,
-     * the ServiceBeanInstance decremented is taken from the seviceBeanList
-     * and placed onto this list until that service has terminated, upon which
-     * the instance will be 'cleaned' from the system */
-    private final List<ServiceBeanInstance> decrementedServiceBeanList = new ArrayList<ServiceBeanInstance>();
-    /** A List of ProvisionRequest instances correlating to redeploy requests */
-    private final List<ProvisionRequest> redeployRequestList =
-        Collections.synchronizedList(new ArrayList<ProvisionRequest>());
+    private final Map<ServiceID, FaultDetectionHandler> fdhTable = new ConcurrentHashMap<ServiceID, FaultDetectionHandler>();
+    /** ServiceBeanInstances, keyed by the ServiceBean's Uuid */
+    private final ServiceBeanInstanceIndex serviceBeans = new ServiceBeanInstanceIndex();
+    /** ServiceBeanInstances which have been decremented and are not part of
+     * the collection of ServiceBeanInstances, keyed by the ServiceBean's Uuid.
+     * If a service is decremented, the ServiceBeanInstance decremented is
+     * taken from the serviceBeans and placed into this table until that
+     * service has terminated, upon which the instance will be 'cleaned' from
+     * the system */
+    private final ConcurrentMap<Uuid, ServiceBeanInstance> decrementedServiceBeans =
+        new ConcurrentHashMap<Uuid, ServiceBeanInstance>();
+    /** ProvisionRequest instances correlating to redeploy requests, keyed by
+     * the Uuid of the ServiceBeanInstance being redeployed */
+    private final ConcurrentMap<Uuid, ProvisionRequest> redeployRequests =
+        new ConcurrentHashMap<Uuid, ProvisionRequest>();
     /** Property that indicates the mode of the ServiceElementManager. If
      * active is true, the ServiceElementManager will actively provision
      * services based on attributes set in the ServiceElementManager. If active
@@ -156,7 +165,7 @@ public class ServiceElementManager implements InstanceIDManager {
     ProvisionMonitorEventProcessor eventProcessor;
     InstanceIDManager instanceIDMgr;
     /** Collection of known/allocated instance IDs.  */
-    final List<Long> instanceIDs = Collections.synchronizedList(new ArrayList<Long>());
+    final InstanceIDAllocator instanceIDs = new InstanceIDAllocator();
     /** A ProxyPreparer for discovered services */
     ProxyPreparer proxyPreparer;
     ServiceChannelClient serviceChannelClient = new ServiceChannelClient();
@@ -194,6 +203,31 @@ public class ServiceElementManager implements InstanceIDManager {
                           Uuid uuid,
                           boolean active,
                           Configuration config)  throws Exception {
+        this(sElem, opStringMgr, provisioner, uuid, active, config, false);
+    }
+
+    /**
+     * Construct a ServiceElementManager
+     *
+     * @param sElem The ServiceElement
+     * @param opStringMgr The OperationalStringManager for the ServiceElement
+     * @param provisioner The ServiceProvisioner
+     * @param uuid The Uuid of the ProvisionMonitorImpl
+     * @param active Specifies the mode of the ServiceElementManager
+     * @param config Configuration object
+     * @param deferInterfaceLoading If true, the interface classes used to
+     * discover the service are not loaded until the ServiceElementManager is
+     * started
+     *
+     * @throws Exception if errors occur
+     */
+    ServiceElementManager(ServiceElement sElem,
+                          OperationalStringManager opStringMgr,
+                          ServiceProvisioner provisioner,
+                          Uuid uuid,
+                          boolean active,
+                          Configuration config,
+                          boolean deferInterfaceLoading)  throws Exception {
         if(sElem==null)
             throw new NullPointerException("sElem is null");
         if(opStringMgr==null)
@@ -207,6 +241,7 @@ public class ServiceElementManager implements InstanceIDManager {
         this.myUuid = uuid;
         this.active = active;
         this.config = config;
+        this.deferInterfaceLoading = deferInterfaceLoading;
         instanceIDMgr = this;
         setServiceElement(sElem);
     }
@@ -257,7 +292,7 @@ public class ServiceElementManager implements InstanceIDManager {
         /* Get the Class[] of interfaces to discover, simple for loop,
          * execute it twice if this is an update and the codebase has issues */
         Exception toThrow = null;
-        for(int i=0; i<2; i++) {
+        for(int i=0; i<2 && (update || !deferInterfaceLoading); i++) {
             try {
                 this.interfaces = loadInterfaceClasses(svcElement);
                 toThrow = null;
@@ -277,13 +312,7 @@ public class ServiceElementManager implements InstanceIDManager {
                         }
                     }
                 } else {
-                    StringBuilder sb = new StringBuilder();
-                    for(URL u : svcElement.getExportURLs()) {
-                        if(sb.length()>0)
-                            sb.append(", ");
-                        sb.append(u.toExternalForm());
-                    }
-                    logger.warning("Failed ClassBundle: "+sb.toString());
+                    logFailedClassBundle();
                     break;
                 }
             }
@@ -311,22 +340,20 @@ public class ServiceElementManager implements InstanceIDManager {
                     provisioner.getPendingManager().removeServiceElement(preElem);
                 }
             }
-            synchronized(serviceBeanList) {
-                for (ServiceBeanInstance sbi : serviceBeanList) {
-                    Long instanceID =
-                        sbi.getServiceBeanConfig().getInstanceID();
-                    ServiceBeanConfig updated = newElem.getServiceBeanConfig();
-                    Map<String, Object> configParms = updated.getConfigurationParameters();
-                    configParms.put(ServiceBeanConfig.INSTANCE_ID, instanceID);
-                    ServiceBeanConfig newConfig = new ServiceBeanConfig(configParms, updated.getConfigArgs());
-                    ServiceBeanConfig sbc = sbi.getServiceBeanConfig();
-                    Map<String, Object> initParms = sbc.getInitParameters();
-
-                    for (Map.Entry<String, Object> e : initParms.entrySet()) {
-                        newConfig.addInitParameter(e.getKey(), e.getValue());
-                    }
-                    sbi.setServiceBeanConfig(newConfig);
+            for (ServiceBeanInstance sbi : serviceBeans.values()) {
+                Long instanceID =
+                    sbi.getServiceBeanConfig().getInstanceID();
+                ServiceBeanConfig updated = newElem.getServiceBeanConfig();
+                Map<String, Object> configParms = updated.getConfigurationParameters();
+                configParms.put(ServiceBeanConfig.INSTANCE_ID, instanceID);
+                ServiceBeanConfig newConfig = new ServiceBeanConfig(configParms, updated.getConfigArgs());
+                ServiceBeanConfig sbc = sbi.getServiceBeanConfig();
+                Map<String, Object> initParms = sbc.getInitParameters();
+
+                for (Map.Entry<String, Object> e : initParms.entrySet()) {
+                    newConfig.addInitParameter(e.getKey(), e.getValue());
                 }
+                sbi.setServiceBeanConfig(newConfig);
             }
             /* Check if the DiscoveryManagement groups or locators have 
              * been changed */
@@ -434,6 +461,32 @@ public class ServiceElementManager implements InstanceIDManager {
                                                                               value));
     }
 
+    /*
+     * Get the interfaces used to discover the service, loading them if
+     * loading was deferred
+     */
+    private synchronized Class[] getInterfaces() throws MalformedURLException, ClassNotFoundException {
+        if(interfaces==null) {
+            try {
+                interfaces = loadInterfaceClasses(svcElement);
+            } catch(ClassNotFoundException e) {
+                logFailedClassBundle();
+                throw e;
+            }
+        }
+        return interfaces;
+    }
+
+    private void logFailedClassBundle() throws MalformedURLException {
+        StringBuilder sb = new StringBuilder();
+        for(URL u : svcElement.getExportURLs()) {
+            if(sb.length()>0)
+                sb.append(", ");
+            sb.append(u.toExternalForm());
+        }
+        logger.warning("Failed ClassBundle: "+sb.toString());
+    }
+
     /*
      * Load interfaces for the service
      */
@@ -452,6 +505,20 @@ public class ServiceElementManager implements InstanceIDManager {
      * @param provListener the ServiceProvisionListener to notify
      */
     void notifyPendingManager(ServiceProvisionListener provListener) {
+        notifyPendingManager(provListener, provListener);
+    }
+
+    /*
+     * Notify the appropriate PendingServiceElementManager. Pending requests of
+     * a dynamic service are given the pendingListener (if not null), and new
+     * requests the newListener
+     *
+     * @return The number of new provision requests dispatched for a dynamic
+     * service
+     */
+    private int notifyPendingManager(ServiceProvisionListener pendingListener,
+                                     ServiceProvisionListener newListener) {
+        int dispatched = 0;
         if(!active) {
             /* If the ServiceElement is dynamic and it is in the pending queue, 
              * remove ProvisionRequest instances from the PendingManager */
@@ -485,10 +552,10 @@ public class ServiceElementManager implements InstanceIDManager {
                             removeInstanceID(aRemoved.sElem.getServiceBeanConfig().getInstanceID(),
                                              "removal from pending testManager");
                     } else {
-                        provisioner.getPendingManager().updateProvisionRequests(svcElement, provListener);
+                        provisioner.getPendingManager().updateProvisionRequests(svcElement, pendingListener);
                     }
                 }
-                verify(provListener);
+                dispatched = verify(newListener);
             }
 
             /* If the ServiceElement is fixed, then use the FixedServiceManager
@@ -499,7 +566,7 @@ public class ServiceElementManager implements InstanceIDManager {
                  * then return */
                 if(svcElement.getPlanned()==0) {
                     removeFixedServiceRequests(svcElement);
-                    return;
+                    return dispatched;
                 }
                 ProvisionRequest request = new ProvisionRequest(ServiceElementUtil.copyServiceElement(svcElement),
                                                                 listener,
@@ -508,7 +575,7 @@ public class ServiceElementManager implements InstanceIDManager {
                 if(provisioner.getFixedServiceManager().hasServiceElement(svcElement)) {
                     if(mgrLogger.isLoggable(Level.FINER))
                         mgrLogger.finer("Update ["+LoggingUtil.getLoggingName(svcElement)+"] instance in  FixedServiceManager");
-                    provisioner.getFixedServiceManager().updateProvisionRequests(svcElement, provListener);
+                    provisioner.getFixedServiceManager().updateProvisionRequests(svcElement, newListener);
                 }  else {
                     /* Add the ProvisionRequest so new Cybernodes that match the 
                      * requirements will have the Service provisioned */
@@ -521,6 +588,7 @@ public class ServiceElementManager implements InstanceIDManager {
                 provisioner.getFixedServiceManager().deploy(request);
             }
         }
+        return dispatched;
     }
 
     /**
@@ -562,7 +630,7 @@ public class ServiceElementManager implements InstanceIDManager {
                  */
 
                 // TODO: IS THIS CODE STILL NEEDED? 
-                if(instanceIDs.size()==0 && instances.length>0) {
+                if(instanceIDs.isEmpty() && instances.length>0) {
                     InstantiatorResource[] resources =
                         provisioner.getServiceResourceSelector().getInstantiatorResources(svcElement);
                     for(InstantiatorResource resource : resources) {
@@ -575,9 +643,7 @@ public class ServiceElementManager implements InstanceIDManager {
                                     if (instance.getServiceBeanID().equals(uuid)) {
                                         instance.setServiceBeanConfig(sbc);
                                         addServiceBeanInstance(instance);
-                                        Long instanceID = sbc.getInstanceID();
-                                        if (instanceID != null && !instanceIDs.contains(instanceID))
-                                            instanceIDs.add(instanceID);
+                                        instanceIDs.add(sbc.getInstanceID());
                                         break;
                                     }
                                 }
@@ -648,9 +714,9 @@ public class ServiceElementManager implements InstanceIDManager {
                                                                    svcElement.getServiceBeanConfig().getLocators());
             ServiceTemplate template;
             if(svcElement.getMatchOnName())
-                template = new ServiceTemplate(null, interfaces, new Entry[]{new Name(svcElement.getName())});
+                template = new ServiceTemplate(null, getInterfaces(), new Entry[]{new Name(svcElement.getName())});
             else
-                template = new ServiceTemplate(null, interfaces, null);
+                template = new ServiceTemplate(null, getInterfaces(), null);
 
             if(config==null)
                 config = EmptyConfiguration.INSTANCE;
@@ -695,7 +761,7 @@ public class ServiceElementManager implements InstanceIDManager {
                     ServiceID serviceID = new ServiceID(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
                     try {
                         setFaultDetectionHandler(proxy, serviceID);
-                        addServiceProxy(proxy);
+                        addServiceProxy(uuid, proxy);
                         addServiceBeanInstance(sbInstance);
                         /* Check the instanceID, make sure we maintain the
                          * monotonically increasing requirement */
@@ -740,10 +806,12 @@ public class ServiceElementManager implements InstanceIDManager {
     /*
      * If the amount of discovered service instances is less then the number to 
      * maintain, initiate dispatch requests to the ServiceProvisioner
+     *
+     * @return The number of provision requests dispatched
      */
-    void verify(ServiceProvisionListener listener) {
+    int verify(ServiceProvisionListener listener) {
         if(!active) {
-            return;
+            return 0;
         }
         int pending =
             provisioner.getPendingManager().getCount(svcElement);
@@ -757,7 +825,8 @@ public class ServiceElementManager implements InstanceIDManager {
         }
         int actual = getActual()+pending;
         if(actual<maintain)
-            dispatchProvisionRequests(listener);
+            return dispatchProvisionRequests(listener);
+        return 0;
     }
 
     /**
@@ -903,24 +972,12 @@ public class ServiceElementManager implements InstanceIDManager {
      * @throws OperationalStringException if there are errors updating
      */
     void update(ServiceBeanInstance instance) throws OperationalStringException {
-        synchronized(serviceBeanList) {
-            int index = serviceBeanList.indexOf(instance);
-            if(index==-1) {
-                if(sbiLogger.isLoggable(Level.FINE))
-                    sbiLogger.log(Level.FINE,
-                                  "["+LoggingUtil.getLoggingName(svcElement)+"] "+
-                                  "Adding {0} ServiceBeanInstance ID {1}",
-                                  new Object[] {svcElement.getName(), instance.getServiceBeanConfig().getInstanceID()});
-                serviceBeanList.add(instance);
-            } else {
-                if(sbiLogger.isLoggable(Level.FINE))
-                    sbiLogger.log(Level.FINE,
-                                  "["+LoggingUtil.getLoggingName(svcElement)+"] "+
-                                  "Updating {0} ServiceBeanInstance ID {1}",
-                                  new Object[]{svcElement.getName(), instance.getServiceBeanConfig().getInstanceID()});
-                serviceBeanList.set(index, instance);
-            }
-        }
+        ServiceBeanInstance previous = serviceBeans.put(instance);
+        if(sbiLogger.isLoggable(Level.FINE))
+            sbiLogger.log(Level.FINE,
+                          "["+LoggingUtil.getLoggingName(svcElement)+"] "+
+                          (previous==null?"Adding":"Updating")+" {0} ServiceBeanInstance ID {1}",
+                          new Object[] {svcElement.getName(), instance.getServiceBeanConfig().getInstanceID()});
     }
 
     /**
@@ -992,7 +1049,7 @@ public class ServiceElementManager implements InstanceIDManager {
         if(sticky)
             req.requestedUuid = instance.getServiceBeanInstantiatorID();
 
-        redeployRequestList.add(req);
+        redeployRequests.put(sbi.getServiceBeanID(), req);
         Object proxy = null;
         try {
             proxy = instance.getService();
@@ -1007,7 +1064,7 @@ public class ServiceElementManager implements InstanceIDManager {
              * Post the redeployment request here
              */
             if(!destroyed) {
-                ProvisionRequest provRequest = serviceFaultListener.getRedeploymentProvisionRequest(proxy);
+                ProvisionRequest provRequest = serviceFaultListener.getRedeploymentProvisionRequest(proxy, instance.getServiceBeanID());
                 doDispatchProvisionRequests(new ProvisionRequest[]{provRequest});
             }
         }
@@ -1023,12 +1080,29 @@ public class ServiceElementManager implements InstanceIDManager {
      * ServiceBeanInstance
      */
     boolean hasServiceBeanInstance(ServiceBeanInstance instance) {
-        ServiceBeanInstance[] sbs = getServiceBeanInstances();
-        for (ServiceBeanInstance sb : sbs) {
-            if (instance.equals(sb))
-                return (true);
-        }        
-        return(false);
+        return(serviceBeans.contains(instance.getServiceBeanID()));
+    }
+
+    /**
+     * Determine if a service proxy is for a service tracked by this
+     * ServiceElementManager
+     *
+     * @param proxy The service proxy
+     *
+     * @return True if the ServiceElementManager knows about the service
+     *
+     * @throws IOException If the service proxy cannot be marshalled to be
+     * compared with the proxies of known ServiceBeanInstances
+     */
+    boolean hasServiceProxy(Object proxy) throws IOException {
+        Uuid uuid = serviceUuids.get(proxy);
+        if(uuid==null && proxy instanceof ReferentUuid)
+            uuid = ((ReferentUuid)proxy).getReferentUuid();
+        if(uuid!=null && serviceBeans.contains(uuid))
+            return(true);
+        /* Services whose proxies have not been discovered by this
+         * ServiceElementManager, for example those imported from a peer */
+        return(serviceBeans.getUuid(proxy)!=null);
     }
 
     /**
@@ -1040,32 +1114,14 @@ public class ServiceElementManager implements InstanceIDManager {
      * found
      */
     ServiceBeanInstance getServiceBeanInstance(Uuid uuid) {
-        ServiceBeanInstance instance = null;
-        if(uuid!=null) {
-            ServiceBeanInstance[] sbs = getServiceBeanInstances();
-            for (ServiceBeanInstance sb : sbs) {
-                if (sb.getServiceBeanID().equals(uuid)) {
-                    instance = sb;
-                    break;
-                }
-            }
-        }
-        return (instance);
+        return (uuid==null?null:serviceBeans.get(uuid));
     }
 
     /*
      * Replace the ServiceBeanInstance
      */
     boolean replaceServiceBeanInstance(ServiceBeanInstance instance) {
-        boolean replaced = false;
-        synchronized(serviceBeanList) {
-            int ndx = serviceBeanList.indexOf(instance);
-            if(ndx!=-1) {
-                serviceBeanList.set(ndx, instance);
-                replaced = true;
-            }
-        }
-        return(replaced);
+        return(serviceBeans.replace(instance));
     }
 
     /*
@@ -1087,7 +1143,27 @@ public class ServiceElementManager implements InstanceIDManager {
      * @return An updated ServiceElement. If not incremented return null
      */
     synchronized ServiceElement increment(boolean permanent, ServiceProvisionListener svcProvisionListener) {
-        boolean okayToIncrement = false;
+        return(increment(1, permanent, svcProvisionListener)>0?svcElement:null);
+    }
+
+    /**
+     * Increment the number to maintain by one or more. The provision requests
+     * for all new instances are dispatched together
+     *
+     * @param count The number of instances to add
+     * @param permanent Whether the change should be set into the ServiceElement
+     * @param svcProvisionListener the ServiceProvisionListener. May be null.
+     * Only the provision requests for the new instances notify the listener.
+     * If the listener is a {@link ScaleProvisionTracker}, it is set to expect
+     * the number of provision requests dispatched
+     *
+     * @return The number of instances added. If the change is not permanent,
+     * the number to maintain is not incremented above the maximum number of
+     * services
+     */
+    synchronized int increment(int count, boolean permanent, ServiceProvisionListener svcProvisionListener) {
+        int added;
+        int dispatched = 0;
         synchronized(svcElementRWLock) {
             int planned = svcElement.getPlanned();
             StringBuilder sb = new StringBuilder();
@@ -1096,27 +1172,28 @@ public class ServiceElementManager implements InstanceIDManager {
                 .append("] ")
                 .append("Permanently=")
                 .append(permanent)
+                .append(", COUNT=")
+                .append(count)
                 .append(", NUM PLANNED=")
                 .append(planned)
                 .append(", ");
             if(!permanent) {
                 int max = getMaxServiceCount();
                 sb.append("MAX COUNT=").append(max).append(", ");
-                if(planned < max)
-                    okayToIncrement = true;
+                added = Math.max(0, Math.min(count, max-planned));
             } else {
-                okayToIncrement = true;
+                added = Math.max(0, count);
             }
 
-            sb.append("okayToIncrement=").append(okayToIncrement);
+            sb.append("okayToIncrement=").append(added>0);
 
-            if(okayToIncrement) {
-                svcElement.incrementPlanned();
+            if(added>0) {
+                svcElement.setPlanned(planned+added);
                 if(permanent) {
                     setInitialPlanned(svcElement.getPlanned());
                 }
                 maintain = svcElement.getPlanned();
-                notifyPendingManager(svcProvisionListener);
+                dispatched = notifyPendingManager(null, svcProvisionListener);
                 if(mgrLogger.isLoggable(Level.FINE))
                     mgrLogger.fine(sb.toString()+", was ["+planned+"], "+
                                    "initialMaintain="+initialMaintain+", "+
@@ -1126,7 +1203,9 @@ public class ServiceElementManager implements InstanceIDManager {
                     mgrLogger.fine(sb.toString()+", cancelled, already at maximum allowed ["+planned+"]");
             }
         }
-        return((okayToIncrement?svcElement:null));
+        if(svcProvisionListener instanceof ScaleProvisionTracker)
+            ((ScaleProvisionTracker)svcProvisionListener).setExpected(dispatched);
+        return(added);
     }
 
     /*
@@ -1166,7 +1245,7 @@ public class ServiceElementManager implements InstanceIDManager {
 
         boolean okayToDecrement = true;
         synchronized(svcElementRWLock) {
-            int current = getServiceBeanInstances().length;
+            int current = serviceBeans.size();
             if(current>initialMaintain)
                 okayToDecrement = true;
             else if(current==initialMaintain) {
@@ -1197,9 +1276,7 @@ public class ServiceElementManager implements InstanceIDManager {
         if(okayToDecrement) {
             removeServiceBeanInstance(instance);
             removeInstanceID(instance.getServiceBeanConfig().getInstanceID(), "decrement");
-            synchronized(decrementedServiceBeanList) {
-                decrementedServiceBeanList.add(instance);
-            }
+            decrementedServiceBeans.put(instance.getServiceBeanID(), instance);
             notifyPendingManager(null);
         }
 
@@ -1215,18 +1292,46 @@ public class ServiceElementManager implements InstanceIDManager {
         return(svcElement);
     }
 
+    /**
+     * Decrement the number to maintain by one or more. Pending provision
+     * requests are trimmed first, then the most recently provisioned
+     * instances are removed
+     *
+     * @param count The number of instances to remove
+     * @param mandate If false, the number to maintain is not decremented
+     * below the initial number to maintain
+     * @param destroy Whether to destroy removed instances
+     *
+     * @return The instances that were removed. Trimmed pending requests are
+     * not included
+     */
+    synchronized List<ServiceBeanInstance> decrement(int count, boolean mandate, boolean destroy) {
+        List<ServiceBeanInstance> removed = new ArrayList<ServiceBeanInstance>();
+        int trimUp = count;
+        if(!mandate)
+            trimUp = Math.min(trimUp, maintain-initialMaintain);
+        int remaining = count;
+        if(trimUp>0)
+            remaining -= trim(trimUp);
+        ServiceBeanInstance[] instances = getServiceBeanInstances();
+        for(int i=instances.length-1; i>=0 && remaining>0; i--) {
+            int planned = svcElement.getPlanned();
+            decrement(instances[i], mandate, destroy);
+            if(svcElement.getPlanned()==planned)
+                break;
+            removed.add(instances[i]);
+            remaining--;
+        }
+        return(removed);
+    }
+
     /**
      * Remove a ServiceBeanInstance
      * 
      * @param instance The ServiceBeanInstance
      */
     void removeServiceBeanInstance(ServiceBeanInstance instance) {
-        synchronized(serviceBeanList) {
-            int index = serviceBeanList.indexOf(instance);
-            if(index!=-1) {
-                serviceBeanList.remove(index);
-            }
-        }
+        serviceBeans.remove(instance.getServiceBeanID());
     }
 
     /**
@@ -1311,14 +1416,16 @@ public class ServiceElementManager implements InstanceIDManager {
      * Create and dispatch the number of ProvisionRequest instances based on
      * the difference between the current count of services, the number pending
      * and the number to maintain
+     *
+     * @return The number of provision requests dispatched
      */
-    private void dispatchProvisionRequests(
+    private int dispatchProvisionRequests(
         ServiceProvisionListener provListener) {
         int count = maintain-getActual();
         int pending = provisioner.getPendingManager().getCount(svcElement);
         int numRequests = count-pending;
         if(numRequests<=0)
-            return;
+            return 0;
         ProvisionRequest[] requests = new ProvisionRequest[numRequests];
         synchronized(svcElementRWLock) {
             if(mgrLogger.isLoggable(Level.FINEST))
@@ -1336,33 +1443,36 @@ public class ServiceElementManager implements InstanceIDManager {
                                                    null);
             }
         }
-        doDispatchProvisionRequests(requests);
+        return doDispatchProvisionRequests(requests);
     }
 
     /**
      * Dispatch an array of ProvisionRequest instances
      * 
      * @param requests Array of ProvisionRequests
+     *
+     * @return The number of ProvisionRequests dispatched
      */
-    private void doDispatchProvisionRequests(ProvisionRequest[] requests) {
+    private int doDispatchProvisionRequests(ProvisionRequest[] requests) {
         /* If we are not in active mode, bail */
         if(!getActive())
-            return;
+            return 0;
         /* If we are shutting down, bail */
         if(shutdown)
-            return;
+            return 0;
         /* If this thing is not provisionable, get out of Dodge */
         if(svcElement.getProvisionType()==ProvisionType.EXTERNAL)
-            return;
+            return 0;
         /* Or if this is not a DYNAMIC provisioning type, return */
         if(svcElement.getProvisionType()!=ProvisionType.DYNAMIC)
-            return;
+            return 0;
         /*
          * Dispatch each ProvisionRequest 
          */
         for (ProvisionRequest request : requests) {
             provisioner.dispatch(request);
         }
+        return requests.length;
     }
 
     /**
@@ -1379,19 +1489,19 @@ public class ServiceElementManager implements InstanceIDManager {
     }
 
     private int getActual() {
-        return(getServiceBeanInstances().length);
+        return(serviceBeans.size());
     }
 
     /**
      * Determine if we have already discovered a service
      * 
-     * @param proxy The discovered service proxy
+     * @param uuid The Uuid of the discovered service
      * 
-     * @return Return true if the services collection conatins the proxy, 
-     * otherwise return false
+     * @return Return true if the services collection contains a proxy for
+     * the service, otherwise return false
      */
-    private boolean alreadyDiscovered(Object proxy) {
-        return(services.contains(proxy));
+    private boolean alreadyDiscovered(Uuid uuid) {
+        return(services.containsKey(uuid));
     }
 
     /*
@@ -1430,12 +1540,7 @@ public class ServiceElementManager implements InstanceIDManager {
      * array is returned each time
      */
     ServiceBeanInstance[] getServiceBeanInstances() {
-        ServiceBeanInstance[] instances;
-        synchronized(serviceBeanList) {
-            instances = serviceBeanList.toArray(
-                new ServiceBeanInstance[serviceBeanList.size()]);
-        }
-        return(instances);
+        return(serviceBeans.toArray());
     }
 
     /**
@@ -1445,23 +1550,14 @@ public class ServiceElementManager implements InstanceIDManager {
      * zero-length array is returned. A new array is returned each time
      */
     private long[] getAllocatedIDs() {
-        long[] ids = new long[instanceIDs.size()];
-        int i=0;
-        for (Long instanceID : instanceIDs) {
-            ids[i++] = instanceID;
-        }
-        return(ids);
+        return(instanceIDs.toArray());
     }
 
     /**
      * @see org.rioproject.monitor.InstanceIDManager#getNextInstanceID
      */
     public long getNextInstanceID() {
-        long instanceID = ServiceElementUtil.getNextID(getAllocatedIDs());
-        synchronized(instanceIDs) {
-            instanceIDs.add(instanceID);
-        }
-        return(instanceID);
+        return(instanceIDs.next());
     }
 
     /*
@@ -1470,19 +1566,11 @@ public class ServiceElementManager implements InstanceIDManager {
      * @return The ServiceBeanInstance of the 'cleaned' service
      */
     private synchronized ServiceBeanInstance cleanService(Object proxy, Uuid serviceUuid, boolean removeInstanceID) {
-        ServiceBeanInstance instance = null;
-        ServiceBeanInstance[] instances = getServiceBeanInstances();
-        try {
-            instance = findServiceBeanInstance(proxy, serviceUuid, instances, true);
-            if(instance==null)
-                instance = findServiceBeanInstance(proxy, serviceUuid, instances, false);
-            if(instance!=null) {
-                removeServiceBeanInstance(instance);
-                if (removeInstanceID)
-                    removeInstanceID(instance.getServiceBeanConfig().getInstanceID(), "clean");
-            }
-        } catch (Exception e) {
-            mgrLogger.log(Level.WARNING, "Getting ServiceBeanInstance", e);
+        ServiceBeanInstance instance = findServiceBeanInstance(proxy, serviceUuid);
+        if(instance!=null) {
+            removeServiceBeanInstance(instance);
+            if (removeInstanceID)
+                removeInstanceID(instance.getServiceBeanConfig().getInstanceID(), "clean");
         }
         if(instance==null) {
             if(mgrLogger.isLoggable(Level.FINE)) {
@@ -1491,31 +1579,14 @@ public class ServiceElementManager implements InstanceIDManager {
                 mgrLogger.fine("Could not find ServiceBeanInstance " +
                                 "for ["+LoggingUtil.getLoggingName(svcElement)+"] "+
                                 "UUID=["+serviceUuid+"], in known collection of ServiceBeanInstances, look in " +
-                                "decremented list: "+decrementedServiceBeanList);
-            }
-            /* See if the proxy has been placed on the decrementedServiceBeanList */
-            List<ServiceBeanInstance> decremented = new ArrayList<ServiceBeanInstance>();
-            synchronized(decrementedServiceBeanList) {
-                decremented.addAll(decrementedServiceBeanList);
-            }
-            try {
-                for (ServiceBeanInstance sbi : decremented) {
-                    if (serviceUuid.equals(sbi.getServiceBeanID())) {
-                        instance = sbi;
-                        break;
-                    }
-                }
-            } catch (Exception e) {
-                mgrLogger.log(Level.WARNING, "Getting ServiceBeanInstance", e);
+                                "decremented list: "+decrementedServiceBeans.values());
             }
-            if(instance!=null) {
-                synchronized(decrementedServiceBeanList) {
-                    decrementedServiceBeanList.remove(instance);
-                }
-            } else {
+            /* See if the service has been placed in the decrementedServiceBeans */
+            instance = decrementedServiceBeans.remove(serviceUuid);
+            if(instance==null) {
                 logger.fine("["+LoggingUtil.getLoggingName(svcElement)+"] "+
                             "Could not locate ServiceBeanInstance "+serviceUuid+" in decremented list: "+
-                            decrementedServiceBeanList);
+                            decrementedServiceBeans.values());
             }
         }
 
@@ -1567,7 +1638,7 @@ public class ServiceElementManager implements InstanceIDManager {
             provisioner.getPendingManager().process();
         }
         */
-        services.remove(proxy);
+        removeServiceProxy(proxy, serviceUuid);
         fdhTable.remove(new ServiceID(serviceUuid.getMostSignificantBits(), serviceUuid.getLeastSignificantBits()));
         StringBuffer buff = new StringBuffer();
         buff.append("[").append(LoggingUtil.getLoggingName(svcElement)).append("] ");
@@ -1576,24 +1647,17 @@ public class ServiceElementManager implements InstanceIDManager {
         return(instance);
     }
 
-    private ServiceBeanInstance findServiceBeanInstance(Object proxy,
-                                                        Uuid serviceUuid,
-                                                        ServiceBeanInstance[] instances,
-                                                        boolean matchOnProxy) throws ClassNotFoundException, IOException {
+    /*
+     * Find the ServiceBeanInstance for a service, matching first on the Uuid
+     * the proxy was discovered with, then on the provided Uuid
+     */
+    private ServiceBeanInstance findServiceBeanInstance(Object proxy, Uuid serviceUuid) {
         ServiceBeanInstance instance = null;
-        for (ServiceBeanInstance sbi : instances) {
-            if(matchOnProxy) {
-                if (sbi.getService().equals(proxy)) {
-                    instance = sbi;
-                    break;
-                }
-            } else {
-                if (sbi.getServiceBeanID().equals(serviceUuid)) {
-                    instance = sbi;
-                    break;
-                }
-            }
-        }
+        Uuid uuid = serviceUuids.get(proxy);
+        if(uuid!=null)
+            instance = serviceBeans.get(uuid);
+        if(instance==null)
+            instance = serviceBeans.get(serviceUuid);
         return instance;
     }
 
@@ -1603,19 +1667,12 @@ public class ServiceElementManager implements InstanceIDManager {
      * @throws IOException
      */
     private ServiceBeanInstance createServiceBeanInstance(ServiceItem item) throws IOException {
-        ServiceBeanInstance instance = null;
         /* Create a uuid from the ServiceID */
         Uuid uuid = UuidFactory.create(item.serviceID.getMostSignificantBits(),
                                        item.serviceID.getLeastSignificantBits());
 
         /* Make sure we dont already have a ServiceBeanInstance for the item */
-        ServiceBeanInstance[] instances = getServiceBeanInstances();
-        for (ServiceBeanInstance sbi : instances) {
-            if (sbi.getServiceBeanID().equals(uuid)) {
-                instance = sbi;
-                break;
-            }
-        }
+        ServiceBeanInstance instance = serviceBeans.get(uuid);
         if(instance==null) {
             String hostAddress = null;
             ServiceBeanConfig jsbConfig = null;
@@ -1689,8 +1746,7 @@ public class ServiceElementManager implements InstanceIDManager {
             }
 
             if(jsbConfig!=null) {
-                if(!instanceIDs.contains(jsbConfig.getInstanceID()))
-                    instanceIDs.add(jsbConfig.getInstanceID());
+                instanceIDs.add(jsbConfig.getInstanceID());
                 /* Create the ServiceBeanInstance */
                 instance =
                     new ServiceBeanInstance(uuid,
@@ -1727,12 +1783,9 @@ public class ServiceElementManager implements InstanceIDManager {
         buff.append("[")
             .append(svcElement.getName())
             .append("] ");
-        if(!serviceBeanList.contains(instance)) {
-            serviceBeanList.add(instance);
-            Long instanceID =
-            instance.getServiceBeanConfig().getInstanceID();
-            if(!instanceIDs.contains(instanceID))
-                instanceIDs.add(instanceID);
+        ServiceBeanInstance current = serviceBeans.putIfAbsent(instance);
+        if(current==null) {
+            instanceIDs.add(instance.getServiceBeanConfig().getInstanceID());
             changed = true;
             if(sbiLogger.isLoggable(Level.FINE))
                 buff.append("Added SBI = ")
@@ -1741,12 +1794,10 @@ public class ServiceElementManager implements InstanceIDManager {
                     .append(instance.getServiceBeanID().toString())
                     .append("\n");
         } else {
-            int ndx = serviceBeanList.indexOf(instance);
-            ServiceBeanInstance current = serviceBeanList.get(ndx);
             /* Adjust host address */
             if(current.getHostAddress()==null &&
                instance.getHostAddress()!=null) {
-                serviceBeanList.set(ndx, instance);
+                serviceBeans.replace(current, instance);
                 changed = true;
                 if(sbiLogger.isLoggable(Level.FINE))
                     buff.append("Adjusted SBI host address, was [null], now = ")
@@ -1759,7 +1810,7 @@ public class ServiceElementManager implements InstanceIDManager {
             Long iid = current.getServiceBeanConfig().getInstanceID();
             if((iid==null || (iid ==0)) &&
                instance.getServiceBeanConfig().getInstanceID()!=null) {
-                serviceBeanList.set(ndx, instance);
+                serviceBeans.replace(current, instance);
                 changed = true;
                 if(sbiLogger.isLoggable(Level.FINE))
                     buff.append("Adjusted SBI instanceID, was [null], now = ")
@@ -1772,9 +1823,18 @@ public class ServiceElementManager implements InstanceIDManager {
             instanceIDLog(buff);
     }
 
-    @SuppressWarnings("unchecked")
-    private void addServiceProxy(Object proxy) {
-        services.add(proxy);
+    private void addServiceProxy(Uuid uuid, Object proxy) {
+        services.put(uuid, proxy);
+        serviceUuids.put(proxy, uuid);
+    }
+
+    private void removeServiceProxy(Object proxy, Uuid uuid) {
+        Uuid discovered = serviceUuids.remove(proxy);
+        if(discovered!=null)
+            services.remove(discovered);
+        Object known = services.remove(uuid);
+        if(known!=null)
+            serviceUuids.remove(known);
     }
 
     /**
@@ -1806,38 +1866,32 @@ public class ServiceElementManager implements InstanceIDManager {
             try {
                 Object proxy = instance.getService();
                 String hostAddress = instance.getHostAddress();
-                synchronized(serviceBeanList) {
-                    /* Prepare the proxy */
-                    if(proxy instanceof RemoteMethodControl)
-                        proxy = proxyPreparer.prepareProxy(proxy);
-
-                    addServiceProxy(proxy);
-
-                    /* If for some reason the hostAddress or instantiatorUuid
-                     * is null, then construct a new ServiceBeanInstance with
-                     * the hostAddress and Uuid of the InstantiatorResource */
-                    if(hostAddress==null ||
-                        instance.getServiceBeanInstantiatorID()==null) {
-                        hostAddress = resource.getHostAddress();
-                        instance =
-                        new ServiceBeanInstance(instance.getServiceBeanID(),
-                                                instance.getMarshalledInstance(),
-                                                instance.getServiceBeanConfig(),
-                                                hostAddress,
-                                                instance.getServiceBeanInstantiatorID());
-                    }
-                    if(mgrLogger.isLoggable(Level.FINE))
-                        mgrLogger.fine("["+LoggingUtil.getLoggingName(svcElement)+"] service " +
-                                       "provisioned, "+
-                                       "instance=["+instance.getServiceBeanConfig().getInstanceID()+"], "+
-                                       "type=["+svcElement.getProvisionType()+"]");
-                    if(hasServiceBeanInstance(instance)) {
-                        replaceServiceBeanInstance(instance);
-                    }
-                    else {
-                        addServiceBeanInstance(instance);
-                    }
+                /* Prepare the proxy */
+                if(proxy instanceof RemoteMethodControl)
+                    proxy = proxyPreparer.prepareProxy(proxy);
+
+                addServiceProxy(instance.getServiceBeanID(), proxy);
+
+                /* If for some reason the hostAddress or instantiatorUuid
+                 * is null, then construct a new ServiceBeanInstance with
+                 * the hostAddress and Uuid of the InstantiatorResource */
+                if(hostAddress==null ||
+                    instance.getServiceBeanInstantiatorID()==null) {
+                    hostAddress = resource.getHostAddress();
+                    instance =
+                    new ServiceBeanInstance(instance.getServiceBeanID(),
+                                            instance.getMarshalledInstance(),
+                                            instance.getServiceBeanConfig(),
+                                            hostAddress,
+                                            instance.getServiceBeanInstantiatorID());
                 }
+                if(mgrLogger.isLoggable(Level.FINE))
+                    mgrLogger.fine("["+LoggingUtil.getLoggingName(svcElement)+"] service " +
+                                   "provisioned, "+
+                                   "instance=["+instance.getServiceBeanConfig().getInstanceID()+"], "+
+                                   "type=["+svcElement.getProvisionType()+"]");
+                if(!replaceServiceBeanInstance(instance))
+                    addServiceBeanInstance(instance);
                 /* Re-get the proxy using the proxy's classloader */
                 ClassLoader currentCL = Thread.currentThread().getContextClassLoader();
                 try {
@@ -1943,7 +1997,7 @@ public class ServiceElementManager implements InstanceIDManager {
                     item.service = proxyPreparer.prepareProxy(item.service);
 
                 /* Construct the ServiceBeanInstance and add it to the
-                 * serviceBeanList */
+                 * serviceBeans */
                 ServiceBeanInstance sbi = createServiceBeanInstance(item);
                 if(sbi!=null)
                     addServiceBeanInstance(sbi);
@@ -1967,17 +2021,19 @@ public class ServiceElementManager implements InstanceIDManager {
                  * transition in active-mode if the service is EXTERNAL, or
                  * when in inactive (backup) mode
                  */
+                Uuid uuid = UuidFactory.create(item.serviceID.getMostSignificantBits(),
+                                               item.serviceID.getLeastSignificantBits());
                 if(getActive()) {
                     if(svcElement.getProvisionType()==ProvisionType.EXTERNAL) {
-                        if(alreadyDiscovered(item.service))
+                        if(alreadyDiscovered(uuid))
                             return;
-                        addServiceProxy(item.service);
+                        addServiceProxy(uuid, item.service);
                         setFaultDetectionHandler(item.service, item.serviceID);
                     }
                 } else {
-                    if(alreadyDiscovered(item.service))
+                    if(alreadyDiscovered(uuid))
                         return;
-                    addServiceProxy(item.service);
+                    addServiceProxy(uuid, item.service);
                     setFaultDetectionHandler(item.service, item.serviceID);
                 }
             } catch(Throwable t) {
@@ -2024,9 +2080,9 @@ public class ServiceElementManager implements InstanceIDManager {
                 }
                 String hostAddress = (instance==null?null:instance.getHostAddress());
 
-                /* If there is a ProvisionRequest in the redeployRequestList,
+                /* If there is a ProvisionRequest in the redeployRequests,
                  * use that ProvisionRequest. This allows a ServiceProvisionListener to be added */
-                ProvisionRequest provRequest = getRedeploymentProvisionRequest(proxy);
+                ProvisionRequest provRequest = getRedeploymentProvisionRequest(proxy, uuid);
                 asResultOfRedeployment = (provRequest!=null);
                 if(mgrLogger.isLoggable(Level.FINEST))
                     mgrLogger.finest("Redeployment ProvisionRequest for " +
@@ -2128,19 +2184,12 @@ public class ServiceElementManager implements InstanceIDManager {
          * Get a ProvisionRequest created from a redeploy invocation. If not 
          * found return null
          */
-        ProvisionRequest getRedeploymentProvisionRequest(Object service) {
-            ProvisionRequest pr = null;
-            ProvisionRequest[] prs = redeployRequestList.toArray(new ProvisionRequest[redeployRequestList.size()]);
-            for (ProvisionRequest pr1 : prs) {
-                try {
-                    if (pr1.instance != null && pr1.instance.getService().equals(service)) {
-                        pr = pr1;
-                        redeployRequestList.remove(pr);
-                        break;
-                    }
-                } catch (Exception e) {
-                    mgrLogger.log(Level.WARNING, "Getting service for redeployment invocation", e);
-                }
+        ProvisionRequest getRedeploymentProvisionRequest(Object service, Uuid serviceUuid) {
+            ProvisionRequest pr = redeployRequests.remove(serviceUuid);
+            if(pr==null) {
+                Uuid uuid = serviceUuids.get(service);
+                if(uuid!=null)
+                    pr = redeployRequests.remove(uuid);
             }
             return(pr);
         }
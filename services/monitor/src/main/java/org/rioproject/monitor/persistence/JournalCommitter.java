@@ -0,0 +1,143 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.monitor.persistence;
+
+import org.rioproject.resources.persistence.PersistentStore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A Thread that group commits {@link JournalRecord}s to the
+ * {@link PersistentStore}. Records submitted concurrently are written as a
+ * single batch, and the log is forced to disk once per batch rather than once
+ * per record. Callers of {@link #commit(JournalRecord)} block until the batch
+ * containing their record is durable.
+ */
+public class JournalCommitter extends Thread {
+    static Logger logger = Logger.getLogger(JournalCommitter.class.getName());
+    private final PersistentStore store;
+    private final int maxBatchSize;
+    private final BlockingQueue<PendingRecord> pending = new LinkedBlockingQueue<PendingRecord>();
+
+    JournalCommitter(String name, PersistentStore store, int maxBatchSize) {
+        super(name + ":JournalCommitter");
+        setDaemon(true);
+        this.store = store;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Commit a record to the journal, blocking until the record has been
+     * forced to disk. If this thread is not running the record is written
+     * by the calling thread.
+     *
+     * @param record The JournalRecord to commit
+     *
+     * @throws IOException if the record could not be written
+     * @throws InterruptedException if the calling thread is interrupted while
+     * waiting for the record to be committed
+     */
+    void commit(JournalRecord record) throws IOException, InterruptedException {
+        PendingRecord p = new PendingRecord(record);
+        if(!isAlive() || isInterrupted()) {
+            write(Collections.singletonList(p));
+        } else {
+            pending.put(p);
+            /* If this thread terminates before the record was picked up,
+             * write whatever is left over ourselves */
+            while(!p.await(1, TimeUnit.SECONDS)) {
+                if(!isAlive()) {
+                    List<PendingRecord> batch = new ArrayList<PendingRecord>();
+                    pending.drainTo(batch);
+                    write(batch);
+                }
+            }
+        }
+        p.check();
+    }
+
+    public void run() {
+        List<PendingRecord> batch = new ArrayList<PendingRecord>();
+        while (!isInterrupted()) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            pending.drainTo(batch, maxBatchSize-1);
+            write(batch);
+            batch.clear();
+        }
+        /* Do not leave any callers waiting */
+        pending.drainTo(batch);
+        write(batch);
+    }
+
+    private void write(List<PendingRecord> batch) {
+        if(batch.isEmpty())
+            return;
+        List<JournalRecord> records = new ArrayList<JournalRecord>();
+        for(PendingRecord p : batch)
+            records.add(p.record);
+        IOException failure = null;
+        try {
+            store.acquireMutatorLock();
+            store.updateAll(records);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Committing ["+records.size()+"] journal records", e);
+            failure = e instanceof IOException?(IOException)e:new IOException(e);
+        } finally {
+            store.releaseMutatorLock();
+        }
+        if(logger.isLoggable(Level.FINEST))
+            logger.finest("Committed batch of ["+records.size()+"] journal records");
+        for(PendingRecord p : batch)
+            p.done(failure);
+    }
+
+    private static class PendingRecord {
+        final JournalRecord record;
+        final CountDownLatch latch = new CountDownLatch(1);
+        IOException failure;
+
+        PendingRecord(JournalRecord record) {
+            this.record = record;
+        }
+
+        void done(IOException failure) {
+            this.failure = failure;
+            latch.countDown();
+        }
+
+        boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return latch.await(timeout, unit);
+        }
+
+        void check() throws IOException {
+            if(failure!=null)
+                throw failure;
+        }
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.monitor.persistence;
+
+import org.rioproject.core.OperationalString;
+import org.rioproject.core.ServiceElement;
+
+import java.io.*;
+import java.rmi.MarshalledObject;
+
+/**
+ * A JournalRecord is a single entry in the OperationalString journal. Rather
+ * than logging the complete {@link OperationalString} for every change, a
+ * JournalRecord captures the element-level mutation that occurred (the planned
+ * count of a service changed, a service was added, updated or removed).
+ * Only additions and wholesale updates of an OperationalString carry the
+ * complete OperationalString.
+ *
+ * <p>Records are written using a compact binary encoding. Object payloads
+ * (OperationalString and ServiceElement instances) are kept in their
+ * marshalled form until {@link #decode()} is invoked, allowing recovery to
+ * unmarshal payloads concurrently.
+ */
+public class JournalRecord {
+    /** Marker written as the first byte of every journal record */
+    static final int MAGIC = 0x52;
+    /** Record format version */
+    static final int VERSION = 1;
+
+    /**
+     * The type of mutation a JournalRecord describes
+     */
+    public enum Type {
+        /** The complete OperationalString was added or updated */
+        OPSTRING_MODIFIED,
+        /** The OperationalString was removed */
+        OPSTRING_REMOVED,
+        /** A ServiceElement was added or updated */
+        ELEMENT_MODIFIED,
+        /** A ServiceElement was removed */
+        ELEMENT_REMOVED,
+        /** The planned number of instances of a ServiceElement changed */
+        PLANNED_CHANGED
+    }
+    private final Type type;
+    private final String opStringName;
+    private final String elementName;
+    private final int planned;
+    private final byte[] payload;
+    private volatile Object decoded;
+
+    private JournalRecord(Type type,
+                          String opStringName,
+                          String elementName,
+                          int planned,
+                          byte[] payload,
+                          Object decoded) {
+        this.type = type;
+        this.opStringName = opStringName;
+        this.elementName = elementName;
+        this.planned = planned;
+        this.payload = payload;
+        this.decoded = decoded;
+    }
+
+    /**
+     * Create a record indicating the complete OperationalString was added or
+     * updated
+     *
+     * @param opString The OperationalString
+     *
+     * @return A JournalRecord
+     *
+     * @throws IOException if the OperationalString cannot be marshalled
+     */
+    public static JournalRecord opStringModified(OperationalString opString) throws IOException {
+        return new JournalRecord(Type.OPSTRING_MODIFIED, opString.getName(), null, 0, marshal(opString), opString);
+    }
+
+    /**
+     * Create a record indicating an OperationalString has been removed
+     *
+     * @param opStringName The name of the OperationalString
+     *
+     * @return A JournalRecord
+     */
+    public static JournalRecord opStringRemoved(String opStringName) {
+        return new JournalRecord(Type.OPSTRING_REMOVED, opStringName, null, 0, null, null);
+    }
+
+    /**
+     * Create a record indicating a ServiceElement was added or updated
+     *
+     * @param opStringName The name of the OperationalString the ServiceElement
+     * belongs to
+     * @param sElem The ServiceElement
+     *
+     * @return A JournalRecord
+     *
+     * @throws IOException if the ServiceElement cannot be marshalled
+     */
+    public static JournalRecord elementModified(String opStringName, ServiceElement sElem) throws IOException {
+        return new JournalRecord(Type.ELEMENT_MODIFIED, opStringName, sElem.getName(), 0, marshal(sElem), sElem);
+    }
+
+    /**
+     * Create a record indicating a ServiceElement was removed
+     *
+     * @param opStringName The name of the OperationalString the ServiceElement
+     * belonged to
+     * @param sElem The ServiceElement
+     *
+     * @return A JournalRecord
+     */
+    public static JournalRecord elementRemoved(String opStringName, ServiceElement sElem) {
+        return new JournalRecord(Type.ELEMENT_REMOVED, opStringName, sElem.getName(), 0, null, null);
+    }
+
+    /**
+     * Create a record indicating the planned number of instances of a
+     * ServiceElement changed
+     *
+     * @param opStringName The name of the OperationalString the ServiceElement
+     * belongs to
+     * @param sElem The ServiceElement
+     *
+     * @return A JournalRecord
+     */
+    public static JournalRecord plannedChanged(String opStringName, ServiceElement sElem) {
+        return new JournalRecord(Type.PLANNED_CHANGED, opStringName, sElem.getName(), sElem.getPlanned(), null, null);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getOpStringName() {
+        return opStringName;
+    }
+
+    public String getElementName() {
+        return elementName;
+    }
+
+    public int getPlanned() {
+        return planned;
+    }
+
+    /**
+     * Unmarshal the payload this record carries, if any. The result is cached,
+     * subsequent invocations return the same object.
+     *
+     * @return The unmarshalled payload, either an OperationalString or a
+     * ServiceElement, or <code>null</code> if this record does not carry a
+     * payload
+     *
+     * @throws IOException if the payload cannot be read
+     * @throws ClassNotFoundException if classes required to unmarshal the
+     * payload cannot be loaded
+     */
+    public Object decode() throws IOException, ClassNotFoundException {
+        if(decoded==null && payload!=null) {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload));
+            try {
+                MarshalledObject mo = (MarshalledObject)in.readObject();
+                decoded = mo.get();
+            } finally {
+                in.close();
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * Get the OperationalString this record carries
+     *
+     * @return The OperationalString, or <code>null</code> if the record does
+     * not carry an OperationalString
+     *
+     * @throws IOException if the payload cannot be read
+     * @throws ClassNotFoundException if classes required to unmarshal the
+     * payload cannot be loaded
+     */
+    public OperationalString getOperationalString() throws IOException, ClassNotFoundException {
+        return type==Type.OPSTRING_MODIFIED?(OperationalString)decode():null;
+    }
+
+    /**
+     * Get the ServiceElement this record carries
+     *
+     * @return The ServiceElement, or <code>null</code> if the record does
+     * not carry a ServiceElement
+     *
+     * @throws IOException if the payload cannot be read
+     * @throws ClassNotFoundException if classes required to unmarshal the
+     * payload cannot be loaded
+     */
+    public ServiceElement getServiceElement() throws IOException, ClassNotFoundException {
+        return type==Type.ELEMENT_MODIFIED?(ServiceElement)decode():null;
+    }
+
+    /**
+     * Write this record using the journal's binary encoding
+     *
+     * @param out The DataOutput to write to
+     *
+     * @throws IOException if the record cannot be written
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(type.ordinal());
+        out.writeUTF(opStringName);
+        switch(type) {
+            case OPSTRING_MODIFIED:
+                writePayload(out);
+                break;
+            case ELEMENT_MODIFIED:
+                out.writeUTF(elementName);
+                writePayload(out);
+                break;
+            case ELEMENT_REMOVED:
+                out.writeUTF(elementName);
+                break;
+            case PLANNED_CHANGED:
+                out.writeUTF(elementName);
+                out.writeInt(planned);
+                break;
+        }
+    }
+
+    /**
+     * Encode this record into a byte array
+     *
+     * @return The encoded record
+     *
+     * @throws IOException if the record cannot be encoded
+     */
+    public byte[] toByteArray() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload==null?64:payload.length+64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Read a record written by {@link #writeTo(java.io.DataOutput)}. The
+     * payload is not unmarshalled.
+     *
+     * @param in The DataInput to read from
+     *
+     * @return A JournalRecord
+     *
+     * @throws IOException if the record cannot be read or is not a journal
+     * record
+     */
+    public static JournalRecord readFrom(DataInput in) throws IOException {
+        if(in.readUnsignedByte()!=MAGIC)
+            throw new IOException("Not a journal record");
+        int version = in.readUnsignedByte();
+        if(version!=VERSION)
+            throw new IOException("Unsupported journal record version ["+version+"]");
+        int ordinal = in.readUnsignedByte();
+        if(ordinal>=Type.values().length)
+            throw new IOException("Unknown journal record type ["+ordinal+"]");
+        Type type = Type.values()[ordinal];
+        String opStringName = in.readUTF();
+        String elementName = null;
+        int planned = 0;
+        byte[] payload = null;
+        switch(type) {
+            case OPSTRING_MODIFIED:
+                payload = readPayload(in);
+                break;
+            case ELEMENT_MODIFIED:
+                elementName = in.readUTF();
+                payload = readPayload(in);
+                break;
+            case ELEMENT_REMOVED:
+                elementName = in.readUTF();
+                break;
+            case PLANNED_CHANGED:
+                elementName = in.readUTF();
+                planned = in.readInt();
+                break;
+        }
+        return new JournalRecord(type, opStringName, elementName, planned, payload, null);
+    }
+
+    private void writePayload(DataOutput out) throws IOException {
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    private static byte[] readPayload(DataInput in) throws IOException {
+        int length = in.readInt();
+        if(length<0)
+            throw new IOException("Invalid journal record payload length ["+length+"]");
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    private static byte[] marshal(Object o) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(new MarshalledObject<Object>(o));
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(type).append(" [").append(opStringName);
+        if(elementName!=null)
+            sb.append("/").append(elementName);
+        if(type==Type.PLANNED_CHANGED)
+            sb.append(", planned=").append(planned);
+        sb.append("]");
+        return sb.toString();
+    }
+}
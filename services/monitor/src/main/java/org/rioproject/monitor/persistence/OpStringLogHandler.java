@@ -18,6 +18,7 @@ package org.rioproject.monitor.persistence;
 import com.sun.jini.reliableLog.LogHandler;
 import org.rioproject.core.OperationalString;
 import org.rioproject.core.OperationalStringException;
+import org.rioproject.core.ServiceElement;
 import org.rioproject.monitor.OpStringManager;
 import org.rioproject.monitor.OpStringMangerController;
 import org.rioproject.resources.persistence.SnapshotHandler;
@@ -25,13 +26,30 @@ import org.rioproject.resources.persistence.SnapshotHandler;
 import java.io.*;
 import java.rmi.MarshalledObject;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Class that manages the persistence details behind saving and restoring
- * OperationalStrings
+ * OperationalStrings.
+ *
+ * <p>Changes are journaled as {@link JournalRecord}s, capturing element-level
+ * mutations rather than complete OperationalStrings. Snapshots record each
+ * deployed OperationalString as a separate entry, and are requested once the
+ * size of the journal written since the last snapshot exceeds a threshold.
+ * On recovery the snapshot entries and journal payloads are unmarshalled
+ * concurrently, one task per OperationalString, and the journal is then
+ * replayed in order.
+ *
+ * <p>Rebuilt OperationalStrings are processed concurrently on a bounded pool.
+ * OperationalStrings that share nested OperationalStrings are processed
+ * together, in the order they were recovered. While recovered state is being
+ * replayed, changes to OperationalStrings that were not recovered continue to
+ * be journaled.
  */
 public class OpStringLogHandler extends LogHandler implements SnapshotHandler {
     /**
@@ -39,23 +57,61 @@ public class OpStringLogHandler extends LogHandler implements SnapshotHandler {
      */
     private final Collection<OperationalString> recoveredOpstrings = new ArrayList<OperationalString>();
     /**
-     * Collection of of recovered Operational Strings to add
+     * Collection of of Operational Strings found only in the journal to add
+     */
+    private final Collection<OperationalString> updatedOpstrings = new ArrayList<OperationalString>();
+    /**
+     * Snapshot entries read during recovery, one per OperationalString
      */
-    private final Collection<RecordHolder> updatedOpstrings = new ArrayList<RecordHolder>();
+    private final List<JournalRecord> snapshotRecords = new ArrayList<JournalRecord>();
+    /**
+     * Journal records read during recovery, in the order they were logged
+     */
+    private final List<JournalRecord> journalRecords = new ArrayList<JournalRecord>();
     /**
      * flag to indicate whether OperationalStrings have been recovered
      */
     private boolean opStringsRecovered = false;
     /** Flag to indicate that we are in recover mode */
     private AtomicBoolean inRecovery = new AtomicBoolean(false);
-    /** Log File must contain this many records before a snapshot is allowed */
-    // TODO - allow this to be a user configurable parameter
-    int logToSnapshotThresh = 10;
+    /** Flag to indicate that recovered OperationalStrings are being replayed */
+    private AtomicBoolean replaying = new AtomicBoolean(false);
+    /** Names of the rebuilt OperationalStrings, including nested OperationalStrings,
+     * that have not yet been processed */
+    private final Set<String> recoveredNames = Collections.synchronizedSet(new HashSet<String>());
+    /** Names of the rebuilt OperationalStrings that have not yet been claimed
+     * for processing or cancelled */
+    private final Set<String> pendingNames = new HashSet<String>();
+    /** Names of the rebuilt OperationalStrings that have been processed or
+     * cancelled */
+    private final Set<String> settledNames = new HashSet<String>();
+    /** Set for threads processing rebuilt OperationalStrings */
+    private final ThreadLocal<Boolean> processing = new ThreadLocal<Boolean>();
+    /** Flag to indicate that recovered OperationalStrings have been rebuilt */
+    private volatile boolean rebuilt = false;
+    /** Number of rebuilt OperationalStrings to process */
+    private final AtomicInteger recoveryTotal = new AtomicInteger();
+    /** Number of rebuilt OperationalStrings that have been processed */
+    private final AtomicInteger recoveryProcessed = new AtomicInteger();
+    /** Time recovered OperationalStrings started being processed */
+    private volatile long recoveryStarted;
+    /** Number of journal bytes written since the last snapshot */
+    private final AtomicLong journalSize = new AtomicLong();
+    /** Journal must be this many bytes before a snapshot is requested */
+    long snapshotSizeThresh = 1024*1024;
+    /** Log File must contain this many records before a snapshot is requested */
+    int logToSnapshotThresh = 1000;
+    /** Number of threads used to unmarshal and process recovered OperationalStrings */
+    int recoveryThreads = Runtime.getRuntime().availableProcessors();
     OpStringMangerController opStringMangerController;
     SnapshotThread snapshotter;
 
     /** Log format version */
-    static final int LOG_VERSION = 1;
+    static final int LOG_VERSION = 2;
+    /** Log format version that stored all OperationalStrings as a single object */
+    static final int LEGACY_LOG_VERSION = 1;
+    /** First byte of a Java serialization stream */
+    private static final int STREAM_MAGIC = 0xAC;
 
     static Logger logger = Logger.getLogger(OpStringLogHandler.class.getName());
 
@@ -67,19 +123,150 @@ public class OpStringLogHandler extends LogHandler implements SnapshotHandler {
         return inRecovery.get();
     }
 
+    /**
+     * Determine if recovered OperationalStrings are being replayed. While
+     * replaying, state changes must not be journaled.
+     *
+     * @return <code>true</code> if recovered OperationalStrings have not yet
+     * been processed
+     */
+    boolean isReplaying() {
+        return replaying.get();
+    }
+
+    /**
+     * Determine if the named OperationalString is being replayed.
+     *
+     * @param name The name of an OperationalString
+     *
+     * @return <code>true</code> if recovered OperationalStrings have not yet
+     * been rebuilt, or the named OperationalString is one of them and has not
+     * yet been processed
+     */
+    boolean isReplaying(String name) {
+        if(!replaying.get())
+            return false;
+        return !rebuilt || recoveredNames.contains(name);
+    }
+
+    /**
+     * Determine if the current thread is processing a recovered
+     * OperationalString. State changes made while processing restore
+     * recovered state, and need not be journaled.
+     *
+     * @return <code>true</code> if the current thread is processing a
+     * recovered OperationalString
+     */
+    boolean isProcessingThread() {
+        return processing.get()!=null;
+    }
+
+    /**
+     * Cancel the recovery of an OperationalString that has been rebuilt but
+     * not yet processed, so it is not deployed by the recovery. The caller is
+     * responsible for journaling the removal of the OperationalString.
+     *
+     * @param name The name of a top-level OperationalString
+     *
+     * @return <code>true</code> if the OperationalString will not be
+     * processed, <code>false</code> if it was not recovered, or it has already
+     * been processed or is being processed
+     */
+    synchronized boolean cancelRecovery(String name) {
+        if(!pendingNames.remove(name))
+            return false;
+        settledNames.add(name);
+        recoveredNames.remove(name);
+        if(logger.isLoggable(Level.INFO))
+            logger.info("Recovery of OperationalString ["+name+"] cancelled");
+        return true;
+    }
+
+    /*
+     * Claim a rebuilt OperationalString for processing
+     */
+    private synchronized boolean claim(String name) {
+        return pendingNames.remove(name);
+    }
+
+    /*
+     * A claimed OperationalString has been processed, state changes to it
+     * are journaled from now on
+     */
+    private synchronized void settle(OperationalString opString) {
+        settledNames.add(opString.getName());
+        recoveredNames.removeAll(getNames(opString, new HashSet<String>()));
+    }
+
+    /**
+     * Get the number of recovered OperationalStrings to process
+     *
+     * @return The number of recovered OperationalStrings to process
+     */
+    int getRecoveryTotal() {
+        return recoveryTotal.get();
+    }
+
+    /**
+     * Get the number of recovered OperationalStrings that have been processed
+     *
+     * @return The number of recovered OperationalStrings that have been processed
+     */
+    int getRecoveredCount() {
+        return recoveryProcessed.get();
+    }
+
     void setSnapshotter(SnapshotThread snapshotter) {
         this.snapshotter = snapshotter;
     }
 
     public void snapshot(OutputStream out) throws IOException {
-        ObjectOutputStream oostream = new ObjectOutputStream(out);
-        oostream.writeUTF(OpStringLogHandler.class.getName());
-        oostream.writeInt(LOG_VERSION);
-        List<OperationalString> list = new ArrayList<OperationalString>();
-        OperationalString[] opStrings = opStringMangerController.getOperationalStrings();
-        list.addAll(Arrays.asList(opStrings));
-        oostream.writeObject(new MarshalledObject<List<OperationalString>>(list));
-        oostream.flush();
+        DataOutputStream dostream = new DataOutputStream(out);
+        dostream.writeUTF(OpStringLogHandler.class.getName());
+        dostream.writeInt(LOG_VERSION);
+        List<JournalRecord> base = new ArrayList<JournalRecord>();
+        List<JournalRecord> journal = new ArrayList<JournalRecord>();
+        synchronized(this) {
+            if(replaying.get()) {
+                /* Recovered state has not been processed yet, preserve it. Any
+                 * OperationalStrings deployed in the meantime follow it */
+                base.addAll(snapshotRecords);
+                journal.addAll(journalRecords);
+                Set<String> deployed = new HashSet<String>();
+                for(OperationalString opString : opStringMangerController.getOperationalStrings()) {
+                    deployed.add(opString.getName());
+                    if(!isReplaying(opString.getName()))
+                        journal.add(JournalRecord.opStringModified(opString));
+                }
+                /* Recovered OperationalStrings that have been processed or
+                 * cancelled and are not deployed have been undeployed */
+                for(String name : settledNames) {
+                    if(!deployed.contains(name))
+                        journal.add(JournalRecord.opStringRemoved(name));
+                }
+            } else {
+                for(OperationalString opString : opStringMangerController.getOperationalStrings())
+                    base.add(JournalRecord.opStringModified(opString));
+            }
+        }
+        writeRecords(base, dostream);
+        writeRecords(journal, dostream);
+        dostream.flush();
+        journalSize.set(0);
+    }
+
+    private void writeRecords(List<JournalRecord> records, DataOutputStream out) throws IOException {
+        out.writeInt(records.size());
+        for(JournalRecord record : records)
+            record.writeTo(out);
+    }
+
+    private List<JournalRecord> readRecords(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<JournalRecord> records = new ArrayList<JournalRecord>();
+        for(int i=0; i<count; i++)
+            records.add(JournalRecord.readFrom(in));
+        return records;
     }
 
     /**
@@ -90,22 +277,72 @@ public class OpStringLogHandler extends LogHandler implements SnapshotHandler {
     @SuppressWarnings("unchecked")
     public void recover(InputStream in) throws Exception {
         inRecovery.set(true);
-        ObjectInputStream oistream = new ObjectInputStream(in);
-        if (!OpStringLogHandler.class.getName().equals(oistream.readUTF()))
-            throw new IOException("Log from wrong implementation");
-        if (oistream.readInt() != LOG_VERSION)
-            throw new IOException("Wrong log format version");
-        MarshalledObject mo = (MarshalledObject) oistream.readObject();
-        List<OperationalString> list = (List<OperationalString>) mo.get();
-        for (OperationalString opString : list) {
-            if (logger.isLoggable(Level.FINER))
-                logger.finer("Recovered : " + opString.getName());
-            //dumpOpString(opString);
-            recoveredOpstrings.add(opString);
-            opStringsRecovered = true;
+        replaying.set(true);
+        PushbackInputStream pin = new PushbackInputStream(in);
+        int first = pin.read();
+        if(first==-1)
+            throw new EOFException("Empty snapshot");
+        pin.unread(first);
+        if(first==STREAM_MAGIC) {
+            /* Snapshot written by an earlier version of the log */
+            ObjectInputStream oistream = new ObjectInputStream(pin);
+            if (!OpStringLogHandler.class.getName().equals(oistream.readUTF()))
+                throw new IOException("Log from wrong implementation");
+            if (oistream.readInt() != LEGACY_LOG_VERSION)
+                throw new IOException("Wrong log format version");
+            MarshalledObject mo = (MarshalledObject) oistream.readObject();
+            List<OperationalString> list = (List<OperationalString>) mo.get();
+            for (OperationalString opString : list)
+                snapshotRecords.add(JournalRecord.opStringModified(opString));
+        } else {
+            DataInputStream distream = new DataInputStream(pin);
+            if (!OpStringLogHandler.class.getName().equals(distream.readUTF()))
+                throw new IOException("Log from wrong implementation");
+            if (distream.readInt() != LOG_VERSION)
+                throw new IOException("Wrong log format version");
+            snapshotRecords.addAll(readRecords(distream));
+            journalRecords.addAll(readRecords(distream));
+        }
+        if(logger.isLoggable(Level.FINER)) {
+            for(JournalRecord record : snapshotRecords)
+                logger.finer("Recovered : " + record.getOpStringName());
+        }
+        opStringsRecovered = !snapshotRecords.isEmpty() || !journalRecords.isEmpty();
+    }
+
+    /**
+     * Override parent's writeUpdate to write {@link JournalRecord}s using
+     * their compact binary encoding, tracking the size of the journal
+     */
+    @Override
+    public void writeUpdate(OutputStream out, Object value) throws Exception {
+        if(value instanceof JournalRecord) {
+            byte[] bytes = ((JournalRecord)value).toByteArray();
+            out.write(bytes);
+            out.flush();
+            journalSize.addAndGet(bytes.length);
+        } else {
+            super.writeUpdate(out, value);
         }
     }
 
+    /**
+     * Override parent's readUpdate to read {@link JournalRecord}s, as well as
+     * updates written by earlier versions of the log
+     */
+    @Override
+    public void readUpdate(InputStream in) throws Exception {
+        PushbackInputStream pin = new PushbackInputStream(in);
+        int first = pin.read();
+        if(first==-1)
+            throw new EOFException("Empty log record");
+        pin.unread(first);
+        if(first==STREAM_MAGIC)
+            super.readUpdate(pin);
+        else
+            applyUpdate(JournalRecord.readFrom(new DataInputStream(pin)));
+    }
+
     /**
      * Required method implementing the abstract applyUpdate() defined in
      * ReliableLog's associated LogHandler class.
@@ -117,9 +354,17 @@ public class OpStringLogHandler extends LogHandler implements SnapshotHandler {
      * retrieves a record from the log file and then invokes this method.
      */
     public void applyUpdate(Object update) throws Exception {
-        if (update instanceof MarshalledObject) {
+        replaying.set(true);
+        if (update instanceof JournalRecord) {
+            journalRecords.add((JournalRecord)update);
+            opStringsRecovered = true;
+        } else if (update instanceof MarshalledObject) {
             RecordHolder holder = (RecordHolder) ((MarshalledObject) update).get();
-            updatedOpstrings.add(holder);
+            OperationalString opString = holder.getOperationalString();
+            if(holder.getAction()==RecordHolder.MODIFIED)
+                journalRecords.add(JournalRecord.opStringModified(opString));
+            else
+                journalRecords.add(JournalRecord.opStringRemoved(opString.getName()));
             opStringsRecovered = true;
         }
     }
@@ -131,7 +376,7 @@ public class OpStringLogHandler extends LogHandler implements SnapshotHandler {
      * @param updateCount Number of updates since last snapshot
      */
     public void updatePerformed(int updateCount) {
-        if (updateCount >= logToSnapshotThresh) {
+        if (journalSize.get() >= snapshotSizeThresh || updateCount >= logToSnapshotThresh) {
             snapshotter.takeSnapshot();
         }
     }
@@ -157,21 +402,8 @@ public class OpStringLogHandler extends LogHandler implements SnapshotHandler {
      * Process recovered OperationalString objects
      */
     void processRecoveredOpStrings() {
-        for (OperationalString opString : recoveredOpstrings) {
-            try {
-                if (!opStringMangerController.opStringExists(opString.getName())) {
-                    Map<String, Throwable> map = new HashMap<String, Throwable>();
-                    opStringMangerController.addOperationalString(opString, map, null, null, null);
-                    opStringMangerController.dumpOpStringError(map);
-                } else {
-                    OpStringManager opMgr = opStringMangerController.getOpStringManager(opString.getName());
-                    Map map = opMgr.doUpdateOperationalString(opString);
-                    opStringMangerController.dumpOpStringError(map);
-                }
-            } catch (Exception ex) {
-                logger.log(Level.WARNING, "Processing recovered OperationalStrings", ex);
-            }
-        }
+        rebuild();
+        process(recoveredOpstrings, "Processing recovered OperationalStrings");
         recoveredOpstrings.clear();
     }
 
@@ -183,26 +415,308 @@ public class OpStringLogHandler extends LogHandler implements SnapshotHandler {
      *          the OperationalStrings
      */
     void processUpdatedOpStrings() throws OperationalStringException {
-        for (RecordHolder holder : updatedOpstrings) {
-            OperationalString opString = holder.getOperationalString();
-            try {
-                if (holder.getAction() == RecordHolder.MODIFIED) {
-                    if (!opStringMangerController.opStringExists(opString.getName())) {
-                        Map<String, Throwable> map = new HashMap<String, Throwable>();
-                        opStringMangerController.addOperationalString(opString, map, null, null, null);
-                        opStringMangerController.dumpOpStringError(map);
-                    } else {
-                        OpStringManager opMgr = opStringMangerController.getOpStringManager(opString.getName());
-                        Map map = opMgr.doUpdateOperationalString(opString);
-                        opStringMangerController.dumpOpStringError(map);
+        rebuild();
+        process(updatedOpstrings, "Processing updated OperationalStrings");
+        updatedOpstrings.clear();
+        synchronized(this) {
+            if(!replaying.getAndSet(false))
+                return;
+            snapshotRecords.clear();
+            journalRecords.clear();
+            recoveredNames.clear();
+            pendingNames.clear();
+            settledNames.clear();
+        }
+        if(recoveryTotal.get()>0 && logger.isLoggable(Level.INFO))
+            logger.info("Recovered ["+recoveryProcessed.get()+"] of ["+recoveryTotal.get()+"] " +
+                        "OperationalStrings in ["+(System.currentTimeMillis()-recoveryStarted)+"] milliseconds");
+        if(snapshotter!=null)
+            snapshotter.takeSnapshot();
+    }
+
+    /*
+     * Process OperationalStrings concurrently, one task per group of
+     * OperationalStrings that share nested OperationalStrings
+     */
+    private void process(Collection<OperationalString> opStrings, final String action) {
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for(final List<OperationalString> group : group(opStrings)) {
+            tasks.add(new Runnable() {
+                public void run() {
+                    for(OperationalString opString : group) {
+                        process(opString, action);
+                        processed(opString);
+                    }
+                }
+            });
+        }
+        runConcurrently(tasks, action);
+    }
+
+    private void processed(OperationalString opString) {
+        int count = recoveryProcessed.incrementAndGet();
+        int total = recoveryTotal.get();
+        int step = Math.max(1, total/10);
+        if(count==total || count%step==0) {
+            if(logger.isLoggable(Level.INFO))
+                logger.info("Recovered ["+count+"] of ["+total+"] OperationalStrings");
+        } else if(logger.isLoggable(Level.FINE)) {
+            logger.fine("Recovered ["+opString.getName()+"], ["+count+"] of ["+total+"] OperationalStrings");
+        }
+    }
+
+    private void process(OperationalString opString, String action) {
+        if(!claim(opString.getName())) {
+            if(logger.isLoggable(Level.FINE))
+                logger.fine("Recovery of ["+opString.getName()+"] was cancelled, not processing");
+            return;
+        }
+        processing.set(Boolean.TRUE);
+        try {
+            if (!opStringMangerController.opStringExists(opString.getName())) {
+                Map<String, Throwable> map = new HashMap<String, Throwable>();
+                opStringMangerController.addOperationalString(opString, map, null, null, null);
+                opStringMangerController.dumpOpStringError(map);
+            } else {
+                OpStringManager opMgr = opStringMangerController.getOpStringManager(opString.getName());
+                Map map = opMgr.doUpdateOperationalString(opString);
+                opStringMangerController.dumpOpStringError(map);
+            }
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, action, ex);
+        } finally {
+            processing.remove();
+            settle(opString);
+        }
+    }
+
+    /*
+     * Unmarshal recovered snapshot entries and journal records, then replay
+     * the journal onto the snapshot, producing the OperationalStrings to
+     * process. OperationalStrings from the snapshot are added to the
+     * recoveredOpstrings collection, those that only appear in the journal
+     * are added to the updatedOpstrings collection.
+     */
+    synchronized void rebuild() {
+        if(rebuilt)
+            return;
+        if(snapshotRecords.isEmpty() && journalRecords.isEmpty()) {
+            rebuilt = true;
+            return;
+        }
+        decode();
+        Map<String, OperationalString> opStrings = new LinkedHashMap<String, OperationalString>();
+        for(JournalRecord record : snapshotRecords) {
+            OperationalString opString = getOperationalString(record);
+            if(opString!=null)
+                opStrings.put(opString.getName(), opString);
+        }
+        Set<String> fromSnapshot = new HashSet<String>(opStrings.keySet());
+        for(JournalRecord record : journalRecords) {
+            replay(record, opStrings);
+        }
+        pendingNames.addAll(opStrings.keySet());
+        for(Map.Entry<String, OperationalString> entry : opStrings.entrySet()) {
+            recoveredNames.addAll(getNames(entry.getValue(), new HashSet<String>()));
+            if(fromSnapshot.contains(entry.getKey()))
+                recoveredOpstrings.add(entry.getValue());
+            else
+                updatedOpstrings.add(entry.getValue());
+        }
+        if(logger.isLoggable(Level.FINE))
+            logger.fine("Rebuilt ["+opStrings.size()+"] OperationalStrings from " +
+                        "["+snapshotRecords.size()+"] snapshot entries and " +
+                        "["+journalRecords.size()+"] journal records");
+        /* The records are retained until the rebuilt OperationalStrings have
+         * been processed, snapshots taken in the meantime preserve them */
+        recoveryTotal.set(opStrings.size());
+        recoveryStarted = System.currentTimeMillis();
+        rebuilt = true;
+    }
+
+    /*
+     * Partition OperationalStrings into groups, where OperationalStrings in
+     * different groups have no names (including nested names) in common
+     */
+    private List<List<OperationalString>> group(Collection<OperationalString> opStrings) {
+        List<List<OperationalString>> groups = new ArrayList<List<OperationalString>>();
+        List<Set<String>> groupNames = new ArrayList<Set<String>>();
+        for(OperationalString opString : opStrings) {
+            List<OperationalString> group = new ArrayList<OperationalString>();
+            Set<String> names = getNames(opString, new HashSet<String>());
+            for(int i=groups.size()-1; i>=0; i--) {
+                if(!Collections.disjoint(groupNames.get(i), names)) {
+                    group.addAll(0, groups.remove(i));
+                    names.addAll(groupNames.remove(i));
+                }
+            }
+            group.add(opString);
+            groups.add(group);
+            groupNames.add(names);
+        }
+        return groups;
+    }
+
+    private Set<String> getNames(OperationalString opString, Set<String> names) {
+        names.add(opString.getName());
+        for(OperationalString nested : opString.getNestedOperationalStrings())
+            getNames(nested, names);
+        return names;
+    }
+
+    /*
+     * Unmarshal record payloads, using one task per OperationalString
+     */
+    private void decode() {
+        final Map<String, List<JournalRecord>> byOpString = new LinkedHashMap<String, List<JournalRecord>>();
+        List<JournalRecord> all = new ArrayList<JournalRecord>(snapshotRecords);
+        all.addAll(journalRecords);
+        for(JournalRecord record : all) {
+            List<JournalRecord> list = byOpString.get(record.getOpStringName());
+            if(list==null) {
+                list = new ArrayList<JournalRecord>();
+                byOpString.put(record.getOpStringName(), list);
+            }
+            list.add(record);
+        }
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for(final List<JournalRecord> records : byOpString.values()) {
+            tasks.add(new Runnable() {
+                public void run() {
+                    for(JournalRecord record : records) {
+                        try {
+                            record.decode();
+                        } catch(Exception e) {
+                            logger.log(Level.WARNING, "Unmarshalling journal record "+record, e);
+                        }
                     }
+                }
+            });
+        }
+        runConcurrently(tasks, "Unmarshalling journal records");
+    }
+
+    /*
+     * Run tasks on a pool of at most recoveryThreads threads, waiting for
+     * all of them to complete
+     */
+    private void runConcurrently(List<Runnable> tasks, String action) {
+        if(tasks.isEmpty())
+            return;
+        int numThreads = Math.max(1, Math.min(recoveryThreads, tasks.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for(Runnable task : tasks)
+                futures.add(pool.submit(task));
+            for(Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    logger.log(Level.WARNING, action, e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /*
+     * Apply a journal record to the OperationalStrings being rebuilt
+     */
+    private void replay(JournalRecord record, Map<String, OperationalString> opStrings) {
+        switch(record.getType()) {
+            case OPSTRING_MODIFIED: {
+                OperationalString opString = getOperationalString(record);
+                if(opString==null)
+                    break;
+                List<OperationalString> nested = find(record.getOpStringName(), opStrings.values(), false);
+                if(opStrings.containsKey(opString.getName()) || nested.isEmpty()) {
+                    opStrings.put(opString.getName(), opString);
                 } else {
-                    //undeploy(opString.getName(), false);
+                    for(OperationalString os : nested) {
+                        for(ServiceElement sElem : os.getServices())
+                            os.removeService(sElem);
+                        for(ServiceElement sElem : opString.getServices())
+                            os.addService(sElem);
+                    }
                 }
-            } catch (Exception ex) {
-                logger.log(Level.WARNING, "Processing updated OperationalStrings", ex);
+                break;
             }
+            case OPSTRING_REMOVED:
+                opStrings.remove(record.getOpStringName());
+                break;
+            default:
+                List<OperationalString> targets = find(record.getOpStringName(), opStrings.values(), true);
+                if(targets.isEmpty()) {
+                    if(logger.isLoggable(Level.FINE))
+                        logger.fine("No recovered OperationalString for journal record "+record+", ignoring");
+                    break;
+                }
+                for(OperationalString os : targets)
+                    replay(record, os);
         }
-        updatedOpstrings.clear();
+    }
+
+    private void replay(JournalRecord record, OperationalString opString) {
+        ServiceElement current = getNamedService(opString, record.getElementName());
+        switch(record.getType()) {
+            case ELEMENT_MODIFIED:
+                ServiceElement sElem;
+                try {
+                    sElem = record.getServiceElement();
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Unmarshalling journal record "+record, e);
+                    break;
+                }
+                if(sElem==null)
+                    break;
+                if(current!=null)
+                    opString.removeService(current);
+                opString.addService(sElem);
+                break;
+            case ELEMENT_REMOVED:
+                if(current!=null)
+                    opString.removeService(current);
+                break;
+            case PLANNED_CHANGED:
+                if(current!=null)
+                    current.setPlanned(record.getPlanned());
+                break;
+        }
+    }
+
+    private OperationalString getOperationalString(JournalRecord record) {
+        try {
+            return record.getOperationalString();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Unmarshalling journal record "+record, e);
+        }
+        return null;
+    }
+
+    /*
+     * Find all OperationalStrings with the provided name, including nested
+     * OperationalStrings
+     */
+    private List<OperationalString> find(String name, Collection<OperationalString> opStrings, boolean includeTopLevel) {
+        List<OperationalString> found = new ArrayList<OperationalString>();
+        for(OperationalString opString : opStrings) {
+            if(includeTopLevel && opString.getName().equals(name))
+                found.add(opString);
+            found.addAll(find(name, Arrays.asList(opString.getNestedOperationalStrings()), true));
+        }
+        return found;
+    }
+
+    private ServiceElement getNamedService(OperationalString opString, String name) {
+        for(ServiceElement sElem : opString.getServices()) {
+            if(sElem.getName().equals(name))
+                return sElem;
+        }
+        return null;
     }
 }
@@ -24,7 +24,8 @@ import java.io.Serializable;
  * The RecordHolder class is a simple container that holds an OperationalString
  * and an action indicating whether the OperationalString was modified or
  * removed. The RecordHolder object will be used to restore the state of the
- * ProvisionMonitor
+ * ProvisionMonitor. State changes are now journaled as {@link JournalRecord}s,
+ * this class is retained to recover logs written by earlier versions.
  *
  * @author Dennis Reedy
  */
@@ -15,64 +15,172 @@
  */
 package org.rioproject.monitor.persistence;
 
+import com.sun.jini.config.Config;
+import net.jini.config.Configuration;
+import net.jini.config.EmptyConfiguration;
 import org.rioproject.core.OperationalStringException;
+import org.rioproject.core.ServiceElement;
 import org.rioproject.monitor.OpStringManager;
 import org.rioproject.monitor.OpStringMangerController;
 import org.rioproject.resources.persistence.PersistentStore;
 import org.rioproject.resources.persistence.StoreException;
 
 import java.io.IOException;
-import java.rmi.MarshalledObject;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Manages the state of OperationalStrings
+ * Manages the state of OperationalStrings. State changes are recorded as
+ * {@link JournalRecord}s, and are group committed to the persistent store by
+ * a {@link JournalCommitter}. Snapshots are taken by a {@link SnapshotThread}.
  */
 public class StateManager {
     private OpStringLogHandler opStringLogHandler;
     private PersistentStore store;
     static Logger logger = Logger.getLogger(StateManager.class.getName());
+    static final String CONFIG_COMPONENT = "org.rioproject.monitor";
     /** Snapshot thread */
     SnapshotThread snapshotter;
+    /** Journal commit thread */
+    JournalCommitter committer;
 
     public StateManager(String logDirName, OpStringMangerController opStringMangerController) throws StoreException, IOException {
+        this(logDirName, opStringMangerController, EmptyConfiguration.INSTANCE);
+    }
+
+    public StateManager(String logDirName,
+                        OpStringMangerController opStringMangerController,
+                        Configuration config) throws StoreException, IOException {
         opStringLogHandler = new OpStringLogHandler();
         opStringLogHandler.setOpStringMangerController(opStringMangerController);
+        int journalBatchSize = 64;
+        try {
+            opStringLogHandler.snapshotSizeThresh = Config.getLongEntry(config,
+                                                                        CONFIG_COMPONENT,
+                                                                        "journalSnapshotSize",
+                                                                        opStringLogHandler.snapshotSizeThresh,
+                                                                        1,
+                                                                        Long.MAX_VALUE);
+            opStringLogHandler.logToSnapshotThresh = Config.getIntEntry(config,
+                                                                        CONFIG_COMPONENT,
+                                                                        "journalSnapshotRecords",
+                                                                        opStringLogHandler.logToSnapshotThresh,
+                                                                        1,
+                                                                        Integer.MAX_VALUE);
+            opStringLogHandler.recoveryThreads = Config.getIntEntry(config,
+                                                                    CONFIG_COMPONENT,
+                                                                    "recoveryThreads",
+                                                                    opStringLogHandler.recoveryThreads,
+                                                                    1,
+                                                                    256);
+            journalBatchSize = Config.getIntEntry(config,
+                                                  CONFIG_COMPONENT,
+                                                  "journalBatchSize",
+                                                  journalBatchSize,
+                                                  1,
+                                                  10000);
+        } catch(Throwable t) {
+            logger.log(Level.WARNING, "Getting journal configuration, using defaults", t);
+        }
+        if(logger.isLoggable(Level.CONFIG))
+            logger.config("journalSnapshotSize="+opStringLogHandler.snapshotSizeThresh+", " +
+                          "journalSnapshotRecords="+opStringLogHandler.logToSnapshotThresh+", " +
+                          "recoveryThreads="+opStringLogHandler.recoveryThreads+", " +
+                          "journalBatchSize="+journalBatchSize);
         store = new PersistentStore(logDirName, opStringLogHandler, opStringLogHandler);
         snapshotter = new SnapshotThread(OpStringLogHandler.class.getName(), store);
         opStringLogHandler.setSnapshotter(snapshotter);
         store.snapshot();
+        snapshotter.start();
+        committer = new JournalCommitter(OpStringLogHandler.class.getName(), store, journalBatchSize);
+        committer.start();
     }
 
     /**
      * Notification of an OperationalString state change. This method is
      * invoked whenever an OperationalString has been added or removed, and
-     * whenever elements of an OperationalString have been modified, added or
-     * removed.
+     * whenever the OperationalString has been updated as a whole.
      *
      * @param opMgr The OpStringManager that has changed
      * @param remove Whether or not the OpStringManager has been removed
      */
     public void stateChanged(OpStringManager opMgr, boolean remove) {
-        if(opStringLogHandler.inRecovery() || store == null)
+        if(!canJournal(opMgr))
+            return;
+        try {
+            if(remove)
+                journal(JournalRecord.opStringRemoved(opMgr.getName()));
+            else
+                journal(JournalRecord.opStringModified(opMgr.doGetOperationalString()));
+        } catch(IOException e) {
+            logger.log(Level.WARNING, "OperationalString state change notification", e);
+        }
+    }
+
+    /**
+     * Notification that a ServiceElement has been added to or updated in an
+     * OperationalString. This includes changes to the ServiceElement's service
+     * level agreements.
+     *
+     * @param opMgr The OpStringManager that has changed
+     * @param sElem The ServiceElement that has been added or updated
+     */
+    public void serviceElementChanged(OpStringManager opMgr, ServiceElement sElem) {
+        if(!canJournal(opMgr))
+            return;
+        try {
+            journal(JournalRecord.elementModified(opMgr.getName(), sElem));
+        } catch(IOException e) {
+            logger.log(Level.WARNING, "ServiceElement state change notification", e);
+        }
+    }
+
+    /**
+     * Notification that a ServiceElement has been removed from an
+     * OperationalString
+     *
+     * @param opMgr The OpStringManager that has changed
+     * @param sElem The ServiceElement that has been removed
+     */
+    public void serviceElementRemoved(OpStringManager opMgr, ServiceElement sElem) {
+        if(!canJournal(opMgr))
             return;
-        if(!opMgr.isActive())
+        journal(JournalRecord.elementRemoved(opMgr.getName(), sElem));
+    }
+
+    /**
+     * Notification that the planned number of instances of a ServiceElement
+     * has changed, as a result of service instances being added or removed
+     *
+     * @param opMgr The OpStringManager that has changed
+     * @param sElem The ServiceElement with the new planned value
+     */
+    public void plannedChanged(OpStringManager opMgr, ServiceElement sElem) {
+        if(!canJournal(opMgr))
             return;
+        journal(JournalRecord.plannedChanged(opMgr.getName(), sElem));
+    }
+
+    private boolean canJournal(OpStringManager opMgr) {
+        if(store == null)
+            return false;
+        /* Changes made while deploying a recovered OperationalString restore
+         * state that is already in the log */
+        if(opStringLogHandler.isProcessingThread() && opStringLogHandler.isReplaying(opMgr.getName()))
+            return false;
+        return opMgr.isActive();
+    }
+
+    private void journal(JournalRecord record) {
         try {
-            store.acquireMutatorLock();
-            int action = (remove? RecordHolder.REMOVED:RecordHolder.MODIFIED);
-            store.update(new MarshalledObject<RecordHolder>(
-                                   new RecordHolder(opMgr.doGetOperationalString(),
-                                                    action)));
-        } catch(IllegalStateException ise) {
-            logger.log(Level.WARNING,
-                       "OperationalString state change notification", ise);
+            committer.commit(record);
+            if(logger.isLoggable(Level.FINEST))
+                logger.finest("Journaled "+record);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warning("Interrupted while journaling "+record);
         } catch(Throwable t) {
-            logger.log(Level.WARNING,
-                       "OperationalString state change notification", t);
-        } finally {
-            store.releaseMutatorLock();
+            logger.log(Level.WARNING, "Journaling "+record, t);
         }
     }
 
@@ -84,7 +192,100 @@ public class StateManager {
         opStringLogHandler.processUpdatedOpStrings();
     }
 
+    /**
+     * Process recovered OperationalStrings in the background. Recovered state
+     * is rebuilt before this method returns, the rebuilt OperationalStrings
+     * are then deployed by a separate thread, allowing the ProvisionMonitor
+     * to serve requests while recovery completes. Progress can be obtained
+     * using {@link #getRecoveredCount()} and {@link #getRecoveryTotal()}.
+     */
+    public void startRecovery() {
+        opStringLogHandler.rebuild();
+        Thread recovery = new Thread(OpStringLogHandler.class.getName()+":Recovery") {
+            public void run() {
+                try {
+                    processRecoveredOpStrings();
+                    processUpdatedOpStrings();
+                } catch(Throwable t) {
+                    logger.log(Level.WARNING, "Processing recovered OperationalStrings", t);
+                }
+            }
+        };
+        recovery.setDaemon(true);
+        recovery.start();
+    }
+
     public boolean inRecovery() {
         return opStringLogHandler.inRecovery();
     }
+
+    /**
+     * Determine if the named OperationalString is being recovered. Interface
+     * classes for the services of a recovering OperationalString are loaded
+     * when first needed.
+     *
+     * @param name The name of an OperationalString
+     *
+     * @return <code>true</code> if the OperationalString has been recovered
+     * and has not yet been processed
+     */
+    public boolean isRecovering(String name) {
+        return opStringLogHandler.isReplaying(name);
+    }
+
+    /**
+     * Undeploy a recovered OperationalString that has not yet been processed.
+     * The OperationalString will not be deployed by the recovery, and its
+     * removal is journaled.
+     *
+     * @param name The name of an OperationalString
+     *
+     * @return <code>true</code> if the OperationalString was recovered and
+     * will not be deployed, <code>false</code> if it was not recovered, or has
+     * already been deployed by the recovery
+     */
+    public boolean cancelRecovery(String name) {
+        if(store == null || !opStringLogHandler.cancelRecovery(name))
+            return false;
+        journal(JournalRecord.opStringRemoved(name));
+        return true;
+    }
+
+    /**
+     * Determine if all recovered OperationalStrings have been processed
+     *
+     * @return <code>true</code> if all recovered OperationalStrings have been
+     * processed, or if there was nothing to recover
+     */
+    public boolean isRecoveryComplete() {
+        return !opStringLogHandler.isReplaying();
+    }
+
+    /**
+     * Get the number of recovered OperationalStrings to process
+     *
+     * @return The number of recovered OperationalStrings to process
+     */
+    public int getRecoveryTotal() {
+        return opStringLogHandler.getRecoveryTotal();
+    }
+
+    /**
+     * Get the number of recovered OperationalStrings that have been processed
+     *
+     * @return The number of recovered OperationalStrings that have been processed
+     */
+    public int getRecoveredCount() {
+        return opStringLogHandler.getRecoveredCount();
+    }
+
+    /**
+     * Stop the threads used to journal state changes and take snapshots
+     */
+    public void terminate() {
+        if(committer!=null)
+            committer.interrupt();
+        if(snapshotter!=null)
+            snapshotter.interrupt();
+    }
 }
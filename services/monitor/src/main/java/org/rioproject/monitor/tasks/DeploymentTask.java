@@ -20,16 +20,16 @@ import org.rioproject.core.Schedule;
 import org.rioproject.monitor.DeployAdmin;
 import org.rioproject.monitor.OpStringManager;
 import org.rioproject.monitor.ServiceElementManager;
+import org.rioproject.resources.util.ScheduledTask;
 
 import java.util.Date;
-import java.util.TimerTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Scheduled Task which will control deployment scheduling
  */
-public class DeploymentTask extends TimerTask {
+public class DeploymentTask extends ScheduledTask {
     private int repeats;
     private DeployAdmin deployAdmin;
     private OpStringManager opMgr;
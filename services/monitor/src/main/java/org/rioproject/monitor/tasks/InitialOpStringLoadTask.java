@@ -22,19 +22,19 @@ import org.rioproject.monitor.OpStringMangerController;
 import org.rioproject.monitor.ProvisionMonitor;
 import org.rioproject.monitor.peer.ProvisionMonitorPeer;
 import org.rioproject.monitor.persistence.StateManager;
+import org.rioproject.resources.util.ScheduledTask;
 
 import java.io.File;
 import java.net.URL;
 import java.rmi.RemoteException;
 import java.util.Map;
-import java.util.TimerTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Scheduled Task which will load configured OperationalString files
  */
-public class InitialOpStringLoadTask extends TimerTask {
+public class InitialOpStringLoadTask extends ScheduledTask {
     private Configuration config;
     private ProvisionMonitorPeer provisionMonitorPeer;
     private StateManager stateManager;
@@ -19,15 +19,15 @@ import org.rioproject.core.ServiceBeanInstance;
 import org.rioproject.core.ServiceElement;
 import org.rioproject.core.ServiceProvisionListener;
 import org.rioproject.monitor.OpStringManager;
+import org.rioproject.resources.util.ScheduledTask;
 
-import java.util.TimerTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * This class represents a scheduled redeployment request
  */
-public class RedeploymentTask extends TimerTask {
+public class RedeploymentTask extends ScheduledTask {
     OpStringManager opMgr;
     ServiceBeanInstance instance;
     ServiceElement sElem;
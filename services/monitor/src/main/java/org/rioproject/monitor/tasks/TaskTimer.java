@@ -15,21 +15,25 @@
  */
 package org.rioproject.monitor.tasks;
 
-import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
+import org.rioproject.resources.util.TaskScheduler;
+
+import java.util.*;
+import java.util.concurrent.Future;
 
 /**
- * utility for dispatching tasks
+ * Utility for dispatching the monitor's tasks. Tasks are run by the shared
+ * {@link TaskScheduler}, rather than by a dedicated <tt>Timer</tt> thread, so
+ * a long running task does not delay the tasks scheduled after it.
  */
 public class TaskTimer {
     private static TaskTimer instance;
-    private final Timer taskTimer = new Timer(true);
+    private final TaskScheduler scheduler = TaskScheduler.getInstance();
+    private final List<Future<?>> scheduled = new LinkedList<Future<?>>();
 
     /**
-     * Get an instance of the SigarHelper.
+     * Get an instance of the TaskTimer.
      *
-     * @return An instance of the SigarHelper.
+     * @return An instance of the TaskTimer.
      */
     public static synchronized TaskTimer getInstance() {
         if(instance==null)
@@ -38,18 +42,35 @@ public class TaskTimer {
     }
 
     public void schedule(TimerTask task, long delay) {
-        taskTimer.schedule(task, delay);
+        add(scheduler.schedule(task, delay));
     }
 
     public void schedule(TimerTask task, Date time) {
-        taskTimer.schedule(task, time);
+        add(scheduler.schedule(task, time));
     }
 
     public void scheduleAtFixedRate(TimerTask task, Date firstTime, long period) {
-        taskTimer.scheduleAtFixedRate(task, firstTime, period);
+        add(scheduler.scheduleAtFixedRate(task, firstTime, period));
     }
 
+    /**
+     * Cancel the tasks scheduled by the TaskTimer
+     */
     public void cancel() {
-        taskTimer.cancel();
+        synchronized(scheduled) {
+            for(Future<?> future : scheduled)
+                future.cancel(false);
+            scheduled.clear();
+        }
+    }
+
+    private void add(Future<?> future) {
+        synchronized(scheduled) {
+            for(Iterator<Future<?>> it = scheduled.iterator(); it.hasNext();) {
+                if(it.next().isDone())
+                    it.remove();
+            }
+            scheduled.add(future);
+        }
     }
 }
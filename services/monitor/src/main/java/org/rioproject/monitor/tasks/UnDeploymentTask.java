@@ -20,15 +20,15 @@ import org.rioproject.core.OperationalStringException;
 import org.rioproject.monitor.DeployAdmin;
 import org.rioproject.monitor.OpStringManager;
 import org.rioproject.monitor.ServiceElementManager;
+import org.rioproject.resources.util.ScheduledTask;
 
-import java.util.TimerTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Scheduled Task which will undeploy an OperationalString
  */
-public class UnDeploymentTask extends TimerTask {
+public class UnDeploymentTask extends ScheduledTask {
     private OpStringManager opMgr;
     private boolean undeploy;
     DeployAdmin deployAdmin;
@@ -0,0 +1,208 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.monitor;
+
+import junit.framework.Assert;
+import net.jini.config.EmptyConfiguration;
+import net.jini.id.UuidFactory;
+import net.jini.io.MarshalledInstance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rioproject.core.*;
+import org.rioproject.event.DispatchEventHandler;
+import org.rioproject.opstring.OpString;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+/**
+ * Test scaling a dynamic service with the {@link DefaultOpStringManager}.
+ * There are no compute resources, so each provision request dispatched
+ * fails and is added to the pending manager.
+ */
+public class DefaultOpStringManagerScaleTest {
+    private ServiceProvisioner provisioner;
+    private DefaultOpStringManager opStringManager;
+    private ServiceElement sElem;
+
+    @Before
+    public void createManager() throws Exception {
+        ProvisionMonitor monitor = createProvisionMonitor();
+        provisioner = new ServiceProvisioner(EmptyConfiguration.INSTANCE,
+                                             monitor,
+                                             new DispatchEventHandler(ProvisionFailureEvent.getEventDescriptor()),
+                                             null);
+        sElem = new ServiceElement();
+        ServiceBeanConfig sbConfig = new ServiceBeanConfig();
+        sbConfig.setName("x");
+        sbConfig.setOperationalStringName("scale");
+        sElem.setServiceBeanConfig(sbConfig);
+        sElem.setProvisionType(ServiceElement.ProvisionType.DYNAMIC);
+        sElem.setExportBundles(new ClassBundle(Runnable.class.getName()));
+        sElem.setPlanned(0);
+        OpString opString = new OpString("scale", null);
+        opString.addService(sElem);
+        opStringManager = new DefaultOpStringManager(opString,
+                                                     null,
+                                                     true,
+                                                     EmptyConfiguration.INSTANCE,
+                                                     new OpStringMangerController());
+        opStringManager.setServiceProxy(monitor);
+        opStringManager.setEventProcessor(new ProvisionMonitorEventProcessor(EmptyConfiguration.INSTANCE));
+        Map<String, Throwable> errors = opStringManager.init(true, provisioner, UuidFactory.generate(), null);
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    @After
+    public void terminate() {
+        opStringManager.terminate(false);
+        provisioner.terminate();
+    }
+
+    @Test
+    public void testScaleNotifiesOnlyTheAddedInstances() throws Exception {
+        Listener first = new Listener();
+        Assert.assertEquals(2, opStringManager.setPlanned(sElem, 2, first));
+        first.assertCompleted(0, 2);
+
+        Listener second = new Listener();
+        Assert.assertEquals(3, opStringManager.scale(sElem, 3, true, second));
+        second.assertCompleted(0, 3);
+        Assert.assertEquals("Pending requests were notified again", 1, first.notified);
+        Assert.assertEquals(5, getServiceElementManager().getServiceElement().getPlanned());
+        Assert.assertEquals(5, opStringManager.getPendingCount(sElem));
+
+        /* The pending requests keep the tracker of the request that
+         * dispatched them */
+        ProvisionRequest[] pending = provisioner.getPendingManager().removeServiceElement(sElem);
+        Assert.assertEquals(5, pending.length);
+        Map<ServiceProvisionListener, Integer> counts = new IdentityHashMap<ServiceProvisionListener, Integer>();
+        for(ProvisionRequest request : pending) {
+            Assert.assertTrue(request.svcProvisionListener instanceof ScaleProvisionTracker);
+            Integer count = counts.get(request.svcProvisionListener);
+            counts.put(request.svcProvisionListener, count==null?1:count+1);
+        }
+        Assert.assertEquals(new HashSet<Integer>(Arrays.asList(2, 3)), new HashSet<Integer>(counts.values()));
+    }
+
+    @Test
+    public void testScaleByZeroCompletes() throws Exception {
+        Listener listener = new Listener();
+        Assert.assertEquals(0, opStringManager.scale(sElem, 0, true, listener));
+        listener.assertCompleted(0, 0);
+    }
+
+    @Test
+    public void testSetPlannedScalesToTarget() throws Exception {
+        Assert.assertEquals(4, opStringManager.setPlanned(sElem, 4, null));
+        Assert.assertEquals(4, opStringManager.getPendingCount(sElem));
+        Assert.assertEquals(-3, opStringManager.setPlanned(sElem, 1, null));
+        Assert.assertEquals(1, opStringManager.getPendingCount(sElem));
+        Assert.assertEquals(1, getServiceElementManager().getServiceElement().getPlanned());
+        Listener listener = new Listener();
+        Assert.assertEquals(0, opStringManager.setPlanned(sElem, 1, listener));
+        listener.assertCompleted(0, 0);
+    }
+
+    @Test
+    public void testDecrementTrimsPendingRequestsFirst() throws Exception {
+        ServiceElementManager svcElemMgr = getServiceElementManager();
+        ServiceBeanInstance instance1 = createInstance(svcElemMgr.getNextInstanceID());
+        ServiceBeanInstance instance2 = createInstance(svcElemMgr.getNextInstanceID());
+        svcElemMgr.addServiceBeanInstance(instance1);
+        svcElemMgr.addServiceBeanInstance(instance2);
+        /* Requests are only dispatched for the instances not already running */
+        Assert.assertEquals(4, opStringManager.setPlanned(sElem, 4, null));
+        Assert.assertEquals(2, svcElemMgr.getPendingCount());
+
+        List<ServiceBeanInstance> removed = svcElemMgr.decrement(3, true, false);
+        Assert.assertEquals(0, svcElemMgr.getPendingCount());
+        Assert.assertEquals(Collections.singletonList(instance2), removed);
+        Assert.assertEquals(1, svcElemMgr.getServiceElement().getPlanned());
+        Assert.assertTrue(svcElemMgr.hasServiceBeanInstance(instance1));
+        Assert.assertFalse(svcElemMgr.hasServiceBeanInstance(instance2));
+
+        /* Without a mandate the number to maintain stays at the initial number */
+        Assert.assertTrue(svcElemMgr.decrement(1, false, false).isEmpty());
+        Assert.assertEquals(1, svcElemMgr.getServiceElement().getPlanned());
+        Assert.assertTrue(svcElemMgr.hasServiceBeanInstance(instance1));
+    }
+
+    private ServiceElementManager getServiceElementManager() {
+        ServiceElementManager svcElemMgr = opStringManager.getServiceElementManager(sElem);
+        Assert.assertNotNull(svcElemMgr);
+        return svcElemMgr;
+    }
+
+    /*
+     * The source of events, not otherwise used
+     */
+    static ProvisionMonitor createProvisionMonitor() {
+        return (ProvisionMonitor)Proxy.newProxyInstance(ProvisionMonitor.class.getClassLoader(),
+                                                        new Class[]{ProvisionMonitor.class},
+                                                        new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if(method.getName().equals("hashCode"))
+                    return System.identityHashCode(proxy);
+                if(method.getName().equals("equals"))
+                    return proxy==args[0];
+                if(method.getName().equals("toString"))
+                    return "ProvisionMonitor";
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private ServiceBeanInstance createInstance(long instanceID) throws IOException {
+        Map<String, Object> parms = new HashMap<String, Object>();
+        parms.put(ServiceBeanConfig.NAME, "x");
+        parms.put(ServiceBeanConfig.OPSTRING, "scale");
+        parms.put(ServiceBeanConfig.INSTANCE_ID, instanceID);
+        return new ServiceBeanInstance(UuidFactory.generate(),
+                                       new MarshalledInstance("x-"+instanceID),
+                                       new ServiceBeanConfig(parms, new String[0]),
+                                       null,
+                                       UuidFactory.generate());
+    }
+
+    static class Listener implements BulkProvisionListener {
+        int notified;
+        ServiceBeanInstance[] instances;
+        int failed;
+
+        public void completed(ServiceElement sElem, ServiceBeanInstance[] instances, int failed) {
+            notified++;
+            this.instances = instances;
+            this.failed = failed;
+        }
+
+        public void succeeded(ServiceBeanInstance instance) {
+        }
+
+        public void failed(ServiceElement sElem, boolean resubmitted) {
+        }
+
+        void assertCompleted(int provisioned, int failed) {
+            Assert.assertEquals(1, notified);
+            Assert.assertEquals(provisioned, instances.length);
+            Assert.assertEquals(failed, this.failed);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.monitor;
+
+import junit.framework.Assert;
+import net.jini.config.Configuration;
+import net.jini.config.EmptyConfiguration;
+import net.jini.id.UuidFactory;
+import net.jini.io.MarshalledInstance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rioproject.config.DynamicConfiguration;
+import org.rioproject.core.*;
+import org.rioproject.event.DispatchEventHandler;
+import org.rioproject.opstring.OpString;
+import org.rioproject.sla.SLA;
+import org.rioproject.sla.ScalingPolicyHandler;
+import org.rioproject.sla.ServiceLevelAgreements;
+import org.rioproject.watch.WatchDataSource;
+import org.rioproject.watch.WatchDataSourceRegistry;
+import org.rioproject.watch.Watchable;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Test the {@link ElementWatchAggregator}
+ */
+public class ElementWatchAggregatorTest {
+    private ProvisionMonitor monitor;
+    private ServiceProvisioner provisioner;
+    private DefaultOpStringManager opStringManager;
+    private ServiceElement sElem;
+    private ElementWatchAggregator aggregator;
+    private final WatchDataSourceRegistry watchRegistry = new WatchDataSourceRegistry();
+    private final List<ElementWatchAggregator.ElementWatches> elementWatches =
+        new ArrayList<ElementWatchAggregator.ElementWatches>();
+
+    @Before
+    public void createManager() throws Exception {
+        monitor = DefaultOpStringManagerScaleTest.createProvisionMonitor();
+        provisioner = new ServiceProvisioner(EmptyConfiguration.INSTANCE,
+                                             monitor,
+                                             new DispatchEventHandler(ProvisionFailureEvent.getEventDescriptor()),
+                                             null);
+        sElem = new ServiceElement();
+        ServiceBeanConfig sbConfig = new ServiceBeanConfig();
+        sbConfig.setName("x");
+        sbConfig.setOperationalStringName("aggregate");
+        sElem.setServiceBeanConfig(sbConfig);
+        sElem.setProvisionType(ServiceElement.ProvisionType.DYNAMIC);
+        sElem.setExportBundles(new ClassBundle(Runnable.class.getName()));
+        sElem.setServiceLevelAgreements(new ServiceLevelAgreements());
+        sElem.setPlanned(0);
+        WatchableProxy.fetched.clear();
+    }
+
+    @After
+    public void terminate() {
+        for(ElementWatchAggregator.ElementWatches ew : elementWatches)
+            ew.close();
+        if(opStringManager!=null)
+            opStringManager.terminate(false);
+        provisioner.terminate();
+    }
+
+    @Test
+    public void testParseAggregate() {
+        assertParsed("p95(latency)", "p95", "latency");
+        assertParsed("sum(requests)", "sum", "requests");
+        assertParsed("mean(a(b))", "mean", "a(b)");
+        Assert.assertNull(ElementWatchAggregator.parseAggregate("latency"));
+        Assert.assertNull(ElementWatchAggregator.parseAggregate("median(latency)"));
+        Assert.assertNull(ElementWatchAggregator.parseAggregate("p95()"));
+        Assert.assertNull(ElementWatchAggregator.parseAggregate("(latency)"));
+        Assert.assertNull(ElementWatchAggregator.parseAggregate("p95(latency"));
+        Assert.assertNull(ElementWatchAggregator.parseAggregate("p95latency)"));
+    }
+
+    @Test
+    public void testElementWithoutAggregateSLAIsNotAggregated() throws Exception {
+        sElem.getServiceLevelAgreements().addServiceSLA(new SLA("load", 0, 10));
+        ServiceElementManager svcElemMgr = createServiceElementManager();
+        svcElemMgr.addServiceBeanInstance(createInstance(svcElemMgr.getNextInstanceID(), new WatchableProxy()));
+
+        ElementWatchAggregator.ElementWatches ew = reconcile(svcElemMgr, EmptyConfiguration.INSTANCE);
+        Assert.assertTrue(ew.watches.isEmpty());
+        Assert.assertTrue(ew.instances.isEmpty());
+        Assert.assertTrue(WatchableProxy.fetched.isEmpty());
+    }
+
+    @Test
+    public void testOnlyAggregateSLAWatchesAreAggregated() throws Exception {
+        sElem.getServiceLevelAgreements().addServiceSLA(new SLA("load", 0, 10));
+        sElem.getServiceLevelAgreements().addServiceSLA(new SLA("p95(latency)", 0, 100));
+        ServiceElementManager svcElemMgr = createServiceElementManager();
+        svcElemMgr.addServiceBeanInstance(createInstance(svcElemMgr.getNextInstanceID(), new WatchableProxy()));
+
+        ElementWatchAggregator.ElementWatches ew = reconcile(svcElemMgr, EmptyConfiguration.INSTANCE);
+        Assert.assertEquals(Collections.singleton("latency"), ew.watches.keySet());
+        Assert.assertEquals(Collections.singletonList("latency"), WatchableProxy.fetched);
+        Assert.assertNotNull(watchRegistry.findWatch("aggregate/x/p95(latency)"));
+        Assert.assertNull(watchRegistry.findWatch("aggregate/x/p95(load)"));
+    }
+
+    @Test
+    public void testAllWatchesAreAggregatedWhenEnabled() throws Exception {
+        sElem.getServiceLevelAgreements().addServiceSLA(new SLA("load", 0, 10));
+        sElem.getServiceLevelAgreements().addServiceSLA(new SLA("p95(latency)", 0, 100));
+        ServiceElementManager svcElemMgr = createServiceElementManager();
+        svcElemMgr.addServiceBeanInstance(createInstance(svcElemMgr.getNextInstanceID(), new WatchableProxy()));
+
+        DynamicConfiguration config = new DynamicConfiguration();
+        config.setEntry(ProvisionMonitorImpl.CONFIG_COMPONENT, "aggregateAllWatches", boolean.class, true);
+        ElementWatchAggregator.ElementWatches ew = reconcile(svcElemMgr, config);
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("load", "latency")), ew.watches.keySet());
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("load", "latency")),
+                            new HashSet<String>(WatchableProxy.fetched));
+    }
+
+    @Test
+    public void testAggregateSLAScalesElement() throws Exception {
+        SLA sla = new SLA("mean(load)", 5, 10);
+        sla.setSlaPolicyHandler(ScalingPolicyHandler.class.getName());
+        sElem.getServiceLevelAgreements().addServiceSLA(sla);
+        ServiceElementManager svcElemMgr = createServiceElementManager();
+        svcElemMgr.addServiceBeanInstance(createInstance(svcElemMgr.getNextInstanceID(), "x"));
+        svcElemMgr.addServiceBeanInstance(createInstance(svcElemMgr.getNextInstanceID(), "x"));
+        Assert.assertEquals(2, opStringManager.setPlanned(sElem, 2, null));
+
+        DynamicConfiguration config = new DynamicConfiguration();
+        config.setEntry(ProvisionMonitorImpl.CONFIG_COMPONENT, "maxScalingStep", 3);
+        ElementWatchAggregator.ElementWatches ew = reconcile(svcElemMgr, config);
+        ElementWatchAggregator.AggregateSLA aggregateSLA = ew.watches.get("load").slas.get("mean");
+        Assert.assertNotNull(aggregateSLA);
+
+        /* Twice the upper threshold with 2 instances, add 2 more */
+        aggregateSLA.gauge.addValue(20);
+        awaitPlanned(svcElemMgr, 4);
+        Assert.assertEquals(2, svcElemMgr.getPendingCount());
+
+        /* Below the lower threshold, the pending requests are trimmed first */
+        aggregateSLA.gauge.addValue(1);
+        awaitPlanned(svcElemMgr, 3);
+        Assert.assertEquals(1, svcElemMgr.getPendingCount());
+        Assert.assertEquals(2, svcElemMgr.getServiceBeanInstances().length);
+    }
+
+    private void assertParsed(String identifier, String statistic, String watch) {
+        String[] parsed = ElementWatchAggregator.parseAggregate(identifier);
+        Assert.assertNotNull(identifier, parsed);
+        Assert.assertEquals(statistic, parsed[0]);
+        Assert.assertEquals(watch, parsed[1]);
+    }
+
+    private void awaitPlanned(ServiceElementManager svcElemMgr, int planned) throws InterruptedException {
+        long deadline = System.currentTimeMillis()+10*1000;
+        while(svcElemMgr.getServiceElement().getPlanned()!=planned && System.currentTimeMillis()<deadline)
+            Thread.sleep(10);
+        Assert.assertEquals(planned, svcElemMgr.getServiceElement().getPlanned());
+    }
+
+    private ElementWatchAggregator.ElementWatches reconcile(ServiceElementManager svcElemMgr, Configuration config) {
+        aggregator = new ElementWatchAggregator(null, watchRegistry, null, monitor, "127.0.0.1", config);
+        ElementWatchAggregator.ElementWatches ew = aggregator.new ElementWatches("aggregate/x",
+                                                                                 opStringManager,
+                                                                                 svcElemMgr);
+        elementWatches.add(ew);
+        ew.reconcile();
+        return ew;
+    }
+
+    private ServiceElementManager createServiceElementManager() throws Exception {
+        OpString opString = new OpString("aggregate", null);
+        opString.addService(sElem);
+        opStringManager = new DefaultOpStringManager(opString,
+                                                     null,
+                                                     true,
+                                                     EmptyConfiguration.INSTANCE,
+                                                     new OpStringMangerController());
+        opStringManager.setServiceProxy(monitor);
+        opStringManager.setEventProcessor(new ProvisionMonitorEventProcessor(EmptyConfiguration.INSTANCE));
+        Map<String, Throwable> errors = opStringManager.init(true, provisioner, UuidFactory.generate(), null);
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+        ServiceElementManager svcElemMgr = opStringManager.getServiceElementManager(sElem);
+        Assert.assertNotNull(svcElemMgr);
+        return svcElemMgr;
+    }
+
+    private ServiceBeanInstance createInstance(long instanceID, Object proxy) throws IOException {
+        Map<String, Object> parms = new HashMap<String, Object>();
+        parms.put(ServiceBeanConfig.NAME, "x");
+        parms.put(ServiceBeanConfig.OPSTRING, "aggregate");
+        parms.put(ServiceBeanConfig.INSTANCE_ID, instanceID);
+        return new ServiceBeanInstance(UuidFactory.generate(),
+                                       new MarshalledInstance(proxy),
+                                       new ServiceBeanConfig(parms, new String[0]),
+                                       null,
+                                       UuidFactory.generate());
+    }
+
+    /**
+     * A service proxy recording the watches fetched, which has none
+     */
+    static class WatchableProxy implements Watchable, Serializable {
+        static final List<String> fetched = Collections.synchronizedList(new ArrayList<String>());
+
+        public WatchDataSource[] fetch() {
+            return new WatchDataSource[0];
+        }
+
+        public WatchDataSource fetch(String id) {
+            fetched.add(id);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.monitor;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.rioproject.jsb.ServiceElementUtil;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Test the {@link InstanceIDAllocator}
+ */
+public class InstanceIDAllocatorTest {
+
+    @Test
+    public void testNextAllocatesLowestFreeID() {
+        InstanceIDAllocator allocator = new InstanceIDAllocator();
+        Assert.assertTrue(allocator.isEmpty());
+        Assert.assertEquals(1, allocator.next());
+        Assert.assertEquals(2, allocator.next());
+        Assert.assertEquals(3, allocator.next());
+        Assert.assertTrue(allocator.remove(2L));
+        Assert.assertFalse(allocator.contains(2L));
+        Assert.assertEquals(2, allocator.next());
+        Assert.assertEquals(4, allocator.next());
+        Assert.assertTrue(Arrays.equals(new long[]{1, 2, 3, 4}, allocator.toArray()));
+    }
+
+    @Test
+    public void testAddAndRemoveIgnoreUnknownIDs() {
+        InstanceIDAllocator allocator = new InstanceIDAllocator();
+        Assert.assertFalse(allocator.add(null));
+        Assert.assertTrue(allocator.add(1L));
+        Assert.assertFalse(allocator.add(1L));
+        Assert.assertFalse(allocator.remove(null));
+        Assert.assertFalse(allocator.remove(7L));
+        Assert.assertFalse(allocator.contains(null));
+        /* An instance without an assigned ID has an ID of 0 */
+        Assert.assertTrue(allocator.add(0L));
+        Assert.assertEquals(2, allocator.next());
+        Assert.assertTrue(allocator.remove(0L));
+        Assert.assertEquals(3, allocator.next());
+    }
+
+    @Test
+    public void testLargeIDIsAddedWithoutRecordingEachFreeID() {
+        InstanceIDAllocator allocator = new InstanceIDAllocator();
+        long large = 1000L*1000*1000*1000;
+        long begin = System.currentTimeMillis();
+        Assert.assertTrue(allocator.add(large));
+        Assert.assertTrue(allocator.add(large/2));
+        Assert.assertTrue(allocator.remove(large/2));
+        Assert.assertTrue(System.currentTimeMillis()-begin<1000);
+        Assert.assertEquals(1, allocator.next());
+        Assert.assertEquals(2, allocator.next());
+        Assert.assertTrue(Arrays.equals(new long[]{1, 2, large}, allocator.toArray()));
+        Assert.assertTrue(allocator.remove(large));
+        Assert.assertEquals("Removing the highest ID releases the free IDs below it", 3, allocator.next());
+    }
+
+    @Test
+    public void testAddSplitsFreeRange() {
+        InstanceIDAllocator allocator = new InstanceIDAllocator();
+        Assert.assertTrue(allocator.add(10L));
+        Assert.assertTrue(allocator.add(5L));
+        Assert.assertTrue(allocator.add(1L));
+        Assert.assertTrue(allocator.add(9L));
+        long[] expected = {2, 3, 4, 6, 7, 8, 11};
+        for(long id : expected)
+            Assert.assertEquals(id, allocator.next());
+    }
+
+    @Test
+    public void testRemoveMergesFreeRanges() {
+        InstanceIDAllocator allocator = new InstanceIDAllocator();
+        for(int i=0; i<10; i++)
+            allocator.next();
+        Assert.assertTrue(allocator.remove(4L));
+        Assert.assertTrue(allocator.remove(6L));
+        Assert.assertTrue(allocator.remove(5L));
+        Assert.assertTrue(allocator.remove(9L));
+        Assert.assertTrue(allocator.remove(10L));
+        Assert.assertTrue(allocator.remove(8L));
+        Assert.assertTrue(allocator.remove(7L));
+        /* The highest allocated ID is now 3 */
+        long[] expected = {4, 5, 6, 7, 8, 9, 10, 11};
+        for(long id : expected)
+            Assert.assertEquals(id, allocator.next());
+    }
+
+    @Test
+    public void testMatchesServiceElementUtil() {
+        InstanceIDAllocator allocator = new InstanceIDAllocator();
+        Random random = new Random(42);
+        for(int i=0; i<5000; i++) {
+            long[] allocated = allocator.toArray();
+            switch(random.nextInt(3)) {
+                case 0:
+                    Assert.assertEquals(ServiceElementUtil.getNextID(allocated), allocator.next());
+                    break;
+                case 1: {
+                    long id = 1+random.nextInt(200);
+                    Assert.assertEquals(Arrays.binarySearch(allocated, id)<0, allocator.add(id));
+                    break;
+                }
+                default: {
+                    long id = 1+random.nextInt(200);
+                    Assert.assertEquals(Arrays.binarySearch(allocated, id)>=0, allocator.remove(id));
+                }
+            }
+        }
+    }
+}
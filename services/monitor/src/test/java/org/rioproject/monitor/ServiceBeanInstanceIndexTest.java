@@ -0,0 +1,148 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.monitor;
+
+import junit.framework.Assert;
+import net.jini.id.Uuid;
+import net.jini.id.UuidFactory;
+import net.jini.io.MarshalledInstance;
+import org.junit.Test;
+import org.rioproject.core.ServiceBeanConfig;
+import org.rioproject.core.ServiceBeanInstance;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test the {@link ServiceBeanInstanceIndex}
+ */
+public class ServiceBeanInstanceIndexTest {
+
+    @Test
+    public void testInstancesAreKeyedByUuid() throws IOException {
+        ServiceBeanInstanceIndex index = new ServiceBeanInstanceIndex();
+        ServiceBeanInstance sbi = createInstance(new TestProxy("a"), 1);
+        Assert.assertNull(index.putIfAbsent(sbi));
+        Assert.assertSame(sbi, index.putIfAbsent(createInstance(sbi.getServiceBeanID(), new TestProxy("a"), 1, null)));
+        Assert.assertTrue(index.contains(sbi.getServiceBeanID()));
+        Assert.assertSame(sbi, index.get(sbi.getServiceBeanID()));
+        Assert.assertNull(index.get(null));
+        Assert.assertFalse(index.contains(null));
+        Assert.assertEquals(1, index.size());
+
+        ServiceBeanInstance updated = createInstance(sbi.getServiceBeanID(), new TestProxy("a"), 1, "10.0.0.1");
+        Assert.assertTrue(index.replace(sbi, updated));
+        Assert.assertSame(updated, index.get(sbi.getServiceBeanID()));
+        Assert.assertFalse(index.replace(createInstance(new TestProxy("b"), 2)));
+
+        Assert.assertSame(updated, index.remove(sbi.getServiceBeanID()));
+        Assert.assertNull(index.remove(sbi.getServiceBeanID()));
+        Assert.assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testProxyIsMatchedWithoutUnmarshalling() throws IOException {
+        ServiceBeanInstanceIndex index = new ServiceBeanInstanceIndex();
+        Assert.assertNull(index.getUuid(new TestProxy("a")));
+        ServiceBeanInstance a = createInstance(new TestProxy("a"), 1);
+        ServiceBeanInstance b = createInstance(new TestProxy("b"), 2);
+        index.put(a);
+        index.put(b);
+        TestProxy.unmarshalled = 0;
+        Assert.assertEquals(a.getServiceBeanID(), index.getUuid(new TestProxy("a")));
+        Assert.assertEquals(b.getServiceBeanID(), index.getUuid(new TestProxy("b")));
+        Assert.assertNull(index.getUuid(new TestProxy("c")));
+        Assert.assertEquals(0, TestProxy.unmarshalled);
+
+        /* An updated proxy replaces the previous one */
+        index.put(createInstance(a.getServiceBeanID(), new TestProxy("a2"), 1, null));
+        Assert.assertNull(index.getUuid(new TestProxy("a")));
+        Assert.assertEquals(a.getServiceBeanID(), index.getUuid(new TestProxy("a2")));
+
+        index.remove(b.getServiceBeanID());
+        Assert.assertNull(index.getUuid(new TestProxy("b")));
+    }
+
+    @Test
+    public void testInstancesAreSortedByInstanceID() throws IOException {
+        ServiceBeanInstanceIndex index = new ServiceBeanInstanceIndex();
+        Assert.assertEquals(0, index.toArray().length);
+        ServiceBeanInstance three = createInstance(new TestProxy("3"), 3);
+        ServiceBeanInstance one = createInstance(new TestProxy("1"), 1);
+        ServiceBeanInstance two = createInstance(new TestProxy("2"), 2);
+        index.put(three);
+        index.put(one);
+        index.put(two);
+        ServiceBeanInstance[] sorted = index.toArray();
+        Assert.assertEquals(3, sorted.length);
+        Assert.assertSame(one, sorted[0]);
+        Assert.assertSame(two, sorted[1]);
+        Assert.assertSame(three, sorted[2]);
+
+        /* A new array is returned each time */
+        sorted[0] = null;
+        Assert.assertSame(one, index.toArray()[0]);
+
+        /* Changes invalidate the sorted instances */
+        index.remove(one.getServiceBeanID());
+        sorted = index.toArray();
+        Assert.assertEquals(2, sorted.length);
+        Assert.assertSame(two, sorted[0]);
+        ServiceBeanInstance zero = createInstance(new TestProxy("0"), 0);
+        index.putIfAbsent(zero);
+        Assert.assertSame(zero, index.toArray()[0]);
+        ServiceBeanInstance four = createInstance(zero.getServiceBeanID(), new TestProxy("0"), 4, null);
+        index.replace(four);
+        Assert.assertSame(four, index.toArray()[2]);
+    }
+
+    private static ServiceBeanInstance createInstance(Object proxy, long instanceID) throws IOException {
+        return createInstance(UuidFactory.generate(), proxy, instanceID, null);
+    }
+
+    private static ServiceBeanInstance createInstance(Uuid uuid,
+                                                      Object proxy,
+                                                      long instanceID,
+                                                      String hostAddress) throws IOException {
+        Map<String, Object> parms = new HashMap<String, Object>();
+        parms.put(ServiceBeanConfig.NAME, "test");
+        parms.put(ServiceBeanConfig.INSTANCE_ID, instanceID);
+        return new ServiceBeanInstance(uuid,
+                                       new MarshalledInstance(proxy),
+                                       new ServiceBeanConfig(parms, new String[0]),
+                                       hostAddress,
+                                       UuidFactory.generate());
+    }
+
+    /**
+     * A proxy that counts how often it is unmarshalled
+     */
+    static class TestProxy implements Serializable {
+        static int unmarshalled;
+        final String name;
+
+        TestProxy(String name) {
+            this.name = name;
+        }
+
+        private void readObject(java.io.ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            unmarshalled++;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.monitor.persistence;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.rioproject.core.OperationalString;
+import org.rioproject.core.ServiceBeanConfig;
+import org.rioproject.core.ServiceElement;
+import org.rioproject.opstring.OpString;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Test the binary encoding of {@link JournalRecord}s
+ */
+public class JournalRecordTest {
+
+    @Test
+    public void testOpStringModifiedRoundTrip() throws Exception {
+        OperationalString opString = createOpString("opstring", "a", "b");
+        JournalRecord record = roundTrip(JournalRecord.opStringModified(opString));
+        Assert.assertEquals(JournalRecord.Type.OPSTRING_MODIFIED, record.getType());
+        Assert.assertEquals("opstring", record.getOpStringName());
+        Assert.assertNull(record.getElementName());
+        OperationalString decoded = record.getOperationalString();
+        Assert.assertNotNull(decoded);
+        Assert.assertNotSame(opString, decoded);
+        Assert.assertEquals("opstring", decoded.getName());
+        Assert.assertEquals(2, decoded.getServices().length);
+        Assert.assertNull(record.getServiceElement());
+    }
+
+    @Test
+    public void testOpStringRemovedRoundTrip() throws Exception {
+        JournalRecord record = roundTrip(JournalRecord.opStringRemoved("opstring"));
+        Assert.assertEquals(JournalRecord.Type.OPSTRING_REMOVED, record.getType());
+        Assert.assertEquals("opstring", record.getOpStringName());
+        Assert.assertNull(record.decode());
+    }
+
+    @Test
+    public void testElementModifiedRoundTrip() throws Exception {
+        ServiceElement sElem = createServiceElement("opstring", "a", 4);
+        JournalRecord record = roundTrip(JournalRecord.elementModified("opstring", sElem));
+        Assert.assertEquals(JournalRecord.Type.ELEMENT_MODIFIED, record.getType());
+        Assert.assertEquals("opstring", record.getOpStringName());
+        Assert.assertEquals("a", record.getElementName());
+        ServiceElement decoded = record.getServiceElement();
+        Assert.assertNotNull(decoded);
+        Assert.assertEquals("a", decoded.getName());
+        Assert.assertEquals(4, decoded.getPlanned());
+        Assert.assertNull(record.getOperationalString());
+    }
+
+    @Test
+    public void testElementRemovedRoundTrip() throws Exception {
+        ServiceElement sElem = createServiceElement("opstring", "a", 1);
+        JournalRecord record = roundTrip(JournalRecord.elementRemoved("opstring", sElem));
+        Assert.assertEquals(JournalRecord.Type.ELEMENT_REMOVED, record.getType());
+        Assert.assertEquals("a", record.getElementName());
+        Assert.assertNull(record.decode());
+    }
+
+    @Test
+    public void testPlannedChangedRoundTrip() throws Exception {
+        ServiceElement sElem = createServiceElement("opstring", "a", 7);
+        JournalRecord record = roundTrip(JournalRecord.plannedChanged("opstring", sElem));
+        Assert.assertEquals(JournalRecord.Type.PLANNED_CHANGED, record.getType());
+        Assert.assertEquals("a", record.getElementName());
+        Assert.assertEquals(7, record.getPlanned());
+        Assert.assertNull(record.decode());
+    }
+
+    @Test
+    public void testRecordsAreReadInSequence() throws Exception {
+        ServiceElement sElem = createServiceElement("opstring", "a", 2);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        JournalRecord.plannedChanged("opstring", sElem).writeTo(out);
+        JournalRecord.elementModified("opstring", sElem).writeTo(out);
+        JournalRecord.opStringRemoved("opstring").writeTo(out);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Assert.assertEquals(JournalRecord.Type.PLANNED_CHANGED, JournalRecord.readFrom(in).getType());
+        Assert.assertEquals(JournalRecord.Type.ELEMENT_MODIFIED, JournalRecord.readFrom(in).getType());
+        Assert.assertEquals(JournalRecord.Type.OPSTRING_REMOVED, JournalRecord.readFrom(in).getType());
+        Assert.assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testTruncatedRecordIsRejected() throws Exception {
+        byte[] bytes = JournalRecord.elementModified("opstring", createServiceElement("opstring", "a", 1)).toByteArray();
+        for(int length : new int[]{0, 1, 3, bytes.length/2, bytes.length-1}) {
+            try {
+                JournalRecord.readFrom(new DataInputStream(new ByteArrayInputStream(Arrays.copyOf(bytes, length))));
+                Assert.fail("Read a record truncated to "+length+" of "+bytes.length+" bytes");
+            } catch(EOFException e) {
+                /* expected */
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptRecordIsRejected() throws Exception {
+        byte[] bytes = JournalRecord.opStringModified(createOpString("opstring", "a")).toByteArray();
+        assertRejected(corrupt(bytes, 0, (byte)0xAC), "Not a journal record");
+        assertRejected(corrupt(bytes, 1, (byte)(JournalRecord.VERSION+1)), "Unsupported journal record version");
+        assertRejected(corrupt(bytes, 2, (byte)JournalRecord.Type.values().length), "Unknown journal record type");
+        /* The payload length follows the magic, version, type and the
+         * modified-UTF encoded name (2 byte length, 8 bytes) */
+        byte[] negativeLength = bytes.clone();
+        negativeLength[13] = (byte)0x80;
+        assertRejected(negativeLength, "Invalid journal record payload length");
+    }
+
+    private void assertRejected(byte[] bytes, String message) {
+        try {
+            JournalRecord.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+            Assert.fail("Expected a corrupt record to be rejected");
+        } catch(IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+
+    private byte[] corrupt(byte[] bytes, int index, byte value) {
+        byte[] corrupt = bytes.clone();
+        corrupt[index] = value;
+        return corrupt;
+    }
+
+    private JournalRecord roundTrip(JournalRecord record) throws IOException {
+        byte[] bytes = record.toByteArray();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        JournalRecord read = JournalRecord.readFrom(in);
+        Assert.assertEquals("Record not fully read", -1, in.read());
+        Assert.assertEquals(record.toString(), read.toString());
+        return read;
+    }
+
+    static OpString createOpString(String name, String... elements) {
+        OpString opString = new OpString(name, null);
+        for(String element : elements)
+            opString.addService(createServiceElement(name, element, 1));
+        return opString;
+    }
+
+    static ServiceElement createServiceElement(String opStringName, String name, int planned) {
+        ServiceBeanConfig sbConfig = new ServiceBeanConfig();
+        sbConfig.setName(name);
+        sbConfig.setOperationalStringName(opStringName);
+        ServiceElement sElem = new ServiceElement();
+        sElem.setServiceBeanConfig(sbConfig);
+        sElem.setPlanned(planned);
+        return sElem;
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.monitor.persistence;
+
+import com.sun.jini.reliableLog.LogHandler;
+import com.sun.jini.reliableLog.ReliableLog;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rioproject.core.OperationalString;
+import org.rioproject.core.ServiceElement;
+import org.rioproject.core.ServiceProvisionListener;
+import org.rioproject.monitor.DeployAdmin;
+import org.rioproject.monitor.OpStringManager;
+import org.rioproject.monitor.OpStringMangerController;
+import org.rioproject.opstring.OpString;
+import org.rioproject.resources.persistence.PersistentStore;
+import org.rioproject.resources.persistence.StoreException;
+
+import java.io.*;
+import java.rmi.MarshalledObject;
+import java.util.*;
+
+/**
+ * Test recovering OperationalStrings from the journal written by the
+ * {@link OpStringLogHandler}
+ */
+public class OpStringLogHandlerTest {
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("journal", "test");
+        Assert.assertTrue(dir.delete());
+        Assert.assertTrue(dir.mkdir());
+    }
+
+    @After
+    public void deleteDir() {
+        File[] files = dir.listFiles();
+        if(files!=null) {
+            for(File f : files)
+                Assert.assertTrue(f.delete());
+        }
+        Assert.assertTrue(dir.delete());
+    }
+
+    @Test
+    public void testJournalIsReplayedOntoSnapshot() throws Exception {
+        RecordingController controller = new RecordingController();
+        controller.deployed.add(JournalRecordTest.createOpString("deployed", "a", "b"));
+        PersistentStore store = createStore(new OpStringLogHandler(), controller);
+        store.snapshot();
+        OpString added = JournalRecordTest.createOpString("added", "x");
+        update(store,
+               JournalRecord.plannedChanged("deployed", JournalRecordTest.createServiceElement("deployed", "a", 3)),
+               JournalRecord.elementModified("deployed", JournalRecordTest.createServiceElement("deployed", "c", 2)),
+               JournalRecord.elementRemoved("deployed", JournalRecordTest.createServiceElement("deployed", "b", 1)),
+               JournalRecord.opStringModified(added),
+               JournalRecord.opStringModified(JournalRecordTest.createOpString("removed", "y")),
+               JournalRecord.opStringRemoved("removed"));
+        store.close();
+
+        Map<String, OperationalString> recovered = recover();
+        Assert.assertEquals(recovered.keySet().toString(), 2, recovered.size());
+        OperationalString deployed = recovered.get("deployed");
+        Assert.assertEquals(3, getService(deployed, "a").getPlanned());
+        Assert.assertEquals(2, getService(deployed, "c").getPlanned());
+        Assert.assertNull(getService(deployed, "b"));
+        Assert.assertNotNull(getService(recovered.get("added"), "x"));
+    }
+
+    @Test
+    public void testSnapshotReplacesJournal() throws Exception {
+        RecordingController controller = new RecordingController();
+        PersistentStore store = createStore(new OpStringLogHandler(), controller);
+        store.snapshot();
+        update(store, JournalRecord.opStringModified(JournalRecordTest.createOpString("first", "a")));
+        controller.deployed.add(JournalRecordTest.createOpString("second", "b"));
+        store.snapshot();
+        store.close();
+
+        Map<String, OperationalString> recovered = recover();
+        Assert.assertEquals(recovered.keySet().toString(), 1, recovered.size());
+        Assert.assertNotNull(recovered.get("second"));
+    }
+
+    @Test
+    public void testBatchedUpdatesAreRecovered() throws Exception {
+        PersistentStore store = createStore(new OpStringLogHandler(), new RecordingController());
+        store.snapshot();
+        List<JournalRecord> records = new ArrayList<JournalRecord>();
+        records.add(JournalRecord.opStringModified(JournalRecordTest.createOpString("opstring", "a")));
+        for(int i=1; i<=100; i++)
+            records.add(JournalRecord.plannedChanged("opstring", JournalRecordTest.createServiceElement("opstring", "a", i)));
+        update(store, records.toArray(new JournalRecord[records.size()]));
+        store.close();
+
+        Map<String, OperationalString> recovered = recover();
+        Assert.assertEquals(100, getService(recovered.get("opstring"), "a").getPlanned());
+    }
+
+    @Test
+    public void testSnapshotIsRequestedWhenJournalExceedsThreshold() throws Exception {
+        OpStringLogHandler handler = new OpStringLogHandler();
+        handler.snapshotSizeThresh = 512;
+        CountingSnapshotThread snapshotter = new CountingSnapshotThread();
+        handler.setSnapshotter(snapshotter);
+        PersistentStore store = createStore(handler, new RecordingController());
+        store.snapshot();
+        update(store, JournalRecord.opStringRemoved("opstring"));
+        Assert.assertEquals(0, snapshotter.requests);
+        update(store, JournalRecord.opStringModified(JournalRecordTest.createOpString("opstring", "a", "b")));
+        Assert.assertEquals(1, snapshotter.requests);
+        store.snapshot();
+        update(store, JournalRecord.opStringRemoved("opstring"));
+        Assert.assertEquals("Journal size is reset by a snapshot", 1, snapshotter.requests);
+        store.close();
+    }
+
+    @Test
+    public void testLegacyLogIsRecovered() throws Exception {
+        LegacyLogHandler legacy = new LegacyLogHandler();
+        legacy.opStrings.add(JournalRecordTest.createOpString("snapshot", "a"));
+        legacy.opStrings.add(JournalRecordTest.createOpString("removed", "b"));
+        ReliableLog log = new ReliableLog(dir.getCanonicalPath(), legacy);
+        log.recover();
+        log.snapshot();
+        OpString updated = JournalRecordTest.createOpString("snapshot", "a", "c");
+        log.update(new MarshalledObject<RecordHolder>(new RecordHolder(updated, RecordHolder.MODIFIED)), true);
+        log.update(new MarshalledObject<RecordHolder>(new RecordHolder(JournalRecordTest.createOpString("removed"),
+                                                                       RecordHolder.REMOVED)), true);
+        log.update(new MarshalledObject<RecordHolder>(new RecordHolder(JournalRecordTest.createOpString("journal", "d"),
+                                                                       RecordHolder.MODIFIED)), true);
+        log.close();
+
+        Map<String, OperationalString> recovered = recover();
+        Assert.assertEquals(recovered.keySet().toString(), 2, recovered.size());
+        Assert.assertNotNull(getService(recovered.get("snapshot"), "c"));
+        Assert.assertNotNull(getService(recovered.get("journal"), "d"));
+    }
+
+    @Test
+    public void testLegacyLogIsContinuedInNewFormat() throws Exception {
+        LegacyLogHandler legacy = new LegacyLogHandler();
+        legacy.opStrings.add(JournalRecordTest.createOpString("opstring", "a"));
+        ReliableLog log = new ReliableLog(dir.getCanonicalPath(), legacy);
+        log.recover();
+        log.snapshot();
+        log.close();
+
+        /* Recover the legacy snapshot, then journal in the new format */
+        RecordingController controller = new RecordingController();
+        OpStringLogHandler handler = new OpStringLogHandler();
+        PersistentStore store = createStore(handler, controller);
+        Assert.assertTrue(handler.opStringsRecovered());
+        update(store, JournalRecord.plannedChanged("opstring", JournalRecordTest.createServiceElement("opstring", "a", 5)));
+        store.close();
+
+        Map<String, OperationalString> recovered = recover();
+        Assert.assertEquals(5, getService(recovered.get("opstring"), "a").getPlanned());
+    }
+
+    @Test
+    public void testTruncatedTailIsDropped() throws Exception {
+        PersistentStore store = createStore(new OpStringLogHandler(), new RecordingController());
+        store.snapshot();
+        JournalRecord last = JournalRecord.plannedChanged("opstring", JournalRecordTest.createServiceElement("opstring", "a", 9));
+        update(store,
+               JournalRecord.opStringModified(JournalRecordTest.createOpString("opstring", "a")),
+               JournalRecord.plannedChanged("opstring", JournalRecordTest.createServiceElement("opstring", "a", 2)),
+               last);
+        store.close();
+
+        /* Cut the log in the middle of the last record, as if the monitor
+         * stopped while appending it */
+        File logFile = getLogFile();
+        byte[] content = read(logFile);
+        int offset = indexOf(content, last.toByteArray());
+        Assert.assertTrue(offset>0);
+        write(logFile, Arrays.copyOf(content, offset+3));
+
+        Map<String, OperationalString> recovered = recover();
+        Assert.assertEquals(2, getService(recovered.get("opstring"), "a").getPlanned());
+    }
+
+    @Test
+    public void testCorruptTailFailsRecovery() throws Exception {
+        PersistentStore store = createStore(new OpStringLogHandler(), new RecordingController());
+        store.snapshot();
+        JournalRecord last = JournalRecord.plannedChanged("opstring", JournalRecordTest.createServiceElement("opstring", "a", 9));
+        update(store, JournalRecord.opStringModified(JournalRecordTest.createOpString("opstring", "a")), last);
+        store.close();
+
+        /* A complete record that cannot be read is not silently skipped,
+         * the state following it would be wrong */
+        File logFile = getLogFile();
+        byte[] content = read(logFile);
+        int offset = indexOf(content, last.toByteArray());
+        content[offset] = 0x00;
+        write(logFile, content);
+        try {
+            createStore(new OpStringLogHandler(), new RecordingController());
+            Assert.fail("Recovered a log with a corrupt record");
+        } catch(StoreException e) {
+            /* expected */
+        }
+    }
+
+    private Map<String, OperationalString> recover() throws Exception {
+        RecordingController controller = new RecordingController();
+        OpStringLogHandler handler = new OpStringLogHandler();
+        PersistentStore store = createStore(handler, controller);
+        Assert.assertTrue(handler.opStringsRecovered());
+        handler.processRecoveredOpStrings();
+        handler.processUpdatedOpStrings();
+        Assert.assertFalse(handler.isReplaying());
+        store.close();
+        Map<String, OperationalString> recovered = new HashMap<String, OperationalString>();
+        for(OperationalString opString : controller.added)
+            recovered.put(opString.getName(), opString);
+        Assert.assertEquals("OperationalStrings added more than once", controller.added.size(), recovered.size());
+        return recovered;
+    }
+
+    private PersistentStore createStore(OpStringLogHandler handler, RecordingController controller) throws Exception {
+        handler.setOpStringMangerController(controller);
+        if(handler.snapshotter==null)
+            handler.setSnapshotter(new CountingSnapshotThread());
+        return new PersistentStore(dir.getCanonicalPath(), handler, handler);
+    }
+
+    private void update(PersistentStore store, JournalRecord... records) throws IOException {
+        store.acquireMutatorLock();
+        try {
+            store.updateAll(Arrays.asList(records));
+        } finally {
+            store.releaseMutatorLock();
+        }
+    }
+
+    private ServiceElement getService(OperationalString opString, String name) {
+        Assert.assertNotNull(opString);
+        for(ServiceElement sElem : opString.getServices()) {
+            if(sElem.getName().equals(name))
+                return sElem;
+        }
+        return null;
+    }
+
+    private File getLogFile() {
+        File[] logs = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith("Logfile.");
+            }
+        });
+        Assert.assertEquals(1, logs.length);
+        return logs[0];
+    }
+
+    private static int indexOf(byte[] content, byte[] bytes) {
+        for(int i=content.length-bytes.length; i>=0; i--) {
+            boolean match = true;
+            for(int j=0; j<bytes.length && match; j++)
+                match = content[i+j]==bytes[j];
+            if(match)
+                return i;
+        }
+        return -1;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] content = new byte[(int)file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(content);
+        } finally {
+            in.close();
+        }
+        return content;
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Records the OperationalStrings added by recovery, and provides the
+     * deployed OperationalStrings for snapshots
+     */
+    static class RecordingController extends OpStringMangerController {
+        final List<OperationalString> deployed = new ArrayList<OperationalString>();
+        final List<OperationalString> added = Collections.synchronizedList(new ArrayList<OperationalString>());
+
+        @Override
+        public OperationalString[] getOperationalStrings() {
+            return deployed.toArray(new OperationalString[deployed.size()]);
+        }
+
+        @Override
+        public boolean opStringExists(String opStringName) {
+            return false;
+        }
+
+        @Override
+        public OpStringManager addOperationalString(OperationalString opString,
+                                                    Map<String, Throwable> map,
+                                                    OpStringManager parent,
+                                                    DeployAdmin dAdmin,
+                                                    ServiceProvisionListener listener) {
+            added.add(opString);
+            return null;
+        }
+    }
+
+    /**
+     * Counts snapshot requests rather than taking snapshots
+     */
+    static class CountingSnapshotThread extends SnapshotThread {
+        int requests;
+
+        CountingSnapshotThread() {
+            super("test", null);
+        }
+
+        @Override
+        public void takeSnapshot() {
+            requests++;
+        }
+    }
+
+    /**
+     * Writes the log format used before OperationalString changes were
+     * journaled as JournalRecords
+     */
+    static class LegacyLogHandler extends LogHandler {
+        final List<OperationalString> opStrings = new ArrayList<OperationalString>();
+
+        public void snapshot(OutputStream out) throws Exception {
+            ObjectOutputStream oostream = new ObjectOutputStream(out);
+            oostream.writeUTF(OpStringLogHandler.class.getName());
+            oostream.writeInt(OpStringLogHandler.LEGACY_LOG_VERSION);
+            oostream.writeObject(new MarshalledObject<List<OperationalString>>(opStrings));
+            oostream.flush();
+        }
+
+        public void recover(InputStream in) {
+        }
+
+        public void applyUpdate(Object update) {
+        }
+    }
+}
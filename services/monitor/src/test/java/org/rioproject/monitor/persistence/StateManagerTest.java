@@ -0,0 +1,292 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.monitor.persistence;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rioproject.config.DynamicConfiguration;
+import org.rioproject.core.OperationalString;
+import org.rioproject.core.ServiceElement;
+import org.rioproject.core.ServiceProvisionListener;
+import org.rioproject.monitor.DeployAdmin;
+import org.rioproject.monitor.OpStringManager;
+import org.rioproject.monitor.OpStringMangerController;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test journaling OperationalString changes made while recovered
+ * OperationalStrings are processed in the background
+ */
+public class StateManagerTest {
+    private File dir;
+    private final List<StateManager> stateManagers = new ArrayList<StateManager>();
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("state", "test");
+        Assert.assertTrue(dir.delete());
+        Assert.assertTrue(dir.mkdir());
+    }
+
+    @After
+    public void cleanup() throws InterruptedException {
+        for(StateManager stateManager : stateManagers)
+            terminate(stateManager);
+        File[] files = dir.listFiles();
+        if(files!=null) {
+            for(File f : files)
+                f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testChangesDuringRecoveryAreJournaled() throws Exception {
+        DeployingController controller = new DeployingController();
+        StateManager stateManager = createStateManager(controller);
+        for(String name : new String[]{"a", "d", "b", "c"})
+            controller.deploy(stateManager, JournalRecordTest.createOpString(name, "x"));
+        terminate(stateManager);
+
+        /* Recover with a single thread, holding the recovery of b. This leaves
+         * a and d processed, b being processed and c not yet processed */
+        controller = new DeployingController();
+        controller.hold("b");
+        stateManager = createStateManager(controller);
+        stateManager.startRecovery();
+        controller.awaitHeld();
+        Assert.assertFalse(stateManager.isRecoveryComplete());
+        Assert.assertFalse(stateManager.isRecovering("a"));
+        Assert.assertTrue(stateManager.isRecovering("b"));
+        Assert.assertTrue(stateManager.isRecovering("c"));
+        Assert.assertEquals(4, stateManager.getRecoveryTotal());
+        Assert.assertEquals(2, stateManager.getRecoveredCount());
+
+        controller.setPlanned(stateManager, "a", "x", 5);
+        controller.undeploy(stateManager, "d");
+        Assert.assertFalse("Processed OperationalString cannot be cancelled", stateManager.cancelRecovery("a"));
+        Assert.assertFalse("OperationalString being processed cannot be cancelled", stateManager.cancelRecovery("b"));
+        Assert.assertTrue(stateManager.cancelRecovery("c"));
+        Assert.assertFalse(stateManager.isRecovering("c"));
+        Assert.assertFalse(stateManager.cancelRecovery("c"));
+        /* A snapshot taken before recovery completes must not resurrect the
+         * undeployed and cancelled OperationalStrings */
+        awaitSnapshot(stateManager);
+
+        controller.release();
+        long deadline = System.currentTimeMillis()+10*1000;
+        while(!stateManager.isRecoveryComplete() && System.currentTimeMillis()<deadline)
+            Thread.sleep(10);
+        Assert.assertTrue(stateManager.isRecoveryComplete());
+        Assert.assertEquals(4, stateManager.getRecoveredCount());
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("a", "b")), controller.deployed.keySet());
+        controller.setPlanned(stateManager, "b", "x", 7);
+        terminate(stateManager);
+
+        controller = new DeployingController();
+        stateManager = createStateManager(controller);
+        stateManager.processRecoveredOpStrings();
+        stateManager.processUpdatedOpStrings();
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("a", "b")), controller.deployed.keySet());
+        Assert.assertEquals(5, getService(controller.deployed.get("a"), "x").getPlanned());
+        Assert.assertEquals(7, getService(controller.deployed.get("b"), "x").getPlanned());
+    }
+
+    @Test
+    public void testChangesAfterSnapshotDuringRecoveryAreRecovered() throws Exception {
+        DeployingController controller = new DeployingController();
+        StateManager stateManager = createStateManager(controller);
+        controller.deploy(stateManager, JournalRecordTest.createOpString("a", "x"));
+        controller.deploy(stateManager, JournalRecordTest.createOpString("b", "x"));
+        terminate(stateManager);
+
+        controller = new DeployingController();
+        controller.hold("b");
+        stateManager = createStateManager(controller);
+        stateManager.startRecovery();
+        controller.awaitHeld();
+        awaitSnapshot(stateManager);
+        /* Journaled after the snapshot, and after recovery restarts while
+         * b is still being processed */
+        controller.setPlanned(stateManager, "a", "x", 3);
+        controller.undeploy(stateManager, "a");
+        controller.deploy(stateManager, JournalRecordTest.createOpString("e", "x"));
+        terminate(stateManager);
+        controller.release();
+
+        controller = new DeployingController();
+        stateManager = createStateManager(controller);
+        stateManager.processRecoveredOpStrings();
+        stateManager.processUpdatedOpStrings();
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("b", "e")), controller.deployed.keySet());
+    }
+
+    @Test
+    public void testNothingToRecover() throws Exception {
+        DeployingController controller = new DeployingController();
+        StateManager stateManager = createStateManager(controller);
+        Assert.assertTrue(stateManager.isRecoveryComplete());
+        Assert.assertFalse(stateManager.isRecovering("a"));
+        Assert.assertFalse(stateManager.cancelRecovery("a"));
+        Assert.assertEquals(0, stateManager.getRecoveryTotal());
+    }
+
+    /*
+     * Stop the StateManager as the ProvisionMonitor would be stopped, before
+     * recovering from the same directory
+     */
+    private void terminate(StateManager stateManager) throws InterruptedException {
+        stateManager.terminate();
+        stateManager.snapshotter.join();
+        stateManager.committer.join();
+    }
+
+    private StateManager createStateManager(DeployingController controller) throws Exception {
+        DynamicConfiguration config = new DynamicConfiguration();
+        config.setEntry(StateManager.CONFIG_COMPONENT, "recoveryThreads", 1);
+        StateManager stateManager = new StateManager(dir.getCanonicalPath(), controller, config);
+        stateManagers.add(stateManager);
+        return stateManager;
+    }
+
+    /*
+     * Wait for the snapshot thread to write a new snapshot
+     */
+    private void awaitSnapshot(StateManager stateManager) throws InterruptedException {
+        int current = getSnapshotVersion();
+        long deadline = System.currentTimeMillis()+10*1000;
+        while(getSnapshotVersion()<=current) {
+            Assert.assertTrue("Timed out waiting for a snapshot", System.currentTimeMillis()<deadline);
+            stateManager.snapshotter.takeSnapshot();
+            Thread.sleep(10);
+        }
+    }
+
+    private int getSnapshotVersion() {
+        int version = -1;
+        String[] names = dir.list();
+        if(names!=null) {
+            for(String name : names) {
+                if(name.startsWith("Snapshot."))
+                    version = Math.max(version, Integer.parseInt(name.substring("Snapshot.".length())));
+            }
+        }
+        return version;
+    }
+
+    private static ServiceElement getService(OperationalString opString, String name) {
+        Assert.assertNotNull(opString);
+        for(ServiceElement sElem : opString.getServices()) {
+            if(sElem.getName().equals(name))
+                return sElem;
+        }
+        return null;
+    }
+
+    /**
+     * Deploys OperationalStrings without creating OpStringManagers, notifying
+     * the StateManager of changes as the ProvisionMonitor does. Adding a held
+     * OperationalString blocks until released.
+     */
+    static class DeployingController extends OpStringMangerController {
+        final Map<String, OperationalString> deployed =
+            Collections.synchronizedMap(new LinkedHashMap<String, OperationalString>());
+        private final Set<String> held = new HashSet<String>();
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        void hold(String name) {
+            held.add(name);
+        }
+
+        void awaitHeld() throws InterruptedException {
+            Assert.assertTrue(entered.await(10, TimeUnit.SECONDS));
+        }
+
+        void release() {
+            released.countDown();
+        }
+
+        void deploy(StateManager stateManager, OperationalString opString) {
+            deployed.put(opString.getName(), opString);
+            stateManager.stateChanged(createOpStringManager(opString.getName()), false);
+        }
+
+        void undeploy(StateManager stateManager, String name) {
+            OpStringManager opMgr = createOpStringManager(name);
+            deployed.remove(name);
+            stateManager.stateChanged(opMgr, true);
+        }
+
+        void setPlanned(StateManager stateManager, String name, String element, int planned) {
+            ServiceElement sElem = getService(deployed.get(name), element);
+            sElem.setPlanned(planned);
+            stateManager.plannedChanged(createOpStringManager(name), sElem);
+        }
+
+        OpStringManager createOpStringManager(final String name) {
+            return (OpStringManager)Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                           new Class[]{OpStringManager.class},
+                                                           new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if(method.getName().equals("getName"))
+                        return name;
+                    if(method.getName().equals("isActive") || method.getName().equals("isTopLevel"))
+                        return true;
+                    if(method.getName().equals("doGetOperationalString"))
+                        return deployed.get(name);
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+        }
+
+        @Override
+        public OperationalString[] getOperationalStrings() {
+            synchronized(deployed) {
+                return deployed.values().toArray(new OperationalString[deployed.size()]);
+            }
+        }
+
+        @Override
+        public boolean opStringExists(String opStringName) {
+            return deployed.containsKey(opStringName);
+        }
+
+        @Override
+        public OpStringManager addOperationalString(OperationalString opString,
+                                                    Map<String, Throwable> map,
+                                                    OpStringManager parent,
+                                                    DeployAdmin dAdmin,
+                                                    ServiceProvisionListener listener) throws Exception {
+            if(held.contains(opString.getName())) {
+                entered.countDown();
+                Assert.assertTrue(released.await(10, TimeUnit.SECONDS));
+            }
+            deployed.put(opString.getName(), opString);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,730 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.tools.webster;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A non-blocking engine for {@link Webster}.
+ *
+ * <p>A single selector thread accepts connections, reads and parses requests
+ * and writes responses, so a slow or idle client never holds a thread.
+ * Connections are persistent: HTTP/1.1 connections are kept open unless the
+ * client sends <tt>Connection: close</tt>, HTTP/1.0 connections are kept
+ * open if the client sends <tt>Connection: keep-alive</tt>. Requests
+ * pipelined on a connection are answered in the order they were sent.
+ *
+ * <p>Resolving a request against the roots, which may list the directories
+ * of wildcarded roots, and opening the file is done by Webster's thread
+ * pool. Files are then sent from the selector thread using
+ * {@link FileChannel#transferTo}, so their content is not copied through
+ * the Java heap. The body of a PUT request is written to a temporary file
+ * by the selector thread, which replaces the requested file once the whole
+ * body has been received. A PUT that does not complete leaves the requested
+ * file as it was.
+ *
+ * <p>Connections that make no progress for the keep-alive timeout are
+ * closed.
+ */
+class NioEngine implements Runnable {
+    /** The default time, in milliseconds, an idle connection is kept open */
+    static final long DEFAULT_KEEP_ALIVE_TIMEOUT = 30*1000;
+    /** The maximum size of the request line and headers */
+    static final int MAX_HEADER_SIZE = 8*1024;
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static Logger logger = Logger.getLogger("org.rioproject.tools.webster");
+    private final Webster webster;
+    private final ServerSocketChannel serverChannel;
+    private final Executor executor;
+    private final long keepAliveTimeout;
+    private final boolean debug;
+    private final Selector selector;
+    private final Queue<Connection> preparedConnections = new ConcurrentLinkedQueue<Connection>();
+    private volatile boolean run = true;
+
+    /**
+     * Create a NioEngine
+     *
+     * @param webster The Webster to serve files for
+     * @param serverChannel The bound channel to accept connections from
+     * @param executor The executor used to prepare responses
+     * @param keepAliveTimeout The time, in milliseconds, a connection that
+     * makes no progress is kept open
+     * @param debug Whether to print requests to the console
+     *
+     * @throws IOException if the selector cannot be created
+     */
+    NioEngine(Webster webster,
+              ServerSocketChannel serverChannel,
+              Executor executor,
+              long keepAliveTimeout,
+              boolean debug) throws IOException {
+        if(keepAliveTimeout<=0)
+            throw new IllegalArgumentException("keepAliveTimeout must be greater than 0");
+        this.webster = webster;
+        this.serverChannel = serverChannel;
+        this.executor = executor;
+        this.keepAliveTimeout = keepAliveTimeout;
+        this.debug = debug;
+        selector = Selector.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Stop serving requests. The selector thread closes all connections
+     */
+    void terminate() {
+        run = false;
+        selector.wakeup();
+    }
+
+    public void run() {
+        try {
+            webster.loadMimes();
+        } catch(IOException e) {
+            logger.log(Level.WARNING, "Loading mimetypes", e);
+        }
+        long lastCheck = System.currentTimeMillis();
+        try {
+            while(run) {
+                selector.select(1000);
+                if(!run)
+                    break;
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid())
+                        continue;
+                    if(key.isAcceptable()) {
+                        try {
+                            accept();
+                        } catch(IOException e) {
+                            if(run)
+                                logger.log(Level.WARNING, "Accepting connection", e);
+                        }
+                        continue;
+                    }
+                    Connection connection = (Connection)key.attachment();
+                    try {
+                        if(key.isReadable())
+                            connection.read();
+                        if(key.isValid() && key.isWritable() && connection.state==State.WRITING)
+                            connection.write();
+                    } catch(IOException e) {
+                        if(logger.isLoggable(Level.FINE))
+                            logger.log(Level.FINE, "Connection from "+connection.from, e);
+                        connection.close();
+                    }
+                }
+                Connection connection;
+                while((connection = preparedConnections.poll())!=null) {
+                    try {
+                        connection.respond();
+                    } catch(IOException e) {
+                        if(logger.isLoggable(Level.FINE))
+                            logger.log(Level.FINE, "Connection from "+connection.from, e);
+                        connection.close();
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if(now-lastCheck>=1000) {
+                    closeIdle(now);
+                    lastCheck = now;
+                }
+            }
+        } catch(IOException e) {
+            if(run)
+                logger.log(Level.WARNING, "Processing HTTP Requests", e);
+        } finally {
+            run = false;
+            for(SelectionKey key : selector.keys()) {
+                if(key.attachment() instanceof Connection)
+                    ((Connection)key.attachment()).close();
+            }
+            releasePrepared();
+            try {
+                selector.close();
+            } catch(IOException e) {
+                logger.log(Level.WARNING, "Closing Selector", e);
+            }
+            webster.close(serverChannel);
+        }
+    }
+
+    /*
+     * Release the responses prepared for connections that will not be
+     * answered. Called by the selector thread once it stops, and by the
+     * thread pool for responses prepared after that
+     */
+    private void releasePrepared() {
+        Connection connection;
+        while((connection = preparedConnections.poll())!=null) {
+            Response r = connection.prepared;
+            connection.prepared = null;
+            if(r!=null)
+                r.release();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while((channel = serverChannel.accept())!=null) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new Connection(channel, key));
+            } catch(IOException e) {
+                logger.log(Level.WARNING, "Accepting connection", e);
+                webster.close(channel);
+            }
+        }
+    }
+
+    /*
+     * Close connections that have not made progress within the keep-alive
+     * timeout, other than those waiting for the thread pool
+     */
+    private void closeIdle(long now) {
+        for(SelectionKey key : selector.keys()) {
+            if(!(key.attachment() instanceof Connection))
+                continue;
+            Connection connection = (Connection)key.attachment();
+            if(connection.state!=State.PREPARING && now-connection.lastActive>keepAliveTimeout) {
+                if(logger.isLoggable(Level.FINE))
+                    logger.fine("Closing idle connection from "+connection.from);
+                connection.close();
+            }
+        }
+    }
+
+    private void trace(String message) {
+        if(debug)
+            System.out.println(message);
+        if(logger.isLoggable(Level.FINE))
+            logger.fine(message);
+    }
+
+    /*
+     * Prepare the response to a request, run by the thread pool
+     */
+    Response prepare(Request request) throws IOException {
+        if(request.method.equals("GET"))
+            return get(request, false);
+        if(request.method.equals("HEAD"))
+            return get(request, true);
+        if(request.method.equals("PUT"))
+            return put(request);
+        if(request.method.equals("DELETE"))
+            return delete(request);
+        return error("400 Bad Request");
+    }
+
+    private Response get(Request request, boolean head) throws IOException {
+        File getFile = webster.parseFileName(request.fileName);
+        if(getFile.isDirectory()) {
+            byte[] listing = webster.getDirectoryListing(getFile).getBytes(ISO_8859_1.name());
+            Response response = new Response(header("200 OK",
+                                                     getContentType("txt", "application/java"),
+                                                     listing.length,
+                                                     request.keepAlive),
+                                             head?null:listing,
+                                             request.keepAlive);
+            trace("Do "+request.method+": input="+request.fileName+", parsed="+getFile+", directory located");
+            return response;
+        }
+        if(!getFile.exists()) {
+            trace("Do "+request.method+": input="+request.fileName+", parsed="+getFile+", not found");
+            return new Response(header("404 Not Found", null, 0, request.keepAlive), null, request.keepAlive);
+        }
+        String extension = request.fileName.substring(request.fileName.lastIndexOf(".")+1);
+        String contentType = getContentType(extension, "application/octet-stream");
+        if(head) {
+            trace("Do HEAD: input="+request.fileName+", parsed="+getFile+", file size: ["+getFile.length()+"]");
+            return new Response(header("200 OK", contentType, getFile.length(), request.keepAlive),
+                                null,
+                                request.keepAlive);
+        }
+        FileChannel file = new FileInputStream(getFile).getChannel();
+        long size;
+        try {
+            size = file.size();
+        } catch(IOException e) {
+            webster.close(file);
+            throw e;
+        }
+        trace("Do GET: input="+request.fileName+", parsed="+getFile+", file size: ["+size+"]");
+        Response response = new Response(header("200 OK", contentType, size, request.keepAlive),
+                                         null,
+                                         request.keepAlive);
+        response.file = file;
+        response.remaining = size;
+        return response;
+    }
+
+    private Response put(Request request) throws IOException {
+        if(request.contentLength<0 || request.headers.containsKey("Transfer-Encoding"))
+            return error("411 Length Required");
+        File putFile = webster.parseFileName(request.fileName);
+        boolean exists = putFile.exists();
+        File uploadFile = File.createTempFile("."+putFile.getName()+".", ".upload", putFile.getParentFile());
+        FileChannel upload;
+        try {
+            upload = new FileOutputStream(uploadFile).getChannel();
+        } catch(IOException e) {
+            uploadFile.delete();
+            throw e;
+        }
+        byte[] body = (exists?"<H1>200 File updated</H1>\n":"<H1>201 File Created</H1>\n").getBytes(ISO_8859_1.name());
+        Response response = new Response(header(exists?"200 OK":"201 Created",
+                                                "text/html",
+                                                body.length,
+                                                request.keepAlive),
+                                         body,
+                                         request.keepAlive);
+        response.upload = upload;
+        response.uploadFile = uploadFile;
+        response.target = putFile;
+        response.remaining = request.contentLength;
+        trace("Do PUT: input="+request.fileName+", parsed="+putFile+", size: ["+request.contentLength+"]");
+        return response;
+    }
+
+    private Response delete(Request request) throws IOException {
+        File delFile = webster.parseFileName(request.fileName);
+        String status;
+        String message;
+        if(!delFile.exists()) {
+            status = "404 Not Found";
+            message = "<H1>404 File not Found</H1>\n";
+        } else if(delFile.delete()) {
+            status = "200 OK";
+            message = "<H1>200 File succesfully deleted</H1>\n";
+        } else {
+            status = "500 Internal Server Error";
+            message = "<H1>500 File could not be deleted</H1>\n";
+        }
+        trace("Do DELETE: input="+request.fileName+", parsed="+delFile+", "+status);
+        byte[] body = message.getBytes(ISO_8859_1.name());
+        return new Response(header(status, "text/html", body.length, request.keepAlive),
+                            body,
+                            request.keepAlive);
+    }
+
+    /*
+     * A response with no body that closes the connection
+     */
+    private Response error(String status) {
+        return new Response(header(status, null, 0, false), null, false);
+    }
+
+    private String getContentType(String extension, String defaultType) {
+        String contentType = webster.getMimeType(extension);
+        return contentType==null?defaultType:contentType;
+    }
+
+    private ByteBuffer header(String status, String contentType, long contentLength, boolean keepAlive) {
+        StringBuilder header = new StringBuilder();
+        header.append("HTTP/1.1 ").append(status).append("\r\n");
+        header.append("Server: ").append(Webster.SERVER_DESCRIPTION).append("\r\n");
+        if(contentType!=null)
+            header.append("Content-Type: ").append(contentType).append("\r\n");
+        header.append("Content-Length: ").append(contentLength).append("\r\n");
+        header.append("Connection: ").append(keepAlive?"keep-alive":"close").append("\r\n\r\n");
+        return ISO_8859_1.encode(header.toString());
+    }
+
+    /*
+     * Find the end of the request line and headers, the index after the
+     * first empty line, or -1 if the headers are not complete
+     */
+    static int findHeaderEnd(ByteBuffer buffer) {
+        for(int i=buffer.position(); i<buffer.limit(); i++) {
+            if(buffer.get(i)!='\n')
+                continue;
+            if(i+1<buffer.limit() && buffer.get(i+1)=='\n')
+                return i+2;
+            if(i+2<buffer.limit() && buffer.get(i+1)=='\r' && buffer.get(i+2)=='\n')
+                return i+3;
+        }
+        return -1;
+    }
+
+    /*
+     * Parse the request line and headers
+     */
+    static Request parseRequest(String text) {
+        String[] lines = text.split("\r?\n");
+        StringTokenizer tokenizer = new StringTokenizer(lines[0], " ");
+        if(tokenizer.countTokens()<2)
+            throw new IllegalArgumentException("bad request ["+lines[0]+"]");
+        String method = tokenizer.nextToken();
+        String fileName = tokenizer.nextToken();
+        String version = tokenizer.hasMoreTokens()?tokenizer.nextToken():null;
+        if(fileName.startsWith("/"))
+            fileName = fileName.substring(1);
+        Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        for(int i=1; i<lines.length; i++) {
+            int ndx = lines[i].indexOf(':');
+            if(ndx>0)
+                headers.put(lines[i].substring(0, ndx).trim(), lines[i].substring(ndx+1).trim());
+        }
+        long contentLength = -1;
+        String length = headers.get("Content-Length");
+        if(length!=null) {
+            try {
+                contentLength = Long.parseLong(length);
+            } catch(NumberFormatException e) {
+                throw new IllegalArgumentException("bad Content-Length ["+length+"]");
+            }
+        }
+        boolean keepAlive;
+        if("HTTP/1.1".equals(version))
+            keepAlive = !hasToken(headers.get("Connection"), "close");
+        else if("HTTP/1.0".equals(version))
+            keepAlive = hasToken(headers.get("Connection"), "keep-alive");
+        else
+            keepAlive = false;
+        /* Only a PUT is expected to have a body, do not try to find the next
+         * request after the body of any other request */
+        if(!method.equals("PUT") && (contentLength>0 || headers.containsKey("Transfer-Encoding")))
+            keepAlive = false;
+        return new Request(lines[0], method, fileName, headers, contentLength, keepAlive);
+    }
+
+    private static boolean hasToken(String value, String token) {
+        if(value==null)
+            return false;
+        for(String s : value.split(",")) {
+            if(s.trim().equalsIgnoreCase(token))
+                return true;
+        }
+        return false;
+    }
+
+    static class Request {
+        final String line;
+        final String method;
+        final String fileName;
+        final Map<String, String> headers;
+        final long contentLength;
+        final boolean keepAlive;
+
+        Request(String line,
+                String method,
+                String fileName,
+                Map<String, String> headers,
+                long contentLength,
+                boolean keepAlive) {
+            this.line = line;
+            this.method = method;
+            this.fileName = fileName;
+            this.headers = headers;
+            this.contentLength = contentLength;
+            this.keepAlive = keepAlive;
+        }
+    }
+
+    /*
+     * A response. If the upload channel is set, the remaining bytes are the
+     * request body to be written to the upload file before it replaces the
+     * target and the response is sent, if the file channel is set, the
+     * remaining bytes of the file are sent after the header
+     */
+    static class Response {
+        final ByteBuffer[] buffers;
+        final boolean keepAlive;
+        FileChannel file;
+        FileChannel upload;
+        File uploadFile;
+        File target;
+        long position;
+        long remaining;
+
+        Response(ByteBuffer header, byte[] body, boolean keepAlive) {
+            this.buffers = body==null?new ByteBuffer[]{header}:new ByteBuffer[]{header, ByteBuffer.wrap(body)};
+            this.keepAlive = keepAlive;
+        }
+
+        boolean hasBufferedRemaining() {
+            return buffers[buffers.length-1].hasRemaining();
+        }
+
+        /*
+         * Replace the target with the upload file, once the whole request
+         * body has been written to it
+         */
+        void completeUpload() throws IOException {
+            upload.close();
+            upload = null;
+            /* renameTo does not replace an existing file on all platforms */
+            if(target.exists() && !target.delete())
+                throw new IOException("Could not replace "+target);
+            if(!uploadFile.renameTo(target))
+                throw new IOException("Could not rename "+uploadFile+" to "+target);
+            uploadFile = null;
+        }
+
+        void release() {
+            closeQuietly(file);
+            closeQuietly(upload);
+            if(uploadFile!=null) {
+                uploadFile.delete();
+                uploadFile = null;
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if(c!=null) {
+            try {
+                c.close();
+            } catch(IOException e) {
+                /* ignore */
+            }
+        }
+    }
+
+    enum State { READING, PREPARING, RECEIVING, WRITING, CLOSED }
+
+    /*
+     * A connection, all methods are called by the selector thread
+     */
+    private class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final String from;
+        final ByteBuffer in = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        volatile Response prepared;
+        Response response;
+        State state = State.READING;
+        long lastActive = System.currentTimeMillis();
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            this.from = channel.socket().getInetAddress().getHostAddress()+":"+channel.socket().getPort();
+        }
+
+        void read() throws IOException {
+            int read = channel.read(in);
+            if(read<0) {
+                close();
+                return;
+            }
+            if(read>0)
+                lastActive = System.currentTimeMillis();
+            if(state==State.READING)
+                process();
+            else if(state==State.RECEIVING)
+                receive();
+        }
+
+        /*
+         * Parse the next request from the input, and hand it to the thread
+         * pool. If the request is not complete, wait for more input
+         */
+        void process() throws IOException {
+            in.flip();
+            /* Skip empty lines before the request line */
+            while(in.hasRemaining() && (in.get(in.position())=='\r' || in.get(in.position())=='\n'))
+                in.get();
+            int end = findHeaderEnd(in);
+            if(end<0) {
+                boolean full = in.remaining()==in.capacity();
+                in.compact();
+                if(full) {
+                    trace("Request headers from "+from+" exceed "+MAX_HEADER_SIZE+" bytes");
+                    send(error("400 Bad Request"));
+                } else {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                return;
+            }
+            byte[] bytes = new byte[end-in.position()];
+            in.get(bytes);
+            in.compact();
+            final Request request;
+            try {
+                request = parseRequest(new String(bytes, ISO_8859_1.name()));
+            } catch(IllegalArgumentException e) {
+                trace("bad request from "+from+": "+e.getMessage());
+                send(error("400 Bad Request"));
+                return;
+            }
+            trace("From: "+from+", Request: "+request.line);
+            state = State.PREPARING;
+            key.interestOps(0);
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        Response response;
+                        try {
+                            response = prepare(request);
+                        } catch(Throwable t) {
+                            logger.log(Level.WARNING, "Processing ["+request.line+"] from "+from, t);
+                            response = error("500 Internal Server Error");
+                        }
+                        if(!run) {
+                            response.release();
+                            return;
+                        }
+                        prepared = response;
+                        preparedConnections.add(Connection.this);
+                        /* The selector thread may have stopped after run
+                         * was checked */
+                        if(run)
+                            selector.wakeup();
+                        else
+                            releasePrepared();
+                    }
+                });
+            } catch(RejectedExecutionException e) {
+                close();
+            }
+        }
+
+        /*
+         * Start sending the response prepared by the thread pool
+         */
+        void respond() throws IOException {
+            Response r = prepared;
+            prepared = null;
+            if(state==State.CLOSED) {
+                r.release();
+                return;
+            }
+            if(r.upload!=null) {
+                response = r;
+                state = State.RECEIVING;
+                receive();
+            } else {
+                send(r);
+            }
+        }
+
+        /*
+         * Write the request body to the upload
+         */
+        void receive() throws IOException {
+            in.flip();
+            int n = (int)Math.min(in.remaining(), response.remaining);
+            int limit = in.limit();
+            in.limit(in.position()+n);
+            IOException failure = null;
+            try {
+                while(in.hasRemaining())
+                    response.upload.write(in);
+            } catch(IOException e) {
+                failure = e;
+            }
+            in.limit(limit);
+            in.compact();
+            if(failure!=null) {
+                logger.log(Level.WARNING, "Writing ["+response.remaining+"] bytes from "+from, failure);
+                response.release();
+                send(error("500 Internal Server Error"));
+                return;
+            }
+            response.remaining -= n;
+            if(response.remaining==0) {
+                try {
+                    response.completeUpload();
+                } catch(IOException e) {
+                    logger.log(Level.WARNING, "Completing upload from "+from, e);
+                    response.release();
+                    send(error("500 Internal Server Error"));
+                    return;
+                }
+                send(response);
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void send(Response r) throws IOException {
+            response = r;
+            state = State.WRITING;
+            write();
+        }
+
+        void write() throws IOException {
+            if(response.hasBufferedRemaining()) {
+                if(channel.write(response.buffers)>0)
+                    lastActive = System.currentTimeMillis();
+                if(response.hasBufferedRemaining()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            while(response.file!=null && response.remaining>0) {
+                long sent = response.file.transferTo(response.position, response.remaining, channel);
+                if(sent==0) {
+                    if(response.position>=response.file.size())
+                        throw new IOException("File truncated while sending to "+from);
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                lastActive = System.currentTimeMillis();
+                response.position += sent;
+                response.remaining -= sent;
+            }
+            response.release();
+            boolean keepAlive = response.keepAlive;
+            response = null;
+            if(!keepAlive) {
+                close();
+                return;
+            }
+            state = State.READING;
+            /* Answer a request pipelined behind this one */
+            process();
+        }
+
+        void close() {
+            if(state==State.CLOSED)
+                return;
+            state = State.CLOSED;
+            key.cancel();
+            webster.close(channel);
+            if(response!=null)
+                response.release();
+        }
+    }
+}
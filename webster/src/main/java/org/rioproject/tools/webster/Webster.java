@@ -22,6 +22,7 @@ import org.rioproject.net.PortRangeServerSocketFactory;
 import javax.net.ServerSocketFactory;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -48,6 +49,14 @@ import java.util.logging.Logger;
  * directories which are separated by a <code>;</code></td>
  * <td>System.getProperty(user.home)</td>
  * </tr>
+ * <tr>
+ * <td>org.rioproject.tools.webster.engine</td>
+ * <td>The engine used to serve requests, either <code>blocking</code>, which
+ * closes the connection after each response, or <code>nio</code>, which
+ * serves requests on persistent (keep-alive) connections from a selector
+ * thread (see {@link NioEngine})</td>
+ * <td>blocking</td>
+ * </tr>
  * 
  * </table>
  *
@@ -55,6 +64,8 @@ import java.util.logging.Logger;
  */
 public class Webster implements Runnable {
     static final int DEFAULT_MAX_THREADS = 10;
+    static final String BLOCKING_ENGINE = "blocking";
+    static final String NIO_ENGINE = "nio";
     private ServerSocket ss;
     private int port;
     private boolean run = true;
@@ -67,7 +78,10 @@ public class Webster implements Runnable {
     private com.sun.jini.start.LifeCycle lifeCycle;
     private boolean debug = false;
     private ServerSocketFactory socketFactory;
-    private static String SERVER_DESCRIPTION=Webster.class.getName();
+    private String engine;
+    private long keepAliveTimeout = NioEngine.DEFAULT_KEEP_ALIVE_TIMEOUT;
+    private NioEngine nioEngine;
+    static String SERVER_DESCRIPTION=Webster.class.getName();
 
     /**
      * Create a new Webster. The port is determined by the
@@ -160,12 +174,16 @@ public class Webster implements Runnable {
      * 
      * @param options String[] of options. Valid options are [-port port],
      * [-roots list-of-roots], [-bindAddress address],
-     * [-maxThreads maxThreads] [-soTimeout soTimeout] [-portRange range].
-     * Note -port and -portRange are mutually exclusive
+     * [-maxThreads maxThreads] [-soTimeout soTimeout] [-portRange range]
+     * [-engine blocking|nio] [-keepAliveTimeout millis].
+     * Note -port and -portRange are mutually exclusive. The
+     * -keepAliveTimeout option sets how long the nio engine keeps an idle
+     * connection open
      * @param lifeCycle The LifeCycle object, may be null
      *
      * @throws BindException if Webster cannot create a socket
-     * @throws IllegalArgumentException if both -port and -portRange are provided
+     * @throws IllegalArgumentException if both -port and -portRange are
+     * provided, or the engine is unknown
      * @throws NumberFormatException if the ports cannot be parsed into an integer
      */
     public Webster(String[] options, com.sun.jini.start.LifeCycle lifeCycle)
@@ -200,6 +218,12 @@ public class Webster implements Runnable {
             } else if(option.equals("-soTimeout")) {
                 i++;
                 soTimeout = Integer.parseInt(options[i]);
+            } else if(option.equals("-engine")) {
+                i++;
+                engine = options[i];
+            } else if(option.equals("-keepAliveTimeout")) {
+                i++;
+                keepAliveTimeout = Long.parseLong(options[i]);
             } else {
                 throw new IllegalArgumentException(option);
             }
@@ -255,13 +279,28 @@ public class Webster implements Runnable {
         d = System.getProperty("webster.debug");
         if(d != null)
             debug = true;
+        if(engine==null)
+            engine = System.getProperty("org.rioproject.tools.webster.engine", BLOCKING_ENGINE);
+        if(!engine.equals(BLOCKING_ENGINE) && !engine.equals(NIO_ENGINE))
+            throw new IllegalArgumentException("unknown engine ["+engine+"], " +
+                                               "choose "+BLOCKING_ENGINE+" or "+NIO_ENGINE);
+        if(engine.equals(NIO_ENGINE) &&
+           socketFactory!=null && !(socketFactory instanceof PortRangeServerSocketFactory)) {
+            logger.warning("The "+NIO_ENGINE+" engine cannot use a "+socketFactory.getClass().getName()+", " +
+                           "using the "+BLOCKING_ENGINE+" engine");
+            engine = BLOCKING_ENGINE;
+        }
         setupRoots(roots);
+        ServerSocketChannel serverChannel = null;
         try {
             if(bindAddress == null)
                 bindAddress = InetAddress.getLocalHost().getHostAddress();
             try {
                 InetAddress addr = InetAddress.getByName(bindAddress);
-                if(socketFactory==null) {
+                if(engine.equals(NIO_ENGINE)) {
+                    serverChannel = openServerChannel(addr);
+                    ss = serverChannel.socket();
+                } else if(socketFactory==null) {
                     ss = new ServerSocket(port, 0, addr);
                 } else {
                     ss = socketFactory.createServerSocket(port, 0, addr);
@@ -302,6 +341,18 @@ public class Webster implements Runnable {
             if(logger.isLoggable(Level.FINE))
                 logger.fine("Webster Socket SO_TIMEOUT set to ["+soTimeout+"] millis");
         }
+        if(engine.equals(NIO_ENGINE)) {
+            try {
+                nioEngine = new NioEngine(this, serverChannel, pool, keepAliveTimeout, debug);
+            } catch(IOException e) {
+                logger.log(Level.SEVERE, "Could not create NIO engine", e);
+                throw new RuntimeException("Could not create NIO engine");
+            }
+            if(debug)
+                System.out.println("Webster engine ["+engine+"], keep-alive timeout ["+keepAliveTimeout+"] millis");
+            if(logger.isLoggable(Level.FINE))
+                logger.fine("Webster engine ["+engine+"], keep-alive timeout ["+keepAliveTimeout+"] millis");
+        }
 
         /* Set system property */        
         System.setProperty(Constants.CODESERVER,
@@ -312,6 +363,31 @@ public class Webster implements Runnable {
         runner.start();
     }
 
+    /*
+     * Open a ServerSocketChannel for the nio engine. If a port range has been
+     * provided, bind to the first available port in the range
+     */
+    private ServerSocketChannel openServerChannel(InetAddress addr) throws IOException {
+        int start = port;
+        int end = port;
+        if(port==0 && socketFactory!=null) {
+            PortRangeServerSocketFactory range = (PortRangeServerSocketFactory)socketFactory;
+            start = range.getStart();
+            end = range.getEnd();
+        }
+        for(int p=start; ; p++) {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            try {
+                channel.socket().bind(new InetSocketAddress(addr, p));
+                return channel;
+            } catch(BindException e) {
+                close(channel);
+                if(p>=end)
+                    throw e;
+            }
+        }
+    }
+
     /**
      * Get the roots Webster is serving
      *
@@ -369,6 +445,8 @@ public class Webster implements Runnable {
      */
     public void terminate() {
         run = false;
+        if(nioEngine!=null)
+            nioEngine.terminate();
         if(ss!=null) {
             try {
                 ss.close();
@@ -433,6 +511,10 @@ public class Webster implements Runnable {
     }
 
     public void run() {
+        if(nioEngine!=null) {
+            nioEngine.run();
+            return;
+        }
         Socket s  ;
         try {
             loadMimes();
@@ -582,6 +664,36 @@ public class Webster implements Runnable {
         }
     } // end of loadMimes
 
+    /*
+     * Get the mime type for a file extension, or null if not known
+     */
+    String getMimeType(String extension) {
+        return MimeTypes.getProperty(extension);
+    }
+
+    /*
+     * Get the listing of a directory returned for a GET of the directory
+     */
+    String getDirectoryListing(File dir) {
+        StringBuffer dirData = new StringBuffer();
+        String files[] = dir.list();
+        for (String file : files) {
+            File f = new File(dir, file);
+            dirData.append(f.toString().substring(dir.getParent().length()));
+            dirData.append("\t");
+            if (f.isDirectory())
+                dirData.append("d");
+            else
+                dirData.append("f");
+            dirData.append("\t");
+            dirData.append(f.length());
+            dirData.append("\t");
+            dirData.append(f.lastModified());
+            dirData.append("\n");
+        }
+        return dirData.toString();
+    }
+
     protected File parseFileName(String filename) {
         StringBuffer fn = new StringBuffer(filename);
         for (int i = 0; i < fn.length(); i++) {
@@ -681,22 +793,7 @@ public class Webster implements Runnable {
                 String header;
                 if(getFile.isDirectory()) {
                     logData.append("directory located");
-                    String files[] = getFile.list();
-                    for (String file : files) {
-                        File f = new File(getFile, file);
-                        dirData.append(f.toString().substring(
-                            getFile.getParent().length()));
-                        dirData.append("\t");
-                        if (f.isDirectory())
-                            dirData.append("d");
-                        else
-                            dirData.append("f");
-                        dirData.append("\t");
-                        dirData.append(f.length());
-                        dirData.append("\t");
-                        dirData.append(f.lastModified());
-                        dirData.append("\n");
-                    }
+                    dirData.append(getDirectoryListing(getFile));
                     fileLength = dirData.length();
                     String fileType = MimeTypes.getProperty("txt");
                     if(fileType==null)
@@ -779,22 +876,7 @@ public class Webster implements Runnable {
                 String header;
                 if(getFile.isDirectory()) {
                     logData.append("directory located");
-                    String files[] = getFile.list();
-                    for (String file : files) {
-                        File f = new File(getFile, file);
-                        dirData.append(f.toString().substring(
-                            getFile.getParent().length()));
-                        dirData.append("\t");
-                        if (f.isDirectory())
-                            dirData.append("d");
-                        else
-                            dirData.append("f");
-                        dirData.append("\t");
-                        dirData.append(f.length());
-                        dirData.append("\t");
-                        dirData.append(f.lastModified());
-                        dirData.append("\n");
-                    }
+                    dirData.append(getDirectoryListing(getFile));
                     fileLength = dirData.length();
                     String fileType = MimeTypes.getProperty("txt");
                     if(fileType == null)
@@ -0,0 +1,285 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.tools.webster;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * Unit tests for Webster using the nio engine
+ */
+public class NioWebsterUTest {
+    private File root;
+    private Webster webster;
+
+    @Before
+    public void setup() throws Exception {
+        root = WebsterLoadHarness.createRoot();
+        webster = new Webster(new String[]{"-port", "0",
+                                           "-roots", root.getAbsolutePath(),
+                                           "-engine", Webster.NIO_ENGINE},
+                              null);
+    }
+
+    @After
+    public void teardown() {
+        if(webster!=null)
+            webster.terminate();
+        WebsterLoadHarness.delete(root);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void createWebsterWithUnknownEngine() throws Exception {
+        new Webster(new String[]{"-port", "0", "-roots", root.getAbsolutePath(), "-engine", "unknown"}, null);
+    }
+
+    @Test
+    public void verifyRequestsOnPersistentConnection() throws Exception {
+        File file = WebsterLoadHarness.createFile(root, "a.jar", 1024);
+        Socket socket = connect();
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            for(int i=0; i<3; i++) {
+                send(socket, "GET /a.jar HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                WebsterLoadHarness.Reply reply = WebsterLoadHarness.readReply(in);
+                Assert.assertEquals(200, reply.status);
+                Assert.assertEquals("keep-alive", reply.headers.get("Connection"));
+                Assert.assertTrue(Arrays.equals(read(file), reply.body));
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void verifyPipelinedRequestsAreAnsweredInOrder() throws Exception {
+        WebsterLoadHarness.createFile(root, "a.jar", 10);
+        WebsterLoadHarness.createFile(root, "b.jar", 20);
+        Socket socket = connect();
+        try {
+            send(socket, "GET /a.jar HTTP/1.1\r\n\r\n" +
+                         "GET /missing.jar HTTP/1.1\r\n\r\n" +
+                         "HEAD /b.jar HTTP/1.1\r\n\r\n" +
+                         "GET /b.jar HTTP/1.1\r\n\r\n");
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            WebsterLoadHarness.Reply reply = WebsterLoadHarness.readReply(in);
+            Assert.assertEquals(200, reply.status);
+            Assert.assertEquals(10, reply.body.length);
+            reply = WebsterLoadHarness.readReply(in);
+            Assert.assertEquals(404, reply.status);
+            /* A HEAD has the Content-Length of the file, but no body */
+            String headResponse = readHeader(in);
+            Assert.assertTrue(headResponse, headResponse.startsWith("HTTP/1.1 200 OK"));
+            Assert.assertTrue(headResponse, headResponse.contains("Content-Length: 20"));
+            reply = WebsterLoadHarness.readReply(in);
+            Assert.assertEquals(200, reply.status);
+            Assert.assertEquals(20, reply.body.length);
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void verifyConnectionIsClosedWhenRequested() throws Exception {
+        WebsterLoadHarness.createFile(root, "a.jar", 10);
+        verifyClosed("GET /a.jar HTTP/1.1\r\nConnection: close\r\n\r\n");
+        verifyClosed("GET /a.jar HTTP/1.0\r\n\r\n");
+    }
+
+    @Test
+    public void verifyLargeFileIsSent() throws Exception {
+        File file = WebsterLoadHarness.createFile(root, "large.jar", 8*1024*1024);
+        Socket socket = connect();
+        try {
+            send(socket, "GET /large.jar HTTP/1.1\r\n\r\n");
+            WebsterLoadHarness.Reply reply =
+                WebsterLoadHarness.readReply(new BufferedInputStream(socket.getInputStream()));
+            Assert.assertEquals(200, reply.status);
+            Assert.assertTrue(Arrays.equals(read(file), reply.body));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void verifyPutAndDelete() throws Exception {
+        Socket socket = connect();
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            send(socket, "PUT /uploaded.txt HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello" +
+                         "GET /uploaded.txt HTTP/1.1\r\n\r\n");
+            Assert.assertEquals(201, WebsterLoadHarness.readReply(in).status);
+            WebsterLoadHarness.Reply reply = WebsterLoadHarness.readReply(in);
+            Assert.assertEquals(200, reply.status);
+            Assert.assertEquals("hello", new String(reply.body, "ISO-8859-1"));
+            send(socket, "DELETE /uploaded.txt HTTP/1.1\r\n\r\n");
+            Assert.assertEquals(200, WebsterLoadHarness.readReply(in).status);
+            Assert.assertFalse(new File(root, "uploaded.txt").exists());
+            send(socket, "DELETE /uploaded.txt HTTP/1.1\r\n\r\n");
+            Assert.assertEquals(404, WebsterLoadHarness.readReply(in).status);
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void verifyIncompletePutLeavesFileUnchanged() throws Exception {
+        File file = WebsterLoadHarness.createFile(root, "a.jar", 10);
+        byte[] content = read(file);
+        Socket socket = connect();
+        try {
+            send(socket, "PUT /a.jar HTTP/1.1\r\nContent-Length: 5\r\n\r\nhel");
+            awaitUpload();
+            Assert.assertTrue(Arrays.equals(content, read(file)));
+        } finally {
+            socket.close();
+        }
+        awaitUploadsReleased();
+        Assert.assertTrue(Arrays.equals(content, read(file)));
+    }
+
+    @Test
+    public void verifyTerminateReleasesUploads() throws Exception {
+        Socket socket = connect();
+        try {
+            send(socket, "PUT /uploaded.txt HTTP/1.1\r\nContent-Length: 5\r\n\r\nhel");
+            awaitUpload();
+            webster.terminate();
+            webster = null;
+            awaitUploadsReleased();
+            Assert.assertFalse(new File(root, "uploaded.txt").exists());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void verifyBadRequestClosesConnection() throws Exception {
+        verifyClosed("BAD\r\n\r\n");
+    }
+
+    @Test
+    public void verifyLoad() throws Exception {
+        WebsterLoadHarness.createFile(root, "codebase.jar", 64*1024);
+        WebsterLoadHarness.Result result = WebsterLoadHarness.run(webster.getAddress(),
+                                                                  webster.getPort(),
+                                                                  "codebase.jar",
+                                                                  20,
+                                                                  20,
+                                                                  4,
+                                                                  true,
+                                                                  64*1024);
+        Assert.assertEquals(result.toString(), 0, result.failures);
+        Assert.assertEquals(result.toString(), 400, result.completed);
+    }
+
+    @Test
+    public void verifyLoadWithBlockingEngine() throws Exception {
+        Webster blocking = new Webster(new String[]{"-port", "0",
+                                                    "-roots", root.getAbsolutePath(),
+                                                    "-engine", Webster.BLOCKING_ENGINE},
+                                       null);
+        try {
+            WebsterLoadHarness.createFile(root, "codebase.jar", 64*1024);
+            WebsterLoadHarness.Result result = WebsterLoadHarness.run(blocking.getAddress(),
+                                                                      blocking.getPort(),
+                                                                      "codebase.jar",
+                                                                      5,
+                                                                      10,
+                                                                      1,
+                                                                      false,
+                                                                      64*1024);
+            Assert.assertEquals(result.toString(), 0, result.failures);
+            Assert.assertEquals(result.toString(), 50, result.completed);
+        } finally {
+            blocking.terminate();
+        }
+    }
+
+    private void verifyClosed(String request) throws IOException {
+        Socket socket = connect();
+        try {
+            send(socket, request);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            WebsterLoadHarness.readReply(in);
+            Assert.assertEquals(-1, in.read());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private File[] listUploads() {
+        return root.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".upload");
+            }
+        });
+    }
+
+    private void awaitUpload() throws InterruptedException {
+        long deadline = System.currentTimeMillis()+10*1000;
+        while(listUploads().length==0 && System.currentTimeMillis()<deadline)
+            Thread.sleep(10);
+        Assert.assertEquals(1, listUploads().length);
+    }
+
+    private void awaitUploadsReleased() throws InterruptedException {
+        long deadline = System.currentTimeMillis()+10*1000;
+        while(listUploads().length>0 && System.currentTimeMillis()<deadline)
+            Thread.sleep(10);
+        Assert.assertEquals(0, listUploads().length);
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(webster.getAddress(), webster.getPort());
+        socket.setSoTimeout(10*1000);
+        return socket;
+    }
+
+    private void send(Socket socket, String request) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(request.getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    private String readHeader(InputStream in) throws IOException {
+        StringBuilder header = new StringBuilder();
+        while(!header.toString().endsWith("\r\n\r\n")) {
+            int c = in.read();
+            if(c==-1)
+                throw new EOFException();
+            header.append((char)c);
+        }
+        return header.toString();
+    }
+
+    private byte[] read(File file) throws IOException {
+        byte[] content = new byte[(int)file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(content);
+        } finally {
+            in.close();
+        }
+        return content;
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.tools.webster;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A load test harness for Webster. Starts a Webster serving a generated
+ * file, then has a number of clients concurrently download the file, as
+ * Cybernodes do with codebase JARs when services are provisioned, and
+ * reports throughput and latency.
+ *
+ * <pre>
+ * java org.rioproject.tools.webster.WebsterLoadHarness [-engine blocking|nio]
+ *     [-clients 200] [-requests 20] [-size 262144] [-pipeline 1]
+ *     [-keepAlive true|false] [-maxThreads 10]
+ * </pre>
+ *
+ * Keep-alive defaults to true for the nio engine, and false for the
+ * blocking engine, which closes the connection after each response. With
+ * keep-alive each client uses one connection, sending <tt>pipeline</tt>
+ * requests before reading their responses.
+ */
+public class WebsterLoadHarness {
+
+    public static void main(String[] args) throws Exception {
+        String engine = Webster.NIO_ENGINE;
+        int clients = 200;
+        int requests = 20;
+        int size = 256*1024;
+        int pipeline = 1;
+        String keepAlive = null;
+        String maxThreads = Integer.toString(Webster.DEFAULT_MAX_THREADS);
+        for(int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if(option.equals("-engine")) {
+                engine = args[++i];
+            } else if(option.equals("-clients")) {
+                clients = Integer.parseInt(args[++i]);
+            } else if(option.equals("-requests")) {
+                requests = Integer.parseInt(args[++i]);
+            } else if(option.equals("-size")) {
+                size = Integer.parseInt(args[++i]);
+            } else if(option.equals("-pipeline")) {
+                pipeline = Integer.parseInt(args[++i]);
+            } else if(option.equals("-keepAlive")) {
+                keepAlive = args[++i];
+            } else if(option.equals("-maxThreads")) {
+                maxThreads = args[++i];
+            } else {
+                throw new IllegalArgumentException(option);
+            }
+        }
+        boolean persistent = keepAlive==null?engine.equals(Webster.NIO_ENGINE):Boolean.parseBoolean(keepAlive);
+        File root = createRoot();
+        try {
+            File file = createFile(root, "codebase.jar", size);
+            Webster webster = new Webster(new String[]{"-port", "0",
+                                                       "-roots", root.getAbsolutePath(),
+                                                       "-engine", engine,
+                                                       "-maxThreads", maxThreads},
+                                          null);
+            try {
+                /* Warm up */
+                run(webster.getAddress(), webster.getPort(), file.getName(), 10, 10, pipeline, persistent, size);
+                Result result = run(webster.getAddress(),
+                                    webster.getPort(),
+                                    file.getName(),
+                                    clients,
+                                    requests,
+                                    pipeline,
+                                    persistent,
+                                    size);
+                System.out.println("engine="+engine+", clients="+clients+", requests="+requests+", " +
+                                   "size="+size+", pipeline="+pipeline+", keepAlive="+persistent+
+                                   ", maxThreads="+maxThreads);
+                System.out.println(result);
+            } finally {
+                webster.terminate();
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    /**
+     * Run clients against a Webster
+     *
+     * @param host The address of the Webster
+     * @param port The port of the Webster
+     * @param path The path to request
+     * @param clients The number of concurrent clients
+     * @param requests The number of requests each client makes
+     * @param pipeline The number of requests a client sends before reading
+     * the responses, ignored if keepAlive is false
+     * @param keepAlive Whether each client uses one connection for all its
+     * requests, or a connection for each request
+     * @param expectedLength The length of the file
+     *
+     * @return The result of the run
+     *
+     * @throws InterruptedException if interrupted waiting for the clients
+     */
+    static Result run(final String host,
+                      final int port,
+                      final String path,
+                      int clients,
+                      final int requests,
+                      final int pipeline,
+                      final boolean keepAlive,
+                      final long expectedLength) throws InterruptedException {
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final long[][] latencies = new long[clients][];
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(clients);
+        for(int i=0; i<clients; i++) {
+            final int client = i;
+            Thread t = new Thread("WebsterLoadHarness-"+i) {
+                public void run() {
+                    long[] times = new long[requests];
+                    try {
+                        start.await();
+                        if(keepAlive)
+                            runPersistent(times);
+                        else
+                            runClosing(times);
+                    } catch(Exception e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        latencies[client] = times;
+                        done.countDown();
+                    }
+                }
+
+                void runPersistent(long[] times) throws IOException {
+                    Socket socket = new Socket(host, port);
+                    try {
+                        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                        InputStream in = new BufferedInputStream(socket.getInputStream());
+                        int sent = 0;
+                        while(sent<requests) {
+                            int batch = Math.min(pipeline, requests-sent);
+                            long begin = System.nanoTime();
+                            for(int j=0; j<batch; j++)
+                                out.write(request(host, path, true));
+                            out.flush();
+                            for(int j=0; j<batch; j++) {
+                                record(readReply(in));
+                                times[sent+j] = System.nanoTime()-begin;
+                            }
+                            sent += batch;
+                        }
+                    } finally {
+                        socket.close();
+                    }
+                }
+
+                void runClosing(long[] times) throws IOException {
+                    for(int j=0; j<requests; j++) {
+                        long begin = System.nanoTime();
+                        Socket socket = new Socket(host, port);
+                        try {
+                            OutputStream out = socket.getOutputStream();
+                            out.write(request(host, path, false));
+                            out.flush();
+                            record(readReply(new BufferedInputStream(socket.getInputStream())));
+                        } finally {
+                            socket.close();
+                        }
+                        times[j] = System.nanoTime()-begin;
+                    }
+                }
+
+                void record(Reply reply) {
+                    if(reply.status==200 && reply.body.length==expectedLength) {
+                        completed.incrementAndGet();
+                        bytes.addAndGet(reply.body.length);
+                    } else {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime()-begin;
+        int count = 0;
+        for(long[] l : latencies)
+            count += l.length;
+        long[] all = new long[count];
+        int ndx = 0;
+        for(long[] l : latencies) {
+            System.arraycopy(l, 0, all, ndx, l.length);
+            ndx += l.length;
+        }
+        return new Result(completed.get(), failures.get(), bytes.get(), elapsed, all);
+    }
+
+    static byte[] request(String host, String path, boolean keepAlive) throws UnsupportedEncodingException {
+        return ("GET /"+path+" HTTP/1.1\r\n" +
+                "Host: "+host+"\r\n" +
+                (keepAlive?"":"Connection: close\r\n") +
+                "\r\n").getBytes("ISO-8859-1");
+    }
+
+    /**
+     * Read a response, using its Content-Length to find its end. Header
+     * lines may end with a CRLF or a LF
+     *
+     * @param in The stream to read from
+     *
+     * @return The reply
+     *
+     * @throws IOException if the stream ends before the response
+     */
+    static Reply readReply(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        if(statusLine==null)
+            throw new EOFException("connection closed");
+        int status = Integer.parseInt(statusLine.split(" ")[1]);
+        Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        String line;
+        while((line = readLine(in))!=null && line.length()>0) {
+            int ndx = line.indexOf(':');
+            if(ndx>0)
+                headers.put(line.substring(0, ndx).trim(), line.substring(ndx+1).trim());
+        }
+        String length = headers.get("Content-Length");
+        byte[] body = new byte[length==null?0:Integer.parseInt(length)];
+        new DataInputStream(in).readFully(body);
+        return new Reply(status, headers, body);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while((c = in.read())!=-1) {
+            if(c=='\n')
+                return line.toString();
+            if(c!='\r')
+                line.append((char)c);
+        }
+        return line.length()==0?null:line.toString();
+    }
+
+    static File createRoot() throws IOException {
+        File root = File.createTempFile("webster", "root");
+        if(!root.delete() || !root.mkdir())
+            throw new IOException("Could not create "+root);
+        return root;
+    }
+
+    static File createFile(File dir, String name, int size) throws IOException {
+        File file = new File(dir, name);
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    static void delete(File file) {
+        File[] files = file.listFiles();
+        if(files!=null) {
+            for(File f : files)
+                delete(f);
+        }
+        if(!file.delete())
+            file.deleteOnExit();
+    }
+
+    static class Reply {
+        final int status;
+        final Map<String, String> headers;
+        final byte[] body;
+
+        Reply(int status, Map<String, String> headers, byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    static class Result {
+        final int completed;
+        final int failures;
+        final long bytes;
+        final long elapsed;
+        final long[] latencies;
+
+        Result(int completed, int failures, long bytes, long elapsed, long[] latencies) {
+            this.completed = completed;
+            this.failures = failures;
+            this.bytes = bytes;
+            this.elapsed = elapsed;
+            this.latencies = latencies;
+            Arrays.sort(this.latencies);
+        }
+
+        double getRequestsPerSecond() {
+            return completed/(elapsed/1e9);
+        }
+
+        double getLatencyMillis(double percentile) {
+            if(latencies.length==0)
+                return 0;
+            int ndx = (int)Math.min(latencies.length-1, Math.ceil(percentile/100*latencies.length)-1);
+            return latencies[Math.max(0, ndx)]/1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("completed=%d, failures=%d, elapsed=%.2fs, %.1f requests/s, %.1f MB/s, " +
+                                 "latency p50=%.2fms p99=%.2fms max=%.2fms",
+                                 completed,
+                                 failures,
+                                 elapsed/1e9,
+                                 getRequestsPerSecond(),
+                                 bytes/(elapsed/1e9)/(1024*1024),
+                                 getLatencyMillis(50),
+                                 getLatencyMillis(99),
+                                 getLatencyMillis(100));
+        }
+    }
+}